@@ -17,7 +17,6 @@
 package org.transitclock.applications;
 
 import java.io.PrintWriter;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -29,7 +28,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.lang3.time.DateUtils;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,12 +37,12 @@ import org.transitclock.configData.AgencyConfig;
 import org.transitclock.configData.CoreConfig;
 import org.transitclock.core.ServiceUtils;
 import org.transitclock.core.TimeoutHandlerModule;
+import org.transitclock.core.dataCache.CacheCheckpoint;
+import org.transitclock.core.dataCache.CacheWarmUp;
 import org.transitclock.core.dataCache.PredictionDataCache;
-import org.transitclock.core.dataCache.StopArrivalDepartureCache;
 import org.transitclock.core.dataCache.TripDataHistoryCache;
 import org.transitclock.core.dataCache.VehicleDataCache;
 import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
-import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
 import org.transitclock.db.hibernate.DataDbLogger;
 import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.db.structs.ActiveRevisions;
@@ -297,6 +295,19 @@ public class Core {
 		return new Date(getSystemTime());
 	}
 	
+	/**
+	 * For when need the system time, which is that of the last AVL report
+	 * when in playback mode, but there might not be a Core, such as when
+	 * testing.
+	 * 
+	 * @return The system epoch time of the Core, or the time of the system
+	 *         clock if there is no Core
+	 */
+	public static long getSystemTimeOrNow() {
+		Core core = singleton;
+		return core != null ? core.getSystemTime() : System.currentTimeMillis();
+	}
+	
 	/**
 	 * For setting the system time when in playback or batch mode.
 	 * 
@@ -430,62 +441,39 @@ public class Core {
 			// For making sure logger configured properly
 			outputLoggerStatus();
 			
-			Session session = HibernateUtils.getSession();
+			// Initialize the core now. This reads in the configuration and
+			// sets the timezone, both of which the caches need.
+			createCore();
 			
-			Date endDate=Calendar.getInstance().getTime();
+			Session session = HibernateUtils.getSession();
 			
-			/* populate one day at a time to avoid memory issue */
-			for(int i=0;i<CoreConfig.getDaysPopulateHistoricalCache();i++)
-			{
-				Date startDate=DateUtils.addDays(endDate, -1);
-				
-				logger.debug("Populating StopArrivalDepartureCache cache for period {} to {}",startDate,endDate);
-				StopArrivalDepartureCache.getInstance().populateCacheFromDb(session, startDate, endDate);
+			boolean reloadTripData = cacheReloadStartTimeStr.getValue().length()>0&&cacheReloadEndTimeStr.getValue().length()>0;
 				
-				endDate=startDate;
-			}
-			endDate=Calendar.getInstance().getTime();
-				
-			if(cacheReloadStartTimeStr.getValue().length()>0&&cacheReloadEndTimeStr.getValue().length()>0)				
+			if(reloadTripData)				
 			{
 				logger.debug("Populating TripDataHistoryCache cache for period {} to {}",cacheReloadStartTimeStr.getValue(),cacheReloadEndTimeStr.getValue());
 				TripDataHistoryCache.getInstance().populateCacheFromDb(session, new Date(Time.parse(cacheReloadStartTimeStr.getValue()).getTime()), new Date(Time.parse(cacheReloadEndTimeStr.getValue()).getTime()));
 																
 				logger.debug("Populating FrequencyBasedHistoricalAverageCache cache for period {} to {}",cacheReloadStartTimeStr.getValue(),cacheReloadEndTimeStr.getValue());
 				FrequencyBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, new Date(Time.parse(cacheReloadStartTimeStr.getValue()).getTime()), new Date(Time.parse(cacheReloadEndTimeStr.getValue()).getTime()));			
-			}else
-			{
-				for(int i=0;i<CoreConfig.getDaysPopulateHistoricalCache();i++)
-				{
-					Date startDate=DateUtils.addDays(endDate, -1);
-					
-					logger.debug("Populating TripDataHistoryCache cache for period {} to {}",startDate,endDate);
-					TripDataHistoryCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-					
-					logger.debug("Populating FrequencyBasedHistoricalAverageCache cache for period {} to {}",startDate,endDate);
-					FrequencyBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-					
-					endDate=startDate;
-				}
-			}
-			// TODO just here to check values reasonable.
-			logger.info(FrequencyBasedHistoricalAverageCache.getInstance().toString());
-			
-			endDate=Calendar.getInstance().getTime();
-			
-			for(int i=0;i<CoreConfig.getDaysPopulateHistoricalCache();i++)
-			{
-				Date startDate=DateUtils.addDays(endDate, -1);
-				
-				logger.debug("Populating ScheduleBasedHistoricalAverageCache cache for period {} to {}",startDate,endDate);
-				ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
 				
-				endDate=startDate;
+				session.clear();
 			}
 			
-			// Initialize the core now
-			createCore();
+			// Restore the Kalman errors and historical averages from the last
+			// run so that they don't have to be rederived from the database
+			CacheCheckpoint cacheCheckpoint =
+					new CacheCheckpoint(AgencyConfig.getAgencyId());
+			long checkpointTime = cacheCheckpoint.restore();
 			
+			// The historical averages of a restored checkpoint already
+			// include the arrivals/departures up to when it was written
+			CacheWarmUp cacheWarmUp = new CacheWarmUp(!reloadTripData, checkpointTime);
+			cacheWarmUp.start();
+			if (!CacheWarmUp.isInBackground()) {
+				cacheWarmUp.waitUntilDone();
+			}
+			cacheCheckpoint.start();
 			
 			// Start any optional modules. 
 			List<String> optionalModuleNames = CoreConfig.getOptionalModules();
@@ -16,6 +16,9 @@
  */
 package org.transitclock.avl;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -23,6 +26,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.configData.AgencyConfig;
 import org.transitclock.db.structs.AvlReport;
@@ -39,6 +43,11 @@ import org.transitclock.utils.threading.NamedThreadFactory;
  * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
+ * <p>
+ * If transitclock.avl.shardByVehicle is set then instead of a single
+ * ThreadPoolExecutor the reports are processed by transitclock.avl.numLanes
+ * AvlLanes. Each vehicle is always assigned to the same lane so its reports
+ * are processed in order, and by only one thread at a time.
  * 
  * @author SkiBu Smith
  *
@@ -48,6 +57,9 @@ public class AvlExecutor {
 	// The actual executor
 	ThreadPoolExecutor avlClientExecutor = null;
 	
+	// Used instead of avlClientExecutor when sharding by vehicle
+	private AvlLane[] lanes = null;
+	
 	// Singleton class
 	private static AvlExecutor singleton;
 	
@@ -76,6 +88,23 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue shardByVehicle = 
+			new BooleanConfigValue("transitclock.avl.shardByVehicle", false,
+					"If true then instead of a single thread pool the AVL "
+					+ "reports are processed in transitclock.avl.numLanes "
+					+ "lanes, each with its own thread and queue. A vehicle "
+					+ "is always assigned to the same lane so that its AVL "
+					+ "reports are processed in order and threads don't "
+					+ "contend for the same vehicle. "
+					+ "transitclock.avl.queueSize is divided between the "
+					+ "lanes.");
+	
+	private static IntegerConfigValue numLanes = 
+			new IntegerConfigValue("transitclock.avl.numLanes", 4,
+					"When transitclock.avl.shardByVehicle is set, how many "
+					+ "lanes, and therefore threads, to use for processing "
+					+ "the AVL data.");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -90,6 +119,11 @@ public class AvlExecutor {
 		int numberThreads = numAvlThreads.getValue();
 		final int maxAVLQueueSize = avlQueueSize.getValue();
 
+		if (shardByVehicle.getValue()) {
+			startLanes(maxAVLQueueSize);
+			return;
+		}
+
 		// Make sure that numberThreads is reasonable
 		if (numberThreads < 1) {
 			logger.error("Number of threads must be at least 1 but {} was "
@@ -119,20 +153,7 @@ public class AvlExecutor {
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
-				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
-						+ AgencyConfig.getAgencyId() + ". The work "
-						+ "queue with capacity " + maxAVLQueueSize 
-						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
-				// If first one then send out an e-mail message since this can 
-				// be a serious issue indicating that system is locked up. This
-				// actually happened once when couldn't read from db due to a
-				// strange locking condition.
-				if (!emailSentDueToQueueFull) {
-					emailSentDueToQueueFull = true;
-					logger.error(Markers.email(), message);
-				} else {
-					logger.error(message);
-				}
+				rejected((AvlClient) arg0, maxAVLQueueSize);
 			}};
 		
 		avlClientExecutor =
@@ -142,6 +163,58 @@ public class AvlExecutor {
 						rejectedHandler);
 	}
 	
+	/**
+	 * Creates and starts the lanes for when sharding by vehicle. The queue
+	 * size is divided between the lanes.
+	 * 
+	 * @param maxAVLQueueSize
+	 */
+	private void startLanes(int maxAVLQueueSize) {
+		int numberLanes = numLanes.getValue();
+		if (numberLanes < 1) {
+			logger.error("Number of lanes must be at least 1 but {} was "
+					+ "specified. Therefore using 1 lane.", numberLanes);
+			numberLanes = 1;
+		}
+		int laneCapacity = Math.max(1, maxAVLQueueSize / numberLanes);
+
+		logger.info("Starting AvlExecutor for directly handling AVL reports " +
+				"sharded by vehicle. numberLanes={} and laneCapacity={}", 
+				numberLanes, laneCapacity);
+
+		NamedThreadFactory avlLaneThreadFactory =
+				new NamedThreadFactory("avlLane");
+		lanes = new AvlLane[numberLanes];
+		for (int i = 0; i < numberLanes; ++i) {
+			lanes[i] = new AvlLane(i, laneCapacity);
+			avlLaneThreadFactory.newThread(lanes[i]).start();
+		}
+	}
+	
+	/**
+	 * Called when an AVL report can't be queued because the queue is full.
+	 * 
+	 * @param avlClient
+	 * @param capacity
+	 *            size of the queue, for the error message
+	 */
+	private static void rejected(AvlClient avlClient, int capacity) {
+		String message = "Rejected AVL report in AvlExecutor for agencyId=" 
+				+ AgencyConfig.getAgencyId() + ". The work "
+				+ "queue with capacity " + capacity 
+				+ " must be full. " + avlClient.getAvlReport();
+		// If first one then send out an e-mail message since this can 
+		// be a serious issue indicating that system is locked up. This
+		// actually happened once when couldn't read from db due to a
+		// strange locking condition.
+		if (!emailSentDueToQueueFull) {
+			emailSentDueToQueueFull = true;
+			logger.error(Markers.email(), message);
+		} else {
+			logger.error(message);
+		}
+	}
+	
 	/**
 	 * Returns singleton instance. Not synchronized since it is OK if an
 	 * executor is replaced by a new one.
@@ -182,12 +255,40 @@ public class AvlExecutor {
 	public void processAvlReport(AvlReport newAvlReport,
 			boolean... useTestExecutor) {
 		boolean testing = useTestExecutor.length > 0 && useTestExecutor[0];
-		Runnable avlClient = !testing ? 
+		AvlClient avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
+		if (lanes != null) {
+			AvlLane lane = getLane(newAvlReport.getVehicleId());
+			if (!lane.offer(avlClient))
+				rejected(avlClient, lane.getCapacity());
+			return;
+		}
+		
 		avlClientExecutor.execute(avlClient);		
 	}
 
+	/**
+	 * Returns the lane that the vehicle is always assigned to.
+	 * 
+	 * @param vehicleId
+	 * @return the lane
+	 */
+	private AvlLane getLane(String vehicleId) {
+		return lanes[(vehicleId.hashCode() & Integer.MAX_VALUE) % lanes.length];
+	}
+	
+	/**
+	 * For monitoring the queue depth and latency of each lane.
+	 * 
+	 * @return the lanes, or an empty list if not sharding by vehicle
+	 */
+	public List<AvlLane> getLanes() {
+		if (lanes == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(Arrays.asList(lanes));
+	}
+
 	/**
 	 * Separate executor, just for testing. The run method simply sleeps for a
 	 * while so can verify that the queuing works when system getting behind in
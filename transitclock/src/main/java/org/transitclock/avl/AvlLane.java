@@ -0,0 +1,259 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.avl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.monitoring.CloudwatchService;
+import org.transitclock.utils.Time;
+
+/**
+ * One lane of the vehicle sharded AvlExecutor. Each vehicle is always
+ * assigned to the same lane and each lane is processed by a single thread, so
+ * the AVL reports for a vehicle are processed one at a time and in order.
+ * <p>
+ * The lane holds at most one pending AVL report per vehicle, in the order
+ * that the vehicles were queued. If a new report is received for a vehicle
+ * that is still waiting to be processed, because the lane has fallen behind,
+ * then the stale report is replaced by the new one while keeping the
+ * vehicle's place in the lane. This is the same as what AvlQueue does for the
+ * shared queue, but without having to skip over the obsolete reports.
+ * <p>
+ * Keeps track of the queue depth and of the latency, from when a report was
+ * queued to when it has been processed, so that it can be seen when a lane is
+ * falling behind. These are logged and saved to Cloudwatch once a minute.
+ */
+public class AvlLane implements Runnable {
+
+	private final int laneNumber;
+
+	private final int capacity;
+
+	// The pending AVL report for each vehicle, in the order that the
+	// vehicles were queued. Only accessed while synchronized.
+	private final LinkedHashMap<String, Pending> pending =
+			new LinkedHashMap<String, Pending>();
+
+	// Statistics for the current reporting period. Only accessed while
+	// synchronized.
+	private long periodStartTime = System.currentTimeMillis();
+	private int processedInPeriod = 0;
+	private long totalLatencyInPeriod = 0;
+	private long maxLatencyInPeriod = 0;
+	private int maxDepthInPeriod = 0;
+	private int coalescedInPeriod = 0;
+
+	// Latest values for the last complete reporting period
+	private volatile double averageLatencyMsec = 0.0;
+	private volatile long maxLatencyMsec = 0;
+
+	private static final long REPORTING_PERIOD_MSEC = Time.MS_PER_MIN;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlLane.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * An AVL report waiting to be processed along with when it was first
+	 * queued.
+	 */
+	private static class Pending {
+		private final AvlClient avlClient;
+		private final long queuedTime;
+
+		private Pending(AvlClient avlClient, long queuedTime) {
+			this.avlClient = avlClient;
+			this.queuedTime = queuedTime;
+		}
+	}
+
+	/**
+	 * @param laneNumber
+	 *            For identifying the lane in logging and metrics
+	 * @param capacity
+	 *            Max number of vehicles that can be waiting in the lane
+	 */
+	public AvlLane(int laneNumber, int capacity) {
+		this.laneNumber = laneNumber;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Queues the AVL report to be processed. If there is already a report
+	 * waiting for the vehicle then the older of the two is discarded.
+	 *
+	 * @param avlClient
+	 *            The AvlClient for the AVL report
+	 * @return false if the lane is full
+	 */
+	public synchronized boolean offer(AvlClient avlClient) {
+		String vehicleId = avlClient.getAvlReport().getVehicleId();
+		Pending existing = pending.get(vehicleId);
+		if (existing != null) {
+			++coalescedInPeriod;
+			if (avlClient.getAvlReport().getTime()
+					>= existing.avlClient.getAvlReport().getTime()) {
+				logger.debug("Lane {} replacing stale AVL report {} with {}",
+						laneNumber, existing.avlClient.getAvlReport(),
+						avlClient.getAvlReport());
+				// Putting an existing key keeps the vehicle's place in the
+				// lane. Keep the original queued time so that the latency
+				// reflects how long the vehicle has been waiting.
+				pending.put(vehicleId,
+						new Pending(avlClient, existing.queuedTime));
+			}
+			return true;
+		}
+
+		if (pending.size() >= capacity)
+			return false;
+
+		pending.put(vehicleId,
+				new Pending(avlClient, System.currentTimeMillis()));
+		if (pending.size() > maxDepthInPeriod)
+			maxDepthInPeriod = pending.size();
+		notify();
+		return true;
+	}
+
+	/**
+	 * Waits for and removes the AVL report of the vehicle that has been
+	 * waiting the longest.
+	 */
+	private synchronized Pending take() throws InterruptedException {
+		while (pending.isEmpty())
+			wait();
+
+		Iterator<Pending> iterator = pending.values().iterator();
+		Pending next = iterator.next();
+		iterator.remove();
+		return next;
+	}
+
+	/**
+	 * Records how long the AVL report took from being queued to being
+	 * processed and, once per reporting period, logs and saves the metrics
+	 * for the lane.
+	 */
+	private void recordLatency(long queuedTime) {
+		long now = System.currentTimeMillis();
+		long latency = now - queuedTime;
+
+		int depth;
+		int maxDepth;
+		int processed;
+		int coalesced;
+		synchronized (this) {
+			++processedInPeriod;
+			totalLatencyInPeriod += latency;
+			if (latency > maxLatencyInPeriod)
+				maxLatencyInPeriod = latency;
+
+			if (now - periodStartTime < REPORTING_PERIOD_MSEC)
+				return;
+
+			depth = pending.size();
+			maxDepth = maxDepthInPeriod;
+			processed = processedInPeriod;
+			coalesced = coalescedInPeriod;
+			averageLatencyMsec = (double) totalLatencyInPeriod / processedInPeriod;
+			maxLatencyMsec = maxLatencyInPeriod;
+
+			periodStartTime = now;
+			processedInPeriod = 0;
+			totalLatencyInPeriod = 0;
+			maxLatencyInPeriod = 0;
+			maxDepthInPeriod = depth;
+			coalescedInPeriod = 0;
+		}
+
+		logger.info("AVL lane {} processed {} reports, coalesced {} stale "
+				+ "reports, queue depth {} (max {}), average latency {} msec "
+				+ "(max {} msec)", laneNumber, processed, coalesced, depth,
+				maxDepth, Math.round(averageLatencyMsec), maxLatencyMsec);
+		CloudwatchService.getInstance().saveMetric(
+				"AvlLane" + laneNumber + "QueueDepth", Double.valueOf(maxDepth),
+				1, CloudwatchService.MetricType.MAX,
+				CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+		CloudwatchService.getInstance().saveMetric(
+				"AvlLane" + laneNumber + "LatencyInMillis", averageLatencyMsec,
+				1, CloudwatchService.MetricType.AVERAGE,
+				CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+	}
+
+	/**
+	 * Processes the AVL reports in the lane until interrupted.
+	 *
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			Pending next;
+			try {
+				next = take();
+			} catch (InterruptedException e) {
+				logger.info("AVL lane {} interrupted so exiting", laneNumber);
+				return;
+			}
+
+			// AvlClient.run() catches all exceptions so the lane thread will
+			// not be killed
+			next.avlClient.run();
+
+			recordLatency(next.queuedTime);
+		}
+	}
+
+	/**
+	 * @return number of vehicles with an AVL report waiting in the lane
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return Max number of vehicles that can be waiting in the lane
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the average latency, from being queued to having been
+	 *         processed, for the last complete reporting period
+	 */
+	public double getAverageLatencyMsec() {
+		return averageLatencyMsec;
+	}
+
+	/**
+	 * @return the max latency for the last complete reporting period
+	 */
+	public long getMaxLatencyMsec() {
+		return maxLatencyMsec;
+	}
+
+	public int getLaneNumber() {
+		return laneNumber;
+	}
+}
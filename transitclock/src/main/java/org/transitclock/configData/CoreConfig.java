@@ -49,6 +49,21 @@ public class CoreConfig {
 	private static IntegerConfigValue daysPopulateHistoricalCache =
 			new IntegerConfigValue("transitclock.cache.daysPopulateHistoricalCache", 4,
 					"How many days data to read in to populate historical cache on start up.");
+	
+	/**
+	 * How long arrivals/departures are kept in the historical caches. The
+	 * StopArrivalDepartureCache, the TripDataHistoryCache and the store
+	 * that both are built on all use this one value.
+	 * 
+	 * @return
+	 */
+	public static int getTripDataCacheMaxAgeSec() {
+		return tripDataCacheMaxAgeSec.getValue();
+	}
+	private static IntegerConfigValue tripDataCacheMaxAgeSec =
+			new IntegerConfigValue("transitclock.tripdatacache.tripDataCacheMaxAgeSec",
+					15 * Time.SEC_PER_DAY,
+					"How old an arrivaldeparture has to be before it is removed from the cache ");
 	/**
 	 * When in playback mode or some other situations don't want to store
 	 * generated data such as arrivals/departures, events, and such to the
@@ -157,6 +172,23 @@ public class CoreConfig {
 					+ "transitclock.core.maxDistanceFromSegmentForAutoAssigning "
 					+ "is used instead.");
 	
+	/**
+	 * Whether the spatial index of the trip pattern segments should be used
+	 * when matching an AVL report to a whole trip.
+	 * @return
+	 */
+	public static boolean getUseSegmentIndexForSpatialMatching() {
+		return useSegmentIndexForSpatialMatching.getValue();
+	}
+	private static BooleanConfigValue useSegmentIndexForSpatialMatching =
+			new BooleanConfigValue(
+					"transitclock.core.useSegmentIndexForSpatialMatching",
+					true,
+					"When matching an AVL report to a whole trip, such as when "
+					+ "auto assigning, only look at the segments of the trip "
+					+ "pattern that are near the AVL report instead of at every "
+					+ "segment. The resulting matches are the same.");
+	
 	/**
 	 * How far a location can be from a path segment and still be considered
 	 * a match when auto assigning.
@@ -17,8 +17,11 @@
 
 package org.transitclock.configData;
 
+import java.util.List;
+
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
+import org.transitclock.config.StringListConfigValue;
 
 /**
  * Config params for database
@@ -112,4 +115,50 @@ public class DbSetupConfig {
                     100,
                     "Specifies the database batch size, defaults to 100");
 
+    /**
+     * @return the simple class names of the types that DbQueue writes with
+     *         the JdbcBatchWriter instead of with a Hibernate session, or
+     *         null if none
+     */
+    public static List<String> getBatchWriterTypes() {
+        return batchWriterTypes.getValue();
+    }
+    private static StringListConfigValue batchWriterTypes =
+            new StringListConfigValue("transitclock.db.batchWriterTypes",
+                    null,
+                    "Semicolon separated list of the types, such as "
+                    + "ArrivalDeparture;AvlReport;Match;Prediction;"
+                    + "PredictionAccuracy, that should be written to the "
+                    + "database with multi-row inserts, or COPY for "
+                    + "postgresql, instead of being saved one at a time via "
+                    + "Hibernate. Much faster when a lot of data is being "
+                    + "written.");
+
+    /**
+     * @return the directory under which each DbQueue keeps its spill file,
+     *         or null if the queues should not spill to disk
+     */
+    public static String getSpillDirectory() {
+        return spillDirectory.getValue();
+    }
+    private static StringConfigValue spillDirectory =
+            new StringConfigValue("transitclock.db.spillDirectory",
+                    null,
+                    "Directory where the data that is to be written to the "
+                    + "database is spilled to disk when a DbQueue is full, "
+                    + "instead of the data being lost. Each type gets its "
+                    + "own subdirectory. The spilled data is written to the "
+                    + "database once the queue has caught up, and is "
+                    + "replayed when the Core is restarted. If not set then "
+                    + "data is dropped when a queue is full.");
+
+    public static Integer getSpillSegmentSize() {
+        return spillSegmentSize.getValue();
+    }
+    private static IntegerConfigValue spillSegmentSize =
+            new IntegerConfigValue("transitclock.db.spillSegmentSize",
+                    64 * 1024 * 1024,
+                    "Size in bytes of each of the memory mapped segment "
+                    + "files that make up a DbQueue spill file.");
+
 }
@@ -17,6 +17,7 @@
 
 package org.transitclock.configData;
 
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
 
@@ -88,4 +89,73 @@ public class RmiConfig {
 					+ "is consistent. Every server on a machine must use a "
 					+ "different secondary port for communication.");
 
+	/**
+	 * Which transport clients use for calling the remote methods of an agency
+	 * server. "rmi" for Java RMI or "binary" for the binary IPC transport,
+	 * which uses a single connection per agency and a compact encoding. The
+	 * binary transport requires transitclock.ipc.binaryServerEnabled to be
+	 * set for the agency server.
+	 * 
+	 * @return
+	 */
+	public static String ipcTransport() {
+		return ipcTransport.getValue();
+	}
+	private static StringConfigValue ipcTransport =
+			new StringConfigValue("transitclock.ipc.transport",
+					"rmi",
+					"Which transport clients use for calling the remote "
+					+ "methods of an agency server. \"rmi\" for Java RMI or "
+					+ "\"binary\" for the binary IPC transport, which uses a "
+					+ "single connection per agency and a compact encoding. "
+					+ "The binary transport requires "
+					+ "transitclock.ipc.binaryServerEnabled to be set for the "
+					+ "agency server.");
+
+	/**
+	 * Whether the agency server should also make its remote objects available
+	 * via the binary IPC transport, in addition to RMI.
+	 * 
+	 * @return
+	 */
+	public static boolean binaryIpcServerEnabled() {
+		return binaryIpcServerEnabled.getValue();
+	}
+	private static BooleanConfigValue binaryIpcServerEnabled =
+			new BooleanConfigValue("transitclock.ipc.binaryServerEnabled",
+					false,
+					"Whether the agency server should also make its remote "
+					+ "objects available via the binary IPC transport, in "
+					+ "addition to RMI.");
+
+	/**
+	 * Which port the binary IPC transport uses. Every server on a machine
+	 * must use a different port.
+	 * 
+	 * @return
+	 */
+	public static int binaryIpcPort() {
+		return binaryIpcPort.getValue();
+	}
+	private static IntegerConfigValue binaryIpcPort =
+			new IntegerConfigValue("transitclock.ipc.binaryPort",
+					2100,
+					"Which port the binary IPC transport uses. Every server "
+					+ "on a machine must use a different port.");
+
+	/**
+	 * Number of threads the binary IPC server uses for executing requests.
+	 * 
+	 * @return
+	 */
+	public static int binaryIpcServerThreads() {
+		return binaryIpcServerThreads.getValue();
+	}
+	private static IntegerConfigValue binaryIpcServerThreads =
+			new IntegerConfigValue("transitclock.ipc.binaryServerThreads",
+					16,
+					"Number of threads the binary IPC server uses for "
+					+ "executing requests. Requests from all connections "
+					+ "share these threads.");
+
 }
@@ -28,6 +28,7 @@ import org.transitclock.configData.CoreConfig;
 import org.transitclock.core.dataCache.ArrivalDeparturesToProcessHoldingTimesFor;
 import org.transitclock.core.dataCache.HoldingTimeCache;
 import org.transitclock.core.dataCache.HoldingTimeCacheKey;
+import org.transitclock.core.dataCache.LastTraversalCache;
 import org.transitclock.core.dataCache.StopArrivalDepartureCache;
 import org.transitclock.core.dataCache.TripDataHistoryCache;
 import org.transitclock.core.dataCache.VehicleStateManager;
@@ -341,6 +342,9 @@ public class ArrivalDepartureGeneratorDefaultImpl
 		
 		if(StopArrivalDepartureCache.getInstance()!=null)
 			StopArrivalDepartureCache.getInstance().putArrivalDeparture(arrivalDeparture);		
+
+		if(LastTraversalCache.getInstance()!=null)
+			LastTraversalCache.getInstance().putArrivalDeparture(arrivalDeparture);
 		 
 		if(ScheduleBasedHistoricalAverageCache.getInstance()!=null)
 			ScheduleBasedHistoricalAverageCache.getInstance().putArrivalDeparture(arrivalDeparture);
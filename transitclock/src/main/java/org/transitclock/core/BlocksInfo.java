@@ -19,14 +19,17 @@ package org.transitclock.core;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 import org.transitclock.applications.Core;
 import org.transitclock.db.structs.Block;
 import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.IntervalTree;
 import org.transitclock.utils.Time;
 
 /**
@@ -40,9 +43,37 @@ public class BlocksInfo {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * Removes blocks that were found more than once, such as for both today
+	 * and yesterday, keeping the order. Blocks are compared by identity since
+	 * Block.equals() compares all of the trips.
+	 * 
+	 * @param blocks
+	 * @param numBlocksForFirstQuery
+	 *            number of blocks found by the first query. If no other
+	 *            blocks were found then there can't be duplicates.
+	 */
+	private static void removeDuplicates(List<Block> blocks,
+			int numBlocksForFirstQuery) {
+		if (blocks.size() == numBlocksForFirstQuery)
+			return;
+
+		Set<Block> uniqueBlocks = 
+				Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+		List<Block> result = new ArrayList<Block>(blocks.size());
+		for (Block block : blocks) {
+			if (uniqueBlocks.add(block))
+				result.add(block);
+		}
+		blocks.clear();
+		blocks.addAll(result);
+	}
+	
 	/**
 	 * Looks at all blocks that are for the current service ID and returns list
-	 * of ones that will start within beforeStartTimeSecs.
+	 * of ones that will start within beforeStartTimeSecs. Uses the interval
+	 * trees of the blocks so only the blocks that are about to start are
+	 * looked at.
 	 * 
 	 * @param beforeStartTimeSecs
 	 *            Specifies in seconds how much before the block start time that
@@ -63,24 +94,118 @@ public class BlocksInfo {
 		Date now = core.getSystemDate();
 		Collection<String> currentServiceIds = 
 				core.getServiceUtils().getServiceIds(now);
+		int secsInDay = core.getTime().getSecondsIntoDay(now);
 	
 		// For each service ID ...
+		DbConfig dbConfig = core.getDbConfig();
 		for (String serviceId : currentServiceIds) {
-			DbConfig dbConfig = core.getDbConfig();
-			Collection<Block> blocks = dbConfig.getBlocks(serviceId);
+			IntervalTree<Block> blocks = 
+					dbConfig.getBlocksIntervalTree(serviceId);
+			if (blocks == null)
+				continue;
 			
-			// If the block is about to be or currently active then
-			// add it to the list to be returned
-			for (Block block : blocks) {
-				if (block.isBeforeStartTime(now, beforeStartTimeSecs))
-					aboutToStartBlocks.add(block);
-			}
+			aboutToStartBlocks.addAll(findBlocksAboutToStart(blocks,
+					secsInDay, beforeStartTimeSecs));
 		}
 		
 		// Done!
 		return aboutToStartBlocks;
 	}
 
+	/**
+	 * Returns the blocks of the interval tree that start within
+	 * beforeStartTimeSecs after secsInDay, same as Block.isBeforeStartTime().
+	 * Also handles where secsInDay is before midnight but the start time is
+	 * after.
+	 * 
+	 * @param blocks
+	 * @param secsInDay
+	 * @param beforeStartTimeSecs
+	 * @return the blocks that are about to start
+	 */
+	static List<Block> findBlocksAboutToStart(IntervalTree<Block> blocks,
+			int secsInDay, int beforeStartTimeSecs) {
+		List<Block> results = new ArrayList<Block>();
+		blocks.find(secsInDay, secsInDay + beforeStartTimeSecs,
+				Integer.MIN_VALUE, results);
+		int numForToday = results.size();
+		blocks.find(secsInDay - Time.SEC_PER_DAY,
+				secsInDay - Time.SEC_PER_DAY + beforeStartTimeSecs,
+				Integer.MIN_VALUE, results);
+		removeDuplicates(results, numForToday);
+		return results;
+	}
+
+	/**
+	 * Returns the blocks of the interval tree that are active at secsInDay,
+	 * using the same criteria as Block.isActive(). If the service ID was
+	 * valid yesterday then also tries adding 24 hours to the time to handle
+	 * blocks past midnight, and if the service ID is valid tomorrow then
+	 * tries subtracting 24 hours to handle blocks that start before midnight.
+	 * 
+	 * @param blocks
+	 *            the interval tree of the blocks of a service ID
+	 * @param secsInDay
+	 * @param validToday
+	 *            whether the service ID is valid today
+	 * @param validYesterday
+	 *            whether the service ID was valid yesterday
+	 * @param validTomorrow
+	 *            whether the service ID is valid tomorrow
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @return the active blocks, each one only once
+	 */
+	static List<Block> findActiveBlocks(IntervalTree<Block> blocks,
+			int secsInDay, boolean validToday, boolean validYesterday,
+			boolean validTomorrow, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs) {
+		List<Block> results = new ArrayList<Block>();
+		if (validToday)
+			findActiveBlocksForDay(blocks, secsInDay,
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					results);
+		int numForFirstDay = results.size();
+		if (validYesterday)
+			findActiveBlocksForDay(blocks, secsInDay + Time.DAY_IN_SECS,
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					results);
+		if (validTomorrow)
+			findActiveBlocksForDay(blocks, secsInDay - Time.SEC_PER_DAY,
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+					results);
+		removeDuplicates(results, numForFirstDay);
+		return results;
+	}
+
+	/**
+	 * Adds the blocks of the interval tree that are active at secsInDay for
+	 * a single day.
+	 * 
+	 * @param blocks
+	 * @param secsInDay
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @param results
+	 *            the active blocks are added to this
+	 */
+	private static void findActiveBlocksForDay(IntervalTree<Block> blocks,
+			int secsInDay, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs, List<Block> results) {
+		if (allowableAfterStartTimeSecs < 0) {
+			// Active if startTime - allowableBeforeTimeSecs < secsInDay 
+			// < endTime
+			blocks.find(Integer.MIN_VALUE, secsInDay + allowableBeforeTimeSecs,
+					secsInDay, results);
+		} else {
+			// Active if startTime - allowableBeforeTimeSecs < secsInDay 
+			// < startTime + allowableAfterStartTimeSecs
+			blocks.find(secsInDay - allowableAfterStartTimeSecs,
+					secsInDay + allowableBeforeTimeSecs, Integer.MIN_VALUE,
+					results);
+		}
+	}
+
 	/**
 	 * Returns list of blocks that are currently active. 
 	 * 
@@ -92,7 +217,9 @@ public class BlocksInfo {
 	
 	/**
 	 * Returns list of blocks that are currently active for the specified
-	 * routes.
+	 * routes. Uses the interval trees of the blocks for each service ID so
+	 * that only the blocks that are active need to be looked at instead of
+	 * calling Block.isActive() for every block.
 	 * 
 	 * @param routeIds
 	 *            Collection of routes IDs that want blocks for. Use null to
@@ -125,8 +252,12 @@ public class BlocksInfo {
 		// Determine which service IDs are currently active
 		Set<String> serviceIds = new HashSet<String>();
 		long now = core.getSystemTime();
-		List<String> currentServiceIds = 
-				core.getServiceUtils().getServiceIdsForDay(now);
+		ServiceUtils serviceUtils = core.getServiceUtils();
+		List<String> currentServiceIds = serviceUtils.getServiceIdsForDay(now);
+		List<String> previousDayServiceIds =
+				serviceUtils.getServiceIdsForDay(now - Time.DAY_IN_MSECS);
+		List<String> nextDayServiceIds =
+				serviceUtils.getServiceIdsForDay(now + Time.DAY_IN_MSECS);
 		serviceIds.addAll(currentServiceIds);
 		
 		// If current time is just a couple of hours after midnight then need
@@ -135,9 +266,6 @@ public class BlocksInfo {
 		int secsInDayForAvlReport = 
 				Core.getInstance().getTime().getSecondsIntoDay(now);
 		if (secsInDayForAvlReport < 4 * Time.HOUR_IN_SECS) {
-			List<String> previousDayServiceIds =
-					core.getServiceUtils().getServiceIdsForDay(
-							now - Time.DAY_IN_MSECS);
 			serviceIds.addAll(previousDayServiceIds);
 		}
 
@@ -145,20 +273,26 @@ public class BlocksInfo {
 		// service IDs from the next day since a block might start soon after
 		// midnight.
 		if (secsInDayForAvlReport > Time.DAY_IN_SECS - allowableBeforeTimeSecs) {
-			List<String> nextDayServiceIds =
-					core.getServiceUtils().getServiceIdsForDay(
-							now + Time.DAY_IN_MSECS);
 			serviceIds.addAll(nextDayServiceIds);
 		}
 		
 		// For each service ID ...
+		DbConfig dbConfig = core.getDbConfig();
 		for (String serviceId : serviceIds) {
-			DbConfig dbConfig = core.getDbConfig();
-			Collection<Block> blocks = dbConfig.getBlocks(serviceId);
+			IntervalTree<Block> blocks = 
+					dbConfig.getBlocksIntervalTree(serviceId);
+			if (blocks == null)
+				continue;
+			
+			// Find the blocks that are active
+			List<Block> blocksForService = findActiveBlocks(blocks,
+					secsInDayForAvlReport,
+					currentServiceIds.contains(serviceId),
+					previousDayServiceIds.contains(serviceId),
+					nextDayServiceIds.contains(serviceId),
+					allowableBeforeTimeSecs, allowableAfterStartTimeSecs);
 			
-			// If the block is about to be or currently active then
-			// add it to the list to be returned
-			for (Block block : blocks) {
+			for (Block block : blocksForService) {
 				// If this is a block to ignore then simply continue to the 
 				// next one
 				if (blockIdsToIgnore != null
@@ -178,10 +312,8 @@ public class BlocksInfo {
 					}
 				}
 				
-				// If block currently active and is for specified route then
-				// add it to the list
-				if (block.isActive(now, allowableBeforeTimeSecs,
-						allowableAfterStartTimeSecs) && forSpecifiedRoute)
+				// If block is for specified route then add it to the list
+				if (forSpecifiedRoute)
 					activeBlocks.add(block);
 			}
 		}
@@ -29,6 +29,7 @@ import org.apache.commons.lang3.time.DateUtils;
 import org.transitclock.applications.Core;
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.dataCache.LastTraversalCache;
 import org.transitclock.core.dataCache.PredictionComparator;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.core.dataCache.StopArrivalDepartureCache;
@@ -78,111 +79,47 @@ public abstract class PredictionGenerator {
 
 	protected TravelTimeDetails getLastVehicleTravelTime(VehicleState currentVehicleState, Indices indices) {
 
-		StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-				indices.getStopPath().getStopId(),
-				new Date(currentVehicleState.getMatch().getAvlTime()));
-										
 		/* TODO how do we handle the the first stop path. Where do we get the first stop id. */ 		 
 		if(!indices.atBeginningOfTrip())
-		{						
-			String currentStopId = indices.getPreviousStopPath().getStopId();
-			
-			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
-					new Date(currentVehicleState.getMatch().getAvlTime()));
-	
-			List<ArrivalDeparture> currentStopList = StopArrivalDepartureCache.getInstance().getStopHistory(currentStopKey);
-	
-			List<ArrivalDeparture> nextStopList = StopArrivalDepartureCache.getInstance().getStopHistory(nextStopKey);
+		{
+			TravelTimeDetails travelTimeDetails = getLastVehicleTraversal(currentVehicleState, indices);
 			
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (ArrivalDeparture currentArrivalDeparture : currentStopList) {
-					
-					if(currentArrivalDeparture.isDeparture() 
-							&& currentArrivalDeparture.getVehicleId() != currentVehicleState.getVehicleId() 
-							&& (currentVehicleState.getTrip().getDirectionId()==null || currentVehicleState.getTrip().getDirectionId().equals(currentArrivalDeparture.getDirectionId())))
-					{
-						ArrivalDeparture found;
-											
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-							TravelTimeDetails travelTimeDetails=new TravelTimeDetails(currentArrivalDeparture, found);
-							if(travelTimeDetails.getTravelTime()>0)
-							{		
-								return travelTimeDetails;
-								
-							}else
-							{
-								// must be going backwards
-								return null;
-							}
-						}else
-						{
-							return null;
-						}
-					}
-				}
+			if(travelTimeDetails!=null && travelTimeDetails.getTravelTime()>0)
+			{		
+				return travelTimeDetails;
 			}
+			// otherwise there is no last vehicle or it must be going backwards
 		}
 		return null;
 	}
 	protected Indices getLastVehicleIndices(VehicleState currentVehicleState, Indices indices) {
 
-		StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-				indices.getStopPath().getStopId(),
-				new Date(currentVehicleState.getMatch().getAvlTime()));
-										
 		/* TODO how do we handle the the first stop path. Where do we get the first stop id. */ 		 
 		if(!indices.atBeginningOfTrip())
-		{						
-			String currentStopId = indices.getPreviousStopPath().getStopId();
+		{
+			TravelTimeDetails travelTimeDetails = getLastVehicleTraversal(currentVehicleState, indices);
 			
-			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
-					new Date(currentVehicleState.getMatch().getAvlTime()));
-	
-			List<ArrivalDeparture> currentStopList = StopArrivalDepartureCache.getInstance().getStopHistory(currentStopKey);
-	
-			List<ArrivalDeparture> nextStopList = StopArrivalDepartureCache.getInstance().getStopHistory(nextStopKey);
-	
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (ArrivalDeparture currentArrivalDeparture : currentStopList) {
-					
-					if(currentArrivalDeparture.isDeparture() && currentArrivalDeparture.getVehicleId() != currentVehicleState.getVehicleId()
-							&& (currentVehicleState.getTrip().getDirectionId()==null || currentVehicleState.getTrip().getDirectionId().equals(currentArrivalDeparture.getDirectionId())))
-					{
-						ArrivalDeparture found;
-											
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-							if(found.getTime() - currentArrivalDeparture.getTime()>0)
-							{	
-								Block currentBlock=null;
-								/* block is transient in arrival departure so when read from database need to get from dbconfig. */ 
-								if(currentArrivalDeparture.getBlock()==null&&currentArrivalDeparture.getServiceId()!=null && currentArrivalDeparture.getBlockId()!=null)
-								{																																			
-									DbConfig dbConfig = Core.getInstance().getDbConfig();
-									
-									currentBlock=dbConfig.getBlock(currentArrivalDeparture.getServiceId(), currentArrivalDeparture.getBlockId());
-								}else
-								{
-									currentBlock=currentArrivalDeparture.getBlock();
-								}				
-								if(currentBlock!=null)
-									return new Indices(currentBlock, currentArrivalDeparture.getTripIndex(), found.getStopPathIndex(), 0);
-							}else
-							{
-								// must be going backwards
-								return null;
-							}
-						}else
-						{
-							return null;
-						}
-					}
-				}
+			if(travelTimeDetails!=null && travelTimeDetails.getArrival().getTime() - travelTimeDetails.getDeparture().getTime()>0)
+			{
+				return LastTraversalCache.getIndices(travelTimeDetails);
 			}
+			// otherwise there is no last vehicle or it must be going backwards
 		}
 		return null;
 	}
+	/**
+	 * Returns the traversal of the stop path specified by the indices by the
+	 * other vehicle traveling in the same direction that last departed the
+	 * previous stop. Is a single lookup in the LastTraversalCache.
+	 */
+	private TravelTimeDetails getLastVehicleTraversal(VehicleState currentVehicleState, Indices indices) {
+		return LastTraversalCache.getInstance().getLastTraversal(
+				indices.getPreviousStopPath().getStopId(),
+				indices.getStopPath().getStopId(),
+				currentVehicleState.getTrip().getDirectionId(),
+				currentVehicleState.getVehicleId(),
+				currentVehicleState.getMatch().getAvlTime());
+	}
 	/* TODO could also make it a requirement that it is on the same route as the one we are generating prediction for */
 	protected ArrivalDeparture findMatchInList(List<ArrivalDeparture> nextStopList,
 			ArrivalDeparture currentArrivalDeparture) {
@@ -242,56 +179,15 @@ public abstract class PredictionGenerator {
 
 	protected List<TravelTimeDetails> lastDaysTimes(TripDataHistoryCache cache, String tripId,String direction, int stopPathIndex, Date startDate,
 			Integer startTime, int num_days_look_back, int num_days) {
-
-		List<TravelTimeDetails> times = new ArrayList<TravelTimeDetails>();
-		List<ArrivalDeparture> results = null;
-		int num_found = 0;
 		/*
 		 * TODO This could be smarter about the dates it looks at by looking at
 		 * which services use this trip and only 1ook on day service is
 		 * running
 		 */
 		
-		
-		for (int i = 0; i < num_days_look_back && num_found < num_days; i++) {
-
-			Date nearestDay = DateUtils.truncate(DateUtils.addDays(startDate, (i + 1) * -1), Calendar.DAY_OF_MONTH);
-
-			TripKey tripKey = new TripKey(tripId, nearestDay, startTime);
-
-			results = cache.getTripHistory(tripKey);
-
-			if (results != null) {
-
-				ArrivalDeparture arrival = getArrival(stopPathIndex, results);
-				
-				if(arrival!=null)
-				{							
-					ArrivalDeparture departure = TripDataHistoryCache.findPreviousDepartureEvent(results, arrival);
-																							
-					if (arrival != null && departure != null) {
-						
-						TravelTimeDetails travelTimeDetails=new TravelTimeDetails(departure, arrival);
-						
-						times.add(travelTimeDetails);
-											
-						num_found++;
-					}
-				}
-			}
-		}
-		return times;		
-	}
-	ArrivalDeparture getArrival(int stopPathIndex, List<ArrivalDeparture> results)
-	{
-		for(ArrivalDeparture result:results)
-		{
-			if(result.isArrival()&&result.getStopPathIndex()==stopPathIndex)
-			{
-				return result;
-			}
-		}
-		return null;	
+		/* Uses the travel time index of the cache so no trip histories are scanned. */
+		return cache.getLastDaysTravelTimes(tripId, startTime, stopPathIndex, startDate,
+				num_days_look_back, num_days);
 	}
 	protected long timeBetweenStops(ArrivalDeparture ad1, ArrivalDeparture ad2) {
 		
@@ -19,12 +19,11 @@ package org.transitclock.core;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +33,7 @@ import org.transitclock.db.structs.Agency;
 import org.transitclock.db.structs.Calendar;
 import org.transitclock.db.structs.CalendarDate;
 import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.ServiceDayCalculator;
 import org.transitclock.utils.Time;
 
 /**
@@ -45,7 +45,7 @@ import org.transitclock.utils.Time;
  */
 public class ServiceUtils {
 
-	private final GregorianCalendar calendar;
+	private final ServiceDayCalculator serviceDayCalculator;
 	
 	private final DbConfig dbConfig;
 	
@@ -65,18 +65,18 @@ public class ServiceUtils {
 	/********************** Member Functions **************************/
 
 	/**
-	 * ServiceUtils constructor. Creates reusable GregorianCalendar and sets the
-	 * timezone so that the calendar can be reused.
+	 * ServiceUtils constructor. Creates the ServiceDayCalculator for the
+	 * timezone of the agency so that days can be determined without
+	 * synchronizing on a shared calendar.
 	 * 
-	 * @param timezoneName See http://en.wikipedia.org/wiki/List_of_tz_zones
+	 * @param dbConfig
 	 */
 	public ServiceUtils(DbConfig dbConfig) { 
 
 		Agency agency = dbConfig.getFirstAgency();
-		this.calendar =
-				agency != null ? 
-						new GregorianCalendar(agency.getTimeZone())
-						: new GregorianCalendar();
+		this.serviceDayCalculator =
+				new ServiceDayCalculator(agency != null ? 
+						agency.getTimeZone() : TimeZone.getDefault());
 
 		this.dbConfig = dbConfig;
 	}
@@ -89,10 +89,7 @@ public class ServiceUtils {
 	 * @return Day of the week
 	 */
 	public int getDayOfWeek(Date epochTime) {
-		synchronized (calendar) {
-			calendar.setTime(epochTime);
-			return calendar.get(java.util.Calendar.DAY_OF_WEEK);			
-		}
+		return serviceDayCalculator.getDayOfWeek(epochTime.getTime());
 	}
 	
 	/**
@@ -168,7 +165,10 @@ public class ServiceUtils {
 		return activeCalendarList;
 	}
 	
-	Map<Date, List<String>> serviceIdsForDate = new HashMap<Date, List<String>>();
+	// Keyed on the epoch time of the start of the service date. Concurrent
+	// since accessed by all the threads processing AVL reports.
+	private final ConcurrentHashMap<Long, List<String>> serviceIdsForDate =
+			new ConcurrentHashMap<Long, List<String>>();
 	/**
 	 * Caching version fo getServiceIdsForDay.  Assumes epochTime can be distilled to
 	 * a serviceDate.  Note that boundary conditions may exist where serviceDate guess is wrong.
@@ -177,23 +177,16 @@ public class ServiceUtils {
 	 * 
 	 */
 	public List<String> getServiceIdsForDay(Date epochTime) {
-		Date serviceDate = getStartOfDay(epochTime);
-		if (serviceIdsForDate.containsKey(serviceDate)) {
-			return serviceIdsForDate.get(serviceDate);
+		long serviceDate =
+				serviceDayCalculator.getStartOfDay(epochTime.getTime());
+		List<String> serviceIds = serviceIdsForDate.get(serviceDate);
+		if (serviceIds != null) {
+			return serviceIds;
 		}
-		List<String> serviceIds = getServiceIdsForDayNoCache(serviceDate);
+		serviceIds = getServiceIdsForDayNoCache(new Date(serviceDate));
 		serviceIdsForDate.put(serviceDate, serviceIds);
 		return serviceIds;
 	}
-	
-	private Date getStartOfDay(Date epochTime) {
-		java.util.Calendar c = java.util.Calendar.getInstance();
-		c.set(java.util.Calendar.HOUR, 0);
-		c.set(java.util.Calendar.MINUTE, 0);
-		c.set(java.util.Calendar.SECOND, 0);
-		c.set(java.util.Calendar.MILLISECOND, 0);
-		return c.getTime();
-	}
 
 	/**
 	 * Determines list of current service IDs for the specified time. These
@@ -25,6 +25,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
 import org.transitclock.configData.AvlConfig;
 import org.transitclock.configData.CoreConfig;
 import org.transitclock.db.structs.AvlReport;
@@ -34,6 +35,7 @@ import org.transitclock.db.structs.Location;
 import org.transitclock.db.structs.Route;
 import org.transitclock.db.structs.StopPath;
 import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPatternSegmentIndex;
 import org.transitclock.db.structs.VectorWithHeading;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.Time;
@@ -101,9 +103,9 @@ public class SpatialMatcher {
 	 * Goes through entire TripPattern for specified Trip and determines spatial
 	 * matches. Matches must be within getMaxAllowableDistanceFromSegment()
 	 * except layovers are always included since vehicle are allowed to be away
-	 * from the route path during layovers. First checks to see if the avlReport
-	 * location is near the extent of the trip pattern. If it is not then can
-	 * save processing power and return immediately.
+	 * from the route path during layovers. Uses the segment index of the trip
+	 * pattern so that only the segments near the AVL report need to be looked
+	 * at, unless that has been disabled.
 	 * 
 	 * @param avlReport
 	 * @param trip
@@ -114,6 +116,139 @@ public class SpatialMatcher {
 	 */
 	private List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport,
 			Trip trip, MatchingType matchingType) {
+		if (!CoreConfig.getUseSegmentIndexForSpatialMatching())
+			return getSpatialMatchesForTripUsingAllSegments(avlReport, trip,
+					matchingType);
+		
+		return getSpatialMatchesForTripUsingIndex(avlReport, trip, 
+				matchingType);
+	}
+	
+	/**
+	 * Determines the spatial matches for the entire TripPattern of the trip
+	 * either using the segment index of the trip pattern or by looking at
+	 * every segment, regardless of how the segment index is configured. For
+	 * verifying that both give the same matches, such as by the integration
+	 * tests that replay AVL data.
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 * @param useSegmentIndex
+	 *            true if the segment index should be used
+	 * @return List of potential SpatialMatches. Can be empty but will not be
+	 *         null.
+	 */
+	public static List<SpatialMatch> getSpatialMatchesForTrip(
+			AvlReport avlReport, Trip trip, MatchingType matchingType,
+			boolean useSegmentIndex) {
+		SpatialMatcher spatialMatcher = new SpatialMatcher();
+		return useSegmentIndex ?
+				spatialMatcher.getSpatialMatchesForTripUsingIndex(avlReport, 
+						trip, matchingType)
+				: spatialMatcher.getSpatialMatchesForTripUsingAllSegments(
+						avlReport, trip, matchingType);
+	}
+	
+	/**
+	 * Determines spatial matches for the trip using the segment index of the
+	 * trip pattern. Only the segments that might be within the max allowable
+	 * distance, plus the layovers, are looked at. The results are the same as
+	 * for getSpatialMatchesForTripUsingAllSegments() because a segment that is
+	 * further away than the max allowable distance can never be a potential
+	 * match. When going through all the segments, such a segment ends any
+	 * potential match being tracked and resets the distance used for finding
+	 * local minimums. So for each run of segments that is skipped that is what
+	 * is done by skippedSegments().
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 * @return List of potential SpatialMatches. Can be empty but will not be
+	 *         null.
+	 */
+	private List<SpatialMatch> getSpatialMatchesForTripUsingIndex(
+			AvlReport avlReport, Trip trip, MatchingType matchingType) {
+		// Determine the max allowable distance for all of the stop paths
+		TripPatternSegmentIndex tripPatternSegmentIndex = 
+				trip.getTripPattern().getSegmentIndex();
+		Route route = Core.getInstance().getDbConfig()
+				.getRouteById(trip.getRouteId());
+		if (route == null)
+			return getSpatialMatchesForTripUsingAllSegments(avlReport, trip,
+					matchingType);
+		double maxDistance = 
+				getMaxAllowableDistanceFromSegment(route, matchingType);
+		double maxStopPathMaxDistance = 
+				tripPatternSegmentIndex.getMaxStopPathMaxDistance();
+		if (!Double.isNaN(maxStopPathMaxDistance))
+			maxDistance = Math.max(maxDistance, maxStopPathMaxDistance);
+		
+		// The matches to be returned
+		List<SpatialMatch> spatialMatches = new ArrayList<SpatialMatch>();
+		
+		// Go through the candidate segments in order
+		Block block = trip.getBlock();
+		int tripIndex = block.getTripIndex(trip);
+		int[] candidateSegments = tripPatternSegmentIndex
+				.getCandidateSegments(avlReport.getLocation(), maxDistance);
+		int nextSegment = 0;
+		for (int segment : candidateSegments) {
+			if (segment != nextSegment)
+				skippedSegments(spatialMatches);
+			
+			Indices indices = new Indices(block, tripIndex,
+					tripPatternSegmentIndex.getStopPathIndex(segment),
+					tripPatternSegmentIndex.getSegmentIndex(segment));
+			processPossiblePotentialMatch(avlReport, indices, spatialMatches,
+					matchingType);
+			nextSegment = segment + 1;
+		}
+
+		// Need to handle boundary condition. Done looking ahead but
+		// the end match might be a potential one even if was continuing
+		// to improve the match. Therefore if there was a potential
+		// match then should store it.
+		if (previousPotentialSpatialMatch != null) {
+			spatialMatches.add(previousPotentialSpatialMatch);
+		}
+
+		// Return the list of local matches
+		return spatialMatches;
+	}
+	
+	/**
+	 * Updates the state for when segments that are further away than the max
+	 * allowable distance were skipped. This is what processing the first of
+	 * those segments would do: a potential match that was being tracked has
+	 * now been passed so it is added to the list, and the next segment is
+	 * always considered to be getting closer.
+	 * 
+	 * @param spatialMatches
+	 */
+	private void skippedSegments(List<SpatialMatch> spatialMatches) {
+		if (previousPotentialSpatialMatch != null) {
+			spatialMatches.add(previousPotentialSpatialMatch);
+			previousPotentialSpatialMatch = null;
+		}
+		previousDistanceToSegment = Double.MAX_VALUE;
+	}
+	
+	/**
+	 * Goes through entire TripPattern for specified Trip, segment by segment,
+	 * and determines spatial matches. 
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 * @return List of potential SpatialMatches. Can be empty but will not be
+	 *         null.
+	 */
+	private List<SpatialMatch> getSpatialMatchesForTripUsingAllSegments(
+			AvlReport avlReport, Trip trip, MatchingType matchingType) {
 		Block block = trip.getBlock();
 		
 		// The matches to be returned
@@ -42,6 +42,14 @@ public class TemporalDifference implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private TemporalDifference() {
+	}
+
 	/**
 	 * @param temporalDifferenceMsec
 	 *            Positive means vehicle is ahead of where expected, negative
@@ -16,9 +16,6 @@
  */
 package org.transitclock.core;
 
-import java.util.HashMap;
-import java.util.Iterator;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
@@ -32,6 +29,7 @@ import org.transitclock.logging.Markers;
 import org.transitclock.modules.Module;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.TimerWheel;
 
 /**
  * For handling when a vehicle doesn't report its position for too long. Makes
@@ -41,17 +39,32 @@ import org.transitclock.utils.Time;
  * are not in service are likely to get turned off and not report their position
  * for a long period of time. Plus since they are already not predictable there
  * is no need to be make them unpredictable when there is a timeout.
+ * <p>
+ * Each AVL report sets the deadline of its vehicle in a TimerWheel, without
+ * locking, to the earliest time that the vehicle could time out. The module
+ * then only looks at the vehicles whose deadline has passed. If such a
+ * vehicle turns out not to have timed out yet, such as when it is at a wait
+ * stop and it isn't yet past the scheduled departure time, then the deadline
+ * is set to when the vehicle should be checked next.
  * 
  * @author SkiBu Smith
  * 
  */
 public class TimeoutHandlerModule extends Module {
 
-	// For keeping track of the last AVL report for each vehicle. Keyed on 
-	// vehicle ID. Synchronize map modifications since elsewhere the elements 
-	// can be removed from the map.
-	private HashMap<String, AvlReport> avlReportsMap = 
-			new HashMap<String, AvlReport>();
+	// Deadline for each vehicle, keyed on vehicle ID. Uses slots of a second
+	// so that a revolution of the wheel, about 17 minutes, is longer than
+	// the usual allowable time without an AVL report.
+	private final TimerWheel<String> timeouts =
+			new TimerWheel<String>(Time.MS_PER_SEC, 1024);
+
+	private final TimerWheel.Handler<String> timeoutHandler =
+			new TimerWheel.Handler<String>() {
+				@Override
+				public long expired(String vehicleId, long deadline, long now) {
+					return handlePossibleTimeout(vehicleId, now);
+				}
+			};
 
 	/********************* Parameters *********************************/
 
@@ -60,11 +73,11 @@ public class TimeoutHandlerModule extends Module {
 					"transitclock.timeout.pollingRateSecs", 
 					30,
 					"Specifies in seconds how frequently the TimeoutHandler "
-					+ "should actually look for timeouts. Don't want to do "
-					+ "this too frequently because because "
-					+ "TimeoutHandler.handlePossibleTimeout() is called with "
-					+ "every new AVL report and it has to look at every "
-					+ "vehicle to see if has been timed out.");
+					+ "should actually look for timeouts. Only vehicles whose "
+					+ "timeout deadline has passed are looked at. Also how "
+					+ "frequently schedule based vehicles, and vehicles at a "
+					+ "wait stop without a scheduled departure time, are "
+					+ "checked.");
 
 	private static IntegerConfigValue allowableNoAvlSecs =
 			new IntegerConfigValue(
@@ -102,18 +115,38 @@ public class TimeoutHandlerModule extends Module {
 	}
 
 	/**
-	 * Stores the specified AVL report into map so know the last time received
-	 * AVL data for the vehicle.
+	 * Sets the timeout deadline of the vehicle based on the AVL report. Called
+	 * for every AVL report so does not lock. The vehicle state isn't known
+	 * yet so uses the earliest possible timeout, which for regular vehicles
+	 * and vehicles at a wait stop is allowableNoAvlSecs after the report. The
+	 * rule for schedule based vehicles doesn't depend on the AVL time so they
+	 * are checked every polling cycle, as before.
 	 * 
 	 * @param avlReport
 	 *            AVL report to store
 	 */
 	public void storeAvlReport(AvlReport avlReport) {
-		// Synchronize map modifications since elsewhere the elements can be removed
-		// from the map.
-		synchronized (avlReportsMap) {
-			avlReportsMap.put(avlReport.getVehicleId(), avlReport);
-		}
+		long timeoutMsec = avlReport.isForSchedBasedPreds() ?
+				pollingRateSecs.getValue() * Time.MS_PER_SEC :
+				allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
+		timeouts.schedule(avlReport.getVehicleId(),
+				avlReport.getTime() + timeoutMsec);
+	}
+	
+	/**
+	 * @return number of vehicles that have a timeout deadline set
+	 */
+	public int getNumArmedTimers() {
+		return timeouts.getNumArmed();
+	}
+	
+	/**
+	 * @return for the last polling cycle that processed any timeouts, the
+	 *         largest time in msec between a vehicle's deadline and when it
+	 *         was handled
+	 */
+	public long getMaxExpiryLagMsec() {
+		return timeouts.getMaxExpiryLagMsec();
 	}
 	
 	/**
@@ -123,9 +156,9 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return when to check the vehicle again, or TimerWheel.NO_DEADLINE
 	 */
-	private void handlePredictablePossibleTimeout(VehicleState vehicleState, long now, Iterator<AvlReport> mapIterator) {
+	private long handlePredictablePossibleTimeout(VehicleState vehicleState, long now) {
 		// If haven't reported in too long...
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now > vehicleState.getAvlReport().getTime() + maxNoAvl) {
@@ -145,22 +178,20 @@ public class TimeoutHandlerModule extends Module {
 			logger.info("For vehicleId={} {}", 
 					vehicleState.getVehicleId(), eventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();
-			
+			// No need to look at vehicle again until it reports
+			return TimerWheel.NO_DEADLINE;
 		}
+		return vehicleState.getAvlReport().getTime() + maxNoAvl;
 	}
 	
 	/**
-	 * Don't need to worry about vehicles that are not predictable. But might as
-	 * well remove vehicle from map so don't examine vehicle every
-	 * TimeoutHandleModule polling cycle
+	 * Don't need to worry about vehicles that are not predictable. So don't
+	 * look at the vehicle again until it reports.
 	 * 
-	 * @param mapIterator
-	 *            So can remove AVL report from map
+	 * @return TimerWheel.NO_DEADLINE
 	 */
-	private void handleNotPredictablePossibleTimeout(Iterator<AvlReport> mapIterator) {
-		mapIterator.remove();
+	private long handleNotPredictablePossibleTimeout() {
+		return TimerWheel.NO_DEADLINE;
 	}
 
 	/**
@@ -172,10 +203,10 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return when to check the vehicle again, or TimerWheel.NO_DEADLINE
 	 */
-	private void handleSchedBasedPredsPossibleTimeout(VehicleState vehicleState,
-					long now, Iterator<AvlReport> mapIterator) {
+	private long handleSchedBasedPredsPossibleTimeout(VehicleState vehicleState,
+					long now) {
 		// If should timeout the schedule based vehicle...
 		String shouldTimeoutEventDescription =
 				SchedBasedPredsModule.shouldTimeoutVehicle(vehicleState, now);				
@@ -189,9 +220,10 @@ public class TimeoutHandlerModule extends Module {
 					+ "event. {}", 
 					vehicleState.getVehicleId(), shouldTimeoutEventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();			
+			// No need to look at vehicle again until it reports
+			return TimerWheel.NO_DEADLINE;
 		}
+		return now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
 	}
 	
 	/**
@@ -201,23 +233,22 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return when to check the vehicle again, or TimerWheel.NO_DEADLINE
 	 */
-	private void handleWaitStopPossibleTimeout(VehicleState vehicleState, long now,
-			Iterator<AvlReport> mapIterator) {
+	private long handleWaitStopPossibleTimeout(VehicleState vehicleState, long now) {
 
 	  // we can't easily determine wait stop time for frequency based trips  
 	  // so don't timeout based on stop info
 	  if (vehicleState.getBlock().isNoSchedule()) {
       logger.debug("not timing out frequency based assignment {}", vehicleState);
-      return;
+      return now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
     }
 	  
 	  // If hasn't been too long between AVL reports then everything is fine
 		// and simply return
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now < vehicleState.getAvlReport().getTime() + maxNoAvl)
-			return;
+			return vehicleState.getAvlReport().getTime() + maxNoAvl;
 
 		// It has been a long time since an AVL report so see if also past the 
 		// scheduled time for the wait stop
@@ -261,57 +292,60 @@ public class TimeoutHandlerModule extends Module {
 				logger.info("For vehicleId={} {}", 
 						vehicleState.getVehicleId(), eventDescription);
 				
-				// Remove vehicle from map for next time looking for timeouts
-				mapIterator.remove();
+				// No need to look at vehicle again until it reports
+				return TimerWheel.NO_DEADLINE;
 			}
+			return scheduledDepartureTime + maxNoAvlAfterSchedDepartSecs;
 		}
+		return now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
 	}
 
 	/**
-	 * Goes through all vehicles and finds ones that have timed out
+	 * Handles a vehicle whose deadline has passed.
+	 * 
+	 * @param vehicleId
+	 * @param now
+	 * @return when to check the vehicle again, or TimerWheel.NO_DEADLINE
+	 */
+	private long handlePossibleTimeout(String vehicleId, long now) {
+		// Get state of vehicle and handle based on it
+		VehicleState vehicleState = VehicleStateManager.getInstance()
+				.getVehicleState(vehicleId);
+
+		// Need to synchronize on vehicleState since it might be getting
+		// modified via a separate main AVL processing executor thread.
+		synchronized (vehicleState) {
+			if (!vehicleState.isPredictable()) {
+				// Vehicle is not predictable
+				return handleNotPredictablePossibleTimeout();
+			} else if (vehicleState.isForSchedBasedPreds()) {
+				// Handle schedule based predictions vehicle
+				return handleSchedBasedPredsPossibleTimeout(vehicleState, now);
+			} else if (vehicleState.isWaitStop()) {
+				// Handle where vehicle is at a wait stop
+				return handleWaitStopPossibleTimeout(vehicleState, now);
+			} else {
+				// Not a special case. Simply determine if vehicle 
+				// timed out
+				return handlePredictablePossibleTimeout(vehicleState, now);
+			}
+		}
+	}
+
+	/**
+	 * Finds the vehicles whose deadline has passed and handles them. Only
+	 * called by the module thread.
 	 */
 	public void handlePossibleTimeouts() {
 		// Determine what now is. Don't use System.currentTimeMillis() since
 		// that doesn't work for playback.
 		long now = Core.getInstance().getSystemTime();
 
-		// Sync access to avlReportsMap since it can be simultaneously 
-		// modified elsewhere
-		synchronized (avlReportsMap) {				
-			// Using an Iterator instead of for(AvlReport a : map.values()) 
-			// because removing elements while iterating. Way to do this without
-			// getting concurrent access exception is to use an Iterator.
-			Iterator<AvlReport> mapIterator = avlReportsMap.values().iterator();
-			while (mapIterator.hasNext()) {
-				AvlReport avlReport = mapIterator.next();
-	
-				// Get state of vehicle and handle based on it
-				VehicleState vehicleState = VehicleStateManager.getInstance()
-						.getVehicleState(avlReport.getVehicleId());
-	
-				// Need to synchronize on vehicleState since it might be getting
-				// modified via a separate main AVL processing executor thread.
-				synchronized (vehicleState) {
-					if (!vehicleState.isPredictable()) {
-						// Vehicle is not predictable
-						handleNotPredictablePossibleTimeout(mapIterator);
-					} else if (vehicleState.isForSchedBasedPreds()) {
-						// Handle schedule based predictions vehicle
-						handleSchedBasedPredsPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else if (vehicleState.isWaitStop()) {
-						// Handle where vehicle is at a wait stop
-						handleWaitStopPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else {
-						// Not a special case. Simply determine if vehicle 
-						// timed out
-						handlePredictablePossibleTimeout(vehicleState, now,
-								mapIterator);
-					}
-				}
-			}
-		}
+		int numExpired = timeouts.advance(now, timeoutHandler);
+		logger.debug("TimeoutHandlerModule handled {} vehicles whose deadline "
+				+ "passed. {} vehicles have a deadline. Max expiry lag {} "
+				+ "msec.", numExpired, timeouts.getNumArmed(),
+				timeouts.getMaxExpiryLagMsec());
 	}
 
 	/*
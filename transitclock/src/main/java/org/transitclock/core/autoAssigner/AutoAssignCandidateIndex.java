@@ -0,0 +1,471 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.core.BlocksInfo;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.db.structs.VectorWithHeading;
+import org.transitclock.utils.Geo;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * An agency wide index used by the AutoBlockAssigner so that it only needs
+ * to look at the blocks that have a trip pattern near the vehicle instead of
+ * at every active block. Shared by all vehicles.
+ * <p>
+ * The index is for a time bucket. When a bucket starts the index is rebuilt
+ * from the blocks that are active or that become active during the bucket.
+ * It contains which blocks use each trip pattern and a grid that, for each
+ * cell, lists the trip patterns with a segment within the auto assigning
+ * max distance of the cell. A lookup is therefore just a look at a single
+ * cell. The candidates are a superset of the trip patterns that can
+ * spatially match, so the AutoBlockAssigner still does the actual spatial
+ * matching, but only for the candidates.
+ */
+public class AutoAssignCandidateIndex {
+
+	private static AutoAssignCandidateIndex singleton =
+			new AutoAssignCandidateIndex();
+
+	// The index for the current time bucket. Replaced when a new bucket
+	// starts.
+	private volatile Snapshot snapshot = null;
+
+	/****************************** Config params **********************/
+
+	private static BooleanConfigValue candidateIndexEnabled =
+			new BooleanConfigValue(
+					"transitclock.autoBlockAssigner.candidateIndexEnabled",
+					true,
+					"When true the auto assigner uses a spatial index of "
+					+ "the trip patterns of the active blocks so that it "
+					+ "only has to look at blocks with a trip pattern near "
+					+ "the vehicle. When false every active block is "
+					+ "examined.");
+
+	private static IntegerConfigValue bucketSecs =
+			new IntegerConfigValue(
+					"transitclock.autoBlockAssigner.candidateIndexBucketSecs",
+					60,
+					"How long in seconds the auto assigner candidate index is "
+					+ "used before it is rebuilt for the blocks that are "
+					+ "then active.");
+
+	private static IntegerConfigValue cellSizeMeters =
+			new IntegerConfigValue(
+					"transitclock.autoBlockAssigner.candidateIndexCellSizeMeters",
+					500,
+					"Size of the grid cells of the auto assigner candidate "
+					+ "index. Smaller cells mean fewer candidates per lookup "
+					+ "but more memory.");
+
+	// If a segment, expanded by the max distance, would cover more cells
+	// than this then its trip pattern is simply always a candidate. Keeps
+	// the grid from blowing up for stop paths with a huge max distance.
+	private static final int MAX_CELLS_PER_SEGMENT = 10000;
+
+	// The distance is expanded by this factor plus MARGIN so that a trip
+	// pattern is never wrongly excluded due to the approximations in
+	// converting distances to degrees.
+	private static final double DISTANCE_FACTOR = 1.1;
+	private static final double MARGIN = 10.0;
+
+	private static final double METERS_PER_DEGREE_LAT =
+			Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+
+	/*********************** Logging **********************************/
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AutoAssignCandidateIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Singleton class so constructor is private
+	 */
+	private AutoAssignCandidateIndex() {
+	}
+
+	/**
+	 * @return the singleton AutoAssignCandidateIndex
+	 */
+	public static AutoAssignCandidateIndex getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return true if the auto assigner should use the index
+	 */
+	public static boolean enabled() {
+		return candidateIndexEnabled.getValue();
+	}
+
+	/**
+	 * The index for a single time bucket. Immutable once created.
+	 */
+	static class Snapshot {
+		private final long bucket;
+
+		// The blocks that might be active during the bucket, in the order
+		// returned by BlocksInfo
+		private final List<Block> blocks;
+
+		// For each trip pattern, the indexes into blocks of the blocks that
+		// use it
+		private final String[] tripPatternIds;
+		private final int[][] blocksByTripPattern;
+
+		// For each grid cell, the indexes into tripPatternIds of the trip
+		// patterns that might be near. Cells without any are not in the map.
+		private final Map<Long, int[]> tripPatternsByCell;
+
+		// Trip patterns that are a candidate for every location
+		private final int[] alwaysCandidates;
+
+		private final double cellLatDegrees;
+		private final double cellLonDegrees;
+
+		private Snapshot(long bucket, List<Block> blocks,
+				String[] tripPatternIds, int[][] blocksByTripPattern,
+				Map<Long, int[]> tripPatternsByCell, int[] alwaysCandidates,
+				double cellLatDegrees, double cellLonDegrees) {
+			this.bucket = bucket;
+			this.blocks = blocks;
+			this.tripPatternIds = tripPatternIds;
+			this.blocksByTripPattern = blocksByTripPattern;
+			this.tripPatternsByCell = tripPatternsByCell;
+			this.alwaysCandidates = alwaysCandidates;
+			this.cellLatDegrees = cellLatDegrees;
+			this.cellLonDegrees = cellLonDegrees;
+		}
+
+		private int row(double lat) {
+			return (int) Math.floor(lat / cellLatDegrees);
+		}
+
+		private int col(double lon) {
+			return (int) Math.floor(lon / cellLonDegrees);
+		}
+
+		/**
+		 * @return indexes into tripPatternIds of the trip patterns that might
+		 *         be near the location
+		 */
+		private int[] getCandidateTripPatterns(Location loc) {
+			int[] forCell = tripPatternsByCell.get(
+					cellKey(row(loc.getLat()), col(loc.getLon())));
+			if (forCell == null)
+				return alwaysCandidates;
+			if (alwaysCandidates.length == 0)
+				return forCell;
+			int[] candidates = Arrays.copyOf(forCell,
+					forCell.length + alwaysCandidates.length);
+			System.arraycopy(alwaysCandidates, 0, candidates, forCell.length,
+					alwaysCandidates.length);
+			return candidates;
+		}
+	}
+
+	private static long cellKey(int row, int col) {
+		return ((long) row << 32) | (col & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the index for the current time bucket, creating it if a new
+	 * bucket has started.
+	 */
+	private Snapshot getSnapshot() {
+		long bucketMsec = Math.max(bucketSecs.getValue(), 1) * 1000L;
+		long bucket = Core.getInstance().getSystemTime() / bucketMsec;
+		Snapshot current = snapshot;
+		if (current != null && current.bucket == bucket)
+			return current;
+
+		synchronized (this) {
+			// Another thread might have already created it
+			current = snapshot;
+			if (current != null && current.bucket == bucket)
+				return current;
+
+			current = createSnapshot(bucket, bucketSecs.getValue());
+			snapshot = current;
+			return current;
+		}
+	}
+
+	/**
+	 * Creates the index for the blocks that are active, or become active,
+	 * during the time bucket.
+	 */
+	private static Snapshot createSnapshot(long bucket, int bucketSecs) {
+		// Include blocks that become active during the bucket. Whether the
+		// block is really active is checked when the index is used.
+		List<Block> blocks =
+				BlocksInfo.getCurrentlyActiveBlocks(null, null, bucketSecs, -1);
+
+		return createSnapshot(bucket, blocks);
+	}
+
+	/**
+	 * Creates the index for the blocks.
+	 */
+	static Snapshot createSnapshot(long bucket, List<Block> blocks) {
+		IntervalTimer timer = new IntervalTimer();
+
+		// Determine the trip patterns and which blocks use each one
+		Map<String, TripPattern> tripPatternsById =
+				new LinkedHashMap<String, TripPattern>();
+		Map<String, List<Integer>> blocksByTripPatternId =
+				new HashMap<String, List<Integer>>();
+		for (int blockIndex = 0; blockIndex < blocks.size(); ++blockIndex) {
+			for (Trip trip : blocks.get(blockIndex).getTrips()) {
+				TripPattern tripPattern = trip.getTripPattern();
+				List<Integer> blockIndexes =
+						blocksByTripPatternId.get(tripPattern.getId());
+				if (blockIndexes == null) {
+					blockIndexes = new ArrayList<Integer>();
+					blocksByTripPatternId.put(tripPattern.getId(),
+							blockIndexes);
+					tripPatternsById.put(tripPattern.getId(), tripPattern);
+				}
+				// Trips of a block are in order so only need to check the
+				// last one to avoid duplicates
+				if (blockIndexes.isEmpty() || blockIndexes
+						.get(blockIndexes.size() - 1) != blockIndex)
+					blockIndexes.add(blockIndex);
+			}
+		}
+
+		List<TripPattern> tripPatterns =
+				new ArrayList<TripPattern>(tripPatternsById.values());
+		String[] tripPatternIds = new String[tripPatterns.size()];
+		int[][] blocksByTripPattern = new int[tripPatterns.size()][];
+		for (int i = 0; i < tripPatterns.size(); ++i) {
+			tripPatternIds[i] = tripPatterns.get(i).getId();
+			List<Integer> blockIndexes =
+					blocksByTripPatternId.get(tripPatternIds[i]);
+			blocksByTripPattern[i] = new int[blockIndexes.size()];
+			for (int j = 0; j < blockIndexes.size(); ++j)
+				blocksByTripPattern[i][j] = blockIndexes.get(j);
+		}
+
+		// Cells are in degrees. Longitude cells are sized for the latitude
+		// of the first trip pattern. Any consistent size works, it just
+		// affects how many cells there are.
+		double cellLatDegrees =
+				Math.max(cellSizeMeters.getValue(), 1) / METERS_PER_DEGREE_LAT;
+		double referenceLat = 0.0;
+		if (!tripPatterns.isEmpty()
+				&& !tripPatterns.get(0).getStopPaths().isEmpty())
+			referenceLat = tripPatterns.get(0).getStopPath(0)
+					.getStopLocation().getLat();
+		double cellLonDegrees = cellLatDegrees
+				/ Math.cos(Math.toRadians(Math.min(Math.abs(referenceLat), 80.0)));
+
+		// Add the trip patterns to the cells near their segments
+		Map<Long, CellTripPatterns> cells = new HashMap<Long, CellTripPatterns>();
+		List<Integer> alwaysCandidates = new ArrayList<Integer>();
+		double autoAssigningMaxDistance =
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
+		for (int i = 0; i < tripPatterns.size(); ++i) {
+			TripPattern tripPattern = tripPatterns.get(i);
+
+			// SpatialMatcher uses the max distance of the stop path instead
+			// of the auto assigning one if it is set
+			double maxDistance = autoAssigningMaxDistance;
+			double stopPathMaxDistance =
+					tripPattern.getSegmentIndex().getMaxStopPathMaxDistance();
+			if (!Double.isNaN(stopPathMaxDistance))
+				maxDistance = Math.max(maxDistance, stopPathMaxDistance);
+			double distance = maxDistance * DISTANCE_FACTOR + MARGIN;
+
+			if (!addToCells(i, tripPattern, distance, cellLatDegrees,
+					cellLonDegrees, cells))
+				alwaysCandidates.add(i);
+		}
+
+		Map<Long, int[]> tripPatternsByCell =
+				new HashMap<Long, int[]>(cells.size() * 2);
+		for (Map.Entry<Long, CellTripPatterns> entry : cells.entrySet())
+			tripPatternsByCell.put(entry.getKey(),
+					entry.getValue().toArray());
+		int[] always = new int[alwaysCandidates.size()];
+		for (int i = 0; i < always.length; ++i)
+			always[i] = alwaysCandidates.get(i);
+
+		logger.info("Created auto assigner candidate index with {} blocks, "
+				+ "{} trip patterns, and {} grid cells, with {} trip "
+				+ "patterns always a candidate. Took {}msec",
+				blocks.size(), tripPatterns.size(), tripPatternsByCell.size(),
+				always.length, timer);
+
+		return new Snapshot(bucket, blocks, tripPatternIds,
+				blocksByTripPattern, tripPatternsByCell, always,
+				cellLatDegrees, cellLonDegrees);
+	}
+
+	/**
+	 * The trip patterns for a grid cell while the index is being created.
+	 * The trip patterns are added in order so duplicates are consecutive.
+	 */
+	private static class CellTripPatterns {
+		private int[] tripPatterns = new int[4];
+		private int size = 0;
+
+		private void add(int tripPattern) {
+			if (size > 0 && tripPatterns[size - 1] == tripPattern)
+				return;
+			if (size == tripPatterns.length)
+				tripPatterns = Arrays.copyOf(tripPatterns, size * 2);
+			tripPatterns[size++] = tripPattern;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(tripPatterns, size);
+		}
+	}
+
+	/**
+	 * Adds the trip pattern to every cell that is within distance of one of
+	 * its segments.
+	 *
+	 * @return false if a segment would cover too many cells, in which case
+	 *         the trip pattern should always be a candidate
+	 */
+	private static boolean addToCells(int tripPatternIndex,
+			TripPattern tripPattern, double distance, double cellLatDegrees,
+			double cellLonDegrees, Map<Long, CellTripPatterns> cells) {
+		double dLat = distance / METERS_PER_DEGREE_LAT;
+		for (StopPath stopPath : tripPattern.getStopPaths()) {
+			for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+				double minLat = Math.min(segment.getL1().getLat(),
+						segment.getL2().getLat()) - dLat;
+				double maxLat = Math.max(segment.getL1().getLat(),
+						segment.getL2().getLat()) + dLat;
+				double furthestLat = Math.min(
+						Math.max(Math.abs(minLat), Math.abs(maxLat)), 89.0);
+				double dLon = dLat / Math.cos(Math.toRadians(furthestLat));
+				double minLon = Math.min(segment.getL1().getLon(),
+						segment.getL2().getLon()) - dLon;
+				double maxLon = Math.max(segment.getL1().getLon(),
+						segment.getL2().getLon()) + dLon;
+
+				int minRow = (int) Math.floor(minLat / cellLatDegrees);
+				int maxRow = (int) Math.floor(maxLat / cellLatDegrees);
+				int minCol = (int) Math.floor(minLon / cellLonDegrees);
+				int maxCol = (int) Math.floor(maxLon / cellLonDegrees);
+				if ((long) (maxRow - minRow + 1) * (maxCol - minCol + 1)
+						> MAX_CELLS_PER_SEGMENT)
+					return false;
+
+				for (int row = minRow; row <= maxRow; ++row) {
+					for (int col = minCol; col <= maxCol; ++col) {
+						Long key = cellKey(row, col);
+						CellTripPatterns cell = cells.get(key);
+						if (cell == null) {
+							cell = new CellTripPatterns();
+							cells.put(key, cell);
+						}
+						cell.add(tripPatternIndex);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the IDs of the trip patterns of the active blocks that might be
+	 * close enough to the location to spatially match when auto assigning.
+	 * Trip patterns that are not returned cannot match.
+	 *
+	 * @param loc
+	 * @return set of trip pattern IDs. Can be empty but not null.
+	 */
+	public Set<String> getCandidateTripPatternIds(Location loc) {
+		return getCandidateTripPatternIds(getSnapshot(), loc);
+	}
+
+	/**
+	 * Returns the IDs of the trip patterns of the index that might be close
+	 * enough to the location to spatially match when auto assigning.
+	 */
+	static Set<String> getCandidateTripPatternIds(Snapshot current,
+			Location loc) {
+		int[] candidates = current.getCandidateTripPatterns(loc);
+		Set<String> tripPatternIds = new HashSet<String>(candidates.length * 2);
+		for (int tripPattern : candidates)
+			tripPatternIds.add(current.tripPatternIds[tripPattern]);
+		return tripPatternIds;
+	}
+
+	/**
+	 * Returns the currently active blocks that have a trip pattern that might
+	 * be close enough to the location to spatially match when auto
+	 * assigning. Blocks that are not returned cannot match.
+	 *
+	 * @param loc
+	 * @return list of blocks. Can be empty but not null.
+	 */
+	public List<Block> getCandidateBlocks(Location loc) {
+		Snapshot current = getSnapshot();
+		int[] candidates = current.getCandidateTripPatterns(loc);
+		if (candidates.length == 0)
+			return Collections.emptyList();
+
+		// Determine the blocks, in order and without duplicates
+		boolean[] isCandidate = new boolean[current.blocks.size()];
+		for (int tripPattern : candidates) {
+			for (int block : current.blocksByTripPattern[tripPattern])
+				isCandidate[block] = true;
+		}
+
+		// The index includes blocks that only become active later in the
+		// bucket so only return the ones that are really active now
+		long now = Core.getInstance().getSystemTime();
+		List<Block> blocks = new ArrayList<Block>();
+		for (int i = 0; i < isCandidate.length; ++i) {
+			if (!isCandidate[i])
+				continue;
+			Block block = current.blocks.get(i);
+			if (block.isActive(now, 0, -1))
+				blocks.add(block);
+		}
+		return blocks;
+	}
+}
@@ -20,8 +20,10 @@ package org.transitclock.core.autoAssigner;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +45,7 @@ import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.db.structs.AvlReport;
 import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Trip;
+import org.transitclock.monitoring.CloudwatchService;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
@@ -61,6 +64,11 @@ import org.transitclock.utils.Time;
  * match a vehicle since have to look at every stop path for each available trip
  * pattern. For an agency with ~250 available blocks this can take about 1/2 a
  * second.
+ * <p>
+ * Therefore the shared AutoAssignCandidateIndex is used to only look at the
+ * blocks and trips whose trip pattern is near the AVL report. This way the
+ * work is proportional to the number of trip patterns near the vehicle
+ * instead of to the number of active blocks.
  *
  * @author SkiBu Smith
  *
@@ -79,6 +87,16 @@ public class AutoBlockAssigner {
 	private Map<String, SpatialMatch> spatialMatchCache = 
 			new HashMap<String, SpatialMatch>();
 	
+	// The IDs of the trip patterns near each AVL report that is matched, as
+	// determined by the AutoAssignCandidateIndex. Trips for other trip
+	// patterns cannot spatially match so they are not investigated.
+	private Map<AvlReport, Set<String>> candidateTripPatternIdsCache =
+			new IdentityHashMap<AvlReport, Set<String>>();
+	
+	// Number of trips that were spatially matched to an AVL report. For
+	// seeing how much work auto assigning a vehicle takes.
+	private int spatialEvaluations = 0;
+	
 	/****************************** Config params **********************/
 	
 	private static BooleanConfigValue autoAssignerEnabled =
@@ -213,15 +231,16 @@ public class AutoBlockAssigner {
 	}
 
 	/**
-	 * Determines which blocks are currently active and are not assigned to a
-	 * vehicle, meaning that they are available for assignment.
+	 * Determines which of the active blocks are not assigned to a vehicle,
+	 * meaning that they are available for assignment.
 	 * 
+	 * @param activeBlocks
+	 *            The currently active blocks to examine
 	 * @return List of blocks that are available for assignment. Can be empty
 	 *         but not null
 	 */
-	private List<Block> unassignedActiveBlocks() {
+	private List<Block> unassignedActiveBlocks(List<Block> activeBlocks) {
 		List<Block> currentlyUnassignedBlocks = new ArrayList<Block>();
-		List<Block> activeBlocks = BlocksInfo.getCurrentlyActiveBlocks();
 		for (Block block : activeBlocks) {
 			if (isBlockUnassigned(block.getId())) {
 				// No vehicles assigned to this active block so should see
@@ -233,6 +252,64 @@ public class AutoBlockAssigner {
 		return currentlyUnassignedBlocks;
 	}
 	
+	/**
+	 * Returns the IDs of the trip patterns that are near enough to the AVL
+	 * report to possibly match. Cached so that the AutoAssignCandidateIndex
+	 * only needs to be looked at once per AVL report.
+	 * 
+	 * @param avlReport
+	 * @return Set of trip pattern IDs, or null if the index is not enabled
+	 *         and therefore all trip patterns need to be investigated
+	 */
+	private Set<String> getCandidateTripPatternIds(AvlReport avlReport) {
+		if (!AutoAssignCandidateIndex.enabled())
+			return null;
+		
+		Set<String> tripPatternIds = 
+				candidateTripPatternIdsCache.get(avlReport);
+		if (tripPatternIds == null) {
+			tripPatternIds = AutoAssignCandidateIndex.getInstance()
+					.getCandidateTripPatternIds(avlReport.getLocation());
+			candidateTripPatternIdsCache.put(avlReport, tripPatternIds);
+		}
+		return tripPatternIds;
+	}
+	
+	/**
+	 * Determines the spatial matches, not including layovers, of the AVL
+	 * report to the trips. Trips whose trip pattern is not near the AVL
+	 * report are not investigated since they cannot match.
+	 * 
+	 * @param avlReport
+	 *            The AVL report to be matched
+	 * @param block
+	 *            The block that the trips are for
+	 * @param trips
+	 *            The trips to investigate
+	 * @return list of spatial matches for the avlReport
+	 */
+	private List<SpatialMatch> getSpatialMatchesForAutoAssigning(
+			AvlReport avlReport, Block block, List<Trip> trips) {
+		Set<String> candidateTripPatternIds =
+				getCandidateTripPatternIds(avlReport);
+		List<Trip> tripsNearAvlReport = trips;
+		if (candidateTripPatternIds != null) {
+			tripsNearAvlReport = new ArrayList<Trip>(trips.size());
+			for (Trip trip : trips) {
+				if (candidateTripPatternIds.contains(
+						trip.getTripPattern().getId()))
+					tripsNearAvlReport.add(trip);
+			}
+		}
+		
+		if (tripsNearAvlReport.isEmpty())
+			return new ArrayList<SpatialMatch>();
+		
+		spatialEvaluations += tripsNearAvlReport.size();
+		return SpatialMatcher.getSpatialMatchesForAutoAssigning(avlReport,
+				block, tripsNearAvlReport);
+	}
+	
 	/**
 	 * Determines the best match by looking at both the current AVL report and
 	 * the previous one. Only for block assignments that do not have a schedule.
@@ -252,18 +329,18 @@ public class AutoBlockAssigner {
 		// is only for use with no schedule assignments.
 		AvlReport avlReport = getAvlReport();
 		List<Trip> potentialTrips = block.getTripsCurrentlyActive(avlReport);
-		List<SpatialMatch> spatialMatches = SpatialMatcher
-				.getSpatialMatchesForAutoAssigning(getAvlReport(),
-						block, potentialTrips);
+		List<SpatialMatch> spatialMatches = 
+				getSpatialMatchesForAutoAssigning(avlReport, block,
+						potentialTrips);
 		if (spatialMatches.isEmpty())
 			return null;
 
 		// Determine all possible spatial matches for the previous AVL report so
 		// that can make sure that it too matches the assignment.
 		AvlReport previousAvlReport = getPreviousAvlReport();
-		List<SpatialMatch> prevSpatialMatches = SpatialMatcher
-				.getSpatialMatchesForAutoAssigning(previousAvlReport,
-						block, potentialTrips);
+		List<SpatialMatch> prevSpatialMatches = 
+				getSpatialMatchesForAutoAssigning(previousAvlReport, block,
+						potentialTrips);
 		if (prevSpatialMatches.isEmpty())
 			return null;
 		
@@ -408,9 +485,9 @@ public class AutoBlockAssigner {
 		// spatial matches that are not layovers. If match is to a layover can 
 		// ignore it since layover matches are far too flexible to really be 
 		// considered a spatial match
-		List<SpatialMatch> newSpatialMatches = SpatialMatcher
-				.getSpatialMatchesForAutoAssigning(avlReport,
-						block, tripsNeedToInvestigate);
+		List<SpatialMatch> newSpatialMatches = 
+				getSpatialMatchesForAutoAssigning(avlReport, block,
+						tripsNeedToInvestigate);
 		
 		// Add newly discovered matches to the cache and to the list of spatial
 		// matches to be returned
@@ -484,9 +561,9 @@ public class AutoBlockAssigner {
 		List<Trip> activeTrips = block.getTripsCurrentlyActive(avlReport);
 
 		// Get and return the spatial matches
-		List<SpatialMatch> spatialMatches = SpatialMatcher
-				.getSpatialMatchesForAutoAssigning(avlReport,
-						block, activeTrips);
+		List<SpatialMatch> spatialMatches = 
+				getSpatialMatchesForAutoAssigning(avlReport, block,
+						activeTrips);
 		return spatialMatches;
 	}
 	
@@ -663,12 +740,18 @@ public class AutoBlockAssigner {
 		// So can see how long the search takes
 		IntervalTimer timer = new IntervalTimer();		
 
-		// Determine which blocks to examine. If agency configured such that
+		// Determine which blocks to examine. Only blocks with a trip pattern
+		// near the vehicle can match so if the candidate index is enabled
+		// only those are looked at. If agency configured such that
 		// blocks are to be exclusive then only look at the ones currently
 		// not used. But if not to be exclusive, such as for no schedule based
 		// routes, then look at all active blocks.
+		List<Block> activeBlocks = AutoAssignCandidateIndex.enabled() ?
+				AutoAssignCandidateIndex.getInstance().getCandidateBlocks(
+						getAvlReport().getLocation()) :
+				BlocksInfo.getCurrentlyActiveBlocks();
 		List<Block> blocksToExamine = CoreConfig.exclusiveBlockAssignments() ? 
-				unassignedActiveBlocks() : BlocksInfo.getCurrentlyActiveBlocks();
+				unassignedActiveBlocks(activeBlocks) : activeBlocks;
 		
 		if (blocksToExamine.isEmpty()) {
 			logger.info("No currently active blocks to assign vehicleId={} to.",
@@ -707,8 +790,14 @@ public class AutoBlockAssigner {
 
 		// Return the valid matches that were found
 		logger.info("Total time for determining possible auto assignment "
-				+ "temporal matches for vehicleId={} was {}msec", 
-				vehicleId, timer);
+				+ "temporal matches for vehicleId={} was {}msec and "
+				+ "required {} spatial evaluations of trips", 
+				vehicleId, timer, spatialEvaluations);
+		CloudwatchService.getInstance().saveMetric(
+				"AutoAssignerSpatialEvaluations", 
+				Double.valueOf(spatialEvaluations), 1, 
+				CloudwatchService.MetricType.AVERAGE,
+				CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
 		return validMatches;
 	}
 	
@@ -766,6 +855,17 @@ public class AutoBlockAssigner {
 			
 	}
 	
+	/**
+	 * Returns how many times a trip was spatially matched to an AVL report
+	 * while trying to auto assign the vehicle. Useful for seeing how
+	 * expensive auto assigning is.
+	 * 
+	 * @return number of spatial evaluations of trips
+	 */
+	public int getSpatialEvaluations() {
+		return spatialEvaluations;
+	}
+	
 	/**
 	 * Returns true if the AutoBlockAssigner is actually enabled.
 	 * 
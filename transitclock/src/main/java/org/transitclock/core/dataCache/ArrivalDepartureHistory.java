@@ -0,0 +1,285 @@
+package org.transitclock.core.dataCache;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.transitclock.db.structs.ArrivalDeparture;
+
+/**
+ * Holds a set of arrival/departure events, such as those for a stop for a
+ * day or for a trip for a day, sorted by time. Only the ids of the events in
+ * the ArrivalDepartureStore are held. The ids are kept in ascending time
+ * order in an array that only ever grows at the end. Since the elements of a
+ * published array below its published size are never modified, a reader can
+ * be handed a snapshot of (array, size) without copying and without taking a
+ * lock. In the normal case where events arrive in time order an insert is an
+ * amortized O(1) append. An out of order event is located with a binary
+ * search and causes the array to be copied.
+ * <p>
+ * Writers synchronize on the history object, so only writers for the same
+ * history contend.
+ * <p>
+ * Each snapshot holds on to the chunks of the store that its events were
+ * in when it was created, so it can still be read after the store has
+ * released old chunks. Events whose chunk has been released are dropped from
+ * the history when the next event is added.
+ */
+public class ArrivalDepartureHistory {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final ArrivalDepartureStore store;
+
+	// Only accessed by writers while synchronized
+	private int[] ids = new int[INITIAL_CAPACITY];
+	private int size = 0;
+	private ArrivalDepartureStore.Chunk[] chunks;
+
+	// What readers see
+	private volatile List<ArrivalDeparture> snapshot =
+			Collections.<ArrivalDeparture> emptyList();
+
+	/********************** Member Functions **************************/
+
+	public ArrivalDepartureHistory(ArrivalDepartureStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Adds the event to the store, if it is not already there, and to the
+	 * history, keeping the events sorted by time. Events with the same time
+	 * are kept in insertion order, as was done when the list was sorted with
+	 * a stable sort.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public synchronized void add(ArrivalDeparture arrivalDeparture) {
+		int id = store.add(arrivalDeparture);
+		updateChunks();
+		if (!ArrivalDepartureStore.contains(chunks, id)) {
+			// So old that it has already been released
+			snapshot = new Snapshot(store, chunks, ids, size);
+			return;
+		}
+		int pos = insertionPoint(arrivalDeparture.getTime());
+
+		if (pos == size && size < ids.length) {
+			// Common case. Append to the unpublished part of the array
+			ids[size] = id;
+		} else {
+			int capacity = size < ids.length ? ids.length : ids.length * 2;
+			int[] newIds = new int[capacity];
+			System.arraycopy(ids, 0, newIds, 0, pos);
+			newIds[pos] = id;
+			System.arraycopy(ids, pos, newIds, pos + 1, size - pos);
+			ids = newIds;
+		}
+		++size;
+
+		snapshot = new Snapshot(store, chunks, ids, size);
+	}
+
+	/**
+	 * Gets the current chunks from the store. If they have changed then the
+	 * events whose chunk has since been released are removed. The ids array
+	 * may be shared with a snapshot so a new one is created when there is
+	 * something to remove.
+	 */
+	private void updateChunks() {
+		ArrivalDepartureStore.Chunk[] currentChunks = store.getChunks();
+		if (currentChunks == chunks)
+			return;
+		chunks = currentChunks;
+
+		int numReleased = 0;
+		for (int i = 0; i < size; ++i) {
+			if (!ArrivalDepartureStore.contains(currentChunks, ids[i]))
+				++numReleased;
+		}
+		if (numReleased == 0)
+			return;
+
+		int[] newIds = new int[ids.length];
+		int j = 0;
+		for (int i = 0; i < size; ++i) {
+			if (ArrivalDepartureStore.contains(currentChunks, ids[i]))
+				newIds[j++] = ids[i];
+		}
+		ids = newIds;
+		size = j;
+	}
+
+	/**
+	 * Adds a batch of events, such as a day read in from the database when
+	 * populating the caches. The events are merged into the history in a
+	 * single pass, and published once, instead of being inserted one at a
+	 * time. The result is the same as calling add() for each event in turn.
+	 *
+	 * @param arrivalDepartures
+	 *            sorted oldest first. If not sorted the events are simply
+	 *            added one at a time.
+	 */
+	public synchronized void addAll(List<ArrivalDeparture> arrivalDepartures) {
+		int count = arrivalDepartures.size();
+		if (count == 0)
+			return;
+
+		int[] newIds = new int[count];
+		long previousTime = Long.MIN_VALUE;
+		for (int i = 0; i < count; ++i) {
+			ArrivalDeparture arrivalDeparture = arrivalDepartures.get(i);
+			if (arrivalDeparture.getTime() < previousTime) {
+				// Not sorted so can't merge. Events already added to the
+				// store keep their id so adding them again is fine.
+				for (ArrivalDeparture ad : arrivalDepartures)
+					add(ad);
+				return;
+			}
+			previousTime = arrivalDeparture.getTime();
+			newIds[i] = store.add(arrivalDeparture);
+		}
+		updateChunks();
+
+		// Events so old that their chunk has already been released
+		int held = 0;
+		for (int i = 0; i < count; ++i) {
+			if (ArrivalDepartureStore.contains(chunks, newIds[i]))
+				newIds[held++] = newIds[i];
+		}
+		if (held < count) {
+			int[] heldIds = new int[held];
+			System.arraycopy(newIds, 0, heldIds, 0, held);
+			newIds = heldIds;
+			count = held;
+			if (count == 0) {
+				snapshot = new Snapshot(store, chunks, ids, size);
+				return;
+			}
+		}
+		reverseEqualTimes(newIds);
+
+		if (size + count <= ids.length
+				&& (size == 0 || time(ids[size - 1]) < time(newIds[0]))) {
+			// All newer than what is held so append to the unpublished part
+			System.arraycopy(newIds, 0, ids, size, count);
+		} else {
+			int capacity = ids.length;
+			while (capacity < size + count)
+				capacity *= 2;
+			int[] mergedIds = new int[capacity];
+			int i = 0, j = 0, k = 0;
+			while (i < size && j < count) {
+				if (time(ids[i]) < time(newIds[j]))
+					mergedIds[k++] = ids[i++];
+				else
+					mergedIds[k++] = newIds[j++];
+			}
+			System.arraycopy(ids, i, mergedIds, k, size - i);
+			System.arraycopy(newIds, j, mergedIds, k + size - i, count - j);
+			ids = mergedIds;
+		}
+		size += count;
+
+		snapshot = new Snapshot(store, chunks, ids, size);
+	}
+
+	/**
+	 * Returns the time of an event that is held by the current chunks
+	 */
+	private long time(int id) {
+		return store.getTime(chunks, id);
+	}
+
+	/**
+	 * add() puts an event before the ones with the same time, so that they
+	 * are in insertion order once presented most recent first. Does the same
+	 * for a batch by reversing each run of ids with the same time.
+	 */
+	private void reverseEqualTimes(int[] newIds) {
+		int start = 0;
+		while (start < newIds.length) {
+			long time = time(newIds[start]);
+			int end = start + 1;
+			while (end < newIds.length && time(newIds[end]) == time)
+				++end;
+			for (int i = start, j = end - 1; i < j; ++i, --j) {
+				int id = newIds[i];
+				newIds[i] = newIds[j];
+				newIds[j] = id;
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Binary search for where an event with the specified time goes in the
+	 * ascending array. Returns the first position whose time is greater than
+	 * or equal to the time so that, once the list is presented most recent
+	 * first, equal times stay in insertion order.
+	 */
+	private int insertionPoint(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (time(ids[mid]) < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns an immutable view of the events, most recent first, the same
+	 * order as produced by {@link ArrivalDepartureComparator}. Each
+	 * ArrivalDeparture is read from the store when it is accessed.
+	 *
+	 * @return the events
+	 */
+	public List<ArrivalDeparture> snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return number of events held
+	 */
+	public int size() {
+		return snapshot.size();
+	}
+
+	/**
+	 * Read only, most recent first, view of the first size elements of an
+	 * ascending array of ids. All of the ids are held by the chunks.
+	 */
+	private static class Snapshot extends AbstractList<ArrivalDeparture>
+			implements RandomAccess {
+		private final ArrivalDepartureStore store;
+		private final ArrivalDepartureStore.Chunk[] chunks;
+		private final int[] ids;
+		private final int size;
+
+		private Snapshot(ArrivalDepartureStore store,
+				ArrivalDepartureStore.Chunk[] chunks, int[] ids, int size) {
+			this.store = store;
+			this.chunks = chunks;
+			this.ids = ids;
+			this.size = size;
+		}
+
+		@Override
+		public ArrivalDeparture get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", Size: " + size);
+			return store.get(chunks, ids[size - 1 - index]);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
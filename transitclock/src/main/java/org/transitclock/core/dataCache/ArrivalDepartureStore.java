@@ -0,0 +1,508 @@
+package org.transitclock.core.dataCache;
+
+import java.lang.ref.SoftReference;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Block;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.Time;
+
+/**
+ * Compact, columnar store of the arrivals/departures that the history caches
+ * (StopArrivalDepartureCache, TripDataHistoryCache and through it
+ * FrequencyBasedHistoricalAverageCache) are built on. Each event is stored
+ * once, in primitive arrays, and the caches only hold its int id. An
+ * ArrivalDeparture is recreated by get() the first time it is read and is
+ * then kept by its chunk, through a SoftReference, so that reading the same
+ * event again does not create another object. The garbage collector can
+ * free the recreated objects when memory is needed, unlike the millions of
+ * long lived Hibernate entities that were previously held for several
+ * days. The block is not stored since it is part of the configuration. It
+ * is looked up again when the event is recreated.
+ * <p>
+ * The ID strings (vehicle, stop, trip, block, route, service, direction)
+ * are interned into a table and stored as an int. Times are stored as a long
+ * epoch time for the event and int msec offsets for the other times. That
+ * is 77 bytes of columns per event. For a million events
+ * ArrivalDepartureStoreMemory measured 81 bytes per event for the store,
+ * since the last chunk is only partly used, against 166 bytes per event
+ * for the ArrivalDeparture objects held in a list (64 bit JVM with
+ * compressed references).
+ * <p>
+ * Events are stored in fixed size chunks in the order they are added. Ids
+ * never change. Once a chunk is full and all of its events are older than
+ * transitclock.tripdatacache.tripDataCacheMaxAgeSec plus a day the chunk is
+ * released. Readers do not lock. Writers only lock when a new chunk or a
+ * new ID string is needed. Ids are handed out atomically and each writer
+ * then writes its own slot. Since an id is only made available to readers
+ * through a cache after the event has been written, a reader always sees
+ * the complete event.
+ * <p>
+ * The array of chunks is replaced, never modified, when a chunk is added or
+ * released. A reader that needs a consistent set of events, such as the
+ * snapshot of an ArrivalDepartureHistory, holds on to the array it got
+ * from getChunks() so the events it refers to can still be read after their
+ * chunk has been released. The memory is freed once the last such reader is
+ * gone.
+ */
+public class ArrivalDepartureStore {
+	private static ArrivalDepartureStore singleton = new ArrivalDepartureStore();
+
+	private static final Logger logger = LoggerFactory.getLogger(ArrivalDepartureStore.class);
+
+	private static final int CHUNK_BITS = 16;
+	// Package private so that tests can fill chunks
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// Used for optional offsets and ids that are null
+	private static final int NONE = Integer.MIN_VALUE;
+
+	private static final int FLAG_ARRIVAL = 1;
+
+	private final StringTable strings = new StringTable();
+
+	// Replaced, never modified once published, when a chunk is added or
+	// released
+	private volatile Chunk[] chunks = new Chunk[16];
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// For when a chunk is added or released
+	private final Object chunksLock = new Object();
+
+	// For looking up the blocks of the recreated events. Set once the Core
+	// is available.
+	private volatile DbConfig dbConfig;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static ArrivalDepartureStore getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Package private instead of private so that benchmarks can create their
+	 * own instance.
+	 */
+	ArrivalDepartureStore() {
+	}
+
+	/**
+	 * Adds the event to the store if it has not already been added and
+	 * returns its id. Can be called by several threads at once. If the same
+	 * object is added by two threads at once it might be stored twice, which
+	 * only costs memory since both ids recreate the same event.
+	 *
+	 * @param arrivalDeparture
+	 * @return the id of the event in the store
+	 */
+	public int add(ArrivalDeparture arrivalDeparture) {
+		if (arrivalDeparture.getStoreId() >= 0)
+			return arrivalDeparture.getStoreId();
+
+		int id = nextId.getAndIncrement();
+		int offset = id & CHUNK_MASK;
+		Chunk chunk = chunkForAdd(id >>> CHUNK_BITS);
+
+		long time = arrivalDeparture.getTime();
+		chunk.time[offset] = time;
+		chunk.avlTimeOffset[offset] = offset(arrivalDeparture.getAvlTime(), time);
+		chunk.scheduledTimeOffset[offset] = offset(arrivalDeparture.getScheduledDate(), time);
+		chunk.freqStartTimeOffset[offset] = offset(arrivalDeparture.getFreqStartTime(), time);
+		chunk.vehicleId[offset] = strings.getId(arrivalDeparture.getVehicleId());
+		chunk.stopId[offset] = strings.getId(arrivalDeparture.getStopId());
+		chunk.tripId[offset] = strings.getId(arrivalDeparture.getTripId());
+		chunk.blockId[offset] = strings.getId(arrivalDeparture.getBlockId());
+		chunk.routeId[offset] = strings.getId(arrivalDeparture.getRouteId());
+		chunk.routeShortName[offset] = strings.getId(arrivalDeparture.getRouteShortName());
+		chunk.serviceId[offset] = strings.getId(arrivalDeparture.getServiceId());
+		chunk.directionId[offset] = strings.getId(arrivalDeparture.getDirectionId());
+		chunk.configRev[offset] = arrivalDeparture.getConfigRev();
+		chunk.gtfsStopSeq[offset] = arrivalDeparture.getGtfsStopSequence();
+		chunk.tripIndex[offset] = arrivalDeparture.getTripIndex();
+		chunk.stopPathIndex[offset] = arrivalDeparture.getStopPathIndex();
+		chunk.stopOrder[offset] = arrivalDeparture.getStopOrder() != null ?
+				arrivalDeparture.getStopOrder() : NONE;
+		chunk.stopPathLength[offset] = arrivalDeparture.getStopPathLength();
+		chunk.flags[offset] = (byte) (arrivalDeparture.isArrival() ? FLAG_ARRIVAL : 0);
+		chunk.updateMaxTime(time);
+		// Only once every slot has been written can the chunk be released
+		chunk.numWritten.incrementAndGet();
+
+		arrivalDeparture.setStoreId(id);
+		return id;
+	}
+
+	/**
+	 * Returns the chunk with the specified index, adding it if it has not
+	 * been added yet. Only locks when the chunk is added. A chunk is only
+	 * released once it is full so the chunk for an id that is being added
+	 * is never released.
+	 *
+	 * @param chunkIndex
+	 * @return the chunk
+	 */
+	private Chunk chunkForAdd(int chunkIndex) {
+		Chunk[] currentChunks = chunks;
+		Chunk chunk = chunkIndex < currentChunks.length ? currentChunks[chunkIndex] : null;
+		if (chunk != null)
+			return chunk;
+
+		synchronized (chunksLock) {
+			currentChunks = chunks;
+			chunk = chunkIndex < currentChunks.length ? currentChunks[chunkIndex] : null;
+			if (chunk != null)
+				return chunk;
+
+			// Readers may hold on to the current array so a copy is made
+			int length = currentChunks.length;
+			while (chunkIndex >= length)
+				length *= 2;
+			Chunk[] newChunks = new Chunk[length];
+			System.arraycopy(currentChunks, 0, newChunks, 0, currentChunks.length);
+			chunk = new Chunk();
+			newChunks[chunkIndex] = chunk;
+			releaseOldChunks(newChunks, chunkIndex);
+			chunks = newChunks;
+			return chunk;
+		}
+	}
+
+	/**
+	 * Releases the full chunks before the new one whose events are all too
+	 * old to be of use to any of the caches. Chunks are not filled in time
+	 * order, for example the most recent day is read in first at startup,
+	 * so every chunk is checked. Uses the system time of the Core so that
+	 * old data in playback or batch mode is not released as soon as the next
+	 * chunk is needed.
+	 *
+	 * @param newChunks
+	 *            the array that is about to be published
+	 * @param newChunkIndex
+	 */
+	private void releaseOldChunks(Chunk[] newChunks, int newChunkIndex) {
+		long oldestAllowed = Core.getSystemTimeOrNow()
+				- ((long) CoreConfig.getTripDataCacheMaxAgeSec() * Time.MS_PER_SEC
+						+ Time.MS_PER_DAY);
+		for (int i = 0; i < newChunkIndex; ++i) {
+			Chunk chunk = newChunks[i];
+			if (chunk == null || chunk.numWritten.get() < CHUNK_SIZE
+					|| chunk.maxTime.get() >= oldestAllowed)
+				continue;
+			logger.debug("Releasing ArrivalDepartureStore chunk {} with events up to {}",
+					i, new Date(chunk.maxTime.get()));
+			newChunks[i] = null;
+		}
+	}
+
+	/**
+	 * Returns the current chunks. The array is never modified so the events
+	 * that it holds can be read with get(Chunk[], int) even after their
+	 * chunk has been released.
+	 *
+	 * @return the current chunks
+	 */
+	Chunk[] getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Returns the ArrivalDeparture with the specified id, recreating it if
+	 * it is not already held by its chunk.
+	 *
+	 * @param id
+	 * @return the ArrivalDeparture or null if it is no longer stored
+	 */
+	public ArrivalDeparture get(int id) {
+		return get(chunks, id);
+	}
+
+	/**
+	 * Returns the ArrivalDeparture with the specified id from the chunks
+	 * returned by an earlier call to getChunks(), recreating it if it is not
+	 * already held by its chunk.
+	 *
+	 * @param chunks
+	 * @param id
+	 * @return the ArrivalDeparture or null if it is not held by the chunks
+	 */
+	ArrivalDeparture get(Chunk[] chunks, int id) {
+		Chunk chunk = chunk(chunks, id);
+		if (chunk == null)
+			return null;
+		int offset = id & CHUNK_MASK;
+
+		AtomicReferenceArray<ArrivalDeparture> objects = chunk.objects();
+		ArrivalDeparture arrivalDeparture = objects.get(offset);
+		if (arrivalDeparture == null) {
+			// Another reader might recreate it at the same time, which is
+			// harmless since the events are equal
+			arrivalDeparture = create(chunk, id);
+			objects.set(offset, arrivalDeparture);
+		}
+		return arrivalDeparture;
+	}
+
+	/**
+	 * Recreates the ArrivalDeparture from the columns of its chunk.
+	 *
+	 * @param chunk
+	 * @param id
+	 * @return the new ArrivalDeparture
+	 */
+	private ArrivalDeparture create(Chunk chunk, int id) {
+		int offset = id & CHUNK_MASK;
+
+		long time = chunk.time[offset];
+		int stopOrder = chunk.stopOrder[offset];
+		String blockId = strings.get(chunk.blockId[offset]);
+		String serviceId = strings.get(chunk.serviceId[offset]);
+		return ArrivalDeparture.create(id,
+				(chunk.flags[offset] & FLAG_ARRIVAL) != 0,
+				chunk.configRev[offset],
+				strings.get(chunk.vehicleId[offset]),
+				new Date(time),
+				date(chunk.avlTimeOffset[offset], time),
+				date(chunk.scheduledTimeOffset[offset], time),
+				strings.get(chunk.stopId[offset]),
+				chunk.gtfsStopSeq[offset],
+				strings.get(chunk.tripId[offset]),
+				blockId,
+				block(serviceId, blockId),
+				strings.get(chunk.routeId[offset]),
+				strings.get(chunk.routeShortName[offset]),
+				serviceId,
+				strings.get(chunk.directionId[offset]),
+				chunk.tripIndex[offset],
+				date(chunk.freqStartTimeOffset[offset], time),
+				chunk.stopPathIndex[offset],
+				stopOrder != NONE ? Integer.valueOf(stopOrder) : null,
+				chunk.stopPathLength[offset]);
+	}
+
+	/**
+	 * The block is part of the configuration so is looked up instead of
+	 * being stored. Code such as Indices(ArrivalDeparture) needs it.
+	 *
+	 * @return the block or null if not running in the Core
+	 */
+	private Block block(String serviceId, String blockId) {
+		if (serviceId == null || blockId == null)
+			return null;
+		DbConfig config = dbConfig;
+		if (config == null) {
+			if (!Core.isCoreApplication())
+				return null;
+			config = Core.getInstance().getDbConfig();
+			dbConfig = config;
+		}
+		return config.getBlock(serviceId, blockId);
+	}
+
+	/**
+	 * Returns the time of the event without recreating the ArrivalDeparture.
+	 *
+	 * @param id
+	 * @return epoch time of the event, or Long.MIN_VALUE if it is no longer
+	 *         stored
+	 */
+	public long getTime(int id) {
+		return getTime(chunks, id);
+	}
+
+	/**
+	 * Returns the time of the event from the chunks returned by an earlier
+	 * call to getChunks().
+	 *
+	 * @param chunks
+	 * @param id
+	 * @return epoch time of the event, or Long.MIN_VALUE if it is not held
+	 *         by the chunks
+	 */
+	long getTime(Chunk[] chunks, int id) {
+		Chunk chunk = chunk(chunks, id);
+		return chunk != null ? chunk.time[id & CHUNK_MASK] : Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param id
+	 * @return true if the event is still held by the store
+	 */
+	public boolean contains(int id) {
+		return chunk(chunks, id) != null;
+	}
+
+	/**
+	 * @param chunks
+	 *            as returned by getChunks()
+	 * @param id
+	 * @return true if the event is held by the chunks
+	 */
+	static boolean contains(Chunk[] chunks, int id) {
+		return chunk(chunks, id) != null;
+	}
+
+	/**
+	 * @return number of events added to the store, including ones that
+	 *         have since been released
+	 */
+	public int getNumberAdded() {
+		return nextId.get();
+	}
+
+	/**
+	 * @return approximate number of bytes used by the chunks that are still
+	 *         held
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk != null)
+				bytes += (long) CHUNK_SIZE * Chunk.BYTES_PER_EVENT;
+		}
+		return bytes;
+	}
+
+	private static Chunk chunk(Chunk[] chunks, int id) {
+		int chunkIndex = id >>> CHUNK_BITS;
+		return chunkIndex < chunks.length ? chunks[chunkIndex] : null;
+	}
+
+	private static int offset(Date date, long time) {
+		if (date == null)
+			return NONE;
+		long offset = date.getTime() - time;
+		if (offset <= NONE || offset > Integer.MAX_VALUE) {
+			logger.error("Time {} is too far from event time {} to be stored "
+					+ "in ArrivalDepartureStore", date, new Date(time));
+			return NONE;
+		}
+		return (int) offset;
+	}
+
+	private static Date date(int offset, long time) {
+		return offset != NONE ? new Date(time + offset) : null;
+	}
+
+	/**
+	 * One fixed size chunk of the columns. Package private so that readers
+	 * can hold on to the array returned by getChunks().
+	 */
+	static class Chunk {
+		private static final int BYTES_PER_EVENT = 8 + 3 * 4 + 8 * 4 + 6 * 4 + 1;
+
+		private final long[] time = new long[CHUNK_SIZE];
+		private final int[] avlTimeOffset = new int[CHUNK_SIZE];
+		private final int[] scheduledTimeOffset = new int[CHUNK_SIZE];
+		private final int[] freqStartTimeOffset = new int[CHUNK_SIZE];
+		private final int[] vehicleId = new int[CHUNK_SIZE];
+		private final int[] stopId = new int[CHUNK_SIZE];
+		private final int[] tripId = new int[CHUNK_SIZE];
+		private final int[] blockId = new int[CHUNK_SIZE];
+		private final int[] routeId = new int[CHUNK_SIZE];
+		private final int[] routeShortName = new int[CHUNK_SIZE];
+		private final int[] serviceId = new int[CHUNK_SIZE];
+		private final int[] directionId = new int[CHUNK_SIZE];
+		private final int[] configRev = new int[CHUNK_SIZE];
+		private final int[] gtfsStopSeq = new int[CHUNK_SIZE];
+		private final int[] tripIndex = new int[CHUNK_SIZE];
+		private final int[] stopPathIndex = new int[CHUNK_SIZE];
+		private final int[] stopOrder = new int[CHUNK_SIZE];
+		private final float[] stopPathLength = new float[CHUNK_SIZE];
+		private final byte[] flags = new byte[CHUNK_SIZE];
+
+		private final AtomicLong maxTime = new AtomicLong(Long.MIN_VALUE);
+
+		// Number of slots whose event has been written
+		private final AtomicInteger numWritten = new AtomicInteger();
+
+		// The events recreated by get(). Can be freed by the garbage
+		// collector when memory is needed.
+		private volatile SoftReference<AtomicReferenceArray<ArrivalDeparture>> objectsRef;
+
+		private void updateMaxTime(long time) {
+			long current = maxTime.get();
+			while (time > current && !maxTime.compareAndSet(current, time))
+				current = maxTime.get();
+		}
+
+		/**
+		 * Returns the array holding the recreated events, creating it if it
+		 * was never created or has been freed
+		 */
+		private AtomicReferenceArray<ArrivalDeparture> objects() {
+			SoftReference<AtomicReferenceArray<ArrivalDeparture>> ref = objectsRef;
+			AtomicReferenceArray<ArrivalDeparture> objects = ref != null ? ref.get() : null;
+			if (objects == null) {
+				objects = new AtomicReferenceArray<ArrivalDeparture>(CHUNK_SIZE);
+				objectsRef = new SoftReference<AtomicReferenceArray<ArrivalDeparture>>(objects);
+			}
+			return objects;
+		}
+	}
+
+	/**
+	 * Interns strings as int ids. There are only a few thousand distinct
+	 * vehicle, stop, trip etc IDs so the table stays small.
+	 */
+	private static class StringTable {
+		private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+		// Only grows. Replaced when more room is needed.
+		private volatile String[] values = new String[1024];
+
+		// Only accessed while synchronized
+		private int size = 0;
+
+		/**
+		 * Returns the id for the string, adding it if needed. Only locks
+		 * when the string is added.
+		 */
+		private int getId(String value) {
+			if (value == null)
+				return NONE;
+
+			Integer id = ids.get(value);
+			if (id != null)
+				return id;
+			return addId(value);
+		}
+
+		private synchronized int addId(String value) {
+			Integer id = ids.get(value);
+			if (id != null)
+				return id;
+
+			String[] currentValues = values;
+			if (size == currentValues.length) {
+				String[] newValues = new String[currentValues.length * 2];
+				System.arraycopy(currentValues, 0, newValues, 0, currentValues.length);
+				currentValues = newValues;
+			}
+			currentValues[size] = value.intern();
+			values = currentValues;
+			ids.put(value, size);
+			return size++;
+		}
+
+		private String get(int id) {
+			return id != NONE ? values[id] : null;
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.config.StringConfigValue;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * Periodically writes the contents of KalmanErrorCache and
+ * ScheduleBasedHistoricalAverageCache to a local file so that they can be
+ * restored when the core is restarted. Otherwise the Kalman error values
+ * start over at the initial value and the historical averages have to be
+ * rederived from days of arrivals/departures.
+ * <p>
+ * The file is written to a temporary file which is then atomically renamed,
+ * so a crash while writing leaves the previous checkpoint in place. The file
+ * ends with a CRC32 of its contents and is only used if the checksum, the
+ * format version and the agency match and it is not older than
+ * transitclock.cache.checkpoint.maxAgeSec. Trip IDs are written once in a
+ * string table and then referred to by index, which keeps the file compact
+ * since each trip has an entry for every stop path.
+ * <p>
+ * Checkpointing is enabled by setting transitclock.cache.checkpoint.directory.
+ */
+public class CacheCheckpoint {
+
+	private final String agencyId;
+
+	private final String directoryName;
+
+	private ScheduledExecutorService executor;
+
+	private static final int MAGIC = 0x5443434B;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String FILE_SUFFIX = ".checkpoint";
+
+	// For a stop path index that is null
+	private static final int NO_INDEX = Integer.MIN_VALUE;
+
+	private static StringConfigValue directory =
+			new StringConfigValue("transitclock.cache.checkpoint.directory",
+					null,
+					"Directory where the Kalman error and historical average "
+					+ "caches are periodically written to so that they can "
+					+ "be restored when the core restarts. If not set then "
+					+ "the caches are not checkpointed.");
+
+	private static IntegerConfigValue intervalSec =
+			new IntegerConfigValue("transitclock.cache.checkpoint.intervalSec",
+					5 * Time.SEC_PER_MIN,
+					"How frequently the Kalman error and historical average "
+					+ "caches are checkpointed.");
+
+	private static IntegerConfigValue maxAgeSec =
+			new IntegerConfigValue("transitclock.cache.checkpoint.maxAgeSec",
+					Time.SEC_PER_DAY,
+					"A checkpoint older than this is not restored since the "
+					+ "caches are then better rebuilt from the database.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(CacheCheckpoint.class);
+
+	/********************** Member Functions **************************/
+
+	public CacheCheckpoint(String agencyId) {
+		this(agencyId, directory.getValue());
+	}
+
+	/**
+	 * Package private so that tests can use their own directory.
+	 *
+	 * @param agencyId
+	 * @param directoryName
+	 *            directory for the checkpoint file, or null if not enabled
+	 */
+	CacheCheckpoint(String agencyId, String directoryName) {
+		this.agencyId = agencyId;
+		this.directoryName = directoryName;
+	}
+
+	/**
+	 * @return true if transitclock.cache.checkpoint.directory is set
+	 */
+	public static boolean isEnabled() {
+		return directory.getValue() != null;
+	}
+
+	private File getFile() {
+		return new File(directoryName, agencyId + FILE_SUFFIX);
+	}
+
+	/**
+	 * Entries read from a checkpoint. Only put into the caches once the
+	 * whole file has been read and the checksum verified.
+	 */
+	private static class Contents {
+		private long writeTime;
+		private final List<KalmanErrorCacheKey> kalmanKeys =
+				new ArrayList<KalmanErrorCacheKey>();
+		private final List<Double> kalmanValues = new ArrayList<Double>();
+		private final List<StopPathCacheKey> averageKeys =
+				new ArrayList<StopPathCacheKey>();
+		private final List<HistoricalAverage> averages =
+				new ArrayList<HistoricalAverage>();
+	}
+
+	/**
+	 * Restores KalmanErrorCache and ScheduleBasedHistoricalAverageCache from
+	 * the checkpoint file, if there is a valid one. The historical averages
+	 * then include the arrivals/departures up to when the checkpoint was
+	 * written, so only later ones should be added to them.
+	 *
+	 * @return the epoch time the restored checkpoint was written, or 0 if
+	 *         the caches were not restored
+	 */
+	public long restore() {
+		if (directoryName == null)
+			return 0;
+
+		File file = getFile();
+		if (!file.exists()) {
+			logger.info("No cache checkpoint {} to restore.", file);
+			return 0;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		Contents contents;
+		try {
+			contents = read(file);
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not read cache checkpoint {}. {}", file,
+					e.getMessage(), e);
+			return 0;
+		}
+		if (contents == null)
+			return 0;
+
+		KalmanErrorCache kalmanErrorCache = KalmanErrorCache.getInstance();
+		for (int i = 0; i < contents.kalmanKeys.size(); ++i)
+			kalmanErrorCache.putErrorValue(contents.kalmanKeys.get(i),
+					contents.kalmanValues.get(i));
+
+		ScheduleBasedHistoricalAverageCache averageCache =
+				ScheduleBasedHistoricalAverageCache.getInstance();
+		for (int i = 0; i < contents.averageKeys.size(); ++i)
+			averageCache.putAverage(contents.averageKeys.get(i),
+					contents.averages.get(i));
+
+		logger.info("Restored {} Kalman error values and {} historical "
+				+ "averages from cache checkpoint {} written at {} in {} msec.",
+				contents.kalmanKeys.size(), contents.averageKeys.size(), file,
+				Time.dateTimeStr(contents.writeTime), timer.elapsedMsec());
+		return contents.writeTime;
+	}
+
+	/**
+	 * Reads the checkpoint file.
+	 *
+	 * @return the contents, or null if the file is not valid
+	 */
+	private Contents read(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				logger.warn("Cache checkpoint {} has a different format so "
+						+ "not using it.", file);
+				return null;
+			}
+			String fileAgencyId = in.readUTF();
+			if (!agencyId.equals(fileAgencyId)) {
+				logger.warn("Cache checkpoint {} is for agency {} so not "
+						+ "using it.", file, fileAgencyId);
+				return null;
+			}
+			long writeTime = in.readLong();
+			if (System.currentTimeMillis() - writeTime
+					> maxAgeSec.getValue() * Time.MS_PER_SEC) {
+				logger.info("Cache checkpoint {} was written at {} so is too "
+						+ "old to use.", file, Time.dateTimeStr(writeTime));
+				return null;
+			}
+
+			String[] tripIds = new String[readCount(in, file)];
+			for (int i = 0; i < tripIds.length; ++i)
+				tripIds[i] = in.readUTF();
+
+			Contents contents = new Contents();
+			contents.writeTime = writeTime;
+			int numKalman = readCount(in, file);
+			for (int i = 0; i < numKalman; ++i) {
+				String tripId = tripIds[in.readInt()];
+				int stopPathIndex = in.readInt();
+				contents.kalmanKeys.add(new KalmanErrorCacheKey(tripId,
+						stopPathIndex));
+				contents.kalmanValues.add(in.readDouble());
+			}
+
+			int numAverages = readCount(in, file);
+			for (int i = 0; i < numAverages; ++i) {
+				String tripId = tripIds[in.readInt()];
+				int stopPathIndex = in.readInt();
+				boolean travelTime = in.readBoolean();
+				contents.averageKeys.add(new StopPathCacheKey(tripId,
+						stopPathIndex == NO_INDEX ? null : stopPathIndex,
+						travelTime));
+				int count = in.readInt();
+				double average = in.readDouble();
+				double variance = in.readDouble();
+				contents.averages.add(new HistoricalAverage(count, average,
+						variance));
+			}
+
+			// The checksum of everything before it
+			long expectedCrc = crc.getValue();
+			if (in.readLong() != expectedCrc) {
+				logger.error("Cache checkpoint {} is corrupt. Checksum does "
+						+ "not match.", file);
+				return null;
+			}
+			return contents;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the number of entries that follow. Since each entry takes at
+	 * least a byte the number can't be larger than the file, which guards
+	 * against allocating a huge array for a corrupt file.
+	 */
+	private static int readCount(DataInputStream in, File file)
+			throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > file.length())
+			throw new IOException("Invalid number of entries " + count);
+		return count;
+	}
+
+	/**
+	 * Writes the checkpoint file. Synchronized so that a periodic write and
+	 * the write at shutdown don't use the same temporary file at once.
+	 */
+	public synchronized void write() {
+		if (directoryName == null)
+			return;
+
+		IntervalTimer timer = new IntervalTimer();
+		File file = getFile();
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+
+			// Get the values first so the string table can be written first
+			List<KalmanErrorCacheKey> kalmanKeys =
+					new ArrayList<KalmanErrorCacheKey>();
+			List<Double> kalmanValues = new ArrayList<Double>();
+			KalmanErrorCache kalmanErrorCache = KalmanErrorCache.getInstance();
+			for (KalmanErrorCacheKey key : kalmanErrorCache.getKeys()) {
+				Double value = kalmanErrorCache.getErrorValue(key);
+				if (value != null) {
+					kalmanKeys.add(key);
+					kalmanValues.add(value);
+				}
+			}
+			List<StopPathCacheKey> averageKeys =
+					new ArrayList<StopPathCacheKey>();
+			List<HistoricalAverage> averages =
+					new ArrayList<HistoricalAverage>();
+			ScheduleBasedHistoricalAverageCache averageCache =
+					ScheduleBasedHistoricalAverageCache.getInstance();
+			// The averages are updated in place while holding the lock of
+			// the cache, so copy them while holding it too. Otherwise the
+			// count, average and variance of an average could be from
+			// before and after an update.
+			synchronized (averageCache) {
+				for (StopPathCacheKey key : averageCache.getKeys()) {
+					HistoricalAverage average = averageCache.getAverage(key);
+					if (average != null) {
+						averageKeys.add(key);
+						averages.add(new HistoricalAverage(average.getCount(),
+								average.getAverage(), average.getVariance()));
+					}
+				}
+			}
+
+			List<String> tripIds = new ArrayList<String>();
+			Map<String, Integer> tripIdIndexes = new HashMap<String, Integer>();
+			for (KalmanErrorCacheKey key : kalmanKeys)
+				index(key.getTripId(), tripIds, tripIdIndexes);
+			for (StopPathCacheKey key : averageKeys)
+				index(key.getTripId(), tripIds, tripIdIndexes);
+
+			CRC32 crc = new CRC32();
+			FileOutputStream fileOut = new FileOutputStream(tmpFile);
+			try {
+				DataOutputStream out = new DataOutputStream(
+						new CheckedOutputStream(
+								new BufferedOutputStream(fileOut), crc));
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(agencyId);
+				out.writeLong(System.currentTimeMillis());
+
+				out.writeInt(tripIds.size());
+				for (String tripId : tripIds)
+					out.writeUTF(tripId);
+
+				out.writeInt(kalmanKeys.size());
+				for (int i = 0; i < kalmanKeys.size(); ++i) {
+					KalmanErrorCacheKey key = kalmanKeys.get(i);
+					out.writeInt(tripIdIndexes.get(key.getTripId()));
+					out.writeInt(key.getStopPathIndex());
+					out.writeDouble(kalmanValues.get(i));
+				}
+
+				out.writeInt(averageKeys.size());
+				for (int i = 0; i < averageKeys.size(); ++i) {
+					StopPathCacheKey key = averageKeys.get(i);
+					HistoricalAverage average = averages.get(i);
+					out.writeInt(tripIdIndexes.get(key.getTripId()));
+					out.writeInt(key.getStopPathIndex() != null ?
+							key.getStopPathIndex() : NO_INDEX);
+					out.writeBoolean(key.isTravelTime());
+					out.writeInt(average.getCount());
+					out.writeDouble(average.getAverage());
+					out.writeDouble(average.getVariance());
+				}
+
+				out.writeLong(crc.getValue());
+				out.flush();
+				fileOut.getChannel().force(true);
+			} finally {
+				fileOut.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Wrote cache checkpoint {} with {} Kalman error "
+					+ "values and {} historical averages in {} msec.", file,
+					kalmanKeys.size(), averageKeys.size(), timer.elapsedMsec());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not write cache checkpoint {}. {}", file,
+					e.getMessage(), e);
+			tmpFile.delete();
+		}
+	}
+
+	private static void index(String tripId, List<String> tripIds,
+			Map<String, Integer> tripIdIndexes) {
+		if (!tripIdIndexes.containsKey(tripId)) {
+			tripIdIndexes.put(tripId, tripIds.size());
+			tripIds.add(tripId);
+		}
+	}
+
+	/**
+	 * Starts writing the checkpoint every
+	 * transitclock.cache.checkpoint.intervalSec and when the application
+	 * exits.
+	 */
+	public synchronized void start() {
+		if (directoryName == null || executor != null)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("cacheCheckpoint"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, intervalSec.getValue(), intervalSec.getValue(), TimeUnit.SECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("cacheCheckpointAtExit") {
+			@Override
+			public void run() {
+				write();
+			}
+		});
+		logger.info("Writing cache checkpoint {} every {} secs.", getFile(),
+				intervalSec.getValue());
+	}
+}
@@ -0,0 +1,449 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.configData.DbSetupConfig;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * Populates the historical caches at startup from the arrivals/departures of
+ * the last transitclock.cache.daysPopulateHistoricalCache days.
+ * <p>
+ * The days are read from the database by a pool of
+ * transitclock.cache.warmUp.numThreads threads, so the queries for several
+ * days run at the same time. The days are still added to the caches one at a
+ * time in date order by a single background thread, so the events are added
+ * oldest first just like when they are generated. Each day is streamed from
+ * the database in time order via a scrollable result and a stateless
+ * session, so no Hibernate session holds on to the entities and no sort is
+ * needed. The events are handed over in batches of the fetch size:
+ * StopArrivalDepartureCache and TripDataHistoryCache get a batch one history
+ * per stop or trip at a time, and then the batch is fed to the historical
+ * average caches. Each day being read holds at most MAX_QUEUED_BATCHES
+ * batches, so the memory used is bounded by the number of threads.
+ * <p>
+ * Progress is logged as each day completes. If
+ * transitclock.cache.warmUp.inBackground is set the core does not wait for
+ * the warm up to finish, so predictions start straight away and use
+ * whatever days have been loaded so far.
+ */
+public class CacheWarmUp {
+
+	private final boolean includeTripData;
+
+	private final long checkpointTime;
+
+	private final int numDays;
+
+	private final AtomicInteger daysCompleted = new AtomicInteger();
+
+	private final AtomicLong numArrivalDepartures = new AtomicLong();
+
+	private final IntervalTimer timer = new IntervalTimer();
+
+	// The departures so far, for pairing them with the arrivals in the
+	// LastTraversalCache. Kept across batches and days since they are
+	// processed in time order.
+	private final ConcurrentMap<String, ArrivalDeparture> lastDepartureByVehicle =
+			new ConcurrentHashMap<String, ArrivalDeparture>();
+
+	private final int numThreads;
+
+	// Adds the days to the caches in date order
+	private ExecutorService executor;
+
+	// How many batches a day that is being read can be ahead of the thread
+	// that adds them to the caches
+	private static final int MAX_QUEUED_BATCHES = 10;
+
+	// Marks the end of the batches of a day
+	private static final List<ArrivalDeparture> END_OF_DAY =
+			new ArrayList<ArrivalDeparture>(0);
+
+	private static IntegerConfigValue fetchSize =
+			new IntegerConfigValue("transitclock.cache.warmUp.fetchSize", 1000,
+					"JDBC fetch size used when streaming the "
+					+ "arrivals/departures for populating the historical "
+					+ "caches. Also the number of arrivals/departures that "
+					+ "are added to the caches at a time.");
+
+	private static IntegerConfigValue numReadThreads =
+			new IntegerConfigValue("transitclock.cache.warmUp.numThreads", 4,
+					"Number of threads reading days of arrivals/departures "
+					+ "from the database at the same time when populating "
+					+ "the historical caches. The days are still added to "
+					+ "the caches one at a time in date order.");
+
+	private static BooleanConfigValue inBackground =
+			new BooleanConfigValue("transitclock.cache.warmUp.inBackground",
+					false,
+					"If true then the core doesn't wait for the historical "
+					+ "caches to be populated at startup before processing "
+					+ "AVL data. Predictions then initially use the partial "
+					+ "data.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(CacheWarmUp.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param includeTripData
+	 *            whether to also populate TripDataHistoryCache and
+	 *            FrequencyBasedHistoricalAverageCache
+	 * @param checkpointTime
+	 *            when the CacheCheckpoint that
+	 *            ScheduleBasedHistoricalAverageCache was restored from was
+	 *            written, or 0 if it wasn't restored. Only the
+	 *            arrivals/departures generated after it are added to
+	 *            ScheduleBasedHistoricalAverageCache since the earlier ones
+	 *            are already in the restored averages.
+	 */
+	public CacheWarmUp(boolean includeTripData, long checkpointTime) {
+		this(includeTripData, checkpointTime,
+				CoreConfig.getDaysPopulateHistoricalCache(),
+				numReadThreads.getValue());
+	}
+
+	/**
+	 * Package private so that tests can specify the number of days and
+	 * threads.
+	 */
+	CacheWarmUp(boolean includeTripData, long checkpointTime, int numDays,
+			int numThreads) {
+		this.includeTripData = includeTripData;
+		this.checkpointTime = checkpointTime;
+		this.numDays = numDays;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * @return true if the core shouldn't wait for the warm up to finish
+	 */
+	public static boolean isInBackground() {
+		return inBackground.getValue();
+	}
+
+	/**
+	 * Starts reading in the days in background threads. Returns
+	 * immediately.
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			throw new IllegalStateException("CacheWarmUp already started");
+
+		logger.info("Populating historical caches with {} days of "
+				+ "arrivals/departures using {} threads to read them.",
+				numDays, numThreads);
+
+		// Oldest day first. The pool starts reading the days in the order
+		// they are queued. Since a day is only started once all of the
+		// earlier ones have been, the day being added to the caches is
+		// always being read or is next to be read, even when the later days
+		// being read are waiting for room in their queues.
+		ExecutorService readExecutor = Executors.newFixedThreadPool(
+				numThreads, new NamedThreadFactory("cacheWarmUpRead"));
+		final List<Day> days = new ArrayList<Day>(numDays);
+		Date endDate = Calendar.getInstance().getTime();
+		Date startDate = DateUtils.addDays(endDate, -numDays);
+		for (int i = 0; i < numDays; ++i) {
+			final Day day = new Day(startDate, DateUtils.addDays(startDate, 1));
+			days.add(day);
+			readExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					readDay(day);
+				}
+			});
+			startDate = day.endDate;
+		}
+
+		// The queued days still get read
+		readExecutor.shutdown();
+
+		executor = Executors.newSingleThreadExecutor(
+				new NamedThreadFactory("cacheWarmUp"));
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Day day : days) {
+					if (!warmUpDay(day))
+						return;
+				}
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for all of the days to be processed.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void waitUntilDone() throws InterruptedException {
+		ExecutorService executorToWaitFor;
+		synchronized (this) {
+			executorToWaitFor = executor;
+		}
+		if (executorToWaitFor != null)
+			executorToWaitFor.awaitTermination(Long.MAX_VALUE,
+					TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true once all of the days have been processed
+	 */
+	public boolean isDone() {
+		return daysCompleted.get() >= numDays;
+	}
+
+	/**
+	 * @return number of days processed so far
+	 */
+	public int getDaysCompleted() {
+		return daysCompleted.get();
+	}
+
+	/**
+	 * @return number of days being processed
+	 */
+	public int getNumDays() {
+		return numDays;
+	}
+
+	/**
+	 * @return number of arrivals/departures read in so far
+	 */
+	public long getNumArrivalDepartures() {
+		return numArrivalDepartures.get();
+	}
+
+	/**
+	 * A day to be read in, with the batches that have been read but not yet
+	 * added to the caches.
+	 */
+	static class Day {
+		final Date startDate;
+		final Date endDate;
+		private final BlockingQueue<List<ArrivalDeparture>> batches =
+				new ArrayBlockingQueue<List<ArrivalDeparture>>(
+						MAX_QUEUED_BATCHES);
+
+		Day(Date startDate, Date endDate) {
+			this.startDate = startDate;
+			this.endDate = endDate;
+		}
+	}
+
+	/**
+	 * Reads the day in a thread of the read pool and queues its batches.
+	 * Exceptions are logged so that the other days are still processed. The
+	 * end of the day is always queued so that adding the days to the caches
+	 * continues.
+	 */
+	private void readDay(Day day) {
+		try {
+			queryDay(day);
+		} catch (InterruptedException e) {
+			logger.error("Interrupted reading arrivals/departures for period "
+					+ "{} to {}", day.startDate, day.endDate);
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("Exception reading arrivals/departures for period "
+					+ "{} to {}", day.startDate, day.endDate, e);
+		} finally {
+			try {
+				day.batches.put(END_OF_DAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Streams the arrivals/departures for the day from the database in time
+	 * order and queues them in batches with queueBatch(). Package private so
+	 * that tests can read days without a database.
+	 */
+	void queryDay(Day day) throws InterruptedException {
+		StatelessSession session = HibernateUtils.getSessionFactory(
+				DbSetupConfig.getDbName()).openStatelessSession();
+		try {
+			ScrollableResults results = session
+					.createCriteria(ArrivalDeparture.class)
+					.add(Restrictions.between("time", day.startDate,
+							day.endDate))
+					.addOrder(Order.asc("time"))
+					.setFetchSize(fetchSize.getValue())
+					.setReadOnly(true)
+					.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				int batchSize = Math.max(1, fetchSize.getValue());
+				List<ArrivalDeparture> batch =
+						new ArrayList<ArrivalDeparture>(batchSize);
+				while (results.next()) {
+					batch.add((ArrivalDeparture) results.get(0));
+					if (batch.size() == batchSize) {
+						queueBatch(day, batch);
+						batch = new ArrayList<ArrivalDeparture>(batchSize);
+					}
+				}
+				queueBatch(day, batch);
+			} finally {
+				results.close();
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Queues the batch of the day, waiting if the day is too far ahead of
+	 * adding the batches to the caches.
+	 */
+	static void queueBatch(Day day, List<ArrivalDeparture> batch)
+			throws InterruptedException {
+		if (!batch.isEmpty())
+			day.batches.put(batch);
+	}
+
+	/**
+	 * Adds the batches of the day to the caches as they are read.
+	 *
+	 * @return false if interrupted so that the other days should not be
+	 *         added
+	 */
+	private boolean warmUpDay(Day day) {
+		IntervalTimer dayTimer = new IntervalTimer();
+		long numForDay = 0;
+		try {
+			List<ArrivalDeparture> batch;
+			while ((batch = day.batches.take()) != END_OF_DAY) {
+				put(batch);
+				numForDay += batch.size();
+			}
+			logger.info("Populated historical caches for period {} to {} "
+					+ "with {} arrivals/departures in {} msec. {} of {} days "
+					+ "done.", day.startDate, day.endDate, numForDay,
+					dayTimer.elapsedMsec(), daysCompleted.get() + 1, numDays);
+		} catch (InterruptedException e) {
+			logger.error("Interrupted populating historical caches for "
+					+ "period {} to {}", day.startDate, day.endDate);
+			return false;
+		} catch (Exception e) {
+			logger.error("Exception populating historical caches for period "
+					+ "{} to {}", day.startDate, day.endDate, e);
+			// Skip the rest of the day so that the other days are still
+			// added
+			try {
+				List<ArrivalDeparture> skipped;
+				do {
+					skipped = day.batches.take();
+				} while (skipped != END_OF_DAY);
+			} catch (InterruptedException e1) {
+				return false;
+			}
+		}
+
+		if (daysCompleted.incrementAndGet() == numDays) {
+			logger.info("Done populating historical caches with {} "
+					+ "arrivals/departures in {} msec. ArrivalDepartureStore "
+					+ "holds {} arrivals/departures in {} bytes.",
+					numArrivalDepartures.get(), timer.elapsedMsec(),
+					ArrivalDepartureStore.getInstance().getNumberAdded(),
+					ArrivalDepartureStore.getInstance().getMemoryUsage());
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a batch of arrivals/departures to the caches. The batches must be
+	 * added in time order.
+	 *
+	 * @param arrivalDepartures
+	 *            sorted oldest first
+	 */
+	void put(List<ArrivalDeparture> arrivalDepartures) {
+		StopArrivalDepartureCache.getInstance()
+				.putArrivalDepartures(arrivalDepartures);
+		if (includeTripData)
+			TripDataHistoryCache.getInstance()
+					.putArrivalDepartures(arrivalDepartures);
+		LastTraversalCache.getInstance()
+				.putArrivalDepartures(arrivalDepartures, lastDepartureByVehicle);
+
+		// The averages use the previous event of the trip, which is already
+		// in the TripDataHistoryCache since the batches are in time order
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			if (includeTripData)
+				FrequencyBasedHistoricalAverageCache.getInstance()
+						.putArrivalDeparture(arrivalDeparture);
+			if (isAfterCheckpoint(arrivalDeparture))
+				ScheduleBasedHistoricalAverageCache.getInstance()
+						.putArrivalDeparture(arrivalDeparture);
+		}
+
+		numArrivalDepartures.addAndGet(arrivalDepartures.size());
+	}
+
+	/**
+	 * An arrival/departure is generated when its AVL report is processed,
+	 * which can be well after the time of the arrival/departure itself, so
+	 * the AVL time determines whether it was generated after the checkpoint
+	 * was written.
+	 *
+	 * @return true if the arrival/departure is not already in the restored
+	 *         ScheduleBasedHistoricalAverageCache
+	 */
+	boolean isAfterCheckpoint(ArrivalDeparture arrivalDeparture) {
+		Date avlTime = arrivalDeparture.getAvlTime();
+		long time = avlTime != null ?
+				avlTime.getTime() : arrivalDeparture.getTime();
+		return time > checkpointTime;
+	}
+}
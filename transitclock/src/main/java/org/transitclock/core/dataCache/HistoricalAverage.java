@@ -7,18 +7,46 @@ public class HistoricalAverage {
 	
 	@Override
 	public String toString() {
-		return "HistoricalAverage [count=" + count + ", average=" + average + "]";
+		return "HistoricalAverage [count=" + count + ", average=" + average + ", variance=" + getVariance() + "]";
 	}
 	public HistoricalAverage() {
 		super();
 		count=0;
 		average=0;	
 	}
+	/**
+	 * For a snapshot of an average that is maintained elsewhere.
+	 * 
+	 * @param count
+	 * @param average
+	 * @param variance sample variance of the values
+	 */
+	public HistoricalAverage(int count, double average, double variance) {
+		super();
+		this.count=count;
+		this.average=average;
+		this.m2=count > 1 ? variance*(count-1) : 0;
+	}
+	/**
+	 * Copy of an average, so that it can be updated without changing an
+	 * average that readers might be using.
+	 * 
+	 * @param other
+	 */
+	public HistoricalAverage(HistoricalAverage other) {
+		super();
+		this.count=other.count;
+		this.average=other.average;
+		this.m2=other.m2;
+	}
 
 	private int count;
 	
 	double average;
 	
+	/* sum of the squared differences from the average, for the variance */
+	private double m2;
+	
 	public int getCount() {
 		return count;
 	}
@@ -32,10 +60,20 @@ public class HistoricalAverage {
 		this.average = average;
 	}
 	
+	/**
+	 * @return the sample variance of the values, or 0 if fewer than two
+	 */
+	public double getVariance() {
+		return count > 1 ? m2/(count-1) : 0;
+	}
+	
+	/* Welford's running mean and variance */
 	public void update(double element)
 	{
-		average=((count*average)+element)/(count+1);		
-		count=count+1;		
+		count=count+1;
+		double delta=element-average;
+		average=average+delta/count;
+		m2=m2+delta*(element-average);
 	}
 
 	
@@ -5,12 +5,10 @@ import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
 import org.transitclock.db.structs.HoldingTime;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
+import org.transitclock.utils.Time;
 /**
  * @author Sean Óg Crudden
  * 
@@ -21,7 +19,7 @@ public class HoldingTimeCache {
 	private static final Logger logger = LoggerFactory
 			.getLogger(HoldingTimeCache.class);
 
-	private Cache cache = null;
+	private final DataCache<HoldingTimeCacheKey, HoldingTime> cache;
 	/**
 	 * Gets the singleton instance of this class.
 	 * 
@@ -31,35 +29,20 @@ public class HoldingTimeCache {
 		return singleton;
 	}
 	private HoldingTimeCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
-		}
-		cache = cm.getCache(cacheName);
-		
-		CacheConfiguration config = cache.getCacheConfiguration();
-		
-		config.setEternal(true);
-		
-		config.setMaxEntriesLocalHeap(10000);
-		
-		config.setMaxEntriesLocalDisk(10000);								
+		cache = DataCacheFactory.createCache(cacheName, 10000,
+				Time.SEC_PER_DAY);
 	}
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
 		List<HoldingTimeCacheKey> keys = cache.getKeys();
 		
 		for(HoldingTimeCacheKey key : keys)
 		{
-			Element result=cache.get(key);
-			if(result!=null)
+			HoldingTime value=cache.get(key);
+			if(value!=null)
 			{
 				logger.debug("Key: "+key.toString());
-								
-				Object value=result.getObjectValue();
 												
 				logger.debug("Value: " + value.toString());
 			}
@@ -69,9 +52,7 @@ public class HoldingTimeCache {
 	{
 		HoldingTimeCacheKey key=new HoldingTimeCacheKey(holdingTime);
 		
-		Element errorElement = new Element(key, holdingTime);
-		
-		cache.put(errorElement);
+		cache.put(key, holdingTime);
 		
 	}
 	public void putHoldingTimeExlusiveByStop(HoldingTime holdingTime, Date currentTime)
@@ -84,7 +65,11 @@ public class HoldingTimeCache {
 		{
 			if(key.getStopid().equals(holdingTime.getStopId())&& !(key.getVehicleId().equals(holdingTime.getVehicleId())))
 			{
-				if(getHoldingTime(key).getHoldingTime().before(currentTime))
+				// Could have been evicted since the keys were read
+				HoldingTime existing=getHoldingTime(key);
+				if(existing==null)
+					continue;
+				if(existing.getHoldingTime().before(currentTime))
 				{
 					add=false;
 				}else
@@ -100,17 +85,10 @@ public class HoldingTimeCache {
 	}
 	public HoldingTime getHoldingTime(HoldingTimeCacheKey key)
 	{
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (HoldingTime)result.getObjectValue();			
+		return cache.get(key);
 	}
 	public List<HoldingTimeCacheKey> getKeys()
 	{
-		@SuppressWarnings("unchecked")
-		List<HoldingTimeCacheKey> keys = cache.getKeys();
-		return keys;
+		return cache.getKeys();
 	}
 }
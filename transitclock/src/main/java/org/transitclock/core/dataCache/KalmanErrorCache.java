@@ -2,14 +2,12 @@ package org.transitclock.core.dataCache;
 
 import java.util.List;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.core.Indices;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
+import org.transitclock.utils.Time;
 /**
  * @author Sean Og Crudden
  * 
@@ -20,7 +18,7 @@ public class KalmanErrorCache {
 	private static final Logger logger = LoggerFactory
 			.getLogger(KalmanErrorCache.class);
 
-	private Cache cache = null;
+	private final DataCache<KalmanErrorCacheKey, Double> cache;
 	/**
 	 * Gets the singleton instance of this class.
 	 * 
@@ -31,75 +29,50 @@ public class KalmanErrorCache {
 	}
 	
 	private KalmanErrorCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
-		}
-		cache = cm.getCache(cacheName);
-		
-		CacheConfiguration config = cache.getCacheConfiguration();
-		
-		config.setEternal(true);
-		
-		config.setMaxEntriesLocalHeap(1000000);
-		
-		config.setMaxEntriesLocalDisk(1000000);								
+		// Error values that haven't been updated for over a week are for
+		// trips that are no longer running
+		cache = DataCacheFactory.createCache(cacheName, 1000000,
+				8 * Time.SEC_PER_DAY);
 	}
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
 		List<KalmanErrorCacheKey> keys = cache.getKeys();
 		
 		for(KalmanErrorCacheKey key : keys)
 		{
-			Element result=cache.get(key);
-			if(result!=null)
+			Double value=cache.get(key);
+			if(value!=null)
 			{
 				logger.debug("Key: "+key.toString());
-								
-				Double value=(Double) result.getObjectValue();
 												
 				logger.debug("Error value: "+value);
 			}
 		}		
 	}
 	
-	@SuppressWarnings("unchecked")
-	synchronized public Double getErrorValue(Indices indices) {		
+	public Double getErrorValue(Indices indices) {		
 		
 		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
 		
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (Double)result.getObjectValue();		
+		return cache.get(key);
 	}
-	@SuppressWarnings("unchecked")
-	synchronized public Double getErrorValue(KalmanErrorCacheKey key) {		
+	public Double getErrorValue(KalmanErrorCacheKey key) {		
 						
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (Double)result.getObjectValue();		
+		return cache.get(key);
 	}
-	@SuppressWarnings("unchecked")
-	synchronized public void putErrorValue(Indices indices,  Double value) {
+	public void putErrorValue(Indices indices,  Double value) {
 		
 		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
-		Element errorElement = new Element(key, value);
 		
-		cache.put(errorElement);
+		cache.put(key, value);
 	}				
+	public void putErrorValue(KalmanErrorCacheKey key,  Double value) {
+		
+		cache.put(key, value);
+	}
 	public List<KalmanErrorCacheKey> getKeys()
 	{
-		@SuppressWarnings("unchecked")
-		List<KalmanErrorCacheKey> keys = cache.getKeys();
-		return keys;
+		return cache.getKeys();
 	}
 }
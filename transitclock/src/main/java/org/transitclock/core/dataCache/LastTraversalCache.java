@@ -0,0 +1,342 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.core.Indices;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Block;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.ServiceDayCalculator;
+
+/**
+ * Holds the most recent traversal of each segment, i.e. the departure from a
+ * stop and the arrival at the next stop by the same vehicle on the same trip,
+ * for each (fromStop, toStop, direction). This means that the travel time of
+ * the last vehicle to travel a stop path can be determined in constant time
+ * instead of matching the departures at one stop against the arrivals at the
+ * next.
+ * <p>
+ * For each segment both the most recent traversal and the most recent
+ * traversal by a different vehicle are kept so that the vehicle asking for
+ * the last vehicle can always be excluded.
+ * <p>
+ * Same as when the stop histories were searched, only the vehicle that most
+ * recently departed the from stop is considered. If that vehicle has not yet
+ * arrived at the to stop then there is no last traversal, even if an
+ * earlier vehicle has completed one. So the most recent departures from
+ * each stop are kept as well.
+ * <p>
+ * Updated as arrivals and departures are generated. Each vehicle's
+ * arrivals/departures are processed in order since AVL processing for a
+ * vehicle is synchronized on its VehicleState. Entries are immutable and
+ * are replaced atomically so reads do not lock.
+ */
+public class LastTraversalCache {
+	private static LastTraversalCache singleton = new LastTraversalCache();
+
+	private static final Logger logger = LoggerFactory.getLogger(LastTraversalCache.class);
+
+	/**
+	 * Last departure of each vehicle, so that it can be paired with the
+	 * vehicle's arrival at the next stop.
+	 */
+	private final ConcurrentMap<String, ArrivalDeparture> lastDepartureByVehicle =
+			new ConcurrentHashMap<String, ArrivalDeparture>();
+
+	private final ConcurrentMap<SegmentTraversalKey, Latest<TravelTimeDetails>> traversals =
+			new ConcurrentHashMap<SegmentTraversalKey, Latest<TravelTimeDetails>>();
+
+	/**
+	 * Most recent departures from each stop, keyed with a null toStopId.
+	 */
+	private final ConcurrentMap<SegmentTraversalKey, Latest<ArrivalDeparture>> departures =
+			new ConcurrentHashMap<SegmentTraversalKey, Latest<ArrivalDeparture>>();
+
+	/**
+	 * For determining the service day of the events without creating
+	 * Calendars. Uses the default time zone, which Core sets to the time
+	 * zone of the agency before the caches are created, same as the
+	 * Calendars used by the other caches.
+	 */
+	private final ServiceDayCalculator serviceDays;
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static LastTraversalCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Package private so that tests can create their own instance.
+	 */
+	LastTraversalCache() {
+		serviceDays = new ServiceDayCalculator(TimeZone.getDefault());
+	}
+
+	/**
+	 * @return number of segments with a traversal
+	 */
+	public int getSize() {
+		return traversals.size();
+	}
+
+	/**
+	 * Updates the cache with a newly generated arrival or departure. A
+	 * departure is remembered for the vehicle. An arrival that follows the
+	 * vehicle's departure from the previous stop of the same trip completes a
+	 * traversal of the segment between the two stops.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		putArrivalDeparture(arrivalDeparture, lastDepartureByVehicle);
+	}
+
+	private void putArrivalDeparture(ArrivalDeparture arrivalDeparture,
+			ConcurrentMap<String, ArrivalDeparture> lastDepartureByVehicle) {
+		String vehicleId = arrivalDeparture.getVehicleId();
+		if (vehicleId == null)
+			return;
+
+		if (arrivalDeparture.isDeparture()) {
+			lastDepartureByVehicle.put(vehicleId, arrivalDeparture);
+
+			// Store under the direction and also under any direction
+			update(departures, new SegmentTraversalKey(arrivalDeparture.getStopId(),
+					null, arrivalDeparture.getDirectionId()), arrivalDeparture, arrivalDeparture);
+			if (arrivalDeparture.getDirectionId() != null)
+				update(departures, new SegmentTraversalKey(arrivalDeparture.getStopId(),
+						null, null), arrivalDeparture, arrivalDeparture);
+			return;
+		}
+
+		ArrivalDeparture departure = lastDepartureByVehicle.get(vehicleId);
+		if (departure == null
+				|| departure.getStopPathIndex() != arrivalDeparture.getStopPathIndex() - 1
+				|| departure.getTripIndex() != arrivalDeparture.getTripIndex()
+				|| !departure.getTripId().equals(arrivalDeparture.getTripId())
+				|| departure.getTime() > arrivalDeparture.getTime()
+				|| !sameDay(departure.getTime(), arrivalDeparture.getTime()))
+			return;
+
+		TravelTimeDetails traversal = new TravelTimeDetails(departure, arrivalDeparture);
+
+		logger.debug("Putting traversal {} in LastTraversalCache.", traversal);
+
+		// Store under the direction and also under any direction
+		update(traversals, new SegmentTraversalKey(departure.getStopId(),
+				arrivalDeparture.getStopId(), arrivalDeparture.getDirectionId()),
+				traversal, departure);
+		if (arrivalDeparture.getDirectionId() != null)
+			update(traversals, new SegmentTraversalKey(departure.getStopId(),
+					arrivalDeparture.getStopId(), null), traversal, departure);
+	}
+
+	private static <T> void update(ConcurrentMap<SegmentTraversalKey, Latest<T>> map,
+			SegmentTraversalKey key, T value, ArrivalDeparture departure) {
+		while (true) {
+			Latest<T> existing = map.get(key);
+			if (existing == null) {
+				if (map.putIfAbsent(key, new Latest<T>(value, departure, null, null)) == null)
+					return;
+			} else {
+				Latest<T> updated = existing.with(value, departure);
+				if (updated == existing || map.replace(key, existing, updated))
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the traversal of the segment from fromStopId to toStopId by the
+	 * vehicle, other than the one specified, that most recently departed
+	 * fromStopId on the same day as the specified time. Returns null if that
+	 * vehicle has not yet arrived at toStopId.
+	 *
+	 * @param fromStopId
+	 * @param toStopId
+	 * @param directionId
+	 *            direction of travel or null for any direction
+	 * @param vehicleId
+	 *            vehicle to exclude
+	 * @param time
+	 *            traversal must have started on the same day as this time
+	 * @return the departure and arrival of the traversal or null if there is
+	 *         none
+	 */
+	public TravelTimeDetails getLastTraversal(String fromStopId, String toStopId,
+			String directionId, String vehicleId, long time) {
+		Latest<ArrivalDeparture> stopDepartures = departures.get(
+				new SegmentTraversalKey(fromStopId, null, directionId));
+		if (stopDepartures == null)
+			return null;
+
+		ArrivalDeparture lastDeparture = stopDepartures.excluding(vehicleId);
+		if (lastDeparture == null || !sameDay(lastDeparture.getTime(), time))
+			return null;
+
+		Latest<TravelTimeDetails> existing = traversals.get(
+				new SegmentTraversalKey(fromStopId, toStopId, directionId));
+		if (existing == null)
+			return null;
+
+		// Since it is the most recent departure by another vehicle the
+		// traversal can only be the one for the departure if there is one
+		TravelTimeDetails traversal = existing.excluding(vehicleId);
+		if (traversal == null
+				|| !sameDeparture(traversal.getDeparture(), lastDeparture))
+			return null;
+
+		return traversal;
+	}
+
+	private static boolean sameDeparture(ArrivalDeparture d1, ArrivalDeparture d2) {
+		return d1.getTime() == d2.getTime()
+				&& d1.getVehicleId().equals(d2.getVehicleId())
+				&& d1.getTripId().equals(d2.getTripId());
+	}
+
+	/**
+	 * Returns the indices of the arrival of the last traversal of the
+	 * segment, as used as the key for the Kalman error of that vehicle.
+	 *
+	 * @param traversal
+	 *            as returned by getLastTraversal()
+	 * @return the indices or null if the block cannot be determined
+	 */
+	public static Indices getIndices(TravelTimeDetails traversal) {
+		ArrivalDeparture departure = traversal.getDeparture();
+		Block block = departure.getBlock();
+		/* block is transient in arrival departure so when read from database need to get from dbconfig. */
+		if (block == null && departure.getServiceId() != null && departure.getBlockId() != null) {
+			DbConfig dbConfig = Core.getInstance().getDbConfig();
+			block = dbConfig.getBlock(departure.getServiceId(), departure.getBlockId());
+		}
+		if (block == null)
+			return null;
+
+		return new Indices(block, departure.getTripIndex(),
+				traversal.getArrival().getStopPathIndex(), 0);
+	}
+
+	private boolean sameDay(long time1, long time2) {
+		return serviceDays.getStartOfDay(time1) == serviceDays.getStartOfDay(time2);
+	}
+
+	/**
+	 * Populates the cache from the arrivals/departures in the database so
+	 * that the last vehicle is known straight after a restart.
+	 *
+	 * @param session
+	 * @param startDate
+	 * @param endDate
+	 */
+	public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
+		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+
+		@SuppressWarnings("unchecked")
+		List<ArrivalDeparture> results = new ArrayList<ArrivalDeparture>(
+				criteria.add(Restrictions.between("time", startDate, endDate)).list());
+
+		// Need to process in time order so departures precede arrivals
+		Collections.sort(results, Collections.reverseOrder(new ArrivalDepartureComparator()));
+
+		putArrivalDepartures(results);
+	}
+
+	/**
+	 * Populates the cache from a period of historical arrivals/departures.
+	 * Periods are not necessarily read in time order so the departures and
+	 * arrivals of the period are paired up separately from the live ones.
+	 *
+	 * @param arrivalDepartures
+	 *            events for the period, sorted oldest first
+	 */
+	public void putArrivalDepartures(List<ArrivalDeparture> arrivalDepartures) {
+		putArrivalDepartures(arrivalDepartures,
+				new ConcurrentHashMap<String, ArrivalDeparture>());
+	}
+
+	/**
+	 * Like putArrivalDepartures(List) but for a period that is added in
+	 * several batches, oldest first.
+	 *
+	 * @param arrivalDepartures
+	 *            next batch of events for the period, sorted oldest first
+	 * @param lastDepartureByVehicleForPeriod
+	 *            the departures of the period so far. Start with an empty map
+	 *            and pass the same map for each batch.
+	 */
+	public void putArrivalDepartures(List<ArrivalDeparture> arrivalDepartures,
+			ConcurrentMap<String, ArrivalDeparture> lastDepartureByVehicleForPeriod) {
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			putArrivalDeparture(arrivalDeparture, lastDepartureByVehicleForPeriod);
+		}
+	}
+
+	/**
+	 * Immutable pair of the most recent value for a segment or stop, a
+	 * traversal or a departure, and the most recent value for a vehicle other
+	 * than the one of the most recent value. Ordered by the time of the
+	 * departure of each value.
+	 */
+	private static class Latest<T> {
+		private final T latest;
+		private final ArrivalDeparture latestDeparture;
+		private final T latestOtherVehicle;
+		private final ArrivalDeparture latestOtherVehicleDeparture;
+
+		private Latest(T latest, ArrivalDeparture latestDeparture,
+				T latestOtherVehicle, ArrivalDeparture latestOtherVehicleDeparture) {
+			this.latest = latest;
+			this.latestDeparture = latestDeparture;
+			this.latestOtherVehicle = latestOtherVehicle;
+			this.latestOtherVehicleDeparture = latestOtherVehicleDeparture;
+		}
+
+		private static boolean sameVehicle(ArrivalDeparture d1, ArrivalDeparture d2) {
+			return d1.getVehicleId().equals(d2.getVehicleId());
+		}
+
+		/**
+		 * Returns the Latest updated with the new value, or this if the new
+		 * value is older than what is held.
+		 */
+		private Latest<T> with(T value, ArrivalDeparture departure) {
+			if (departure.getTime() >= latestDeparture.getTime()) {
+				if (sameVehicle(departure, latestDeparture))
+					return new Latest<T>(value, departure,
+							latestOtherVehicle, latestOtherVehicleDeparture);
+				else
+					return new Latest<T>(value, departure, latest, latestDeparture);
+			}
+			if (!sameVehicle(departure, latestDeparture)
+					&& (latestOtherVehicleDeparture == null
+						|| departure.getTime() >= latestOtherVehicleDeparture.getTime()))
+				return new Latest<T>(latest, latestDeparture, value, departure);
+			return this;
+		}
+
+		private T excluding(String vehicleId) {
+			if (!latestDeparture.getVehicleId().equals(vehicleId))
+				return latest;
+			return latestOtherVehicle;
+		}
+	}
+}
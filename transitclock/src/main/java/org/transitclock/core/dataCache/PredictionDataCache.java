@@ -535,6 +535,11 @@ public class PredictionDataCache {
 				}
 			}
 		}
+		
+		// Only the trips of this vehicle need to be updated in the
+		// GTFS-realtime TripUpdates feed
+		TripUpdatesFeedCache.getInstance().updatePredictions(
+				oldPredictionsForVehicle, newPredictionsForVehicle);
 	}
 	
 	/**
@@ -0,0 +1,87 @@
+package org.transitclock.core.dataCache;
+
+/**
+ * Key for LastTraversalCache. Identifies travel from one stop to the next
+ * stop in a direction. A null directionId is used for the entry that holds
+ * traversals in any direction. A null toStopId is used for the entry that
+ * holds the departures from the stop.
+ */
+public class SegmentTraversalKey implements java.io.Serializable {
+
+	private static final long serialVersionUID = 4482106630718712384L;
+
+	private final String fromStopId;
+	private final String toStopId;
+	private final String directionId;
+
+	public SegmentTraversalKey(String fromStopId, String toStopId, String directionId) {
+		super();
+		this.fromStopId = fromStopId;
+		this.toStopId = toStopId;
+		this.directionId = directionId;
+	}
+
+	/**
+	 * @return the fromStopId
+	 */
+	public String getFromStopId() {
+		return fromStopId;
+	}
+
+	/**
+	 * @return the toStopId
+	 */
+	public String getToStopId() {
+		return toStopId;
+	}
+
+	/**
+	 * @return the directionId
+	 */
+	public String getDirectionId() {
+		return directionId;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((directionId == null) ? 0 : directionId.hashCode());
+		result = prime * result + ((fromStopId == null) ? 0 : fromStopId.hashCode());
+		result = prime * result + ((toStopId == null) ? 0 : toStopId.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		SegmentTraversalKey other = (SegmentTraversalKey) obj;
+		if (directionId == null) {
+			if (other.directionId != null)
+				return false;
+		} else if (!directionId.equals(other.directionId))
+			return false;
+		if (fromStopId == null) {
+			if (other.fromStopId != null)
+				return false;
+		} else if (!fromStopId.equals(other.fromStopId))
+			return false;
+		if (toStopId == null) {
+			if (other.toStopId != null)
+				return false;
+		} else if (!toStopId.equals(other.toStopId))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentTraversalKey [fromStopId=" + fromStopId + ", toStopId=" + toStopId
+				+ ", directionId=" + directionId + "]";
+	}
+}
@@ -1,25 +1,25 @@
 /**
- * 
+ *
  */
 package org.transitclock.core.dataCache;
 
-import java.util.Collections;
-import java.util.Date;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.store.Policy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.hibernate.Criteria;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.applications.Core;
+import org.transitclock.configData.CoreConfig;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.utils.Time;
 
@@ -28,31 +28,33 @@ import org.transitclock.utils.Time;
  *         for each stop in a cache. We can use this to look up all event for a
  *         stop for a day. The date used in the key should be the start of the
  *         day concerned.
- * 
- *         TODO this could do with an interface, factory class, and alternative
- *         implementations, perhaps using Infinispan.
+ *         <p>
+ *         The cache is partitioned by service day and then by stop. Each
+ *         stop/day holds its events in a {@link ArrivalDepartureHistory},
+ *         which is locked independently of every other stop so writers for
+ *         different stops never contend. Readers get an immutable snapshot
+ *         without taking any lock. Whole days are dropped once they are older
+ *         than transitclock.tripdatacache.tripDataCacheMaxAgeSec. The events
+ *         themselves are held in the compact ArrivalDepartureStore.
  */
 public class StopArrivalDepartureCache {
 	private static StopArrivalDepartureCache singleton = new StopArrivalDepartureCache();
 
-	private static boolean debug = false;
-
-	final private static String cacheByStop = "arrivalDeparturesByStop";
+	final public static String cacheByStop = "arrivalDeparturesByStop";
 
 	private static final Logger logger = LoggerFactory.getLogger(StopArrivalDepartureCache.class);
 
-	private Cache cache = null;
+	private final ArrivalDepartureStore store;
 
 	/**
-	 * Default is 4 as we need 3 days worth for Kalman Filter implementation
+	 * Keyed on the start of the day (epoch msec) and then on stop ID.
 	 */
-	private static final IntegerConfigValue tripDataCacheMaxAgeSec = new IntegerConfigValue(
-			"transitclock.tripdatacache.tripDataCacheMaxAgeSec", 4 * Time.SEC_PER_DAY,
-			"How old an arrivaldeparture has to be before it is removed from the cache ");
+	private final ConcurrentMap<Long, ConcurrentMap<String, ArrivalDepartureHistory>> days =
+			new ConcurrentHashMap<Long, ConcurrentMap<String, ArrivalDepartureHistory>>();
 
 	/**
 	 * Gets the singleton instance of this class.
-	 * 
+	 *
 	 * @return
 	 */
 	public static StopArrivalDepartureCache getInstance() {
@@ -60,41 +62,44 @@ public class StopArrivalDepartureCache {
 	}
 
 	private StopArrivalDepartureCache() {
-		CacheManager cm = CacheManager.getInstance();
-		EvictionAgePolicy evictionPolicy = null;
-		if (tripDataCacheMaxAgeSec != null) {
-			evictionPolicy = new EvictionAgePolicy(tripDataCacheMaxAgeSec.getValue() * Time.MS_PER_SEC);
-		} else {
-			evictionPolicy = new EvictionAgePolicy(4 * Time.SEC_PER_DAY * Time.MS_PER_SEC);
-		}
-
-		if (cm.getCache(cacheByStop) == null) {
-			cm.addCache(cacheByStop);
-		}
-		cache = cm.getCache(cacheByStop);
-
-		// CacheConfiguration config = cache.getCacheConfiguration();
+		this(ArrivalDepartureStore.getInstance());
+	}
 
-		// cache.setMemoryStoreEvictionPolicy(evictionPolicy);
+	/**
+	 * Package private so that benchmarks can create their own instance.
+	 */
+	StopArrivalDepartureCache(ArrivalDepartureStore store) {
+		this.store = store;
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StopArrivalDepartureCacheKey> getKeys() {
-		return (List<StopArrivalDepartureCacheKey>) cache.getKeys();
+		List<StopArrivalDepartureCacheKey> keys = new ArrayList<StopArrivalDepartureCacheKey>();
+		for (Map.Entry<Long, ConcurrentMap<String, ArrivalDepartureHistory>> day : days.entrySet()) {
+			for (String stopId : day.getValue().keySet()) {
+				keys.add(new StopArrivalDepartureCacheKey(stopId, new Date(day.getKey())));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return total number of stop/day entries in the cache
+	 */
+	public int getSize() {
+		int size = 0;
+		for (ConcurrentMap<String, ArrivalDepartureHistory> day : days.values()) {
+			size += day.size();
+		}
+		return size;
 	}
 
 	public void logCache(Logger logger) {
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
-		List<StopArrivalDepartureCacheKey> keys = cache.getKeys();
 
-		for (StopArrivalDepartureCacheKey key : keys) {
-			Element result = cache.get(key);
-			if (result != null) {
+		for (StopArrivalDepartureCacheKey key : getKeys()) {
+			List<ArrivalDeparture> ads = getStopHistory(key);
+			if (ads != null) {
 				logger.debug("Key: " + key.toString());
-				@SuppressWarnings("unchecked")
-
-				List<ArrivalDeparture> ads = (List<ArrivalDeparture>) result.getObjectValue();
 
 				for (ArrivalDeparture ad : ads) {
 					logger.debug(ad.toString());
@@ -104,129 +109,164 @@ public class StopArrivalDepartureCache {
 
 	}
 
-	@SuppressWarnings("unchecked")
-	synchronized public List<ArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+	/**
+	 * Returns an immutable snapshot of the arrivals/departures for the stop and
+	 * day specified by the key, most recent first. Does not lock.
+	 *
+	 * @param key
+	 * @return the events for the stop/day or null if there are none
+	 */
+	public List<ArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
 
-		//logger.debug(cache.toString());
-		Calendar date = Calendar.getInstance();
-		date.setTime(key.getDate());
+		long startOfDay = startOfDay(key.getDate());
+		key.setDate(new Date(startOfDay));
 
-		date.set(Calendar.HOUR_OF_DAY, 0);
-		date.set(Calendar.MINUTE, 0);
-		date.set(Calendar.SECOND, 0);
-		date.set(Calendar.MILLISECOND, 0);
-		key.setDate(date.getTime());
-		Element result = cache.get(key);
+		ConcurrentMap<String, ArrivalDepartureHistory> day = days.get(startOfDay);
+		if (day == null)
+			return null;
 
-		if (result != null) {
-			return (List<ArrivalDeparture>) result.getObjectValue();
+		ArrivalDepartureHistory history = day.get(key.getStopid());
+		if (history != null) {
+			return history.snapshot();
 		} else {
 			return null;
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	synchronized public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
-
-		logger.debug("Putting :" + arrivalDeparture.toString() + " in StopArrivalDepartureCache cache.");
-	
-		Calendar date = Calendar.getInstance();
-		date.setTime(arrivalDeparture.getDate());
-
-		date.set(Calendar.HOUR_OF_DAY, 0);
-		date.set(Calendar.MINUTE, 0);
-		date.set(Calendar.SECOND, 0);
-		date.set(Calendar.MILLISECOND, 0);
+	public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
-		StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(arrivalDeparture.getStop().getId(),
-				date.getTime());
+		logger.debug("Putting :{} in StopArrivalDepartureCache cache.", arrivalDeparture);
 
-		List<ArrivalDeparture> list = null;
+		long startOfDay = startOfDay(arrivalDeparture.getDate());
 
-		Element result = cache.get(key);
+		StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(arrivalDeparture.getStopId(),
+				new Date(startOfDay));
 
-		if (result != null && result.getObjectValue() != null) {
-			list = (List<ArrivalDeparture>) result.getObjectValue();
-			cache.remove(key);
-		} else {
-			list = new ArrayList<ArrivalDeparture>();
-		}
-		
-		list.add(arrivalDeparture);
-		
-		Collections.sort(list, new ArrivalDepartureComparator());
-		
-		// This is java 1.8 list.sort(new ArrivalDepartureComparator());
-		
-		Element arrivalDepartures = new Element(key, Collections.synchronizedList(list));
-
-		cache.put(arrivalDepartures);
+		getOrCreateHistory(startOfDay, key.getStopid()).add(arrivalDeparture);
 
 		return key;
 	}
 
-	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
-		return iterable == null ? Collections.<T> emptyList() : iterable;
-	}
+	/**
+	 * Adds a batch of arrivals/departures, such as those read in from the
+	 * database when populating the cache. The events are grouped by stop and
+	 * day and each group is added to its history in one go instead of event
+	 * by event.
+	 *
+	 * @param arrivalDepartures
+	 *            sorted oldest first
+	 */
+	public void putArrivalDepartures(List<ArrivalDeparture> arrivalDepartures) {
+		Map<Long, Map<String, List<ArrivalDeparture>>> byDayAndStop =
+				new HashMap<Long, Map<String, List<ArrivalDeparture>>>();
+		long startOfDay = 0;
+		long endOfDay = 0;
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			// Batches are usually a single day so only determine the start of
+			// the day when it changes
+			if (arrivalDeparture.getTime() < startOfDay
+					|| arrivalDeparture.getTime() >= endOfDay) {
+				startOfDay = startOfDay(arrivalDeparture.getDate());
+				// Not simply a day of msec because of daylight savings
+				Calendar calendar = Calendar.getInstance();
+				calendar.setTimeInMillis(startOfDay);
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+				endOfDay = calendar.getTimeInMillis();
+			}
+			Map<String, List<ArrivalDeparture>> byStop = byDayAndStop.get(startOfDay);
+			if (byStop == null) {
+				byStop = new HashMap<String, List<ArrivalDeparture>>();
+				byDayAndStop.put(startOfDay, byStop);
+			}
+			List<ArrivalDeparture> events = byStop.get(arrivalDeparture.getStopId());
+			if (events == null) {
+				events = new ArrayList<ArrivalDeparture>();
+				byStop.put(arrivalDeparture.getStopId(), events);
+			}
+			events.add(arrivalDeparture);
+		}
 
-	public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
-		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+		for (Map.Entry<Long, Map<String, List<ArrivalDeparture>>> day : byDayAndStop.entrySet()) {
+			for (Map.Entry<String, List<ArrivalDeparture>> stop : day.getValue().entrySet()) {
+				getOrCreateHistory(day.getKey(), stop.getKey()).addAll(stop.getValue());
+			}
+		}
+	}
 
-		@SuppressWarnings("unchecked")
-		List<ArrivalDeparture> results = criteria.add(Restrictions.between("time", startDate, endDate)).list();
+	private ArrivalDepartureHistory getOrCreateHistory(long startOfDay, String stopId) {
+		ConcurrentMap<String, ArrivalDepartureHistory> day = days.get(startOfDay);
+		if (day == null) {
+			ConcurrentMap<String, ArrivalDepartureHistory> newDay =
+					new ConcurrentHashMap<String, ArrivalDepartureHistory>();
+			day = days.putIfAbsent(startOfDay, newDay);
+			if (day == null) {
+				day = newDay;
+				evictOldDays(startOfDay);
+			}
+		}
 
-		for (ArrivalDeparture result : results) {
-			StopArrivalDepartureCache.getInstance().putArrivalDeparture(result);
+		ArrivalDepartureHistory history = day.get(stopId);
+		if (history == null) {
+			ArrivalDepartureHistory newHistory = new ArrivalDepartureHistory(store);
+			history = day.putIfAbsent(stopId, newHistory);
+			if (history == null)
+				history = newHistory;
 		}
+		return history;
 	}
 
 	/**
-	 * This policy evicts arrival departures from the cache when they are X
-	 * (age) number of milliseconds old
-	 * 
+	 * Removes every day partition that is older than
+	 * tripDataCacheMaxAgeSec. Called whenever a new day partition is created so
+	 * is cheap and infrequent. Uses the system time of the Core so that old
+	 * data in playback or batch mode is not evicted as soon as it is added,
+	 * and never evicts the day that was just created since the caller is
+	 * about to add to it.
+	 *
+	 * @param newDay
+	 *            start of the day partition that was just created
 	 */
-	private class EvictionAgePolicy implements Policy {
-		private String name = "AGE";
-
-		private long age = 0L;
-
-		public EvictionAgePolicy(long age) {
-			super();
-			this.age = age;
+	private void evictOldDays(long newDay) {
+		long oldestAllowed = Core.getSystemTimeOrNow()
+				- CoreConfig.getTripDataCacheMaxAgeSec() * Time.MS_PER_SEC;
+		for (Long startOfDay : days.keySet()) {
+			if (startOfDay != newDay
+					&& startOfDay + Time.MS_PER_DAY < oldestAllowed) {
+				logger.debug("Evicting StopArrivalDepartureCache entries for day {}",
+						new Date(startOfDay));
+				days.remove(startOfDay);
+			}
 		}
+	}
 
-		@Override
-		public boolean compare(Element arg0, Element arg1) {
-			if (arg0.getObjectKey() instanceof StopArrivalDepartureCacheKey
-					&& arg1.getObjectKey() instanceof StopArrivalDepartureCacheKey) {
-				if (((StopArrivalDepartureCacheKey) arg0.getObjectKey()).getDate()
-						.after(((StopArrivalDepartureCacheKey) arg1.getObjectKey()).getDate())) {
-					return true;
-				}
+	/**
+	 * Truncates the date to the start of the day using the default time zone,
+	 * as has always been done for the keys of this cache.
+	 */
+	private static long startOfDay(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
 
-			}
-			return false;
-		}
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
 
-		@Override
-		public String getName() {
-			return name;
-		}
+		return calendar.getTimeInMillis();
+	}
 
-		@Override
-		public Element selectedBasedOnPolicy(Element[] arg0, Element arg1) {
+	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
+		return iterable == null ? Collections.<T> emptyList() : iterable;
+	}
 
-			for (int i = 0; i < arg0.length; i++) {
+	public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
+		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
 
-				if (arg0[i].getObjectKey() instanceof TripKey) {
-					StopArrivalDepartureCacheKey key = (StopArrivalDepartureCacheKey) arg0[i].getObjectKey();
+		@SuppressWarnings("unchecked")
+		List<ArrivalDeparture> results = criteria.add(Restrictions.between("time", startDate, endDate)).list();
 
-					if (Calendar.getInstance().getTimeInMillis() - key.getDate().getTime() > age) {
-						return arg0[i];
-					}
-				}
-			}
-			return null;
+		for (ArrivalDeparture result : results) {
+			StopArrivalDepartureCache.getInstance().putArrivalDeparture(result);
 		}
 	}
 }
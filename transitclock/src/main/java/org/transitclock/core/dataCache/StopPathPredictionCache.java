@@ -7,13 +7,11 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.core.Indices;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.PredictionForStopPath;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
+import org.transitclock.utils.Time;
 
 public class StopPathPredictionCache {
 	final private static String cacheName = "StopPathPredictionCache";
@@ -21,41 +19,26 @@ public class StopPathPredictionCache {
 	private static final Logger logger = LoggerFactory
 			.getLogger(StopPathPredictionCache.class);
 	
-	private Cache cache = null;
+	private final DataCache<StopPathCacheKey, List<PredictionForStopPath>> cache;
 	
 	public static StopPathPredictionCache getInstance() {
 		return singleton;
 	}
 	private StopPathPredictionCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
-		}
-		cache = cm.getCache(cacheName);
-		
-		CacheConfiguration config = cache.getCacheConfiguration();
-		
-		config.setEternal(true);
-		
-		config.setMaxEntriesLocalHeap(1000000);
-		
-		config.setMaxEntriesLocalDisk(1000000);								
+		cache = DataCacheFactory.createCache(cacheName, 1000000,
+				Time.SEC_PER_DAY);
 	}
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
 		List<StopPathCacheKey> keys = cache.getKeys();
 		
 		for(StopPathCacheKey key : keys)
 		{								
-			Element result=cache.get(key);
+			List<PredictionForStopPath> predictions = cache.get(key);
 			
-			if(result!=null)
+			if(predictions!=null)
 			{
-				List<PredictionForStopPath> predictions = (List<PredictionForStopPath>) result.getObjectValue();
-				
 				for(PredictionForStopPath prediction: predictions)
 				{
 					logger.debug(prediction.toString());
@@ -64,43 +47,30 @@ public class StopPathPredictionCache {
 			}
 		}		
 	}
-	@SuppressWarnings("unchecked")
-	synchronized public List<PredictionForStopPath> getPredictions(StopPathCacheKey key) {		
+	public List<PredictionForStopPath> getPredictions(StopPathCacheKey key) {		
 						
-		Element result = cache.get(key);
-		logCache(logger);
-		if(result==null)
-			return null;
-		else
-			return (List<PredictionForStopPath>) result.getObjectValue();		
+		return cache.get(key);
 	}
 	public void putPrediction(PredictionForStopPath prediction)
 	{
 		StopPathCacheKey key=new StopPathCacheKey(prediction.getTripId(), prediction.getStopPathIndex());
 		putPrediction(key,prediction);
 	}
-	@SuppressWarnings("unchecked")
-	synchronized public void putPrediction(StopPathCacheKey key,  PredictionForStopPath prediction) {
+	public void putPrediction(StopPathCacheKey key,  PredictionForStopPath prediction) {
 		
-		List<PredictionForStopPath> list = null;
-		Element result = cache.get(key);
+		List<PredictionForStopPath> list = cache.get(key);
 		
-		if (result != null && result.getObjectValue() != null) {
-			list = (List<PredictionForStopPath>) result.getObjectValue();
-			cache.remove(key);
-		} else {
-			list = new ArrayList<PredictionForStopPath>();
+		if (list == null) {
+			List<PredictionForStopPath> newList = 
+					Collections.synchronizedList(new ArrayList<PredictionForStopPath>());
+			list = cache.putIfAbsent(key, newList);
+			if (list == null)
+				list = newList;
 		}
 		list.add(prediction);
-		
-		Element predictions = new Element(key, Collections.synchronizedList(list));
-
-		cache.put(predictions);				
 	}		
 	public List<StopPathCacheKey> getKeys()
 	{
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		return keys;
+		return cache.getKeys();
 	}
 }
@@ -8,14 +8,14 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.store.Policy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.apache.commons.beanutils.BeanComparator;
 import org.apache.commons.lang3.time.DateUtils;
@@ -25,7 +25,10 @@ import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
-import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Trip;
@@ -37,11 +40,19 @@ import org.transitclock.utils.Time;
  * 		   This is a Cache to hold historical arrival departure data for trips. It
  *         is intended to look up a trips historical data when a trip starts and
  *         place in cache for use in generating predictions based on a Kalman
- *         filter. Uses Ehcache for caching rather than just using a concurrent
- *         hashmap. This approach to holding data in memory for transitime needs
- *         to be proven.
- *         
- *         TODO this could do with an interface, factory class, and alternative implementations, perhaps using Infinispan.
+ *         filter. The storage is a DataCache from DataCacheFactory, whose
+ *         entries expire once they are older than tripDataCacheMaxAgeSec.
+ *         <p>
+ *         Also maintains a secondary index keyed by (tripId, startTime,
+ *         stopPathIndex) that holds, per day, the arrival at the stop path
+ *         and the departure from the previous stop path. This allows the
+ *         travel times for a stop path over the last N days to be found with a
+ *         single lookup instead of scanning the trip history of each day.
+ *         <p>
+ *         The cache elements and the index only hold the ids of the events in
+ *         the ArrivalDepartureStore. The history for a trip is kept sorted
+ *         most recent first as it is added to, so readers get an immutable
+ *         snapshot and no longer sort the list themselves.
  */
 public class TripDataHistoryCache{
 	private static TripDataHistoryCache singleton = new TripDataHistoryCache();
@@ -54,15 +65,21 @@ public class TripDataHistoryCache{
 	private static final Logger logger = LoggerFactory
 			.getLogger(TripDataHistoryCache.class);
 
-	private Cache cache = null;
+	private final DataCache<TripKey, ArrivalDepartureHistory> cache;
+
+	private final ArrivalDepartureStore store = ArrivalDepartureStore.getInstance();
+
+	// Used in the travel time index for a departure or arrival that is not known
+	private static final int NO_EVENT = -1;
 
 	/**
-	 * Default is 4 as we need 3 days worth for Kalman Filter implementation
+	 * Travel time index. For each stop path of a trip holds the store ids of
+	 * the most recent departure from the previous stop and arrival at the
+	 * stop, keyed by the start of the day. The two ids are packed into a long,
+	 * departure in the upper half, see pack(). Read without locking.
 	 */
-	private static final IntegerConfigValue tripDataCacheMaxAgeSec = new IntegerConfigValue(
-			"transitclock.tripdatacache.tripDataCacheMaxAgeSec",
-			15 * Time.SEC_PER_DAY,
-			"How old an arrivaldeparture has to be before it is removed from the cache ");
+	private final ConcurrentMap<TripStopPathKey, ConcurrentNavigableMap<Long, Long>> travelTimesIndex =
+			new ConcurrentHashMap<TripStopPathKey, ConcurrentNavigableMap<Long, Long>>();
 
 	/**
 	 * Gets the singleton instance of this class.
@@ -74,26 +91,8 @@ public class TripDataHistoryCache{
 	}
 
 	private TripDataHistoryCache() {
-		CacheManager cm = CacheManager.getInstance();
-		EvictionAgePolicy evictionPolicy = null;
-		if(tripDataCacheMaxAgeSec!=null)
-		{
-			evictionPolicy = new EvictionAgePolicy(
-				tripDataCacheMaxAgeSec.getValue() * Time.MS_PER_SEC);
-		}else
-		{
-			evictionPolicy = new EvictionAgePolicy(
-					15 * Time.SEC_PER_DAY *Time.MS_PER_SEC);
-		}
-
-		if (cm.getCache(cacheByTrip) == null) {
-			cm.addCache(cacheByTrip);
-		}
-		cache = cm.getCache(cacheByTrip);
-		
-		//CacheConfiguration config = cache.getCacheConfiguration();							
-		/*TODO We need to refine the eviction policy. */
-		cache.setMemoryStoreEvictionPolicy(evictionPolicy);
+		cache = DataCacheFactory.createCache(cacheByTrip, 1000000,
+				CoreConfig.getTripDataCacheMaxAgeSec());
 	}
 	public List<TripKey> getKeys()
 	{
@@ -102,18 +101,16 @@ public class TripDataHistoryCache{
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
 		List<TripKey> keys = cache.getKeys();
 		
 		for(TripKey key : keys)
 		{
-			Element result=cache.get(key);
+			ArrivalDepartureHistory result=cache.get(key);
 			if(result!=null)
 			{
 				logger.debug("Key: "+key.toString());
-				@SuppressWarnings("unchecked")
 				
-				List<ArrivalDeparture> ads=(List<ArrivalDeparture>) result.getObjectValue();
+				List<ArrivalDeparture> ads=result.snapshot();
 												
 				for(ArrivalDeparture ad : ads)
 				{
@@ -124,16 +121,28 @@ public class TripDataHistoryCache{
 		
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Returns an immutable snapshot of the arrivals/departures for the trip,
+	 * most recent first.
+	 * 
+	 * @param tripKey
+	 * @return the events for the trip or null if there are none
+	 */
 	public List<ArrivalDeparture> getTripHistory(TripKey tripKey) {
 
 		//logger.debug(cache.toString());
 
-		Element result = cache.get(tripKey);
+		// Older events may no longer be in the store. Uses the system time
+		// of the Core so that this works in playback mode.
+		if (Core.getSystemTimeOrNow() - tripKey.getTripStartDate().getTime()
+				> CoreConfig.getTripDataCacheMaxAgeSec() * Time.MS_PER_SEC)
+			return null;
+
+		ArrivalDepartureHistory result = cache.get(tripKey);
 
 		if(result!=null)
 		{						
-			return (List<ArrivalDeparture>) result.getObjectValue();
+			return result.snapshot();
 		}
 		else
 		{
@@ -141,8 +150,24 @@ public class TripDataHistoryCache{
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	synchronized public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+	public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		
+		Trip trip=dbConfig.getTrip(arrivalDeparture.getTripId());
+		
+		return putArrivalDeparture(arrivalDeparture, trip.getStartTime());
+	}
+
+	/**
+	 * Adds the arrival/departure for the trip with the start time
+	 * 
+	 * @param arrivalDeparture
+	 * @param tripStartTime
+	 *            start time of the trip, as used in the TripKey
+	 * @return the key of the trip history
+	 */
+	synchronized TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture,
+			Integer tripStartTime) {
 		
 		logger.debug("Putting :"+arrivalDeparture.toString() + " in TripDataHistoryCache cache.");
 		/* just put todays time in for last three days to aid development. This means it will kick in in 1 days rather than 3. Perhaps be a good way to start rather than using default transiTime method but I doubt it. */
@@ -157,36 +182,211 @@ public class TripDataHistoryCache{
 									
 			nearestDay=DateUtils.addDays(nearestDay, i*-1);
 			
-			DbConfig dbConfig = Core.getInstance().getDbConfig();
-			
-			Trip trip=dbConfig.getTrip(arrivalDeparture.getTripId());
-			
 			tripKey = new TripKey(arrivalDeparture.getTripId(),
 					nearestDay,
-					trip.getStartTime());
+					tripStartTime);
 			
-			List<ArrivalDeparture> list = null;
-	
-			Element result = cache.get(tripKey);
-	
-			if (result != null && result.getObjectValue() != null) {
-				list = (List<ArrivalDeparture>) result.getObjectValue();
-				cache.remove(tripKey);
-			} else {
-				list = new ArrayList<ArrivalDeparture>();
-			}
-			
-			list.add(arrivalDeparture);									
-			
-			Element arrivalDepartures = new Element(tripKey, Collections.synchronizedList(list));
-						
-			cache.put(arrivalDepartures);															
+			// Added in place. Readers hold their own snapshot.
+			getOrCreateHistory(tripKey).add(arrivalDeparture);									
 											
-			
+			updateTravelTimesIndex(arrivalDeparture, tripStartTime, nearestDay);
 		}				
 		return tripKey;
 	}
 
+	/**
+	 * Adds a batch of arrivals/departures, such as a day read in from the
+	 * database when populating the cache. The events are grouped by trip and
+	 * each trip history is built in one go instead of event by event.
+	 * 
+	 * @param arrivalDepartures
+	 *            sorted oldest first
+	 */
+	synchronized public void putArrivalDepartures(List<ArrivalDeparture> arrivalDepartures) {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		
+		Map<TripKey, List<ArrivalDeparture>> byTrip =
+				new LinkedHashMap<TripKey, List<ArrivalDeparture>>();
+		List<TripKey> tripKeys = new ArrayList<TripKey>(arrivalDepartures.size());
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			Date nearestDay = DateUtils.truncate(new Date(arrivalDeparture.getTime()), Calendar.DAY_OF_MONTH);
+			
+			Trip trip = dbConfig.getTrip(arrivalDeparture.getTripId());
+			
+			TripKey tripKey = new TripKey(arrivalDeparture.getTripId(),
+					nearestDay,
+					trip.getStartTime());
+			
+			List<ArrivalDeparture> events = byTrip.get(tripKey);
+			if (events == null) {
+				events = new ArrayList<ArrivalDeparture>();
+				byTrip.put(tripKey, events);
+			}
+			events.add(arrivalDeparture);
+			tripKeys.add(tripKey);
+		}
+		
+		for (Map.Entry<TripKey, List<ArrivalDeparture>> entry : byTrip.entrySet()) {
+			getOrCreateHistory(entry.getKey()).addAll(entry.getValue());
+		}
+		
+		// The events are now in the store so the index can refer to them
+		for (int i = 0; i < arrivalDepartures.size(); ++i) {
+			TripKey tripKey = tripKeys.get(i);
+			updateTravelTimesIndex(arrivalDepartures.get(i),
+					tripKey.getStartTime(), tripKey.getTripStartDate());
+		}
+	}
+
+	private ArrivalDepartureHistory getOrCreateHistory(TripKey tripKey) {
+		ArrivalDepartureHistory history = cache.get(tripKey);
+		
+		if (history == null) {
+			history = new ArrivalDepartureHistory(store);
+			cache.put(tripKey, history);
+		}
+		return history;
+	}
+
+	/**
+	 * Updates the travel time index with the arrival/departure. An arrival
+	 * is recorded against its own stop path and a departure against the
+	 * following stop path, since it is the start of that stop path. When
+	 * there are several candidates for the same day the most recent one is
+	 * kept, which is what findPreviousDepartureEvent(List, ArrivalDeparture)
+	 * returns.
+	 * Called while synchronized on this cache so there is only one writer.
+	 * 
+	 * @param arrivalDeparture
+	 * @param startTime
+	 *            start time of the trip, as used in the TripKey
+	 * @param nearestDay
+	 *            start of the day the arrival/departure is for
+	 */
+	private void updateTravelTimesIndex(ArrivalDeparture arrivalDeparture,
+			Integer startTime, Date nearestDay) {
+		int stopPathIndex = arrivalDeparture.isArrival() ?
+				arrivalDeparture.getStopPathIndex() : arrivalDeparture.getStopPathIndex() + 1;
+
+		TripStopPathKey key = new TripStopPathKey(arrivalDeparture.getTripId(),
+				startTime, stopPathIndex);
+
+		ConcurrentNavigableMap<Long, Long> days = travelTimesIndex.get(key);
+		if (days == null) {
+			days = new ConcurrentSkipListMap<Long, Long>();
+			travelTimesIndex.put(key, days);
+		}
+
+		Long existing = days.get(nearestDay.getTime());
+		int departureId = existing != null ? departureId(existing) : NO_EVENT;
+		int arrivalId = existing != null ? arrivalId(existing) : NO_EVENT;
+
+		// Already added to the store by the trip history
+		int id = store.add(arrivalDeparture);
+		if (arrivalDeparture.isArrival()) {
+			if (arrivalId == NO_EVENT || arrivalDeparture.getTime() >= store.getTime(arrivalId))
+				arrivalId = id;
+		} else {
+			if (departureId == NO_EVENT || arrivalDeparture.getTime() >= store.getTime(departureId))
+				departureId = id;
+		}
+
+		// Both ids are replaced in one put so readers always see a
+		// consistent pair
+		days.put(nearestDay.getTime(), pack(departureId, arrivalId));
+
+		// Days that are too old to be in the cache are no longer of use
+		long oldestAllowed = nearestDay.getTime() - CoreConfig.getTripDataCacheMaxAgeSec() * Time.MS_PER_SEC;
+		days.headMap(oldestAllowed).clear();
+	}
+
+	private static long pack(int departureId, int arrivalId) {
+		return ((long) departureId << 32) | (arrivalId & 0xFFFFFFFFL);
+	}
+
+	private static int departureId(long ids) {
+		return (int) (ids >> 32);
+	}
+
+	private static int arrivalId(long ids) {
+		return (int) ids;
+	}
+
+	/**
+	 * Returns the event from the store, or null if it is not known or is no
+	 * longer held by the store.
+	 */
+	private ArrivalDeparture event(int id) {
+		return id != NO_EVENT ? store.get(id) : null;
+	}
+
+	/**
+	 * Returns the travel times for the stop path for up to numDays of the
+	 * numDaysLookBack days before startDate, most recent day first. Only days
+	 * where both the departure from the previous stop and the arrival at the
+	 * stop are known are returned. Does not lock and does not scan the trip
+	 * histories.
+	 * 
+	 * @param tripId
+	 * @param startTime
+	 *            start time of the trip, as used in the TripKey
+	 * @param stopPathIndex
+	 * @param startDate
+	 *            day to look back from. Data for this day is not included.
+	 * @param numDaysLookBack
+	 *            how many days to look back
+	 * @param numDays
+	 *            max number of travel times to return
+	 * @return list of travel times, possibly empty
+	 */
+	public List<TravelTimeDetails> getLastDaysTravelTimes(String tripId,
+			Integer startTime, int stopPathIndex, Date startDate,
+			int numDaysLookBack, int numDays) {
+		List<TravelTimeDetails> times = new ArrayList<TravelTimeDetails>();
+
+		ConcurrentNavigableMap<Long, Long> days =
+				travelTimesIndex.get(new TripStopPathKey(tripId, startTime, stopPathIndex));
+		if (days == null)
+			return times;
+
+		long lastDay = DateUtils.truncate(startDate, Calendar.DAY_OF_MONTH).getTime();
+		long firstDay = DateUtils.truncate(DateUtils.addDays(startDate, -numDaysLookBack),
+				Calendar.DAY_OF_MONTH).getTime();
+
+		for (Long ids : days.subMap(firstDay, true, lastDay, false)
+				.descendingMap().values()) {
+			if (times.size() >= numDays)
+				break;
+			ArrivalDeparture departure = event(departureId(ids));
+			ArrivalDeparture arrival = event(arrivalId(ids));
+			if (departure != null && arrival != null)
+				times.add(new TravelTimeDetails(departure, arrival));
+		}
+		return times;
+	}
+
+	/**
+	 * Indexed equivalent of findPreviousDepartureEvent(). Returns the most
+	 * recent departure from the stop before the arrival, for the trip and
+	 * day specified by the trip key.
+	 * 
+	 * @param tripKey
+	 * @param arrival
+	 * @return the departure or null if there is none
+	 */
+	public ArrivalDeparture findPreviousDepartureEvent(TripKey tripKey, ArrivalDeparture arrival) {
+		ConcurrentNavigableMap<Long, Long> days = travelTimesIndex.get(
+				new TripStopPathKey(tripKey.getTripId(), tripKey.getStartTime(), arrival.getStopPathIndex()));
+		if (days == null)
+			return null;
+
+		Long ids = days.get(tripKey.getTripStartDate().getTime());
+		if (ids == null)
+			return null;
+
+		return event(departureId(ids));
+	}
+
 	public void populateCacheFromDb(Session session, Date startDate, Date endDate)
 	{
  		Criteria criteria =session.createCriteria(ArrivalDeparture.class);				
@@ -201,9 +401,12 @@ public class TripDataHistoryCache{
 	}
 	
 	
+	/**
+	 * The list must be sorted most recent first, as returned by
+	 * getTripHistory().
+	 */
 	static public ArrivalDeparture findPreviousArrivalEvent(List<ArrivalDeparture> arrivalDepartures,ArrivalDeparture current)
 	{
-		Collections.sort(arrivalDepartures, new ArrivalDepartureComparator());
 		for (ArrivalDeparture tocheck : emptyIfNull(arrivalDepartures)) 
 		{
 			if(tocheck.getStopId().equals(current.getStopId()) && (current.isDeparture() && tocheck.isArrival()))
@@ -213,9 +416,12 @@ public class TripDataHistoryCache{
 		}
 		return null;
 	}
+	/**
+	 * The list must be sorted most recent first, as returned by
+	 * getTripHistory().
+	 */
 	static public ArrivalDeparture findPreviousDepartureEvent(List<ArrivalDeparture> arrivalDepartures,ArrivalDeparture current)
 	{	
-		Collections.sort(arrivalDepartures, new ArrivalDepartureComparator());							
 		for (ArrivalDeparture tocheck : emptyIfNull(arrivalDepartures)) 
 		{
 			try {
@@ -234,63 +440,4 @@ public class TripDataHistoryCache{
 	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
 		return iterable == null ? Collections.<T> emptyList() : iterable;
 	}
-	/**
-	 * 	This policy evicts arrival departures from the cache
-	 *  when they are X (age) number of milliseconds old
-	 * 
-	 */
-	private class EvictionAgePolicy implements Policy {
-		private String name = "AGE";
-
-		private long age = 0L;
-
-		public EvictionAgePolicy(long age) {
-			super();
-			this.age = age;
-		}
-
-		@Override
-		public boolean compare(Element arg0, Element arg1) {
-			if (arg0.getObjectKey() instanceof TripKey
-					&& arg1.getObjectKey() instanceof TripKey) {
-				if (((TripKey) arg0.getObjectKey()).getTripStartDate().after(
-						((TripKey) arg1.getObjectKey()).getTripStartDate())) {
-					return true;
-				}
-				if (((TripKey) arg0.getObjectKey()).getTripStartDate()
-						.compareTo(
-								((TripKey) arg1.getObjectKey())
-										.getTripStartDate()) == 0) {
-					if (((TripKey) arg0.getObjectKey()).getStartTime() > ((TripKey) arg1
-							.getObjectKey()).getStartTime()) {
-						return true;
-					}
-				}
-			}
-			return false;
-		}
-
-		@Override
-		public String getName() {
-			return name;
-		}
-
-		@Override
-		public Element selectedBasedOnPolicy(Element[] arg0, Element arg1) {
-
-			for (int i = 0; i < arg0.length; i++) {
-
-				if (arg0[i].getObjectKey() instanceof TripKey) {
-					TripKey key = (TripKey) arg0[i].getObjectKey();
-
-					if (Calendar.getInstance().getTimeInMillis()
-							- key.getTripStartDate().getTime()
-							+ (key.getStartTime().intValue() * 1000) > age) {
-						return arg0[i];
-					}
-				}
-			}
-			return null;
-		}		
-	}
 }
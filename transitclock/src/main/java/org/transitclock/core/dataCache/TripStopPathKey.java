@@ -0,0 +1,84 @@
+package org.transitclock.core.dataCache;
+
+/**
+ * Key for the travel time index of TripDataHistoryCache. Identifies a stop
+ * path of a trip, independent of the day the trip ran, so that the travel
+ * times for the stop path over the last several days can be found with a
+ * single lookup.
+ */
+public class TripStopPathKey implements java.io.Serializable {
+
+	private static final long serialVersionUID = -3127416823958245573L;
+
+	private final String tripId;
+	private final Integer startTime;
+	private final int stopPathIndex;
+
+	public TripStopPathKey(String tripId, Integer startTime, int stopPathIndex) {
+		super();
+		this.tripId = tripId;
+		this.startTime = startTime;
+		this.stopPathIndex = stopPathIndex;
+	}
+
+	/**
+	 * @return the tripId
+	 */
+	public String getTripId() {
+		return tripId;
+	}
+
+	/**
+	 * @return the startTime
+	 */
+	public Integer getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return the stopPathIndex
+	 */
+	public int getStopPathIndex() {
+		return stopPathIndex;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((startTime == null) ? 0 : startTime.hashCode());
+		result = prime * result + stopPathIndex;
+		result = prime * result + ((tripId == null) ? 0 : tripId.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TripStopPathKey other = (TripStopPathKey) obj;
+		if (startTime == null) {
+			if (other.startTime != null)
+				return false;
+		} else if (!startTime.equals(other.startTime))
+			return false;
+		if (stopPathIndex != other.stopPathIndex)
+			return false;
+		if (tripId == null) {
+			if (other.tripId != null)
+				return false;
+		} else if (!tripId.equals(other.tripId))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "TripStopPathKey [tripId=" + tripId + ", startTime=" + startTime
+				+ ", stopPathIndex=" + stopPathIndex + "]";
+	}
+}
@@ -0,0 +1,591 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.holdingmethod.PredictionTimeComparator;
+import org.transitclock.db.structs.Agency;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcPrediction;
+import org.transitclock.utils.Time;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * Maintains the GTFS-realtime TripUpdates feed incrementally. Each time the
+ * predictions for a vehicle are updated by PredictionDataCache only the
+ * FeedEntities for the trips of that vehicle are rebuilt. Each FeedEntity is
+ * kept already serialized so that the whole feed can be created by simply
+ * concatenating the bytes, instead of regrouping all of the predictions and
+ * building the whole protobuf for every request.
+ * <p>
+ * Every change is given a new version number. The version of the full feed
+ * is used by the API as an HTTP ETag. Removed entities are kept as deleted
+ * for a while so that DIFFERENTIAL feeds, containing only what changed since
+ * a version the client already has, can be provided. A version that was not
+ * issued by this instance, such as one from before a restart, always gets
+ * the full dataset.
+ * <p>
+ * The entity IDs are the same as when the API created the whole feed: the
+ * trip ID for scheduled trips and the vehicle ID for frequency based trips.
+ * A vehicle with predictions for more than one start time of a frequency
+ * based trip therefore has several entities with the same ID.
+ * <p>
+ * For predictions that are schedule based instead of GPS based the
+ * StopTimeEvent uncertainty is set to SCHED_BASED_PRED_UNCERTAINTY_VALUE so
+ * that the client can treat the prediction differently. If a vehicle is
+ * delayed and not moving then uncertainty is set to
+ * DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and the prediction is
+ * for a subsequent trip then uncertainty is set to
+ * LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+ */
+public class TripUpdatesFeedCache {
+
+	private static final TripUpdatesFeedCache singleton =
+			new TripUpdatesFeedCache();
+
+	private static BooleanConfigValue enabled = new BooleanConfigValue(
+			"transitclock.gtfsRt.tripUpdates.enabled",
+			true,
+			"Whether the GTFS-realtime TripUpdates feed should be maintained "
+			+ "as predictions are generated so that it can be provided by "
+			+ "the API.");
+
+	private static IntegerConfigValue predictionMaxFutureSecs =
+			new IntegerConfigValue(
+					"transitclock.gtfsRt.tripUpdates.predictionMaxFutureSecs",
+					60 * 60,
+					"Predictions further into the future than this are not "
+					+ "included in the GTFS-realtime TripUpdates feed.");
+
+	private static IntegerConfigValue differentialRetentionSecs =
+			new IntegerConfigValue(
+					"transitclock.gtfsRt.tripUpdates.differentialRetentionSecs",
+					5 * Time.SEC_PER_MIN,
+					"How long removed trips are remembered so that they can "
+					+ "be marked as deleted in a DIFFERENTIAL TripUpdates "
+					+ "feed. A client asking for changes since an older "
+					+ "version gets the full dataset instead.");
+
+	// For when creating StopTimeEvent for schedule based prediction
+	// 5 minutes (300 seconds)
+	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60;
+
+	// For when creating StopTimeEvent and the vehicle is delayed
+	private static final int DELAYED_UNCERTAINTY_VALUE =
+			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
+
+	// If vehicle is late and prediction is for a subsequent trip then
+	// the predictions are not as certain because it is reasonably likely
+	// that another vehicle will take over the subsequent trip. Takes
+	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE =
+			DELAYED_UNCERTAINTY_VALUE + 1;
+
+	// The entities, including recently deleted ones, keyed by the trip ID
+	// for scheduled trips and by vehicle ID, trip ID and start time for
+	// frequency based trips. Only accessed while synchronized.
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	// The keys of the entities that were created from the predictions of
+	// each vehicle, so they can be deleted when the vehicle no longer has
+	// predictions for them. Only accessed while synchronized.
+	private final Map<String, Set<String>> keysByVehicle =
+			new HashMap<String, Set<String>>();
+
+	// See firstVersion()
+	private static final int VERSION_COUNTER_BITS = 40;
+	private final long firstVersion = firstVersion();
+
+	// Incremented for every change
+	private long version = firstVersion;
+
+	// Differential feeds can only be provided for versions from after the
+	// latest deleted entity that has been forgotten
+	private long oldestDifferentialVersion = firstVersion;
+
+	// The last full feed that was created, so it is only recreated when
+	// something has changed
+	private long fullFeedVersion = -1;
+	private byte[] fullFeed;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TripUpdatesFeedCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A serialized FeedEntity, or a deleted one, along with the version at
+	 * which it last changed. The entity ID is not necessarily unique.
+	 */
+	private static class Entry {
+		private final String entityId;
+		private final String vehicleId;
+		private final long version;
+		// The entity encoded as a FeedMessage entity field. Null if deleted.
+		private final byte[] field;
+		private final long time;
+
+		private Entry(String entityId, String vehicleId, long version,
+				byte[] field, long time) {
+			this.entityId = entityId;
+			this.vehicleId = vehicleId;
+			this.version = version;
+			this.field = field;
+			this.time = time;
+		}
+
+		private boolean isDeleted() {
+			return field == null;
+		}
+	}
+
+	/**
+	 * Returns the first version for a feed. Versions are a random ID for the
+	 * feed instance in the upper bits and a counter in the lower bits. That
+	 * way a version from before a restart, or from another server, is
+	 * recognized as not issued by this instance. Also used by
+	 * VehiclePositionsFeedCache.
+	 */
+	static long firstVersion() {
+		return (long) (new Random().nextInt(
+				(1 << (63 - VERSION_COUNTER_BITS)) - 1) + 1)
+				<< VERSION_COUNTER_BITS;
+	}
+
+	/**
+	 * Returns the singleton TripUpdatesFeedCache
+	 *
+	 * @return
+	 */
+	public static TripUpdatesFeedCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Package private for testing. Otherwise use getInstance().
+	 */
+	TripUpdatesFeedCache() {
+	}
+
+	/**
+	 * Updates the entities for the trips of a vehicle. Called by
+	 * PredictionDataCache whenever the predictions for a vehicle change. The
+	 * entities are created before synchronizing so that the lock is only
+	 * held briefly.
+	 *
+	 * @param oldPredictionsForVehicle
+	 *            the previous predictions for the vehicle. Can be null.
+	 * @param newPredictionsForVehicle
+	 *            the new predictions for the vehicle. Can be null if the
+	 *            vehicle no longer has predictions.
+	 */
+	public void updatePredictions(List<IpcPrediction> oldPredictionsForVehicle,
+			List<IpcPrediction> newPredictionsForVehicle) {
+		if (!enabled.getValue())
+			return;
+
+		String vehicleId;
+		if (newPredictionsForVehicle != null
+				&& !newPredictionsForVehicle.isEmpty())
+			vehicleId = newPredictionsForVehicle.get(0).getVehicleId();
+		else if (oldPredictionsForVehicle != null
+				&& !oldPredictionsForVehicle.isEmpty())
+			vehicleId = oldPredictionsForVehicle.get(0).getVehicleId();
+		else
+			return;
+
+		Map<String, Field> fields = new LinkedHashMap<String, Field>();
+		if (newPredictionsForVehicle != null) {
+			long maxPredictionTime = Core.getInstance().getSystemTime()
+					+ predictionMaxFutureSecs.getValue() * Time.MS_PER_SEC;
+			for (Map.Entry<String, List<IpcPrediction>> entity :
+					groupByEntity(newPredictionsForVehicle, maxPredictionTime)
+							.entrySet()) {
+				List<IpcPrediction> predsForEntity = entity.getValue();
+				String entityId = getEntityId(predsForEntity.get(0));
+				try {
+					FeedEntity feedEntity = FeedEntity.newBuilder()
+							.setId(entityId)
+							.setTripUpdate(createTripUpdate(predsForEntity))
+							.build();
+					fields.put(entity.getKey(), new Field(entityId, encodeField(
+							FeedMessage.ENTITY_FIELD_NUMBER, feedEntity)));
+				} catch (Exception e) {
+					logger.error("Error creating trip update for {}",
+							predsForEntity, e);
+				}
+			}
+		}
+
+		update(vehicleId, fields);
+	}
+
+	/**
+	 * An encoded FeedEntity along with its ID
+	 */
+	static class Field {
+		private final String entityId;
+		private final byte[] bytes;
+
+		Field(String entityId, byte[] bytes) {
+			this.entityId = entityId;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Returns the ID of the FeedEntity for the prediction: the vehicle ID
+	 * for frequency based trips and otherwise the trip ID.
+	 */
+	static String getEntityId(IpcPrediction prediction) {
+		return prediction.getFreqStartTime() > 0 ?
+				prediction.getVehicleId() : prediction.getTripId();
+	}
+
+	/**
+	 * Groups the predictions of a vehicle into the entities of the feed. For
+	 * scheduled trips the key is the trip ID. For frequency based trips the
+	 * predictions are grouped by trip and start time, the key is the vehicle
+	 * ID, trip ID and start time, and the predictions are sorted by
+	 * prediction time.
+	 * Package private for testing.
+	 */
+	static Map<String, List<IpcPrediction>> groupByEntity(
+			List<IpcPrediction> predictions, long maxPredictionTime) {
+		Map<String, List<IpcPrediction>> predsByEntity =
+				new LinkedHashMap<String, List<IpcPrediction>>();
+		for (IpcPrediction prediction : predictions) {
+			if (prediction.getPredictionTime() > maxPredictionTime)
+				continue;
+
+			String key = prediction.getFreqStartTime() > 0 ?
+					prediction.getVehicleId() + "_" + prediction.getTripId()
+							+ "_" + prediction.getFreqStartTime()
+					: prediction.getTripId();
+			List<IpcPrediction> predsForEntity = predsByEntity.get(key);
+			if (predsForEntity == null) {
+				predsForEntity = new ArrayList<IpcPrediction>();
+				predsByEntity.put(key, predsForEntity);
+			}
+			predsForEntity.add(prediction);
+		}
+
+		for (List<IpcPrediction> predsForEntity : predsByEntity.values()) {
+			if (predsForEntity.get(0).getFreqStartTime() > 0)
+				Collections.sort(predsForEntity, new PredictionTimeComparator());
+		}
+		return predsByEntity;
+	}
+
+	/**
+	 * Create TripUpdate for the trip.
+	 *
+	 * @param predsForTrip
+	 * @return
+	 */
+	private static TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
+		// Create the parent TripUpdate object that is returned.
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+
+		// Add the trip descriptor information
+		IpcPrediction firstPred = predsForTrip.get(0);
+		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+		if (firstPred.getRouteId() != null)
+			tripDescriptor.setRouteId(firstPred.getRouteId());
+		if (firstPred.getTripId() != null) {
+			tripDescriptor.setTripId(firstPred.getTripId());
+
+			if (firstPred.getFreqStartTime() > 0) {
+				String tripStartTimeStr = new SimpleDateFormat("HH:mm:ss")
+						.format(new Date(firstPred.getFreqStartTime()));
+				tripDescriptor.setStartTime(tripStartTimeStr);
+			}
+
+			SimpleDateFormat gtfsRealtimeDateFormatter =
+					new SimpleDateFormat("yyyyMMdd");
+			Agency agency = Core.getInstance().getDbConfig().getFirstAgency();
+			if (agency != null)
+				gtfsRealtimeDateFormatter.setTimeZone(agency.getTimeZone());
+			tripDescriptor.setStartDate(gtfsRealtimeDateFormatter.format(
+					new Date(firstPred.getTripStartEpochTime())));
+		}
+		tripUpdate.setTrip(tripDescriptor);
+		if (firstPred.getDelay() != null)
+			tripUpdate.setDelay(firstPred.getDelay()); // set schedule deviation
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
+		tripUpdate.setVehicle(vehicleDescriptor);
+
+		// Add the StopTimeUpdate information for each prediction
+		for (IpcPrediction pred : predsForTrip) {
+			StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder()
+					.setStopSequence(pred.getGtfsStopSeq())
+					.setStopId(pred.getStopId());
+
+			StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+			stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
+
+			// If schedule based prediction then set the uncertainty to special
+			// value so that client can tell
+			if (pred.isSchedBasedPred())
+				stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
+
+			// Takes precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+			if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
+				stopTimeEvent.setUncertainty(LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
+
+			// If vehicle not making forward progress then set uncertainty to
+			// special value so that client can tell. Takes precedence over
+			// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+			if (pred.isDelayed())
+				stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
+
+			if (pred.isArrival())
+				stopTimeUpdate.setArrival(stopTimeEvent);
+			else
+				stopTimeUpdate.setDeparture(stopTimeEvent);
+
+			if (pred.isSchedBasedPred())
+				stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
+			else
+				stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.NO_DATA);
+
+			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+		}
+
+		// Add timestamp
+		tripUpdate.setTimestamp(firstPred.getAvlTime() / Time.MS_PER_SEC);
+
+		// Return the results
+		return tripUpdate.build();
+	}
+
+	/**
+	 * Encodes the message as a field of an enclosing message, meaning with
+	 * the field tag and length. A FeedMessage is simply its fields one after
+	 * another so the encoded header and entities can be concatenated to
+	 * create the serialized FeedMessage. Also used by
+	 * VehiclePositionsFeedCache.
+	 */
+	static byte[] encodeField(int fieldNumber, MessageLite message)
+			throws IOException {
+		byte[] field = new byte[CodedOutputStream.computeMessageSize(
+				fieldNumber, message)];
+		CodedOutputStream out = CodedOutputStream.newInstance(field);
+		out.writeMessage(fieldNumber, message);
+		out.checkNoSpaceLeft();
+		return field;
+	}
+
+	/**
+	 * Replaces the entities of the vehicle with the new ones and marks the
+	 * ones that the vehicle no longer has as deleted. All of the entities of
+	 * the vehicle get a new version so that an entity that has the same ID
+	 * as a deleted one is sent again after the deletion in a DIFFERENTIAL
+	 * feed. Package private for testing.
+	 *
+	 * @param fields
+	 *            the new entities of the vehicle, keyed as by groupByEntity()
+	 */
+	synchronized void update(String vehicleId, Map<String, Field> fields) {
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<String, Field> field : fields.entrySet()) {
+			entries.put(field.getKey(), new Entry(field.getValue().entityId,
+					vehicleId, ++version, field.getValue().bytes, now));
+		}
+
+		Set<String> previousKeys = keysByVehicle.get(vehicleId);
+		if (previousKeys != null) {
+			for (String key : previousKeys) {
+				if (fields.containsKey(key))
+					continue;
+				// Only delete the entity if another vehicle hasn't since
+				// taken over the trip
+				Entry entry = entries.get(key);
+				if (entry != null && !entry.isDeleted()
+						&& vehicleId.equals(entry.vehicleId)) {
+					entries.put(key, new Entry(entry.entityId, vehicleId,
+							++version, null, now));
+				}
+			}
+		}
+
+		if (fields.isEmpty())
+			keysByVehicle.remove(vehicleId);
+		else
+			keysByVehicle.put(vehicleId, new HashSet<String>(fields.keySet()));
+	}
+
+	/**
+	 * Returns the TripUpdates feed.
+	 *
+	 * @param sinceVersion
+	 *            the version of the feed that the caller already has, or 0
+	 *            if none. If it is the current version then the returned
+	 *            IpcGtfsRtFeed has no feed bytes. If it was not issued by
+	 *            this instance then the full dataset is returned.
+	 * @param differential
+	 *            if true, and sinceVersion is recent enough, then the feed
+	 *            only contains the entities that have changed since
+	 *            sinceVersion, with the removed ones marked as deleted.
+	 *            Otherwise the feed is the full dataset.
+	 * @return the feed along with its version
+	 */
+	public IpcGtfsRtFeed getFeed(long sinceVersion, boolean differential) {
+		List<byte[]> fields = new ArrayList<byte[]>();
+		long currentVersion;
+		synchronized (this) {
+			currentVersion = version;
+			boolean issued = sinceVersion >= firstVersion
+					&& sinceVersion <= currentVersion;
+			if (issued && sinceVersion == currentVersion)
+				return new IpcGtfsRtFeed(currentVersion, null, differential);
+
+			removeOldDeletedEntries();
+
+			if (differential && issued
+					&& sinceVersion >= oldestDifferentialVersion) {
+				// Deletions first since a vehicle can have several entities
+				// with the same ID
+				List<byte[]> changedFields = new ArrayList<byte[]>();
+				for (Entry entry : entries.values()) {
+					if (entry.version <= sinceVersion)
+						continue;
+					if (entry.isDeleted())
+						fields.add(deletedField(entry.entityId));
+					else
+						changedFields.add(entry.field);
+				}
+				fields.addAll(changedFields);
+				return new IpcGtfsRtFeed(currentVersion,
+						createFeed(fields, Incrementality.DIFFERENTIAL), true);
+			}
+
+			if (fullFeedVersion == currentVersion)
+				return new IpcGtfsRtFeed(currentVersion, fullFeed, false);
+
+			for (Entry entry : entries.values()) {
+				if (!entry.isDeleted())
+					fields.add(entry.field);
+			}
+		}
+
+		// Concatenate the full feed outside of the lock since it can be
+		// large. It is just copying bytes.
+		byte[] feed = createFeed(fields, Incrementality.FULL_DATASET);
+		synchronized (this) {
+			if (currentVersion > fullFeedVersion) {
+				fullFeedVersion = currentVersion;
+				fullFeed = feed;
+			}
+		}
+		return new IpcGtfsRtFeed(currentVersion, feed, false);
+	}
+
+	/**
+	 * Forgets deleted entities that are older than differentialRetentionSecs.
+	 * Clients with a version from before then get the full dataset.
+	 */
+	private void removeOldDeletedEntries() {
+		long oldestTime = System.currentTimeMillis()
+				- differentialRetentionSecs.getValue() * Time.MS_PER_SEC;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.isDeleted() && entry.time < oldestTime) {
+				iterator.remove();
+				if (entry.version > oldestDifferentialVersion)
+					oldestDifferentialVersion = entry.version;
+			}
+		}
+	}
+
+	private static byte[] deletedField(String entityId) {
+		try {
+			return encodeField(FeedMessage.ENTITY_FIELD_NUMBER, FeedEntity
+					.newBuilder().setId(entityId).setIsDeleted(true).build());
+		} catch (IOException e) {
+			// Can't happen when writing to an array of the exact size
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates the serialized FeedMessage from the header and the already
+	 * encoded entities. Also used by VehiclePositionsFeedCache.
+	 */
+	static byte[] createFeed(List<byte[]> entityFields,
+			Incrementality incrementality) {
+		FeedHeader header = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(incrementality)
+				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC)
+				.build();
+		byte[] headerField;
+		try {
+			headerField = encodeField(FeedMessage.HEADER_FIELD_NUMBER, header);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int size = headerField.length;
+		for (byte[] field : entityFields)
+			size += field.length;
+
+		byte[] feed = new byte[size];
+		System.arraycopy(headerField, 0, feed, 0, headerField.length);
+		int position = headerField.length;
+		for (byte[] field : entityFields) {
+			System.arraycopy(field, 0, feed, position, field.length);
+			position += field.length;
+		}
+		return feed;
+	}
+}
@@ -538,5 +538,8 @@ public class VehicleDataCache {
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
 		updateVehiclesMap(vehicle);
+
+		// So that a new GTFS-realtime VehiclePositions feed is created
+		VehiclePositionsFeedCache.getInstance().vehiclesChanged();
 	}
 }
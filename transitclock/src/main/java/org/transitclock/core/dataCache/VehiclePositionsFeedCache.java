@@ -0,0 +1,408 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.db.structs.Agency;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcVehicleComplete;
+import org.transitclock.ipc.data.IpcVehicleGtfsRealtime;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+/**
+ * Keeps an immutable, already serialized snapshot of the GTFS-realtime
+ * VehiclePositions feed so that the API can simply send the bytes instead of
+ * building and serializing the protobuf for every request.
+ * <p>
+ * VehicleDataCache calls vehiclesChanged() whenever a vehicle is updated. A
+ * separate thread then creates a new snapshot, but no more often than every
+ * minIntervalMsec so that the cost is bounded no matter how many AVL reports
+ * are received. Each snapshot gets a new version which the API uses as an
+ * HTTP ETag. A gzip compressed copy is also kept so that it doesn't need to
+ * be compressed for every request.
+ * <p>
+ * The encoded entity of each vehicle is kept so that only the vehicles that
+ * changed since the previous snapshot need to be encoded again.
+ */
+public class VehiclePositionsFeedCache {
+
+	private static BooleanConfigValue enabled = new BooleanConfigValue(
+			"transitclock.gtfsRt.vehiclePositions.enabled",
+			true,
+			"Whether a serialized snapshot of the GTFS-realtime "
+			+ "VehiclePositions feed should be created whenever vehicles "
+			+ "change so that it can be provided by the API.");
+
+	private static IntegerConfigValue minIntervalMsec = new IntegerConfigValue(
+			"transitclock.gtfsRt.vehiclePositions.minIntervalMsec",
+			1000,
+			"Minimum time between creating new snapshots of the "
+			+ "GTFS-realtime VehiclePositions feed. Bounds the cost of "
+			+ "creating the feed when there are many AVL reports.");
+
+	private static IntegerConfigValue maxIntervalMsec = new IntegerConfigValue(
+			"transitclock.gtfsRt.vehiclePositions.maxIntervalMsec",
+			60 * Time.MS_PER_SEC,
+			"A new snapshot of the GTFS-realtime VehiclePositions feed is "
+			+ "created at least this often even if no vehicles changed, so "
+			+ "that schedule based vehicles whose trips have ended are "
+			+ "removed.");
+
+	private static BooleanConfigValue gzip = new BooleanConfigValue(
+			"transitclock.gtfsRt.vehiclePositions.gzip",
+			true,
+			"Whether a gzip compressed copy of each VehiclePositions "
+			+ "snapshot should also be kept, for clients that accept gzip.");
+
+	// The current snapshot. Replaced as a whole so readers don't lock.
+	private volatile Snapshot snapshot;
+
+	// Set by vehiclesChanged() and cleared when a new snapshot is created
+	private volatile boolean changed = true;
+
+	// The encoded entity for each vehicle, along with the vehicle info it
+	// was encoded from. Only accessed while synchronized.
+	private Map<String, EncodedVehicle> encodedVehicles =
+			new HashMap<String, EncodedVehicle>();
+
+	// Starts at a random first version so that a version from before a
+	// restart, or from another server, is not mistaken for a current one
+	private long version = TripUpdatesFeedCache.firstVersion();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(VehiclePositionsFeedCache.class);
+
+	// Created after the config values and the logger since createSingleton()
+	// uses them
+	private static final VehiclePositionsFeedCache singleton =
+			createSingleton();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * An immutable version of the serialized feed
+	 */
+	private static class Snapshot {
+		private final long version;
+		private final long time;
+		private final byte[] feed;
+		private final byte[] gzippedFeed;
+
+		private Snapshot(long version, long time, byte[] feed,
+				byte[] gzippedFeed) {
+			this.version = version;
+			this.time = time;
+			this.feed = feed;
+			this.gzippedFeed = gzippedFeed;
+		}
+	}
+
+	private static class EncodedVehicle {
+		private final IpcVehicleComplete vehicle;
+		private final byte[] field;
+
+		private EncodedVehicle(IpcVehicleComplete vehicle, byte[] field) {
+			this.vehicle = vehicle;
+			this.field = field;
+		}
+	}
+
+	/**
+	 * Returns the singleton VehiclePositionsFeedCache
+	 *
+	 * @return
+	 */
+	public static VehiclePositionsFeedCache getInstance() {
+		return singleton;
+	}
+
+	private static VehiclePositionsFeedCache createSingleton() {
+		VehiclePositionsFeedCache cache = new VehiclePositionsFeedCache();
+		if (enabled.getValue())
+			cache.scheduleUpdates();
+		return cache;
+	}
+
+	/**
+	 * Package private for testing, where the snapshots are created by
+	 * calling createSnapshot(). Otherwise use getInstance().
+	 */
+	VehiclePositionsFeedCache() {
+	}
+
+	/**
+	 * Starts the thread that creates a new snapshot when vehicles have
+	 * changed.
+	 */
+	private void scheduleUpdates() {
+		ScheduledExecutorService executor =
+				Executors.newSingleThreadScheduledExecutor(
+						new NamedThreadFactory(getClass().getSimpleName()));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// Catch everything since otherwise the executor would stop
+				// running this task
+				try {
+					updateSnapshotIfNeeded();
+				} catch (Throwable t) {
+					logger.error("Error creating VehiclePositions snapshot", t);
+				}
+			}
+		}, minIntervalMsec.getValue(), minIntervalMsec.getValue(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called by VehicleDataCache whenever a vehicle has been updated so that
+	 * a new snapshot will be created. Very cheap since it just sets a flag.
+	 */
+	public void vehiclesChanged() {
+		changed = true;
+	}
+
+	private synchronized void updateSnapshotIfNeeded() {
+		Snapshot current = snapshot;
+		if (!changed && current != null && System.currentTimeMillis()
+				- current.time < maxIntervalMsec.getValue())
+			return;
+
+		// Clear the flag before reading the vehicles so that a change while
+		// creating the snapshot causes another one to be created
+		changed = false;
+		Agency agency = Core.getInstance().getDbConfig().getFirstAgency();
+		createSnapshot(VehicleDataCache.getInstance().getVehicles(),
+				agency != null ? agency.getTimeZone() : null);
+	}
+
+	/**
+	 * Creates a new snapshot for the vehicles, only encoding the ones that
+	 * changed since the previous snapshot.
+	 *
+	 * @param vehicles
+	 * @param timeZone
+	 *            the agency time zone, for the trip start dates. If null the
+	 *            default time zone is used.
+	 */
+	synchronized void createSnapshot(Collection<IpcVehicleComplete> vehicles,
+			TimeZone timeZone) {
+		IntervalTimer timer = new IntervalTimer();
+
+		Map<String, EncodedVehicle> newEncodedVehicles =
+				new HashMap<String, EncodedVehicle>();
+		List<byte[]> fields = new ArrayList<byte[]>();
+		SimpleDateFormat gtfsRealtimeDateFormatter =
+				new SimpleDateFormat("yyyyMMdd");
+		if (timeZone != null)
+			gtfsRealtimeDateFormatter.setTimeZone(timeZone);
+
+		int numEncoded = 0;
+		for (IpcVehicleComplete vehicle : vehicles) {
+			// The IpcVehicleComplete is immutable and is replaced whenever
+			// the vehicle changes, so if it is the same object then the
+			// previous encoding can be used
+			EncodedVehicle encoded = encodedVehicles.get(vehicle.getId());
+			if (encoded == null || encoded.vehicle != vehicle) {
+				try {
+					FeedEntity entity = FeedEntity.newBuilder()
+							.setId(vehicle.getId())
+							.setVehicle(createVehiclePosition(vehicle,
+									gtfsRealtimeDateFormatter))
+							.build();
+					encoded = new EncodedVehicle(vehicle,
+							TripUpdatesFeedCache.encodeField(
+									FeedMessage.ENTITY_FIELD_NUMBER, entity));
+					++numEncoded;
+				} catch (Exception e) {
+					logger.error("Error creating vehicle position for "
+							+ "vehicle={}", vehicle, e);
+					continue;
+				}
+			}
+			newEncodedVehicles.put(vehicle.getId(), encoded);
+			fields.add(encoded.field);
+		}
+		encodedVehicles = newEncodedVehicles;
+
+		byte[] feed = TripUpdatesFeedCache.createFeed(fields,
+				Incrementality.FULL_DATASET);
+		byte[] gzippedFeed = gzip.getValue() ? gzip(feed) : null;
+		snapshot = new Snapshot(++version, System.currentTimeMillis(), feed,
+				gzippedFeed);
+
+		logger.debug("Created VehiclePositions snapshot version={} with {} "
+				+ "vehicles, {} of which were encoded again, {} bytes. Took "
+				+ "{} msec.", version, fields.size(), numEncoded, feed.length,
+				timer.elapsedMsec());
+	}
+
+	private static byte[] gzip(byte[] bytes) {
+		try {
+			ByteArrayOutputStream compressed =
+					new ByteArrayOutputStream(bytes.length / 4 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(bytes);
+			out.close();
+			return compressed.toByteArray();
+		} catch (IOException e) {
+			// Can't happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Takes in IpcGtfsRealtimeVehicle and puts it into a GTFS-realtime
+	 * VehiclePosition object.
+	 *
+	 * @param vehicleData
+	 * @param gtfsRealtimeDateFormatter
+	 *            for the trip start date, using the agency time zone
+	 * @return the resulting VehiclePosition
+	 */
+	private static VehiclePosition createVehiclePosition(
+			IpcVehicleGtfsRealtime vehicleData,
+			SimpleDateFormat gtfsRealtimeDateFormatter) {
+		// Create the parent VehiclePosition object that is returned.
+		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+
+		// If there is route information then add it via the TripDescriptor
+		if (vehicleData.getRouteId() != null
+				&& vehicleData.getRouteId().length() > 0) {
+			String tripStartDateStr =
+					gtfsRealtimeDateFormatter.format(new Date(vehicleData
+							.getTripStartEpochTime()));
+			TripDescriptor.Builder tripDescriptor =
+					TripDescriptor.newBuilder()
+							.setRouteId(vehicleData.getRouteId())
+							.setTripId(vehicleData.getTripId())
+							.setStartDate(tripStartDateStr);
+			if (vehicleData.getFreqStartTime() > 0) {
+				String tripStartTimeStr = new SimpleDateFormat("HH:mm:ss")
+						.format(new Date(vehicleData.getFreqStartTime()));
+				tripDescriptor.setStartTime(tripStartTimeStr);
+			}
+			vehiclePosition.setTrip(tripDescriptor);
+		}
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
+		// License plate information is optional so only add it if not null
+		if (vehicleData.getLicensePlate() != null)
+			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
+		vehiclePosition.setVehicle(vehicleDescriptor);
+
+		// Add the Position information
+		Position.Builder position =
+				Position.newBuilder().setLatitude(vehicleData.getLatitude())
+						.setLongitude(vehicleData.getLongitude());
+		// Heading and speed are optional so only add them if actually a
+		// valid number.
+		if (!Float.isNaN(vehicleData.getHeading())) {
+			position.setBearing(vehicleData.getHeading());
+		}
+		if (!Float.isNaN(vehicleData.getSpeed())) {
+			position.setSpeed(vehicleData.getSpeed());
+		}
+		vehiclePosition.setPosition(position);
+
+		// Convert the GPS timestamp information to an epoch time as
+		// number of milliseconds since 1970.
+		long gpsTime = vehicleData.getGpsTime();
+		vehiclePosition.setTimestamp(gpsTime / Time.MS_PER_SEC);
+
+		// Set the stop_id if at a stop or going to a stop
+		String stopId = vehicleData.getAtOrNextStopId();
+		if (stopId != null)
+			vehiclePosition.setStopId(stopId);
+
+		// Set current_status part of vehiclePosition if vehicle is actually
+		// predictable. If not predictable then the vehicle stop status will
+		// not be included in feed since it is not stopped nor in transit to.
+		if (vehicleData.isPredictable()) {
+			VehicleStopStatus currentStatus =
+					vehicleData.isAtStop() ? VehicleStopStatus.STOPPED_AT
+							: VehicleStopStatus.IN_TRANSIT_TO;
+			vehiclePosition.setCurrentStatus(currentStatus);
+
+			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
+				vehiclePosition.setCurrentStopSequence(
+						vehicleData.getAtOrNextGtfsStopSeq());
+		}
+
+		// Return the results
+		return vehiclePosition.build();
+	}
+
+	/**
+	 * Returns the latest VehiclePositions snapshot.
+	 *
+	 * @param sinceVersion
+	 *            the version that the caller already has, or 0 if none. If
+	 *            it is the current version then the returned IpcGtfsRtFeed
+	 *            has no feed bytes.
+	 * @param acceptGzip
+	 *            if true and a gzip compressed copy is available then it is
+	 *            returned instead of the uncompressed feed
+	 * @return the feed along with its version
+	 */
+	public IpcGtfsRtFeed getFeed(long sinceVersion, boolean acceptGzip) {
+		// If requested before the first snapshot was created then create
+		// it now
+		if (snapshot == null)
+			updateSnapshotIfNeeded();
+		Snapshot current = snapshot;
+
+		if (current.version == sinceVersion)
+			return new IpcGtfsRtFeed(current.version, null, false);
+
+		if (acceptGzip && current.gzippedFeed != null)
+			return new IpcGtfsRtFeed(current.version, current.gzippedFeed,
+					false, true);
+		return new IpcGtfsRtFeed(current.version, current.feed, false);
+	}
+}
@@ -1,19 +1,13 @@
 package org.transitclock.core.dataCache.frequency;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-
 import org.apache.commons.lang3.time.DateUtils;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -30,15 +24,20 @@ import org.transitclock.core.dataCache.*;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.Time;
 /**
  * @author Sean Óg Crudden
  * This class is to hold the historical average for frequency based services. It puts them in buckets that represent increments of time. The start time of the trip is used to decide which 
  * bucket to apply the data to or which average to retrieve.  
+ * <p>
+ * The buckets are fixed width, getCacheIncrementsForFrequencyService() seconds,
+ * so each stop path has primitive arrays of the count, average and variance
+ * indexed by the bucket of the time of day. Looking up an average is therefore
+ * just an array index. Updates are synchronized on the arrays of the stop path
+ * so that arrivals and departures for different stop paths never contend.
  */
 public class FrequencyBasedHistoricalAverageCache {	
 	
-	private static FrequencyBasedHistoricalAverageCache singleton = new FrequencyBasedHistoricalAverageCache();
-	
 	private static final Logger logger = LoggerFactory
 			.getLogger(FrequencyBasedHistoricalAverageCache.class);
 			
@@ -74,8 +73,62 @@ public class FrequencyBasedHistoricalAverageCache {
 		return cacheIncrementsForFrequencyService.getValue();
 	}
 	
+	/* Created after the config values since the constructor uses them */
+	private static FrequencyBasedHistoricalAverageCache singleton = new FrequencyBasedHistoricalAverageCache();
+	
+	
+	/* Bucket times are from secondsFromMidnight() so are relative to the
+	 * start hour and can be negative. Allow for a full day either side so
+	 * that changes in the start hour and daylight savings are handled. */
+	private static final int MIN_BUCKET_TIME = -Time.SEC_PER_DAY;
+	private static final int MAX_BUCKET_TIME = 2 * Time.SEC_PER_DAY;
+	
+	/* Read once since the size of the bucket arrays depends on it */
+	private final int increment = getCacheIncrementsForFrequencyService();
+	
+	private final long minBucket = floorDiv(MIN_BUCKET_TIME, increment);
+	
+	private final int numBuckets =
+			(int) (floorDiv(MAX_BUCKET_TIME, increment) - minBucket + 1);
 	
-	private final ConcurrentHashMap<StopPathKey, TreeMap<Long, HistoricalAverage>> m = new ConcurrentHashMap<StopPathKey,TreeMap<Long, HistoricalAverage>>();
+	private final ConcurrentHashMap<StopPathKey, Buckets> m = new ConcurrentHashMap<StopPathKey, Buckets>();
+	
+	/**
+	 * The running count, average and variance of each time bucket of a stop
+	 * path. Uses Welford's algorithm so that no values need to be kept. Access
+	 * is synchronized on the object itself.
+	 */
+	private static class Buckets {
+		private final int[] counts;
+		private final double[] averages;
+		/* sum of the squared differences from the average */
+		private final double[] m2s;
+		
+		private Buckets(int numBuckets) {
+			counts = new int[numBuckets];
+			averages = new double[numBuckets];
+			m2s = new double[numBuckets];
+		}
+		
+		private synchronized HistoricalAverage update(int bucket, double value) {
+			int count = ++counts[bucket];
+			double delta = value - averages[bucket];
+			averages[bucket] += delta / count;
+			m2s[bucket] += delta * (value - averages[bucket]);
+			return get(bucket);
+		}
+		
+		/**
+		 * @return a snapshot of the average of the bucket, or null if no data
+		 */
+		private synchronized HistoricalAverage get(int bucket) {
+			int count = counts[bucket];
+			if (count == 0)
+				return null;
+			return new HistoricalAverage(count, averages[bucket],
+					count > 1 ? m2s[bucket] / (count - 1) : 0);
+		}
+	}
 		
 	/**
 	 * Gets the singleton instance of this class.
@@ -89,63 +142,123 @@ public class FrequencyBasedHistoricalAverageCache {
 	
 	private FrequencyBasedHistoricalAverageCache() {													
 	}
+	
+	private static long floorDiv(long x, long y) {
+		long result = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0)))
+			--result;
+		return result;
+	}
+	
+	/**
+	 * Returns the index of the bucket that starts within the increment
+	 * starting at the specified time. For the times returned by round() that
+	 * is the bucket that starts at that time.
+	 * 
+	 * @param time
+	 *            seconds from the start hour
+	 * @return index into the bucket arrays, or -1 if out of range
+	 */
+	private int bucketIndex(long time) {
+		// Smallest bucket start time that is not before the time
+		long bucket = -floorDiv(-time, increment) - minBucket;
+		if (bucket < 0 || bucket >= numBuckets)
+			return -1;
+		return (int) bucket;
+	}
+	
+	private long bucketStartTime(int bucketIndex) {
+		return (bucketIndex + minBucket) * increment;
+	}
+	
 	public String toString()
 	{
-		
-		String totalsString=new String();
-		for(StopPathKey key:m.keySet())
+		StringBuilder totalsString=new StringBuilder();
+		for(Map.Entry<StopPathKey, Buckets> entry:m.entrySet())
 		{
-			TreeMap<Long, HistoricalAverage> values=new TreeMap<Long, HistoricalAverage>();
-			
-			TreeMap<Long, HistoricalAverage> map = m.get(key);
-			Set<Long> times = map.keySet();
-			for(Long time:times)
+			StopPathKey key=entry.getKey();
+			for(int i=0;i<numBuckets;++i)
 			{
-				values.put(time, map.get(time));
-				
-				totalsString=totalsString+"\n"+key.tripId+","+key.stopPathIndex+","+key.travelTime+","+time+","+map.get(time).getCount()+","+map.get(time).getAverage();								
-			}	
-		
+				HistoricalAverage average=entry.getValue().get(i);
+				if(average!=null)
+					totalsString.append("\n"+key.tripId+","+key.stopPathIndex+","+key.travelTime+","+bucketStartTime(i)+","+average.getCount()+","+average.getAverage());
+			}
 		}
-		
-		return totalsString+"\nDetails\n"+m.toString();
+		return totalsString.toString();
 	}
-	synchronized public HistoricalAverage getAverage(StopPathCacheKey key) {
+	
+	/**
+	 * @return a key for each stop path and time bucket that has an average
+	 */
+	public List<StopPathCacheKey> getKeys()
+	{
+		List<StopPathCacheKey> keys=new ArrayList<StopPathCacheKey>();
+		for(Map.Entry<StopPathKey, Buckets> entry:m.entrySet())
+		{
+			StopPathKey key=entry.getKey();
+			for(int i=0;i<numBuckets;++i)
+			{
+				if(entry.getValue().get(i)!=null)
+					keys.add(new StopPathCacheKey(key.tripId, key.stopPathIndex, key.travelTime, bucketStartTime(i)));
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return a snapshot of the average for the stop path and the time bucket
+	 *         starting at the key's start time, or null if there is none
+	 */
+	public HistoricalAverage getAverage(StopPathCacheKey key) {
 		
 		logger.debug("Looking for average for : {} in FrequencyBasedHistoricalAverageCache cache.", key);
-		TreeMap<Long, HistoricalAverage> result = m.get(new StopPathKey(key));
-		if(result!=null)
+		Buckets buckets = m.get(new StopPathKey(key));
+		if(buckets!=null)
 		{
 			logger.debug("Found average buckets for {}. ", key);
 			if(key.getStartTime()!=null)
 			{
-				SortedMap<Long, HistoricalAverage> subresult = result.subMap(key.getStartTime(), key.getStartTime()+getCacheIncrementsForFrequencyService());
-				
-				if(subresult.size()==1)
+				int bucket=bucketIndex(key.getStartTime());
+				HistoricalAverage average = bucket>=0 ? buckets.get(bucket) : null;
+				if(average!=null)
 				{
-					logger.debug("Found average for : {} in FrequencyBasedHistoricalAverageCache cache with a value : {}", key, subresult.get(subresult.lastKey()));
-					return subresult.get(subresult.lastKey());					
+					logger.debug("Found average for : {} in FrequencyBasedHistoricalAverageCache cache with a value : {}", key, average);
+					return average;
 				}else
 				{
-					logger.debug("No historical data within time range ({} to {}) for this trip {} in FrequencyBasedHistoricalAverageCache cache.",key.getStartTime(), key.getStartTime()+getCacheIncrementsForFrequencyService(), key);
+					logger.debug("No historical data within time range ({} to {}) for this trip {} in FrequencyBasedHistoricalAverageCache cache.",key.getStartTime(), key.getStartTime()+increment, key);
 				}
 			}
 		}
 		logger.debug("No average found in FrequencyBasedHistoricalAverageCache cache for : {}",key);
 		return null;
 	}
-	synchronized private void putAverage(StopPathCacheKey key, HistoricalAverage average) {
-					
-		TreeMap<Long, HistoricalAverage> result = m.get(new StopPathKey(key));
-					
-		if(result==null)
-		{			
-			m.put(new StopPathKey(key), new TreeMap<Long, HistoricalAverage> ());			
+	
+	/**
+	 * Adds the value to the average for the stop path and time bucket of the
+	 * key. Atomic, so concurrent updates for the same key are not lost.
+	 * 
+	 * @return the updated average, or null if the time is out of range
+	 */
+	HistoricalAverage updateAverage(StopPathCacheKey key, double value) {
+		int bucket=bucketIndex(key.getStartTime());
+		if(bucket<0)
+		{
+			logger.warn("Start time {} of {} is out of the range of the FrequencyBasedHistoricalAverageCache buckets.", key.getStartTime(), key);
+			return null;
 		}
-		//logger.debug("Putting: {} for start time: {} in FrequencyBasedHistoricalAverageCache with value : {}",new StopPathKey(key), key.getStartTime(), average);
-		m.get(new StopPathKey(key)).put(key.getStartTime(), average);													
+		StopPathKey stopPathKey=new StopPathKey(key);
+		Buckets buckets = m.get(stopPathKey);
+		if(buckets==null)
+		{
+			Buckets newBuckets=new Buckets(numBuckets);
+			buckets=m.putIfAbsent(stopPathKey, newBuckets);
+			if(buckets==null)
+				buckets=newBuckets;
+		}
+		return buckets.update(bucket, value);
 	}
-	synchronized public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) 
+	public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) 
 	{		
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
 				
@@ -156,7 +269,7 @@ public class FrequencyBasedHistoricalAverageCache {
 			Integer time=secondsFromMidnight(arrivalDeparture.getDate(), 2);
 			
 			/* this is what puts the trip into the buckets (time slots) */
-			time=round(time, getCacheIncrementsForFrequencyService());
+			time=round(time, increment);
 							
 			TravelTimeResult pathDuration=getLastPathDuration(arrivalDeparture, trip);
 							
@@ -166,16 +279,9 @@ public class FrequencyBasedHistoricalAverageCache {
 				{							
 					StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), pathDuration.getArrival().getStopPathIndex(), true,new Long(time));
 					
-					HistoricalAverage average = FrequencyBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-					
-					if(average==null)				
-						average=new HistoricalAverage();
-					
-					average.update(pathDuration.getDuration());				
+					HistoricalAverage average = updateAverage(historicalAverageCacheKey, pathDuration.getDuration());
 					
 					logger.debug("Putting : {} in FrequencyBasedHistoricalAverageCache cache for key : {} which results in : {}.", pathDuration, historicalAverageCacheKey,average);
-					
-					FrequencyBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
 				}
 			}				
 			DwellTimeResult stopDuration=getLastStopDuration(arrivalDeparture, trip);
@@ -183,16 +289,9 @@ public class FrequencyBasedHistoricalAverageCache {
 			{
 				StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), stopDuration.getDeparture().getStopPathIndex(), false, new Long(time));
 				
-				HistoricalAverage average = FrequencyBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-				
-				if(average==null)				
-					average=new HistoricalAverage();
-				
-				average.update(stopDuration.getDuration());
+				HistoricalAverage average = updateAverage(historicalAverageCacheKey, stopDuration.getDuration());
 				
 				logger.debug("Putting : {} in FrequencyBasedHistoricalAverageCache cache for key : {} which results in : {}.", stopDuration, historicalAverageCacheKey, average);
-				
-				FrequencyBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
 			}	
 			if(stopDuration==null && pathDuration==null)
 			{
@@ -211,9 +310,12 @@ public class FrequencyBasedHistoricalAverageCache {
 			logger.debug("Cannot add to FrequencyBasedHistoricalAverageCache as no start time set : {}", arrivalDeparture);
 		}
 	}
+	/**
+	 * The list must be sorted most recent first, as returned by
+	 * TripDataHistoryCache.getTripHistory().
+	 */
 	public ArrivalDeparture findPreviousDepartureEvent(List<ArrivalDeparture> arrivalDepartures,ArrivalDeparture current)
 	{		
-		Collections.sort(arrivalDepartures, new ArrivalDepartureComparator());
 		for (ArrivalDeparture tocheck : emptyIfNull(arrivalDepartures)) 
 		{
 			if(current.getFreqStartTime()!=null && tocheck.getFreqStartTime()!=null&&tocheck.getFreqStartTime().equals(current.getFreqStartTime()))
@@ -226,9 +328,12 @@ public class FrequencyBasedHistoricalAverageCache {
 		}		
 		return null;		
 	}
+	/**
+	 * The list must be sorted most recent first, as returned by
+	 * TripDataHistoryCache.getTripHistory().
+	 */
 	public ArrivalDeparture findPreviousArrivalEvent(List<ArrivalDeparture> arrivalDepartures,ArrivalDeparture current)
 	{
-		Collections.sort(arrivalDepartures, new ArrivalDepartureComparator());
 		for (ArrivalDeparture tocheck : emptyIfNull(arrivalDepartures)) 
 		{
 			if(current.getFreqStartTime()!=null && tocheck.getFreqStartTime()!=null&&tocheck.getFreqStartTime().equals(current.getFreqStartTime()))
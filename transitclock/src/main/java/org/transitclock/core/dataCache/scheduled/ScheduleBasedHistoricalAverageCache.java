@@ -5,10 +5,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-
 import org.apache.commons.lang3.time.DateUtils;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -24,9 +20,12 @@ import org.transitclock.core.dataCache.StopPathCacheKey;
 import org.transitclock.core.dataCache.TripDataHistoryCache;
 import org.transitclock.core.dataCache.TripKey;
 import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.Time;
 /**
  * @author Sean Óg Crudden
  * 
@@ -37,7 +36,7 @@ public class ScheduleBasedHistoricalAverageCache {
 	private static final Logger logger = LoggerFactory
 			.getLogger(ScheduleBasedHistoricalAverageCache.class);
 
-	private Cache cache = null;
+	private final DataCache<StopPathCacheKey, HistoricalAverage> cache;
 	/**
 	 * Gets the singleton instance of this class.
 	 * 
@@ -48,33 +47,26 @@ public class ScheduleBasedHistoricalAverageCache {
 	}
 	
 	private ScheduleBasedHistoricalAverageCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
-		}
-		cache = cm.getCache(cacheName);											
+		// Averages that haven't been updated for over a week are for trips
+		// that are no longer running
+		cache = DataCacheFactory.createCache(cacheName, 500000,
+				8 * Time.SEC_PER_DAY);
 	}
 	public List<StopPathCacheKey> getKeys()
 	{
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		return keys;
+		return cache.getKeys();
 	}
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
 		List<StopPathCacheKey> keys = cache.getKeys();
 		
 		for(StopPathCacheKey key : keys)
 		{
-			Element result=cache.get(key);
-			if(result!=null)
+			HistoricalAverage value=cache.get(key);
+			if(value!=null)
 			{
 				logger.debug("Key: "+key.toString());
-								
-				HistoricalAverage value=(HistoricalAverage) result.getObjectValue();
 												
 				logger.debug("Average: "+value);
 			}
@@ -82,29 +74,25 @@ public class ScheduleBasedHistoricalAverageCache {
 	}
 	public void logCacheSize(Logger logger)
 	{
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		
-		if(keys!=null)
-			logger.debug("Number of entries in HistoricalAverageCache : "+keys.size());
+		logger.debug("Number of entries in HistoricalAverageCache : {}", cache.size());
 	}
 	
-	synchronized public HistoricalAverage getAverage(StopPathCacheKey key) {		
+	/**
+	 * Does not lock. The average returned is never modified by the cache
+	 * since updates put a new average.
+	 * 
+	 * @param key
+	 * @return the average, or null if there is none
+	 */
+	public HistoricalAverage getAverage(StopPathCacheKey key) {		
 						
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (HistoricalAverage)result.getObjectValue();		
+		return cache.get(key);
 	}
-	synchronized public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
+	public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
 			
-		logger.debug("Putting: "+key.toString()+" in cache with values : "+average);
+		logger.debug("Putting: {} in cache with values : {}", key, average);
 		
-		Element averageElement = new Element(key, average);
-		
-		cache.put(averageElement);
+		cache.put(key, average);
 			
 		logCacheSize(logger);
 		// logCache(logger);
@@ -127,14 +115,8 @@ public class ScheduleBasedHistoricalAverageCache {
 				{
 					StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), true);
 					
-					HistoricalAverage average = ScheduleBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-					
-					if(average==null)				
-						average=new HistoricalAverage();
 					logger.debug("Updating historical averege for : {} with {}",historicalAverageCacheKey, travelTimeDetails);
-					average.update(travelTimeDetails.getTravelTime());
-					
-					ScheduleBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
+					updateAverage(historicalAverageCacheKey, travelTimeDetails.getTravelTime());
 				}
 			}		
 			
@@ -143,18 +125,27 @@ public class ScheduleBasedHistoricalAverageCache {
 			{
 				StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), false);
 				
-				HistoricalAverage average = ScheduleBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-				
-				if(average==null)				
-					average=new HistoricalAverage();
-				
 				logger.debug("Updating historical averege for : {} with {}",historicalAverageCacheKey, dwellTimeDetails );
-				average.update(dwellTimeDetails.getDwellTime());
-			
-				ScheduleBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
+				updateAverage(historicalAverageCacheKey, dwellTimeDetails.getDwellTime());
 			}
 		}
 	}
+	/**
+	 * Adds the value to a copy of the average for the key and puts the copy
+	 * in the cache, so that getAverage() doesn't need to lock and never sees
+	 * a partly updated average. Synchronized so that no update is lost.
+	 * Package private so that it can be tested without a Core.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	synchronized void updateAverage(StopPathCacheKey key, double value)
+	{
+		HistoricalAverage average = getAverage(key);
+		average = average != null ? new HistoricalAverage(average) : new HistoricalAverage();
+		average.update(value);
+		putAverage(key, average);
+	}
 	private TravelTimeDetails getLastTravelTimeDetails(ArrivalDeparture arrivalDeparture, Trip trip)
 	{
 		Date nearestDay = DateUtils.truncate(new Date(arrivalDeparture.getTime()), Calendar.DAY_OF_MONTH);
@@ -162,11 +153,9 @@ public class ScheduleBasedHistoricalAverageCache {
 				nearestDay,
 				trip.getStartTime());
 						
-		List<ArrivalDeparture> arrivalDepartures=(List<ArrivalDeparture>) TripDataHistoryCache.getInstance().getTripHistory(tripKey);
-		
-		if(arrivalDepartures!=null && arrivalDepartures.size()>0 && arrivalDeparture.isArrival())
+		if(arrivalDeparture.isArrival())
 		{			
-			ArrivalDeparture previousEvent = TripDataHistoryCache.findPreviousDepartureEvent(arrivalDepartures, arrivalDeparture);
+			ArrivalDeparture previousEvent = TripDataHistoryCache.getInstance().findPreviousDepartureEvent(tripKey, arrivalDeparture);
 			
 			if(previousEvent!=null && arrivalDeparture!=null && previousEvent.isDeparture())
 			{
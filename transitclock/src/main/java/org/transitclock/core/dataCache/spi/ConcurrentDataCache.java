@@ -0,0 +1,234 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.transitclock.utils.Time;
+
+/**
+ * An in process DataCache based on a ConcurrentHashMap. Gets don't lock so
+ * readers never contend with each other or with writers.
+ * <p>
+ * Entries expire timeToLiveSec after they were put into the cache. The order
+ * in which entries were put is kept in a queue so that the expired entries,
+ * and when the cache is too large the oldest entries, can be evicted from
+ * the head of the queue without looking at the other entries. Eviction is
+ * done by whichever thread is doing a put, but only by one thread at a time
+ * and without blocking the others. An expired entry that has not been
+ * evicted yet is never returned by get().
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentDataCache<K, V> implements DataCache<K, V> {
+
+	private final String name;
+	private final int maxEntries;
+	private final int timeToLiveSec;
+	private final long timeToLiveMsec;
+
+	private final ConcurrentHashMap<K, Entry<K, V>> map =
+			new ConcurrentHashMap<K, Entry<K, V>>();
+
+	// The entries in the order they were put. When a value is replaced its
+	// old entry stays in the queue until it gets to the head, so the queue
+	// can be larger than the map.
+	private final Queue<Entry<K, V>> writeOrder =
+			new ConcurrentLinkedQueue<Entry<K, V>>();
+	private final AtomicInteger writeOrderSize = new AtomicInteger();
+
+	// So that only one thread evicts at a time
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A value along with when it expires
+	 */
+	private static class Entry<K, V> {
+		private final K key;
+		private final V value;
+		private final long expiresTime;
+
+		private Entry(K key, V value, long expiresTime) {
+			this.key = key;
+			this.value = value;
+			this.expiresTime = expiresTime;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param name
+	 * @param maxEntries
+	 *            maximum number of entries
+	 * @param timeToLiveSec
+	 *            how long entries are kept after being put. 0 means entries
+	 *            don't expire.
+	 */
+	public ConcurrentDataCache(String name, int maxEntries, int timeToLiveSec) {
+		this.name = name;
+		this.maxEntries = maxEntries;
+		this.timeToLiveSec = timeToLiveSec;
+		this.timeToLiveMsec = timeToLiveSec > 0 ?
+				(long) timeToLiveSec * Time.MS_PER_SEC : Long.MAX_VALUE;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	private long expiresTime(long now) {
+		return timeToLiveMsec == Long.MAX_VALUE ?
+				Long.MAX_VALUE : now + timeToLiveMsec;
+	}
+
+	@Override
+	public V get(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry != null
+				&& entry.expiresTime <= System.currentTimeMillis()) {
+			// Expired but not evicted yet
+			if (map.remove(key, entry))
+				evictions.incrementAndGet();
+			entry = null;
+		}
+
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	@Override
+	public void put(K key, V value) {
+		Entry<K, V> entry =
+				new Entry<K, V>(key, value,
+						expiresTime(System.currentTimeMillis()));
+		map.put(key, entry);
+		added(entry);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		long now = System.currentTimeMillis();
+		Entry<K, V> entry = new Entry<K, V>(key, value, expiresTime(now));
+		while (true) {
+			Entry<K, V> existing = map.putIfAbsent(key, entry);
+			if (existing == null) {
+				added(entry);
+				return null;
+			}
+			if (existing.expiresTime > now)
+				return existing.value;
+
+			// Existing entry expired so replace it
+			if (map.replace(key, existing, entry)) {
+				evictions.incrementAndGet();
+				added(entry);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public void remove(K key) {
+		map.remove(key);
+	}
+
+	@Override
+	public List<K> getKeys() {
+		return new ArrayList<K>(map.keySet());
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public DataCacheStats getStats() {
+		return new DataCacheStats(name, "concurrent", map.size(), maxEntries,
+				timeToLiveSec, hits.get(), misses.get(), evictions.get());
+	}
+
+	/**
+	 * Records the new entry in the write order and then evicts if needed.
+	 */
+	private void added(Entry<K, V> entry) {
+		writeOrder.add(entry);
+		writeOrderSize.incrementAndGet();
+
+		if (evictionLock.tryLock()) {
+			try {
+				evict();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Removes entries from the head of the write order queue while they are
+	 * expired, no longer in the map because they were replaced or removed,
+	 * or while the cache is too large. Called by only one thread at a time.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		Entry<K, V> head;
+		while ((head = writeOrder.peek()) != null) {
+			boolean current = map.get(head.key) == head;
+			if (current && head.expiresTime > now
+					&& map.size() <= maxEntries)
+				break;
+
+			writeOrder.poll();
+			writeOrderSize.decrementAndGet();
+			if (current && map.remove(head.key, head))
+				evictions.incrementAndGet();
+		}
+
+		// If values are frequently replaced and don't expire then the old
+		// entries could build up in the queue. If so, get rid of them.
+		if (writeOrderSize.get() > 2 * map.size() + 1000) {
+			Iterator<Entry<K, V>> iterator = writeOrder.iterator();
+			while (iterator.hasNext()) {
+				Entry<K, V> entry = iterator.next();
+				if (map.get(entry.key) != entry) {
+					iterator.remove();
+					writeOrderSize.decrementAndGet();
+				}
+			}
+		}
+	}
+}
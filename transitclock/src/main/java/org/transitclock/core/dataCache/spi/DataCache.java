@@ -0,0 +1,83 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+import java.util.List;
+
+/**
+ * Storage for one of the data caches. Implementations must be thread safe
+ * and reads should not block. Entries can be evicted at any time, due to
+ * their age or to keep the cache within its maximum size, so users of a
+ * cache must handle an entry not being found.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public interface DataCache<K, V> {
+
+	/**
+	 * @return the name of the cache, as used for the config parameters and
+	 *         for CacheQueryServer
+	 */
+	public String getName();
+
+	/**
+	 * @param key
+	 * @return the value for the key, or null if not in the cache
+	 */
+	public V get(K key);
+
+	/**
+	 * Adds the value, replacing any existing value for the key
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void put(K key, V value);
+
+	/**
+	 * Adds the value only if there is not already a value for the key.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the existing value, or null if the value was added
+	 */
+	public V putIfAbsent(K key, V value);
+
+	/**
+	 * @param key
+	 */
+	public void remove(K key);
+
+	/**
+	 * @return a copy of the keys currently in the cache
+	 */
+	public List<K> getKeys();
+
+	/**
+	 * @return number of entries in the cache
+	 */
+	public int size();
+
+	/**
+	 * @return the current size, hit and eviction counts
+	 */
+	public DataCacheStats getStats();
+}
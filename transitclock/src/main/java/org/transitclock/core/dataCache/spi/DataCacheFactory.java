@@ -0,0 +1,125 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.config.StringConfigValue;
+import org.transitclock.utils.ClassInstantiator;
+
+/**
+ * For creating the storage of the data caches. The DataCacheProvider to use
+ * is set by transitclock.cache.dataCacheProviderClass. The maximum size and
+ * time to live of each cache can be configured using
+ * transitclock.cache.{name}.maxEntries and
+ * transitclock.cache.{name}.timeToLiveSec, where the defaults are specified
+ * by the cache itself.
+ * <p>
+ * Also keeps track of all of the caches created so that their metrics can be
+ * made available via CacheQueryServer.
+ */
+public class DataCacheFactory {
+
+	// The name of the class to instantiate
+	private static StringConfigValue className =
+			new StringConfigValue("transitclock.cache.dataCacheProviderClass",
+					"org.transitclock.core.dataCache.spi.ConcurrentDataCacheProvider",
+					"Specifies the name of the class used for providing the "
+					+ "storage of the data caches, such as the "
+					+ "KalmanErrorCache. Use "
+					+ "org.transitclock.core.dataCache.spi.EhcacheDataCacheProvider "
+					+ "to use Ehcache.");
+
+	private static DataCacheProvider provider = null;
+
+	// All caches created, keyed by name
+	private static final Map<String, DataCache<?, ?>> caches =
+			new LinkedHashMap<String, DataCache<?, ?>>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DataCacheFactory.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the storage for a cache
+	 *
+	 * @param name
+	 *            name of the cache
+	 * @param defaultMaxEntries
+	 *            max entries if transitclock.cache.{name}.maxEntries not set
+	 * @param defaultTimeToLiveSec
+	 *            time to live if transitclock.cache.{name}.timeToLiveSec not
+	 *            set. 0 means entries don't expire.
+	 * @return the cache
+	 */
+	public static synchronized <K, V> DataCache<K, V> createCache(
+			String name, int defaultMaxEntries, int defaultTimeToLiveSec) {
+		IntegerConfigValue maxEntries =
+				new IntegerConfigValue("transitclock.cache." + name
+						+ ".maxEntries",
+						defaultMaxEntries,
+						"Maximum number of entries in the " + name + " cache. "
+						+ "When exceeded the oldest entries are evicted.");
+		IntegerConfigValue timeToLiveSec =
+				new IntegerConfigValue("transitclock.cache." + name
+						+ ".timeToLiveSec",
+						defaultTimeToLiveSec,
+						"How long an entry is kept in the " + name + " cache "
+						+ "after it was last updated. 0 means entries "
+						+ "don't expire.");
+
+		// If the provider hasn't been created yet then do so now
+		if (provider == null) {
+			provider = ClassInstantiator.instantiate(className.getValue(),
+					DataCacheProvider.class);
+		}
+
+		DataCache<K, V> cache = provider.createCache(name,
+				maxEntries.getValue(), timeToLiveSec.getValue());
+		caches.put(name, cache);
+		logger.info("Created cache {} using {} with maxEntries={} and "
+				+ "timeToLiveSec={}", name, className.getValue(),
+				maxEntries.getValue(), timeToLiveSec.getValue());
+		return cache;
+	}
+
+	/**
+	 * @param name
+	 * @return the cache with the name, or null if there isn't one
+	 */
+	public static synchronized DataCache<?, ?> getCache(String name) {
+		return caches.get(name);
+	}
+
+	/**
+	 * @return the current metrics for all of the caches
+	 */
+	public static synchronized List<DataCacheStats> getStats() {
+		List<DataCacheStats> stats = new ArrayList<DataCacheStats>();
+		for (DataCache<?, ?> cache : caches.values())
+			stats.add(cache.getStats());
+		return stats;
+	}
+}
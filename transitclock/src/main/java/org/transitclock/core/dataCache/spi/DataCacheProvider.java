@@ -0,0 +1,42 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+/**
+ * For creating the storage of a data cache. The implementation to use is
+ * configured via transitclock.cache.dataCacheProviderClass and must have a
+ * no argument constructor.
+ */
+public interface DataCacheProvider {
+
+	/**
+	 * Creates the storage for a cache
+	 *
+	 * @param name
+	 *            name of the cache
+	 * @param maxEntries
+	 *            maximum number of entries. When exceeded the oldest entries
+	 *            are evicted.
+	 * @param timeToLiveSec
+	 *            how long an entry is kept after it was last put into the
+	 *            cache. 0 means entries don't expire.
+	 * @return the cache
+	 */
+	public <K, V> DataCache<K, V> createCache(String name, int maxEntries,
+			int timeToLiveSec);
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+/**
+ * The size and usage counts of a data cache at a point in time.
+ */
+public class DataCacheStats {
+
+	private final String name;
+	private final String implementation;
+	private final int size;
+	private final int maxEntries;
+	private final int timeToLiveSec;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+
+	/********************** Member Functions **************************/
+
+	public DataCacheStats(String name, String implementation, int size,
+			int maxEntries, int timeToLiveSec, long hits, long misses,
+			long evictions) {
+		this.name = name;
+		this.implementation = implementation;
+		this.size = size;
+		this.maxEntries = maxEntries;
+		this.timeToLiveSec = timeToLiveSec;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return short name of the DataCache implementation, such as
+	 *         "concurrent" or "ehcache"
+	 */
+	public String getImplementation() {
+		return implementation;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public int getTimeToLiveSec() {
+		return timeToLiveSec;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of entries removed because they expired or because the
+	 *         cache was full
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return hits divided by the total number of gets, or NaN if there
+	 *         haven't been any gets
+	 */
+	public double getHitRate() {
+		long gets = hits + misses;
+		return gets > 0 ? (double) hits / gets : Double.NaN;
+	}
+
+	@Override
+	public String toString() {
+		return "DataCacheStats ["
+				+ "name=" + name
+				+ ", implementation=" + implementation
+				+ ", size=" + size
+				+ ", maxEntries=" + maxEntries
+				+ ", timeToLiveSec=" + timeToLiveSec
+				+ ", hits=" + hits
+				+ ", misses=" + misses
+				+ ", evictions=" + evictions
+				+ ", hitRate=" + getHitRate()
+				+ "]";
+	}
+}
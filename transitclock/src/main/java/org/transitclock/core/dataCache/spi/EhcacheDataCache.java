@@ -0,0 +1,122 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.core.dataCache.spi;
+
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.statistics.StatisticsGateway;
+
+/**
+ * A DataCache that uses Ehcache, as the caches did originally. The cache is
+ * configured by ehcache.xml, except that the max entries and time to live
+ * from DataCacheFactory are used so that entries are actually evicted.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class EhcacheDataCache<K, V> implements DataCache<K, V> {
+
+	private final Cache cache;
+	private final int maxEntries;
+	private final int timeToLiveSec;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param name
+	 *            name of the Ehcache cache. Created if not in ehcache.xml.
+	 * @param maxEntries
+	 * @param timeToLiveSec
+	 *            0 means entries don't expire
+	 */
+	public EhcacheDataCache(String name, int maxEntries, int timeToLiveSec) {
+		this.maxEntries = maxEntries;
+		this.timeToLiveSec = timeToLiveSec;
+
+		CacheManager cm = CacheManager.getInstance();
+		if (cm.getCache(name) == null) {
+			cm.addCache(name);
+		}
+		cache = cm.getCache(name);
+
+		CacheConfiguration config = cache.getCacheConfiguration();
+		config.setEternal(timeToLiveSec <= 0);
+		config.setTimeToLiveSeconds(timeToLiveSec);
+		config.setMaxEntriesLocalHeap(maxEntries);
+	}
+
+	@Override
+	public String getName() {
+		return cache.getName();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(K key) {
+		Element result = cache.get(key);
+		if (result == null)
+			return null;
+		else
+			return (V) result.getObjectValue();
+	}
+
+	@Override
+	public void put(K key, V value) {
+		cache.put(new Element(key, value));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V putIfAbsent(K key, V value) {
+		Element existing = cache.putIfAbsent(new Element(key, value));
+		if (existing == null)
+			return null;
+		else
+			return (V) existing.getObjectValue();
+	}
+
+	@Override
+	public void remove(K key) {
+		cache.remove(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<K> getKeys() {
+		return cache.getKeys();
+	}
+
+	@Override
+	public int size() {
+		return cache.getSize();
+	}
+
+	@Override
+	public DataCacheStats getStats() {
+		StatisticsGateway statistics = cache.getStatistics();
+		return new DataCacheStats(cache.getName(), "ehcache", cache.getSize(),
+				maxEntries, timeToLiveSec, statistics.cacheHitCount(),
+				statistics.cacheMissCount(),
+				statistics.cacheEvictedCount()
+						+ statistics.cacheExpiredCount());
+	}
+}
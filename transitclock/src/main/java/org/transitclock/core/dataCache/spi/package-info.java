@@ -0,0 +1,26 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The service provider interface for the in memory data caches, such as
+ * KalmanErrorCache and ScheduleBasedHistoricalAverageCache. The caches get
+ * their storage from DataCacheFactory, which uses the DataCacheProvider
+ * configured by transitclock.cache.dataCacheProviderClass. This way the
+ * storage can be either the in process ConcurrentDataCache or Ehcache, and
+ * both provide the same metrics to CacheQueryServer.
+ */
+package org.transitclock.core.dataCache.spi;
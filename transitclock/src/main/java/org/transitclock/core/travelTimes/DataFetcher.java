@@ -21,14 +21,21 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TimeZone;
 
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.db.structs.ActiveRevisions;
 import org.transitclock.db.structs.Agency;
 import org.transitclock.db.structs.ArrivalDeparture;
@@ -94,10 +101,23 @@ public class DataFetcher {
 	public DataFetcher(String dbName, List<Integer> newSpecialDaysOfWeek) {
 		// Create the member calendar using timezone specified in db for the 
 		// agency. Use the currently active config rev.
+		this(getTimeZone(dbName));
+	}
+	
+	/**
+	 * For when the timezone of the agency is already known, such as for
+	 * testing.
+	 * 
+	 * @param timezone
+	 */
+	DataFetcher(TimeZone timezone) {
+		calendar = new GregorianCalendar(timezone);		
+	}
+	
+	private static TimeZone getTimeZone(String dbName) {
 		int configRev = ActiveRevisions.get(dbName).getConfigRev();
 		List<Agency> agencies = Agency.getAgencies(dbName, configRev);
-		TimeZone timezone = agencies.get(0).getTimeZone();
-		calendar = new GregorianCalendar(timezone);		
+		return agencies.get(0).getTimeZone();
 	}
 	
 	/**
@@ -219,7 +239,7 @@ public class DataFetcher {
 	 * @param map
 	 * @param arrDep
 	 */
-	private void addArrivalDepartureToMap(
+	void addArrivalDepartureToMap(
 			Map<DbDataMapKey, List<ArrivalDeparture>> map,
 			ArrivalDeparture arrDep) {
 		DbDataMapKey key = getKey(arrDep.getServiceId(), arrDep.getDate(),
@@ -326,7 +346,7 @@ public class DataFetcher {
 	 * @param map
 	 * @param arrDep
 	 */
-	private void addMatchToMap(Map<DbDataMapKey, List<Match>> map, Match match) {
+	void addMatchToMap(Map<DbDataMapKey, List<Match>> map, Match match) {
 		DbDataMapKey key = getKey(match.getServiceId(), match.getDate(),
 				match.getTripId(), match.getVehicleId());
 		List<Match> list = map.get(key);
@@ -439,6 +459,326 @@ public class DataFetcher {
 				readArrivalsDepartures(agencyId, beginTime, endTime);
 	}
 
+	/**
+	 * For receiving the data for one trip day at a time from streamData().
+	 */
+	public interface TripDataHandler {
+		/**
+		 * Called for each trip day, in order of trip.
+		 * 
+		 * @param key
+		 *            Identifies the trip day
+		 * @param arrDepList
+		 *            The arrivals/departures for the trip day, ordered by time
+		 * @param matchesForTrip
+		 *            The matches for the trip day, ordered by time. Can be
+		 *            empty.
+		 */
+		public void handleTripData(DbDataMapKey key,
+				List<ArrivalDeparture> arrDepList, List<Match> matchesForTrip);
+		
+		/**
+		 * Called after the last trip day has been handled.
+		 */
+		public void done();
+	}
+	
+	/**
+	 * Reads objects from the database one at a time using a scrollable
+	 * cursor.
+	 */
+	private static class DbIterator<T> implements Iterator<T> {
+		private final Session session;
+		private final ScrollableResults results;
+		private T next = null;
+		
+		private DbIterator(Session session, String hql, Date beginTime,
+				Date endTime) {
+			this.session = session;
+			Query query = session.createQuery(hql);
+			query.setTimestamp("beginDate", beginTime);
+			query.setTimestamp("endDate", endTime);
+			query.setReadOnly(true);
+			// When not paging db reads, which is for MySql, need to use a
+			// fetch size of Integer.MIN_VALUE so that the MySql driver
+			// streams the results instead of reading all of them at once
+			query.setFetchSize(pageDbReads() ? pageSize() : Integer.MIN_VALUE);
+			results = query.scroll(ScrollMode.FORWARD_ONLY);
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (next == null && results.next()) {
+				@SuppressWarnings("unchecked")
+				T o = (T) results.get(0);
+				// Don't want the session to hold on to the objects since then
+				// would run out of memory
+				session.evict(o);
+				next = o;
+			}
+			return next != null;
+		}
+		
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			T o = next;
+			next = null;
+			return o;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		private void close() {
+			results.close();
+			session.close();
+		}
+	}
+	
+	/**
+	 * Reads objects one at a time from an iterator that must be ordered by
+	 * tripId and vehicleId. Makes sure that the order from the database is
+	 * the same as the order used by compare() since otherwise the
+	 * arrivals/departures and the matches could not be merged.
+	 */
+	private static abstract class TripOrderedCursor<T> {
+		private final Iterator<T> iterator;
+		private final String name;
+		private T next = null;
+		private String lastTripId = null;
+		private String lastVehicleId = null;
+		private long count = 0;
+		
+		private TripOrderedCursor(Iterator<T> iterator, String name) {
+			this.iterator = iterator;
+			this.name = name;
+		}
+		
+		protected abstract String getTripId(T o);
+		protected abstract String getVehicleId(T o);
+		
+		/**
+		 * @return the next object without consuming it, or null if there are
+		 *         no more
+		 */
+		private T peek() {
+			if (next == null && iterator.hasNext()) {
+				T o = iterator.next();
+				
+				// Make sure ordered as expected
+				if (lastTripId != null && compare(getTripId(o),
+						getVehicleId(o), lastTripId, lastVehicleId) < 0)
+					throw new IllegalStateException("The database returned "
+							+ name + " for tripId=" + getTripId(o) 
+							+ " vehicleId=" + getVehicleId(o) + " after tripId="
+							+ lastTripId + " vehicleId=" + lastVehicleId 
+							+ ", which is not the order expected. Therefore "
+							+ "cannot stream the data. Set "
+							+ "transitclock.travelTimes.streaming to false.");
+				lastTripId = getTripId(o);
+				lastVehicleId = getVehicleId(o);
+				
+				next = o;
+				++count;
+			}
+			return next;
+		}
+		
+		/**
+		 * @return the next object, or null if there are no more
+		 */
+		private T poll() {
+			T o = peek();
+			next = null;
+			return o;
+		}
+	}
+	
+	/**
+	 * Orders by tripId and then vehicleId
+	 */
+	private static int compare(String tripId1, String vehicleId1,
+			String tripId2, String vehicleId2) {
+		int result = tripId1.compareTo(tripId2);
+		return result != 0 ? result : vehicleId1.compareTo(vehicleId2);
+	}
+	
+	/**
+	 * Streams arrivals/departures and matches from the db one trip day at a
+	 * time, instead of reading all of the data into the maps. This way the
+	 * memory used doesn't depend on the date range. The data is read using
+	 * scrollable cursors ordered by trip and vehicle, and the matches are
+	 * merged with the arrivals/departures for the same trip day. Each trip
+	 * day is passed to the handler as soon as all of its data has been read.
+	 * 
+	 * @param dbName
+	 * @param beginTime
+	 * @param endTime
+	 * @param handler
+	 *            Receives the data for each trip day
+	 * @return true if there were any matches for the time range
+	 */
+	public boolean streamData(String dbName, Date beginTime, Date endTime,
+			TripDataHandler handler) {
+		DbIterator<ArrivalDeparture> arrDeps = null;
+		DbIterator<Match> matches = null;
+		try {
+			arrDeps = new DbIterator<ArrivalDeparture>(
+					HibernateUtils.getSession(dbName, false),
+					"FROM ArrivalDeparture " +
+					"    WHERE time between :beginDate " +
+					"      AND :endDate " +
+					"      AND tripId is not null " +
+					"      AND vehicleId is not null " +
+					"    ORDER BY tripId, vehicleId, time",
+					beginTime, endTime);
+			// Only want matches that are not at a stop since for that
+			// situation instead using arrivals/departures. 
+			matches = new DbIterator<Match>(
+					HibernateUtils.getSession(dbName, false),
+					"FROM Match " +
+					"    WHERE avlTime between :beginDate " +
+					"      AND :endDate " +
+					"      AND atStop = false " +
+					"      AND tripId is not null " +
+					"      AND vehicleId is not null " +
+					"    ORDER BY tripId, vehicleId, avlTime",
+					beginTime, endTime);
+			
+			return streamData(arrDeps, matches, handler);
+		} finally {
+			if (arrDeps != null)
+				arrDeps.close();
+			if (matches != null)
+				matches.close();
+		}
+	}
+	
+	/**
+	 * Merges the arrivals/departures and the matches, both ordered by trip,
+	 * vehicle, and time, into trip days and passes each trip day to the
+	 * handler as soon as all of its data has been read.
+	 * 
+	 * @param arrDeps
+	 * @param matches
+	 * @param handler
+	 *            Receives the data for each trip day
+	 * @return true if there were any matches
+	 */
+	boolean streamData(Iterator<ArrivalDeparture> arrDeps,
+			Iterator<Match> matches, TripDataHandler handler) {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Streaming historic data from db...");
+		
+		TripOrderedCursor<ArrivalDeparture> arrDepCursor = 
+				new TripOrderedCursor<ArrivalDeparture>(arrDeps,
+						"arrival/departure") {
+			@Override
+			protected String getTripId(ArrivalDeparture arrDep) {
+				return arrDep.getTripId();
+			}
+			@Override
+			protected String getVehicleId(ArrivalDeparture arrDep) {
+				return arrDep.getVehicleId();
+			}
+		};
+		TripOrderedCursor<Match> matchCursor = 
+				new TripOrderedCursor<Match>(matches, "match") {
+			@Override
+			protected String getTripId(Match match) {
+				return match.getTripId();
+			}
+			@Override
+			protected String getVehicleId(Match match) {
+				return match.getVehicleId();
+			}
+		};
+		
+		// Group the arrivals/departures by trip day. Since ordered by
+		// trip, vehicle, and time the data for a trip day is contiguous.
+		int tripDays = 0;
+		DbDataMapKey groupKey = null;
+		List<ArrivalDeparture> group = new ArrayList<ArrivalDeparture>();
+		ArrivalDeparture arrDep;
+		while ((arrDep = arrDepCursor.poll()) != null) {
+			DbDataMapKey key = getKey(arrDep.getServiceId(),
+					arrDep.getDate(), arrDep.getTripId(),
+					arrDep.getVehicleId());
+			if (groupKey != null && !key.equals(groupKey)) {
+				handleTripDay(groupKey, group, matchCursor, handler);
+				group = new ArrayList<ArrivalDeparture>();
+				if (++tripDays % 10000 == 0)
+					logger.info("Streamed {} trip days so far. Read {} "
+							+ "arrival/departures and {} matches.", 
+							tripDays, arrDepCursor.count, 
+							matchCursor.count);
+			}
+			groupKey = key;
+			group.add(arrDep);
+		}
+		if (groupKey != null) {
+			handleTripDay(groupKey, group, matchCursor, handler);
+			++tripDays;
+		}
+		handler.done();
+		
+		boolean matchesFound = 
+				matchCursor.count > 0 || matchCursor.peek() != null;
+		logger.info("Streaming {} trip days with {} arrival/departures "
+				+ "and {} matches took {} msec", 
+				tripDays, arrDepCursor.count, matchCursor.count,
+				timer.elapsedMsec());
+		return matchesFound;
+	}
+	
+	/**
+	 * Reads the matches for the trip day from the match cursor and passes the
+	 * trip day data to the handler. Matches for trip days without any
+	 * arrivals/departures are skipped.
+	 * 
+	 * @param key
+	 * @param arrDepList
+	 * @param matchCursor
+	 * @param handler
+	 */
+	private void handleTripDay(DbDataMapKey key,
+			List<ArrivalDeparture> arrDepList,
+			TripOrderedCursor<Match> matchCursor, TripDataHandler handler) {
+		ArrivalDeparture first = arrDepList.get(0);
+		List<Match> matchesForTrip = new ArrayList<Match>();
+		Match match;
+		while ((match = matchCursor.peek()) != null) {
+			int order = compare(match.getTripId(), match.getVehicleId(),
+					first.getTripId(), first.getVehicleId());
+			
+			// If match is for a later trip or vehicle then done
+			if (order > 0)
+				break;
+			
+			if (order == 0) {
+				DbDataMapKey matchKey = getKey(match.getServiceId(), 
+						match.getDate(), match.getTripId(), 
+						match.getVehicleId());
+				if (matchKey.equals(key)) {
+					matchesForTrip.add(match);
+				} else if (!match.getDate().before(first.getDate())) {
+					// Match is for a later day of the trip so done
+					break;
+				}
+			}
+			
+			// Match was either used or is for a trip day without any
+			// arrivals/departures
+			matchCursor.poll();
+		}
+		
+		handler.handleTripData(key, arrDepList, matchesForTrip);
+	}
+
 	/**
 	 * Provides the arrival/departure data in a map. The values in the map are
 	 * Lists of ArrivalDeparture times, one list for each trip where there was
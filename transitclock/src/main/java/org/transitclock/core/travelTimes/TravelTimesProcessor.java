@@ -17,20 +17,25 @@
 
 package org.transitclock.core.travelTimes;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
+import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.core.TemporalDifference;
 import org.transitclock.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitclock.db.structs.ArrivalDeparture;
@@ -59,6 +64,13 @@ import com.amazonaws.services.importexport.model.InvalidParameterException;
  * get greater accuracy (assuming that buses might consistently travel
  * differently on Monday compared to Friday even though they have the same
  * service ID.
+ * <p>
+ * The historic data can either be read into memory all at once, or, when
+ * transitclock.travelTimes.streaming is set, streamed from the database one
+ * trip day at a time. When streaming, the trip days are aggregated in
+ * parallel into separate TravelTimesAccumulators that are then merged, so
+ * memory use depends on the number of trip days being processed instead of
+ * on the date range.
  *
  * @author SkiBu Smith
  *
@@ -130,6 +142,39 @@ public class TravelTimesProcessor {
 					+ "make sure that don't get invalid travel times due to "
 					+ "bad data.");
 	
+	private static boolean streamingEnabled() {
+		return streaming.getValue();
+	}
+	private static BooleanConfigValue streaming =
+			new BooleanConfigValue("transitclock.travelTimes.streaming",
+					false,
+					"When true the historic arrivals/departures and matches "
+					+ "are streamed from the database ordered by trip and "
+					+ "each trip day is processed as soon as all of its data "
+					+ "has been read, using multiple threads. Uses far less "
+					+ "memory than reading in all the data for the date range "
+					+ "at once. Requires that the database orders tripId and "
+					+ "vehicleId the same way as Java does, which is the case "
+					+ "for typical IDs.");
+	
+	private static IntegerConfigValue streamingThreads =
+			new IntegerConfigValue("transitclock.travelTimes.streamingThreads",
+					Runtime.getRuntime().availableProcessors(),
+					"Number of threads used to aggregate the trip days when "
+					+ "transitclock.travelTimes.streaming is true.");
+	
+	private static IntegerConfigValue streamingBatchSize =
+			new IntegerConfigValue("transitclock.travelTimes.streamingBatchSize",
+					500,
+					"Number of trip days that are aggregated by a single "
+					+ "task when transitclock.travelTimes.streaming is true. "
+					+ "At most two batches per thread are held in memory at "
+					+ "once.");
+	
+	// When aggregating a batch of trip days it is split up until there are
+	// no more than this many trip days per task
+	private final static int MIN_TRIP_DAYS_PER_TASK = 25;
+	
 	private static DoubleConfigValue maxSegmentSpeedMps =
 			new DoubleConfigValue("transitclock.traveltimes.maxSegmentSpeedMps",
 					27.0, // 27.0m/s = 60mph
@@ -155,6 +200,10 @@ public class TravelTimesProcessor {
 	// segment we have historical data for we get an entry in the inner List.
 	private static Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap =
 			new HashMap<ProcessedDataMapKey, List<List<Integer>>>();
+	
+	// For adding to stopTimesMap and travelTimesMap
+	private static TravelTimesAccumulator aggregatedData =
+			new TravelTimesAccumulator(stopTimesMap, travelTimesMap);
 
 	private static final Logger logger = 
 			LoggerFactory.getLogger(TravelTimesProcessor.class);
@@ -215,39 +264,87 @@ public class TravelTimesProcessor {
 	}
 
 	/**
-	 * Adds stop times for a stop path for a single trip to the stopTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param stopTimeMsec
+	 * Contains the stop times and travel times aggregated from trip days,
+	 * keyed by trip and stop path. Not thread safe, but separate accumulators
+	 * can be filled in by separate threads and then merged.
 	 */
-	private static void addStopTimeToMap(ProcessedDataMapKey mapKey,
-			int stopTimeMsec) {
-		List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
-		if (stopTimesForStop == null) {
-			stopTimesForStop = new ArrayList<Integer>();
-			stopTimesMap.put(mapKey, stopTimesForStop);
+	private static class TravelTimesAccumulator {
+		private final Map<ProcessedDataMapKey, List<Integer>> stopTimes;
+		private final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes;
+		
+		private TravelTimesAccumulator() {
+			this(new HashMap<ProcessedDataMapKey, List<Integer>>(),
+					new HashMap<ProcessedDataMapKey, List<List<Integer>>>());
+		}
+		
+		private TravelTimesAccumulator(
+				Map<ProcessedDataMapKey, List<Integer>> stopTimes,
+				Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes) {
+			this.stopTimes = stopTimes;
+			this.travelTimes = travelTimes;
+		}
+		
+		/**
+		 * Adds stop times for a stop path for a single trip.
+		 * 
+		 * @param mapKey
+		 * @param stopTimeMsec
+		 */
+		private void addStopTime(ProcessedDataMapKey mapKey,
+				int stopTimeMsec) {
+			List<Integer> stopTimesForStop = stopTimes.get(mapKey);
+			if (stopTimesForStop == null) {
+				stopTimesForStop = new ArrayList<Integer>();
+				stopTimes.put(mapKey, stopTimesForStop);
+			}
+			stopTimesForStop.add(stopTimeMsec);
+		}
+		
+		/**
+		 * Adds travel times for stop path for a single trip.
+		 * 
+		 * @param mapKey
+		 * @param travelTimesForStopPath
+		 */
+		private void addTravelTimes(ProcessedDataMapKey mapKey, 
+				List<Integer> travelTimesForStopPath) {
+			// If there is no data then simply return
+			if (travelTimesForStopPath == null 
+					|| travelTimesForStopPath.isEmpty())
+				return;
+			
+			List<List<Integer>> travelTimesForStop = travelTimes.get(mapKey);
+			if (travelTimesForStop == null) {
+				travelTimesForStop = new ArrayList<List<Integer>>();
+				travelTimes.put(mapKey, travelTimesForStop);
+			}
+			travelTimesForStop.add(travelTimesForStopPath);
 		}
-		stopTimesForStop.add(stopTimeMsec);
-	}
-	
-	/**
-	 * Adds travel times for stop path for a single trip to the travelTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param travelTimesForStopPath
-	 */
-	private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
-			List<Integer> travelTimesForStopPath) {
-		// If there is no data then simply return
-		if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty())
-			return;
 		
-		List<List<Integer>> travelTimesForStop = travelTimesMap.get(mapKey);
-		if (travelTimesForStop == null) {
-			travelTimesForStop = new ArrayList<List<Integer>>();
-			travelTimesMap.put(mapKey, travelTimesForStop);
+		/**
+		 * Adds all the data from the other accumulator to this one.
+		 * 
+		 * @param other
+		 */
+		private void merge(TravelTimesAccumulator other) {
+			for (Map.Entry<ProcessedDataMapKey, List<Integer>> entry : 
+					other.stopTimes.entrySet()) {
+				List<Integer> stopTimesForStop = stopTimes.get(entry.getKey());
+				if (stopTimesForStop == null)
+					stopTimes.put(entry.getKey(), entry.getValue());
+				else
+					stopTimesForStop.addAll(entry.getValue());
+			}
+			for (Map.Entry<ProcessedDataMapKey, List<List<Integer>>> entry : 
+					other.travelTimes.entrySet()) {
+				List<List<Integer>> travelTimesForStop =
+						travelTimes.get(entry.getKey());
+				if (travelTimesForStop == null)
+					travelTimes.put(entry.getKey(), entry.getValue());
+				else
+					travelTimesForStop.addAll(entry.getValue());
+			}
 		}
-		travelTimesForStop.add(travelTimesForStopPath);
 	}
 	
 	/**
@@ -266,9 +363,12 @@ public class TravelTimesProcessor {
 	 * For when the arrival/departure is for first stop of trip. If the schedule
 	 * adherence isn't too bad adds the stop time to the stop wait map.
 	 * 
+	 * @param accumulator
+	 *            Where to put the resulting stop time
 	 * @param arrDep
 	 */
-	private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+	private static void processFirstStopOfTrip(
+			TravelTimesAccumulator accumulator, ArrivalDeparture arrDep) {
 		// Only need to handle departure for first stop in trip
 		if (arrDep.getStopPathIndex() != 0) 
 			return;
@@ -301,7 +401,7 @@ public class TravelTimesProcessor {
 						arrDep.getStopId());
 
 		// Add this stop time to map so it can be averaged
-		addStopTimeToMap(mapKeyForTravelTimes, lateTimeMsec);		
+		accumulator.addStopTime(mapKeyForTravelTimes, lateTimeMsec);		
 	}
 	
 	/**
@@ -312,21 +412,17 @@ public class TravelTimesProcessor {
 	 * list of matches for the stopPath directly from the map instead of getting
 	 * all the matches for the trip and then filtering them.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
+	 *            The matches for the trip day of the arrival/departure. Can
+	 *            be null.
 	 * @param arrDep
 	 * @return List of Match objects. Never returns null.
 	 */
-	private static List<Match> getMatchesForStopPath(DataFetcher dataFetcher,
-			ArrivalDeparture arrDep) {
+	private static List<Match> getMatchesForStopPath(
+			List<Match> matchesForTrip, ArrivalDeparture arrDep) {
 		// For returning the results
 		List<Match> matchesForStopPath = new ArrayList<Match>();
 
-		// Get the matches for the entire trip since that is
-		// how the data is available
-		DbDataMapKey mapKey = dataFetcher.getKey(arrDep.getServiceId(),
-				arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId());
-		List<Match> matchesForTrip = dataFetcher.getMatchesMap().get(mapKey);
-		
 		// If no matches were found for this trip then return empty
 		// array (don't continue since would get NPE).
 		if (matchesForTrip == null)
@@ -456,7 +552,8 @@ public class TravelTimesProcessor {
 	 * matches will include the departure time from the first stop (arrDep1), in
 	 * between matches, and the arrival time as the second stop (arrDep2).
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
+	 *            The matches for the trip day. Can be null.
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
@@ -464,7 +561,7 @@ public class TravelTimesProcessor {
 	 * @return List of MatchPoints, which contain the basic Match info needed
 	 *         for determining travel times.
 	 */
-	private static List<MatchPoint> getMatchPoints(DataFetcher dataFetcher,
+	private static List<MatchPoint> getMatchPoints(List<Match> matchesForTrip,
 			ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
 		// The array to be returned
 		List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
@@ -476,7 +573,7 @@ public class TravelTimesProcessor {
 		// Stop path is long enough such that have more than one travel
 		// time segment. Get the corresponding matches
 		List<Match> matchesForStopPath = 
-				getMatchesForStopPath(dataFetcher, arrDep2);
+				getMatchesForStopPath(matchesForTrip, arrDep2);
 
 		// Add the matches that are in between the arrival and the departure.
 		for (Match match : matchesForStopPath) {
@@ -507,7 +604,8 @@ public class TravelTimesProcessor {
 	 * path, to determine the travel time for each travel time segment for this
 	 * particular trip.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
+	 *            The matches for the trip day. Can be null.
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
@@ -517,7 +615,7 @@ public class TravelTimesProcessor {
 	 *         backwards in time then null is returned.
 	 */
 	private List<Integer> determineTravelTimesForStopPath(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
+			List<Match> matchesForTrip, ArrivalDeparture arrDep1,
 			ArrivalDeparture arrDep2) {
 		// Determine departure time. If shouldn't use departures times
 		// for terminal departure that are earlier then schedule time
@@ -554,7 +652,7 @@ public class TravelTimesProcessor {
 		double travelTimeSegmentLength = getTravelTimeSegmentLength(arrDep2);
 
 		List<MatchPoint> matchPoints = 
-				getMatchPoints(dataFetcher, arrDep1, arrDep2);
+				getMatchPoints(matchesForTrip, arrDep1, arrDep2);
 		
 		// The times when a travel time segment vertex is crossed.
 		// Will include the departure time, the middle vertices, and
@@ -667,19 +765,21 @@ public class TravelTimesProcessor {
 	 * stop and then an arrival for the subsequent stop. If the schedule
 	 * adherence is off too much (by MAX_SCHED_ADH_SECS) then the data is
 	 * ignored. If schedule adherence is acceptable then the resulting travel
-	 * and stop/dwell times are put into the stopTimesMap and travelTimesMap
-	 * members for further processing.
+	 * and stop/dwell times are put into the accumulator for further 
+	 * processing.
 	 * 
-	 * @param dataFetcher
-	 *            Contains the AVL based historic data in maps
+	 * @param accumulator
+	 *            Where to put the resulting travel and stop times
+	 * @param matchesForTrip
+	 *            The matches for the trip day. Can be null.
 	 * @param arrDep1
 	 *            The first arrival/departure
 	 * @param arrDep2
 	 *            The second arrival/departure
 	 */
 	private void processDataBetweenTwoArrivalDepartures(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
-			ArrivalDeparture arrDep2) {
+			TravelTimesAccumulator accumulator, List<Match> matchesForTrip,
+			ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
 		// If schedule adherence is really far off then ignore the data
 		// point because it would skew the results.
 		TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -707,7 +807,7 @@ public class TravelTimesProcessor {
 
 			// Add this stop time to map so it can be averaged
 			if (dwellTimeMsec >= 0)
-				addStopTimeToMap(mapKeyForTravelTimes, dwellTimeMsec);		
+				accumulator.addStopTime(mapKeyForTravelTimes, dwellTimeMsec);		
 			else
 				logger.error("Ignoring negative dwell time={} for stop path "
 						+ "at arrival/departures {} and {} (key = {})",
@@ -724,7 +824,7 @@ public class TravelTimesProcessor {
 				&& arrDep2.isArrival()) {
 			// Determine the travel times and add them to the map
 			List<Integer> travelTimesForStopPath = 
-					determineTravelTimesForStopPath(dataFetcher, arrDep1, 
+					determineTravelTimesForStopPath(matchesForTrip, arrDep1, 
 							arrDep2);
 			
 			// Ignore a stop path if any segment travel time is negative. Nulls will
@@ -741,7 +841,8 @@ public class TravelTimesProcessor {
 				}
 			}
 			
-			addTravelTimesToMap(mapKeyForTravelTimes, travelTimesForStopPath);
+			accumulator.addTravelTimes(mapKeyForTravelTimes, 
+					travelTimesForStopPath);
 				
 			return;
 		}
@@ -749,15 +850,17 @@ public class TravelTimesProcessor {
 	
 	/**
 	 * Process historic data from database for single trip. Puts resulting data
-	 * into stopTimesMap and travelTimesMap.
+	 * into the accumulator.
 	 * 
-	 * @param dataFetcher
-	 *            Contains arrival/departures and matches fetched from database
+	 * @param accumulator
+	 *            Where to put the resulting travel and stop times
+	 * @param matchesForTrip
+	 *            The matches for the trip day. Can be null.
 	 * @param arrDepList
 	 *            List of ArrivalDepartures for vehicle for a trip
 	 */
-	private void aggregateTripDataIntoMaps(DataFetcher dataFetcher,
-			List<ArrivalDeparture> arrDepList) {
+	private void aggregateTripDataIntoMaps(TravelTimesAccumulator accumulator,
+			List<Match> matchesForTrip, List<ArrivalDeparture> arrDepList) {
 		
 		for (int i=0; i<arrDepList.size()-1; ++i) {
 			ArrivalDeparture arrDep1 = arrDepList.get(i);
@@ -770,12 +873,13 @@ public class TravelTimesProcessor {
 					continue;
 
 				// Handle first stop
-				processFirstStopOfTrip(arrDep1);
+				processFirstStopOfTrip(accumulator, arrDep1);
 			} 
 			
 			// Deal with normal travel times
 			ArrivalDeparture arrDep2 = arrDepList.get(i+1);				
-			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);							
+			processDataBetweenTwoArrivalDepartures(accumulator, matchesForTrip,
+					arrDep1, arrDep2);							
 		}		
 	}
 		
@@ -1021,6 +1125,12 @@ public class TravelTimesProcessor {
 	 */
 	public void readAndProcessHistoricData(String projectId, 
 			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
+		if (streamingEnabled()) {
+			streamAndProcessHistoricData(projectId, specialDaysOfWeek,
+					beginTime, endTime);
+			return;
+		}
+		
 		// Read the arrivals/departures and matches into a DataFetcher
 		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
 		dataFetcher.readData(projectId, beginTime, endTime);
@@ -1039,11 +1149,13 @@ public class TravelTimesProcessor {
 		// resulting data into stopTimesMap and travelTimesMap.
 		logger.info("Processing data into travel time maps...");
 		IntervalTimer intervalTimer = new IntervalTimer();
-		Collection<List<ArrivalDeparture>> arrivalDepartures =
-				dataFetcher.getArrivalDepartureMap().values();
-		for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
+		Map<DbDataMapKey, List<Match>> matchesMap = dataFetcher.getMatchesMap();
+		for (Map.Entry<DbDataMapKey, List<ArrivalDeparture>> entry : 
+				dataFetcher.getArrivalDepartureMap().entrySet()) {
+			List<ArrivalDeparture> arrDepList = entry.getValue();
 			debugLogTrip(arrDepList);
-			aggregateTripDataIntoMaps(dataFetcher, arrDepList);
+			aggregateTripDataIntoMaps(aggregatedData,
+					matchesMap.get(entry.getKey()), arrDepList);
 		}
 		
 		// Nice to log how long things took so can see progress and bottle necks
@@ -1052,6 +1164,148 @@ public class TravelTimesProcessor {
 				intervalTimer.elapsedMsec());
 	}	
 	
+	/**
+	 * The arrivals/departures and matches for a single trip day
+	 */
+	private static class TripDayData {
+		private final List<ArrivalDeparture> arrDepList;
+		private final List<Match> matchesForTrip;
+		
+		private TripDayData(List<ArrivalDeparture> arrDepList,
+				List<Match> matchesForTrip) {
+			this.arrDepList = arrDepList;
+			this.matchesForTrip = matchesForTrip;
+		}
+	}
+	
+	/**
+	 * For aggregating a batch of trip days in a ForkJoinPool. Splits the batch
+	 * until it is small enough and then aggregates each part into its own
+	 * TravelTimesAccumulator. The accumulators are merged when the parts are
+	 * joined.
+	 */
+	private class AggregateTripDaysTask 
+			extends RecursiveTask<TravelTimesAccumulator> {
+		private final List<TripDayData> tripDays;
+		
+		private static final long serialVersionUID = 1L;
+		
+		private AggregateTripDaysTask(List<TripDayData> tripDays) {
+			this.tripDays = tripDays;
+		}
+		
+		@Override
+		protected TravelTimesAccumulator compute() {
+			if (tripDays.size() > MIN_TRIP_DAYS_PER_TASK) {
+				int middle = tripDays.size() / 2;
+				AggregateTripDaysTask second = 
+						new AggregateTripDaysTask(tripDays.subList(middle,
+								tripDays.size()));
+				second.fork();
+				TravelTimesAccumulator accumulator = 
+						new AggregateTripDaysTask(tripDays.subList(0, middle))
+								.compute();
+				accumulator.merge(second.join());
+				return accumulator;
+			}
+			
+			TravelTimesAccumulator accumulator = new TravelTimesAccumulator();
+			for (TripDayData tripDay : tripDays) {
+				debugLogTrip(tripDay.arrDepList);
+				aggregateTripDataIntoMaps(accumulator, tripDay.matchesForTrip,
+						tripDay.arrDepList);
+			}
+			return accumulator;
+		}
+	}
+	
+	/**
+	 * Streams the Matches and the ArrivalDepartures from the database for the
+	 * time specified, one trip day at a time. Batches of trip days are
+	 * aggregated in parallel while the next ones are being read. The results
+	 * are put into the stopTimesMap and the travelTimesMap for further
+	 * processing.
+	 * 
+	 * @param projectId
+	 * @param specialDaysOfWeek
+	 * @param beginTime
+	 * @param endTime
+	 */
+	private void streamAndProcessHistoricData(String projectId,
+			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
+		logger.info("Streaming historic data from db into travel time maps "
+				+ "using {} threads...", streamingThreads.getValue());
+		IntervalTimer intervalTimer = new IntervalTimer();
+		
+		final ForkJoinPool pool = 
+				new ForkJoinPool(Math.max(streamingThreads.getValue(), 1));
+		final int batchSize = Math.max(streamingBatchSize.getValue(), 1);
+		final int maxBatchesInProgress = 2 * pool.getParallelism();
+		final Deque<ForkJoinTask<TravelTimesAccumulator>> batchesInProgress = 
+				new ArrayDeque<ForkJoinTask<TravelTimesAccumulator>>();
+		final TravelTimesAccumulator results = new TravelTimesAccumulator();
+		
+		boolean matchesFound;
+		try {
+			DataFetcher dataFetcher = 
+					new DataFetcher(projectId, specialDaysOfWeek);
+			matchesFound = dataFetcher.streamData(projectId, beginTime, endTime,
+					new DataFetcher.TripDataHandler() {
+						private List<TripDayData> batch = 
+								new ArrayList<TripDayData>(batchSize);
+						
+						@Override
+						public void handleTripData(DbDataMapKey key,
+								List<ArrivalDeparture> arrDepList,
+								List<Match> matchesForTrip) {
+							batch.add(new TripDayData(arrDepList, 
+									matchesForTrip));
+							if (batch.size() < batchSize)
+								return;
+							
+							// Limit how much data is in memory by waiting for
+							// the oldest batch if too many are in progress
+							if (batchesInProgress.size() >= maxBatchesInProgress)
+								results.merge(batchesInProgress.removeFirst()
+										.join());
+							batchesInProgress.addLast(pool.submit(
+									new AggregateTripDaysTask(batch)));
+							batch = new ArrayList<TripDayData>(batchSize);
+						}
+						
+						@Override
+						public void done() {
+							if (!batch.isEmpty())
+								batchesInProgress.addLast(pool.submit(
+										new AggregateTripDaysTask(batch)));
+						}
+					});
+			
+			// Wait for the remaining batches
+			while (!batchesInProgress.isEmpty())
+				results.merge(batchesInProgress.removeFirst().join());
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		// Exit here if no matches are present since no further work can be 
+		// done, same as when not streaming
+		if (!matchesFound) {
+			logger.error("No Matches:  Nothing to do!");
+			isEmpty = true;
+			reportStatus(0, 0, 0, 0);
+			return;
+		}
+		isEmpty = false;
+		
+		aggregatedData.merge(results);
+		
+		// Nice to log how long things took so can see progress and bottle necks
+		logger.info("Streaming data from db into the travel times and stop " +
+				"times map took {} msec.", 
+				intervalTimer.elapsedMsec());
+	}
+	
 	 public Long updateMetrics(Session session, int travelTimesRev) {
 	   Long count = Trip.countTravelTimesForTrips(session, travelTimesRev);
 	   cloudwatchService.saveMetric("PredictionLatestTravelTimeRev", travelTimesRev*1.0, 1, CloudwatchService.MetricType.SCALAR, CloudwatchService.ReportingIntervalTimeUnit.IMMEDIATE, false);
@@ -16,7 +16,9 @@
  */
 package org.transitclock.db.hibernate;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -263,6 +265,38 @@ public class DataDbLogger {
 	  return predictionQueue.queueSize();
 	}
 	
+	/**
+	 * @return all of the queues, for reporting on them as a whole
+	 */
+	private List<DbQueue<?>> allQueues() {
+	  return Arrays.<DbQueue<?>> asList(arrivalDepartureQueue, avlReportQueue, 
+	      vehicleConfigQueue, predictionQueue, matchQueue, 
+	      predictionAccuracyQueue, monitoringEventQueue, vehicleEventQueue, 
+	      vehicleStateQueue, genericQueue);
+	}
+	
+	/**
+	 * @return total number of objects, over all of the queues, that have been
+	 *         spilled to disk and not yet written to the database
+	 */
+	public long spillSize() {
+	  long size = 0;
+	  for (DbQueue<?> queue : allQueues())
+	    size += queue.spillSize();
+	  return size;
+	}
+	
+	/**
+	 * @return total number of objects, over all of the queues, that have been
+	 *         written to the database from the spill files
+	 */
+	public long spillDrainedCount() {
+	  long count = 0;
+	  for (DbQueue<?> queue : allQueues())
+	    count += queue.spillDrainedCount();
+	  return count;
+	}
+	
 	/**
 	 * Just for doing some testing
 	 * 
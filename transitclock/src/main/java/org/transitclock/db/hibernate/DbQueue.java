@@ -1,5 +1,8 @@
 package org.transitclock.db.hibernate;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.sql.SQLException;
@@ -79,6 +82,28 @@ public class DbQueue<T> {
   private long throughputCount = 0;
   private long throughputTimestamp = System.currentTimeMillis();
   private String shortType;
+  
+  // If not null then used instead of saving each object via the session
+  private final JdbcBatchWriter batchWriter;
+  
+  // If not null then objects that don't fit into the queue are spilled to
+  // disk instead of being lost
+  private final DbQueueSpillFile<T> spillFile;
+  
+  // Set while there are objects in the spill file. Then new objects are
+  // also appended to the spill file, instead of to the queue, so that they
+  // are written to the db in order. Only changed while synchronized on
+  // spillLock.
+  private volatile boolean spilling = false;
+  private final Object spillLock = new Object();
+  
+  // Set by drain() when the batch came from the spill file so that the
+  // spill file read position is committed once the batch has been written
+  private boolean spilledBatchPending = false;
+  
+  // Total number of objects written from the spill file, for determining
+  // the drain rate
+  private volatile long spillDrainedCount = 0;
 
   public DbQueue(String projectId, boolean shouldStoreToDb, 
       boolean shouldPauseToReduceQueue, String shortType) {
@@ -87,6 +112,35 @@ public class DbQueue<T> {
     this.shouldPauseToReduceQueue = shouldPauseToReduceQueue;
     this.shortType = shortType;
     
+    List<String> batchWriterTypes = DbSetupConfig.getBatchWriterTypes();
+    if (batchWriterTypes != null && batchWriterTypes.contains(shortType)) {
+      boolean useCopy = "postgresql".equalsIgnoreCase(DbSetupConfig.getDbType());
+      logger.info("Using JdbcBatchWriter for type {} with {}", shortType, 
+          useCopy ? "COPY" : "multi-row inserts");
+      batchWriter = new JdbcBatchWriter(useCopy);
+    } else {
+      batchWriter = null;
+    }
+    
+    DbQueueSpillFile<T> spill = null;
+    String spillDirectory = DbSetupConfig.getSpillDirectory();
+    if (spillDirectory != null) {
+      File directory = 
+          new File(new File(spillDirectory, projectId), shortType);
+      try {
+        spill = new DbQueueSpillFile<T>(directory, 
+            DbSetupConfig.getSpillSegmentSize());
+        // Objects left over from before a restart are written first
+        spilling = !spill.isEmpty();
+        logger.info("Using spill file {} for type {} with {} objects to be "
+            + "replayed", directory, shortType, spill.size());
+      } catch (IOException e) {
+        logger.error(Markers.email(), "Could not open spill file " 
+            + directory + " for projectId=" + projectId + " and type " 
+            + shortType + " so data will be lost if the queue fills up.", e);
+      }
+    }
+    spillFile = spill;
     
     // Create the reusable heavy weight session factory
     sessionFactory = HibernateUtils.getSessionFactory(projectId);
@@ -112,8 +166,10 @@ public class DbQueue<T> {
     if (!shouldStoreToDb)
       return true;
     
-    // Add the object to the queue
-    boolean success = queue.offer(t);
+    // Add the object to the queue, or to the spill file if the queue is
+    // full. Objects that are not Serializable can't be spilled.
+    boolean success = spillFile != null && t instanceof Serializable ?
+        addOrSpill(t) : queue.offer(t);
 
     double level = queueLevel();
     int levelIndex = indexOfLevel(level);
@@ -144,10 +200,10 @@ public class DbQueue<T> {
       maxQueueLevel = level;
     
     // If shouldPauseToReduceQueue (because in batch mode or such) and
-    // if queue is starting to get more full then pause the calling
-    // thread for 10 seconds so that separate thread can clear out 
-    // queue a bit.
-    if (shouldPauseToReduceQueue && level > 0.2) {
+    // if queue is starting to get more full, or data is being spilled to
+    // disk, then pause the calling thread for 10 seconds so that separate
+    // thread can clear out queue a bit.
+    if (shouldPauseToReduceQueue && (level > 0.2 || spilling)) {
       logger.info("Pausing thread adding data to DataDbLogger queue " +
           "so that queue can be cleared out. Level={}%, type=", 
           level*100.0, shortType);
@@ -159,6 +215,60 @@ public class DbQueue<T> {
 
   }
 
+  /**
+   * Adds the object to the queue or, if the queue is full or there are
+   * already objects in the spill file, appends it to the spill file. Never
+   * blocks the calling thread for long, even when the database is slow.
+   * 
+   * @param t
+   * @return false only if the object could not be spilled
+   */
+  private boolean addOrSpill(T t) {
+    if (!spilling && queue.offer(t))
+      return true;
+    
+    synchronized (spillLock) {
+      if (!spilling) {
+        // Check again now that have the lock
+        if (queue.offer(t))
+          return true;
+        
+        spilling = true;
+        logger.error(Markers.email(), "DataDbLogger queue is now completely "
+            + "full for projectId=" + projectId + " and type " + shortType 
+            + ". Spilling data to disk until the database catches up.");
+      }
+      
+      try {
+        spillFile.append(t);
+        return true;
+      } catch (IOException e) {
+        logger.error("Could not spill object for projectId=" + projectId 
+            + " and type " + shortType + ". LOSING DATA!!! Failed to store "
+            + "object=[" + t + "]", e);
+        return false;
+      }
+    }
+  }
+  
+  /**
+   * Called once a batch read from the spill file has been written to the
+   * database. Commits the spill file read position and, once the spill file
+   * is empty, goes back to using just the queue.
+   */
+  private void commitSpilledBatch() {
+    spillDrainedCount += spillFile.commit();
+    
+    synchronized (spillLock) {
+      if (spilling && spillFile.isEmpty()) {
+        spilling = false;
+        logger.error(Markers.email(), "DataDbLogger has written all of the "
+            + "spilled data to the database for projectId=" + projectId 
+            + " and type " + shortType + ".");
+      }
+    }
+  }
+  
   private List<T> drain() {
     // Get the next object from the head of the queue
     ArrayList<T> buff = new ArrayList<T>(DbSetupConfig.getBatchSize());
@@ -166,6 +276,17 @@ public class DbQueue<T> {
     do {
         buff.clear();
         count = queue.drainTo(buff, DbSetupConfig.getBatchSize());
+        
+        // Objects in the queue are older than the ones in the spill file so
+        // only read from the spill file once the queue is empty
+        if (count == 0 && spilling) {
+          buff.addAll(spillFile.read(DbSetupConfig.getBatchSize()));
+          count = buff.size();
+          if (count > 0)
+            spilledBatchPending = true;
+          else
+            commitSpilledBatch();
+        }
         throughputCount += count;
         if (count == 0)
           try {
@@ -217,6 +338,12 @@ public class DbQueue<T> {
    * processing. Instead, need to use a transaction for each batch.
    */
   	public void processBatchOfData() {
+  	  if (batchWriter != null) {
+  	    List<T> objectsToBeStored = drain();
+  	    writeWithBatchWriter(objectsToBeStored);
+  	    return;
+  	  }
+  	  
 		// Create an array for holding what is being written to db. If there
 		// is an exception with one of the objects, such as a constraint violation,
 		// then can try to write the objects one at a time to make sure that the
@@ -353,6 +480,91 @@ public class DbQueue<T> {
 	}
 	
   
+  /**
+   * Writes the objects using the JdbcBatchWriter in a single transaction. If
+   * that fails because of a problem with the data then the objects are split
+   * in half and each half is written separately, recursively. This way a bad
+   * object only costs about log2(batch size) extra statements instead of
+   * writing every object of the batch individually. If there is a problem
+   * connecting to the database then keeps trying, as is done when writing
+   * individual objects.
+   * 
+   * @param objects
+   */
+  private void writeWithBatchWriter(List<T> objects) {
+    if (objects.isEmpty())
+      return;
+    
+    while (true) {
+      Session session = null;
+      Transaction tx = null;
+      try {
+        session = sessionFactory.openSession();
+        tx = session.beginTransaction();
+        IntervalTimer timer = new IntervalTimer();
+        batchWriter.write(session, objects);
+        tx.commit();
+        logger.debug("Wrote {} objects of type {} with JdbcBatchWriter. Took "
+            + "{} msec. {} objects still in queue.", objects.size(), 
+            shortType, timer.elapsedMsec(), queueSize());
+        return;
+      } catch (HibernateException e) {
+        try {
+          if (tx != null)
+            tx.rollback();
+        } catch (HibernateException e2) {
+          logger.error("Error rolling back transaction after writing batch "
+              + "of data via JdbcBatchWriter.", e2);
+        }
+        
+        Throwable cause = HibernateUtils.getRootCause(e);
+        if (cause instanceof SocketTimeoutException 
+            || cause instanceof SocketException) {
+          logger.error(Markers.email(),
+              "Had a connection problem to the database. Likely "
+              + "means that the db was rebooted or that the "
+              + "connection to it was lost. Therefore creating a new "
+              + "SessionFactory so get new connections.");
+          HibernateUtils.clearSessionFactory();
+          sessionFactory = HibernateUtils.getSessionFactory(projectId);
+          Time.sleep(TIME_BETWEEN_RETRIES);
+          continue;
+        }
+        if (shouldKeepTryingBecauseConnectionException(e)) {
+          logger.error("Encountered database connection exception when "
+              + "writing {} objects of type {} so will sleep for {} msec "
+              + "and will then try again. msg={}", objects.size(), shortType, 
+              TIME_BETWEEN_RETRIES, cause.getMessage());
+          Time.sleep(TIME_BETWEEN_RETRIES);
+          continue;
+        }
+        
+        if (objects.size() == 1) {
+          logger.error(e.getClass().getSimpleName() + " when writing object " 
+              + objects.get(0) + ". msg=" + cause.getMessage());
+          return;
+        }
+        
+        logger.error("{} for database for project={} when batch writing {} "
+            + "objects of type {}: {}. Will split the batch in two.", 
+            e.getClass().getSimpleName(), projectId, objects.size(), 
+            shortType, cause.getMessage());
+        int half = objects.size() / 2;
+        writeWithBatchWriter(objects.subList(0, half));
+        writeWithBatchWriter(objects.subList(half, objects.size()));
+        return;
+      } finally {
+        try {
+          if (session != null)
+            session.close();
+        } catch (HibernateException e) {
+          logger.error("Error closing session after writing batch of data "
+              + "via JdbcBatchWriter.", e);
+        }
+      }
+    }
+  }
+  
   /**
    * This is the main method for processing data. It simply keeps on calling
    * processBatchOfData() so that data is batched as efficiently as possible.
@@ -365,12 +577,23 @@ public class DbQueue<T> {
         logger.debug("DataDbLogger.processData() processing batch of " +
             "data to be stored in database.");
         processBatchOfData();
+        
+        // Only remove the objects from the spill file once they have been
+        // written. If an exception was thrown they will be read again.
+        if (spilledBatchPending) {
+          spilledBatchPending = false;
+          commitSpilledBatch();
+        }
       } catch (Exception e) {
         logger.error("Error writing data to database via DataDbLogger. " +
             "Look for ERROR in log file to see if the database classes " +
             "were configured correctly. Error: "
             + e);
         
+        // Any batch from the spill file was not committed so it will be
+        // read again
+        spilledBatchPending = false;
+        
         // Don't try again right away because that would be wasteful
         Time.sleep(TIME_BETWEEN_RETRIES);
       }
@@ -400,6 +623,25 @@ public class DbQueue<T> {
     return queue.size();
   }
   
+  /**
+   * Returns how many objects are in the spill file waiting to be written
+   * 
+   * @return objects in spill file, or 0 if not spilling to disk
+   */
+  public long spillSize() {
+    return spillFile == null ? 0 : spillFile.size();
+  }
+  
+  /**
+   * Returns the total number of objects that have been written to the
+   * database from the spill file. For determining the drain rate.
+   * 
+   * @return objects drained from spill file
+   */
+  public long spillDrainedCount() {
+    return spillDrainedCount;
+  }
+  
   /**
    * Returns the index into levels that the queue capacity is at.
    * For determining if should send e-mail warning message.
@@ -0,0 +1,378 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only, memory mapped, write ahead spill file for a DbQueue. When
+ * the in memory queue is full the objects are serialized to the spill file
+ * instead of being dropped. The DbQueue writer thread then reads them back,
+ * in the order they were appended, and only commits the read position once
+ * they have been written to the database. Since the read position is kept in
+ * the file, objects that were spilled but not yet written are replayed when
+ * the Core is restarted.
+ * <p>
+ * The spill file is made up of segment files in a directory. Objects are
+ * always appended to the last segment and read from the first one. Once a
+ * segment has been completely read and committed it is deleted. Each segment
+ * starts with a header containing the read and the write positions, followed
+ * by length prefixed serialized objects.
+ * <p>
+ * Because the segments are memory mapped, appended data is in the operating
+ * system page cache as soon as append() returns and so survives the process
+ * being restarted or killed. The segments are only forced to disk when they
+ * are full or closed, so data could still be lost if the whole machine
+ * crashes. Objects are replayed at least once: if the process is killed
+ * after a batch was written to the database but before the read position was
+ * committed then the batch is written again.
+ *
+ * @param <T>
+ *            the type of the objects in the DbQueue
+ */
+public class DbQueueSpillFile<T> {
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	// The segments in the order they were created. The first is the one
+	// being read and the last is the one being appended to.
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+	// Sequence number for naming the next segment file
+	private long nextSegmentNumber;
+
+	// Number of objects that have been appended but not yet committed
+	private long size = 0;
+
+	// Where read() stopped in the first segment, and how many objects it
+	// read, so that commit() can move the read position there.
+	private int pendingReadPosition = -1;
+	private int pendingReadCount = 0;
+
+	private static final int MAGIC = 0x54435350; // "TCSP"
+
+	// Header is magic, read position and write position
+	private static final int READ_POSITION_OFFSET = 4;
+	private static final int WRITE_POSITION_OFFSET = 8;
+	private static final int HEADER_SIZE = 12;
+
+	private static final String SUFFIX = ".spill";
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DbQueueSpillFile.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A single memory mapped segment file.
+	 */
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int readPosition;
+		private int writePosition;
+
+		private Segment(File file, MappedByteBuffer buffer, int readPosition,
+				int writePosition) {
+			this.file = file;
+			this.buffer = buffer;
+			this.readPosition = readPosition;
+			this.writePosition = writePosition;
+		}
+
+		private boolean fits(int recordSize) {
+			return writePosition + 4 + recordSize <= buffer.capacity();
+		}
+
+		private boolean isFullyRead() {
+			return readPosition >= writePosition;
+		}
+	}
+
+	/**
+	 * Opens the spill file in the specified directory, creating the directory
+	 * if needed. Any objects left over from a previous run are kept so that
+	 * they will be replayed.
+	 *
+	 * @param directory
+	 *            the directory for the segment files. Should only be used by
+	 *            a single DbQueue.
+	 * @param segmentSize
+	 *            size in bytes of each segment file
+	 * @throws IOException
+	 */
+	public DbQueueSpillFile(File directory, int segmentSize)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create spill directory "
+					+ directory);
+
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		// The names are zero padded sequence numbers so sorting by name
+		// sorts them in the order they were created
+		Arrays.sort(files);
+
+		for (File file : files) {
+			String name = file.getName();
+			nextSegmentNumber = Math.max(nextSegmentNumber, Long.parseLong(
+					name.substring(0, name.length() - SUFFIX.length())) + 1);
+
+			Segment segment = openSegment(file);
+			if (segment == null || segment.isFullyRead()) {
+				delete(file);
+				continue;
+			}
+			long count = countRecords(segment);
+			logger.info("Replaying {} objects from spill file {}", count, file);
+			size += count;
+			segments.addLast(segment);
+		}
+	}
+
+	/**
+	 * Maps an existing segment file and reads its header. Returns null if
+	 * the file is not a valid segment.
+	 */
+	private static Segment openSegment(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				logger.error("Spill file {} is too short so ignoring it", file);
+				return null;
+			}
+			MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			int readPosition = buffer.getInt(READ_POSITION_OFFSET);
+			int writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+			if (buffer.getInt(0) != MAGIC || readPosition < HEADER_SIZE
+					|| writePosition > buffer.capacity()
+					|| readPosition > writePosition) {
+				logger.error("Spill file {} has an invalid header so ignoring "
+						+ "it", file);
+				return null;
+			}
+			return new Segment(file, buffer, readPosition, writePosition);
+		} finally {
+			// The mapping stays valid after the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Creates a new segment file big enough for at least the specified
+	 * record size.
+	 */
+	private Segment createSegment(int recordSize) throws IOException {
+		File file = new File(directory,
+				String.format("%016d", nextSegmentNumber++) + SUFFIX);
+		int capacity = Math.max(segmentSize, HEADER_SIZE + 4 + recordSize);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+			buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+			logger.info("Created spill file {}", file);
+			return new Segment(file, buffer, HEADER_SIZE, HEADER_SIZE);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static long countRecords(Segment segment) {
+		long count = 0;
+		int position = segment.readPosition;
+		while (position < segment.writePosition) {
+			position += 4 + segment.buffer.getInt(position);
+			++count;
+		}
+		return count;
+	}
+
+	private static void delete(File file) {
+		if (!file.delete())
+			logger.error("Could not delete spill file {}", file);
+	}
+
+	/**
+	 * Appends the object to the end of the spill file.
+	 *
+	 * @param object
+	 *            must be Serializable
+	 * @throws IOException
+	 *             if the object could not be serialized or the segment file
+	 *             could not be created
+	 */
+	public void append(T object) throws IOException {
+		// Serialize outside of the lock since it is the expensive part
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		byte[] record = bytes.toByteArray();
+
+		synchronized (this) {
+			Segment segment = segments.peekLast();
+			if (segment == null || !segment.fits(record.length)) {
+				if (segment != null)
+					segment.buffer.force();
+				segment = createSegment(record.length);
+				segments.addLast(segment);
+			}
+
+			int position = segment.writePosition;
+			segment.buffer.putInt(position, record.length);
+			for (int i = 0; i < record.length; ++i)
+				segment.buffer.put(position + 4 + i, record[i]);
+			// Only make the record visible once it has been completely
+			// written, so a partially written record is never replayed
+			segment.writePosition = position + 4 + record.length;
+			segment.buffer.putInt(WRITE_POSITION_OFFSET, segment.writePosition);
+			++size;
+		}
+	}
+
+	/**
+	 * Reads up to maxObjects of the oldest objects, without removing them.
+	 * Once they have been written to the database commit() needs to be
+	 * called. Calling read() again before commit() returns the same objects.
+	 *
+	 * @param maxObjects
+	 * @return the objects, or an empty list if the spill file is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<T> read(int maxObjects) {
+		List<T> objects = new ArrayList<T>();
+		pendingReadPosition = -1;
+		pendingReadCount = 0;
+
+		// A segment that was fully read while it was still being appended
+		// to is only removed once appending has moved on to a new segment
+		while (segments.size() > 1 && segments.peekFirst().isFullyRead())
+			delete(segments.removeFirst().file);
+
+		Segment segment = segments.peekFirst();
+		if (segment == null)
+			return objects;
+
+		// Only reads from the first segment. If it has been fully read then
+		// the next commit() removes it and the following read() moves on
+		// to the next segment.
+		int position = segment.readPosition;
+		while (position < segment.writePosition
+				&& objects.size() < maxObjects) {
+			int length = segment.buffer.getInt(position);
+			byte[] record = new byte[length];
+			for (int i = 0; i < length; ++i)
+				record[i] = segment.buffer.get(position + 4 + i);
+			position += 4 + length;
+			++pendingReadCount;
+
+			try {
+				ObjectInputStream in = new ObjectInputStream(
+						new ByteArrayInputStream(record));
+				objects.add((T) in.readObject());
+			} catch (IOException | ClassNotFoundException e) {
+				logger.error("Could not deserialize object from spill file {} "
+						+ "so skipping it. {}", segment.file, e.getMessage());
+			}
+		}
+		pendingReadPosition = position;
+		return objects;
+	}
+
+	/**
+	 * Removes the objects returned by the last read() from the spill file.
+	 * Deletes the first segment once it has been fully read and it is no
+	 * longer being appended to.
+	 *
+	 * @return number of objects removed, including any that could not be
+	 *         deserialized
+	 */
+	public synchronized int commit() {
+		int committed = 0;
+		Segment segment = segments.peekFirst();
+		if (segment != null && pendingReadPosition >= 0) {
+			segment.readPosition = pendingReadPosition;
+			segment.buffer.putInt(READ_POSITION_OFFSET, segment.readPosition);
+			size -= pendingReadCount;
+			committed = pendingReadCount;
+		}
+		pendingReadPosition = -1;
+		pendingReadCount = 0;
+
+		if (segment != null && segment.isFullyRead()
+				&& segments.size() > 1) {
+			segments.removeFirst();
+			delete(segment.file);
+		}
+		return committed;
+	}
+
+	/**
+	 * @return number of objects in the spill file that have not yet been
+	 *         committed
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no objects in the spill file waiting to be
+	 *         written
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Forces all of the segments to disk.
+	 */
+	public synchronized void force() {
+		for (Segment segment : segments)
+			segment.buffer.force();
+	}
+}
@@ -72,6 +72,20 @@ public class HibernateUtils {
 	}
 	private static SessionFactory createSessionFactory(String dbName, boolean readOnly) 
 			throws HibernateException {
+		return createSessionFactory(dbName, readOnly, 0);
+	}
+	
+	/**
+	 * @param dbName
+	 * @param readOnly
+	 * @param jdbcBatchSize
+	 *            If greater than 0 then overrides the batch size from the
+	 *            config file and has Hibernate order the inserts and updates
+	 *            so that they can actually be batched. Otherwise uses the
+	 *            config file as is.
+	 */
+	private static SessionFactory createSessionFactory(String dbName,
+			boolean readOnly, int jdbcBatchSize) throws HibernateException {
 		logger.debug("Creating new Hibernate SessionFactory for dbName={}", 
 				dbName);
 		
@@ -108,6 +122,20 @@ public class HibernateUtils {
 		// Add the annotated classes so that they can be used
 		AnnotatedClassesList.addAnnotatedClasses(config);
 
+		// If writing lots of data then want JDBC batching. Hibernate only
+		// batches consecutive statements for the same table so also need
+		// to have it order the statements.
+		if (jdbcBatchSize > 0) {
+			config.setProperty("hibernate.jdbc.batch_size", 
+					Integer.toString(jdbcBatchSize));
+			config.setProperty("hibernate.order_inserts", "true");
+			config.setProperty("hibernate.order_updates", "true");
+			config.setProperty("hibernate.jdbc.batch_versioned_data", "true");
+			logger.info("Using hibernate.jdbc.batch_size={} with ordered "
+					+ "inserts and updates for dbName={}", 
+					jdbcBatchSize, dbName);
+		}
+
 		// Set the db info for the URL, user name, and password. Uses the 
 		// property hibernate.connection.url if it is set so that everything
 		// can be overwritten in a standard way. If that property not set then
@@ -211,6 +239,44 @@ public class HibernateUtils {
 		return factory;
 	}
 
+	/**
+	 * Returns a cached Hibernate SessionFactory that uses JDBC batching, for
+	 * when large amounts of data are written, such as when importing GTFS
+	 * data. Separate from the factory returned by getSessionFactory() so
+	 * that the settings for regular sessions are not affected.
+	 * 
+	 * @param agencyId
+	 *            Used as the database name if the property
+	 *            transitclock.db.dbName is not set
+	 * @param jdbcBatchSize
+	 *            Number of statements to send to the database in a batch
+	 * @return
+	 */
+	public static SessionFactory getBatchingSessionFactory(String agencyId,
+			int jdbcBatchSize) throws HibernateException {
+		String dbName = DbSetupConfig.getDbName();
+		if (dbName == null)
+			dbName = agencyId;
+		String cacheKey = dbName + "-batch" + jdbcBatchSize;
+		
+		SessionFactory factory;
+		synchronized(sessionFactoryCache) {
+			factory = sessionFactoryCache.get(cacheKey);
+			if (factory == null || factory.isClosed()) {
+				try {
+					factory = createSessionFactory(dbName, false, jdbcBatchSize);
+					sessionFactoryCache.put(cacheKey, factory);
+				} catch (Exception e) {
+					logger.error("Could not create batching SessionFactory for "
+							+ "dbName={}", dbName, e);
+					throw e;
+				}
+			}
+		}
+		
+		return factory;
+	}
+
 	/**
 	 * Clears out the session factory so that a new one will be created for the
 	 * dbName. This way new db connections are made. This is useful for dealing
@@ -0,0 +1,703 @@
+package org.transitclock.db.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PostInsertIdentifierGenerator;
+import org.hibernate.id.SequenceGenerator;
+import org.hibernate.id.SequenceHiLoGenerator;
+import org.hibernate.id.enhanced.DatabaseStructure;
+import org.hibernate.id.enhanced.PooledLoOptimizer;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.Type;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * High throughput alternative to saving objects one at a time via a
+ * Hibernate session, for use by DbQueue. The objects of a batch are written
+ * with multi-row INSERT statements, or for PostgreSQL with COPY. The table,
+ * the columns and how each value is bound are all taken from the Hibernate
+ * mapping of the class so that the same rows are written as by
+ * session.save(). Identifiers are generated with the entity's Hibernate
+ * identifier generator, except that for PostgreSQL sequences the values for
+ * a whole batch are fetched with a single query.
+ * <p>
+ * If a value of an entity can't be written with COPY, such as when a
+ * Hibernate type needs more from the statement than just binding a value,
+ * then that entity is written with INSERT statements instead.
+ * <p>
+ * Writes using the connection of the session so the rows are committed or
+ * rolled back with the session's transaction. Doesn't handle failures
+ * itself. DbQueue splits a batch that fails due to bad data in two and
+ * writes each half separately.
+ */
+public class JdbcBatchWriter {
+
+	// PostgreSQL allows at most 32767 parameters in a statement
+	private static final int MAX_PARAMETERS_PER_STATEMENT = 30000;
+
+	private final boolean useCopy;
+
+	// The insert information for each entity class. Only created once.
+	private final ConcurrentMap<Class<?>, EntityInsert> inserts =
+			new ConcurrentHashMap<Class<?>, EntityInsert>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(JdbcBatchWriter.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param useCopy
+	 *            true if should use the PostgreSQL COPY command. Otherwise
+	 *            uses multi-row INSERT statements, which work with MySQL,
+	 *            PostgreSQL and HSQLDB.
+	 */
+	public JdbcBatchWriter(boolean useCopy) {
+		this.useCopy = useCopy;
+	}
+
+	/**
+	 * Writes the objects using the connection of the session. The objects
+	 * are grouped by class and each group is written with as few statements
+	 * as possible. The caller is responsible for committing the session's
+	 * transaction.
+	 *
+	 * @param session
+	 * @param objects
+	 * @throws HibernateException
+	 *             if there is a problem writing the objects. The
+	 *             SQLException is converted by Hibernate in the same way as
+	 *             for session.save() so that the caller can tell connection
+	 *             problems apart from problems with the data.
+	 */
+	public void write(Session session, List<?> objects)
+			throws HibernateException {
+		final SessionImplementor sessionImplementor =
+				(SessionImplementor) session;
+
+		// Group by class so each group goes to a single table. Keep the
+		// order of the objects within each group.
+		final Map<Class<?>, List<Object>> objectsByClass =
+				new LinkedHashMap<Class<?>, List<Object>>();
+		for (Object object : objects) {
+			List<Object> objectsForClass = objectsByClass.get(object.getClass());
+			if (objectsForClass == null) {
+				objectsForClass = new ArrayList<Object>();
+				objectsByClass.put(object.getClass(), objectsForClass);
+			}
+			objectsForClass.add(object);
+		}
+
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				for (Map.Entry<Class<?>, List<Object>> entry :
+						objectsByClass.entrySet()) {
+					EntityInsert insert = getInsert(entry.getKey(),
+							sessionImplementor.getFactory());
+					List<Object> rows = entry.getValue();
+					insert.prepareIdentifiers(connection, rows,
+							sessionImplementor);
+					if (useCopy)
+						copy(connection, insert, rows, sessionImplementor);
+					else
+						insert(connection, insert, rows, sessionImplementor);
+				}
+			}
+		});
+	}
+
+	private EntityInsert getInsert(Class<?> entityClass,
+			SessionFactoryImplementor sessionFactory) {
+		EntityInsert insert = inserts.get(entityClass);
+		if (insert == null) {
+			insert = new EntityInsert(entityClass, sessionFactory);
+			inserts.put(entityClass, insert);
+		}
+		return insert;
+	}
+
+	/**
+	 * Writes the rows with INSERT statements that each insert as many rows
+	 * as the parameter limit allows.
+	 */
+	private void insert(Connection connection, EntityInsert insert,
+			List<Object> rows, SessionImplementor session)
+					throws SQLException {
+		int rowsPerStatement = Math.max(1,
+				MAX_PARAMETERS_PER_STATEMENT / insert.columnCount);
+		PreparedStatement fullStatement = null;
+		try {
+			for (int start = 0; start < rows.size(); start += rowsPerStatement) {
+				int numRows = Math.min(rowsPerStatement, rows.size() - start);
+				PreparedStatement statement;
+				if (numRows == rowsPerStatement) {
+					// Full statements can be reused within the batch
+					if (fullStatement == null)
+						fullStatement = connection.prepareStatement(
+								insert.getInsertSql(numRows));
+					statement = fullStatement;
+				} else {
+					statement = connection.prepareStatement(
+							insert.getInsertSql(numRows));
+				}
+
+				try {
+					int index = 1;
+					for (int i = start; i < start + numRows; ++i)
+						index = insert.bind(statement, index, rows.get(i), session);
+					statement.executeUpdate();
+				} finally {
+					if (statement != fullStatement)
+						statement.close();
+				}
+			}
+		} finally {
+			if (fullStatement != null)
+				fullStatement.close();
+		}
+	}
+
+	/**
+	 * Writes the rows with the PostgreSQL COPY command. If the values of the
+	 * entity can't be written with COPY then writes them with INSERT
+	 * statements instead, for this and all following batches.
+	 */
+	private void copy(Connection connection, EntityInsert insert,
+			List<Object> rows, SessionImplementor session)
+					throws SQLException {
+		if (!insert.copySupported) {
+			insert(connection, insert, rows, session);
+			return;
+		}
+
+		StringBuilder data;
+		try {
+			data = getCopyData(insert, rows, session);
+		} catch (SQLFeatureNotSupportedException e) {
+			logger.warn("Cannot use COPY for table {} so will use INSERT "
+					+ "statements instead. {}", insert.tableName, e.getMessage());
+			insert.copySupported = false;
+			insert(connection, insert, rows, session);
+			return;
+		}
+
+		try {
+			CopyManager copyManager =
+					new CopyManager(connection.unwrap(BaseConnection.class));
+			long rowsCopied =
+					copyManager.copyIn(insert.getCopySql(), new StringReader(data.toString()));
+			logger.debug("Copied {} rows into {}", rowsCopied, insert.tableName);
+		} catch (IOException e) {
+			throw new SQLException("Could not COPY into " + insert.tableName, e);
+		}
+	}
+
+	/**
+	 * Returns the rows in the PostgreSQL COPY text format. The values are
+	 * captured by binding them to a PreparedStatement that records them, so
+	 * that they are converted by the Hibernate types exactly as for an
+	 * insert.
+	 *
+	 * @throws SQLFeatureNotSupportedException
+	 *             if a value can't be recorded or written with COPY
+	 */
+	private static StringBuilder getCopyData(EntityInsert insert,
+			List<Object> rows, SessionImplementor session)
+					throws SQLException {
+		ValueRecorder recorder = new ValueRecorder(insert.columnCount);
+		PreparedStatement recordingStatement = recorder.getStatement();
+
+		StringBuilder data = new StringBuilder(rows.size() * insert.columnCount * 16);
+		for (Object row : rows) {
+			recorder.clear();
+			insert.bind(recordingStatement, 1, row, session);
+			Object[] values = recorder.getValues();
+			for (int i = 0; i < values.length; ++i) {
+				if (i > 0)
+					data.append('\t');
+				appendCopyValue(data, values[i]);
+			}
+			// The discriminator is the last column
+			if (insert.discriminatorColumn != null) {
+				data.append('\t');
+				appendCopyValue(data, insert.discriminatorValue);
+			}
+			data.append('\n');
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the objects, which must all be of the same class, in the COPY
+	 * text format in the order of the columns of getColumns(). Package
+	 * private for testing since COPY itself needs a PostgreSQL server.
+	 */
+	String getCopyData(Session session, List<?> objects) throws SQLException {
+		SessionImplementor sessionImplementor = (SessionImplementor) session;
+		EntityInsert insert = getInsert(objects.get(0).getClass(),
+				sessionImplementor.getFactory());
+		return getCopyData(insert, new ArrayList<Object>(objects),
+				sessionImplementor).toString();
+	}
+
+	/**
+	 * Returns the columns written for the entity class, in order. Package
+	 * private for testing.
+	 */
+	List<String> getColumns(Session session, Class<?> entityClass) {
+		return getInsert(entityClass,
+				((SessionImplementor) session).getFactory()).columns;
+	}
+
+	/**
+	 * Appends a value in the PostgreSQL COPY text format.
+	 *
+	 * @throws SQLFeatureNotSupportedException
+	 *             if the type of the value can't be written with COPY
+	 */
+	static void appendCopyValue(StringBuilder data, Object value)
+			throws SQLException {
+		if (value == null) {
+			data.append("\\N");
+		} else if (value instanceof byte[]) {
+			// bytea hex format. The backslash is escaped for COPY.
+			data.append("\\\\x");
+			for (byte b : (byte[]) value)
+				data.append(Character.forDigit((b >> 4) & 0xF, 16))
+						.append(Character.forDigit(b & 0xF, 16));
+		} else if (value instanceof Boolean) {
+			data.append((Boolean) value ? 't' : 'f');
+		} else if (value instanceof Timestamp) {
+			data.append(value.toString());
+		} else if (value instanceof Date && !(value instanceof java.sql.Date)
+				&& !(value instanceof java.sql.Time)) {
+			data.append(new Timestamp(((Date) value).getTime()).toString());
+		} else if (value instanceof Number || value instanceof String
+				|| value instanceof Character || value instanceof Date) {
+			String text = value.toString();
+			for (int i = 0; i < text.length(); ++i) {
+				char c = text.charAt(i);
+				switch (c) {
+				case '\\': data.append("\\\\"); break;
+				case '\t': data.append("\\t"); break;
+				case '\n': data.append("\\n"); break;
+				case '\r': data.append("\\r"); break;
+				default: data.append(c);
+				}
+			}
+		} else {
+			throw new SQLFeatureNotSupportedException("Value of type "
+					+ value.getClass().getName() + " not supported by COPY");
+		}
+	}
+
+	/**
+	 * What is needed to insert the objects of an entity class, taken from the
+	 * Hibernate mapping.
+	 */
+	private static class EntityInsert {
+		private final AbstractEntityPersister persister;
+		private final String tableName;
+		private final List<String> columns = new ArrayList<String>();
+		private final int columnCount;
+
+		// The identifier columns are only written if the identifier isn't
+		// generated by the database
+		private final boolean writeIdentifier;
+		private final IdentifierGenerator identifierGenerator;
+		private final Type identifierType;
+		private final int identifierSpan;
+
+		// For PostgreSQL sequences, so identifiers for a batch can be
+		// fetched at once. Each value from the sequence is the first of
+		// sequenceIncrement identifiers.
+		private final String sequenceName;
+		private final int sequenceIncrement;
+
+		private final int[] propertyIndexes;
+		private final Type[] propertyTypes;
+		private final int[] propertySpans;
+
+		// For single table inheritance, such as Arrival and Departure
+		private final String discriminatorColumn;
+		private final String discriminatorSqlValue;
+		private final Object discriminatorValue;
+
+		private String copySql = null;
+
+		// Set to false if a value can't be written with COPY
+		private volatile boolean copySupported = true;
+
+		private EntityInsert(Class<?> entityClass,
+				SessionFactoryImplementor sessionFactory) {
+			if (!(sessionFactory.getClassMetadata(entityClass)
+					instanceof AbstractEntityPersister))
+				throw new IllegalArgumentException("No Hibernate mapping for "
+					+ entityClass.getName());
+			persister = (AbstractEntityPersister)
+					sessionFactory.getClassMetadata(entityClass);
+			tableName = persister.getTableName();
+
+			identifierGenerator = persister.getIdentifierGenerator();
+			identifierType = persister.getIdentifierType();
+			identifierSpan = identifierType.getColumnSpan(sessionFactory);
+			writeIdentifier =
+					!(identifierGenerator instanceof PostInsertIdentifierGenerator);
+			if (writeIdentifier) {
+				for (String column : persister.getIdentifierColumnNames())
+					columns.add(column);
+			}
+			if (sessionFactory.getDialect().getClass().getName().contains("Postgre")) {
+				sequenceName = getSequenceName(identifierGenerator);
+				sequenceIncrement = identifierGenerator instanceof SequenceStyleGenerator ?
+						((SequenceStyleGenerator) identifierGenerator)
+								.getDatabaseStructure().getIncrementSize()
+						: 1;
+			} else {
+				sequenceName = null;
+				sequenceIncrement = 1;
+			}
+
+			boolean[] insertability = persister.getPropertyInsertability();
+			Type[] types = persister.getPropertyTypes();
+			List<Integer> indexes = new ArrayList<Integer>();
+			for (int i = 0; i < insertability.length; ++i) {
+				if (insertability[i]) {
+					indexes.add(i);
+					for (String column : persister.getPropertyColumnNames(i))
+						columns.add(column);
+				}
+			}
+			propertyIndexes = new int[indexes.size()];
+			propertyTypes = new Type[indexes.size()];
+			propertySpans = new int[indexes.size()];
+			for (int i = 0; i < indexes.size(); ++i) {
+				propertyIndexes[i] = indexes.get(i);
+				propertyTypes[i] = types[indexes.get(i)];
+				propertySpans[i] = propertyTypes[i].getColumnSpan(sessionFactory);
+			}
+
+			SingleTableEntityPersister singleTablePersister =
+					persister instanceof SingleTableEntityPersister ?
+							(SingleTableEntityPersister) persister : null;
+			if (singleTablePersister != null
+					&& singleTablePersister.getDiscriminatorColumnName() != null
+					&& singleTablePersister.getDiscriminatorSQLValue() != null) {
+				discriminatorColumn = singleTablePersister.getDiscriminatorColumnName();
+				discriminatorSqlValue = singleTablePersister.getDiscriminatorSQLValue();
+				discriminatorValue = singleTablePersister.getDiscriminatorValue();
+				columns.add(discriminatorColumn);
+			} else {
+				discriminatorColumn = null;
+				discriminatorSqlValue = null;
+				discriminatorValue = null;
+			}
+
+			// The discriminator is a literal in the SQL, not a parameter
+			columnCount = discriminatorColumn == null ?
+					columns.size() : columns.size() - 1;
+
+			logger.info("JdbcBatchWriter writing {} to table {} columns {}",
+					entityClass.getSimpleName(), tableName, columns);
+		}
+
+		/**
+		 * Returns the name of the sequence if the identifiers from the
+		 * generator are simply values from a sequence, or with the pooled-lo
+		 * optimizer blocks of values that start at a value from the sequence.
+		 * Otherwise null, so that the generator itself is used.
+		 */
+		private static String getSequenceName(IdentifierGenerator generator) {
+			if (generator instanceof SequenceGenerator
+					&& !(generator instanceof SequenceHiLoGenerator))
+				return ((SequenceGenerator) generator).getSequenceName();
+
+			if (generator instanceof SequenceStyleGenerator) {
+				SequenceStyleGenerator sequenceStyleGenerator =
+						(SequenceStyleGenerator) generator;
+				DatabaseStructure structure =
+						sequenceStyleGenerator.getDatabaseStructure();
+				if (structure.isPhysicalSequence()
+						&& (structure.getIncrementSize() == 1
+						|| sequenceStyleGenerator.getOptimizer()
+								instanceof PooledLoOptimizer))
+					return structure.getName();
+			}
+			return null;
+		}
+
+		/**
+		 * Returns SQL for inserting numRows rows in a single statement.
+		 */
+		private String getInsertSql(int numRows) {
+			StringBuilder row = new StringBuilder("(");
+			for (int i = 0; i < columnCount; ++i) {
+				if (i > 0)
+					row.append(',');
+				row.append('?');
+			}
+			if (discriminatorColumn != null)
+				row.append(',').append(discriminatorSqlValue);
+			row.append(')');
+
+			StringBuilder sql = new StringBuilder("insert into ")
+					.append(tableName).append(" (");
+			appendColumns(sql);
+			sql.append(") values ");
+			for (int i = 0; i < numRows; ++i) {
+				if (i > 0)
+					sql.append(',');
+				sql.append(row);
+			}
+			return sql.toString();
+		}
+
+		private String getCopySql() {
+			if (copySql == null) {
+				StringBuilder sql = new StringBuilder("COPY ")
+						.append(tableName).append(" (");
+				appendColumns(sql);
+				sql.append(") FROM STDIN");
+				copySql = sql.toString();
+			}
+			return copySql;
+		}
+
+		private void appendColumns(StringBuilder sql) {
+			for (int i = 0; i < columns.size(); ++i) {
+				if (i > 0)
+					sql.append(',');
+				sql.append(columns.get(i));
+			}
+		}
+
+		/**
+		 * Generates the identifiers for the rows if they are generated by
+		 * Hibernate. For a PostgreSQL sequence all the values are fetched
+		 * with one query instead of one query per row.
+		 */
+		private void prepareIdentifiers(Connection connection,
+				List<Object> rows, SessionImplementor session)
+						throws SQLException {
+			if (!writeIdentifier)
+				return;
+
+			if (sequenceName == null) {
+				for (Object row : rows) {
+					Serializable id = identifierGenerator.generate(session, row);
+					// For an embedded composite identifier the row is the id
+					if (id != row)
+						persister.setIdentifier(row, id, session);
+				}
+				return;
+			}
+
+			int numValues = (rows.size() + sequenceIncrement - 1) / sequenceIncrement;
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet resultSet = statement.executeQuery(
+						"select nextval('" + sequenceName
+						+ "') from generate_series(1, " + numValues + ")");
+				Class<?> idClass = identifierType.getReturnedClass();
+				long value = 0;
+				for (int i = 0; i < rows.size(); ++i) {
+					Object row = rows.get(i);
+					if (i % sequenceIncrement == 0) {
+						if (!resultSet.next())
+							throw new SQLException("Not enough values from sequence "
+									+ sequenceName);
+						value = resultSet.getLong(1);
+					} else {
+						++value;
+					}
+					Serializable id = idClass == Integer.class || idClass == int.class ?
+							Integer.valueOf((int) value) : Long.valueOf(value);
+					persister.setIdentifier(row, id, session);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+
+		/**
+		 * Binds the values of the entity to the statement starting at
+		 * the parameter index. Doesn't bind the discriminator.
+		 *
+		 * @return the index of the next parameter
+		 */
+		private int bind(PreparedStatement statement, int index,
+				Object entity, SessionImplementor session) throws SQLException {
+			if (writeIdentifier) {
+				identifierType.nullSafeSet(statement,
+						persister.getIdentifier(entity, session), index, session);
+				index += identifierSpan;
+			}
+
+			Object[] values = persister.getPropertyValues(entity);
+			for (int i = 0; i < propertyIndexes.length; ++i) {
+				propertyTypes[i].nullSafeSet(statement,
+						values[propertyIndexes[i]], index, session);
+				index += propertySpans[i];
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Records the values bound to a PreparedStatement instead of sending
+	 * them to the database. Used to get the values for COPY. Streams, readers
+	 * and LOBs are read when they are bound since they can only be read
+	 * once. Any other use of the statement throws an
+	 * SQLFeatureNotSupportedException so that the entity is written with
+	 * INSERT statements instead. Package private for testing.
+	 */
+	static class ValueRecorder implements InvocationHandler {
+		private final Object[] values;
+		private final PreparedStatement statement;
+
+		ValueRecorder(int columnCount) {
+			values = new Object[columnCount];
+			statement = (PreparedStatement) Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] {PreparedStatement.class}, this);
+		}
+
+		PreparedStatement getStatement() {
+			return statement;
+		}
+
+		void clear() {
+			for (int i = 0; i < values.length; ++i)
+				values[i] = null;
+		}
+
+		Object[] getValues() {
+			return values;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class) {
+				if (name.equals("equals"))
+					return proxy == args[0];
+				if (name.equals("hashCode"))
+					return System.identityHashCode(proxy);
+				return "ValueRecorder" + Arrays.toString(values);
+			}
+
+			if (name.equals("clearParameters")) {
+				clear();
+				return null;
+			}
+
+			// setNull(), setString(), setTimestamp() with a Calendar,
+			// setObject() with a SQL type, setBinaryStream() with a length...
+			if (name.startsWith("set") && args != null
+					&& args.length >= 2 && args[0] instanceof Integer) {
+				int index = (Integer) args[0];
+				if (index < 1 || index > values.length)
+					throw new SQLException("Parameter index " + index
+							+ " out of range for " + values.length + " columns");
+				try {
+					values[index - 1] = name.equals("setNull") ?
+							null : readValue(name, args);
+				} catch (IOException e) {
+					throw new SQLException("Could not read value for parameter "
+							+ index, e);
+				}
+				return null;
+			}
+
+			throw new SQLFeatureNotSupportedException(
+					"ValueRecorder only records values. Called " + method);
+		}
+
+		/**
+		 * Returns the value to record for a set method. Streams, readers and
+		 * LOBs are read into a byte[] or String, up to the length if there
+		 * is one.
+		 */
+		private static Object readValue(String name, Object[] args)
+				throws SQLException, IOException {
+			Object value = args[1];
+			// For setObject() the third argument is the SQL type
+			long length = args.length >= 3 && args[2] instanceof Number
+					&& !name.equals("setObject") ?
+							((Number) args[2]).longValue() : Long.MAX_VALUE;
+
+			if (value instanceof Blob) {
+				Blob blob = (Blob) value;
+				return blob.getBytes(1, (int) Math.min(length, blob.length()));
+			}
+			if (value instanceof Clob) {
+				Clob clob = (Clob) value;
+				return clob.getSubString(1, (int) Math.min(length, clob.length()));
+			}
+			if (value instanceof InputStream) {
+				if (name.equals("setUnicodeStream"))
+					throw new SQLFeatureNotSupportedException(
+							"ValueRecorder doesn't record setUnicodeStream()");
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while (bytes.size() < length
+						&& (read = ((InputStream) value).read(buffer, 0,
+								(int) Math.min(buffer.length, length - bytes.size()))) != -1)
+					bytes.write(buffer, 0, read);
+				return name.equals("setAsciiStream") ?
+						new String(bytes.toByteArray(), "US-ASCII")
+						: bytes.toByteArray();
+			}
+			if (value instanceof Reader) {
+				StringBuilder chars = new StringBuilder();
+				char[] buffer = new char[8192];
+				int read;
+				while (chars.length() < length
+						&& (read = ((Reader) value).read(buffer, 0,
+								(int) Math.min(buffer.length, length - chars.length()))) != -1)
+					chars.append(buffer, 0, read);
+				return chars.toString();
+			}
+			return value;
+		}
+	}
+}
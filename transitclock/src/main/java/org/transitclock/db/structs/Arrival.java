@@ -57,6 +57,21 @@ public class Arrival extends ArrivalDeparture {
 		super(configRev, vehicleId, time, avlTime, block, tripIndex, pathIndex, 
 				true, freqStartTime); // isArrival
 	}
+	/**
+	 * For recreating an Arrival from the compact ArrivalDepartureStore.
+	 * Use ArrivalDeparture.create().
+	 */
+	Arrival(int configRev, String vehicleId, Date time, Date avlTime,
+			Date scheduledTime, String stopId, int gtfsStopSeq, String tripId,
+			String blockId, Block block, String routeId, String routeShortName,
+			String serviceId, String directionId, int tripIndex,
+			Date freqStartTime, int stopPathIndex, Integer stopOrder,
+			float stopPathLength) {
+		super(true, configRev, vehicleId, time, avlTime, scheduledTime,
+				stopId, gtfsStopSeq, tripId, blockId, block, routeId, routeShortName,
+				serviceId, directionId, tripIndex, freqStartTime, stopPathIndex,
+				stopOrder, stopPathLength); // isArrival
+	}
 	/**
 	 * Hibernate always wants a no-arg constructor. Made private since 
 	 * it shouldn't normally be used.
@@ -16,6 +16,8 @@
  */
 package org.transitclock.db.structs;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Iterator;
@@ -193,9 +195,18 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 	@Column
 	private final float stopPathLength;
 	
-	// So can easily create copy constructor withUpdatedTime()
+	// So can easily create copy constructor withUpdatedTime(). Also not
+	// serialized so that the whole block isn't written out when the
+	// DbQueue spills an arrival/departure to disk.
 	@Transient
-	private final Block block;
+	private final transient Block block;
+	
+	// Position of this event in the ArrivalDepartureStore, or -1 if it has
+	// not been added to the store. Means that an event that is put into 
+	// several of the caches is only stored once. Not serialized since it is
+	// only valid for the store of this process.
+	@Transient
+	private transient int storeId = -1;
 	
 	// Needed because some methods need to know if dealing with arrivals or 
 	// departures.
@@ -299,6 +310,68 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 		this(Core.getInstance().getDbConfig().getConfigRev(),vehicleId, time, avlTime, block, 
 				tripIndex, stopPathIndex, isArrival, freqStartTime);
 	}
+	/**
+	 * Constructor for recreating an ArrivalDeparture from the values held
+	 * in the compact ArrivalDepartureStore. The block is not stored, it is
+	 * looked up by the store from the configuration.
+	 */
+	protected ArrivalDeparture(boolean isArrival, int configRev, String vehicleId, Date time, Date avlTime,
+			Date scheduledTime, String stopId, int gtfsStopSeq, String tripId,
+			String blockId, Block block, String routeId, String routeShortName,
+			String serviceId, String directionId, int tripIndex,
+			Date freqStartTime, int stopPathIndex, Integer stopOrder,
+			float stopPathLength) {
+		this.vehicleId = vehicleId;
+		this.time = time;
+		this.avlTime = avlTime;
+		this.block = block;
+		this.tripIndex = tripIndex;
+		this.stopPathIndex = stopPathIndex;
+		this.isArrival = isArrival;
+		this.configRev = configRev;
+		this.freqStartTime = freqStartTime;
+		this.stopOrder = stopOrder;
+		this.scheduledTime = scheduledTime;
+		this.blockId = blockId;
+		this.tripId = tripId;
+		this.directionId = directionId;
+		this.stopId = stopId;
+		this.gtfsStopSeq = gtfsStopSeq;
+		this.stopPathLength = stopPathLength;
+		this.routeId = routeId;
+		this.routeShortName = routeShortName;
+		this.serviceId = serviceId;
+	}
+	
+	/**
+	 * Recreates an Arrival or Departure from the values held in the compact
+	 * ArrivalDepartureStore.
+	 * 
+	 * @param block
+	 *            the block looked up from the configuration, or null if not
+	 *            available
+	 * @return the Arrival or Departure
+	 */
+	public static ArrivalDeparture create(int storeId, boolean isArrival,
+			int configRev, String vehicleId, Date time, Date avlTime,
+			Date scheduledTime, String stopId, int gtfsStopSeq, String tripId,
+			String blockId, Block block, String routeId, String routeShortName,
+			String serviceId, String directionId, int tripIndex,
+			Date freqStartTime, int stopPathIndex, Integer stopOrder,
+			float stopPathLength) {
+		ArrivalDeparture arrivalDeparture = isArrival ?
+				new Arrival(configRev, vehicleId, time, avlTime, scheduledTime,
+				stopId, gtfsStopSeq, tripId, blockId, block, routeId, routeShortName,
+				serviceId, directionId, tripIndex, freqStartTime, stopPathIndex,
+				stopOrder, stopPathLength)
+				: new Departure(configRev, vehicleId, time, avlTime, scheduledTime,
+				stopId, gtfsStopSeq, tripId, blockId, block, routeId, routeShortName,
+				serviceId, directionId, tripIndex, freqStartTime, stopPathIndex,
+				stopOrder, stopPathLength);
+		arrivalDeparture.storeId = storeId;
+		return arrivalDeparture;
+	}
+	
 	public Date getFreqStartTime() {
 		return freqStartTime;
 	}
@@ -953,6 +1026,10 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 		return routeId;
 	}
 
+	public String getRouteShortName() {
+		return routeShortName;
+	}
+
 	public String getServiceId() {
 		return serviceId;
 	}
@@ -981,6 +1058,34 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 		return stopOrder;
 	}
 	
+	/**
+	 * @return position of this event in the ArrivalDepartureStore or -1 if
+	 *         it has not been stored
+	 */
+	public int getStoreId() {
+		return storeId;
+	}
+	
+	/**
+	 * Records where this event was placed in the ArrivalDepartureStore.
+	 * 
+	 * @param storeId
+	 */
+	public void setStoreId(int storeId) {
+		this.storeId = storeId;
+	}
+	
+	/**
+	 * A deserialized event, such as one replayed from a DbQueue spill file,
+	 * has not been added to the ArrivalDepartureStore of this process.
+	 * Without this the transient storeId would be 0 instead of -1.
+	 */
+	private void readObject(ObjectInputStream stream) 
+			throws IOException, ClassNotFoundException {
+		stream.defaultReadObject();
+		storeId = -1;
+	}
+	
 	/**
 	 * Note that the block is a transient element so will not be available if
 	 * this object was read from the database. In that case it will be null.
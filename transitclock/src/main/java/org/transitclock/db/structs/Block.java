@@ -63,6 +63,7 @@ import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.logging.Markers;
 import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.IntervalTree;
 import org.transitclock.utils.Time;
 
 /**
@@ -137,6 +138,11 @@ public final class Block implements Serializable {
 	@Column(length=500)
 	private final HashSet<String> routeIds;
 	
+	// For quickly determining which trips are active. Created when first
+	// needed, once the trips have been loaded. Transient so that not stored
+	// in the db.
+	private transient volatile TripTimesIndex tripTimesIndex;
+	
 	// For making sure only lazy load trips collection via one thread
 	// at a time.
 	private static final Object lazyLoadingSyncObject = new Object();
@@ -410,18 +416,7 @@ public final class Block implements Serializable {
 	 * @return index of trip, or -1 if no match
 	 */
 	private int activeTripIndex(int secondsIntoDay) {
-		List<Trip> trips = getTrips();
-		int previousTripEndTimeSecs = trips.get(0).getStartTime();
-		for (int i=0; i<trips.size(); ++i) {
-			Trip trip = trips.get(i);
-			int tripEndTimeSecs = trip.getEndTime();
-			if (secondsIntoDay > previousTripEndTimeSecs 
-					&& secondsIntoDay < tripEndTimeSecs) {
-				return i;
-			}
-		}
-
-		return -1;
+		return getTripTimesIndex().activeTripIndex(secondsIntoDay);
 	}
 	
 	/**
@@ -652,59 +647,142 @@ public final class Block implements Serializable {
 	}
 	
 	/**
-	 * If the trip is active at the secsInDayForAvlReport then it is
-	 * added to the tripsThatMatchTime list. Trip is considered active
-	 * if it is within start time of trip minus 
-	 * CoreConfig.getAllowableEarlyForLayoverSeconds() and within the end
-	 * time of the trip. No leniency is made for the end time since once
-	 * a trip is over really don't want to assign vehicle to that trip.
-	 * Yes, vehicles often run late, but that should only be taken account
-	 * when matching to already predictable vehicle.
+	 * Index of the start and end times of the trips of the block so that the
+	 * trips that are active at a time can be found without looking at every
+	 * trip. Immutable so it can be used by multiple threads without locking.
+	 */
+	static class TripTimesIndex {
+		// CoreConfig.getAllowableEarlyForLayoverSeconds() when created, so
+		// can tell if the index needs to be recreated
+		private final int allowableEarlyTimeSecs;
+		
+		// Indices of the trips, for the intervals from allowableEarlyTimeSecs
+		// before the start time of the trip to the end time of the trip
+		private final IntervalTree<Integer> activeTrips;
+		
+		private final int firstTripStartTime;
+		
+		// The maximum trip end time of the trips up to and including each
+		// trip. Never decreases so can be binary searched.
+		private final int[] maxEndTimes;
+		
+		/**
+		 * @param startTimes
+		 *            the start times of the trips, in the order of the trips
+		 * @param endTimes
+		 *            the end times of the trips
+		 * @param allowableEarlyTimeSecs
+		 */
+		TripTimesIndex(int[] startTimes, int[] endTimes,
+				int allowableEarlyTimeSecs) {
+			this.allowableEarlyTimeSecs = allowableEarlyTimeSecs;
+			
+			int numTrips = startTimes.length;
+			List<Integer> tripIndices = new ArrayList<Integer>(numTrips);
+			int[] lows = new int[numTrips];
+			this.maxEndTimes = new int[numTrips];
+			int maxEndTime = Integer.MIN_VALUE;
+			for (int i = 0; i < numTrips; ++i) {
+				tripIndices.add(i);
+				lows[i] = startTimes[i] - allowableEarlyTimeSecs;
+				maxEndTime = Math.max(maxEndTime, endTimes[i]);
+				maxEndTimes[i] = maxEndTime;
+			}
+			this.activeTrips = 
+					new IntervalTree<Integer>(tripIndices, lows, endTimes);
+			this.firstTripStartTime = numTrips > 0 ? startTimes[0] : 0;
+		}
+		
+		/**
+		 * Returns the index of the first trip that ends after secondsIntoDay,
+		 * as long as secondsIntoDay is after the start of the first trip.
+		 * 
+		 * @param secondsIntoDay
+		 * @return index of trip, or -1 if no match
+		 */
+		int activeTripIndex(int secondsIntoDay) {
+			if (maxEndTimes.length == 0 
+					|| secondsIntoDay <= firstTripStartTime
+					|| secondsIntoDay >= maxEndTimes[maxEndTimes.length - 1])
+				return -1;
+			
+			// Binary search for first trip with an end time after
+			// secondsIntoDay
+			int lo = 0;
+			int hi = maxEndTimes.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (maxEndTimes[mid] > secondsIntoDay)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			return lo;
+		}
+		
+		/**
+		 * Returns the indices of the trips that are active at secondsIntoDay,
+		 * meaning that it is within allowableEarlyTimeSecs before the start
+		 * time and before the end time. Also looks for trips that start
+		 * before midnight or that go past midnight.
+		 * 
+		 * @param secondsIntoDay
+		 * @return the indices of the active trips, in increasing order
+		 */
+		List<Integer> getActiveTripIndices(int secondsIntoDay) {
+			List<Integer> tripIndices = new ArrayList<Integer>();
+			activeTrips.find(Integer.MIN_VALUE, secondsIntoDay,
+					secondsIntoDay, tripIndices);
+			activeTrips.find(Integer.MIN_VALUE,
+					secondsIntoDay - Time.SEC_PER_DAY,
+					secondsIntoDay - Time.SEC_PER_DAY, tripIndices);
+			activeTrips.find(Integer.MIN_VALUE,
+					secondsIntoDay + Time.SEC_PER_DAY,
+					secondsIntoDay + Time.SEC_PER_DAY, tripIndices);
+			if (tripIndices.size() <= 1)
+				return tripIndices;
+			
+			// The index returns the trips in order of start time and a trip 
+			// could be found for more than one day, so sort the indices so 
+			// that the trips are in block order and only use a trip once
+			Collections.sort(tripIndices);
+			List<Integer> uniqueTripIndices =
+					new ArrayList<Integer>(tripIndices.size());
+			for (int tripIndex : tripIndices) {
+				if (uniqueTripIndices.isEmpty() || tripIndex != 
+						uniqueTripIndices.get(uniqueTripIndices.size() - 1))
+					uniqueTripIndices.add(tripIndex);
+			}
+			return uniqueTripIndices;
+		}
+	}
+	
+	/**
+	 * Returns the index of the trip times, creating it if necessary. It is
+	 * recreated if the allowable early time has changed. Since it is
+	 * immutable it doesn't matter if multiple threads happen to create it at
+	 * the same time.
 	 * 
-	 * @param vehicleId for logging messages
-	 * @param secsInDayForAvlReport
-	 * @param trip
-	 * @param tripsThatMatchTime
-	 * @return
+	 * @return the index of the trip times
 	 */
-	private static boolean addTripIfActive(String vehicleId,
-			int secsInDayForAvlReport, Trip trip, 
-			List<Trip> tripsThatMatchTime) {
-		int startTime = trip.getStartTime();
-		int endTime = trip.getEndTime();
-
+	private TripTimesIndex getTripTimesIndex() {
 		int allowableEarlyTimeSecs = 
 				CoreConfig.getAllowableEarlyForLayoverSeconds();
-		if (secsInDayForAvlReport > startTime - allowableEarlyTimeSecs 
-				&& secsInDayForAvlReport < endTime) {
-			tripsThatMatchTime.add(trip);
-
-			if (logger.isDebugEnabled()) {
-				logger.debug("Determined that for blockId={} that a trip is " +
-						"considered to be active for AVL time. " + 
-						"TripId={}, tripIndex={} AVLTime={}, " + 
-						"startTime={}, endTime={}, " + 
-						"allowableEarlyForLayover={} secs, allowableLate={} secs, " +
-						"vehicleId={}",
-						trip.getBlock().getId(),
-						trip.getId(), 
-						trip.getBlock().getTripIndex(trip),
-						Time.timeOfDayStr(secsInDayForAvlReport),
-						Time.timeOfDayStr(trip.getStartTime()),
-						Time.timeOfDayStr(trip.getEndTime()),
-						CoreConfig.getAllowableEarlyForLayoverSeconds(),
-						CoreConfig.getAllowableLateSeconds(),
-						vehicleId);
+		TripTimesIndex index = tripTimesIndex;
+		if (index == null
+				|| index.allowableEarlyTimeSecs != allowableEarlyTimeSecs) {
+			List<Trip> trips = getTrips();
+			int[] startTimes = new int[trips.size()];
+			int[] endTimes = new int[trips.size()];
+			for (int i = 0; i < trips.size(); ++i) {
+				startTimes[i] = trips.get(i).getStartTime();
+				endTimes[i] = trips.get(i).getEndTime();
 			}
-			
-			return true;
+			index = new TripTimesIndex(startTimes, endTimes,
+					allowableEarlyTimeSecs);
+			tripTimesIndex = index;
 		}
-		
-		if (logger.isDebugEnabled())
-		  logger.debug("block {} is not active for vehicleId {}", trip.getBlock().getId(), vehicleId);
-
-    // Not a match so return false
-		return false;
+		return index;
 	}
 	
 	/**
@@ -713,47 +791,57 @@ public final class Block implements Serializable {
 	 * is considered active if it is within start time of trip minus
 	 * CoreConfig.getAllowableEarlyForLayoverSeconds() and within the end time
 	 * of the trip. No leniency is made for the end time since once a trip is
-	 * over really don't want to assign vehicle to that trip.
+	 * over really don't want to assign vehicle to that trip. Yes, vehicles
+	 * often run late, but that should only be taken account when matching to
+	 * already predictable vehicle.
+	 * <p>
+	 * Uses the index of the trip times so only the trips that are active need
+	 * to be looked at.
 	 * 
 	 * @param avlReport
-	 * @return List of Trips that are active. If none are active an empty list
-	 *         is returned.
+	 * @return List of Trips that are active, in the order of the trips of the
+	 *         block. If none are active an empty list is returned.
 	 */
 	public List<Trip> getTripsCurrentlyActive(AvlReport avlReport) {
-		// Set for returning results
-		List<Trip> tripsThatMatchTime = new ArrayList<Trip>();
-		
 		// Convenience variable
 		String vehicleId = avlReport.getVehicleId();
 		
-		// Go through trips and find ones 
-		List<Trip> trips = getTrips();
-		for (Trip trip : trips) {			
-			// If time of avlReport is within reasonable time of the trip
-			// time then this trip should be returned.  
-			int secsInDayForAvlReport = 
-					Core.getInstance().getTime().getSecondsIntoDay(avlReport.getDate());
+		int secsInDayForAvlReport = 
+				Core.getInstance().getTime().getSecondsIntoDay(avlReport.getDate());
 
-			// If the trip is active then add it to the list of active trips 
-			boolean tripIsActive = 
-					addTripIfActive(vehicleId, secsInDayForAvlReport, trip, tripsThatMatchTime);
-			
-			// if trip wasn't active might be because trip actually starts before
-			// midnight so should check for that special case.
-			if (!tripIsActive)
-				tripIsActive = 
-					addTripIfActive(vehicleId, 
-							secsInDayForAvlReport - Time.SEC_PER_DAY, 
-							trip, tripsThatMatchTime);
+		// Find the trips that are active
+		TripTimesIndex index = getTripTimesIndex();
+		List<Integer> tripIndices =
+				index.getActiveTripIndices(secsInDayForAvlReport);
+		
+		List<Trip> trips = getTrips();
+		List<Trip> tripsThatMatchTime = new ArrayList<Trip>(tripIndices.size());
+		for (int tripIndex : tripIndices) {
+			Trip trip = trips.get(tripIndex);
+			tripsThatMatchTime.add(trip);
 			
-			// if trip still wasn't active might be because trip goes past
-			// midnight so should check for that special case.
-			if (!tripIsActive)
-				tripIsActive = 
-					addTripIfActive(vehicleId, 
-							secsInDayForAvlReport + Time.SEC_PER_DAY, trip, 
-							tripsThatMatchTime);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Determined that for blockId={} that a trip is " +
+						"considered to be active for AVL time. " + 
+						"TripId={}, tripIndex={} AVLTime={}, " + 
+						"startTime={}, endTime={}, " + 
+						"allowableEarlyForLayover={} secs, allowableLate={} secs, " +
+						"vehicleId={}",
+						blockId,
+						trip.getId(), 
+						tripIndex,
+						Time.timeOfDayStr(secsInDayForAvlReport),
+						Time.timeOfDayStr(trip.getStartTime()),
+						Time.timeOfDayStr(trip.getEndTime()),
+						index.allowableEarlyTimeSecs,
+						CoreConfig.getAllowableLateSeconds(),
+						vehicleId);
+			}
 		}
+		
+		if (tripsThatMatchTime.isEmpty() && logger.isDebugEnabled())
+			logger.debug("block {} is not active for vehicleId {}", blockId,
+					vehicleId);
 
 		// Returns results
 		return tripsThatMatchTime;
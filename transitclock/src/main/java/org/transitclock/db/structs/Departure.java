@@ -57,6 +57,21 @@ public class Departure extends ArrivalDeparture {
 		super(configRev, vehicleId, time, avlTime, block, tripIndex, stopPathIndex, 
 				false, freqStartTime); // isArrival
 	}
+	/**
+	 * For recreating an Departure from the compact ArrivalDepartureStore.
+	 * Use ArrivalDeparture.create().
+	 */
+	Departure(int configRev, String vehicleId, Date time, Date avlTime,
+			Date scheduledTime, String stopId, int gtfsStopSeq, String tripId,
+			String blockId, Block block, String routeId, String routeShortName,
+			String serviceId, String directionId, int tripIndex,
+			Date freqStartTime, int stopPathIndex, Integer stopOrder,
+			float stopPathLength) {
+		super(false, configRev, vehicleId, time, avlTime, scheduledTime,
+				stopId, gtfsStopSeq, tripId, blockId, block, routeId, routeShortName,
+				serviceId, directionId, tripIndex, freqStartTime, stopPathIndex,
+				stopOrder, stopPathLength); // isArrival
+	}
 	/**
 	 * Hibernate always wants a no-arg constructor. Made private since 
 	 * it shouldn't normally be used.
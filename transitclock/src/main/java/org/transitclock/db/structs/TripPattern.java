@@ -113,6 +113,11 @@ public class TripPattern implements Serializable, Lifecycle {
 	final protected Map<String, StopPath> stopPathsMap =
 		new HashMap<String, StopPath>();
 	
+	// Spatial index of the segments, for spatial matching. Created when
+	// first needed.
+	@Transient
+	private transient volatile TripPatternSegmentIndex segmentIndex;
+	
 	// For specifying max size of the trip pattern ID
 	public static final int TRIP_PATTERN_ID_LENGTH = 120;
 	// For specifying max size of headsign
@@ -649,6 +654,23 @@ public class TripPattern implements Serializable, Lifecycle {
 		return stopPaths;
 	}
 	
+	/**
+	 * Returns the spatial index of the segments of the stop paths, creating
+	 * it if needed. Since the trip pattern doesn't change the index can be
+	 * shared by all threads. If two threads create it at the same time then
+	 * one of the identical indexes is simply discarded.
+	 * 
+	 * @return the segment index for the trip pattern
+	 */
+	public TripPatternSegmentIndex getSegmentIndex() {
+		TripPatternSegmentIndex index = segmentIndex;
+		if (index == null) {
+			index = new TripPatternSegmentIndex(stopPaths);
+			segmentIndex = index;
+		}
+		return index;
+	}
+	
 	/**
 	 * Returns list of stop IDs for the stop paths for this trip pattern.
 	 * 
@@ -0,0 +1,331 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.db.structs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.transitclock.utils.Geo;
+
+/**
+ * A spatial index of the segments of a trip pattern, so that the segments
+ * near a location can be found without computing the distance to every
+ * segment. Used by the SpatialMatcher when matching an AVL report to a whole
+ * trip.
+ * <p>
+ * The segments of all the stop paths are numbered in order, from the first
+ * segment of the first stop path to the last segment of the last stop path.
+ * The index is a binary tree of bounding boxes over ranges of consecutive
+ * segments. Since a trip pattern is a path, consecutive segments are near
+ * each other and the bounding boxes stay small. Traversing the tree in order
+ * returns the candidate segments in trip order, which is what the
+ * SpatialMatcher needs.
+ * <p>
+ * The last segment of a layover stop path is always returned because the
+ * vehicle is allowed to be away from the path for layovers.
+ */
+public class TripPatternSegmentIndex {
+
+	// For each segment, in trip order, the stop path and segment index
+	private final int[] stopPathIndexes;
+	private final int[] segmentIndexes;
+
+	// Bounding boxes of the tree nodes. Node 1 is the root and the children
+	// of node n are 2n and 2n+1.
+	private final double[] minLats;
+	private final double[] maxLats;
+	private final double[] minLons;
+	private final double[] maxLons;
+
+	// Whether the node's range contains a segment that must always be
+	// returned
+	private final boolean[] containsLayover;
+
+	// The range of segments for each node
+	private final int[] firstSegments;
+	private final int[] endSegments;
+
+	// Which segments must always be returned
+	private final boolean[] layoverSegments;
+
+	// Largest StopPath.getMaxDistance() of the stop paths, or NaN if none of
+	// them specify it
+	private final double maxStopPathMaxDistance;
+
+	// Nodes with no more than this many segments are leaves
+	private static final int LEAF_SIZE = 8;
+
+	// The distance is expanded by this factor plus MARGIN when checking the
+	// bounding boxes so that a segment is never wrongly excluded due to the
+	// approximations in converting distances to degrees.
+	private static final double DISTANCE_FACTOR = 1.1;
+	private static final double MARGIN = 10.0;
+
+	private static final double METERS_PER_DEGREE_LAT =
+			Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index for the stop paths of a trip pattern.
+	 *
+	 * @param stopPaths
+	 */
+	public TripPatternSegmentIndex(List<StopPath> stopPaths) {
+		this(getSegmentVectors(stopPaths), getLayoverStopPaths(stopPaths),
+				getMaxStopPathMaxDistance(stopPaths));
+	}
+
+	/**
+	 * Creates the index from the segment vectors of each stop path.
+	 *
+	 * @param segmentVectorsByStopPath
+	 *            the segment vectors for each stop path, in order
+	 * @param layoverStopPaths
+	 *            which stop paths are layovers
+	 * @param maxStopPathMaxDistance
+	 *            largest max distance of the stop paths, or NaN if none
+	 */
+	public TripPatternSegmentIndex(
+			List<List<VectorWithHeading>> segmentVectorsByStopPath,
+			boolean[] layoverStopPaths, double maxStopPathMaxDistance) {
+		this.maxStopPathMaxDistance = maxStopPathMaxDistance;
+
+		// Number the segments
+		List<VectorWithHeading> segments = new ArrayList<VectorWithHeading>();
+		int numSegments = 0;
+		for (List<VectorWithHeading> vectors : segmentVectorsByStopPath)
+			numSegments += vectors.size();
+		stopPathIndexes = new int[numSegments];
+		segmentIndexes = new int[numSegments];
+		layoverSegments = new boolean[numSegments];
+		for (int stopPathIndex = 0;
+				stopPathIndex < segmentVectorsByStopPath.size();
+				++stopPathIndex) {
+			List<VectorWithHeading> vectors =
+					segmentVectorsByStopPath.get(stopPathIndex);
+			for (int segmentIndex = 0; segmentIndex < vectors.size();
+					++segmentIndex) {
+				int i = segments.size();
+				stopPathIndexes[i] = stopPathIndex;
+				segmentIndexes[i] = segmentIndex;
+				layoverSegments[i] = layoverStopPaths[stopPathIndex]
+						&& segmentIndex == vectors.size() - 1;
+				segments.add(vectors.get(segmentIndex));
+			}
+		}
+
+		// Size the tree so that every leaf has no more than LEAF_SIZE
+		// segments
+		int numNodes = 2;
+		while ((numNodes / 2) * LEAF_SIZE < numSegments)
+			numNodes *= 2;
+		minLats = new double[numNodes];
+		maxLats = new double[numNodes];
+		minLons = new double[numNodes];
+		maxLons = new double[numNodes];
+		containsLayover = new boolean[numNodes];
+		firstSegments = new int[numNodes];
+		endSegments = new int[numNodes];
+		build(1, 0, numSegments, segments);
+	}
+
+	private static List<List<VectorWithHeading>> getSegmentVectors(
+			List<StopPath> stopPaths) {
+		List<List<VectorWithHeading>> segmentVectors =
+				new ArrayList<List<VectorWithHeading>>(stopPaths.size());
+		for (StopPath stopPath : stopPaths)
+			segmentVectors.add(stopPath.getSegmentVectors());
+		return segmentVectors;
+	}
+
+	private static boolean[] getLayoverStopPaths(List<StopPath> stopPaths) {
+		boolean[] layoverStopPaths = new boolean[stopPaths.size()];
+		for (int i = 0; i < stopPaths.size(); ++i)
+			layoverStopPaths[i] = stopPaths.get(i).isLayoverStop();
+		return layoverStopPaths;
+	}
+
+	private static double getMaxStopPathMaxDistance(List<StopPath> stopPaths) {
+		double max = Double.NaN;
+		for (StopPath stopPath : stopPaths) {
+			Double maxDistance = stopPath.getMaxDistance();
+			if (maxDistance != null
+					&& (Double.isNaN(max) || maxDistance > max))
+				max = maxDistance;
+		}
+		return max;
+	}
+
+	/**
+	 * Recursively sets the bounding boxes for the node and its children.
+	 */
+	private void build(int node, int first, int end,
+			List<VectorWithHeading> segments) {
+		firstSegments[node] = first;
+		endSegments[node] = end;
+		boolean isLeaf = 2 * node >= minLats.length;
+		if (isLeaf) {
+			double minLat = Double.MAX_VALUE;
+			double maxLat = -Double.MAX_VALUE;
+			double minLon = Double.MAX_VALUE;
+			double maxLon = -Double.MAX_VALUE;
+			boolean layover = false;
+			for (int i = first; i < end; ++i) {
+				VectorWithHeading segment = segments.get(i);
+				minLat = Math.min(minLat, Math.min(segment.getL1().getLat(),
+						segment.getL2().getLat()));
+				maxLat = Math.max(maxLat, Math.max(segment.getL1().getLat(),
+						segment.getL2().getLat()));
+				minLon = Math.min(minLon, Math.min(segment.getL1().getLon(),
+						segment.getL2().getLon()));
+				maxLon = Math.max(maxLon, Math.max(segment.getL1().getLon(),
+						segment.getL2().getLon()));
+				layover |= layoverSegments[i];
+			}
+			minLats[node] = minLat;
+			maxLats[node] = maxLat;
+			minLons[node] = minLon;
+			maxLons[node] = maxLon;
+			containsLayover[node] = layover;
+			return;
+		}
+
+		int middle = (first + end) / 2;
+		build(2 * node, first, middle, segments);
+		build(2 * node + 1, middle, end, segments);
+		minLats[node] = Math.min(minLats[2 * node], minLats[2 * node + 1]);
+		maxLats[node] = Math.max(maxLats[2 * node], maxLats[2 * node + 1]);
+		minLons[node] = Math.min(minLons[2 * node], minLons[2 * node + 1]);
+		maxLons[node] = Math.max(maxLons[2 * node], maxLons[2 * node + 1]);
+		containsLayover[node] =
+				containsLayover[2 * node] || containsLayover[2 * node + 1];
+	}
+
+	/**
+	 * Returns, in trip order, the segments that might be within maxDistance
+	 * of the location, plus the last segment of every layover stop path. All
+	 * segments that are not returned are further than maxDistance away.
+	 * Segments that are returned can still be further away than maxDistance
+	 * so the distance still needs to be checked.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 *            in meters
+	 * @return the segment numbers. Use getStopPathIndex() and
+	 *         getSegmentIndex() to get the indices of a segment.
+	 */
+	public int[] getCandidateSegments(Location loc, double maxDistance) {
+		double distance = maxDistance * DISTANCE_FACTOR + MARGIN;
+		double dLat = distance / METERS_PER_DEGREE_LAT;
+		double furthestLat = Math.min(Math.abs(loc.getLat()) + dLat, 89.0);
+		double dLon = dLat / Math.cos(Math.toRadians(furthestLat));
+
+		Candidates candidates = new Candidates();
+		if (stopPathIndexes.length > 0)
+			collect(1, loc.getLat() - dLat, loc.getLat() + dLat,
+					loc.getLon() - dLon, loc.getLon() + dLon, candidates);
+		return Arrays.copyOf(candidates.segments, candidates.size);
+	}
+
+	/**
+	 * A growable array of segment numbers
+	 */
+	private static class Candidates {
+		private int[] segments = new int[32];
+		private int size = 0;
+
+		private void add(int segment) {
+			if (size == segments.length)
+				segments = Arrays.copyOf(segments, size * 2);
+			segments[size++] = segment;
+		}
+	}
+
+	private boolean overlaps(int node, double minLat, double maxLat,
+			double minLon, double maxLon) {
+		return minLats[node] <= maxLat && maxLats[node] >= minLat
+				&& minLons[node] <= maxLon && maxLons[node] >= minLon;
+	}
+
+	/**
+	 * Recursively adds the candidate segments for the node, in order.
+	 */
+	private void collect(int node, double minLat, double maxLat,
+			double minLon, double maxLon, Candidates candidates) {
+		boolean overlaps = overlaps(node, minLat, maxLat, minLon, maxLon);
+		if (!overlaps && !containsLayover[node])
+			return;
+
+		boolean isLeaf = 2 * node >= minLats.length;
+		if (!isLeaf) {
+			collect(2 * node, minLat, maxLat, minLon, maxLon, candidates);
+			collect(2 * node + 1, minLat, maxLat, minLon, maxLon, candidates);
+			return;
+		}
+
+		// Leaf so simply add the segments. If the leaf only needs to be
+		// looked at because of a layover then just add the layover segments.
+		for (int i = firstSegments[node]; i < endSegments[node]; ++i) {
+			if (overlaps || layoverSegments[i])
+				candidates.add(i);
+		}
+	}
+
+	/**
+	 * @return total number of segments for the trip pattern
+	 */
+	public int getNumSegments() {
+		return stopPathIndexes.length;
+	}
+
+	/**
+	 * @param segment
+	 *            segment number, as returned by getCandidateSegments()
+	 * @return the index of the stop path of the segment
+	 */
+	public int getStopPathIndex(int segment) {
+		return stopPathIndexes[segment];
+	}
+
+	/**
+	 * @param segment
+	 *            segment number, as returned by getCandidateSegments()
+	 * @return the index of the segment within its stop path
+	 */
+	public int getSegmentIndex(int segment) {
+		return segmentIndexes[segment];
+	}
+
+	/**
+	 * @return the largest StopPath.getMaxDistance() of the stop paths, or NaN
+	 *         if none of them specify one
+	 */
+	public double getMaxStopPathMaxDistance() {
+		return maxStopPathMaxDistance;
+	}
+
+	@Override
+	public String toString() {
+		return "TripPatternSegmentIndex ["
+				+ "numSegments=" + stopPathIndexes.length
+				+ ", numNodes=" + minLats.length
+				+ "]";
+	}
+}
@@ -17,6 +17,7 @@
 
 package org.transitclock.db.structs;
 
+import java.io.Serializable;
 import java.util.List;
 
 import javax.persistence.Column;
@@ -37,7 +38,7 @@ import org.transitclock.db.hibernate.HibernateUtils;
  *
  */
 @Entity @DynamicUpdate @Table(name="VehicleConfigs")
-public class VehicleConfig {
+public class VehicleConfig implements Serializable {
 
 	// ID of vehicle
 	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
@@ -71,6 +72,9 @@ public class VehicleConfig {
 	@Column
 	private final Boolean nonPassengerVehicle;
 	
+	// Because Serializable, so the DbQueue can spill it to disk
+	private static final long serialVersionUID = -2946419937302536627L;
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -0,0 +1,331 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.gtfs;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.HibernateException;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.TravelTimesForTrip;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * For reading in all of the blocks, trips, schedule times, trip patterns,
+ * stop paths and travel times at startup, instead of lazy loading the trips
+ * of each block when first accessed. Used by DbConfig when
+ * transitclock.blockLoading.bulk is set.
+ * <p>
+ * Lazy loading of Block.trips is serialized on a single lock and uses a
+ * separate database round trip per block, so the first AVL reports after
+ * startup all wait on it. Instead, each table is read with a single set based
+ * query. The stop paths and trip patterns, and the travel times, are read in
+ * parallel, each using its own session. They are then reattached to the
+ * session that reads the trips and the blocks so that Hibernate uses the
+ * objects already read in instead of querying for them again.
+ * <p>
+ * Once everything is read the sessions are closed and the Hibernate
+ * collections are replaced by plain lists. The resulting object graph is
+ * therefore completely detached from Hibernate and can be used by any number
+ * of threads without locking.
+ */
+public class BulkConfigLoader {
+
+	private final String agencyId;
+	private final int configRev;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(BulkConfigLoader.class);
+
+	/********************** Member Functions **************************/
+
+	public BulkConfigLoader(String agencyId, int configRev) {
+		this.agencyId = agencyId;
+		this.configRev = configRev;
+	}
+
+	/**
+	 * The detached configuration data that was read in
+	 */
+	public static class Result {
+		private final List<Block> blocks;
+		private final List<TripPattern> tripPatterns;
+		private final Map<String, Trip> tripsMap;
+
+		private Result(List<Block> blocks, List<TripPattern> tripPatterns,
+				Map<String, Trip> tripsMap) {
+			this.blocks = blocks;
+			this.tripPatterns = tripPatterns;
+			this.tripsMap = tripsMap;
+		}
+
+		public List<Block> getBlocks() {
+			return blocks;
+		}
+
+		public List<TripPattern> getTripPatterns() {
+			return tripPatterns;
+		}
+
+		/**
+		 * @return all trips, keyed on trip ID
+		 */
+		public Map<String, Trip> getTripsMap() {
+			return tripsMap;
+		}
+	}
+
+	/**
+	 * Starts reading the data in background threads so that the caller can
+	 * read other data in the meantime.
+	 *
+	 * @return the future result
+	 */
+	public Future<Result> start() {
+		final ExecutorService executor = Executors.newFixedThreadPool(3,
+				new NamedThreadFactory("bulkConfigLoader"));
+		final Future<List<TripPattern>> tripPatternsFuture =
+				executor.submit(new Callable<List<TripPattern>>() {
+					@Override
+					public List<TripPattern> call() {
+						return readTripPatterns();
+					}
+				});
+		final Future<List<TravelTimesForTrip>> travelTimesFuture =
+				executor.submit(new Callable<List<TravelTimesForTrip>>() {
+					@Override
+					public List<TravelTimesForTrip> call() {
+						return readTravelTimes();
+					}
+				});
+		Future<Result> result = executor.submit(new Callable<Result>() {
+			@Override
+			public Result call() throws Exception {
+				try {
+					return readBlocks(tripPatternsFuture.get(),
+							travelTimesFuture.get());
+				} finally {
+					executor.shutdown();
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Waits for the data started by start() to be read in
+	 *
+	 * @param future
+	 *            as returned by start()
+	 * @return the detached configuration data
+	 * @throws HibernateException
+	 *             if the data could not be read in
+	 */
+	public static Result getResult(Future<Result> future)
+			throws HibernateException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrupted reading config data", e);
+		} catch (ExecutionException e) {
+			// The readers run in nested futures so unwrap the actual cause
+			Throwable cause = e.getCause();
+			if (cause instanceof ExecutionException)
+				cause = cause.getCause();
+			if (cause instanceof HibernateException)
+				throw (HibernateException) cause;
+			throw new HibernateException("Exception reading config data",
+					cause);
+		}
+	}
+
+	/**
+	 * Hibernate returns the root entity once for every row of a join fetch
+	 * so remove the duplicates, preserving the order.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> distinct(Query query) {
+		return new ArrayList<T>(new LinkedHashSet<T>(query.list()));
+	}
+
+	/**
+	 * Reads the stop paths, including their locations, and then the trip
+	 * patterns. Since done in the same session the trip patterns use the
+	 * stop paths already read in.
+	 */
+	private List<TripPattern> readTripPatterns() {
+		IntervalTimer timer = new IntervalTimer();
+		Session session = HibernateUtils.getSession(agencyId);
+		try {
+			Query query = session.createQuery("SELECT sp FROM StopPath sp "
+					+ "left join fetch sp.locations "
+					+ "WHERE sp.configRev = :configRev");
+			query.setInteger("configRev", configRev);
+			List<StopPath> stopPaths = distinct(query);
+
+			query = session.createQuery("SELECT tp FROM TripPattern tp "
+					+ "left join fetch tp.stopPaths "
+					+ "WHERE tp.configRev = :configRev");
+			query.setInteger("configRev", configRev);
+			List<TripPattern> tripPatterns = distinct(query);
+
+			logger.info("Bulk read {} stop paths and {} trip patterns in {} "
+					+ "msec", stopPaths.size(), tripPatterns.size(),
+					timer.elapsedMsec());
+			return tripPatterns;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Reads the travel times used by the trips of the config rev, including
+	 * the travel times for each stop path.
+	 */
+	private List<TravelTimesForTrip> readTravelTimes() {
+		IntervalTimer timer = new IntervalTimer();
+		Session session = HibernateUtils.getSession(agencyId);
+		try {
+			Query query = session.createQuery("SELECT ttft "
+					+ "FROM TravelTimesForTrip ttft "
+					+ "left join fetch ttft.travelTimesForStopPaths "
+					+ "WHERE ttft.id IN (SELECT t.travelTimes.id FROM Trip t "
+					+ "  WHERE t.configRev = :configRev)");
+			query.setInteger("configRev", configRev);
+			List<TravelTimesForTrip> travelTimes = distinct(query);
+
+			logger.info("Bulk read {} travel times for trips in {} msec",
+					travelTimes.size(), timer.elapsedMsec());
+			return travelTimes;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Reattaches the trip patterns and travel times to a new session and then
+	 * reads the trips, with their schedule times, and the blocks. Then
+	 * detaches everything from Hibernate.
+	 */
+	private Result readBlocks(List<TripPattern> tripPatterns,
+			List<TravelTimesForTrip> travelTimes) {
+		IntervalTimer timer = new IntervalTimer();
+		List<Trip> trips;
+		List<Block> blocks;
+		Session session = HibernateUtils.getSession(agencyId);
+		try {
+			// Reattach without reading anything from the db so that reading
+			// trips doesn't read the trip patterns and travel times again
+			for (TripPattern tripPattern : tripPatterns) {
+				for (StopPath stopPath : tripPattern.getStopPaths())
+					session.buildLockRequest(LockOptions.NONE).lock(stopPath);
+				session.buildLockRequest(LockOptions.NONE).lock(tripPattern);
+			}
+			for (TravelTimesForTrip travelTimesForTrip : travelTimes) {
+				for (Object travelTimesForStopPath
+						: travelTimesForTrip.getTravelTimesForStopPaths())
+					session.buildLockRequest(LockOptions.NONE)
+							.lock(travelTimesForStopPath);
+				session.buildLockRequest(LockOptions.NONE)
+						.lock(travelTimesForTrip);
+			}
+
+			Query query = session.createQuery("SELECT t FROM Trip t "
+					+ "left join fetch t.scheduledTimesList "
+					+ "WHERE t.configRev = :configRev");
+			query.setInteger("configRev", configRev);
+			trips = distinct(query);
+
+			query = session.createQuery("SELECT b FROM Blocks b "
+					+ "left join fetch b.trips "
+					+ "WHERE b.configRev = :configRev");
+			query.setInteger("configRev", configRev);
+			blocks = distinct(query);
+		} finally {
+			session.close();
+		}
+
+		// Now that the sessions are closed replace the Hibernate collections
+		// so that nothing can try to lazy load through them
+		for (TripPattern tripPattern : tripPatterns) {
+			for (StopPath stopPath : tripPattern.getStopPaths())
+				detach(stopPath, StopPath.class, "locations");
+			detach(tripPattern, TripPattern.class, "stopPaths");
+		}
+		for (TravelTimesForTrip travelTimesForTrip : travelTimes)
+			detach(travelTimesForTrip, TravelTimesForTrip.class,
+					"travelTimesForStopPaths");
+		Map<String, Trip> tripsMap = new HashMap<String, Trip>();
+		for (Trip trip : trips) {
+			detach(trip, Trip.class, "scheduledTimesList");
+			tripsMap.put(trip.getId(), trip);
+		}
+		for (Block block : blocks)
+			detach(block, Block.class, "trips");
+
+		logger.info("Bulk read {} trips and {} blocks in {} msec",
+				trips.size(), blocks.size(), timer.elapsedMsec());
+		return new Result(blocks, tripPatterns, tripsMap);
+	}
+
+	/**
+	 * Replaces a Hibernate list member of an entity with a plain ArrayList.
+	 * The members are final and have no setters since they are only meant to
+	 * be set by Hibernate, so reflection is used just like Hibernate does.
+	 *
+	 * @param entity
+	 * @param entityClass
+	 *            the class that declares the member
+	 * @param fieldName
+	 *            name of the list member
+	 */
+	static void detach(Object entity, Class<?> entityClass,
+			String fieldName) {
+		try {
+			Field field = entityClass.getDeclaredField(fieldName);
+			field.setAccessible(true);
+			Collection<?> collection = (Collection<?>) field.get(entity);
+			if (collection != null)
+				field.set(entity, new ArrayList<Object>(collection));
+		} catch (ReflectiveOperationException e) {
+			throw new HibernateException("Could not detach " + fieldName
+					+ " of " + entityClass.getSimpleName(), e);
+		}
+	}
+}
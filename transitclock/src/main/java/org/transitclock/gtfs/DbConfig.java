@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.hibernate.HibernateException;
 import org.hibernate.SQLQuery;
@@ -31,6 +32,7 @@ import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.StringConfigValue;
 import org.transitclock.core.ServiceUtils;
 import org.transitclock.db.hibernate.HibernateUtils;
@@ -51,6 +53,7 @@ import org.transitclock.db.structs.TravelTimesForTrip;
 import org.transitclock.db.structs.Trip;
 import org.transitclock.db.structs.TripPattern;
 import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.IntervalTree;
 import org.transitclock.utils.MapKey;
 import org.transitclock.utils.Time;
 
@@ -84,6 +87,11 @@ public class DbConfig {
 	// So can access blocks by service ID and route ID easily
 	private Map<RouteServiceMapKey, List<Block>> blocksByRouteMap = null;
 
+	// So can quickly find the blocks of a service ID that are active at a
+	// time of day. Keyed on serviceId.
+	private Map<String, IntervalTree<Block>> blockIntervalTreesByServiceMap =
+			null;
+
 	// Ordered list of routes
 	private List<Route> routes;
 	// Keyed on routeId
@@ -95,6 +103,8 @@ public class DbConfig {
 	
 	// Keyed on routeId
 	private Map<String, List<TripPattern>> tripPatternsByRouteMap;
+	// For quickly finding the stops near a location
+	private StopsSpatialIndex stopsSpatialIndex;
 	// For when reading in all trips from db. Keyed on tripId
 	private Map<String, Trip> tripsMap;
 	// For trips that have been read in individually. Keyed on tripId.
@@ -132,6 +142,16 @@ public class DbConfig {
 			"SELECT 1", 
 			"query to validate database connection");
 	
+	private static BooleanConfigValue bulkLoading =
+			new BooleanConfigValue("transitclock.blockLoading.bulk",
+					false,
+					"If true then at startup all blocks, trips, schedule "
+					+ "times, trip patterns and travel times are read in "
+					+ "using a few set based queries in parallel threads "
+					+ "and then detached from Hibernate. Takes more time "
+					+ "and memory at startup but then the trips of a block "
+					+ "never need to be lazy loaded via the global session.");
+
 	public String getValidateTestQuery() {
 		return validateTestQuery.getValue();
 	}
@@ -221,7 +241,7 @@ public class DbConfig {
 	 *            List of blocks to be put into map
 	 * @return Map keyed on service ID of map keyed on block ID of blocks
 	 */
-	private static Map<String, Map<String, Block>> putBlocksIntoMap(
+	static Map<String, Map<String, Block>> putBlocksIntoMap(
 			List<Block> blocks) {
 		Map<String, Map<String, Block>> blocksByServiceMap =
 				new HashMap<String, Map<String, Block>>();
@@ -305,6 +325,35 @@ public class DbConfig {
 		return blocksByRouteMap;
 	}
 
+	/**
+	 * Creates an IntervalTree for each service ID of the blocks, using the
+	 * start and end times of the blocks, so that the blocks that are active at
+	 * a time can be found without looking at every block.
+	 * 
+	 * @param blocksByServiceMap
+	 * @return Map keyed on service ID of the interval trees of the blocks
+	 */
+	static Map<String, IntervalTree<Block>> putBlocksIntoIntervalTrees(
+			Map<String, Map<String, Block>> blocksByServiceMap) {
+		Map<String, IntervalTree<Block>> intervalTreesByServiceMap =
+				new HashMap<String, IntervalTree<Block>>();
+
+		for (Map.Entry<String, Map<String, Block>> entry 
+				: blocksByServiceMap.entrySet()) {
+			List<Block> blocks = new ArrayList<Block>(entry.getValue().values());
+			int[] startTimes = new int[blocks.size()];
+			int[] endTimes = new int[blocks.size()];
+			for (int i = 0; i < blocks.size(); ++i) {
+				startTimes[i] = blocks.get(i).getStartTime();
+				endTimes[i] = blocks.get(i).getEndTime();
+			}
+			intervalTreesByServiceMap.put(entry.getKey(),
+					new IntervalTree<Block>(blocks, startTimes, endTimes));
+		}
+
+		return intervalTreesByServiceMap;
+	}
+
 	/**
 	 * Returns List of Blocks associated with the serviceId and routeId.
 	 * 
@@ -518,6 +567,11 @@ public class DbConfig {
 	public Trip getTrip(String tripIdOrShortName) {
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
+		// If all trips were already read in, such as when bulk loading, then
+		// don't need to read the trip from the db
+		if (trip == null && tripsMap != null)
+			trip = tripsMap.get(tripIdOrShortName);
+
 		// If trip not read in yet, do so now
 		if (trip == null) {
 			logger.debug("Trip for tripIdOrShortName={} not read from db yet "
@@ -668,6 +722,26 @@ public class DbConfig {
 		// and so that can read in TripPatterns later using the same session.
 		globalSession = HibernateUtils.getSession(agencyId);
 
+		// If there is a snapshot of the config rev and travel times rev then
+		// use it instead of reading everything from the db. The travel times
+		// rev is needed since UpdateTravelTimes changes the travel times of
+		// the trips without changing the config rev. It is read before the
+		// trips so that a snapshot is never labeled with a newer travel
+		// times rev than the travel times it holds. If it can't be read then
+		// snapshots are not used.
+		ActiveRevisions activeRevisions = null;
+		if (DbConfigSnapshot.isEnabled()) {
+			activeRevisions = ActiveRevisions.get(agencyId);
+			if (activeRevisions != null) {
+				DbConfigSnapshot snapshot = DbConfigSnapshot.read(agencyId,
+						configRev, activeRevisions.getTravelTimesRev());
+				if (snapshot != null) {
+					useSnapshot(snapshot);
+					return;
+				}
+			}
+		}
+
 		// // NOTE. Thought that it might speed things up if would read in
 		// // trips, trip patterns, and stopPaths all at once so that can use a
 		// single
@@ -695,11 +769,23 @@ public class DbConfig {
 		// stopPaths = StopPath.getPaths(session, configRev);
 		// logger.debug("Reading stopPaths took {} msec", timer.elapsedMsec());
 
-		timer = new IntervalTimer();
-		blocks = Block.getBlocks(globalSession, configRev);
-		blocksByServiceMap = putBlocksIntoMap(blocks);
-		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
-		logger.debug("Reading blocks took {} msec", timer.elapsedMsec());
+		// If bulk loading then start reading the blocks and all of their
+		// sub-data in the background while the routes are read in. Also
+		// done when snapshots are used since the snapshot needs all of the
+		// data, detached from Hibernate.
+		Future<BulkConfigLoader.Result> bulkResult = null;
+		List<TripPattern> tripPatterns = null;
+		if (bulkLoading.getValue() || DbConfigSnapshot.isEnabled()) {
+			bulkResult = new BulkConfigLoader(agencyId, configRev).start();
+		} else {
+			timer = new IntervalTimer();
+			blocks = Block.getBlocks(globalSession, configRev);
+			blocksByServiceMap = putBlocksIntoMap(blocks);
+			blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+			blockIntervalTreesByServiceMap =
+					putBlocksIntoIntervalTrees(blocksByServiceMap);
+			logger.debug("Reading blocks took {} msec", timer.elapsedMsec());
+		}
 
 		timer = new IntervalTimer();
 		routes = Route.getRoutes(globalSession, configRev);
@@ -707,7 +793,29 @@ public class DbConfig {
 		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
 		logger.debug("Reading routes took {} msec", timer.elapsedMsec());
 
-		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		if (bulkResult != null) {
+			timer = new IntervalTimer();
+			BulkConfigLoader.Result result =
+					BulkConfigLoader.getResult(bulkResult);
+			blocks = result.getBlocks();
+			blocksByServiceMap = putBlocksIntoMap(blocks);
+			blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+			blockIntervalTreesByServiceMap =
+					putBlocksIntoIntervalTrees(blocksByServiceMap);
+			tripPatterns = result.getTripPatterns();
+			tripPatternsByRouteMap = putTripPatternsIntoMap(tripPatterns);
+			tripsMap = result.getTripsMap();
+			logger.debug("Waiting for bulk loading of blocks took {} msec",
+					timer.elapsedMsec());
+		} else {
+			tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		}
+
+		timer = new IntervalTimer();
+		stopsSpatialIndex =
+				StopsSpatialIndex.create(routes, tripPatternsByRouteMap);
+		logger.debug("Creating {} took {} msec", stopsSpatialIndex,
+				timer.elapsedMsec());
 		
 		timer = new IntervalTimer();
 		List<Stop> stopsList = Stop.getStops(globalSession, configRev);
@@ -720,8 +828,79 @@ public class DbConfig {
 		agencies = Agency.getAgencies(globalSession, configRev);
 		calendars = Calendar.getCalendars(globalSession, configRev);
 		calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
 		
-		calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
+		fareAttributes =
+				FareAttribute.getFareAttributes(globalSession, configRev);
+		fareRules = FareRule.getFareRules(globalSession, configRev);
+		frequencies = Frequency.getFrequencies(globalSession, configRev);
+		transfers = Transfer.getTransfers(globalSession, configRev);
+
+		logger.debug("Reading everything else took {} msec",
+				timer.elapsedMsec());
+
+		// Write the snapshot so that next time the data doesn't need to be
+		// read from the db
+		if (activeRevisions != null) {
+			new DbConfigSnapshot(blocks, routes, tripPatterns, tripsMap,
+					stopsList, agencies, calendars, calendarDates,
+					fareAttributes, fareRules, frequencies, transfers).write(
+					agencyId, configRev, activeRevisions.getTravelTimesRev());
+		}
+	}
+
+	/**
+	 * Uses the data from a snapshot instead of reading it from the db. Only
+	 * the maps need to be created.
+	 * 
+	 * @param snapshot
+	 */
+	private void useSnapshot(DbConfigSnapshot snapshot) {
+		IntervalTimer timer = new IntervalTimer();
+
+		blocks = snapshot.getBlocks();
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+		blockIntervalTreesByServiceMap =
+				putBlocksIntoIntervalTrees(blocksByServiceMap);
+		tripsMap = snapshot.getTripsMap();
+
+		routes = snapshot.getRoutes();
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+		tripPatternsByRouteMap =
+				putTripPatternsIntoMap(snapshot.getTripPatterns());
+		stopsSpatialIndex =
+				StopsSpatialIndex.create(routes, tripPatternsByRouteMap);
+
+		stopsMap = putStopsIntoMap(snapshot.getStops());
+		stopsByStopCode = putStopsIntoMapByStopCode(snapshot.getStops());
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+
+		agencies = snapshot.getAgencies();
+		calendars = snapshot.getCalendars();
+		calendarDates = snapshot.getCalendarDates();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = snapshot.getFareAttributes();
+		fareRules = snapshot.getFareRules();
+		frequencies = snapshot.getFrequencies();
+		transfers = snapshot.getTransfers();
+
+		logger.debug("Creating maps for config snapshot took {} msec",
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * Puts the calendar dates into a map so that they can be efficiently
+	 * looked up by date.
+	 * 
+	 * @param calendarDates
+	 * @return map keyed on the time of the date
+	 */
+	private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(
+			List<CalendarDate> calendarDates) {
+		Map<Long, List<CalendarDate>> calendarDatesMap =
+				new HashMap<Long, List<CalendarDate>>();
 		for (CalendarDate calendarDate : calendarDates) {
 			Long time = calendarDate.getTime();
 			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
@@ -731,15 +910,7 @@ public class DbConfig {
 			}
 			calendarDatesForDate.add(calendarDate);
 		}
-		
-		fareAttributes =
-				FareAttribute.getFareAttributes(globalSession, configRev);
-		fareRules = FareRule.getFareRules(globalSession, configRev);
-		frequencies = Frequency.getFrequencies(globalSession, configRev);
-		transfers = Transfer.getTransfers(globalSession, configRev);
-
-		logger.debug("Reading everything else took {} msec",
-				timer.elapsedMsec());
+		return calendarDatesMap;
 	}
 
 	/************************** Getter Methods ***************************/
@@ -837,6 +1008,19 @@ public class DbConfig {
 		}
 	}
 
+	/**
+	 * Returns the IntervalTree of the start and end times of the blocks for
+	 * the service ID, for quickly finding the blocks that are active at a
+	 * time of day.
+	 * 
+	 * @param serviceId
+	 * @return the interval tree of the blocks, or null if there are no blocks
+	 *         for the service ID
+	 */
+	public IntervalTree<Block> getBlocksIntervalTree(String serviceId) {
+		return blockIntervalTreesByServiceMap.get(serviceId);
+	}
+
 	/**
 	 * Returns unmodifiable list of blocks for the agency.
 	 * 
@@ -1009,6 +1193,16 @@ public class DbConfig {
 		return Collections.unmodifiableList(agencies);
 	}
 
+	/**
+	 * Returns the spatial index of the stops of all trip patterns, for
+	 * finding the stops near a location.
+	 * 
+	 * @return the index for the config rev that was read in
+	 */
+	public StopsSpatialIndex getStopsSpatialIndex() {
+		return stopsSpatialIndex;
+	}
+
 	/**
 	 * Returns the database revision of the configuration data that was read in.
 	 * 
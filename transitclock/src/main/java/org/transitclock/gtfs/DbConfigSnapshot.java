@@ -0,0 +1,450 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.gtfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.StringConfigValue;
+import org.transitclock.db.structs.Agency;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Calendar;
+import org.transitclock.db.structs.CalendarDate;
+import org.transitclock.db.structs.Extent;
+import org.transitclock.db.structs.FareAttribute;
+import org.transitclock.db.structs.FareRule;
+import org.transitclock.db.structs.Frequency;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.Route;
+import org.transitclock.db.structs.ScheduleTime;
+import org.transitclock.db.structs.Stop;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Transfer;
+import org.transitclock.db.structs.TravelTimesForStopPath;
+import org.transitclock.db.structs.TravelTimesForTrip;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.ipc.binary.BinaryCodec;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * A snapshot of the configuration data read in by DbConfig, stored in a
+ * binary file so that the Core can start up without reading everything from
+ * the database. There is a file per agency, config rev and travel times
+ * rev. The travel times rev is needed since UpdateTravelTimes changes the
+ * travel times of the trips of a config rev and then only increments the
+ * travel times rev. When DbConfig reads revisions that don't have a snapshot
+ * yet it reads the data from the database and then writes the snapshot, so
+ * only the first start for new revisions needs to wait for the database.
+ * <p>
+ * The file is a small header followed by the data encoded with BinaryCodec,
+ * which keeps the object identities so that, for example, all the trips of a
+ * trip pattern still refer to the same TripPattern object. The header
+ * contains the agency ID, the revisions, and a fingerprint of the members of
+ * the db struct classes. If any of them don't match, such as when the classes
+ * changed with a new release, the snapshot is ignored and the data is read
+ * from the database instead. The file is memory mapped when read so the data
+ * is decoded directly from the page cache.
+ */
+public class DbConfigSnapshot implements Serializable {
+
+	private final List<Block> blocks;
+	private final List<Route> routes;
+	private final List<TripPattern> tripPatterns;
+	private final Map<String, Trip> tripsMap;
+	private final List<Stop> stops;
+	private final List<Agency> agencies;
+	private final List<Calendar> calendars;
+	private final List<CalendarDate> calendarDates;
+	private final List<FareAttribute> fareAttributes;
+	private final List<FareRule> fareRules;
+	private final List<Frequency> frequencies;
+	private final List<Transfer> transfers;
+
+	private static StringConfigValue snapshotDirectory =
+			new StringConfigValue("transitclock.db.snapshotDirectory",
+					null,
+					"Directory where binary snapshots of the configuration "
+					+ "data are stored so that the core can start up "
+					+ "without reading all of the configuration from the "
+					+ "database. Written by the first start for a config "
+					+ "rev. If not set then snapshots are not used.");
+
+	// Identifies a snapshot file. Increment FORMAT_VERSION if the layout of
+	// the file changes.
+	private static final int MAGIC = 0x54435348;
+	private static final int FORMAT_VERSION = 2;
+
+	private static final String FILE_SUFFIX = ".snapshot";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The classes whose members are in the snapshot, for the fingerprint
+	private static final Class<?>[] SNAPSHOT_CLASSES = { DbConfigSnapshot.class,
+			Block.class, Trip.class, ScheduleTime.class, TripPattern.class,
+			StopPath.class, Location.class, Extent.class,
+			TravelTimesForTrip.class, TravelTimesForStopPath.class,
+			Route.class, Stop.class, Agency.class, Calendar.class,
+			CalendarDate.class, FareAttribute.class, FareRule.class,
+			Frequency.class, Transfer.class };
+
+	private static final long serialVersionUID = -8096405473926420537L;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DbConfigSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	public DbConfigSnapshot(List<Block> blocks, List<Route> routes,
+			List<TripPattern> tripPatterns, Map<String, Trip> tripsMap,
+			List<Stop> stops, List<Agency> agencies, List<Calendar> calendars,
+			List<CalendarDate> calendarDates,
+			List<FareAttribute> fareAttributes, List<FareRule> fareRules,
+			List<Frequency> frequencies, List<Transfer> transfers) {
+		this.blocks = blocks;
+		this.routes = routes;
+		this.tripPatterns = tripPatterns;
+		this.tripsMap = tripsMap;
+		this.stops = stops;
+		this.agencies = agencies;
+		this.calendars = calendars;
+		this.calendarDates = calendarDates;
+		this.fareAttributes = fareAttributes;
+		this.fareRules = fareRules;
+		this.frequencies = frequencies;
+		this.transfers = transfers;
+	}
+
+	/**
+	 * BinaryCodec requires no-arg constructor to decode the snapshot field by
+	 * field instead of with Java serialization
+	 */
+	@SuppressWarnings("unused")
+	private DbConfigSnapshot() {
+		this.blocks = null;
+		this.routes = null;
+		this.tripPatterns = null;
+		this.tripsMap = null;
+		this.stops = null;
+		this.agencies = null;
+		this.calendars = null;
+		this.calendarDates = null;
+		this.fareAttributes = null;
+		this.fareRules = null;
+		this.frequencies = null;
+		this.transfers = null;
+	}
+
+	/**
+	 * @return true if transitclock.db.snapshotDirectory is set
+	 */
+	public static boolean isEnabled() {
+		return snapshotDirectory.getValue() != null;
+	}
+
+	/**
+	 * Returns the snapshot file for the agency and revisions
+	 */
+	private static File getFile(String agencyId, int configRev,
+			int travelTimesRev) {
+		return new File(snapshotDirectory.getValue(),
+				getFilePrefix(agencyId) + configRev + "_travelTimesRev"
+						+ travelTimesRev + FILE_SUFFIX);
+	}
+
+	private static String getFilePrefix(String agencyId) {
+		return agencyId.replaceAll("[^A-Za-z0-9_-]", "_") + "_configRev";
+	}
+
+	/**
+	 * Determines a fingerprint of the names and types of the members of the
+	 * classes in the snapshot so that a snapshot written by a different
+	 * version of the classes is not used.
+	 *
+	 * @return the fingerprint
+	 */
+	private static long getClassesFingerprint() {
+		CRC32 crc = new CRC32();
+		for (Class<?> cls : SNAPSHOT_CLASSES) {
+			for (Class<?> c = cls; c != null && c != Object.class;
+					c = c.getSuperclass()) {
+				Field[] fields = c.getDeclaredFields();
+				Arrays.sort(fields, new Comparator<Field>() {
+					@Override
+					public int compare(Field f1, Field f2) {
+						return f1.getName().compareTo(f2.getName());
+					}
+				});
+				StringBuilder sb = new StringBuilder(c.getName());
+				for (Field field : fields) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers)
+							|| Modifier.isTransient(modifiers))
+						continue;
+					sb.append(';').append(field.getName()).append(':')
+							.append(field.getType().getName());
+				}
+				crc.update(sb.toString().getBytes(UTF8));
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads the snapshot for the agency and revisions.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return the snapshot, or null if there is no valid snapshot for the
+	 *         agency and revisions
+	 */
+	public static DbConfigSnapshot read(String agencyId, int configRev,
+			int travelTimesRev) {
+		return read(getFile(agencyId, configRev, travelTimesRev), agencyId,
+				configRev, travelTimesRev);
+	}
+
+	/**
+	 * Reads the snapshot file, which must be for the agency and revisions.
+	 *
+	 * @param file
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return the snapshot, or null if the file is not a valid snapshot for
+	 *         the agency and revisions
+	 */
+	static DbConfigSnapshot read(File file, String agencyId, int configRev,
+			int travelTimesRev) {
+		if (!file.exists()) {
+			logger.info("No config snapshot {} so reading config from db",
+					file);
+			return null;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				logger.warn("Config snapshot {} is too large to map so "
+						+ "reading config from db", file);
+				return null;
+			}
+			MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size());
+
+			// Make sure the snapshot is really for the agency and
+			// revisions and was written by the same version of the classes
+			if (buffer.getInt() != MAGIC
+					|| buffer.getInt() != FORMAT_VERSION) {
+				logger.warn("{} is not a config snapshot of the current "
+						+ "format so reading config from db", file);
+				return null;
+			}
+			if (buffer.getLong() != getClassesFingerprint()) {
+				logger.info("Config snapshot {} was written by a different "
+						+ "version of the software so reading config from db",
+						file);
+				return null;
+			}
+			byte[] agencyIdBytes = new byte[buffer.getShort()];
+			buffer.get(agencyIdBytes);
+			if (!agencyId.equals(new String(agencyIdBytes, UTF8))
+					|| buffer.getInt() != configRev
+					|| buffer.getInt() != travelTimesRev) {
+				logger.warn("Config snapshot {} is not for agencyId={} "
+						+ "configRev={} travelTimesRev={} so reading config "
+						+ "from db", file, agencyId, configRev, travelTimesRev);
+				return null;
+			}
+
+			DbConfigSnapshot snapshot =
+					(DbConfigSnapshot) BinaryCodec.decode(buffer);
+			logger.info("Read config snapshot {} of {} bytes with {} blocks "
+					+ "and {} trips in {} msec", file, channel.size(),
+					snapshot.blocks.size(), snapshot.tripsMap.size(),
+					timer.elapsedMsec());
+			return snapshot;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not read config snapshot {} so reading "
+					+ "config from db. {}", file, e.getMessage(), e);
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// Already read so nothing else to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot for the agency and revisions. Written to a
+	 * temporary file that is then renamed so that a partially written
+	 * snapshot is never read. Snapshots for other revisions of the agency
+	 * are then deleted since they are no longer needed. Errors are logged
+	 * but otherwise ignored since the snapshot is only an optimization.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 */
+	public void write(String agencyId, int configRev, int travelTimesRev) {
+		write(getFile(agencyId, configRev, travelTimesRev), agencyId,
+				configRev, travelTimesRev);
+	}
+
+	/**
+	 * Writes the snapshot for the agency and revisions to the file and
+	 * deletes the snapshots of the other revisions of the agency in the
+	 * same directory.
+	 *
+	 * @param file
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 */
+	void write(File file, String agencyId, int configRev, int travelTimesRev) {
+		IntervalTimer timer = new IntervalTimer();
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+
+			byte[] agencyIdBytes = agencyId.getBytes(UTF8);
+			int headerSize = 4 + 4 + 8 + 2 + agencyIdBytes.length + 4 + 4;
+			ByteBuffer buffer = BinaryCodec.encode(this, headerSize);
+			buffer.putInt(MAGIC);
+			buffer.putInt(FORMAT_VERSION);
+			buffer.putLong(getClassesFingerprint());
+			buffer.putShort((short) agencyIdBytes.length);
+			buffer.put(agencyIdBytes);
+			buffer.putInt(configRev);
+			buffer.putInt(travelTimesRev);
+			buffer.position(0);
+
+			FileOutputStream out = new FileOutputStream(tmpFile);
+			try {
+				FileChannel channel = out.getChannel();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Wrote config snapshot {} of {} bytes in {} msec",
+					file, buffer.limit(), timer.elapsedMsec());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not write config snapshot {}. {}", file,
+					e.getMessage(), e);
+			tmpFile.delete();
+			return;
+		}
+
+		// Remove the snapshots of old revisions
+		String prefix = getFilePrefix(agencyId);
+		File[] files = file.getParentFile().listFiles();
+		if (files != null) {
+			for (File oldFile : files) {
+				String name = oldFile.getName();
+				if (name.startsWith(prefix) && name.endsWith(FILE_SUFFIX)
+						&& !oldFile.equals(file)) {
+					logger.info("Deleting old config snapshot {}", oldFile);
+					oldFile.delete();
+				}
+			}
+		}
+	}
+
+	public List<Block> getBlocks() {
+		return blocks;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public List<TripPattern> getTripPatterns() {
+		return tripPatterns;
+	}
+
+	/**
+	 * @return all trips, keyed on trip ID
+	 */
+	public Map<String, Trip> getTripsMap() {
+		return tripsMap;
+	}
+
+	public List<Stop> getStops() {
+		return stops;
+	}
+
+	public List<Agency> getAgencies() {
+		return agencies;
+	}
+
+	public List<Calendar> getCalendars() {
+		return calendars;
+	}
+
+	public List<CalendarDate> getCalendarDates() {
+		return calendarDates;
+	}
+
+	public List<FareAttribute> getFareAttributes() {
+		return fareAttributes;
+	}
+
+	public List<FareRule> getFareRules() {
+		return fareRules;
+	}
+
+	public List<Frequency> getFrequencies() {
+		return frequencies;
+	}
+
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+}
@@ -17,6 +17,10 @@
  */
 package org.transitclock.gtfs;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -24,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.configData.DbSetupConfig;
 import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.hibernate.JdbcBatchWriter;
 import org.transitclock.db.structs.Agency;
 import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Calendar;
@@ -48,6 +53,9 @@ import org.transitclock.utils.IntervalTimer;
 public class DbWriter {
 
 	private final GtfsData gtfsData;
+	// For writing the objects that don't cascade to other objects with
+	// JDBC batches instead of one at a time. Null if not used.
+	private final JdbcBatchWriter batchWriter;
 	private int counter = 0;
 	private static final Logger logger = LoggerFactory
 			.getLogger(DbWriter.class);
@@ -55,7 +63,21 @@ public class DbWriter {
 	/********************** Member Functions **************************/
 
 	public DbWriter(GtfsData gtfsData) {
+		this(gtfsData, null);
+	}
+	
+	/**
+	 * @param gtfsData
+	 * @param batchWriter
+	 *            If not null then used to write the routes, stops, calendars
+	 *            and other objects that don't cascade to other objects with
+	 *            multi-row inserts, or COPY for PostgreSQL. The old data for
+	 *            the config rev is always deleted first so these objects
+	 *            can simply be inserted.
+	 */
+	public DbWriter(GtfsData gtfsData, JdbcBatchWriter batchWriter) {
 		this.gtfsData = gtfsData;
+		this.batchWriter = batchWriter;
 	}
 	
 	/**
@@ -85,6 +107,34 @@ public class DbWriter {
 		}
 	}
 	
+	/**
+	 * Writes the objects of a collection. Uses the batchWriter if there is
+	 * one. Otherwise uses writeObject() for each object.
+	 * 
+	 * @param session
+	 * @param objects
+	 *            Objects that don't cascade to other objects
+	 */
+	private void writeObjects(Session session, Collection<?> objects) {
+		if (batchWriter == null) {
+			for (Object object : objects)
+				writeObject(session, object);
+			return;
+		}
+		
+		int batchSize = DbSetupConfig.getBatchSize();
+		List<Object> batch = new ArrayList<Object>(batchSize);
+		for (Object object : objects) {
+			batch.add(object);
+			if (batch.size() >= batchSize) {
+				batchWriter.write(session, batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			batchWriter.write(session, batch);
+	}
+	
 	/**
 	 * Goes through the collections in GtfsData and writes the objects
 	 * to the database.
@@ -137,57 +187,39 @@ public class DbWriter {
 		
 		logger.info("Saving routes to database...");
 		Route.deleteFromRev(session, configRev);
-		for (Route route : gtfsData.getRoutes()) {
-			writeObject(session, route);
-		}
+		writeObjects(session, gtfsData.getRoutes());
 		
 		logger.info("Saving stops to database...");
 		Stop.deleteFromRev(session, configRev);
-		for (Stop stop : gtfsData.getStops()) {
-			writeObject(session, stop);
-		}
+		writeObjects(session, gtfsData.getStops());
 		
 		logger.info("Saving agencies to database...");
 		Agency.deleteFromRev(session, configRev);
-		for (Agency agency : gtfsData.getAgencies()) {
-			writeObject(session, agency);
-		}
+		writeObjects(session, gtfsData.getAgencies());
 
 		logger.info("Saving calendars to database...");
 		Calendar.deleteFromRev(session, configRev);
-		for (Calendar calendar : gtfsData.getCalendars()) {
-			writeObject(session, calendar);
-		}
+		writeObjects(session, gtfsData.getCalendars());
 		
 		logger.info("Saving calendar dates to database...");
 		CalendarDate.deleteFromRev(session, configRev);
-		for (CalendarDate calendarDate : gtfsData.getCalendarDates()) {
-			writeObject(session, calendarDate);
-		}
+		writeObjects(session, gtfsData.getCalendarDates());
 		
 		logger.info("Saving fare rules to database...");
 		FareRule.deleteFromRev(session, configRev);
-		for (FareRule fareRule : gtfsData.getFareRules()) {
-			writeObject(session, fareRule);
-		}
+		writeObjects(session, gtfsData.getFareRules());
 		
 		logger.info("Saving fare attributes to database...");
 		FareAttribute.deleteFromRev(session, configRev);
-		for (FareAttribute fareAttribute : gtfsData.getFareAttributes()) {
-			writeObject(session, fareAttribute);
-		}
+		writeObjects(session, gtfsData.getFareAttributes());
 		
 		logger.info("Saving frequencies to database...");
 		Frequency.deleteFromRev(session, configRev);
-		for (Frequency frequency : gtfsData.getFrequencies()) {
-			writeObject(session, frequency);
-		}
+		writeObjects(session, gtfsData.getFrequencies());
 		
 		logger.info("Saving transfers to database...");
 		Transfer.deleteFromRev(session, configRev);
-		for (Transfer transfer : gtfsData.getTransfers()) {
-			writeObject(session, transfer);
-		}
+		writeObjects(session, gtfsData.getTransfers());
 		
 		// Write out the ConfigRevision data
 		writeObject(session, gtfsData.getConfigRevision());
@@ -18,30 +18,40 @@ package org.transitclock.gtfs;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Pattern;
 
 import org.hibernate.HibernateException;
-
+
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
+import org.transitclock.configData.DbSetupConfig;
 import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.hibernate.JdbcBatchWriter;
 import org.transitclock.db.structs.ActiveRevisions;
 import org.transitclock.db.structs.Agency;
 import org.transitclock.db.structs.Block;
@@ -96,6 +106,7 @@ import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.MapKey;
 import org.transitclock.utils.StringUtils;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.csv.CsvBaseReader;
 
 /**
  * Contains all the GTFS data processed into Java lists and such. Also combines
@@ -206,6 +217,15 @@ public class GtfsData {
 	private List<FareRule> fareRules;
 	private List<Transfer> transfers;
 	
+	// For when the import is pipelined. Only exists while the trips and
+	// the stop paths are being processed.
+	private ForkJoinPool pipelinePool = null;
+	
+	// How long each stage of the processing took, in msec. Keyed on
+	// stage name, in the order the stages were processed.
+	private final Map<String, Long> stageTimings = 
+			new LinkedHashMap<String, Long>();
+	
 	// This is the format that dates are in for CSV. Should
 	// be accessed only through getDateFormatter() to make
 	// sure that it is initialized.
@@ -255,6 +275,25 @@ public class GtfsData {
 					+ "stops for the trips with the same headsign differ by "
 					+ "less than this amount.");
 	
+	private static BooleanConfigValue pipelinedImport =
+			new BooleanConfigValue("transitclock.gtfs.pipelinedImport", 
+					false,
+					"When true stop_times.txt is streamed and grouped by "
+					+ "route as it is read, the trips, trip patterns and stop "
+					+ "paths of the routes are processed in parallel, and the "
+					+ "data is written to the database using JDBC batches. "
+					+ "Much faster and uses less memory for large GTFS "
+					+ "feeds. The results are the same as when not "
+					+ "pipelined except that the trips are processed in "
+					+ "route and file order, which can change which trip "
+					+ "pattern IDs get a suffix to make them unique.");
+	
+	private static IntegerConfigValue pipelinedImportThreads =
+			new IntegerConfigValue("transitclock.gtfs.pipelinedImportThreads",
+					Runtime.getRuntime().availableProcessors(),
+					"Number of threads used to process the routes when "
+					+ "transitclock.gtfs.pipelinedImport is true.");
+	
 	// Logging
 	public static final Logger logger = 
 			LoggerFactory.getLogger(GtfsData.class);
@@ -312,7 +351,10 @@ public class GtfsData {
 		this.titleFormatter = titleFormatter;
 		
 		// Get the database session. Using one session for the whole process.
-		SessionFactory sessionFactory = 
+		// If pipelined then the session uses JDBC batches when writing.
+		SessionFactory sessionFactory = pipelinedImport.getValue() ?
+				HibernateUtils.getBatchingSessionFactory(getAgencyId(), 
+						DbSetupConfig.getBatchSize()) :
 				HibernateUtils.getSessionFactory(getAgencyId());
 		session = sessionFactory.openSession();
 		
@@ -351,6 +393,58 @@ public class GtfsData {
 		logger.info("Will be writing data to revisions {}", revs);
 	}
 	
+	/**
+	 * For processing the GTFS data without a database, such as for testing.
+	 * Only processConfigData() can be used since there is no session for
+	 * the travel times or for writing the data.
+	 * 
+	 * @param configRev
+	 * @param projectId
+	 * @param gtfsDirectoryName
+	 * @param supplementDir
+	 * @param pathOffsetDistance
+	 * @param maxStopToPathDistance
+	 * @param maxDistanceForEliminatingVertices
+	 * @param defaultWaitTimeAtStopMsec
+	 * @param maxSpeedKph
+	 * @param maxTravelTimeSegmentLength
+	 * @param trimPathBeforeFirstStopOfTrip
+	 * @param titleFormatter
+	 */
+	GtfsData(int configRev,
+			String projectId,
+			String gtfsDirectoryName, 
+			String supplementDir, 
+			double pathOffsetDistance,
+			double maxStopToPathDistance,
+			double maxDistanceForEliminatingVertices,
+			int defaultWaitTimeAtStopMsec,
+			double maxSpeedKph,
+			double maxTravelTimeSegmentLength,
+			boolean trimPathBeforeFirstStopOfTrip,
+			TitleFormatter titleFormatter) {
+		this.agencyId = projectId;
+		this.notes = null;
+		this.zipFileLastModifiedTime = null;
+		this.gtfsDirectoryName = gtfsDirectoryName;
+		this.supplementDir = supplementDir;
+		this.pathOffsetDistance = pathOffsetDistance;
+		this.maxStopToPathDistance = maxStopToPathDistance;
+		this.maxDistanceForEliminatingVertices = 
+				maxDistanceForEliminatingVertices;
+		this.defaultWaitTimeAtStopMsec = defaultWaitTimeAtStopMsec;
+		this.maxSpeedKph = maxSpeedKph;
+		this.maxTravelTimeSegmentLength = maxTravelTimeSegmentLength;
+		this.trimPathBeforeFirstStopOfTrip = trimPathBeforeFirstStopOfTrip;
+		this.titleFormatter = titleFormatter;
+		
+		session = null;
+		originalTravelTimesRev = 0;
+		cleanupRevs = false;
+		revs = new ActiveRevisions();
+		revs.setConfigRev(configRev);
+	}
+	
 	/**
 	 * Creates the static dateFormatter using the specified timezone. The
 	 * timezone name is obtained from the first agency in the agency.txt file.
@@ -1010,6 +1104,12 @@ public class GtfsData {
 			System.exit(-1);
 		}
 
+		// If pipelined then the stop times are processed by route instead
+		if (pipelinePool != null) {
+			processStopTimesDataPipelined();
+			return;
+		}
+		
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 		
@@ -1117,6 +1217,22 @@ public class GtfsData {
 		
 		// Log if a trip is defined in the trips.txt file but not in 
 		// stop_times.txt
+		logTripsWithoutStopTimes();
+		
+		// Now that have all the stop times gtfs data create the trips
+		// and the trip patterns.
+		createTripsAndTripPatterns(gtfsStopTimesForTripMap);
+				
+		// Let user know what is going on
+		logger.info("Finished processing stop_times.txt data. Took {} msec.", 
+				timer.elapsedMsec());
+	}
+	
+	/**
+	 * Logs the trips that are defined in the trips.txt file but not in 
+	 * stop_times.txt .
+	 */
+	private void logTripsWithoutStopTimes() {
 		int numberOfProblemTrips = 0;
 		for (String tripIdFromTripsFile : gtfsTripsMap.keySet()) {
 			if (gtfsStopTimesForTripMap.get(tripIdFromTripsFile) == null) {
@@ -1132,13 +1248,336 @@ public class GtfsData {
 			logger.warn("Found {} trips were defined in trips.txt but not in " +
 					"stop_times.txt out of a total of {} trips in trips.txt",
 					numberOfProblemTrips, gtfsTripsMap.size());
+	}
+	
+	/**
+	 * Returns the ID of the route that the trip will be configured for, so
+	 * that the stop times can be grouped by route when the import is 
+	 * pipelined. Uses the parent route if the route is a sub-route.
+	 * 
+	 * @param tripId
+	 * @return The route ID, or an empty string if the trip is not in the 
+	 *         trips.txt file
+	 */
+	private String getRouteIdForGrouping(String tripId) {
+		GtfsTrip gtfsTrip = gtfsTripsMap.get(tripId);
+		if (gtfsTrip == null || gtfsTrip.getRouteId() == null)
+			return "";
+		String properRouteId = getProperIdOfRoute(gtfsTrip.getRouteId());
+		return properRouteId != null ? properRouteId : gtfsTrip.getRouteId();
+	}
+	
+	/**
+	 * Returns the list of stop times for the trip from stopTimesByRoute.
+	 * Creates the list if it doesn't exist yet.
+	 * 
+	 * @param stopTimesByRoute
+	 *            Keyed on route ID and then on trip ID
+	 * @param tripId
+	 * @return The list of stop times for the trip
+	 */
+	private List<GtfsStopTime> getStopTimesForTrip(
+			Map<String, Map<String, List<GtfsStopTime>>> stopTimesByRoute,
+			String tripId) {
+		String routeId = getRouteIdForGrouping(tripId);
+		Map<String, List<GtfsStopTime>> stopTimesForRoute = 
+				stopTimesByRoute.get(routeId);
+		if (stopTimesForRoute == null) {
+			stopTimesForRoute = new LinkedHashMap<String, List<GtfsStopTime>>();
+			stopTimesByRoute.put(routeId, stopTimesForRoute);
+		}
+		List<GtfsStopTime> gtfsStopTimesForTrip = stopTimesForRoute.get(tripId);
+		if (gtfsStopTimesForTrip == null) {
+			gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
+			stopTimesForRoute.put(tripId, gtfsStopTimesForTrip);
+		}
+		return gtfsStopTimesForTrip;
+	}
+	
+	/**
+	 * Applies the supplemental stop_times.txt data for a trip to the stop 
+	 * times of the trip. The data is matched using the stop_id, same as when
+	 * not pipelined.
+	 * 
+	 * @param gtfsStopTimesForTrip
+	 *            The stop times for the trip. Modified by this method.
+	 * @param stopTimesSupplementForTrip
+	 *            The supplemental stop times for the trip
+	 */
+	private static void applyStopTimesSupplement(
+			List<GtfsStopTime> gtfsStopTimesForTrip,
+			List<GtfsStopTime> stopTimesSupplementForTrip) {
+		// Put original stop times into map for quick searching
+		Map<String, GtfsStopTime> map = 
+				new LinkedHashMap<String, GtfsStopTime>();
+		for (GtfsStopTime gtfsStopTime : gtfsStopTimesForTrip)
+			map.put(gtfsStopTime.getStopId(), gtfsStopTime);
+
+		// Modify the stop times using supplemental data
+		for (GtfsStopTime stopTimeSupplement : stopTimesSupplementForTrip) {
+			String stopId = stopTimeSupplement.getStopId();
+			if (stopTimeSupplement.shouldDelete()) {
+				GtfsStopTime oldStopTime = map.remove(stopId);
+				if (oldStopTime == null) {
+					logger.error("Supplement stop_times.txt file for "
+							+ "trip_id={} and stop_id={} specifies "
+							+ "that the stop time should be removed "
+							+ "but it is not actually configured in "
+							+ "the regular stop_times.txt file",
+							stopTimeSupplement.getTripId(), stopId);
+				}
+			} else if (map.get(stopId) != null) {
+				// The stop time is already in map so modify it
+				map.put(stopId, 
+						new GtfsStopTime(map.get(stopId), stopTimeSupplement));
+			} else {
+				// The stop time is not already in map so add it
+				map.put(stopId, stopTimeSupplement);
+			}
+		}
 		
-		// Now that have all the stop times gtfs data create the trips
-		// and the trip patterns.
-		createTripsAndTripPatterns(gtfsStopTimesForTripMap);
+		gtfsStopTimesForTrip.clear();
+		gtfsStopTimesForTrip.addAll(map.values());
+	}
+	
+	/**
+	 * Streams the stop_times.txt data and groups it by route and trip. The
+	 * supplemental stop_times.txt data, if there is any, is applied to each 
+	 * trip separately so that don't need a map of all the stop times.
+	 * 
+	 * @return The stop times, keyed on route ID and then on trip ID. The
+	 *         routes are ordered by ID and the trips are in the order they
+	 *         were first encountered in the file.
+	 */
+	private Map<String, Map<String, List<GtfsStopTime>>> readStopTimesByRoute() {
+		final Map<String, Map<String, List<GtfsStopTime>>> stopTimesByRoute =
+				new TreeMap<String, Map<String, List<GtfsStopTime>>>();
+		
+		GtfsStopTimesReader stopTimesReader = 
+				new GtfsStopTimesReader(gtfsDirectoryName);
+		stopTimesReader.read(new CsvBaseReader.Handler<GtfsStopTime>() {
+			// The stop times are usually ordered by trip so can usually use
+			// the list for the previous stop time instead of looking it up
+			private String previousTripId = null;
+			private List<GtfsStopTime> previousStopTimesForTrip = null;
+			
+			@Override
+			public void handle(GtfsStopTime gtfsStopTime) {
+				String tripId = gtfsStopTime.getTripId();
+				if (!tripId.equals(previousTripId)) {
+					previousTripId = tripId;
+					previousStopTimesForTrip = 
+							getStopTimesForTrip(stopTimesByRoute, tripId);
+				}
+				previousStopTimesForTrip.add(gtfsStopTime);
+			}
+		});
+
+		// Handle possible supplemental stop_times.txt file
+		if (supplementDir != null) {
+			GtfsStopTimesSupplementReader stopTimesSupplementReader =
+					new GtfsStopTimesSupplementReader(supplementDir);
+			Map<String, List<GtfsStopTime>> stopTimesSupplementByTrip =
+					new LinkedHashMap<String, List<GtfsStopTime>>();
+			for (GtfsStopTime stopTimeSupplement 
+					: stopTimesSupplementReader.get()) {
+				List<GtfsStopTime> stopTimesSupplementForTrip = 
+						stopTimesSupplementByTrip.get(
+								stopTimeSupplement.getTripId());
+				if (stopTimesSupplementForTrip == null) {
+					stopTimesSupplementForTrip = new ArrayList<GtfsStopTime>();
+					stopTimesSupplementByTrip.put(
+							stopTimeSupplement.getTripId(),
+							stopTimesSupplementForTrip);
+				}
+				stopTimesSupplementForTrip.add(stopTimeSupplement);
+			}
+			
+			for (Map.Entry<String, List<GtfsStopTime>> entry 
+					: stopTimesSupplementByTrip.entrySet()) {
+				String tripId = entry.getKey();
+				List<GtfsStopTime> gtfsStopTimesForTrip = 
+						getStopTimesForTrip(stopTimesByRoute, tripId);
+				applyStopTimesSupplement(gtfsStopTimesForTrip, 
+						entry.getValue());
 				
+				// If all of the stop times for the trip were deleted then
+				// the trip is no longer in stop_times.txt
+				if (gtfsStopTimesForTrip.isEmpty()) {
+					stopTimesByRoute.get(getRouteIdForGrouping(tripId))
+							.remove(tripId);
+				}
+			}
+		}
+		
+		return stopTimesByRoute;
+	}
+	
+	/**
+	 * The result of processing a single trip in a RouteTripsTask
+	 */
+	private static class ProcessedTrip {
+		private final String tripId;
+		// The processed/cleaned up stop times
+		private final List<GtfsStopTime> gtfsStopTimesForTrip;
+		// Null if the trip could not be configured
+		private final Trip trip;
+		private final List<StopPath> stopPaths;
+		
+		private ProcessedTrip(String tripId,
+				List<GtfsStopTime> gtfsStopTimesForTrip, Trip trip,
+				List<StopPath> stopPaths) {
+			this.tripId = tripId;
+			this.gtfsStopTimesForTrip = gtfsStopTimesForTrip;
+			this.trip = trip;
+			this.stopPaths = stopPaths;
+		}
+	}
+	
+	/**
+	 * For processing the trips of a route in the pipelinePool. Does the work
+	 * that only reads the GTFS data: cleans up the stop times and creates 
+	 * the trips, their schedule times and their stop paths. Trips of the
+	 * route that have the same trip pattern share the same list of stop 
+	 * paths so that the duplicates can be garbage collected right away. The
+	 * trip patterns and the other shared collections are updated when the 
+	 * results are merged.
+	 */
+	private class RouteTripsTask extends RecursiveTask<List<ProcessedTrip>> {
+		// Keyed on trip ID
+		private final Map<String, List<GtfsStopTime>> stopTimesForRoute;
+		
+		private static final long serialVersionUID = 1L;
+		
+		private RouteTripsTask(
+				Map<String, List<GtfsStopTime>> stopTimesForRoute) {
+			this.stopTimesForRoute = stopTimesForRoute;
+		}
+		
+		@Override
+		protected List<ProcessedTrip> compute() {
+			List<ProcessedTrip> processedTrips = 
+					new ArrayList<ProcessedTrip>(stopTimesForRoute.size());
+			Map<TripPatternKey, List<StopPath>> stopPathsForRoute =
+					new HashMap<TripPatternKey, List<StopPath>>();
+			for (Map.Entry<String, List<GtfsStopTime>> entry 
+					: stopTimesForRoute.entrySet()) {
+				String tripId = entry.getKey();
+				List<GtfsStopTime> gtfsStopTimesForTrip = 
+						processStopTimesForTrip(entry.getValue());
+				Trip trip = createNewTrip(tripId, gtfsStopTimesForTrip);
+				List<StopPath> stopPaths = null;
+				if (trip != null) {
+					stopPaths = new ArrayList<StopPath>();
+					trip.addScheduleTimes(getScheduleTimesForTrip(trip,
+							gtfsStopTimesForTrip, stopPaths));
+					
+					// Use the stop paths of a previous trip with the same
+					// trip pattern if there is one
+					TripPatternKey tripPatternKey = 
+							new TripPatternKey(trip.getShapeId(), stopPaths);
+					List<StopPath> previousStopPaths = 
+							stopPathsForRoute.get(tripPatternKey);
+					if (previousStopPaths == null)
+						stopPathsForRoute.put(tripPatternKey, stopPaths);
+					else
+						stopPaths = previousStopPaths;
+				}
+				processedTrips.add(new ProcessedTrip(tripId,
+						gtfsStopTimesForTrip, trip, stopPaths));
+			}
+			return processedTrips;
+		}
+	}
+	
+	/**
+	 * Adds the trips processed by a RouteTripsTask to the trip and trip 
+	 * pattern collections. Same as what createTripsAndTripPatterns() does
+	 * for each trip.
+	 * 
+	 * @param processedTrips
+	 */
+	private void addProcessedTrips(List<ProcessedTrip> processedTrips) {
+		for (ProcessedTrip processedTrip : processedTrips) {
+			gtfsStopTimesForTripMap.put(processedTrip.tripId, 
+					processedTrip.gtfsStopTimesForTrip);
+			
+			// If trip not valid then skip over it
+			Trip trip = processedTrip.trip;
+			if (trip == null) {
+				logTripDiscarded(processedTrip.tripId);
+				continue;
+			}
+			
+			// Keep track of service IDs so can filter unneeded calendars
+			serviceIdsWithTrips.add(trip.getServiceId());
+			
+			updateTripPatterns(trip, processedTrip.stopPaths);
+			addToTripsCollection(trip);
+		}
+	}
+	
+	/**
+	 * Pipelined version of processStopTimesData(). The stop times are 
+	 * streamed from the stop_times.txt file and grouped by route. Then the 
+	 * trips of each route are processed by a RouteTripsTask in the 
+	 * pipelinePool. The results are merged in route order so that the trip
+	 * patterns are created deterministically. Only a limited number of 
+	 * routes are in progress at once and the stop times of a route are 
+	 * released once the route has been processed, so the intermediate data
+	 * is bounded by the routes in progress.
+	 */
+	private void processStopTimesDataPipelined() {
+		// For logging how long things take
+		IntervalTimer timer = new IntervalTimer();
+		IntervalTimer stageTimer = new IntervalTimer();
+		
 		// Let user know what is going on
-		logger.info("Finished processing stop_times.txt data. Took {} msec.", 
+		logger.info("Processing stop_times.txt data pipelined using {} "
+				+ "threads...", pipelinePool.getParallelism());
+		
+		Map<String, Map<String, List<GtfsStopTime>>> stopTimesByRoute =
+				readStopTimesByRoute();
+		stageDone("read stop_times.txt", stageTimer);
+		
+		// Process the trips of each route
+		createTripCollections();
+		gtfsStopTimesForTripMap = new HashMap<String, List<GtfsStopTime>>();
+		int maxRoutesInProgress = 2 * pipelinePool.getParallelism();
+		Deque<ForkJoinTask<List<ProcessedTrip>>> routesInProgress =
+				new ArrayDeque<ForkJoinTask<List<ProcessedTrip>>>();
+		Iterator<Map<String, List<GtfsStopTime>>> iterator = 
+				stopTimesByRoute.values().iterator();
+		while (iterator.hasNext()) {
+			Map<String, List<GtfsStopTime>> stopTimesForRoute = iterator.next();
+			
+			// The task takes over the stop times for the route so that they 
+			// can be garbage collected once the task is done
+			iterator.remove();
+			
+			// Limit how much data is in progress by waiting for the oldest
+			// route if too many are in progress
+			if (routesInProgress.size() >= maxRoutesInProgress)
+				addProcessedTrips(routesInProgress.removeFirst().join());
+			routesInProgress.addLast(pipelinePool.submit(
+					new RouteTripsTask(stopTimesForRoute)));
+		}
+		while (!routesInProgress.isEmpty())
+			addProcessedTrips(routesInProgress.removeFirst().join());
+
+		// Log if a trip is defined in the trips.txt file but not in 
+		// stop_times.txt
+		logTripsWithoutStopTimes();
+
+		// Process the headsigns for the trips and the trip patterns to make 
+		// sure that they are unique for each destination.
+		makeHeadsignsUniqueIfDifferentLastStop();
+		stageDone("trips and trip patterns", stageTimer);
+		
+		// Let user know what is going on
+		logger.info("Finished processing stop_times.txt data for {} trips "
+				+ "and {} trip patterns. Took {} msec.", 
+				gtfsStopTimesForTripMap.size(), tripPatternMap.size(),
 				timer.elapsedMsec());
 	}
 	
@@ -1167,14 +1606,40 @@ public class GtfsData {
 		// Create list of Paths for creating trip pattern
 		List<StopPath> paths = new ArrayList<StopPath>();
 		
-		// Create set of path IDs for this trip so can tell if looping 
-		// back on path such that need to create a unique path ID
-		Set<String> pathIdsForTrip = new HashSet<String>();
-		
 		// Determine the gtfs stop times for this trip
 		List<GtfsStopTime> gtfsStopTimesForTrip = 
 				gtfsStopTimesForTripMap.get(trip.getId());
 
+		// Determine the schedule times and the paths
+		List<ScheduleTime> newScheduleTimesList = 
+				getScheduleTimesForTrip(trip, gtfsStopTimesForTrip, paths);
+		
+		// Now that have Paths defined for the trip, if need to, 
+		// also create new trip pattern
+		updateTripPatterns(trip, paths);			
+
+		return newScheduleTimesList;
+	}
+	
+	/**
+	 * Goes through the stop times for the trip and determines the schedule
+	 * times and the stop paths. Only reads the GTFS data so can be called by
+	 * multiple threads at once.
+	 * 
+	 * @param trip
+	 *            The trip being created
+	 * @param gtfsStopTimesForTrip
+	 *            The processed stop times for the trip
+	 * @param paths
+	 *            The stop paths for the trip are added to this list
+	 * @return List of ScheduleTime objects for the trip
+	 */
+	private List<ScheduleTime> getScheduleTimesForTrip(Trip trip,
+			List<GtfsStopTime> gtfsStopTimesForTrip, List<StopPath> paths) {
+		// Create set of path IDs for this trip so can tell if looping 
+		// back on path such that need to create a unique path ID
+		Set<String> pathIdsForTrip = new HashSet<String>();
+		
 		// For each stop time for the trip...
 		List<ScheduleTime> newScheduleTimesList = 
 				new ArrayList<ScheduleTime>();
@@ -1281,10 +1746,6 @@ public class GtfsData {
 			previousStopId = stopId;
 		} // End of for each stop_time for trip
 		
-		// Now that have Paths defined for the trip, if need to, 
-		// also create new trip pattern
-		updateTripPatterns(trip, paths);			
-
 		return newScheduleTimesList;
 	}
 	
@@ -1406,6 +1867,50 @@ public class GtfsData {
 	 */
 	private void createTripsAndTripPatterns(
 			Map<String, List<GtfsStopTime>> gtfsStopTimesForTripMap) {
+		// Create the necessary collections for trips
+		createTripCollections();
+		
+		// For each trip in the stop_times.txt file ...
+		for (String tripId : gtfsStopTimesForTripMap.keySet()) {
+			// Create a Trip element for the trip ID. 
+			Trip trip =
+					createNewTrip(tripId, gtfsStopTimesForTripMap.get(tripId));
+			
+			// If trip not valid then skip over it
+			if (trip == null) {
+				logTripDiscarded(tripId);
+				continue;
+			}
+			
+			// Keep track of service IDs so can filter unneeded calendars
+			serviceIdsWithTrips.add(trip.getServiceId());
+			
+			// All the schedule times are available in gtfsStopTimesForTripMap 
+			// so add them all at once to the Trip. This also sets the startTime 
+			// and endTime for the trip. This is done after the Trip is already
+			// created since it deals with a few things including schedule
+			// times list, trip patterns, paths, etc and so it is much simpler
+			// to have getScheduleTimesForTrip() update an already existing 
+			// Trip object.
+			List<ScheduleTime> scheduleTimesList = getScheduleTimesForTrip(trip);
+			trip.addScheduleTimes(scheduleTimesList); 
+			
+			// Add the trip, or the trips if frequency based, to the 
+			// tripsCollection
+			addToTripsCollection(trip);
+		}  // End of for each trip ID
+		
+		// Process the headsigns for the trips and the trip patterns to make sure that 
+		// they are unique for each destination.
+		makeHeadsignsUniqueIfDifferentLastStop();
+	}
+	
+	/**
+	 * Makes sure the data needed for creating the trips has been read in
+	 * and then creates the collections that are populated when the trips
+	 * and trip patterns are created.
+	 */
+	private void createTripCollections() {
 		if (stopsMap == null || stopsMap.isEmpty()) {
 			logger.error("processStopData() must be called before " + 
 					"GtfsData.processStopTimesData() is. Exiting.");
@@ -1438,80 +1943,69 @@ public class GtfsData {
 		tripPatternIdSet = new HashSet<String>();
 		serviceIdsWithTrips = new HashSet<String>();
 		pathsMap = new HashMap<String, StopPath>();
-		
-		// For each trip in the stop_times.txt file ...
-		for (String tripId : gtfsStopTimesForTripMap.keySet()) {
-			// Create a Trip element for the trip ID. 
-			Trip trip =
-					createNewTrip(tripId, gtfsStopTimesForTripMap.get(tripId));
-			
-			// If trip not valid then skip over it
-			if (trip == null) {
-				logger.warn("Encountered trip_id={} in the "
-						+ "stop_times.txt file but that trip_id is not in "
-						+ "the trips.txt file, the service ID for the "
-						+ "trip is not valid in anytime in the future, "
-						+ "or the associated route is filtered out, "
-						+ "or the trip is filtered out. "
-						+ "Therefore this trip cannot be configured and "
-						+ "has been discarded.", tripId);
-				continue;
-			}
-			
-			// Keep track of service IDs so can filter unneeded calendars
-			serviceIdsWithTrips.add(trip.getServiceId());
-			
-			// All the schedule times are available in gtfsStopTimesForTripMap 
-			// so add them all at once to the Trip. This also sets the startTime 
-			// and endTime for the trip. This is done after the Trip is already
-			// created since it deals with a few things including schedule
-			// times list, trip patterns, paths, etc and so it is much simpler
-			// to have getScheduleTimesForTrip() update an already existing 
-			// Trip object.
-			List<ScheduleTime> scheduleTimesList = getScheduleTimesForTrip(trip);
-			trip.addScheduleTimes(scheduleTimesList); 
-						
-			if (isTripFrequencyBasedWithExactTimes(tripId)) {
-				// This is special case where for this trip ID 
-				// there is an entry in the frequencies.txt
-				// file with exact_times set indicating that need to create
-				// a separate Trip for each actual trip.  
-				List<Frequency> frequencyListForTripId =
-						frequencyMap.get(tripId);
-				for (Frequency frequency : frequencyListForTripId) {
-					for (int tripStartTime = frequency.getStartTime(); 
-							tripStartTime < frequency.getEndTime();
-							tripStartTime += frequency.getHeadwaySecs()) {
-						Trip frequencyBasedTrip = 
-								new Trip(trip,	tripStartTime);
-						tripsCollection.add(frequencyBasedTrip);
-					}
-				}
-			} else if (isTripFrequencyBasedWithoutExactTimes(tripId)) {
-				// This is a trip defined in the GTFS frequency.txt file
-				// to not be schedule based (not have exact_times set). 
-				// Need to create a trip for each time range defined for
-				// the trip in frequency.txt .
-				List<Frequency> frequencyListForTripId =
-						frequencyMap.get(tripId);
-				for (Frequency frequency : frequencyListForTripId) {
-					Trip frequencyBasedTrip =
-							new Trip(trip, frequency.getStartTime(),
-									frequency.getEndTime());
+	}
+	
+	/**
+	 * Logs that a trip from the stop_times.txt file could not be configured.
+	 * 
+	 * @param tripId
+	 */
+	private void logTripDiscarded(String tripId) {
+		logger.warn("Encountered trip_id={} in the "
+				+ "stop_times.txt file but that trip_id is not in "
+				+ "the trips.txt file, the service ID for the "
+				+ "trip is not valid in anytime in the future, "
+				+ "or the associated route is filtered out, "
+				+ "or the trip is filtered out. "
+				+ "Therefore this trip cannot be configured and "
+				+ "has been discarded.", tripId);
+	}
+	
+	/**
+	 * Adds a newly created trip, which already has its schedule times and
+	 * trip pattern, to the tripsCollection. If the trip is frequency based 
+	 * then a copy of the trip is added for each start time or time range.
+	 * 
+	 * @param trip
+	 */
+	private void addToTripsCollection(Trip trip) {
+		String tripId = trip.getId();
+		if (isTripFrequencyBasedWithExactTimes(tripId)) {
+			// This is special case where for this trip ID 
+			// there is an entry in the frequencies.txt
+			// file with exact_times set indicating that need to create
+			// a separate Trip for each actual trip.  
+			List<Frequency> frequencyListForTripId =
+					frequencyMap.get(tripId);
+			for (Frequency frequency : frequencyListForTripId) {
+				for (int tripStartTime = frequency.getStartTime(); 
+						tripStartTime < frequency.getEndTime();
+						tripStartTime += frequency.getHeadwaySecs()) {
+					Trip frequencyBasedTrip = 
+							new Trip(trip,	tripStartTime);
 					tripsCollection.add(frequencyBasedTrip);
 				}
-			} else {
-				// This is the normal case, an actual Trip that is not affected 
-				// by exact times in frequencies.txt data. Therefore simply add 
-				// it to the collection. It still might be a trip with no 
-				// schedule, but it isn't one with exact times.
-				tripsCollection.add(trip);
 			}
-		}  // End of for each trip ID
-		
-		// Process the headsigns for the trips and the trip patterns to make sure that 
-		// they are unique for each destination.
-		makeHeadsignsUniqueIfDifferentLastStop();
+		} else if (isTripFrequencyBasedWithoutExactTimes(tripId)) {
+			// This is a trip defined in the GTFS frequency.txt file
+			// to not be schedule based (not have exact_times set). 
+			// Need to create a trip for each time range defined for
+			// the trip in frequency.txt .
+			List<Frequency> frequencyListForTripId =
+					frequencyMap.get(tripId);
+			for (Frequency frequency : frequencyListForTripId) {
+				Trip frequencyBasedTrip =
+						new Trip(trip, frequency.getStartTime(),
+								frequency.getEndTime());
+				tripsCollection.add(frequencyBasedTrip);
+			}
+		} else {
+			// This is the normal case, an actual Trip that is not affected 
+			// by exact times in frequencies.txt data. Therefore simply add 
+			// it to the collection. It still might be a trip with no 
+			// schedule, but it isn't one with exact times.
+			tripsCollection.add(trip);
+		}
 	}
 	
 	/**
@@ -1873,7 +2367,8 @@ public class GtfsData {
 			}
 		}
 		
-		// Process all the shapes into stopPaths
+		// Process all the shapes into stopPaths. If pipelined then the
+		// routes are processed in parallel.
 		StopPathProcessor pathProcessor = 
 				new StopPathProcessor(
 						Collections.unmodifiableCollection(gtfsShapes), 
@@ -1883,7 +2378,10 @@ public class GtfsData {
 						maxStopToPathDistance, 
 						maxDistanceForEliminatingVertices,
 						trimPathBeforeFirstStopOfTrip);
-		pathProcessor.processPathSegments();
+		if (pipelinePool != null)
+			pathProcessor.processPathSegments(pipelinePool);
+		else
+			pathProcessor.processPathSegments();
 						
 		// Let user know what is going on
 		logger.info("Finished processing shapes.txt data. Took {} msec.",
@@ -2647,6 +3145,21 @@ public class GtfsData {
 		return matches;
 	}
 	
+	/**
+	 * Records how long a stage of the processing took so that the timings 
+	 * of all the stages can be logged at the end. Resets the timer so that
+	 * it can be used for the next stage.
+	 * 
+	 * @param stage
+	 *            Name of the stage
+	 * @param stageTimer
+	 *            Timer started at the beginning of the stage
+	 */
+	private void stageDone(String stage, IntervalTimer stageTimer) {
+		stageTimings.put(stage, stageTimer.elapsedMsec());
+		stageTimer.resetTimer();
+	}
+	
 	/**
 	 * Does all the work. Processes the data and store it in internal structures
 	 */
@@ -2658,6 +3171,69 @@ public class GtfsData {
 		logger.info("Processing GTFS data from {} ...",
 				gtfsDirectoryName);
 
+		processConfigData(pipelinedImport.getValue());
+		IntervalTimer stageTimer = new IntervalTimer();
+		
+		// Now process travel times and update the Trip objects. 
+		TravelTimesProcessorForGtfsUpdates travelTimesProcesssor =
+				new TravelTimesProcessorForGtfsUpdates(revs,
+						originalTravelTimesRev, maxTravelTimeSegmentLength,
+						defaultWaitTimeAtStopMsec, maxSpeedKph);
+		travelTimesProcesssor.process(session, this);
+		stageDone("travel times", stageTimer);
+		
+    // Try allowing garbage collector to free up some memory since
+    // don't need the GTFS structures anymore.
+    gtfsRoutesMap = null;
+    gtfsTripsMap = null;
+    gtfsStopTimesForTripMap = null; 
+    int originalNumberOfTravelTimes = travelTimesProcesssor.getOriginalNumberOfTravelTimes();
+    int numberOfTravelTimes = travelTimesProcesssor.getNumberOfTravelTimes();
+    int configRev = revs.getConfigRev();
+    int travelTimesRev= revs.getTravelTimesRev();
+		try {
+  		// If pipelined then write the simple objects with JDBC batches
+  		JdbcBatchWriter batchWriter = null;
+  		if (pipelinedImport.getValue()) {
+  			batchWriter = new JdbcBatchWriter(
+  					"postgresql".equalsIgnoreCase(DbSetupConfig.getDbType()));
+  		}
+  		DbWriter dbWriter = new DbWriter(this, batchWriter);
+  		dbWriter.write(session, revs.getConfigRev(), cleanupRevs);	
+  		// Finish things up by closing the session
+  		session.close();
+  		stageDone("write to database", stageTimer);
+  		
+  		// Let user know what is going on
+  		logger.info("Finished processing GTFS data from {} . Took {} msec. "
+  				+ "Stage timings in msec: {}",
+  				gtfsDirectoryName, timer.elapsedMsec(), stageTimings);
+    } catch (HibernateException e) {
+      logger.error("Exception when writing data to db", e);
+      throw e;
+    }   
+		updateMetrics(originalNumberOfTravelTimes, numberOfTravelTimes, configRev, travelTimesRev);
+	}
+	
+	/**
+	 * Processes the GTFS data into the internal structures. Does everything
+	 * except for the travel times and writing to the database, which need
+	 * the session.
+	 * 
+	 * @param pipelined
+	 *            If true then the trips and the stop paths of the routes are
+	 *            processed in parallel
+	 */
+	void processConfigData(boolean pipelined) {
+		IntervalTimer stageTimer = new IntervalTimer();
+
+		// If pipelined then need a pool for processing the routes in 
+		// parallel
+		if (pipelined) {
+			pipelinePool = 
+					new ForkJoinPool(Math.max(pipelinedImportThreads.getValue(), 1));
+		}
+		
 		// Note. The order of how these are processed in important because
 		// some data sets rely on others in order to be fully processed.
 		// If the order is wrong then the methods below will log an error and
@@ -2669,10 +3245,20 @@ public class GtfsData {
 		processServiceIds();
 		processTripsData();	
 		processFrequencies();
+		stageDone("routes, stops, calendars and trips", stageTimer);
 		processStopTimesData();		
+		// If pipelined the stop times stages are recorded separately
+		if (pipelinePool == null)
+			stageDone("stop_times.txt", stageTimer);
 		processRouteMaps(); 
 		processBlocks();
+		stageDone("blocks", stageTimer);
 		processPaths();
+		stageDone("stop paths", stageTimer);
+		if (pipelinePool != null) {
+			pipelinePool.shutdown();
+			pipelinePool = null;
+		}
 		processAgencyData();
 		
 		// Following are simple objects that don't require combining tables
@@ -2697,39 +3283,6 @@ public class GtfsData {
 		// debugging
 		//outputPathsAndStopsForGraphing("8699");
 		
-		// Now process travel times and update the Trip objects. 
-		TravelTimesProcessorForGtfsUpdates travelTimesProcesssor =
-				new TravelTimesProcessorForGtfsUpdates(revs,
-						originalTravelTimesRev, maxTravelTimeSegmentLength,
-						defaultWaitTimeAtStopMsec, maxSpeedKph);
-		travelTimesProcesssor.process(session, this);
-		
-    // Try allowing garbage collector to free up some memory since
-    // don't need the GTFS structures anymore.
-    gtfsRoutesMap = null;
-    gtfsTripsMap = null;
-    gtfsStopTimesForTripMap = null; 
-    int originalNumberOfTravelTimes = travelTimesProcesssor.getOriginalNumberOfTravelTimes();
-    int numberOfTravelTimes = travelTimesProcesssor.getNumberOfTravelTimes();
-    int configRev = revs.getConfigRev();
-    int travelTimesRev= revs.getTravelTimesRev();
-		try {
-  		DbWriter dbWriter = new DbWriter(this);
-  		dbWriter.write(session, revs.getConfigRev(), cleanupRevs);	
-  		// Finish things up by closing the session
-  		session.close();
-  		
-  		// Let user know what is going on
-  		logger.info("Finished processing GTFS data from {} . Took {} msec.",
-  				gtfsDirectoryName, timer.elapsedMsec());
-    } catch (HibernateException e) {
-      logger.error("Exception when writing data to db", e);
-      throw e;
-    }   
-		updateMetrics(originalNumberOfTravelTimes, numberOfTravelTimes, configRev, travelTimesRev);
-  		
-  		
-
 		// just for debugging
 //		GtfsLoggingAppender.outputMessagesToSysErr();
 //		
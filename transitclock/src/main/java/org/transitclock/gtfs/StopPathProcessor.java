@@ -22,6 +22,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -628,26 +632,7 @@ public class StopPathProcessor {
 		
 		// Need to process stopPaths for every trip pattern...
 		for (TripPattern tripPattern : tripPatterns) {
-			// Determine the GtfsShape associated with the TripPattern
-			String shapeId = tripPattern.getShapeId();
-			List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
-			
-			// If no shape defined then simply connect the stops
-			if (gtfsShapesForTripPattern == null) {
-				// Create stopPaths by connecting the stops
-				connectStopsSinceNoShapes(tripPattern);
-			} else {
-				// Determine list of shapes associated with the trip pattern.
-				// The stopPaths are offset to the right by the offsetDistance
-				// if needed. This is useful if the shapes.txt data is street
-				// centerline data.
-				List<Location> offsetLocations = 
-						getOffsetLocations(gtfsShapesMap.get(shapeId));
-						
-				// Create stopPaths by finding best match to shapes
-				determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
-						tripPattern);
-			}
+			processPathSegments(tripPattern);
 		}
 		
 		// Let user know what is going on
@@ -656,4 +641,92 @@ public class StopPathProcessor {
 				timer.elapsedMsec());		
 	}
 	
+	/**
+	 * Same as processPathSegments() but processes the trip patterns of each
+	 * route in a separate task using the pool. The trip patterns don't share
+	 * any StopPath objects so they can be processed independently.
+	 * 
+	 * @param pool
+	 */
+	public void processPathSegments(ForkJoinPool pool) {
+		// For logging how long things take
+		IntervalTimer timer = new IntervalTimer();
+
+		// Let user know what is going on
+		logger.info("Processing and filtering path segment data using {} "
+				+ "threads...", pool.getParallelism());
+		
+		// Group the trip patterns by route
+		Map<String, List<TripPattern>> tripPatternsByRoute = 
+				new TreeMap<String, List<TripPattern>>();
+		for (TripPattern tripPattern : tripPatterns) {
+			List<TripPattern> tripPatternsForRoute = 
+					tripPatternsByRoute.get(tripPattern.getRouteId());
+			if (tripPatternsForRoute == null) {
+				tripPatternsForRoute = new ArrayList<TripPattern>();
+				tripPatternsByRoute.put(tripPattern.getRouteId(), 
+						tripPatternsForRoute);
+			}
+			tripPatternsForRoute.add(tripPattern);
+		}
+		
+		// Process the routes in parallel and wait for all of them
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (final List<TripPattern> tripPatternsForRoute 
+				: tripPatternsByRoute.values()) {
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					for (TripPattern tripPattern : tripPatternsForRoute)
+						processPathSegments(tripPattern);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(tasks);
+			}
+		});
+		
+		// Let user know what is going on
+		logger.info("Finished processing and filtering path segment data "
+				+ "for {} routes. Took {} msec.",
+				tripPatternsByRoute.size(), timer.elapsedMsec());		
+	}
+	
+	/**
+	 * Determines the stopPaths for a single trip pattern, either using the
+	 * shape for the trip pattern or, if there is no shape, by connecting the
+	 * stops.
+	 * 
+	 * @param tripPattern
+	 */
+	private void processPathSegments(TripPattern tripPattern) {
+		// Determine the GtfsShape associated with the TripPattern
+		String shapeId = tripPattern.getShapeId();
+		List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		
+		// If no shape defined then simply connect the stops
+		if (gtfsShapesForTripPattern == null) {
+			// Create stopPaths by connecting the stops
+			connectStopsSinceNoShapes(tripPattern);
+		} else {
+			// Determine list of shapes associated with the trip pattern.
+			// The stopPaths are offset to the right by the offsetDistance
+			// if needed. This is useful if the shapes.txt data is street
+			// centerline data.
+			List<Location> offsetLocations = 
+					getOffsetLocations(gtfsShapesForTripPattern);
+					
+			// Create stopPaths by finding best match to shapes
+			determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
+					tripPattern);
+		}
+	}
+	
 }
@@ -18,12 +18,15 @@
 package org.transitclock.gtfs;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.transitclock.applications.Core;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.db.structs.Location;
-import org.transitclock.db.structs.Route;
 import org.transitclock.db.structs.StopPath;
 import org.transitclock.db.structs.TripPattern;
 import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
@@ -178,7 +181,10 @@ public class StopsByLoc {
 	/**
 	 * Gets list of stops that are within maxDistance of the specified location.
 	 * Looks at every trip pattern so can deal with complicated cases such as
-	 * routes with school service stops just for part of the day.
+	 * routes with school service stops just for part of the day. Uses the
+	 * StopsSpatialIndex to only look at the trip patterns that actually have
+	 * a stop within maxDistance instead of at every trip pattern of every
+	 * route.
 	 * 
 	 * @param loc
 	 * @param maxDistance
@@ -188,30 +194,63 @@ public class StopsByLoc {
 		// For returning the results
 		List<StopInfo> results = new ArrayList<StopInfo>();
 		
-		// Find closest stops for every route...
+		// Determine the trip patterns that have a stop within maxDistance,
+		// grouped by route and direction. A trip pattern without such a stop
+		// can't have a closest stop within maxDistance so can be ignored.
+		// Nearest matches first so the results are ordered by distance.
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
-		for (Route route : dbConfig.getRoutes()) {
-			// If the specified location is not within the distance of the route
-			// then can skip this route
-			if (!route.getExtent().isWithinDistance(loc, maxDistance))
-				continue;
-			
-			// Need to look at trip patterns separately since don't just want
-			// to match to a closest stop that happens to not be in service
-			// at the time (such as a special school stop) and then not get
-			// predictions for the route. So for each direction for each
-			// trip pattern find closest stop. Then look at predictions
-			// for those stops. Use the stop that provides the most useful
-			// predictions.
-			for (String directionId : route.getDirectionIds()) {
+		List<StopsSpatialIndex.Match> matches = dbConfig
+				.getStopsSpatialIndex().getWithinDistance(loc, maxDistance);
+		Collections.sort(matches, new Comparator<StopsSpatialIndex.Match>() {
+			@Override
+			public int compare(StopsSpatialIndex.Match m1,
+					StopsSpatialIndex.Match m2) {
+				return Double.compare(m1.getDistance(), m2.getDistance());
+			}
+		});
+		// Keyed on IDs since hashing Route and TripPattern is expensive.
+		Map<String, Map<String, Map<String, TripPattern>>> 
+				tripPatternsByRouteAndDir = new LinkedHashMap<String, 
+						Map<String, Map<String, TripPattern>>>();
+		for (StopsSpatialIndex.Match match : matches) {
+			StopsSpatialIndex.Entry entry = match.getEntry();
+			Map<String, Map<String, TripPattern>> tripPatternsByDir =
+					tripPatternsByRouteAndDir.get(entry.getRoute().getId());
+			if (tripPatternsByDir == null) {
+				tripPatternsByDir = 
+						new LinkedHashMap<String, Map<String, TripPattern>>();
+				tripPatternsByRouteAndDir.put(entry.getRoute().getId(),
+						tripPatternsByDir);
+			}
+			Map<String, TripPattern> tripPatterns =
+					tripPatternsByDir.get(entry.getDirectionId());
+			if (tripPatterns == null) {
+				tripPatterns = new LinkedHashMap<String, TripPattern>();
+				tripPatternsByDir.put(entry.getDirectionId(), tripPatterns);
+			}
+			if (!tripPatterns.containsKey(entry.getTripPattern().getId()))
+				tripPatterns.put(entry.getTripPattern().getId(),
+						entry.getTripPattern());
+		}
+		
+		// Need to look at trip patterns separately since don't just want
+		// to match to a closest stop that happens to not be in service
+		// at the time (such as a special school stop) and then not get
+		// predictions for the route. So for each direction for each
+		// trip pattern find closest stop. Then look at predictions
+		// for those stops. Use the stop that provides the most useful
+		// predictions.
+		for (Map<String, Map<String, TripPattern>> tripPatternsByDir : 
+				tripPatternsByRouteAndDir.values()) {
+			for (Map<String, TripPattern> tripPatternsForDirection : 
+					tripPatternsByDir.values()) {
 				// So can look at matches for all trip patterns for direction
 				// at once.
 				List<StopInfo> matchesForDirection = 
 						new ArrayList<StopInfo>();
 				
-				List<TripPattern> tripPatternsForDirection = 
-						route.getTripPatterns(directionId);
-				for (TripPattern tripPattern : tripPatternsForDirection) {
+				for (TripPattern tripPattern : 
+						tripPatternsForDirection.values()) {
 					// Determine the closest stop for the trip pattern
 					StopInfo stopInfo = 
 							determineClosestStop(tripPattern, loc, maxDistance);
@@ -0,0 +1,382 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.Route;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.Geo;
+
+/**
+ * An immutable spatial index of the stops of every trip pattern, so that the
+ * stops near a location can be found without looking at every stop path of
+ * the agency. Created by DbConfig when the configuration is read so there is
+ * one per config rev.
+ * <p>
+ * Uses a uniform grid over the extent of the stops. The entries are sorted
+ * by grid cell and for each cell the index of its first entry is kept, so a
+ * query only needs to look at the entries in the cells that overlap the
+ * search radius. Cells are in degrees of latitude and longitude so that the
+ * distances can be computed with Geo.distance(), the same as elsewhere.
+ */
+public class StopsSpatialIndex {
+
+	// The entries, sorted by grid cell
+	private final Entry[] entries;
+
+	// For each cell, index into entries of its first entry. Has an extra
+	// element at the end so that the entries for cell c are from
+	// cellStarts[c] to cellStarts[c+1].
+	private final int[] cellStarts;
+
+	private final double minLat;
+	private final double minLon;
+	private final double cellLatDegrees;
+	private final double cellLonDegrees;
+	private final int numRows;
+	private final int numCols;
+
+	private static IntegerConfigValue cellSizeMeters = new IntegerConfigValue(
+			"transitclock.core.stopsSpatialIndex.cellSizeMeters",
+			250,
+			"Size of the grid cells of the spatial index used to find the "
+			+ "stops near a location, such as for predictions by location.");
+
+	// Limits the memory used by the grid for agencies with a huge extent.
+	// The cells are made larger if needed.
+	private static final int MAX_CELLS = 4 * 1000 * 1000;
+
+	private static final double METERS_PER_DEGREE_LAT =
+			Math.toRadians(1.0) * Geo.RADIUS_OF_EARTH_IN_METERS;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A stop of a trip pattern.
+	 */
+	public static class Entry {
+		private final Route route;
+		private final TripPattern tripPattern;
+		private final int stopPathIndex;
+		private final String stopId;
+		private final Location location;
+
+		public Entry(Route route, TripPattern tripPattern, int stopPathIndex,
+				String stopId, Location location) {
+			this.route = route;
+			this.tripPattern = tripPattern;
+			this.stopPathIndex = stopPathIndex;
+			this.stopId = stopId;
+			this.location = location;
+		}
+
+		public Route getRoute() {
+			return route;
+		}
+
+		public TripPattern getTripPattern() {
+			return tripPattern;
+		}
+
+		public String getDirectionId() {
+			return tripPattern.getDirectionId();
+		}
+
+		/**
+		 * @return index of the stop path in the trip pattern
+		 */
+		public int getStopPathIndex() {
+			return stopPathIndex;
+		}
+
+		public String getStopId() {
+			return stopId;
+		}
+
+		public Location getLocation() {
+			return location;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry ["
+					+ "routeId=" + (route == null ? null : route.getId())
+					+ ", tripPatternId="
+						+ (tripPattern == null ? null : tripPattern.getId())
+					+ ", stopPathIndex=" + stopPathIndex
+					+ ", stopId=" + stopId
+					+ ", location=" + location
+					+ "]";
+		}
+	}
+
+	/**
+	 * An Entry that matched a query, along with its distance from the query
+	 * location.
+	 */
+	public static class Match {
+		private final Entry entry;
+		private final double distance;
+
+		private Match(Entry entry, double distance) {
+			this.entry = entry;
+			this.distance = distance;
+		}
+
+		public Entry getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @return distance in meters from the query location
+		 */
+		public double getDistance() {
+			return distance;
+		}
+
+		@Override
+		public String toString() {
+			return "Match ["
+					+ "entry=" + entry
+					+ ", distance=" + Geo.distanceFormat(distance)
+					+ "]";
+		}
+	}
+
+	private static final Comparator<Match> DISTANCE_COMPARATOR =
+			new Comparator<Match>() {
+				@Override
+				public int compare(Match m1, Match m2) {
+					return Double.compare(m1.distance, m2.distance);
+				}
+			};
+
+	/**
+	 * Creates the index for the stops of all of the trip patterns of the
+	 * routes.
+	 *
+	 * @param routes
+	 * @param tripPatternsByRouteMap
+	 *            the trip patterns for each route, keyed by route ID. Passed
+	 *            in instead of using Route.getTripPatterns() since the index
+	 *            is created while DbConfig is still being read.
+	 * @return the index
+	 */
+	public static StopsSpatialIndex create(Collection<Route> routes,
+			Map<String, List<TripPattern>> tripPatternsByRouteMap) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Route route : routes) {
+			List<TripPattern> tripPatterns =
+					tripPatternsByRouteMap.get(route.getId());
+			if (tripPatterns == null)
+				continue;
+			for (TripPattern tripPattern : tripPatterns) {
+				List<StopPath> stopPaths = tripPattern.getStopPaths();
+				for (int i = 0; i < stopPaths.size(); ++i) {
+					StopPath stopPath = stopPaths.get(i);
+					entries.add(new Entry(route, tripPattern, i,
+							stopPath.getStopId(), stopPath.getStopLocation()));
+				}
+			}
+		}
+		return new StopsSpatialIndex(entries, cellSizeMeters.getValue());
+	}
+
+	/**
+	 * Creates the index for the specified entries.
+	 *
+	 * @param entryList
+	 * @param cellSize
+	 *            size of the grid cells in meters. Is increased if the extent
+	 *            of the entries would otherwise need too many cells.
+	 */
+	public StopsSpatialIndex(List<Entry> entryList, double cellSize) {
+		// Determine extent of the entries
+		double minLat = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE;
+		double maxLon = -Double.MAX_VALUE;
+		for (Entry entry : entryList) {
+			minLat = Math.min(minLat, entry.location.getLat());
+			maxLat = Math.max(maxLat, entry.location.getLat());
+			minLon = Math.min(minLon, entry.location.getLon());
+			maxLon = Math.max(maxLon, entry.location.getLon());
+		}
+		if (entryList.isEmpty()) {
+			minLat = maxLat = minLon = maxLon = 0.0;
+		}
+
+		// Size the cells in degrees. Longitude cells are sized for the
+		// middle latitude of the extent.
+		double cosLat = Math.max(
+				Math.cos(Math.toRadians((minLat + maxLat) / 2)), 0.01);
+		double cellLatDegrees = cellSize / METERS_PER_DEGREE_LAT;
+		double cellLonDegrees = cellLatDegrees / cosLat;
+		int numRows = (int) ((maxLat - minLat) / cellLatDegrees) + 1;
+		int numCols = (int) ((maxLon - minLon) / cellLonDegrees) + 1;
+		while ((long) numRows * numCols > MAX_CELLS) {
+			cellLatDegrees *= 2;
+			cellLonDegrees *= 2;
+			numRows = (int) ((maxLat - minLat) / cellLatDegrees) + 1;
+			numCols = (int) ((maxLon - minLon) / cellLonDegrees) + 1;
+		}
+
+		this.minLat = minLat;
+		this.minLon = minLon;
+		this.cellLatDegrees = cellLatDegrees;
+		this.cellLonDegrees = cellLonDegrees;
+		this.numRows = numRows;
+		this.numCols = numCols;
+
+		// Counting sort of the entries by cell
+		int numCells = numRows * numCols;
+		int[] cellOfEntry = new int[entryList.size()];
+		int[] cellStarts = new int[numCells + 1];
+		for (int i = 0; i < entryList.size(); ++i) {
+			Location loc = entryList.get(i).location;
+			cellOfEntry[i] = row(loc.getLat()) * numCols + col(loc.getLon());
+			++cellStarts[cellOfEntry[i] + 1];
+		}
+		for (int c = 0; c < numCells; ++c)
+			cellStarts[c + 1] += cellStarts[c];
+		int[] nextInCell = Arrays.copyOf(cellStarts, numCells);
+		Entry[] entries = new Entry[entryList.size()];
+		for (int i = 0; i < entryList.size(); ++i)
+			entries[nextInCell[cellOfEntry[i]]++] = entryList.get(i);
+
+		this.entries = entries;
+		this.cellStarts = cellStarts;
+	}
+
+	private int row(double lat) {
+		return clamp((int) Math.floor((lat - minLat) / cellLatDegrees),
+				numRows);
+	}
+
+	private int col(double lon) {
+		return clamp((int) Math.floor((lon - minLon) / cellLonDegrees),
+				numCols);
+	}
+
+	private static int clamp(int index, int size) {
+		return index < 0 ? 0 : (index >= size ? size - 1 : index);
+	}
+
+	/**
+	 * Returns all entries within maxDistance of the location, unsorted.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 *            in meters
+	 * @return the matches. Empty if there are none.
+	 */
+	public List<Match> getWithinDistance(Location loc, double maxDistance) {
+		List<Match> matches = new ArrayList<Match>();
+		if (entries.length == 0)
+			return matches;
+
+		// Determine the range of cells to look at. Geo.distance() uses the
+		// cosine of the average latitude of the two points so use the
+		// latitude furthest from the equator to be conservative.
+		double dLat = maxDistance / METERS_PER_DEGREE_LAT;
+		double furthestLat = Math.min(Math.abs(loc.getLat()) + dLat, 89.0);
+		double dLon = dLat / Math.cos(Math.toRadians(furthestLat));
+		if (loc.getLat() + dLat < minLat
+				|| loc.getLat() - dLat > minLat + numRows * cellLatDegrees
+				|| loc.getLon() + dLon < minLon
+				|| loc.getLon() - dLon > minLon + numCols * cellLonDegrees)
+			return matches;
+		int firstRow = row(loc.getLat() - dLat);
+		int lastRow = row(loc.getLat() + dLat);
+		int firstCol = col(loc.getLon() - dLon);
+		int lastCol = col(loc.getLon() + dLon);
+
+		for (int row = firstRow; row <= lastRow; ++row) {
+			// The cells of a row are contiguous so can go through the
+			// entries for all of the columns at once
+			int start = cellStarts[row * numCols + firstCol];
+			int end = cellStarts[row * numCols + lastCol + 1];
+			for (int i = start; i < end; ++i) {
+				Entry entry = entries[i];
+				double distance = Geo.distance(loc, entry.location);
+				if (distance <= maxDistance)
+					matches.add(new Match(entry, distance));
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Returns the k entries nearest to the location, but only ones within
+	 * maxDistance, sorted by distance.
+	 *
+	 * @param loc
+	 * @param k
+	 *            maximum number of entries to return
+	 * @param maxDistance
+	 *            in meters
+	 * @return the nearest matches, nearest first. Empty if there are none.
+	 */
+	public List<Match> getNearest(Location loc, int k, double maxDistance) {
+		// Search with a growing radius until have k matches. Since
+		// getWithinDistance() returns all entries within the radius the
+		// nearest k are then known to be among them.
+		double radius = Math.min(cellLatDegrees * METERS_PER_DEGREE_LAT,
+				maxDistance);
+		List<Match> matches;
+		while (true) {
+			matches = getWithinDistance(loc, radius);
+			if (matches.size() >= k || radius >= maxDistance)
+				break;
+			radius = Math.min(radius * 2, maxDistance);
+		}
+
+		Collections.sort(matches, DISTANCE_COMPARATOR);
+		if (matches.size() > k)
+			return new ArrayList<Match>(matches.subList(0, k));
+		return matches;
+	}
+
+	/**
+	 * @return total number of entries in the index
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	@Override
+	public String toString() {
+		return "StopsSpatialIndex ["
+				+ "entries=" + entries.length
+				+ ", rows=" + numRows
+				+ ", cols=" + numCols
+				+ ", cellSize="
+					+ Geo.distanceFormat(cellLatDegrees * METERS_PER_DEGREE_LAT)
+				+ "]";
+	}
+}
@@ -16,9 +16,12 @@
  */
 package org.transitclock.gtfs.gtfsStructs;
 
+import java.util.Map;
+
 import org.apache.commons.csv.CSVRecord;
 import org.transitclock.db.structs.Location;
 import org.transitclock.utils.csv.CsvBase;
+import org.transitclock.utils.csv.FastCsvRecord;
 
 
 /**
@@ -38,6 +41,40 @@ public class GtfsShape extends CsvBase implements Comparable<GtfsShape> {
 	// For deleting a point via a supplemental shapes.txt file
 	private final Boolean delete;
 	
+	/**
+	 * The indexes of the columns of a shapes.txt file, for when reading the
+	 * file using FastCsvParser. This way the column names only need to be
+	 * looked up once per file instead of for every value.
+	 */
+	public static class Columns {
+		private final Map<String, Integer> header;
+		private final int shapeId;
+		private final int shapePtLat;
+		private final int shapePtLon;
+		private final int shapePtSequence;
+		private final int shapeDistTraveled;
+		private final int delete;
+
+		public Columns(FastCsvRecord record) {
+			header = record.getHeader();
+			shapeId = record.getColumn("shape_id");
+			shapePtLat = record.getColumn("shape_pt_lat");
+			shapePtLon = record.getColumn("shape_pt_lon");
+			shapePtSequence = record.getColumn("shape_pt_sequence");
+			shapeDistTraveled = record.getColumn("shape_dist_traveled");
+			delete = record.getColumn("delete");
+		}
+
+		/**
+		 * @param record
+		 * @return true if the columns were determined for the file that the
+		 *         record is from
+		 */
+		public boolean isFor(FastCsvRecord record) {
+			return record.getHeader() == header;
+		}
+	}
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -84,6 +121,44 @@ public class GtfsShape extends CsvBase implements Comparable<GtfsShape> {
 		delete = getOptionalBooleanValue(record, "delete");
 	}
 	
+	/**
+	 * Creates a GtfsShape object by reading the data from a record read in
+	 * using FastCsvParser. The numeric values are parsed directly from the
+	 * record.
+	 * 
+	 * @param record
+	 * @param columns
+	 *            The column indexes of the file
+	 * @param supplemental
+	 * @param fileName
+	 *            for logging errors
+	 */
+	public GtfsShape(FastCsvRecord record, Columns columns,
+			boolean supplemental, String fileName) 
+		throws NumberFormatException {
+		super(record, supplemental, fileName);
+
+		shapeId = getRequiredValue(record, columns.shapeId, "shape_id");
+		
+		shapePtLat = hasRequiredUnlessSupplementalValue(record, 
+				columns.shapePtLat, "shape_pt_lat") ? 
+						record.getDouble(columns.shapePtLat) : Double.NaN;
+		shapePtLon = hasRequiredUnlessSupplementalValue(record, 
+				columns.shapePtLon, "shape_pt_lon") ? 
+						record.getDouble(columns.shapePtLon) : Double.NaN;
+		
+		if (!hasRequiredValue(record, columns.shapePtSequence, 
+				"shape_pt_sequence"))
+			throw new NumberFormatException("shape_pt_sequence not set");
+		shapePtSequence = record.getInt(columns.shapePtSequence);
+		
+		shapeDistTraveled = hasOptionalValue(record, 
+				columns.shapeDistTraveled, "shape_dist_traveled") ? 
+						record.getDouble(columns.shapeDistTraveled) : null;
+		
+		delete = getOptionalBooleanValue(record, columns.delete, "delete");
+	}
+	
 	/**
 	 * Creates a copy of the GtfsShape but updates the latitude and longitude.
 	 * Useful for transforming coordinates in China so that locations are
@@ -16,9 +16,12 @@
  */
 package org.transitclock.gtfs.gtfsStructs;
 
+import java.util.Map;
+
 import org.apache.commons.csv.CSVRecord;
 import org.transitclock.utils.Time;
 import org.transitclock.utils.csv.CsvBase;
+import org.transitclock.utils.csv.FastCsvRecord;
 
 /**
  * A GTFS stop_times object
@@ -55,6 +58,62 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
 	 * is to look along the route when the vehicle is at this point. */
 	private final Double maxSpeed;
 
+	/**
+	 * The indexes of the columns of a stop_times.txt file, for when reading
+	 * the file using FastCsvParser. This way the column names only need to
+	 * be looked up once per file instead of for every value.
+	 */
+	public static class Columns {
+		private final Map<String, Integer> header;
+		private final int tripId;
+		private final int arrivalTime;
+		private final int departureTime;
+		private final int stopId;
+		private final int stopSequence;
+		private final int stopHeadsign;
+		private final int pickupType;
+		private final int dropOffType;
+		private final int shapeDistTraveled;
+		private final int timepoint;
+		private final int delete;
+		private final int maxDistance;
+		private final int maxSpeed;
+
+		public Columns(FastCsvRecord record) {
+			header = record.getHeader();
+			tripId = record.getColumn("trip_id");
+			arrivalTime = record.getColumn("arrival_time");
+			departureTime = record.getColumn("departure_time");
+			stopId = record.getColumn("stop_id");
+			stopSequence = record.getColumn("stop_sequence");
+			stopHeadsign = record.getColumn("stop_headsign");
+			pickupType = record.getColumn("pickup_type");
+			dropOffType = record.getColumn("drop_off_type");
+			shapeDistTraveled = record.getColumn("shape_dist_traveled");
+			timepoint = record.getColumn("timepoint");
+			delete = record.getColumn("delete");
+			maxDistance = record.getColumn("max_distance");
+			maxSpeed = record.getColumn("max_speed");
+		}
+
+		/**
+		 * @param record
+		 * @return true if the columns were determined for the file that the
+		 *         record is from
+		 */
+		public boolean isFor(FastCsvRecord record) {
+			return record.getHeader() == header;
+		}
+
+		/**
+		 * @return index of the trip_id column, for filtering records before
+		 *         creating the GtfsStopTime
+		 */
+		public int getTripIdColumn() {
+			return tripId;
+		}
+	}
+
 	/********************** Member Functions **************************/
 
 
@@ -152,6 +211,60 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
 		
 	}
 
+	/**
+	 * Creates a GtfsStopTime object by reading the data from a record read
+	 * in using FastCsvParser. The times and numeric values are parsed
+	 * directly from the record.
+	 * 
+	 * @param record
+	 * @param columns
+	 *            The column indexes of the file
+	 * @param supplemental
+	 * @param fileName
+	 *            for logging errors
+	 */
+	public GtfsStopTime(FastCsvRecord record, Columns columns,
+			boolean supplemental, String fileName)
+			throws NumberFormatException {
+		super(record, supplemental, fileName);
+
+		tripId = getRequiredValue(record, columns.tripId, "trip_id");
+
+		arrivalTimeSecs = 
+				hasOptionalValue(record, columns.arrivalTime, "arrival_time") ?
+						record.getTimeOfDay(columns.arrivalTime) : null;
+		departureTimeSecs = 
+				hasOptionalValue(record, columns.departureTime, "departure_time") ?
+						record.getTimeOfDay(columns.departureTime) : null;
+
+		stopId = getRequiredValue(record, columns.stopId, "stop_id");
+
+		stopSequence = hasRequiredUnlessSupplementalValue(record,
+				columns.stopSequence, "stop_sequence") ? 
+						record.getInt(columns.stopSequence) : null;
+
+		stopHeadsign = 
+				getOptionalValue(record, columns.stopHeadsign, "stop_headsign");
+		pickupType = getOptionalValue(record, columns.pickupType, "pickup_type");
+		dropOffType = 
+				getOptionalValue(record, columns.dropOffType, "drop_off_type");
+		
+		shapeDistTraveled = hasOptionalValue(record,
+				columns.shapeDistTraveled, "shape_dist_traveled") ? 
+						record.getDouble(columns.shapeDistTraveled) : null;
+		
+		timepointStop = 
+				getOptionalBooleanValue(record, columns.timepoint, "timepoint");
+		
+		delete = getOptionalBooleanValue(record, columns.delete, "delete");
+		isWaitStop = null;
+		
+		maxDistance = 
+				getOptionalDoubleValue(record, columns.maxDistance, "max_distance");
+		
+		maxSpeed = getOptionalDoubleValue(record, columns.maxSpeed, "max_speed");
+	}
+
 	/**
 	 * For when need to convert a GtfsStopTime to a subclass. Copies the
 	 * originalValues but uses newArrivalTime and newDepartureTime if they are
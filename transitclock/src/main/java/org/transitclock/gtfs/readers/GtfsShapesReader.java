@@ -21,6 +21,7 @@ import java.text.ParseException;
 import org.apache.commons.csv.CSVRecord;
 import org.transitclock.gtfs.gtfsStructs.GtfsShape;
 import org.transitclock.utils.csv.CsvBaseReader;
+import org.transitclock.utils.csv.FastCsvRecord;
 
 
 /**
@@ -29,8 +30,13 @@ import org.transitclock.utils.csv.CsvBaseReader;
  * @author SkiBu Smith
  *
  */
-public class GtfsShapesReader extends CsvBaseReader<GtfsShape> {
+public class GtfsShapesReader extends CsvBaseReader<GtfsShape>
+		implements CsvBaseReader.FastRecordHandler<GtfsShape> {
 
+	// The column indexes of the file, for when using FastCsvParser.
+	// Determined when the first record is handled.
+	private volatile GtfsShape.Columns columns;
+	
 	public GtfsShapesReader(String dirName) {
 		super(dirName, "shapes.txt", false, false);
 	}
@@ -41,4 +47,15 @@ public class GtfsShapesReader extends CsvBaseReader<GtfsShape> {
 		return new GtfsShape(record, supplemental, getFileName());
 	}
 
+	@Override
+	public GtfsShape handleRecord(FastCsvRecord record, 
+			boolean supplemental) throws NumberFormatException {
+		GtfsShape.Columns columns = this.columns;
+		if (columns == null || !columns.isFor(record)) {
+			columns = new GtfsShape.Columns(record);
+			this.columns = columns;
+		}
+		return new GtfsShape(record, columns, supplemental, getFileName());
+	}
+
 }
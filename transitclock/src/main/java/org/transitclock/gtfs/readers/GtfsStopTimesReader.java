@@ -22,6 +22,7 @@ import org.apache.commons.csv.CSVRecord;
 import org.transitclock.gtfs.GtfsData;
 import org.transitclock.gtfs.gtfsStructs.GtfsStopTime;
 import org.transitclock.utils.csv.CsvBaseReader;
+import org.transitclock.utils.csv.FastCsvRecord;
 
 /**
  * GTFS reader for the stop_times.txt file
@@ -29,8 +30,13 @@ import org.transitclock.utils.csv.CsvBaseReader;
  * @author SkiBu Smith
  *
  */
-public class GtfsStopTimesReader extends CsvBaseReader<GtfsStopTime> {
+public class GtfsStopTimesReader extends CsvBaseReader<GtfsStopTime>
+		implements CsvBaseReader.FastRecordHandler<GtfsStopTime> {
 
+	// The column indexes of the file, for when using FastCsvParser.
+	// Determined when the first record is handled.
+	private volatile GtfsStopTime.Columns columns;
+	
 	public GtfsStopTimesReader(String dirName) {
 		super(dirName, "stop_times.txt", true, false);
 	}
@@ -44,4 +50,25 @@ public class GtfsStopTimesReader extends CsvBaseReader<GtfsStopTime> {
 			return null;
 	}
 	
+	@Override
+	public GtfsStopTime handleRecord(FastCsvRecord record,
+			boolean supplemental) throws NumberFormatException {
+		GtfsStopTime.Columns columns = this.columns;
+		if (columns == null || !columns.isFor(record)) {
+			columns = new GtfsStopTime.Columns(record);
+			this.columns = columns;
+		}
+		
+		// Uses the interned value since that doesn't require creating a
+		// new String for every stop time of a trip
+		int tripIdColumn = columns.getTripIdColumn();
+		String tripId = record.isSet(tripIdColumn) ? 
+				record.getInternedValue(tripIdColumn) : null;
+		if (GtfsData.tripNotFiltered(tripId != null ? tripId : ""))
+			return new GtfsStopTime(record, columns, supplemental, 
+					getFileName());
+		else
+			return null;
+	}
+	
 }
@@ -0,0 +1,1069 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary encoding of the objects passed to and returned from the
+ * remote methods, used instead of Java serialization by the binary IPC
+ * transport.
+ * <p>
+ * Each value is written as a one byte tag followed by its data. Integers are
+ * written as variable length zig-zag encoded values so that small numbers and
+ * epoch times take fewer bytes. Each string, such as a route or stop ID, is
+ * only written once per message. After that it is referred to by its index.
+ * Lists, sets, maps, arrays, enums and dates have their own compact
+ * encodings.
+ * <p>
+ * Serializable org.transitclock classes that declare a no-arg constructor,
+ * such as the Ipc data classes, are encoded field by field. The class name and
+ * field names are written only the first time the class is used in a message,
+ * and fields are matched by name when decoding. When decoding the object is
+ * created with the no-arg constructor and then the fields are set. Like Java
+ * serialization, writeReplace() and readResolve() are honored so the
+ * SerializationProxy classes of the Ipc classes are what is actually encoded.
+ * A class that customizes its serialization via writeObject() or
+ * readObject(), and that is not itself a replacement object, is instead
+ * encoded with Java serialization, as are all other classes.
+ * <p>
+ * Since the server decodes whatever a client sends, Java serialization is
+ * only used for the classes that isSerializedClassAllowed() accepts, which
+ * are the org.transitclock classes plus JDK value, collection and exception
+ * classes. Anything else cannot be encoded and is rejected when decoding,
+ * before it is instantiated.
+ */
+public class BinaryCodec {
+
+	// Tags that identify the type of each encoded value
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte CHAR = 9;
+	private static final byte STRING = 10;
+	private static final byte DATE = 11;
+	private static final byte BYTES = 12;
+	private static final byte LIST = 13;
+	private static final byte SET = 14;
+	private static final byte SORTED_SET = 15;
+	private static final byte MAP = 16;
+	private static final byte SORTED_MAP = 17;
+	private static final byte ARRAY = 18;
+	private static final byte ENUM = 19;
+	private static final byte OBJECT = 20;
+	private static final byte OBJECT_REF = 21;
+	private static final byte SERIALIZED = 22;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Only these classes are encoded field by field, and these are the
+	// only non-JDK classes that can be Java serialized
+	private static final String FIELD_ENCODED_PACKAGE = "org.transitclock.";
+
+	// The JDK classes, other than primitives, arrays, enums and exceptions,
+	// that can be Java serialized. Value and collection classes only.
+	private static final Set<String> serializedJdkClasses =
+			new HashSet<String>();
+	static {
+		for (Class<?> c : new Class<?>[] { Object.class, String.class,
+				Boolean.class, Byte.class, Short.class, Integer.class,
+				Long.class, Float.class, Double.class, Character.class,
+				Number.class, Enum.class, BigInteger.class, BigDecimal.class,
+				Date.class, java.sql.Date.class, java.sql.Time.class,
+				java.sql.Timestamp.class, StackTraceElement.class,
+				ArrayList.class, LinkedList.class, HashMap.class,
+				LinkedHashMap.class, TreeMap.class, HashSet.class,
+				LinkedHashSet.class, TreeSet.class, Arrays.asList().getClass(),
+				Collections.emptyList().getClass(),
+				Collections.emptySet().getClass(),
+				Collections.emptyMap().getClass(),
+				Collections.singletonList(null).getClass(),
+				Collections.singleton(null).getClass(),
+				Collections.singletonMap(null, null).getClass(),
+				Collections.unmodifiableCollection(
+						new ArrayList<Object>()).getClass(),
+				Collections.unmodifiableList(
+						new ArrayList<Object>()).getClass(),
+				Collections.unmodifiableList(
+						new LinkedList<Object>()).getClass(),
+				Collections.unmodifiableSet(
+						new HashSet<Object>()).getClass(),
+				Collections.unmodifiableSortedSet(
+						new TreeSet<Object>()).getClass(),
+				Collections.unmodifiableMap(
+						new HashMap<Object, Object>()).getClass(),
+				Collections.unmodifiableSortedMap(
+						new TreeMap<Object, Object>()).getClass() })
+			serializedJdkClasses.add(c.getName());
+	}
+
+	// Cached so only need to use reflection once per class
+	private static final ConcurrentHashMap<Class<?>, ClassInfo> classInfos =
+			new ConcurrentHashMap<Class<?>, ClassInfo>();
+	private static final ConcurrentHashMap<String, Class<?>> classesByName =
+			new ConcurrentHashMap<String, Class<?>>();
+
+	private static final Map<String, Class<?>> primitiveClasses =
+			new HashMap<String, Class<?>>();
+	static {
+		for (Class<?> c : new Class<?>[] { boolean.class, byte.class,
+				short.class, int.class, long.class, float.class, double.class,
+				char.class })
+			primitiveClasses.put(c.getName(), c);
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Encodes the value.
+	 *
+	 * @param value
+	 * @return the encoded bytes
+	 * @throws IOException
+	 *             if the value, or an object it refers to, cannot be encoded
+	 */
+	public static byte[] encode(Object value) throws IOException {
+		ByteBuffer buffer = encode(value, 0);
+		return Arrays.copyOf(buffer.array(), buffer.limit());
+	}
+
+	/**
+	 * Encodes the value into a buffer that has headerSize bytes reserved at
+	 * the start, so that a frame header can be filled in without copying the
+	 * encoded bytes.
+	 *
+	 * @param value
+	 * @param headerSize
+	 *            number of bytes to reserve at the start of the buffer
+	 * @return buffer with position 0 and limit at the end of the encoded value
+	 * @throws IOException
+	 */
+	public static ByteBuffer encode(Object value, int headerSize)
+			throws IOException {
+		Writer writer = new Writer(headerSize);
+		writer.writeValue(value);
+		return ByteBuffer.wrap(writer.buf, 0, writer.count);
+	}
+
+	/**
+	 * Decodes a value that was encoded by encode().
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            where the encoded value starts
+	 * @param length
+	 *            number of bytes of the encoded value
+	 * @return the decoded value
+	 * @throws IOException
+	 *             if the bytes are not a valid encoding or refer to a class
+	 *             that cannot be decoded
+	 */
+	public static Object decode(byte[] bytes, int offset, int length)
+			throws IOException {
+		return decode(ByteBuffer.wrap(bytes, offset, length));
+	}
+
+	/**
+	 * Decodes a value that was encoded by encode() from the bytes between
+	 * the position and the limit of the buffer. The buffer can be a memory
+	 * mapped file.
+	 *
+	 * @param buffer
+	 * @return the decoded value
+	 * @throws IOException
+	 *             if the bytes are not a valid encoding or refer to a class
+	 *             that cannot be decoded
+	 */
+	public static Object decode(ByteBuffer buffer) throws IOException {
+		Reader reader = new Reader(buffer.slice());
+		Object value = reader.readValue();
+		if (reader.buf.hasRemaining())
+			throw new StreamCorruptedException("Extra bytes after value");
+		return value;
+	}
+
+	public static Object decode(byte[] bytes) throws IOException {
+		return decode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The reflection info for a class, determined once per class.
+	 */
+	private static class ClassInfo {
+		private final Class<?> cls;
+
+		// True if the class is an org.transitclock Serializable class with a
+		// no-arg constructor so it can be encoded field by field
+		private final boolean fieldsEncodable;
+
+		// True if the class, or a Serializable superclass, has a
+		// writeObject() or readObject() so that it can only be encoded
+		// field by field if it is a replacement object
+		private final boolean hasSerializationMethods;
+
+		// The non-static, non-transient fields, including those of
+		// Serializable superclasses, and the names they are encoded with
+		private final Field[] fields;
+		private final String[] fieldNames;
+		private final Map<String, Field> fieldsByName;
+
+		private final Method writeReplace;
+		private final Method readResolve;
+
+		// The no-arg constructor declared by the class, for creating the
+		// object when decoding. Null if not encoded field by field.
+		private final Constructor<?> constructor;
+
+		private ClassInfo(Class<?> cls) {
+			this.cls = cls;
+			Constructor<?> constructor = null;
+			if (cls.getName().startsWith(FIELD_ENCODED_PACKAGE)
+					&& Serializable.class.isAssignableFrom(cls)
+					&& !Externalizable.class.isAssignableFrom(cls)
+					&& !cls.isEnum() && !cls.isInterface()
+					&& !Modifier.isAbstract(cls.getModifiers())) {
+				try {
+					constructor = cls.getDeclaredConstructor();
+					constructor.setAccessible(true);
+				} catch (NoSuchMethodException e) {
+					// Encoded with Java serialization instead
+				}
+			}
+			this.constructor = constructor;
+			this.fieldsEncodable = constructor != null;
+
+			boolean hasSerializationMethods = false;
+			List<Field> fields = new ArrayList<Field>();
+			List<String> fieldNames = new ArrayList<String>();
+			Map<String, Field> fieldsByName = new HashMap<String, Field>();
+			if (fieldsEncodable) {
+				for (Class<?> c = cls; c != null
+						&& Serializable.class.isAssignableFrom(c);
+						c = c.getSuperclass()) {
+					hasSerializationMethods |=
+							hasPrivateMethod(c, "writeObject",
+									ObjectOutputStream.class)
+							|| hasPrivateMethod(c, "readObject",
+									ObjectInputStream.class);
+
+					Field[] declaredFields = c.getDeclaredFields();
+					Arrays.sort(declaredFields, new Comparator<Field>() {
+						@Override
+						public int compare(Field f1, Field f2) {
+							return f1.getName().compareTo(f2.getName());
+						}
+					});
+					for (Field field : declaredFields) {
+						int modifiers = field.getModifiers();
+						if (Modifier.isStatic(modifiers)
+								|| Modifier.isTransient(modifiers))
+							continue;
+						field.setAccessible(true);
+
+						// A field hidden by a subclass field of the same name
+						// is qualified with its class name
+						String name = field.getName();
+						if (fieldsByName.containsKey(name))
+							name = c.getName() + "." + name;
+						fields.add(field);
+						fieldNames.add(name);
+						fieldsByName.put(name, field);
+					}
+				}
+			}
+			this.hasSerializationMethods = hasSerializationMethods;
+			this.fields = fields.toArray(new Field[fields.size()]);
+			this.fieldNames = fieldNames.toArray(new String[fieldNames.size()]);
+			this.fieldsByName = fieldsByName;
+
+			boolean serializable = Serializable.class.isAssignableFrom(cls);
+			this.writeReplace =
+					serializable ? getInheritableMethod(cls, "writeReplace") : null;
+			this.readResolve =
+					serializable ? getInheritableMethod(cls, "readResolve") : null;
+		}
+
+		private static ClassInfo get(Class<?> cls) {
+			ClassInfo info = classInfos.get(cls);
+			if (info == null) {
+				info = new ClassInfo(cls);
+				classInfos.put(cls, info);
+			}
+			return info;
+		}
+
+		private static boolean hasPrivateMethod(Class<?> c, String name,
+				Class<?> parameterType) {
+			try {
+				Method method = c.getDeclaredMethod(name, parameterType);
+				return Modifier.isPrivate(method.getModifiers());
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Finds a writeReplace() or readResolve() method using the same rules
+		 * as Java serialization: a private method only applies to the class
+		 * that declares it.
+		 */
+		private static Method getInheritableMethod(Class<?> cls, String name) {
+			for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+				Method method;
+				try {
+					method = c.getDeclaredMethod(name);
+				} catch (NoSuchMethodException e) {
+					continue;
+				}
+				int modifiers = method.getModifiers();
+				if (method.getReturnType() != Object.class
+						|| Modifier.isStatic(modifiers)
+						|| Modifier.isAbstract(modifiers)
+						|| (c != cls && Modifier.isPrivate(modifiers)))
+					return null;
+				method.setAccessible(true);
+				return method;
+			}
+			return null;
+		}
+
+		/**
+		 * Creates an object of the class using its no-arg constructor. The
+		 * fields are then set from the encoded values.
+		 */
+		private Object newInstance() throws IOException {
+			try {
+				return constructor.newInstance();
+			} catch (Exception e) {
+				InvalidClassException ex = new InvalidClassException(
+						cls.getName(), "Could not create object");
+				ex.initCause(e);
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Invokes writeReplace() or readResolve(), passing on exceptions
+	 */
+	private static Object invoke(Method method, Object obj) throws IOException {
+		try {
+			return method.invoke(obj);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns true if objects of the class can be encoded with Java
+	 * serialization. Only org.transitclock classes and JDK value, collection
+	 * and exception classes are allowed so that decoding what a client sent
+	 * cannot create objects of arbitrary classes on the classpath.
+	 *
+	 * @param cls
+	 * @return true if the class can be Java serialized
+	 */
+	static boolean isSerializedClassAllowed(Class<?> cls) {
+		while (cls.isArray())
+			cls = cls.getComponentType();
+		if (cls.isPrimitive()
+				|| cls.getName().startsWith(FIELD_ENCODED_PACKAGE)
+				|| serializedJdkClasses.contains(cls.getName()))
+			return true;
+
+		// JDK enums, and JDK exceptions so that the exception thrown by a
+		// remote method can be passed on to the client
+		return (cls.isEnum() || Throwable.class.isAssignableFrom(cls))
+				&& cls.getName().startsWith("java.");
+	}
+
+	/**
+	 * For Java serializing the objects that cannot be encoded field by field.
+	 * Fails if a class is not allowed, so that an object that the other side
+	 * would reject is not sent.
+	 */
+	private static class FilteringObjectOutputStream extends ObjectOutputStream {
+		private FilteringObjectOutputStream(OutputStream out)
+				throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void annotateClass(Class<?> cls) throws IOException {
+			if (!isSerializedClassAllowed(cls))
+				throw new InvalidClassException(cls.getName(),
+						"Class not allowed to be serialized");
+		}
+
+		@Override
+		protected void annotateProxyClass(Class<?> cls) throws IOException {
+			throw new InvalidClassException(cls.getName(),
+					"Proxy classes cannot be serialized");
+		}
+	}
+
+	/**
+	 * For decoding the objects that were Java serialized. Only resolves the
+	 * classes that are allowed, so an object of any other class is rejected
+	 * before it is created.
+	 */
+	private static class FilteringObjectInputStream extends ObjectInputStream {
+		private FilteringObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException {
+			Class<?> cls = classForName(desc.getName());
+			if (!isSerializedClassAllowed(cls))
+				throw new InvalidClassException(desc.getName(),
+						"Class not allowed to be deserialized");
+			return cls;
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces)
+				throws IOException {
+			throw new InvalidClassException(Arrays.toString(interfaces),
+					"Proxy classes cannot be deserialized");
+		}
+	}
+
+	private static Class<?> classForName(String name) throws IOException {
+		Class<?> cls = classesByName.get(name);
+		if (cls == null) {
+			cls = primitiveClasses.get(name);
+			if (cls == null) {
+				try {
+					cls = Class.forName(name, false,
+							BinaryCodec.class.getClassLoader());
+				} catch (ClassNotFoundException e) {
+					InvalidClassException ex =
+							new InvalidClassException(name, "Unknown class");
+					ex.initCause(e);
+					throw ex;
+				}
+			}
+			classesByName.put(name, cls);
+		}
+		return cls;
+	}
+
+	/**
+	 * Encodes a single value, such as a request or a response, into a
+	 * growable byte array.
+	 */
+	private static class Writer {
+		private byte[] buf;
+		private int count;
+
+		// Strings, classes and objects already written, mapped to the index
+		// that they are referred to by
+		private final Map<String, Integer> strings =
+				new HashMap<String, Integer>();
+		private final Map<Class<?>, Integer> classes =
+				new HashMap<Class<?>, Integer>();
+		private final IdentityHashMap<Object, Integer> objects =
+				new IdentityHashMap<Object, Integer>();
+		private int numObjects = 0;
+
+		private Writer(int headerSize) {
+			buf = new byte[Math.max(256, headerSize * 2)];
+			count = headerSize;
+		}
+
+		private void ensureCapacity(int additional) {
+			if (count + additional > buf.length)
+				buf = Arrays.copyOf(buf,
+						Math.max(buf.length * 2, count + additional));
+		}
+
+		private void writeByte(int b) {
+			ensureCapacity(1);
+			buf[count++] = (byte) b;
+		}
+
+		private void writeBytes(byte[] bytes) {
+			writeVarint(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buf, count, bytes.length);
+			count += bytes.length;
+		}
+
+		private void writeVarint(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				buf[count++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[count++] = (byte) value;
+		}
+
+		private void writeZigZag(long value) {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		private void writeFixed(long value, int numBytes) {
+			ensureCapacity(numBytes);
+			for (int shift = (numBytes - 1) * 8; shift >= 0; shift -= 8)
+				buf[count++] = (byte) (value >>> shift);
+		}
+
+		/**
+		 * Writes the string the first time it is used, and after that just
+		 * its index.
+		 */
+		private void writeStringBody(String s) {
+			Integer index = strings.get(s);
+			if (index != null) {
+				writeVarint(index + 1);
+			} else {
+				writeVarint(0);
+				writeBytes(s.getBytes(UTF8));
+				strings.put(s, strings.size());
+			}
+		}
+
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				writeByte(NULL);
+				return;
+			}
+
+			Class<?> cls = value.getClass();
+			if (cls == String.class) {
+				writeByte(STRING);
+				writeStringBody((String) value);
+			} else if (cls == Integer.class) {
+				writeByte(INT);
+				writeZigZag((Integer) value);
+			} else if (cls == Long.class) {
+				writeByte(LONG);
+				writeZigZag((Long) value);
+			} else if (cls == Boolean.class) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (cls == Double.class) {
+				writeByte(DOUBLE);
+				writeFixed(Double.doubleToRawLongBits((Double) value), 8);
+			} else if (cls == Float.class) {
+				writeByte(FLOAT);
+				writeFixed(Float.floatToRawIntBits((Float) value), 4);
+			} else if (cls == Short.class) {
+				writeByte(SHORT);
+				writeZigZag((Short) value);
+			} else if (cls == Byte.class) {
+				writeByte(BYTE);
+				writeByte((Byte) value);
+			} else if (cls == Character.class) {
+				writeByte(CHAR);
+				writeVarint((Character) value);
+			} else if (cls == Date.class) {
+				writeByte(DATE);
+				writeZigZag(((Date) value).getTime());
+			} else if (cls == byte[].class) {
+				writeByte(BYTES);
+				writeBytes((byte[]) value);
+			} else if (value instanceof Enum) {
+				Class<?> enumClass = ((Enum<?>) value).getDeclaringClass();
+				if (!isSerializedClassAllowed(enumClass))
+					throw new InvalidClassException(enumClass.getName(),
+							"Enum not allowed to be encoded");
+				writeByte(ENUM);
+				writeStringBody(enumClass.getName());
+				writeStringBody(((Enum<?>) value).name());
+			} else {
+				writeObject(value);
+			}
+		}
+
+		private void writeObject(Object value) throws IOException {
+			Integer ref = objects.get(value);
+			if (ref != null) {
+				writeByte(OBJECT_REF);
+				writeVarint(ref);
+				return;
+			}
+
+			if (value.getClass().isArray()) {
+				writeArray(value);
+				return;
+			}
+			if ((value instanceof Collection || value instanceof Map)
+					&& writeCollection(value))
+				return;
+
+			ClassInfo info = ClassInfo.get(value.getClass());
+			if (info.writeReplace != null) {
+				Object replacement = invoke(info.writeReplace, value);
+				if (replacement != value) {
+					// Write the replacement. Like with Java serialization
+					// writeReplace() is not called for the replacement.
+					int index = numObjects;
+					ClassInfo replacementInfo = replacement == null ? null
+							: ClassInfo.get(replacement.getClass());
+					if (replacementInfo != null
+							&& replacementInfo.fieldsEncodable)
+						writeFields(replacement, replacementInfo);
+					else
+						writeValue(replacement);
+					if (numObjects > index)
+						objects.put(value, index);
+					return;
+				}
+			}
+
+			if (info.fieldsEncodable && !info.hasSerializationMethods)
+				writeFields(value, info);
+			else
+				writeSerialized(value);
+		}
+
+		private void writeFields(Object value, ClassInfo info)
+				throws IOException {
+			objects.put(value, numObjects++);
+			writeByte(OBJECT);
+
+			// Describe the class the first time it is used
+			Integer classIndex = classes.get(info.cls);
+			if (classIndex != null) {
+				writeVarint(classIndex + 1);
+			} else {
+				writeVarint(0);
+				writeStringBody(info.cls.getName());
+				writeVarint(info.fieldNames.length);
+				for (String fieldName : info.fieldNames)
+					writeStringBody(fieldName);
+				classes.put(info.cls, classes.size());
+			}
+
+			try {
+				for (Field field : info.fields)
+					writeValue(field.get(value));
+			} catch (IllegalAccessException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void writeArray(Object array) throws IOException {
+			objects.put(array, numObjects++);
+			writeByte(ARRAY);
+			writeStringBody(array.getClass().getComponentType().getName());
+			int length = Array.getLength(array);
+			writeVarint(length);
+			for (int i = 0; i < length; ++i)
+				writeValue(Array.get(array, i));
+		}
+
+		/**
+		 * Writes lists, sets and maps. They are decoded as an ArrayList,
+		 * LinkedHashSet, LinkedHashMap, or a TreeSet or TreeMap if they
+		 * were sorted. Sorted collections with a Comparator cannot be
+		 * encoded this way.
+		 *
+		 * @return true if the collection was written
+		 */
+		private boolean writeCollection(Object value) throws IOException {
+			if (value instanceof Map) {
+				Map<?, ?> map = (Map<?, ?>) value;
+				if (value instanceof SortedMap) {
+					if (((SortedMap<?, ?>) value).comparator() != null)
+						return false;
+					writeByte(SORTED_MAP);
+				} else {
+					writeByte(MAP);
+				}
+				writeVarint(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+				return true;
+			}
+
+			Collection<?> collection = (Collection<?>) value;
+			if (value instanceof List) {
+				writeByte(LIST);
+			} else if (value instanceof Set) {
+				if (value instanceof SortedSet) {
+					if (((SortedSet<?>) value).comparator() != null)
+						return false;
+					writeByte(SORTED_SET);
+				} else {
+					writeByte(SET);
+				}
+			} else {
+				// Some other kind of collection, such as a queue
+				return false;
+			}
+			writeVarint(collection.size());
+			for (Object element : collection)
+				writeValue(element);
+			return true;
+		}
+
+		/**
+		 * For objects that cannot be encoded field by field
+		 */
+		private void writeSerialized(Object value) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new FilteringObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			// Referenced like the other objects so that it is only written
+			// once
+			objects.put(value, numObjects++);
+			writeByte(SERIALIZED);
+			writeBytes(bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Describes an encoded class, matching the encoded field names to the
+	 * fields of the class. Fields that no longer exist are null so that
+	 * their values are skipped.
+	 */
+	private static class ClassDescriptor {
+		private final ClassInfo info;
+		private final Field[] fields;
+
+		private ClassDescriptor(ClassInfo info, String[] fieldNames) {
+			this.info = info;
+			this.fields = new Field[fieldNames.length];
+			for (int i = 0; i < fieldNames.length; ++i)
+				fields[i] = info.fieldsByName.get(fieldNames[i]);
+		}
+	}
+
+	/**
+	 * Decodes a value written by a Writer
+	 */
+	private static class Reader {
+		private final ByteBuffer buf;
+
+		private final List<String> strings = new ArrayList<String>();
+		private final List<ClassDescriptor> classes =
+				new ArrayList<ClassDescriptor>();
+		private final List<Object> objects = new ArrayList<Object>();
+
+		private Reader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		private int readByte() throws IOException {
+			if (!buf.hasRemaining())
+				throw new StreamCorruptedException("Unexpected end of data");
+			return buf.get();
+		}
+
+		private long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("Invalid varint");
+		}
+
+		private int readLength() throws IOException {
+			long length = readVarint();
+			if (length < 0 || length > buf.remaining())
+				throw new StreamCorruptedException("Invalid length " + length);
+			return (int) length;
+		}
+
+		private long readZigZag() throws IOException {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readFixed(int numBytes) throws IOException {
+			if (buf.remaining() < numBytes)
+				throw new StreamCorruptedException("Unexpected end of data");
+			long value = 0;
+			for (int i = 0; i < numBytes; ++i)
+				value = (value << 8) | (buf.get() & 0xFF);
+			return value;
+		}
+
+		private byte[] readBytes() throws IOException {
+			int length = readLength();
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			return bytes;
+		}
+
+		private String readStringBody() throws IOException {
+			int index = (int) readVarint();
+			if (index > 0) {
+				if (index > strings.size())
+					throw new StreamCorruptedException("Invalid string index");
+				return strings.get(index - 1);
+			}
+			int length = readLength();
+			String s;
+			if (buf.hasArray()) {
+				s = new String(buf.array(), buf.arrayOffset() + buf.position(),
+						length, UTF8);
+				buf.position(buf.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				buf.get(bytes);
+				s = new String(bytes, UTF8);
+			}
+			strings.add(s);
+			return s;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Object readValue() throws IOException {
+			byte tag = (byte) readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case BYTE:
+				return (byte) readByte();
+			case SHORT:
+				return (short) readZigZag();
+			case INT:
+				return (int) readZigZag();
+			case LONG:
+				return readZigZag();
+			case FLOAT:
+				return Float.intBitsToFloat((int) readFixed(4));
+			case DOUBLE:
+				return Double.longBitsToDouble(readFixed(8));
+			case CHAR:
+				return (char) readVarint();
+			case STRING:
+				return readStringBody();
+			case DATE:
+				return new Date(readZigZag());
+			case BYTES:
+				return readBytes();
+			case LIST: {
+				int size = readLength();
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; ++i)
+					list.add(readValue());
+				return list;
+			}
+			case SET:
+			case SORTED_SET: {
+				int size = readLength();
+				Set<Object> set = tag == SET ?
+						new LinkedHashSet<Object>(size * 4 / 3 + 1)
+						: new TreeSet<Object>();
+				for (int i = 0; i < size; ++i)
+					set.add(readValue());
+				return set;
+			}
+			case MAP:
+			case SORTED_MAP: {
+				int size = readLength();
+				Map<Object, Object> map = tag == MAP ?
+						new LinkedHashMap<Object, Object>(size * 4 / 3 + 1)
+						: new TreeMap<Object, Object>();
+				for (int i = 0; i < size; ++i) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case ARRAY: {
+				Class<?> componentType = classForName(readStringBody());
+				int length = readLength();
+				Object array = Array.newInstance(componentType, length);
+				objects.add(array);
+				for (int i = 0; i < length; ++i)
+					Array.set(array, i, readValue());
+				return array;
+			}
+			case ENUM: {
+				Class<?> enumClass = classForName(readStringBody());
+				if (!enumClass.isEnum()
+						|| !isSerializedClassAllowed(enumClass))
+					throw new InvalidClassException(enumClass.getName(),
+							"Not an enum that can be decoded");
+				return Enum.valueOf((Class) enumClass, readStringBody());
+			}
+			case OBJECT:
+				return readFields();
+			case OBJECT_REF: {
+				long index = readVarint();
+				if (index < 0 || index >= objects.size())
+					throw new StreamCorruptedException("Invalid object index");
+				return objects.get((int) index);
+			}
+			case SERIALIZED:
+				return readSerialized();
+			default:
+				throw new StreamCorruptedException("Invalid tag " + tag);
+			}
+		}
+
+		private Object readFields() throws IOException {
+			ClassDescriptor descriptor;
+			int classIndex = (int) readVarint();
+			if (classIndex == 0) {
+				ClassInfo info = ClassInfo.get(classForName(readStringBody()));
+				// Only instantiate classes that are expected to be encoded
+				// this way
+				if (!info.fieldsEncodable)
+					throw new InvalidClassException(info.cls.getName(),
+							"Cannot be decoded field by field");
+				int numFields = readLength();
+				String[] fieldNames = new String[numFields];
+				for (int i = 0; i < numFields; ++i)
+					fieldNames[i] = readStringBody();
+				descriptor = new ClassDescriptor(info, fieldNames);
+				classes.add(descriptor);
+			} else {
+				if (classIndex > classes.size())
+					throw new StreamCorruptedException("Invalid class index");
+				descriptor = classes.get(classIndex - 1);
+			}
+
+			Object obj = descriptor.info.newInstance();
+			int index = objects.size();
+			objects.add(obj);
+			for (Field field : descriptor.fields) {
+				Object value = readValue();
+				if (field != null)
+					setField(obj, field, value);
+			}
+
+			if (descriptor.info.readResolve != null) {
+				obj = invoke(descriptor.info.readResolve, obj);
+				objects.set(index, obj);
+			}
+			return obj;
+		}
+
+		/**
+		 * Sets the field. Since collections are decoded as standard
+		 * collections they are copied into a collection of the field's class
+		 * if the field is declared as a particular collection class.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void setField(Object obj, Field field, Object value)
+				throws IOException {
+			Class<?> type = field.getType();
+			try {
+				if (value != null && !type.isPrimitive()
+						&& !type.isInstance(value)) {
+					if (value instanceof Collection
+							&& Collection.class.isAssignableFrom(type)) {
+						Collection collection = (Collection) type.newInstance();
+						collection.addAll((Collection) value);
+						value = collection;
+					} else if (value instanceof Map
+							&& Map.class.isAssignableFrom(type)) {
+						Map map = (Map) type.newInstance();
+						map.putAll((Map) value);
+						value = map;
+					}
+				}
+				field.set(obj, value);
+			} catch (Exception e) {
+				InvalidObjectException ex = new InvalidObjectException(
+						"Could not set field " + field);
+				ex.initCause(e);
+				throw ex;
+			}
+		}
+
+		private Object readSerialized() throws IOException {
+			ObjectInputStream in = new FilteringObjectInputStream(
+					new ByteArrayInputStream(readBytes()));
+			try {
+				Object obj = in.readObject();
+				objects.add(obj);
+				return obj;
+			} catch (ClassNotFoundException e) {
+				InvalidClassException ex = new InvalidClassException(
+						e.getMessage(), "Unknown class");
+				ex.initCause(e);
+				throw ex;
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.binary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.configData.RmiConfig;
+
+/**
+ * The client side of the binary IPC transport. There is a single connection
+ * to the server of an agency. It is shared by all threads and all remote
+ * interfaces for the agency. Requests are pipelined: each caller writes its
+ * request frame and then waits for the response with its request ID, so
+ * slow requests don't hold up other requests and no connection pool is
+ * needed. A single reader thread per connection reads the responses.
+ * <p>
+ * If the connection fails then all outstanding calls get a RemoteException
+ * and a new connection is made for the next call.
+ */
+public class BinaryIpcClient {
+
+	private final String agencyId;
+
+	private volatile Connection connection = null;
+
+	private final AtomicLong nextRequestId = new AtomicLong();
+
+	// For measuring how compact the encoding is
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private static final ConcurrentHashMap<String, BinaryIpcClient> clientsByAgency =
+			new ConcurrentHashMap<String, BinaryIpcClient>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(BinaryIpcClient.class);
+
+	/********************** Member Functions **************************/
+
+	private BinaryIpcClient(String agencyId) {
+		this.agencyId = agencyId;
+	}
+
+	/**
+	 * Returns the client for the agency. The connection is shared by all of
+	 * the remote interfaces of the agency.
+	 *
+	 * @param agencyId
+	 * @return the client
+	 */
+	public static BinaryIpcClient getInstance(String agencyId) {
+		BinaryIpcClient client = clientsByAgency.get(agencyId);
+		if (client == null) {
+			clientsByAgency.putIfAbsent(agencyId, new BinaryIpcClient(agencyId));
+			client = clientsByAgency.get(agencyId);
+		}
+		return client;
+	}
+
+	/**
+	 * Creates a client that connects to the specified host and port instead
+	 * of looking up the host for an agency. Useful for testing.
+	 *
+	 * @param host
+	 * @param port
+	 * @param timeoutMsec
+	 *            for connecting
+	 * @return the connected client
+	 * @throws IOException
+	 */
+	public static BinaryIpcClient connect(String host, int port,
+			int timeoutMsec) throws IOException {
+		BinaryIpcClient client = new BinaryIpcClient(null);
+		client.connection = client.new Connection(host, port, timeoutMsec);
+		return client;
+	}
+
+	public String getAgencyId() {
+		return agencyId;
+	}
+
+	/**
+	 * @return total number of bytes written, including frame headers
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return total number of bytes read, including frame headers
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Returns the current connection, connecting to the host if there isn't
+	 * a working one.
+	 *
+	 * @param host
+	 *            host to connect to if not already connected
+	 * @param timeoutMsec
+	 * @return the connection
+	 * @throws IOException
+	 */
+	private Connection getConnection(String host, int timeoutMsec)
+			throws IOException {
+		Connection c = connection;
+		if (c != null && !c.closed)
+			return c;
+
+		synchronized (this) {
+			c = connection;
+			if (c == null || c.closed) {
+				if (host == null)
+					throw new ConnectException("No host configured for agency "
+							+ agencyId);
+				c = new Connection(host, RmiConfig.binaryIpcPort(),
+						timeoutMsec);
+				connection = c;
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Closes the connection. For the agency clients a new connection will be
+	 * made for the next call.
+	 */
+	public void close() {
+		Connection c = connection;
+		if (c != null)
+			c.fail(new ConnectException("Connection closed"));
+	}
+
+	/**
+	 * Calls a remote method and waits for the result
+	 *
+	 * @param host
+	 *            the host of the agency server, used if need to connect
+	 * @param bindName
+	 *            name the remote object is registered with
+	 * @param signature
+	 *            the method signature, as created by
+	 *            BinaryIpcProtocol.signature()
+	 * @param args
+	 * @param timeoutMsec
+	 * @return the result of the method
+	 * @throws RemoteException
+	 *             if there was a communication problem. A ConnectException
+	 *             if the connection could not be made or was lost.
+	 * @throws Throwable
+	 *             whatever the remote method threw
+	 */
+	public Object invoke(String host, String bindName, String signature,
+			Object[] args, int timeoutMsec) throws Throwable {
+		Connection c;
+		try {
+			c = getConnection(host, timeoutMsec);
+		} catch (IOException e) {
+			throw new ConnectException("Could not connect to " + host + ":"
+					+ RmiConfig.binaryIpcPort() + ". " + e.getMessage(), e);
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		Call call = new Call();
+		c.pendingCalls.put(requestId, call);
+		try {
+			ByteBuffer frame = BinaryIpcProtocol.frame(requestId,
+					BinaryIpcProtocol.REQUEST,
+					new Object[] { bindName, signature, args });
+			c.write(frame);
+
+			if (!call.latch.await(timeoutMsec, TimeUnit.MILLISECONDS))
+				throw new RemoteException("Timed out after " + timeoutMsec
+						+ " msec waiting for " + bindName + "." + signature);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted waiting for " + bindName
+					+ "." + signature);
+		} finally {
+			c.pendingCalls.remove(requestId);
+		}
+
+		if (call.failure != null)
+			throw call.failure;
+		Object value = BinaryCodec.decode(call.payload);
+		if (call.type == BinaryIpcProtocol.EXCEPTION)
+			throw (Throwable) value;
+		return value;
+	}
+
+	/**
+	 * An outstanding call, completed by the reader thread
+	 */
+	private static class Call {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile byte type;
+		private volatile byte[] payload;
+		private volatile RemoteException failure;
+	}
+
+	/**
+	 * A connection to the server along with the thread that reads the
+	 * responses
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final ConcurrentHashMap<Long, Call> pendingCalls =
+				new ConcurrentHashMap<Long, Call>();
+		private volatile boolean closed = false;
+
+		private Connection(String host, int port, int timeoutMsec)
+				throws IOException {
+			channel = SocketChannel.open();
+			try {
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().connect(new InetSocketAddress(host, port),
+						timeoutMsec);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			logger.info("Connected to binary IPC server at {}:{}", host, port);
+
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readLoop();
+				}
+			}, "binaryIpcClient-" + host);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Writes the frame. Synchronized so that frames from different
+		 * threads are not interleaved.
+		 */
+		private void write(ByteBuffer frame) throws ConnectException {
+			try {
+				synchronized (channel) {
+					while (frame.hasRemaining())
+						channel.write(frame);
+				}
+				bytesSent.addAndGet(frame.limit());
+			} catch (IOException e) {
+				ConnectException ex = new ConnectException(
+						"Exception writing request. " + e.getMessage(), e);
+				fail(ex);
+				throw ex;
+			}
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException("Connection closed by server");
+			}
+		}
+
+		private void readLoop() {
+			ByteBuffer header =
+					ByteBuffer.allocate(BinaryIpcProtocol.HEADER_SIZE);
+			try {
+				while (!closed) {
+					header.clear();
+					readFully(header);
+					header.flip();
+					int length = header.getInt();
+					long requestId = header.getLong();
+					byte type = header.get();
+					if (length < BinaryIpcProtocol.ID_AND_TYPE_SIZE
+							|| length > BinaryIpcProtocol.MAX_FRAME_SIZE)
+						throw new IOException("Invalid frame length " + length);
+
+					byte[] payload =
+							new byte[length - BinaryIpcProtocol.ID_AND_TYPE_SIZE];
+					readFully(ByteBuffer.wrap(payload));
+					bytesReceived.addAndGet(4 + length);
+
+					// Call could have already timed out
+					Call call = pendingCalls.get(requestId);
+					if (call != null) {
+						call.type = type;
+						call.payload = payload;
+						call.latch.countDown();
+					}
+				}
+			} catch (IOException e) {
+				if (!closed)
+					logger.error("Exception reading from binary IPC server. {}",
+							e.getMessage());
+				fail(new ConnectException(
+						"Connection to server lost. " + e.getMessage(), e));
+			}
+		}
+
+		/**
+		 * Closes the connection and fails all outstanding calls
+		 */
+		private void fail(RemoteException e) {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e2) {
+				// Already failing so nothing else to do
+			}
+			for (Call call : pendingCalls.values()) {
+				call.failure = e;
+				call.latch.countDown();
+			}
+		}
+	}
+}
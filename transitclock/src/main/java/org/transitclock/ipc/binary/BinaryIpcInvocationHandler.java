@@ -0,0 +1,169 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.binary;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.Remote;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.ipc.rmi.AbstractServer;
+import org.transitclock.ipc.rmi.ClientFactory;
+import org.transitclock.ipc.rmi.RmiStubInfo;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+
+/**
+ * The client side proxy for a remote interface when using the binary IPC
+ * transport. It is the equivalent of RmiCallInvocationHandler, sending each
+ * call to the server via the shared BinaryIpcClient of the agency. If the
+ * connection fails the call is retried once, possibly with an updated host
+ * name for the agency.
+ */
+public class BinaryIpcInvocationHandler implements InvocationHandler {
+
+	private final BinaryIpcClient client;
+
+	// For determining the host and for logging
+	private final RmiStubInfo info;
+
+	private final String bindName;
+
+	// Host name to use, or null to look it up via info. For when the client
+	// was created for a specific host.
+	private final String host;
+
+	// So signatures only need to be determined once per method
+	private final ConcurrentHashMap<Method, String> signatures =
+			new ConcurrentHashMap<Method, String>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(BinaryIpcInvocationHandler.class);
+
+	/********************** Member Functions **************************/
+
+	private BinaryIpcInvocationHandler(BinaryIpcClient client,
+			RmiStubInfo info, String host) {
+		this.client = client;
+		this.info = info;
+		this.bindName =
+				AbstractServer.getBindName(info.getAgencyId(),
+						info.getClassName());
+		this.host = host;
+	}
+
+	/**
+	 * Creates a proxy for the remote interface of the agency that uses the
+	 * binary IPC transport.
+	 *
+	 * @param agencyId
+	 * @param clazz
+	 *            the remote interface
+	 * @return the proxy
+	 */
+	public static <T extends Remote> T getInstance(String agencyId,
+			Class<T> clazz) {
+		return getInstance(BinaryIpcClient.getInstance(agencyId), agencyId,
+				clazz, null);
+	}
+
+	/**
+	 * Creates a proxy for the remote interface that uses the specified
+	 * client.
+	 *
+	 * @param client
+	 * @param agencyId
+	 *            for the bind name of the remote object
+	 * @param clazz
+	 *            the remote interface
+	 * @param host
+	 *            host that the client is connected to, or null if the host
+	 *            for the agency should be looked up
+	 * @return the proxy
+	 */
+	public static <T extends Remote> T getInstance(BinaryIpcClient client,
+			String agencyId, Class<T> clazz, String host) {
+		RmiStubInfo info = new RmiStubInfo(agencyId, clazz.getSimpleName());
+		@SuppressWarnings("unchecked")
+		T proxy = (T) Proxy.newProxyInstance(clazz.getClassLoader(),
+				new Class<?>[] { clazz },
+				new BinaryIpcInvocationHandler(client, info, host));
+		return proxy;
+	}
+
+	private String getSignature(Method method) {
+		String signature = signatures.get(method);
+		if (signature == null) {
+			signature = BinaryIpcProtocol.signature(method);
+			signatures.put(method, signature);
+		}
+		return signature;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		// The java.lang.Object methods are handled by the handler, same as
+		// for RmiCallInvocationHandler
+		if (Object.class == method.getDeclaringClass()) {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return proxy.getClass().getName() + "@"
+						+ Integer.toHexString(System.identityHashCode(proxy))
+						+ ", with InvocationHandler " + this;
+			} else {
+				throw new IllegalStateException(String.valueOf(method));
+			}
+		}
+
+		String signature = getSignature(method);
+		int timeoutMsec = ClientFactory.getTimeoutSec() * Time.MS_PER_SEC;
+		IntervalTimer timer = new IntervalTimer();
+		try {
+			Object result = client.invoke(
+					host != null ? host : info.getHostName(), bindName,
+					signature, args, timeoutMsec);
+			logger.debug("Remote method {}.{}() for agency {} took {} msec "
+					+ "via binary IPC.", info.getClassName(), method.getName(),
+					info.getAgencyId(), timer.elapsedMsec());
+			return result;
+		} catch (ConnectException e) {
+			// Connection could not be made or was lost. Retry once, with
+			// possibly updated host name in case the server was moved.
+			logger.warn("Remote method {}.{}() for agency {} encountered "
+					+ "exception {}. Retrying.", info.getClassName(),
+					method.getName(), info.getAgencyId(), e.getMessage());
+			return client.invoke(
+					host != null ? host : info.getHostNameViaUpdatedCache(),
+					bindName, signature, args, timeoutMsec);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BinaryIpcInvocationHandler [bindName=" + bindName + "]";
+	}
+}
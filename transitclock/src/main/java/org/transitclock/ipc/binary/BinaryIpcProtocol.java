@@ -0,0 +1,94 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.binary;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * The framing used by the binary IPC transport. Every request and response is
+ * a frame consisting of:
+ * <ul>
+ * <li>int length of the rest of the frame</li>
+ * <li>long request ID, so that responses can be matched to requests and
+ * many requests can be outstanding on a single connection</li>
+ * <li>byte frame type</li>
+ * <li>the payload, encoded by BinaryCodec</li>
+ * </ul>
+ * The payload of a request is an Object[] of the bind name of the remote
+ * object, the method signature and the Object[] of arguments. The payload of
+ * a response is either the result of the method or the Throwable that it
+ * threw.
+ */
+class BinaryIpcProtocol {
+
+	static final byte REQUEST = 0;
+	static final byte RESULT = 1;
+	static final byte EXCEPTION = 2;
+
+	// Length, request ID and frame type
+	static final int HEADER_SIZE = 4 + 8 + 1;
+
+	// Request ID and frame type, the part of the header included in length
+	static final int ID_AND_TYPE_SIZE = 8 + 1;
+
+	// So that a corrupt length doesn't cause a huge buffer to be allocated
+	static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates a frame containing the encoded value
+	 *
+	 * @param requestId
+	 * @param type
+	 *            REQUEST, RESULT or EXCEPTION
+	 * @param value
+	 * @return buffer ready to be written
+	 * @throws IOException
+	 *             if the value cannot be encoded
+	 */
+	static ByteBuffer frame(long requestId, byte type, Object value)
+			throws IOException {
+		ByteBuffer buffer = BinaryCodec.encode(value, HEADER_SIZE);
+		buffer.putInt(0, buffer.limit() - 4);
+		buffer.putLong(4, requestId);
+		buffer.put(12, type);
+		return buffer;
+	}
+
+	/**
+	 * Returns the signature used to identify a method in a request, such as
+	 * "getAllPredictions(int)". Unlike the method name it is unique even if
+	 * the method is overloaded.
+	 *
+	 * @param method
+	 * @return the signature
+	 */
+	static String signature(Method method) {
+		StringBuilder sb = new StringBuilder(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; ++i) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(parameterTypes[i].getName());
+		}
+		return sb.append(')').toString();
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.binary;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.configData.AgencyConfig;
+import org.transitclock.configData.RmiConfig;
+import org.transitclock.logging.Markers;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * The server side of the binary IPC transport. The same server objects that
+ * are made available via RMI, the subclasses of AbstractServer, are
+ * registered here by bind name.
+ * <p>
+ * A single selector thread accepts connections and reads and writes the
+ * frames for all of them, so unlike RMI a thread is not needed for each
+ * connection. Requests are executed by a pool of worker threads. Since each
+ * frame has a request ID a client can have many requests outstanding on a
+ * single connection and the responses are sent back as soon as each one
+ * completes, not necessarily in the order of the requests.
+ */
+public class BinaryIpcServer {
+
+	// The remote methods of each registered object, keyed by bind name and
+	// then by method signature
+	private final ConcurrentHashMap<String, RegisteredObject> objects =
+			new ConcurrentHashMap<String, RegisteredObject>();
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final ExecutorService workers;
+
+	// Connections that have responses queued. Handled by the selector
+	// thread since only it should change the interest ops.
+	private final Queue<Connection> connectionsToWrite =
+			new ConcurrentLinkedQueue<Connection>();
+
+	private volatile boolean running = true;
+
+	private static BinaryIpcServer singleton = null;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(BinaryIpcServer.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Starts a server listening on the specified port.
+	 *
+	 * @param port
+	 *            port to listen on. If 0 then an available port is used.
+	 * @param numThreads
+	 *            number of threads for executing requests
+	 * @throws IOException
+	 */
+	public BinaryIpcServer(int port, int numThreads) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		workers = Executors.newFixedThreadPool(numThreads,
+				new NamedThreadFactory("binaryIpcWorker"));
+
+		Thread selectorThread = new Thread(new Runnable() {
+			public void run() {
+				selectLoop();
+			}
+		}, "binaryIpcSelector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+
+		logger.info("Started binary IPC server on port={} with {} worker "
+				+ "threads", getPort(), numThreads);
+	}
+
+	/**
+	 * Returns the server for the process, starting it on the configured port
+	 * if not already running.
+	 *
+	 * @return the server
+	 * @throws IOException
+	 *             if the server could not be started
+	 */
+	public static synchronized BinaryIpcServer getInstance()
+			throws IOException {
+		if (singleton == null)
+			singleton = new BinaryIpcServer(RmiConfig.binaryIpcPort(),
+					RmiConfig.binaryIpcServerThreads());
+		return singleton;
+	}
+
+	/**
+	 * Called by AbstractServer for each server object so that it is also
+	 * available via the binary transport. Does nothing if the binary
+	 * transport is not enabled.
+	 *
+	 * @param bindName
+	 * @param object
+	 */
+	public static void registerIfEnabled(String bindName, Remote object) {
+		if (!RmiConfig.binaryIpcServerEnabled())
+			return;
+
+		try {
+			getInstance().register(bindName, object);
+		} catch (IOException e) {
+			logger.error(Markers.email(),
+					"For agencyId={} could not start binary IPC server on "
+					+ "port={}. {}",
+					AgencyConfig.getAgencyId(), RmiConfig.binaryIpcPort(),
+					e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Makes the remote methods of the object available by bind name
+	 *
+	 * @param bindName
+	 * @param object
+	 */
+	public void register(String bindName, Remote object) {
+		objects.put(bindName, new RegisteredObject(object));
+		logger.info("Registered {} with binary IPC server", bindName);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops the server and closes all connections
+	 */
+	public void close() {
+		running = false;
+		workers.shutdownNow();
+		try {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+			logger.error("Exception closing binary IPC server", e);
+		}
+	}
+
+	/**
+	 * A server object and its remote methods keyed by signature
+	 */
+	private static class RegisteredObject {
+		private final Remote object;
+		private final Map<String, Method> methods =
+				new HashMap<String, Method>();
+
+		private RegisteredObject(Remote object) {
+			this.object = object;
+			for (Class<?> c = object.getClass(); c != null;
+					c = c.getSuperclass()) {
+				for (Class<?> i : c.getInterfaces()) {
+					if (!Remote.class.isAssignableFrom(i))
+						continue;
+					for (Method method : i.getMethods())
+						methods.put(BinaryIpcProtocol.signature(method), method);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state for a client connection
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+		private final Queue<ByteBuffer> writeQueue =
+				new ConcurrentLinkedQueue<ByteBuffer>();
+
+		private Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		/**
+		 * Reads what is available and dispatches the complete frames
+		 */
+		private void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 4) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length < BinaryIpcProtocol.ID_AND_TYPE_SIZE
+						|| length > BinaryIpcProtocol.MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length);
+				if (readBuffer.remaining() < 4 + length) {
+					// Make sure there is room for the whole frame
+					if (4 + length > readBuffer.capacity()) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(readBuffer);
+						readBuffer = larger;
+						return;
+					}
+					break;
+				}
+				readBuffer.getInt();
+				long requestId = readBuffer.getLong();
+				byte type = readBuffer.get();
+				byte[] payload =
+						new byte[length - BinaryIpcProtocol.ID_AND_TYPE_SIZE];
+				readBuffer.get(payload);
+				if (type == BinaryIpcProtocol.REQUEST)
+					dispatch(requestId, payload);
+			}
+			readBuffer.compact();
+		}
+
+		private void dispatch(final long requestId, final byte[] payload) {
+			workers.execute(new Runnable() {
+				public void run() {
+					respond(requestId, execute(payload));
+				}
+			});
+		}
+
+		/**
+		 * Queues the response. The selector thread does the actual writing.
+		 */
+		private void respond(long requestId, Response response) {
+			ByteBuffer frame;
+			try {
+				frame = BinaryIpcProtocol.frame(requestId, response.type,
+						response.value);
+			} catch (IOException e) {
+				logger.error("Could not encode binary IPC response", e);
+				try {
+					frame = BinaryIpcProtocol.frame(requestId,
+							BinaryIpcProtocol.EXCEPTION, new RemoteException(
+									"Could not encode response. "
+									+ e.getMessage()));
+				} catch (IOException e2) {
+					close();
+					return;
+				}
+			}
+			writeQueue.add(frame);
+			connectionsToWrite.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Writes as much of the queued responses as possible
+		 */
+		private void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				writeQueue.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Already closing so nothing else to do
+			}
+		}
+	}
+
+	private static class Response {
+		private final byte type;
+		private final Object value;
+
+		private Response(byte type, Object value) {
+			this.type = type;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Decodes a request and invokes the method on the registered object
+	 *
+	 * @param payload
+	 * @return the result or the exception to send back
+	 */
+	private Response execute(byte[] payload) {
+		try {
+			Object[] request = (Object[]) BinaryCodec.decode(payload);
+			String bindName = (String) request[0];
+			String signature = (String) request[1];
+			Object[] args = (Object[]) request[2];
+
+			RegisteredObject registered = objects.get(bindName);
+			if (registered == null)
+				return new Response(BinaryIpcProtocol.EXCEPTION,
+						new RemoteException(bindName
+								+ " is not bound to the binary IPC server"));
+			Method method = registered.methods.get(signature);
+			if (method == null)
+				return new Response(BinaryIpcProtocol.EXCEPTION,
+						new RemoteException("No remote method " + signature
+								+ " for " + bindName));
+
+			try {
+				return new Response(BinaryIpcProtocol.RESULT,
+						method.invoke(registered.object, args));
+			} catch (InvocationTargetException e) {
+				// Exception thrown by the method so pass it to the client
+				return new Response(BinaryIpcProtocol.EXCEPTION,
+						decodableException(e.getCause()));
+			}
+		} catch (Exception e) {
+			logger.error("Exception executing binary IPC request", e);
+			return new Response(BinaryIpcProtocol.EXCEPTION,
+					new RemoteException("Could not execute request. "
+							+ e.getMessage()));
+		}
+	}
+
+	/**
+	 * Returns the exception, or a RemoteException with its message if it, or
+	 * one of its causes, is of a class that the client would not be allowed
+	 * to decode, such as a HibernateException.
+	 *
+	 * @param exception
+	 * @return exception that can be sent to the client
+	 */
+	private static Throwable decodableException(Throwable exception) {
+		for (Throwable t = exception; t != null; t = t.getCause()) {
+			if (!BinaryCodec.isSerializedClassAllowed(t.getClass()))
+				return new RemoteException(exception.toString());
+		}
+		return exception;
+	}
+
+	/**
+	 * Run by the selector thread. Accepts connections and does all of the
+	 * reading and writing.
+	 */
+	private void selectLoop() {
+		while (running) {
+			try {
+				selector.select();
+
+				// Write to connections that have new responses queued
+				Connection toWrite;
+				while ((toWrite = connectionsToWrite.poll()) != null) {
+					if (toWrite.key.isValid())
+						toWrite.key.interestOps(SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE);
+				}
+
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable()) {
+						SocketChannel channel = serverChannel.accept();
+						if (channel != null) {
+							channel.configureBlocking(false);
+							channel.socket().setTcpNoDelay(true);
+							new Connection(channel);
+						}
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.write();
+					} catch (IOException e) {
+						logger.debug("Closing binary IPC connection. {}",
+								e.getMessage());
+						connection.close();
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (Exception e) {
+				logger.error("Exception in binary IPC selector thread", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ The org.transitclock.ipc.binary package is an alternative to RMI for
+ calling the remote methods of an agency server. The same remote interfaces,
+ such as PredictionsInterface, and the same server objects are used, so
+ clients just get their objects from ClientFactory as before.
+ <p>
+ The transport is enabled on the agency server with
+ -Dtransitclock.ipc.binaryServerEnabled=true and it then listens on the port
+ specified by -Dtransitclock.ipc.binaryPort (default 2100) in addition to
+ using RMI. Clients use it instead of RMI when 
+ -Dtransitclock.ipc.transport=binary .
+ <p>
+ Compared to RMI:
+ <ul>
+ <li>A client uses a single connection per agency. Requests from all threads
+ are pipelined over it, each frame containing a request ID so that the
+ responses can come back in any order.</li>
+ <li>The server uses a single NIO selector thread for all connections and a
+ fixed pool of threads for executing requests, instead of a thread per
+ connection.</li>
+ <li>Objects are encoded by BinaryCodec instead of Java serialization, which
+ makes the large responses such as all predictions or all vehicles much
+ smaller and faster to encode and decode.</li>
+ </ul>
+ */
+package org.transitclock.ipc.binary;
@@ -45,6 +45,18 @@ public class IpcActiveBlock implements Serializable {
 	
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcActiveBlock() {
+		this.block = null;
+		this.activeTripIndex = 0;
+		this.vehicles = null;
+		this.tripForSorting = null;
+	}
+
 	/**
 	 * Constructor
 	 * 
@@ -55,6 +55,14 @@ public class IpcArrivalDeparture implements Serializable {
 	@XmlAttribute
 	private float stopPathLength;
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcArrivalDeparture() {
+	}
+	
 	public IpcArrivalDeparture(ArrivalDeparture arrivalDepature) throws Exception {
 		
 		this.vehicleId=arrivalDepature.getVehicleId();
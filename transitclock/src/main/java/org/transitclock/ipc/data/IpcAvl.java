@@ -124,6 +124,14 @@ public class IpcAvl implements Serializable {
 		private static final long serialVersionUID = 6220698347690060245L;
 		private static final short serializationVersion = 0;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		@SuppressWarnings("unused")
+		private SerializationProxy() {
+		}
+
 		/*
 		 * Only to be used within this class.
 		 */
@@ -48,6 +48,21 @@ public class IpcBlock implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcBlock() {
+		this.configRev = 0;
+		this.id = null;
+		this.serviceId = null;
+		this.startTime = 0;
+		this.endTime = 0;
+		this.trips = null;
+		this.routeSummaries = null;
+	}
+
 	public IpcBlock(Block dbBlock) {
 		configRev = dbBlock.getConfigRev();
 		id = dbBlock.getId();
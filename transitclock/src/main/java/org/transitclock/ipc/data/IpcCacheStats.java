@@ -0,0 +1,106 @@
+package org.transitclock.ipc.data;
+
+import java.io.Serializable;
+
+import org.transitclock.core.dataCache.spi.DataCacheStats;
+
+/**
+ * The size, hit rate and evictions of one of the data caches, for
+ * CacheQueryInterface.getCacheStats().
+ */
+public class IpcCacheStats implements Serializable {
+
+	private static final long serialVersionUID = 3960731873651648204L;
+
+	private final String name;
+	private final String implementation;
+	private final int size;
+	private final int maxEntries;
+	private final int timeToLiveSec;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcCacheStats() {
+		this.name = null;
+		this.implementation = null;
+		this.size = 0;
+		this.maxEntries = 0;
+		this.timeToLiveSec = 0;
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+	}
+
+	public IpcCacheStats(DataCacheStats stats) {
+		this.name = stats.getName();
+		this.implementation = stats.getImplementation();
+		this.size = stats.getSize();
+		this.maxEntries = stats.getMaxEntries();
+		this.timeToLiveSec = stats.getTimeToLiveSec();
+		this.hits = stats.getHits();
+		this.misses = stats.getMisses();
+		this.evictions = stats.getEvictions();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getImplementation() {
+		return implementation;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public int getTimeToLiveSec() {
+		return timeToLiveSec;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return hits divided by the total number of gets, or NaN if there
+	 *         haven't been any gets
+	 */
+	public double getHitRate() {
+		long gets = hits + misses;
+		return gets > 0 ? (double) hits / gets : Double.NaN;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcCacheStats ["
+				+ "name=" + name
+				+ ", implementation=" + implementation
+				+ ", size=" + size
+				+ ", maxEntries=" + maxEntries
+				+ ", timeToLiveSec=" + timeToLiveSec
+				+ ", hits=" + hits
+				+ ", misses=" + misses
+				+ ", evictions=" + evictions
+				+ ", hitRate=" + getHitRate()
+				+ "]";
+	}
+}
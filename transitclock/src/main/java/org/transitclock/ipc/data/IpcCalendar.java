@@ -41,6 +41,24 @@ public class IpcCalendar implements Serializable {
 	
 	private static final long serialVersionUID = 7248540190574905163L;
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcCalendar() {
+		this.serviceId = null;
+		this.monday = false;
+		this.tuesday = false;
+		this.wednesday = false;
+		this.thursday = false;
+		this.friday = false;
+		this.saturday = false;
+		this.sunday = false;
+		this.startDate = null;
+		this.endDate = null;
+	}
+	
 	public IpcCalendar(Calendar calendar) {
 		super();
 		this.serviceId = calendar.getServiceId();
@@ -43,6 +43,14 @@ public class IpcDirection implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcDirection() {
+	}
+
 	/**
 	 * Constructor. All IpcStops are marked as being a normal UiMode stop.
 	 * 
@@ -37,6 +37,14 @@ public class IpcDirectionsForRoute implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcDirectionsForRoute() {
+	}
+
 	public IpcDirectionsForRoute(Route dbRoute) {
 		directions = new ArrayList<IpcDirection>();
 		
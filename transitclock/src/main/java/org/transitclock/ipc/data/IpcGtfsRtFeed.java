@@ -0,0 +1,109 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * A GTFS-realtime feed that has already been serialized by the server, for
+ * Inter Process Communication (IPC). The version can be used as an HTTP ETag
+ * so that clients only get the feed when it has changed. If the client
+ * already has the current version then the feed bytes are not sent.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcGtfsRtFeed implements Serializable {
+
+	private final long version;
+
+	// The serialized FeedMessage. Null if the caller already has this version.
+	private final byte[] feed;
+
+	// True if the feed only contains the entities that changed since the
+	// version that the caller already has
+	private final boolean differential;
+
+	// True if the feed bytes are gzip compressed
+	private final boolean gzipped;
+
+	private static final long serialVersionUID = -2364930217786474915L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcGtfsRtFeed() {
+		this.version = 0;
+		this.feed = null;
+		this.differential = false;
+		this.gzipped = false;
+	}
+
+	public IpcGtfsRtFeed(long version, byte[] feed, boolean differential) {
+		this(version, feed, differential, false);
+	}
+
+	public IpcGtfsRtFeed(long version, byte[] feed, boolean differential,
+			boolean gzipped) {
+		this.version = version;
+		this.feed = feed;
+		this.differential = differential;
+		this.gzipped = gzipped;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcGtfsRtFeed ["
+				+ "version=" + version
+				+ ", feedBytes=" + (feed == null ? "not modified" : feed.length)
+				+ ", differential=" + differential
+				+ ", gzipped=" + gzipped
+				+ "]";
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the serialized GTFS-realtime FeedMessage, or null if the caller
+	 *         already has this version
+	 */
+	public byte[] getFeed() {
+		return feed;
+	}
+
+	/**
+	 * @return true if the caller already has this version of the feed
+	 */
+	public boolean isNotModified() {
+		return feed == null;
+	}
+
+	public boolean isDifferential() {
+		return differential;
+	}
+
+	public boolean isGzipped() {
+		return gzipped;
+	}
+}
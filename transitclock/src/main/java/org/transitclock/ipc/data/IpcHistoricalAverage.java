@@ -12,6 +12,14 @@ import org.transitclock.core.dataCache.HistoricalAverage;
 public class IpcHistoricalAverage implements Serializable{
 	
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcHistoricalAverage() {
+	}
+	
 	public IpcHistoricalAverage(HistoricalAverage historicalAverage) {
 		super();
 		
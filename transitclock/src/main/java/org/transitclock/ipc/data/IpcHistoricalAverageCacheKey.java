@@ -12,6 +12,14 @@ public class IpcHistoricalAverageCacheKey implements Serializable
 	private String tripId;
 	private Integer stopPathIndex;
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcHistoricalAverageCacheKey() {
+	}
+	
 	public IpcHistoricalAverageCacheKey(StopPathCacheKey key) {
 		super();		
 		this.tripId=key.getTripId();
@@ -49,6 +49,21 @@ public class IpcHoldingTime implements Serializable{
 		this.hasD1 = hasD1;
 	}
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcHoldingTime() {
+		this.holdingTime = null;
+		this.creationTime = null;
+		this.vehicleId = null;
+		this.stopId = null;
+		this.tripId = null;
+		this.routeId = null;
+		this.arrivalTime = null;
+	}
+	
 	public IpcHoldingTime(Date holdingTime, Date creationTime, String vehicleId, String stopId, String tripId,
 			String routeId, boolean arrivalPredictionUsed , boolean arrivalUsed, Date arrivalTime, boolean hasD1, int numberPredictionsUsed) {
 		super();
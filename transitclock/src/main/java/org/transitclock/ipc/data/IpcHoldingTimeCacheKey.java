@@ -13,6 +13,14 @@ public class IpcHoldingTimeCacheKey  implements Serializable	{
 	private String stopid;
 	private String vehicleId;
 	private String tripId;
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcHoldingTimeCacheKey() {
+	}
+
 	public IpcHoldingTimeCacheKey(HoldingTimeCacheKey holdingTimeCacheKey) {
 		this.stopid=holdingTimeCacheKey.getStopid();
 		this.vehicleId=holdingTimeCacheKey.getVehicleId();
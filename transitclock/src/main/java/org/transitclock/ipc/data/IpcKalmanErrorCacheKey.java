@@ -12,6 +12,14 @@ public class IpcKalmanErrorCacheKey implements Serializable
 	private String tripId;
 	private Integer stopPathIndex;
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcKalmanErrorCacheKey() {
+	}
+	
 	public IpcKalmanErrorCacheKey(KalmanErrorCacheKey key) {
 		super();		
 		this.tripId=key.getTripId();
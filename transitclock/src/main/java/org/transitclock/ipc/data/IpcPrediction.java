@@ -250,6 +250,14 @@ public class IpcPrediction implements Serializable {
 		private static final long serialVersionUID = -8585283691951746719L;
 		private static final short currentSerializationVersion = 0;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		@SuppressWarnings("unused")
+		private SerializationProxy() {
+		}
+
 		/*
 		 * Only to be used within this class.
 		 */
@@ -27,6 +27,19 @@ public class IpcPredictionForStopPath implements Serializable {
 	
 	private final Integer stopPathIndex;
 	
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcPredictionForStopPath() {
+		this.creationTime = null;
+		this.predictionTime = null;
+		this.tripId = null;
+		this.algorithm = null;
+		this.stopPathIndex = null;
+	}
+	
 	public IpcPredictionForStopPath(PredictionForStopPath predictionForStopPath) {
 		this.tripId=predictionForStopPath.getTripId();
 		this.algorithm=predictionForStopPath.getAlgorithm();
@@ -267,6 +267,14 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		private static final short currentSerializationVersion = 1;
 		private static final long serialVersionUID = -2312925771271829358L;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		@SuppressWarnings("unused")
+		private SerializationProxy() {
+		}
+
 		/*
 		 * Only to be used within this class.
 		 */
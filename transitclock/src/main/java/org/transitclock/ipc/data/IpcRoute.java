@@ -51,6 +51,14 @@ public class IpcRoute extends IpcRouteSummary {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcRoute() {
+	}
+
 	/**
 	 * Create an IpcRoute that contains all stops and paths but separates out
 	 * information for the remaining part of the trip specified by stopId and
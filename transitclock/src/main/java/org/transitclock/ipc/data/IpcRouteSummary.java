@@ -44,6 +44,21 @@ public class IpcRouteSummary implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	protected IpcRouteSummary() {
+		this.id = null;
+		this.name = null;
+		this.shortName = null;
+		this.longName = null;
+		this.extent = null;
+		this.type = null;
+		this.color = null;
+		this.textColor = null;
+	}
+
 	/**
 	 * Constructs a new RouteSummary object using a Route object from the
 	 * database. Used by the server to create an object to be transmitted via
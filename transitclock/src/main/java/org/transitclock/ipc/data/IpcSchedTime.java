@@ -35,6 +35,17 @@ public class IpcSchedTime implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcSchedTime() {
+		this.stopId = null;
+		this.stopName = null;
+		this.timeOfDay = null;
+	}
+
 	/**
 	 * @param stopId
 	 * @param timeOfDay
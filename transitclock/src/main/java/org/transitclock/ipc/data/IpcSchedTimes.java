@@ -41,6 +41,18 @@ public class IpcSchedTimes implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcSchedTimes() {
+		this.arrivalTime = null;
+		this.departureTime = null;
+		this.stopId = null;
+		this.stopName = null;
+	}
+
 	public IpcSchedTimes(ScheduleTime dbScheduleTime, String stopId) {
 		this.arrivalTime = dbScheduleTime.getArrivalTime();
 		this.departureTime = dbScheduleTime.getDepartureTime();
@@ -44,6 +44,19 @@ public class IpcSchedTrip implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcSchedTrip() {
+		this.blockId = null;
+		this.tripId = null;
+		this.tripShortName = null;
+		this.tripHeadsign = null;
+		this.scheduleTimes = null;
+	}
+
 	/**
 	 * Constructor. Goes through the complete ordered list of stops for the
 	 * direction and creates the corresponding IpcSchedTime objects for each
@@ -36,6 +36,15 @@ public class IpcServerStatus implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcServerStatus() {
+		this.monitorResults = null;
+	}
+
 	public IpcServerStatus(List<MonitorResult> monitorResults) {
 		this.monitorResults = monitorResults;
 	}
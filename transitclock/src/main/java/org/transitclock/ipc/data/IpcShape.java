@@ -46,6 +46,14 @@ public class IpcShape implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcShape() {
+	}
+
 	IpcShape(TripPattern tripPattern, boolean isUiShape) {
 		this.tripPatternId = tripPattern.getId();
 		this.headsign = tripPattern.getHeadsign();
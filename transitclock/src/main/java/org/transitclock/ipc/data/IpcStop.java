@@ -43,6 +43,20 @@ public class IpcStop implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcStop() {
+		this.id = null;
+		this.name = null;
+		this.code = null;
+		this.loc = null;
+		this.isUiStop = false;
+		this.directionId = null;
+	}
+
 	public IpcStop(Stop dbStop, boolean aUiStop, String directionId) {
 		this.id = dbStop.getId();
 		this.name = dbStop.getName();
@@ -50,6 +50,23 @@ public class IpcStopPath implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcStopPath() {
+		this.configRev = 0;
+		this.stopPathId = null;
+		this.stopId = null;
+		this.stopName = null;
+		this.gtfsStopSeq = 0;
+		this.layoverStop = false;
+		this.waitStop = false;
+		this.scheduleAdherenceStop = false;
+		this.breakTime = null;
+	}
+
 	public IpcStopPath(StopPath dbStopPath) {
 		this.configRev = dbStopPath.getConfigRev();
 		this.stopPathId = dbStopPath.getStopPathId();
@@ -56,6 +56,29 @@ public class IpcTrip implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcTrip() {
+		this.configRev = 0;
+		this.id = null;
+		this.shortName = null;
+		this.directionId = null;
+		this.routeId = null;
+		this.routeShortName = null;
+		this.routeName = null;
+		this.tripPattern = null;
+		this.serviceId = null;
+		this.headsign = null;
+		this.blockId = null;
+		this.shapeId = null;
+		this.noSchedule = false;
+		this.scheduleTimes = null;
+		this.travelTimes = null;
+	}
+
 	public IpcTrip(Trip dbTrip) {
 		configRev = dbTrip.getConfigRev();
 		id = dbTrip.getId();
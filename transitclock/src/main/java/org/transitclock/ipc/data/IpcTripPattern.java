@@ -47,6 +47,23 @@ public class IpcTripPattern implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcTripPattern() {
+		this.configRev = 0;
+		this.id = null;
+		this.headsign = null;
+		this.directionId = null;
+		this.routeId = null;
+		this.routeShortName = null;
+		this.extent = null;
+		this.shapeId = null;
+		this.stopPaths = null;
+	}
+
 	public IpcTripPattern(TripPattern dbTripPattern) {
 		this.configRev = dbTripPattern.getConfigRev();
 		this.id = dbTripPattern.getId();
@@ -296,6 +296,13 @@ public class IpcVehicle implements Serializable {
 		private static final long serialVersionUID = -4996254752417270041L;
 		private static final short currentSerializationVersion = 0;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		protected SerializationProxy() {
+		}
+
 		/*
 		 * Only to be used within this class.
 		 */
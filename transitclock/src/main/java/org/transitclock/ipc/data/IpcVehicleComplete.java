@@ -176,6 +176,14 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 		
 		private static final long serialVersionUID = 6982458672576764027L;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		@SuppressWarnings("unused")
+		private CompleteVehicleSerializationProxy() {
+		}
+
 		private CompleteVehicleSerializationProxy(IpcVehicleComplete v) {
 			super(v);
 			this.originStopId = v.originStopId;
@@ -40,6 +40,20 @@ public class IpcVehicleConfig implements Serializable {
 	
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private IpcVehicleConfig() {
+		this.id = null;
+		this.type = null;
+		this.description = null;
+		this.capacity = null;
+		this.crushCapacity = null;
+		this.nonPassengerVehicle = null;
+	}
+
 	public IpcVehicleConfig(VehicleConfig vc) {
 		this.id = vc.getId();
 		this.type = vc.getType();
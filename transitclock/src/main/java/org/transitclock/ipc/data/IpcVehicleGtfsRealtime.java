@@ -18,6 +18,8 @@
 package org.transitclock.ipc.data;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.util.Date;
 
 import org.transitclock.applications.Core;
@@ -167,6 +169,13 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 		private static final short currentSerializationVersion = 0;
 		private static final long serialVersionUID = 5804716921925188073L;
 
+		/**
+		 * For the binary IPC transport, which sets the fields after
+		 * creating the proxy.
+		 */
+		protected GtfsRealtimeVehicleSerializationProxy() {
+		}
+
 		protected GtfsRealtimeVehicleSerializationProxy(IpcVehicleGtfsRealtime v) {
 			super(v);
 			this.atStop = v.atStop;
@@ -241,6 +250,25 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 
 	} // End of class GtfsRealtimeVehicleSerializationProxy
 	
+	/*
+	 * Needed as part of using a SerializationProxy. When
+	 * IpcVehicleGtfsRealtime object is serialized the SerializationProxy will
+	 * instead be used.
+	 */
+	private Object writeReplace() {
+		return new GtfsRealtimeVehicleSerializationProxy(this);
+	}
+
+	/*
+	 * Needed as part of using a SerializationProxy. Makes sure that Vehicle
+	 * object cannot be deserialized without using proxy, thereby eliminating
+	 * possibility of such an attack as described in "Effective Java".
+	 */
+	private void readObject(ObjectInputStream stream)
+			throws InvalidObjectException {
+		throw new InvalidObjectException("Must use proxy instead");
+	}
+
 	public long getTripStartEpochTime() {
 		return tripStartEpochTime;
 	}
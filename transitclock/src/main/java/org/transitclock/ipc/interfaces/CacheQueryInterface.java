@@ -23,6 +23,7 @@ import java.util.Date;
 import java.util.List;
 
 import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.ipc.data.IpcCacheStats;
 import org.transitclock.ipc.data.IpcHistoricalAverage;
 import org.transitclock.ipc.data.IpcHistoricalAverageCacheKey;
 import org.transitclock.ipc.data.IpcHoldingTimeCacheKey;
@@ -118,5 +119,13 @@ public interface CacheQueryInterface extends Remote {
 	 * @throws RemoteException
 	 */	
 	public  Double getKalmanErrorValue(String tripId, Integer stopPathIndex) throws RemoteException;
+	
+	/**
+	 * Returns the size, hit rate and number of evictions of each of the data
+	 * caches.
+	 * @return
+	 * @throws RemoteException
+	 */
+	public List<IpcCacheStats> getCacheStats() throws RemoteException;
 
 }
@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import org.transitclock.db.structs.Location;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
 
 /**
@@ -125,4 +126,23 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+	
+	/**
+	 * Returns the already serialized GTFS-realtime TripUpdates feed, which the
+	 * server maintains incrementally as predictions are generated. Much
+	 * cheaper than getting all predictions and creating the feed from them.
+	 * 
+	 * @param sinceVersion
+	 *            Version of the feed that the client already has, or 0 if
+	 *            none. If it is still the current version then no feed bytes
+	 *            are returned.
+	 * @param differential
+	 *            If true then only the trips that changed since sinceVersion
+	 *            are returned, as a DIFFERENTIAL feed. If sinceVersion is too
+	 *            old then the full dataset is returned instead.
+	 * @return The feed along with its version
+	 * @throws RemoteException
+	 */
+	public IpcGtfsRtFeed getTripUpdatesFeed(long sinceVersion,
+			boolean differential) throws RemoteException;
 }
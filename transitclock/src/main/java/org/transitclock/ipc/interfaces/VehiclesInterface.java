@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitclock.ipc.data.IpcActiveBlock;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.ipc.data.IpcVehicle;
 import org.transitclock.ipc.data.IpcVehicleComplete;
 import org.transitclock.ipc.data.IpcVehicleConfig;
@@ -118,6 +119,25 @@ public interface VehiclesInterface extends Remote {
 	public Collection<IpcVehicleGtfsRealtime> getGtfsRealtime()
 			throws RemoteException;
 
+	/**
+	 * Gets from server the GTFS-realtime VehiclePositions feed, already
+	 * serialized. The server creates a new version of the feed whenever the
+	 * vehicles change, but at a bounded rate.
+	 * 
+	 * @param sinceVersion
+	 *            The version of the feed that the caller already has, or 0 if
+	 *            none. If it is still the current version then the returned
+	 *            feed doesn't contain any bytes.
+	 * @param gzip
+	 *            If true then the feed bytes are gzip compressed, if the
+	 *            server is configured to keep a compressed copy. See
+	 *            IpcGtfsRtFeed.isGzipped().
+	 * @return The feed along with its version
+	 * @throws RemoteException
+	 */
+	public IpcGtfsRtFeed getVehiclePositionsFeed(long sinceVersion,
+			boolean gzip) throws RemoteException;
+
 	/**
 	 * Gets from server IpcVehicle info for specified vehicle.
 	 * 
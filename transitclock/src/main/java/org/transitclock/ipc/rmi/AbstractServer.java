@@ -27,6 +27,7 @@ import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.configData.AgencyConfig;
+import org.transitclock.ipc.binary.BinaryIpcServer;
 import org.transitclock.logging.Markers;
 import org.transitclock.utils.Timer;
 
@@ -159,6 +160,10 @@ public abstract class AbstractServer {
 			// Bind the stub to the RMI registry so that it can be accessed by
 			// name by the client.
 			bindName = getBindName(agencyId, objectName);
+
+			// Also make the object available via the binary IPC transport
+			// if it is enabled
+			BinaryIpcServer.registerIfEnabled(bindName, remoteThis);
 			
 			// Bind the stub to the RMI registry in a loop so that even if 
 			// rmiregistry is restarted the stub will quickly get bound to it.
@@ -32,6 +32,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
+import org.transitclock.configData.RmiConfig;
+import org.transitclock.ipc.binary.BinaryIpcInvocationHandler;
 import org.transitclock.ipc.rmi.Hello;
 import org.transitclock.utils.Time;
 
@@ -39,6 +41,9 @@ import org.transitclock.utils.Time;
  * For clients to access RMI based method calls for a remote object simply need
  * to call something like: Hello hello = ClientFactory.getInstance(agencyId,
  * Hello.class);
+ * <p>
+ * If transitclock.ipc.transport is set to "binary" then the binary IPC
+ * transport is used instead of RMI.
  * 
  * @author SkiBu Smith
  *
@@ -83,6 +88,11 @@ public class ClientFactory<T extends Remote> {
 	 */
 	public static <T extends Remote> T getInstance(String agencyId,
 			Class<T> clazz) {
+		// If configured to use the binary IPC transport instead of RMI then
+		// use it. It uses the same remote interfaces.
+		if ("binary".equals(RmiConfig.ipcTransport()))
+			return BinaryIpcInvocationHandler.getInstance(agencyId, clazz);
+
 		// Set RMI timeout if need to
 		enableRmiTimeout();
 
@@ -27,8 +27,12 @@ import org.transitclock.core.dataCache.TripDataHistoryCache;
 import org.transitclock.core.dataCache.TripKey;
 import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
 import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.spi.DataCache;
+import org.transitclock.core.dataCache.spi.DataCacheFactory;
+import org.transitclock.core.dataCache.spi.DataCacheStats;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.ipc.data.IpcCacheStats;
 import org.transitclock.ipc.data.IpcHistoricalAverage;
 import org.transitclock.ipc.data.IpcHistoricalAverageCacheKey;
 import org.transitclock.ipc.data.IpcHoldingTimeCacheKey;
@@ -108,6 +112,15 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 	@Override
 	public Integer entriesInCache(String cacheName) throws RemoteException {
 
+		// The stop arrival/departure cache is no longer held in Ehcache
+		if (StopArrivalDepartureCache.cacheByStop.equals(cacheName))
+			return StopArrivalDepartureCache.getInstance().getSize();
+
+		DataCache<?, ?> dataCache = DataCacheFactory.getCache(cacheName);
+		if (dataCache != null)
+			return dataCache.size();
+
+		// Caches that still use Ehcache directly
 		CacheManager cm = CacheManager.getInstance();
 		Cache cache = cm.getCache(cacheName);
 		if (cache != null)
@@ -125,6 +138,16 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 		return new IpcHistoricalAverage(average);
 	}
 
+	/**
+	 * Adds the trip history, if there is one, to the result. The history is an
+	 * immutable snapshot so it is copied rather than sorted in place.
+	 */
+	private static void addTripHistory(List<ArrivalDeparture> result, TripKey tripKey) {
+		List<ArrivalDeparture> history = TripDataHistoryCache.getInstance().getTripHistory(tripKey);
+		if (history != null)
+			result.addAll(history);
+	}
+
 	@Override
 	public List<IpcArrivalDeparture> getTripArrivalDepartures(String tripId, LocalDate localDate, Integer starttime)
 			throws RemoteException {
@@ -137,7 +160,7 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 				Date date = Date.from(localDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
 				TripKey tripKey = new TripKey(tripId, date, starttime);
 
-				result = TripDataHistoryCache.getInstance().getTripHistory(tripKey);
+				addTripHistory(result, tripKey);
 			}
 			else if(tripId!=null && localDate!=null && starttime==null)
 			{
@@ -146,7 +169,7 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 				{
 					if(key.getTripId().equals(tripId) && date.compareTo(key.getTripStartDate())==0)
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						addTripHistory(result, key);
 					}										
 				}
 			}else if(tripId!=null && localDate==null && starttime==null)
@@ -155,7 +178,7 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 				{
 					if(key.getTripId().equals(tripId))
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						addTripHistory(result, key);
 					}										
 				}
 			}
@@ -166,7 +189,7 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 				{
 					if(date.compareTo(key.getTripStartDate())==0)
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						addTripHistory(result, key);
 					}										
 				}
 			}
@@ -231,10 +254,26 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 		return ipcResultList;		
 	}
 
+	@Override
+	public List<IpcCacheStats> getCacheStats() throws RemoteException {
+		List<IpcCacheStats> ipcResultList = new ArrayList<IpcCacheStats>();
+		
+		for(DataCacheStats stats:DataCacheFactory.getStats())
+		{
+			ipcResultList.add(new IpcCacheStats(stats));
+		}
+		return ipcResultList;
+	}
+
 	@Override
 	public List<IpcHistoricalAverageCacheKey> getFrequencyBasedHistoricalAverageCacheKeys() throws RemoteException {
-		// TODO Auto-generated method stub
-		FrequencyBasedHistoricalAverageCache.getInstance();
-		return null;
+		List<StopPathCacheKey> keys = FrequencyBasedHistoricalAverageCache.getInstance().getKeys();
+		List<IpcHistoricalAverageCacheKey> ipcResultList = new ArrayList<IpcHistoricalAverageCacheKey>();
+				
+		for(StopPathCacheKey key:keys)
+		{
+			ipcResultList.add(new IpcHistoricalAverageCacheKey(key));
+		}
+		return ipcResultList;
 	}
 }
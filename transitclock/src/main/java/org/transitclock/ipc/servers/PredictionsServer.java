@@ -26,9 +26,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
 import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.TripUpdatesFeedCache;
 import org.transitclock.db.structs.Location;
 import org.transitclock.gtfs.StopsByLoc;
 import org.transitclock.gtfs.StopsByLoc.StopInfo;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitclock.ipc.interfaces.PredictionsInterface;
 import org.transitclock.ipc.rmi.AbstractServer;
@@ -130,6 +132,16 @@ public class PredictionsServer
 				maxSystemTimeForPrediction);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitclock.ipc.interfaces.PredictionsInterface#getTripUpdatesFeed(long, boolean)
+	 */
+	@Override
+	public IpcGtfsRtFeed getTripUpdatesFeed(long sinceVersion,
+			boolean differential) {
+		return TripUpdatesFeedCache.getInstance().getFeed(sinceVersion,
+				differential);
+	}
+
 	// If stops are relatively close then should order routes based on route
 	// order instead of distance.
 	private static double DISTANCE_AT_WHICH_ROUTES_GROUPED = 80.0;
@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.core.BlocksInfo;
 import org.transitclock.core.dataCache.VehicleDataCache;
+import org.transitclock.core.dataCache.VehiclePositionsFeedCache;
 import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Route;
@@ -39,6 +40,7 @@ import org.transitclock.db.structs.Trip;
 import org.transitclock.db.structs.VehicleConfig;
 import org.transitclock.ipc.data.IpcActiveBlock;
 import org.transitclock.ipc.data.IpcBlock;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.ipc.data.IpcVehicle;
 import org.transitclock.ipc.data.IpcVehicleComplete;
 import org.transitclock.ipc.data.IpcVehicleConfig;
@@ -131,6 +133,16 @@ public class VehiclesServer extends AbstractServer
 			throws RemoteException {
 		return getGtfsRealtimeSerializableCollection(vehicleDataCache.getVehicles());
 	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.ipc.interfaces.VehiclesInterface#getVehiclePositionsFeed(long, boolean)
+	 */
+	@Override
+	public IpcGtfsRtFeed getVehiclePositionsFeed(long sinceVersion,
+			boolean gzip) throws RemoteException {
+		return VehiclePositionsFeedCache.getInstance().getFeed(sinceVersion,
+				gzip);
+	}
 	
 
 	/* (non-Javadoc)
@@ -73,6 +73,7 @@ public class AgencyMonitor {
 		monitors.add(new PredictabilityMonitor(cloudwatchService, emailSender, agencyId));
         monitors.add(new DatabaseQueueMonitor(cloudwatchService, emailSender, agencyId));
         monitors.add(new ActiveBlocksMonitor(cloudwatchService, emailSender, agencyId));
+        monitors.add(new TimeoutHandlerMonitor(cloudwatchService, emailSender, agencyId));
         if(enableSystemMonitoring != null && enableSystemMonitoring.equalsIgnoreCase("true")){
             monitors.add(new SystemMemoryMonitor(emailSender, agencyId));
             monitors.add(new SystemCpuMonitor(emailSender, agencyId));
@@ -50,6 +50,11 @@ public class DatabaseQueueMonitor extends MonitorBase {
 					+ "value is now below maxQueueFraction - "
 					+ "maxQueueFractionGap ");
 	
+	// For determining the rate at which the spill files are being drained
+	// between calls to triggered()
+	private long lastSpillDrainedCount = -1;
+	private long lastSpillDrainedTime;
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -79,10 +84,13 @@ public class DatabaseQueueMonitor extends MonitorBase {
 				+ " while max allowed fraction=" 
 				+ StringUtils.twoDigitFormat(maxQueueFraction.getValue()) 
 				+ ", and items in queue=" + dbLogger.queueSize()
+				+ ", items spilled to disk=" + dbLogger.spillSize()
 				+ ".",
 				dbLogger.queueLevel());
 
         cloudwatchService.saveMetric("PredictionDatabaseQueuePercentageLevel", dbLogger.queueLevel(), 1, CloudwatchService.MetricType.AVERAGE, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+        cloudwatchService.saveMetric("DatabaseSpillSize", Double.valueOf(dbLogger.spillSize()), 1, CloudwatchService.MetricType.MAX, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+        cloudwatchService.saveMetric("DatabaseSpillDrainRatePerSec", spillDrainRate(dbLogger), 1, CloudwatchService.MetricType.AVERAGE, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
 		
 		// Determine the threshold for triggering. If already triggered
 		// then lower the threshold by maxQueueFractionGap in order
@@ -95,6 +103,25 @@ public class DatabaseQueueMonitor extends MonitorBase {
 		return dbLogger.queueLevel() > threshold; 
 	}
 
+	/**
+	 * Returns the number of objects per second that have been written to the
+	 * database from the spill files since the last time this was called.
+	 * 
+	 * @param dbLogger
+	 * @return drain rate, 0.0 if first time called
+	 */
+	private double spillDrainRate(DataDbLogger dbLogger) {
+		long now = System.currentTimeMillis();
+		long drainedCount = dbLogger.spillDrainedCount();
+		double rate = 0.0;
+		if (lastSpillDrainedCount >= 0 && now > lastSpillDrainedTime)
+			rate = (drainedCount - lastSpillDrainedCount) * 1000.0
+					/ (now - lastSpillDrainedTime);
+		lastSpillDrainedCount = drainedCount;
+		lastSpillDrainedTime = now;
+		return rate;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.transitclock.monitoring.MonitorBase#type()
 	 */
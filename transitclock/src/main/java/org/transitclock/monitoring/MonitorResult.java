@@ -34,6 +34,16 @@ public class MonitorResult implements Serializable {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For the binary IPC transport, which creates the object with
+	 * this constructor and then sets the fields.
+	 */
+	@SuppressWarnings("unused")
+	private MonitorResult() {
+		this.type = null;
+		this.message = null;
+	}
+
 	public MonitorResult(String type, String message) {
 		this.type = type;
 		this.message = message;
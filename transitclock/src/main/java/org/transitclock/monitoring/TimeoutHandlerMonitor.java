@@ -0,0 +1,95 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.monitoring;
+
+import org.transitclock.applications.Core;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.TimeoutHandlerModule;
+import org.transitclock.utils.EmailSender;
+import org.transitclock.utils.Time;
+
+/**
+ * For monitoring the vehicle timeouts of the TimeoutHandlerModule. Reports
+ * how many vehicles have a timeout set and how late the timeouts were
+ * handled, which is also part of the server status. Triggered if the
+ * timeouts are handled too late, which means that vehicles that stopped
+ * reporting are not made unpredictable in time.
+ */
+public class TimeoutHandlerMonitor extends MonitorBase {
+
+	private CloudwatchService cloudwatchService;
+
+	private static IntegerConfigValue maxExpiryLagSecs =
+			new IntegerConfigValue(
+					"transitclock.monitoring.maxTimeoutLagSecs",
+					2 * Time.SEC_PER_MIN,
+					"If the vehicle timeouts are handled more than this many "
+					+ "seconds after their deadline then timeout monitoring "
+					+ "is triggered.");
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor
+	 * 
+	 * @param cloudwatchService
+	 * @param emailSender
+	 * @param agencyId
+	 */
+	public TimeoutHandlerMonitor(CloudwatchService cloudwatchService,
+			EmailSender emailSender, String agencyId) {
+		super(emailSender, agencyId);
+		this.cloudwatchService = cloudwatchService;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.monitoring.MonitorBase#triggered()
+	 */
+	@Override
+	protected boolean triggered() {
+		Core core = Core.getInstance();
+		if (core == null)
+			return false;
+
+		TimeoutHandlerModule timeoutHandler = core.getTimeoutHandlerModule();
+		long maxLagMsec = maxExpiryLagSecs.getValue() * Time.MS_PER_SEC;
+		setMessage("Vehicle timeouts armed=" 
+				+ timeoutHandler.getNumArmedTimers()
+				+ ", max expiry lag=" + timeoutHandler.getMaxExpiryLagMsec()
+				+ " msec while max allowed lag=" + maxLagMsec + " msec.",
+				timeoutHandler.getMaxExpiryLagMsec());
+
+		cloudwatchService.saveMetric("VehicleTimeoutsArmed",
+				Double.valueOf(timeoutHandler.getNumArmedTimers()), 1,
+				CloudwatchService.MetricType.AVERAGE,
+				CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+		cloudwatchService.saveMetric("VehicleTimeoutMaxLagMsec",
+				Double.valueOf(timeoutHandler.getMaxExpiryLagMsec()), 1,
+				CloudwatchService.MetricType.MAX,
+				CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+
+		return timeoutHandler.getMaxExpiryLagMsec() > maxLagMsec;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.monitoring.MonitorBase#type()
+	 */
+	@Override
+	protected String type() {
+		return "Vehicle Timeouts";
+	}
+}
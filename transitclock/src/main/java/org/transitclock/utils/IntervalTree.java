@@ -0,0 +1,166 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable index of intervals with integer bounds, such as the start and
+ * end times of trips or blocks in seconds into the day, for quickly finding
+ * the intervals that are active at a time.
+ * <p>
+ * The intervals are kept in an array sorted by their low bound, which is
+ * treated as an implicit balanced binary tree where the root of a range of
+ * the array is its middle element. Each element also stores the maximum high
+ * bound of its subtree so that subtrees that can't contain a match are
+ * skipped. A query therefore takes O(log n) plus the time to go through the
+ * matches instead of having to look at every interval. Since it is immutable
+ * it can be used by any number of threads without locking.
+ * 
+ * @param <T>
+ *            the type of the values associated with the intervals
+ */
+public class IntervalTree<T> {
+
+	// The values, lows and highs, sorted by low
+	private final Object[] values;
+	private final int[] lows;
+	private final int[] highs;
+
+	// The maximum high of the subtree rooted at each element
+	private final int[] maxHighs;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index. Intervals with the same low bound are kept in the
+	 * order in which they were specified.
+	 * 
+	 * @param values
+	 *            the values associated with the intervals
+	 * @param lows
+	 *            the low bounds of the intervals, one per value
+	 * @param highs
+	 *            the high bounds of the intervals, one per value
+	 */
+	public IntervalTree(List<? extends T> values, final int[] lows,
+			int[] highs) {
+		int n = values.size();
+		if (lows.length != n || highs.length != n)
+			throw new IllegalArgumentException("Need a low and a high for "
+					+ "each of the " + n + " values");
+
+		// Sort by the low bounds. Arrays.sort() for objects is stable.
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Integer.compare(lows[i1], lows[i2]);
+			}
+		});
+
+		this.values = new Object[n];
+		this.lows = new int[n];
+		this.highs = new int[n];
+		for (int i = 0; i < n; ++i) {
+			this.values[i] = values.get(order[i]);
+			this.lows[i] = lows[order[i]];
+			this.highs[i] = highs[order[i]];
+		}
+
+		this.maxHighs = new int[n];
+		computeMaxHighs(0, n);
+	}
+
+	/**
+	 * Determines maxHighs for the subtree of the elements from lo up to hi
+	 * 
+	 * @return the max high of the subtree
+	 */
+	private int computeMaxHighs(int lo, int hi) {
+		if (lo >= hi)
+			return Integer.MIN_VALUE;
+		int mid = (lo + hi) >>> 1;
+		int maxHigh = Math.max(highs[mid], Math.max(computeMaxHighs(lo, mid),
+				computeMaxHighs(mid + 1, hi)));
+		maxHighs[mid] = maxHigh;
+		return maxHigh;
+	}
+
+	/**
+	 * Finds the intervals where lowAbove &lt; low &lt; lowBelow and where
+	 * highAbove &lt; high. To find the intervals that contain a time, not
+	 * including their bounds, use find(Integer.MIN_VALUE, time, time, results).
+	 * The matching values are added to results in order of their low bound.
+	 * 
+	 * @param lowAbove
+	 *            low bound must be greater than this
+	 * @param lowBelow
+	 *            low bound must be less than this
+	 * @param highAbove
+	 *            high bound must be greater than this
+	 * @param results
+	 *            the values of the matching intervals are added to this
+	 */
+	public void find(int lowAbove, int lowBelow, int highAbove,
+			Collection<? super T> results) {
+		if ((long) lowBelow - lowAbove <= 1)
+			return;
+		find(0, values.length, lowAbove, lowBelow, highAbove, results);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void find(int lo, int hi, int lowAbove, int lowBelow,
+			int highAbove, Collection<? super T> results) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (maxHighs[mid] <= highAbove)
+				return;
+
+			// The left subtree has the lower lows, so only look at it if
+			// some of them can be above lowAbove
+			if (lows[mid] > lowAbove) {
+				find(lo, mid, lowAbove, lowBelow, highAbove, results);
+
+				if (lows[mid] >= lowBelow)
+					return;
+				if (highs[mid] > highAbove)
+					results.add((T) values[mid]);
+			}
+
+			// Continue with the right subtree
+			lo = mid + 1;
+		}
+	}
+
+	/**
+	 * @return number of intervals
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	@Override
+	public String toString() {
+		return "IntervalTree [size=" + values.length + "]";
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * For converting between epoch times and times into the service day, such
+ * as seconds into the day, for a time zone. Replaces using a shared Calendar,
+ * which has to be synchronized and was therefore a point of contention for
+ * all the threads processing AVL reports.
+ * <p>
+ * The epoch time of the start of each day, and any daylight savings time
+ * transition during the day, are determined for a window of days around the
+ * times being converted. The conversions are then just arithmetic on those
+ * immutable tables, so they can be done by any number of threads without
+ * locking and without creating any objects. The window is centered on the
+ * current time and is only moved once the current time is no longer within
+ * it. Times outside of the window, such as when processing old data, are
+ * converted using a new Calendar each time instead of rebuilding the window
+ * for them. The results are the same as when using a lenient
+ * GregorianCalendar, including for the non-existent and ambiguous times of
+ * DST transitions.
+ */
+public class ServiceDayCalculator {
+
+	private final TimeZone timeZone;
+
+	// The current window of days. Replaced, never modified, so can be read
+	// without locking.
+	private volatile Days days;
+
+	// Number of days before and after the time that the window is centered on
+	private static final int WINDOW_DAYS_BEFORE = 60;
+	private static final int WINDOW_DAYS_AFTER = 60;
+
+	// For when there is no DST transition during a day
+	private static final long NO_TRANSITION = Long.MIN_VALUE;
+
+	/**
+	 * The boundaries of a range of days. Day i is the local day number
+	 * firstDay+i, where day 0 is 1/1/1970 in the time zone. The epoch times
+	 * of day i are from startEpoch[i] up to startEpoch[i+1]. There is
+	 * normally at most one DST transition per day. If there is a
+	 * DST transition then the offset from UTC is offsetBefore[i] before the
+	 * epoch time transition[i] and offsetAfter[i] starting at it.
+	 */
+	private static class Days {
+		private final long firstDay;
+		private final long[] startEpoch;
+		private final long[] transition;
+		// The local time of the transition using offsetAfter. For determining
+		// the offset to use for a local time the same way Calendar does.
+		private final long[] transitionWall;
+		private final int[] offsetBefore;
+		private final int[] offsetAfter;
+
+		private Days(long firstDay, int numDays) {
+			this.firstDay = firstDay;
+			this.startEpoch = new long[numDays + 1];
+			this.transition = new long[numDays];
+			this.transitionWall = new long[numDays];
+			this.offsetBefore = new int[numDays];
+			this.offsetAfter = new int[numDays];
+		}
+
+		private int numDays() {
+			return transition.length;
+		}
+
+		/**
+		 * Returns index of the day containing the epoch time, or -1 if not
+		 * within the window. The days before and after need to be available
+		 * too when converting local times, so the first and last two days
+		 * are treated as not being within the window.
+		 */
+		private int index(long epochTime) {
+			long guess = floorDiv(epochTime + offsetBefore[0], Time.MS_PER_DAY)
+					- firstDay;
+			if (guess < 2 || guess >= numDays() - 2)
+				return -1;
+			int i = (int) guess;
+			while (i > 0 && epochTime < startEpoch[i])
+				--i;
+			while (i < numDays() - 1 && epochTime >= startEpoch[i + 1])
+				++i;
+			return i >= 2 && i < numDays() - 2 ? i : -1;
+		}
+
+		/**
+		 * Returns the offset from UTC in msec for the epoch time of day i
+		 */
+		private int offset(int i, long epochTime) {
+			return epochTime < transition[i] ? offsetBefore[i] : offsetAfter[i];
+		}
+
+		/**
+		 * Returns the offset from UTC in msec to use for converting a local
+		 * time of local day firstDay+i, or of the day before or after, into
+		 * an epoch time.
+		 * Same as GregorianCalendar, a non-existent local time uses the
+		 * offset from before the transition and an ambiguous local time uses
+		 * the offset from after the transition.
+		 */
+		private int offsetForLocalTime(int i, long localTime) {
+			int offset = offsetBefore[i - 1];
+			for (int j = i - 1; j <= i + 1; ++j) {
+				if (localTime < transitionWall[j])
+					break;
+				offset = offsetAfter[j];
+			}
+			return offset;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param timeZone
+	 *            the time zone to do the conversions for
+	 */
+	public ServiceDayCalculator(TimeZone timeZone) {
+		this(timeZone, System.currentTimeMillis());
+	}
+
+	/**
+	 * For testing the window of days for other times than the current one
+	 * 
+	 * @param timeZone
+	 * @param windowTime
+	 *            the epoch time that the window is initially centered on
+	 */
+	ServiceDayCalculator(TimeZone timeZone, long windowTime) {
+		this.timeZone = (TimeZone) timeZone.clone();
+		this.days = createDays(windowTime);
+	}
+
+	/**
+	 * Division that rounds towards negative infinity, for times before 1970
+	 */
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0)))
+			--q;
+		return q;
+	}
+
+	/**
+	 * Determines the day boundaries for a window of days centered on the
+	 * epoch time.
+	 */
+	private Days createDays(long epochTime) {
+		int numDays = WINDOW_DAYS_BEFORE + 1 + WINDOW_DAYS_AFTER;
+		long firstDay = floorDiv(epochTime + timeZone.getOffset(epochTime),
+				Time.MS_PER_DAY) - WINDOW_DAYS_BEFORE;
+		Days d = new Days(firstDay, numDays);
+
+		// Determine the start of each day the same way Time.getStartOfDay()
+		// does, by setting the time of a Calendar to midnight. The date is
+		// determined from the day number using a UTC Calendar so that a
+		// date that was skipped by the time zone still gets an entry.
+		Calendar utcCalendar =
+				new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		Calendar calendar = new GregorianCalendar(timeZone);
+		for (int i = 0; i <= numDays; ++i) {
+			utcCalendar.setTimeInMillis((firstDay + i) * Time.MS_PER_DAY);
+			calendar.clear();
+			calendar.set(utcCalendar.get(Calendar.YEAR),
+					utcCalendar.get(Calendar.MONTH),
+					utcCalendar.get(Calendar.DAY_OF_MONTH));
+			d.startEpoch[i] = calendar.getTimeInMillis();
+		}
+
+		// Find any DST transition during each day. Done for the epoch times
+		// after the start of the day up to and including the start of the
+		// next day so that a transition at midnight, where midnight doesn't
+		// exist, belongs to the day before and is taken into account when
+		// converting the local times of the next day.
+		for (int i = 0; i < numDays; ++i) {
+			long start = d.startEpoch[i];
+			long end = d.startEpoch[i + 1];
+			int before = timeZone.getOffset(start);
+			int after = timeZone.getOffset(end);
+			d.offsetBefore[i] = before;
+			d.offsetAfter[i] = after;
+			if (before == after) {
+				d.transition[i] = NO_TRANSITION;
+				d.transitionWall[i] = NO_TRANSITION;
+				continue;
+			}
+
+			// Binary search for the first msec using the new offset
+			long lo = start;
+			long hi = end;
+			while (hi - lo > 1) {
+				long mid = lo + (hi - lo) / 2;
+				if (timeZone.getOffset(mid) == before)
+					lo = mid;
+				else
+					hi = mid;
+			}
+			d.transition[i] = hi;
+			d.transitionWall[i] = hi + after;
+		}
+		return d;
+	}
+
+	/**
+	 * Returns the days if the epoch time is within the window. If the
+	 * window doesn't contain the current time anymore then it is first moved
+	 * to be centered on the current time. Times far from the current time
+	 * therefore don't cause the window to be rebuilt each time.
+	 * 
+	 * @return the days, or null if the epoch time is not within the window
+	 */
+	private Days getDays(long epochTime) {
+		Days d = days;
+		if (d.index(epochTime) >= 0)
+			return d;
+
+		long now = System.currentTimeMillis();
+		if (d.index(now) >= 0)
+			return null;
+		synchronized (this) {
+			d = days;
+			if (d.index(now) < 0) {
+				d = createDays(now);
+				days = d;
+			}
+		}
+		return d.index(epochTime) >= 0 ? d : null;
+	}
+
+	/**
+	 * @return true if the epoch time is converted using the window of days
+	 *         instead of a Calendar
+	 */
+	boolean isInWindow(long epochTime) {
+		return days.index(epochTime) >= 0;
+	}
+
+	/**
+	 * For converting times that are not within the window of days
+	 */
+	private Calendar createCalendar(long epochTime) {
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.setTimeInMillis(epochTime);
+		return calendar;
+	}
+
+	/**
+	 * Converts the epoch time into number of msec into the day.
+	 * 
+	 * @param epochTime
+	 * @return msec into the day
+	 */
+	public int getMsecsIntoDay(long epochTime) {
+		Days d = getDays(epochTime);
+		if (d == null) {
+			Calendar calendar = createCalendar(epochTime);
+			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000
+					+ calendar.get(Calendar.MINUTE) * 60 * 1000
+					+ calendar.get(Calendar.SECOND) * 1000
+					+ calendar.get(Calendar.MILLISECOND);
+		}
+
+		long localTime = epochTime + d.offset(d.index(epochTime), epochTime);
+		return (int) (localTime - floorDiv(localTime, Time.MS_PER_DAY)
+				* Time.MS_PER_DAY);
+	}
+
+	/**
+	 * Converts the epoch time into number of seconds into the day.
+	 * 
+	 * @param epochTime
+	 * @return seconds into the day
+	 */
+	public int getSecondsIntoDay(long epochTime) {
+		return getMsecsIntoDay(epochTime) / Time.MS_PER_SEC;
+	}
+
+	/**
+	 * Returns the epoch time of the start of the day that contains the epoch
+	 * time.
+	 * 
+	 * @param epochTime
+	 * @return start of the day
+	 */
+	public long getStartOfDay(long epochTime) {
+		// The day is determined by the local time. Where DST ends at
+		// midnight the start of the day can therefore be after the epoch
+		// time, same as with a Calendar.
+		Days d = getDays(epochTime);
+		if (d == null)
+			return Time.getStartOfDay(new Date(epochTime), timeZone);
+
+		long localTime = epochTime + d.offset(d.index(epochTime), epochTime);
+		return d.startEpoch[(int) (floorDiv(localTime, Time.MS_PER_DAY)
+				- d.firstDay)];
+	}
+
+	/**
+	 * Returns day of the week. Value returned will be a constant from
+	 * java.util.Calendar such as Calendar.TUESDAY.
+	 * 
+	 * @param epochTime
+	 * @return day of the week
+	 */
+	public int getDayOfWeek(long epochTime) {
+		Days d = getDays(epochTime);
+		if (d == null)
+			return createCalendar(epochTime).get(Calendar.DAY_OF_WEEK);
+
+		// 1/1/1970 was a Thursday
+		long day = floorDiv(epochTime + d.offset(d.index(epochTime), epochTime),
+				Time.MS_PER_DAY);
+		return (int) (day + 4 - floorDiv(day + 4, 7) * 7) + Calendar.SUNDAY;
+	}
+
+	/**
+	 * Converts secondsIntoDay into an epoch time, the same as
+	 * Time.getEpochTime() used to do with a Calendar. The secondsIntoDay is
+	 * used as a time of day on the day of the reference time. If the result
+	 * is more than 20 hours from the reference time then it is moved by a day
+	 * so that times just before or after midnight are handled.
+	 * 
+	 * @param secondsIntoDay
+	 *            To be converted into epoch time
+	 * @param referenceTime
+	 *            The approximate epoch time so that can handle times before
+	 *            and after midnight.
+	 * @return epoch time
+	 */
+	public long getEpochTime(int secondsIntoDay, long referenceTime) {
+		long epochTime;
+		Days d = getDays(referenceTime);
+		if (d == null) {
+			// Only the hours within a day are used
+			Calendar calendar = createCalendar(referenceTime);
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.set(Calendar.SECOND, secondsIntoDay % 60);
+			calendar.set(Calendar.MINUTE, secondsIntoDay / 60 % 60);
+			calendar.set(Calendar.HOUR_OF_DAY, secondsIntoDay / 3600 % 24);
+			epochTime = calendar.getTimeInMillis();
+		} else {
+			long day = floorDiv(referenceTime
+					+ d.offset(d.index(referenceTime), referenceTime),
+					Time.MS_PER_DAY);
+
+			// Only the hours within a day are used, same as setting the
+			// HOUR_OF_DAY field of a Calendar
+			long localTime = day * Time.MS_PER_DAY
+					+ (secondsIntoDay % Time.SEC_PER_DAY)
+					* (long) Time.MS_PER_SEC;
+			epochTime = localTime - d.offsetForLocalTime(
+					(int) (floorDiv(localTime, Time.MS_PER_DAY) - d.firstDay),
+					localTime);
+		}
+
+		// Need to make sure that didn't have a problem around midnight.
+		// For example, a vehicle is supposed to depart a layover at
+		// 00:05:00 right after midnight but the AVL time might be for
+		// 23:57:13, which is actually for the previous day. Therefore if the
+		// resulting epoch time is too far away then adjust the epoch time by
+		// plus or minus day. Note: originally used 12 hours instead of 20
+		// hours but that caused problems when trying to determine if a block
+		// is active because it might have started more than 12 hours ago.
+		if (epochTime > referenceTime + 20 * Time.MS_PER_HOUR) {
+			// subtract a day
+			epochTime -= Time.MS_PER_DAY;
+		} else if (epochTime < referenceTime - 20 * Time.MS_PER_HOUR) {
+			// add a day
+			epochTime += Time.MS_PER_DAY;
+		}
+		return epochTime;
+	}
+
+	/**
+	 * @return the time zone that the conversions are for
+	 */
+	public TimeZone getTimeZone() {
+		return (TimeZone) timeZone.clone();
+	}
+}
@@ -131,6 +131,10 @@ public class Time {
 	// Have a shared calendar so don't have to keep creating one
 	private Calendar calendar;
 	
+	// For the frequently used conversions such as getSecondsIntoDay() so
+	// that they don't need to synchronize on the shared calendar
+	private final ServiceDayCalculator serviceDayCalculator;
+	
 	/******************* Methods ******************/
 	
 	public Time(DbConfig dbConfig) {
@@ -139,7 +143,8 @@ public class Time {
 		this.calendar =
 				agency != null ? new GregorianCalendar(agency.getTimeZone())
 						: new GregorianCalendar();
-
+		this.serviceDayCalculator =
+				new ServiceDayCalculator(calendar.getTimeZone());
 	}
 	
 	/**
@@ -154,11 +159,15 @@ public class Time {
 	 */
 	public Time(String timeZoneStr) {
 		// If no time zone string specified then use local timezone
-		if (timeZoneStr == null)
+		if (timeZoneStr == null) {
+			this.serviceDayCalculator =
+					new ServiceDayCalculator(TimeZone.getDefault());
 			return;
+		}
 		
 		TimeZone timeZone = TimeZone.getTimeZone(timeZoneStr);
 		this.calendar = new GregorianCalendar(timeZone);
+		this.serviceDayCalculator = new ServiceDayCalculator(timeZone);
 		
 		readableDateFormat24MsecForTimeZone.setCalendar(this.calendar);
 		readableTimeFormatForTimeZone.setCalendar(this.calendar);
@@ -172,15 +181,9 @@ public class Time {
 	 * @return seconds into the day
 	 */
 	public int getSecondsIntoDay(long epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTimeInMillis(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
-					calendar.get(Calendar.MINUTE) * 60          +
-					calendar.get(Calendar.SECOND);
-		}
+		// Uses the precomputed day boundaries so that don't need to
+		// synchronize on the calendar
+		return serviceDayCalculator.getSecondsIntoDay(epochTime);
 	}
 	
 	/**
@@ -213,16 +216,9 @@ public class Time {
 	 * @return msec into the day
 	 */
 	public int getMsecsIntoDay(Date epochTime) {
-		// Since setting and then getting time and this method might be called
-		// by multiple threads need to synchronize.
-		synchronized (calendar) {
-			// Get seconds into day
-			calendar.setTime(epochTime);
-			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000 +
-					calendar.get(Calendar.MINUTE) * 60 * 1000          +
-					calendar.get(Calendar.SECOND) * 1000               +
-					calendar.get(Calendar.MILLISECOND);
-		}
+		// Uses the precomputed day boundaries so that don't need to
+		// synchronize on the calendar
+		return serviceDayCalculator.getMsecsIntoDay(epochTime.getTime());
 	}
 	
 	/**
@@ -283,56 +279,7 @@ public class Time {
 	 * @return epoch time
 	 */
 	public long getEpochTime(int secondsIntoDay, Date referenceDate) {
-		// Need to sync the calendar since reusing it.
-		synchronized (calendar) {
-			// Determine seconds, minutes, and hours
-			int seconds = secondsIntoDay % 60;
-			int minutesIntoDay = secondsIntoDay / 60;
-			int minutes = minutesIntoDay % 60;
-			int hoursIntoDay = minutesIntoDay / 60;
-			int hours = hoursIntoDay % 24;
-			
-			// Set the calendar to use the reference time so that get the
-			// proper date.
-			calendar.setTime(referenceDate);
-			
-			// Set the seconds, minutes, and hours so that the calendar has
-			// the proper time. Need to also set milliseconds because otherwise
-			// would use milliseconds from the referenceDate.
-			calendar.set(Calendar.MILLISECOND, 0);
-			calendar.set(Calendar.SECOND, seconds);
-			calendar.set(Calendar.MINUTE, minutes);
-			calendar.set(Calendar.HOUR_OF_DAY, hours);
-			
-			// Get the epoch time
-			long epochTime = calendar.getTimeInMillis();
-			
-			// Need to make sure that didn't have a problem around midnight. 
-			// For example, a vehicle is supposed to depart a layover at 
-			// 00:05:00 right after midnight but the AVL time might be for
-			// 23:57:13, which is actually for the previous day. If would
-			// simply set the hours, minutes and seconds then would wrongly
-			// get an epoch time for the previous day. Could have the same
-			// problem if the AVL time is right after midnight but the 
-			// secondsIntoDay is just before midnight. Therefore if the 
-			// resulting epoch time is too far away then adjust the epoch
-			// time by plus or minus day. Note: originally used 12 hours
-			// instead of 20 hours but that caused problems when trying to 
-			// determine if a block is active because it might have started
-			// more than 12 hours ago. By using 20 hours we are much more likely
-			// to get the correct day because will only correct if really far 
-			// off.
-			if (epochTime > referenceDate.getTime() + 20 * MS_PER_HOUR) {
-				// subtract a day
-				epochTime -= MS_PER_DAY;
-			} else if (epochTime < referenceDate.getTime() - 20 * MS_PER_HOUR) {
-				// add a day
-				epochTime += MS_PER_DAY;
-			}
-			
-			// Get the results
-			return epochTime;
-		}
+		return getEpochTime(secondsIntoDay, referenceDate.getTime());
 	}
 	
 	/**
@@ -346,7 +293,16 @@ public class Time {
 	 * @return epoch time
 	 */
 	public long getEpochTime(int secondsIntoDay, long referenceTime) {
-		return getEpochTime(secondsIntoDay, new Date(referenceTime));
+		return serviceDayCalculator.getEpochTime(secondsIntoDay,
+				referenceTime);
+	}
+	
+	/**
+	 * @return the ServiceDayCalculator for the timezone of this Time object,
+	 *         for doing conversions without synchronization
+	 */
+	public ServiceDayCalculator getServiceDayCalculator() {
+		return serviceDayCalculator;
 	}
 	
 	/**
@@ -0,0 +1,312 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A hashed timer wheel for a deadline per key, such as for when a vehicle
+ * should have reported its position again. The wheel is an array of slots
+ * that each cover tickMsec. A timer is queued in the slot of its deadline and
+ * advance() only looks at the slots that have been passed, so only the
+ * timers that are actually due are visited instead of every key.
+ * <p>
+ * When a deadline is pushed back, the usual case, setting it is just a
+ * write of the new deadline since the timer is already queued. The timer is
+ * not moved. Instead, when its slot is reached and the deadline turns out to
+ * be later, it is requeued in the slot of the new deadline. Timers with a
+ * deadline more than a revolution of the wheel away are requeued the same
+ * way. When a deadline is moved earlier the timer is also queued in the
+ * earlier slot and the entry in the later slot is then ignored.
+ * <p>
+ * Queuing a timer takes a read lock, so timers can be queued concurrently,
+ * and advance() takes the write lock while it takes the timers out of a
+ * slot. So a timer is never added to a slot that advance() has already
+ * emptied, where it would wait for a full revolution.
+ * <p>
+ * A timer that is done, because the Handler returned NO_DEADLINE, is
+ * removed so that the keys don't accumulate.
+ * <p>
+ * Time is whatever the caller uses for the deadlines and for now, such as
+ * the AVL time so that playback works. advance() must only be called by a
+ * single thread.
+ *
+ * @param <K>
+ *            the key type
+ */
+public class TimerWheel<K> {
+
+	/**
+	 * Returned by a Handler to not reschedule the timer
+	 */
+	public static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	private final long tickMsec;
+
+	private final ConcurrentLinkedQueue<Node<K>>[] slots;
+
+	private final ConcurrentMap<K, Entry<K>> entries =
+			new ConcurrentHashMap<K, Entry<K>>();
+
+	private final AtomicInteger numArmed = new AtomicInteger();
+
+	// Read lock for adding to a slot, write lock for emptying one
+	private final ReadWriteLock slotsLock = new ReentrantReadWriteLock();
+
+	// Last tick whose slot has been emptied by advance(), or -1 if
+	// advance() not called yet. Only changed with the write lock held.
+	private volatile long lastProcessedTick = -1;
+
+	// Only written by advance()
+	private volatile long maxExpiryLagMsec = 0;
+
+	/**
+	 * Called by advance() for each timer that is due.
+	 */
+	public interface Handler<K> {
+		/**
+		 * @param key
+		 * @param deadline
+		 *            deadline of the timer
+		 * @param now
+		 *            time passed to advance()
+		 * @return new deadline for the timer, or NO_DEADLINE if the timer is
+		 *         done
+		 */
+		long expired(K key, long deadline, long now);
+	}
+
+	// For Entry.queuedTick when not queued
+	private static final long NOT_QUEUED = -1;
+
+	// For Entry.deadline once the entry has been removed from entries
+	private static final long REMOVED = Long.MIN_VALUE;
+
+	private static class Entry<K> {
+		private final K key;
+		private final AtomicLong deadline = new AtomicLong();
+		// Tick of the slot the timer is queued in, or NOT_QUEUED. The timer
+		// might also be in other slots but only this one counts.
+		private final AtomicLong queuedTick = new AtomicLong(NOT_QUEUED);
+
+		private Entry(K key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * What is actually in a slot. Stale if the tick is no longer the
+	 * queuedTick of the entry.
+	 */
+	private static class Node<K> {
+		private final Entry<K> entry;
+		private final long tick;
+
+		private Node(Entry<K> entry, long tick) {
+			this.entry = entry;
+			this.tick = tick;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param tickMsec
+	 *            time covered by each slot
+	 * @param numSlots
+	 *            number of slots. Best if a revolution, tickMsec * numSlots,
+	 *            is longer than the usual time to a deadline.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimerWheel(long tickMsec, int numSlots) {
+		this.tickMsec = tickMsec;
+		this.slots = new ConcurrentLinkedQueue[numSlots];
+		for (int i = 0; i < numSlots; ++i)
+			slots[i] = new ConcurrentLinkedQueue<Node<K>>();
+	}
+
+	/**
+	 * Sets the deadline of the timer for the key, replacing any deadline
+	 * already set. Lock free.
+	 *
+	 * @param key
+	 * @param deadline
+	 */
+	public void schedule(K key, long deadline) {
+		while (true) {
+			Entry<K> entry = entries.get(key);
+			if (entry == null) {
+				Entry<K> newEntry = new Entry<K>(key);
+				entry = entries.putIfAbsent(key, newEntry);
+				if (entry == null)
+					entry = newEntry;
+			}
+			long oldDeadline = entry.deadline.get();
+			if (oldDeadline == REMOVED) {
+				// advance() is removing the entry. Use a new one.
+				entries.remove(key, entry);
+				continue;
+			}
+			if (entry.deadline.compareAndSet(oldDeadline, deadline)) {
+				enqueue(entry);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues the entry in the slot for its deadline unless it is already
+	 * queued in that slot or an earlier one. A deadline in a slot that has
+	 * already been emptied goes in the next slot so that it doesn't have to
+	 * wait for a full revolution.
+	 */
+	private void enqueue(Entry<K> entry) {
+		// Already queued in time, as usual when the deadline is pushed back
+		long queuedTick = entry.queuedTick.get();
+		if (queuedTick != NOT_QUEUED
+				&& queuedTick <= entry.deadline.get() / tickMsec)
+			return;
+
+		slotsLock.readLock().lock();
+		try {
+			while (true) {
+				queuedTick = entry.queuedTick.get();
+				// advance() can't empty the slot while the read lock is held
+				long tick = Math.max(entry.deadline.get() / tickMsec,
+						lastProcessedTick + 1);
+				if (queuedTick != NOT_QUEUED && queuedTick <= tick)
+					return;
+				if (entry.queuedTick.compareAndSet(queuedTick, tick)) {
+					if (queuedTick == NOT_QUEUED)
+						numArmed.incrementAndGet();
+					addToSlot(entry, tick);
+					return;
+				}
+			}
+		} finally {
+			slotsLock.readLock().unlock();
+		}
+	}
+
+	private void addToSlot(Entry<K> entry, long tick) {
+		slots[(int) (tick % slots.length)].add(new Node<K>(entry, tick));
+	}
+
+	/**
+	 * Processes the slots for the ticks that have passed, calling the
+	 * handler for each timer whose deadline is before now.
+	 *
+	 * @param now
+	 * @param handler
+	 * @return number of timers that expired
+	 */
+	public int advance(long now, Handler<K> handler) {
+		// Only ticks that have completely passed so that every deadline in
+		// the slot, for this revolution, is before now
+		long lastTick = now / tickMsec - 1;
+		long firstTick = Math.max(lastProcessedTick + 1,
+				lastTick - slots.length + 1);
+		int numExpired = 0;
+		long maxLag = 0;
+		List<Node<K>> due = new ArrayList<Node<K>>();
+		for (long tick = firstTick; tick <= lastTick; ++tick) {
+			ConcurrentLinkedQueue<Node<K>> slot =
+					slots[(int) (tick % slots.length)];
+			due.clear();
+			slotsLock.writeLock().lock();
+			try {
+				Node<K> node;
+				while ((node = slot.poll()) != null)
+					due.add(node);
+				lastProcessedTick = tick;
+			} finally {
+				slotsLock.writeLock().unlock();
+			}
+
+			for (Node<K> dueNode : due) {
+				Entry<K> dueEntry = dueNode.entry;
+				// Ignore if the timer was since queued in an earlier slot
+				if (dueEntry.queuedTick.get() != dueNode.tick)
+					continue;
+
+				long deadline = dueEntry.deadline.get();
+				if (deadline >= now) {
+					// Deadline was pushed back or is for a later revolution
+					long newTick = deadline / tickMsec;
+					if (dueEntry.queuedTick.compareAndSet(dueNode.tick, newTick))
+						addToSlot(dueEntry, newTick);
+					continue;
+				}
+
+				// Deadlines can only be moved to slots after the one being
+				// processed so the timer is still queued in this one
+				if (!dueEntry.queuedTick.compareAndSet(dueNode.tick, NOT_QUEUED))
+					continue;
+				numArmed.decrementAndGet();
+				++numExpired;
+				maxLag = Math.max(maxLag, now - deadline);
+
+				long newDeadline = handler.expired(dueEntry.key, deadline, now);
+				// Unless the deadline was changed in the meantime
+				if (newDeadline == NO_DEADLINE) {
+					if (dueEntry.deadline.compareAndSet(deadline, REMOVED)) {
+						entries.remove(dueEntry.key, dueEntry);
+						continue;
+					}
+				} else {
+					dueEntry.deadline.compareAndSet(deadline, newDeadline);
+				}
+				enqueue(dueEntry);
+			}
+		}
+		if (lastTick >= firstTick)
+			maxExpiryLagMsec = maxLag;
+		return numExpired;
+	}
+
+	/**
+	 * @return number of timers that are waiting for their deadline
+	 */
+	public int getNumArmed() {
+		return numArmed.get();
+	}
+
+	/**
+	 * @return number of keys that have a timer, armed or being handled
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the largest time between the deadline of a timer and when it
+	 *         was handled, for the last call to advance() that processed any
+	 *         slots
+	 */
+	public long getMaxExpiryLagMsec() {
+		return maxExpiryLagMsec;
+	}
+}
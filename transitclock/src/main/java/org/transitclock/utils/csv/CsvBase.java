@@ -57,6 +57,22 @@ public class CsvBase {
 		this.fileName = fileName;
 	}
 		
+	/**
+	 * Constructor for when creating CSV object from a CSV file that is read
+	 * in using FastCsvParser.
+	 * 
+	 * @param record
+	 * @param supplementalFile
+	 * @param fileName
+	 *            for logging errors
+	 */
+	protected CsvBase(FastCsvRecord record, boolean supplementalFile,
+			String fileName) {
+		this.lineNumber = (int) record.getRecordNumber();
+		this.supplementalFileSoSomeRequiredItemsCanBeMissing = supplementalFile;
+		this.fileName = fileName;
+	}
+		
 	/**
 	 * For when creating a new object by combining in supplemental object with a
 	 * regular object or when generating additional information that is to be
@@ -275,4 +291,207 @@ public class CsvBase {
 		}
 	}
 
+	/**
+	 * Same as getRequiredValue() but for a record read in using
+	 * FastCsvParser.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return The value, or null if it was not defined
+	 */
+	protected String getRequiredValue(FastCsvRecord record, int column,
+			String name) {
+		return hasRequiredValue(record, column, name) ? 
+				record.getInternedValue(column) : null;
+	}
+	
+	/**
+	 * Same as getRequiredUnlessSupplementalValue() but for a record read in
+	 * using FastCsvParser.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return The value, or null if it was not defined
+	 */
+	protected String getRequiredUnlessSupplementalValue(FastCsvRecord record,
+			int column, String name) {
+		return hasRequiredUnlessSupplementalValue(record, column, name) ? 
+				record.getInternedValue(column) : null;
+	}
+	
+	/**
+	 * Same as getOptionalValue() but for a record read in using
+	 * FastCsvParser.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return The value, or null if it was not defined
+	 */
+	protected String getOptionalValue(FastCsvRecord record, int column,
+			String name) {
+		return hasOptionalValue(record, column, name) ? 
+				record.getInternedValue(column) : null;
+	}
+	
+	/**
+	 * Same as getOptionalBooleanValue() but for a record read in using
+	 * FastCsvParser.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return true or false if column set in CSV file. Otherwise null.
+	 */
+	protected Boolean getOptionalBooleanValue(FastCsvRecord record, 
+			int column, String name) {
+		return hasOptionalValue(record, column, name) ? 
+				record.getBoolean(column) : null;
+	}
+	
+	/**
+	 * Same as getOptionalDoubleValue() but for a record read in using
+	 * FastCsvParser.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return The optional Double value or null if it is not set or could not
+	 *         be parsed.
+	 */
+	protected Double getOptionalDoubleValue(FastCsvRecord record, int column,
+			String name) {
+		if (!hasOptionalValue(record, column, name))
+			return null;
+		
+		try {
+			return record.getDouble(column);
+		} catch (NumberFormatException e) {
+			logger.error("NumberFormatException when parsing double \"{}\"", 
+					record.get(column).trim());
+			return null;
+		}
+	}
+	
+	/**
+	 * For when a numeric value is parsed directly from a FastCsvRecord.
+	 * Determines whether a value that is required, even if reading in a
+	 * supplemental file, is set. If the data is missing an error is logged.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return true if the value is set
+	 */
+	protected boolean hasRequiredValue(FastCsvRecord record, int column,
+			String name) {
+		boolean required = true;
+		return hasValue(record, column, name, required);
+	}
+	
+	/**
+	 * For when a numeric value is parsed directly from a FastCsvRecord.
+	 * Determines whether a value that is required unless reading in a
+	 * supplemental file is set. If the data is missing and not a
+	 * supplemental file then an error is logged.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return true if the value is set
+	 */
+	protected boolean hasRequiredUnlessSupplementalValue(
+			FastCsvRecord record, int column, String name) {
+		boolean required = !supplementalFileSoSomeRequiredItemsCanBeMissing;
+		return hasValue(record, column, name, required);
+	}
+	
+	/**
+	 * For when a numeric value is parsed directly from a FastCsvRecord.
+	 * Determines whether an optional value is set.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @return true if the value is set
+	 */
+	protected boolean hasOptionalValue(FastCsvRecord record, int column,
+			String name) {
+		boolean required = false;
+		return hasValue(record, column, name, required);
+	}
+	
+	/**
+	 * Same as getValue() but only determines whether the value is set, with
+	 * the same logging, so that numeric values can be parsed directly from
+	 * the FastCsvRecord without first creating a String.
+	 * 
+	 * @param record
+	 *            The data for the row in the CSV file
+	 * @param column
+	 *            The index of the column, as returned by
+	 *            FastCsvRecord.getColumn()
+	 * @param name
+	 *            The name of the column in the CSV file, for logging
+	 * @param required
+	 *            Whether this value is required. If required and the value is
+	 *            not set then an error is logged.
+	 * @return true if the value is set and not just whitespace
+	 */
+	private boolean hasValue(FastCsvRecord record, int column, String name,
+			boolean required) {
+		if (!record.isSet(column)) {
+			if (required) {
+				logger.error("Column {} not defined in file \"{}\" yet it is required", 
+						name, getFileName());	
+			} 
+			return false;
+		}
+		
+		if (record.isEmpty(column)) {
+			if (required) {
+				logger.error("For file \"{}\" line number {} for column {} value was not set " + 
+						"yet it is required", 
+						getFileName(), lineNumber, name);
+			}
+			return false;
+		}
+		
+		return true;
+	}
+
 }
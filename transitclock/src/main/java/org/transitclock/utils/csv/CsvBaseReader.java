@@ -17,22 +17,37 @@
 package org.transitclock.utils.csv;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
 /**
  * For parsing a CSV file. Does all of the hard work. This class is
@@ -60,6 +75,61 @@ public abstract class CsvBaseReader<T> {
 	// The CSV objects read from the file
 	protected List<T> gtfsObjects;
 
+	/**
+	 * For processing the CSV objects as they are read in instead of first
+	 * collecting all of them into a list. See read().
+	 */
+	public interface Handler<T> {
+		/**
+		 * Called for each object read in, in the order of the file. Not
+		 * called for records that were filtered out.
+		 * 
+		 * @param gtfsObject
+		 */
+		void handle(T gtfsObject);
+	}
+
+	/**
+	 * Implemented by readers of large files that can also create the CSV
+	 * objects from the records of FastCsvParser. Only such readers are
+	 * parsed using FastCsvParser when transitclock.csv.fastParsing is set.
+	 */
+	public interface FastRecordHandler<T> {
+		/**
+		 * Called for every record in file when the file is parsed using
+		 * FastCsvParser. Since the chunks of a large file are parsed in
+		 * parallel this method can be called concurrently by multiple
+		 * threads.
+		 * 
+		 * @param record
+		 *            The record, which is only valid during the call
+		 * @param supplemental
+		 * @return The created GTFS object, or null if object filtered out
+		 */
+		T handleRecord(FastCsvRecord record, boolean supplemental)
+				throws ParseException, NumberFormatException;
+	}
+
+	private static BooleanConfigValue fastParsing =
+			new BooleanConfigValue("transitclock.csv.fastParsing", false,
+					"Whether large CSV files, such as GTFS stop_times.txt and "
+					+ "shapes.txt, should be parsed using FastCsvParser "
+					+ "instead of using commons-csv. FastCsvParser doesn't "
+					+ "create a String for every value, and numeric values "
+					+ "and times are parsed directly. Only used for files "
+					+ "whose reader supports it.");
+	
+	private static IntegerConfigValue fastParsingThreads =
+			new IntegerConfigValue("transitclock.csv.fastParsingThreads",
+					Runtime.getRuntime().availableProcessors(),
+					"When transitclock.csv.fastParsing is true, the number "
+					+ "of threads used to parse large files in chunks. If "
+					+ "set to 1 files are parsed by a single thread.");
+	
+	// Approximate size in bytes of the chunks of a file that are parsed in
+	// parallel
+	private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+	
 	protected static final Logger logger = 
 			LoggerFactory.getLogger(CsvBaseReader.class);
 
@@ -102,39 +172,84 @@ public abstract class CsvBaseReader<T> {
 	abstract protected T handleRecord(CSVRecord record, boolean supplemental)
 		throws ParseException, NumberFormatException;
 	
+	/**
+	 * @return this reader as a FastRecordHandler, or null if it doesn't
+	 *         implement it and so can't be parsed using FastCsvParser
+	 */
+	@SuppressWarnings("unchecked")
+	private FastRecordHandler<T> getFastRecordHandler() {
+		return this instanceof FastRecordHandler ? 
+				(FastRecordHandler<T>) this : null;
+	}
+	
+	/**
+	 * Opens the file for reading, skipping the optional BOM character.
+	 * 
+	 * @return the reader
+	 * @throws IOException
+	 */
+	private Reader openReader() throws IOException {
+		// Open the file for reading. Use UTF-8 format since that will work
+		// for both regular ASCII format and UTF-8 extended format files 
+		// since UTF-8 was designed to be backwards compatible with ASCII. 
+		// This way will work for Chinese and other character sets. Use
+		// InputStreamReader so can specify that using UTF-8 format. Use
+		// BufferedReader so that can determine if first character is an
+		// optional BOM (Byte Order Mark) character used to indicate that 
+		// file is in UTF-8 format. BufferedReader allows us to read in
+		// first character and then discard if it is a BOM character or
+		// reset the reader to back to the beginning if it is not. This
+		// way the CSV parser will process the file starting with the first
+		// true character.			
+		Reader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), "UTF-8"));
+		
+		// Deal with the possible BOM character at the beginning of the file
+		in.mark(1);
+		int firstRead = in.read();
+		final int BOM_CHARACTER = 0xFEFF;
+		if (firstRead != BOM_CHARACTER)
+			in.reset();
+		
+		return in;
+	}
+	
 	/**
 	 * Parse the CSV file. Reads in the header info and then each line. Calls
-	 * the abstract handleRecord() method for each record. Adds each resulting
-	 * CSV object to the gtfsObjecgts array.
+	 * the abstract handleRecord() method for each record. Passes each
+	 * resulting CSV object to the handler.
+	 * 
+	 * @param handler
 	 */
-	private void parse() {
+	private void parse(Handler<? super T> handler) {
+		parse(handler, fastParsing.getValue(), fastParsingThreads.getValue());
+	}
+	
+	/**
+	 * Parses the CSV file, using FastCsvParser if useFastParsing is set and
+	 * the reader is a FastRecordHandler. Otherwise uses commons-csv.
+	 * 
+	 * @param handler
+	 * @param useFastParsing
+	 * @param numThreads
+	 *            number of threads for parsing a large file using
+	 *            FastCsvParser
+	 */
+	void parse(Handler<? super T> handler, boolean useFastParsing,
+			int numThreads) {
+		FastRecordHandler<T> fastRecordHandler = getFastRecordHandler();
+		if (useFastParsing && fastRecordHandler != null) {
+			parseFast(handler, fastRecordHandler, numThreads);
+			return;
+		}
+		
 		CSVRecord record = null;
 		try {
 			IntervalTimer timer = new IntervalTimer();
 			
 			logger.debug("Parsing CSV file {} ...", fileName);
 			
-			// Open the file for reading. Use UTF-8 format since that will work
-			// for both regular ASCII format and UTF-8 extended format files 
-			// since UTF-8 was designed to be backwards compatible with ASCII. 
-			// This way will work for Chinese and other character sets. Use
-			// InputStreamReader so can specify that using UTF-8 format. Use
-			// BufferedReader so that can determine if first character is an
-			// optional BOM (Byte Order Mark) character used to indicate that 
-			// file is in UTF-8 format. BufferedReader allows us to read in
-			// first character and then discard if it is a BOM character or
-			// reset the reader to back to the beginning if it is not. This
-			// way the CSV parser will process the file starting with the first
-			// true character.			
-			Reader in = new BufferedReader(new InputStreamReader(
-					new FileInputStream(fileName), "UTF-8"));
-			
-			// Deal with the possible BOM character at the beginning of the file
-			in.mark(1);
-			int firstRead = in.read();
-			final int BOM_CHARACTER = 0xFEFF;
-			if (firstRead != BOM_CHARACTER)
-				in.reset();
+			Reader in = openReader();
 			
 			// Get ready to parse the CSV file.
 			// Allow lines to be comments if they start with "-" so that can
@@ -190,9 +305,9 @@ public abstract class CsvBaseReader<T> {
 					continue;
 				}
 				
-				// Add the newly created CSV object to the object list
+				// Hand the newly created CSV object over
 				if (gtfsObject != null)
-					gtfsObjects.add(gtfsObject);		
+					handler.handle(gtfsObject);
 				
 				// Log info if it has been a while. Check only every 20,000
 				// lines to see if the 10 seconds has gone by. If so, then log
@@ -236,6 +351,255 @@ public abstract class CsvBaseReader<T> {
 		}
 	}
 	
+	/**
+	 * Parses the CSV file using FastCsvParser. If the file is large and 
+	 * transitclock.csv.fastParsingThreads is greater than 1 then the file
+	 * is split into chunks that are parsed in parallel. Either way the CSV
+	 * objects are passed to the handler in the order of the file.
+	 * 
+	 * @param handler
+	 * @param fastRecordHandler
+	 *            for creating the CSV objects from the records
+	 * @param numThreads
+	 */
+	private void parseFast(Handler<? super T> handler,
+			FastRecordHandler<T> fastRecordHandler, int numThreads) {
+		try {
+			IntervalTimer timer = new IntervalTimer();
+			
+			logger.debug("Parsing CSV file {} using fast parser ...", 
+					fileName);
+			
+			long numberRecords;
+			if (numThreads > 1 
+					&& new File(fileName).length() >= 2 * CHUNK_SIZE) {
+				numberRecords = parseChunks(handler, fastRecordHandler,
+						numThreads);
+			} else {
+				Reader in = openReader();
+				try {
+					numberRecords = parseRecords(new FastCsvParser(in), 
+							fastRecordHandler, handler);
+				} finally {
+					in.close();
+				}
+			}
+			
+			logger.info("Finished parsing {} records from file {} . Took {} msec.", 
+					numberRecords, fileName, timer.elapsedMsec());
+		} catch (FileNotFoundException e) {
+			if (required)
+				logger.error("Required CSV file {} not found.", fileName);
+			else 
+				logger.info("CSV file {} not found but OK because this file "
+						+ "not required.", fileName);
+		} catch (IOException e) {
+			logger.error("IOException occurred when reading in filename {}.", 
+					fileName, e);
+		}
+	}
+	
+	/**
+	 * Reads in the records of the parser and passes the resulting CSV
+	 * objects to the handler.
+	 * 
+	 * @param parser
+	 * @param fastRecordHandler
+	 * @param handler
+	 * @return record number of the last record
+	 * @throws IOException
+	 */
+	private long parseRecords(FastCsvParser parser,
+			FastRecordHandler<T> fastRecordHandler,
+			Handler<? super T> handler) throws IOException {
+		long numberRecords = 0;
+		FastCsvRecord record;
+		while ((record = parser.next()) != null) {
+			T gtfsObject = handleFastRecord(fastRecordHandler, record);
+			if (gtfsObject != null)
+				handler.handle(gtfsObject);
+			numberRecords = record.getRecordNumber();
+		}
+		return numberRecords;
+	}
+	
+	/**
+	 * Calls handleRecord() for a record read in by FastCsvParser, logging
+	 * any error the same way as parse() does.
+	 * 
+	 * @param fastRecordHandler
+	 * @param record
+	 * @return The created GTFS object, or null if filtered out or if there
+	 *         was an error
+	 */
+	private T handleFastRecord(FastRecordHandler<T> fastRecordHandler,
+			FastCsvRecord record) {
+		try {
+			return fastRecordHandler.handleRecord(record, supplemental);
+		} catch (ParseException e) {
+			logger.error("ParseException occurred for record {} "
+					+ "(comment lines not included when determing record #) for "
+					+ "filename {} . {}",  
+					record.getRecordNumber(), fileName, e.getMessage());
+		} catch (NumberFormatException e) {
+			logger.error("NumberFormatException occurred for record {} "
+					+ "(comment lines not included when determing record #) "
+					+ "for filename {} . {}", 
+					record.getRecordNumber(), fileName, e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * The CSV objects of a chunk of the file, plus the record number of the
+	 * last record so that the total can be logged
+	 */
+	private static class ParsedChunk<T> {
+		private final List<T> gtfsObjects = new ArrayList<T>();
+		private long lastRecordNumber;
+	}
+	
+	/**
+	 * Splits the file into chunks and parses them in parallel. The number of
+	 * chunks being parsed or waiting to be handed to the handler is limited
+	 * so that only part of the file is in memory at once.
+	 * 
+	 * @param handler
+	 * @param fastRecordHandler
+	 * @param numThreads
+	 * @return record number of the last record
+	 * @throws IOException
+	 */
+	private long parseChunks(Handler<? super T> handler,
+			FastRecordHandler<T> fastRecordHandler, int numThreads)
+			throws IOException {
+		List<FastCsvParser.Chunk> chunks = 
+				FastCsvParser.findChunks(fileName, CHUNK_SIZE);
+		logger.debug("Parsing {} chunks of file {} using {} threads", 
+				chunks.size(), fileName, numThreads);
+		
+		// The first chunk contains the header, which is needed for the
+		// other chunks, so read it in right away
+		FastCsvParser firstParser = new FastCsvParser(readChunk(chunks.get(0)));
+		Map<String, Integer> header = firstParser.getHeader();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+				new NamedThreadFactory("csvParser"));
+		try {
+			Deque<Future<ParsedChunk<T>>> inProgress = 
+					new ArrayDeque<Future<ParsedChunk<T>>>();
+			long numberRecords = 0;
+			int nextChunk = 0;
+			while (nextChunk < chunks.size() || !inProgress.isEmpty()) {
+				while (nextChunk < chunks.size() 
+						&& inProgress.size() < 2 * numThreads) {
+					inProgress.add(executor.submit(nextChunk == 0 ? 
+							new ChunkParser(firstParser, fastRecordHandler) : 
+							new ChunkParser(chunks.get(nextChunk), header,
+									fastRecordHandler)));
+					++nextChunk;
+				}
+				
+				// Hand over the results of the oldest chunk, in order
+				ParsedChunk<T> parsedChunk = getParsedChunk(inProgress.poll());
+				for (T gtfsObject : parsedChunk.gtfsObjects)
+					handler.handle(gtfsObject);
+				if (parsedChunk.lastRecordNumber > 0)
+					numberRecords = parsedChunk.lastRecordNumber;
+			}
+			return numberRecords;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * For parsing a chunk of the file in a separate thread
+	 */
+	private class ChunkParser implements Callable<ParsedChunk<T>> {
+		private final FastCsvParser.Chunk chunk;
+		private final Map<String, Integer> header;
+		private final FastCsvParser parser;
+		private final FastRecordHandler<T> fastRecordHandler;
+		
+		private ChunkParser(FastCsvParser parser,
+				FastRecordHandler<T> fastRecordHandler) {
+			this.chunk = null;
+			this.header = null;
+			this.parser = parser;
+			this.fastRecordHandler = fastRecordHandler;
+		}
+		
+		private ChunkParser(FastCsvParser.Chunk chunk, 
+				Map<String, Integer> header,
+				FastRecordHandler<T> fastRecordHandler) {
+			this.chunk = chunk;
+			this.header = header;
+			this.parser = null;
+			this.fastRecordHandler = fastRecordHandler;
+		}
+		
+		@Override
+		public ParsedChunk<T> call() throws IOException {
+			FastCsvParser chunkParser = parser != null ? parser : 
+				new FastCsvParser(readChunk(chunk), header, 
+						chunk.firstRecordNumber);
+			final ParsedChunk<T> parsedChunk = new ParsedChunk<T>();
+			parsedChunk.lastRecordNumber = parseRecords(chunkParser, 
+					fastRecordHandler, new Handler<T>() {
+						@Override
+						public void handle(T gtfsObject) {
+							parsedChunk.gtfsObjects.add(gtfsObject);
+						}
+					});
+			return parsedChunk;
+		}
+	}
+	
+	/**
+	 * Waits for a chunk to be parsed
+	 * 
+	 * @param future
+	 * @return the parsed chunk
+	 * @throws IOException
+	 *             if reading the chunk failed or if interrupted
+	 */
+	private static <T> ParsedChunk<T> getParsedChunk(
+			Future<ParsedChunk<T>> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted parsing chunk");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * Reads in the bytes of a chunk of the file
+	 * 
+	 * @param chunk
+	 * @return reader for the characters of the chunk
+	 * @throws IOException
+	 */
+	private Reader readChunk(FastCsvParser.Chunk chunk) throws IOException {
+		byte[] bytes = new byte[(int) (chunk.endOffset - chunk.startOffset)];
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			file.seek(chunk.startOffset);
+			file.readFully(bytes);
+		} finally {
+			file.close();
+		}
+		return new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8");
+	}
+	
 	/**
 	 * The way one gets the list of CSV objects. Uses default size for creating
 	 * ArrayList of 100.
@@ -258,11 +622,29 @@ public abstract class CsvBaseReader<T> {
 	public List<T> get(int initialSize) {
 		gtfsObjects = new ArrayList<T>(initialSize);
 		
-		parse();
+		parse(new Handler<T>() {
+			@Override
+			public void handle(T gtfsObject) {
+				gtfsObjects.add(gtfsObject);
+			}
+		});
 		
 		return gtfsObjects;
 	}
 
+	/**
+	 * Reads the file, handing each CSV object over as soon as it has been
+	 * read in. For large files, such as stop_times.txt, where the caller
+	 * restructures the data anyways so that a list of all of the objects
+	 * would only be needed temporarily.
+	 * 
+	 * @param handler
+	 *            Called for each CSV object
+	 */
+	public void read(Handler<? super T> handler) {
+		parse(handler);
+	}
+
 	
 	/**
 	 * @return the file name of the file being processed
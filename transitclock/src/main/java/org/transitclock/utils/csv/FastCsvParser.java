@@ -0,0 +1,482 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.utils.csv;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CSV parser for large files, such as GTFS stop_times.txt and shapes.txt,
+ * that reads the data into a character buffer and then only determines
+ * where each field starts and ends. The values are then obtained from the
+ * resulting FastCsvRecord without creating a String for every field.
+ * <p>
+ * Handles the same format as the CSVFormat.DEFAULT.withHeader()
+ * .withCommentMarker('-') format used by CsvBaseReader: the first record is
+ * the header, fields can be quoted with escaped "" quotes, blank lines are
+ * ignored, and lines starting with '-' are comments. Record numbers are the
+ * same as for CSVRecord.
+ * <p>
+ * A file can also be split into chunks on record boundaries via
+ * findChunks() so that the chunks can be parsed in parallel, each by its own
+ * parser.
+ */
+public class FastCsvParser {
+
+	private final Reader in;
+
+	private char[] buf = new char[64 * 1024];
+
+	// Position of next character to be parsed and end of the valid data
+	private int pos;
+	private int limit;
+
+	private boolean eof;
+
+	private final FastCsvRecord record;
+
+	// Cache of interned values so that repeated values don't require a
+	// new String to be created. Direct mapped, so a value simply replaces
+	// whatever value had the same slot.
+	private final String[] internCache = new String[INTERN_CACHE_SIZE];
+	private static final int INTERN_CACHE_SIZE = 16 * 1024;
+
+	private static final char COMMENT_MARKER = '-';
+
+	/**
+	 * A part of a file that starts at the beginning of a record
+	 */
+	static class Chunk {
+		final long startOffset;
+		final long endOffset;
+		final long firstRecordNumber;
+
+		private Chunk(long startOffset, long endOffset, 
+				long firstRecordNumber) {
+			this.startOffset = startOffset;
+			this.endOffset = endOffset;
+			this.firstRecordNumber = firstRecordNumber;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * For parsing a whole file. Reads in the header, which is the first
+	 * record.
+	 * 
+	 * @param in
+	 *            The data, with any BOM character already removed
+	 * @throws IOException
+	 */
+	public FastCsvParser(Reader in) throws IOException {
+		this.in = in;
+		this.record = new FastCsvRecord(this);
+		this.record.header = readHeader();
+	}
+
+	/**
+	 * For parsing a chunk of a file that doesn't contain the header
+	 * 
+	 * @param in
+	 *            The data of the chunk
+	 * @param header
+	 *            The header as read in by the parser for the first chunk
+	 * @param firstRecordNumber
+	 *            Number of the first record of the chunk
+	 */
+	FastCsvParser(Reader in, Map<String, Integer> header,
+			long firstRecordNumber) {
+		this.in = in;
+		this.record = new FastCsvRecord(this);
+		this.record.header = header;
+		this.record.recordNumber = firstRecordNumber - 1;
+	}
+
+	/**
+	 * Reads in the first record as the header
+	 * 
+	 * @return map of column names to column indexes. Empty if the file is
+	 *         empty.
+	 * @throws IOException
+	 */
+	private Map<String, Integer> readHeader() throws IOException {
+		Map<String, Integer> header = new HashMap<String, Integer>();
+		if (readRecord()) {
+			for (int column = 0; column < record.numFields; ++column) {
+				String name = record.get(column);
+				if (header.put(name, column) != null)
+					throw new IOException("The header contains duplicate "
+							+ "name \"" + name + "\"");
+			}
+		}
+		return Collections.unmodifiableMap(header);
+	}
+
+	/**
+	 * @return the map of column names to column indexes
+	 */
+	public Map<String, Integer> getHeader() {
+		return record.header;
+	}
+
+	/**
+	 * Reads in the next record. The returned record is reused for the
+	 * following records so it is only valid until next() is called again.
+	 * 
+	 * @return the record, or null if there are no more records
+	 * @throws IOException
+	 */
+	public FastCsvRecord next() throws IOException {
+		return readRecord() ? record : null;
+	}
+
+	/**
+	 * Reads the next record, skipping blank lines and comments.
+	 * 
+	 * @return false if there are no more records
+	 * @throws IOException
+	 */
+	private boolean readRecord() throws IOException {
+		while (true) {
+			if (pos >= limit && !fill())
+				return false;
+			
+			char c = buf[pos];
+			if (c == '\n' || c == '\r') {
+				// Blank line, or the \n of a \r\n
+				++pos;
+			} else if (c == COMMENT_MARKER) {
+				skipLine();
+			} else {
+				int end;
+				while ((end = parseFields(pos)) < 0) {
+					// Record not completely in buffer so read in more
+					// and parse it again
+					fill();
+				}
+				pos = end;
+				++record.recordNumber;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Skips to the end of the current line
+	 * 
+	 * @throws IOException
+	 */
+	private void skipLine() throws IOException {
+		while (true) {
+			for (; pos < limit; ++pos) {
+				char c = buf[pos];
+				if (c == '\n' || c == '\r')
+					return;
+			}
+			if (!fill())
+				return;
+		}
+	}
+
+	/**
+	 * Moves the unparsed data to the beginning of the buffer, growing the
+	 * buffer if it is full, and then reads in more data.
+	 * 
+	 * @return false if at the end of the data so no more was read in
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		int remaining = limit - pos;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, remaining);
+		} else if (remaining == buf.length) {
+			char[] newBuf = new char[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, remaining);
+			buf = newBuf;
+			record.buf = newBuf;
+		}
+		pos = 0;
+		limit = remaining;
+		
+		if (eof)
+			return false;
+		int numRead = in.read(buf, limit, buf.length - limit);
+		if (numRead < 0) {
+			eof = true;
+			return false;
+		}
+		limit += numRead;
+		return true;
+	}
+
+	/**
+	 * Determines the fields of the record that starts at the specified
+	 * position.
+	 * 
+	 * @param p
+	 *            Start of the record in the buffer
+	 * @return position after the end of the record, or -1 if the buffer
+	 *         doesn't contain the whole record and more data is available
+	 * @throws IOException
+	 *             if the quotes of a field are not valid
+	 */
+	private int parseFields(int p) throws IOException {
+		record.buf = buf;
+		int n = 0;
+		while (true) {
+			if (n == record.starts.length) {
+				record.starts = grow(record.starts);
+				record.ends = grow(record.ends);
+				boolean[] escaped = new boolean[n * 2];
+				System.arraycopy(record.escaped, 0, escaped, 0, n);
+				record.escaped = escaped;
+			}
+			
+			if (p < limit && buf[p] == '"') {
+				// Quoted field. Find the closing quote.
+				int start = ++p;
+				boolean escaped = false;
+				while (true) {
+					if (p >= limit) {
+						if (!eof)
+							return -1;
+						throw new IOException("EOF reached before quoted "
+								+ "value finished for record " 
+								+ (record.recordNumber + 1));
+					}
+					if (buf[p] == '"') {
+						if (p + 1 >= limit && !eof)
+							return -1;
+						if (p + 1 >= limit || buf[p + 1] != '"')
+							break;
+						escaped = true;
+						++p;
+					}
+					++p;
+				}
+				record.starts[n] = start;
+				record.ends[n] = p;
+				record.escaped[n] = escaped;
+				++n;
+				
+				// Only whitespace is allowed between the closing quote and
+				// the delimiter
+				++p;
+				while (true) {
+					if (p >= limit) {
+						if (!eof)
+							return -1;
+						record.numFields = n;
+						return p;
+					}
+					char c = buf[p];
+					if (c == ',') {
+						++p;
+						break;
+					}
+					if (c == '\n' || c == '\r') {
+						record.numFields = n;
+						return p + 1;
+					}
+					if (!Character.isWhitespace(c))
+						throw new IOException("Invalid character between "
+								+ "quoted value and delimiter for record " 
+								+ (record.recordNumber + 1));
+					++p;
+				}
+			} else {
+				// Simple field. Find the delimiter or end of line.
+				int start = p;
+				while (true) {
+					if (p >= limit) {
+						if (!eof)
+							return -1;
+						record.starts[n] = start;
+						record.ends[n] = p;
+						record.escaped[n] = false;
+						record.numFields = n + 1;
+						return p;
+					}
+					char c = buf[p];
+					if (c == ',' || c == '\n' || c == '\r') {
+						record.starts[n] = start;
+						record.ends[n] = p;
+						record.escaped[n] = false;
+						++n;
+						++p;
+						if (c != ',') {
+							record.numFields = n;
+							return p;
+						}
+						break;
+					}
+					++p;
+				}
+			}
+		}
+	}
+
+	private static int[] grow(int[] array) {
+		int[] newArray = new int[array.length * 2];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	/**
+	 * Returns the interned String for the characters, using the cache so
+	 * that a new String only needs to be created if the value is not the
+	 * same as the one last cached for its slot.
+	 */
+	String intern(char[] chars, int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; ++i)
+			hash = 31 * hash + chars[i];
+		int slot = (hash ^ (hash >>> 16)) & (INTERN_CACHE_SIZE - 1);
+		
+		String cached = internCache[slot];
+		if (cached != null && cached.length() == length) {
+			int i = 0;
+			while (i < length && cached.charAt(i) == chars[start + i])
+				++i;
+			if (i == length)
+				return cached;
+		}
+		
+		String value = new String(chars, start, length).intern();
+		internCache[slot] = value;
+		return value;
+	}
+
+	/**
+	 * Splits a file into chunks of about the specified size, each starting at
+	 * the beginning of a record, so that they can be parsed in parallel. The
+	 * first chunk starts at the beginning of the file, after any BOM, and
+	 * contains the header.
+	 * <p>
+	 * Since a quoted value can contain a newline the file has to be scanned
+	 * to determine where the records start. This is also how the record 
+	 * number of the first record of each chunk is determined. The scan works
+	 * on the UTF-8 bytes since the bytes of the characters that matter can't
+	 * be part of a multi-byte character, and it is much quicker than
+	 * actually parsing the file.
+	 * 
+	 * @param fileName
+	 * @param chunkSize
+	 *            Approximate size of a chunk in bytes
+	 * @return the chunks, in order
+	 * @throws IOException
+	 */
+	static List<Chunk> findChunks(String fileName, long chunkSize)
+			throws IOException {
+		final int LINE_START = 0, FIELD_START = 1, SIMPLE = 2, QUOTED = 3,
+				QUOTE_IN_QUOTED = 4, COMMENT = 5;
+		
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		InputStream in = new BufferedInputStream(
+				new FileInputStream(fileName), 64 * 1024);
+		try {
+			byte[] bytes = new byte[64 * 1024];
+			long offset = 0;
+			long chunkStart = 0;
+			long chunkFirstRecordNumber = 1;
+			long recordNumber = 0;
+			int state = LINE_START;
+			int numRead;
+			boolean firstRead = true;
+			while ((numRead = in.read(bytes)) > 0) {
+				int i = 0;
+				
+				// Skip the UTF-8 BOM
+				if (firstRead && numRead >= 3 && bytes[0] == (byte) 0xEF 
+						&& bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+					i = 3;
+					chunkStart = 3;
+				}
+				firstRead = false;
+				
+				for (; i < numRead; ++i) {
+					byte b = bytes[i];
+					switch (state) {
+					case LINE_START:
+						if (b == '\n' || b == '\r')
+							break;
+						if (b == COMMENT_MARKER) {
+							state = COMMENT;
+							break;
+						}
+						
+						// A record starts here. Start a new chunk if the
+						// current one is big enough. Not for the header
+						// since the header needs to be in the first chunk.
+						long recordStart = offset + i;
+						if (recordNumber > 0 
+								&& recordStart - chunkStart >= chunkSize) {
+							chunks.add(new Chunk(chunkStart, recordStart,
+									chunkFirstRecordNumber));
+							chunkStart = recordStart;
+							chunkFirstRecordNumber = recordNumber + 1;
+						}
+						++recordNumber;
+						state = b == '"' ? QUOTED : 
+							b == ',' ? FIELD_START : SIMPLE;
+						break;
+					case FIELD_START:
+						state = b == '"' ? QUOTED : 
+							b == ',' ? FIELD_START : 
+							b == '\n' || b == '\r' ? LINE_START : SIMPLE;
+						break;
+					case SIMPLE:
+					case COMMENT:
+						if (b == '\n' || b == '\r')
+							state = LINE_START;
+						else if (b == ',' && state == SIMPLE)
+							state = FIELD_START;
+						break;
+					case QUOTED:
+						if (b == '"')
+							state = QUOTE_IN_QUOTED;
+						break;
+					case QUOTE_IN_QUOTED:
+						// Either an escaped quote or the closing quote
+						state = b == '"' ? QUOTED : 
+							b == ',' ? FIELD_START : 
+							b == '\n' || b == '\r' ? LINE_START : SIMPLE;
+						break;
+					}
+				}
+				offset += numRead;
+			}
+			
+			if (offset > chunkStart)
+				chunks.add(new Chunk(chunkStart, offset, 
+						chunkFirstRecordNumber));
+		} finally {
+			in.close();
+		}
+		return chunks;
+	}
+}
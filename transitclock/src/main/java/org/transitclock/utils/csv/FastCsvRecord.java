@@ -0,0 +1,365 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.utils.csv;
+
+import java.util.Map;
+
+import org.transitclock.utils.Time;
+
+/**
+ * A record read in by FastCsvParser. Instead of creating a String for every
+ * field, as is done for a CSVRecord, the fields are ranges of the character
+ * buffer of the parser. Numeric values and times of day are parsed directly
+ * from the buffer and Strings are only created, and interned, when asked
+ * for.
+ * <p>
+ * The record is reused by the parser so it is only valid until the next
+ * record is read. Columns are accessed by index instead of by name so that
+ * the column names can be looked up via getColumn() just once per file.
+ */
+public final class FastCsvRecord {
+
+	private final FastCsvParser parser;
+
+	// Maps column names to column indexes. The same map is used for all
+	// records of a file.
+	Map<String, Integer> header;
+
+	// The character buffer of the parser. The start and end of each field
+	// are positions in the buffer. The surrounding quotes of a quoted field
+	// are not included.
+	char[] buf;
+	int[] starts = new int[16];
+	int[] ends = new int[16];
+
+	// Whether a quoted field contains escaped "" quotes, meaning that the
+	// field is not just a range of the buffer
+	boolean[] escaped = new boolean[16];
+
+	int numFields;
+
+	long recordNumber;
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+		1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/********************** Member Functions **************************/
+
+	FastCsvRecord(FastCsvParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * @return the map of column names to column indexes. The same map is used
+	 *         for all of the records of a file, including by the parsers for
+	 *         the other chunks when a file is parsed in parallel.
+	 */
+	public Map<String, Integer> getHeader() {
+		return header;
+	}
+
+	/**
+	 * Returns the index of the column with the specified name so that the
+	 * values can be accessed by index.
+	 * 
+	 * @param name
+	 *            The name of the column in the CSV file
+	 * @return the column index, or -1 if the column is not in the file
+	 */
+	public int getColumn(String name) {
+		Integer column = header.get(name);
+		return column != null ? column : -1;
+	}
+
+	/**
+	 * Same as CSVRecord.getRecordNumber(). The header is record 1 and
+	 * comments and blank lines are not counted.
+	 * 
+	 * @return the number of the record in the file
+	 */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * @return number of fields in the record
+	 */
+	public int size() {
+		return numFields;
+	}
+
+	/**
+	 * Same as CSVRecord.isSet().
+	 * 
+	 * @param column
+	 *            Column index, as returned by getColumn()
+	 * @return true if the column is in the file and the record has a value
+	 *         for it, even if an empty one
+	 */
+	public boolean isSet(int column) {
+		return column >= 0 && column < numFields;
+	}
+
+	/**
+	 * Returns the untrimmed value of the column, same as CSVRecord.get().
+	 * 
+	 * @param column
+	 *            Column index, as returned by getColumn()
+	 * @return the value
+	 * @throws IllegalArgumentException
+	 *             if the column is not set
+	 */
+	public String get(int column) {
+		if (!isSet(column))
+			throw new IllegalArgumentException("Column " + column 
+					+ " not set for record " + recordNumber);
+		return escaped[column] ? unescape(column) : 
+			new String(buf, starts[column], ends[column] - starts[column]);
+	}
+
+	/**
+	 * @param column
+	 *            Column index of a set column
+	 * @return true if the value only consists of whitespace
+	 */
+	public boolean isEmpty(int column) {
+		int start = trimmedStart(column);
+		return start == trimmedEnd(column, start);
+	}
+
+	/**
+	 * Returns the trimmed value of the column as an interned String, same as
+	 * the value.trim().intern() done by CsvBase. Values are cached by the
+	 * parser so that for repeated values, such as the trip ID for every stop
+	 * time, no String is created at all.
+	 * 
+	 * @param column
+	 *            Column index of a set column
+	 * @return the interned value, or null if it is empty
+	 */
+	public String getInternedValue(int column) {
+		if (escaped[column]) {
+			String value = unescape(column).trim();
+			return value.isEmpty() ? null : value.intern();
+		}
+		
+		int start = trimmedStart(column);
+		int end = trimmedEnd(column, start);
+		if (start == end)
+			return null;
+		return parser.intern(buf, start, end - start);
+	}
+
+	/**
+	 * Parses the trimmed value as an int, same as Integer.parseInt().
+	 * 
+	 * @param column
+	 *            Column index of a set column
+	 * @return the value
+	 * @throws NumberFormatException
+	 */
+	public int getInt(int column) throws NumberFormatException {
+		int start = trimmedStart(column);
+		int end = trimmedEnd(column, start);
+		
+		// Handle simple values of up to 9 digits directly. Anything else,
+		// such as an explicit sign or a possible overflow, is handled by 
+		// Integer.parseInt() so that the result, including the exception,
+		// is the same.
+		int length = end - start;
+		if (escaped[column] || length == 0 || length > 9)
+			return Integer.parseInt(getTrimmedString(column));
+		int value = 0;
+		for (int i = start; i < end; ++i) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return Integer.parseInt(getTrimmedString(column));
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the trimmed value as a double, same as Double.parseDouble().
+	 * 
+	 * @param column
+	 *            Column index of a set column
+	 * @return the value
+	 * @throws NumberFormatException
+	 */
+	public double getDouble(int column) throws NumberFormatException {
+		int start = trimmedStart(column);
+		int end = trimmedEnd(column, start);
+		if (escaped[column] || start == end)
+			return Double.parseDouble(getTrimmedString(column));
+		
+		// Handle plain decimal values, such as latitudes and distances,
+		// directly. If the digits fit into 2^53 and there are no more than
+		// 22 fractional digits then both the digits and the power of ten 
+		// are exact doubles. Since division is correctly rounded the result
+		// is then exactly what Double.parseDouble() returns. Anything else,
+		// such as exponents or too many digits, is handled by
+		// Double.parseDouble().
+		int i = start;
+		boolean negative = buf[i] == '-';
+		if (negative || buf[i] == '+')
+			++i;
+		long mantissa = 0;
+		int numDigits = 0;
+		int fractionDigits = 0;
+		boolean inFraction = false;
+		for (; i < end; ++i) {
+			char c = buf[i];
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (++numDigits > 17)
+					return Double.parseDouble(getTrimmedString(column));
+				if (inFraction)
+					++fractionDigits;
+			} else if (c == '.' && !inFraction) {
+				inFraction = true;
+			} else {
+				return Double.parseDouble(getTrimmedString(column));
+			}
+		}
+		if (numDigits == 0 || mantissa >= (1L << 53) 
+				|| fractionDigits >= POWERS_OF_TEN.length)
+			return Double.parseDouble(getTrimmedString(column));
+		
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses the trimmed value as a time of day such as HH:MM:SS or HH:MM,
+	 * same as Time.parseTimeOfDay(). Hours can be greater than 23 for trips
+	 * that go past midnight.
+	 * 
+	 * @param column
+	 *            Column index of a set column
+	 * @return seconds into the day
+	 * @throws NumberFormatException
+	 */
+	public int getTimeOfDay(int column) throws NumberFormatException {
+		int start = trimmedStart(column);
+		int end = trimmedEnd(column, start);
+		if (escaped[column] || start == end)
+			return Time.parseTimeOfDay(getTrimmedString(column));
+		
+		// Handle digits separated by one or two colons directly. Anything
+		// else is handled by Time.parseTimeOfDay() so that the result,
+		// including any exception, is the same.
+		int i = start;
+		boolean negative = buf[i] == '-';
+		if (negative)
+			++i;
+		int result = 0;
+		int numParts = 0;
+		while (i < end) {
+			int value = 0;
+			int numDigits = 0;
+			for (; i < end && buf[i] != ':'; ++i) {
+				int digit = buf[i] - '0';
+				if (digit < 0 || digit > 9 || ++numDigits > 6)
+					return Time.parseTimeOfDay(getTrimmedString(column));
+				value = value * 10 + digit;
+			}
+			if (numDigits == 0 || numParts == 3)
+				return Time.parseTimeOfDay(getTrimmedString(column));
+			result = result * 60 + value;
+			++numParts;
+			
+			// Skip the colon, but a trailing one is not a valid time
+			if (i < end && ++i == end)
+				return Time.parseTimeOfDay(getTrimmedString(column));
+		}
+		if (numParts < 2)
+			return Time.parseTimeOfDay(getTrimmedString(column));
+		
+		// HH:MM means no seconds
+		if (numParts == 2)
+			result *= 60;
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Same as CsvBase.getOptionalBooleanValue(), where "1", "t" and "true"
+	 * mean true and anything else means false.
+	 * 
+	 * @param column
+	 *            Column index of a set column
+	 * @return the trimmed value as a boolean
+	 */
+	public boolean getBoolean(int column) {
+		if (escaped[column]) {
+			String value = getTrimmedString(column);
+			return value.equals("1") || value.equals("t") 
+					|| value.equals("true");
+		}
+		
+		int start = trimmedStart(column);
+		int length = trimmedEnd(column, start) - start;
+		if (length == 1)
+			return buf[start] == '1' || buf[start] == 't';
+		return length == 4 && buf[start] == 't' && buf[start + 1] == 'r'
+				&& buf[start + 2] == 'u' && buf[start + 3] == 'e';
+	}
+
+	/**
+	 * Same as String.trim(), which removes characters up to ' '
+	 */
+	private int trimmedStart(int column) {
+		int start = starts[column];
+		int end = ends[column];
+		while (start < end && buf[start] <= ' ')
+			++start;
+		return start;
+	}
+
+	private int trimmedEnd(int column, int start) {
+		int end = ends[column];
+		while (end > start && buf[end - 1] <= ' ')
+			--end;
+		return end;
+	}
+
+	/**
+	 * For the uncommon values that are not handled directly
+	 */
+	private String getTrimmedString(int column) {
+		if (escaped[column])
+			return unescape(column).trim();
+		int start = trimmedStart(column);
+		return new String(buf, start, trimmedEnd(column, start) - start);
+	}
+
+	/**
+	 * Returns the value of a quoted field with the escaped "" quotes replaced
+	 * by single quotes
+	 */
+	private String unescape(int column) {
+		StringBuilder sb = new StringBuilder(ends[column] - starts[column]);
+		for (int i = starts[column]; i < ends[column]; ++i) {
+			sb.append(buf[i]);
+			if (buf[i] == '"')
+				++i;
+		}
+		return sb.toString();
+	}
+}
@@ -18,7 +18,8 @@
 /**
  * Classes for helping to process CSV files. Uses the package 
  * org.apache.commons.csv for reading CSV files. Writing is rather
- * simple so not using a library to do that.
+ * simple so not using a library to do that. For large files, such as
+ * GTFS stop_times.txt, FastCsvParser can be used instead.
  *
  * @author SkiBu Smith
  *
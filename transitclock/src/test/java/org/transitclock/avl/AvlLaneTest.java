@@ -0,0 +1,203 @@
+package org.transitclock.avl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * Compares the AVL reports that an AvlLane processes with the ones that the
+ * AvlQueue of the shared ThreadPoolExecutor processed, where obsolete reports
+ * were skipped when taken from the queue, and checks that the reports of a
+ * vehicle are processed one at a time and in order.
+ */
+public class AvlLaneTest extends TestCase {
+
+	/**
+	 * Records the AVL reports instead of processing them, and whether more
+	 * than one was ever processed at the same time.
+	 */
+	private static class Processed {
+		private final List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		private final AtomicInteger inProgress = new AtomicInteger();
+		private volatile boolean concurrent = false;
+
+		private synchronized int size() {
+			return avlReports.size();
+		}
+
+		private synchronized List<AvlReport> get() {
+			return new ArrayList<AvlReport>(avlReports);
+		}
+
+		private AvlClient client(AvlReport avlReport) {
+			return new AvlClient(avlReport) {
+				@Override
+				public void run() {
+					if (inProgress.incrementAndGet() > 1)
+						concurrent = true;
+					synchronized (Processed.this) {
+						avlReports.add(getAvlReport());
+					}
+					inProgress.decrementAndGet();
+				}
+			};
+		}
+	}
+
+	private static AvlReport avlReport(String vehicleId, long time) {
+		return new AvlReport(vehicleId, time, 37.3, -122.0, "test");
+	}
+
+	private static Thread start(AvlLane lane) {
+		Thread thread = new Thread(lane);
+		thread.start();
+		return thread;
+	}
+
+	private static void waitForProcessed(Processed processed, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (processed.size() < count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(count, processed.size());
+	}
+
+	private static List<String> describe(List<AvlReport> avlReports) {
+		List<String> descriptions = new ArrayList<String>();
+		for (AvlReport avlReport : avlReports)
+			descriptions.add(avlReport.getVehicleId() + "@"
+					+ avlReport.getTime());
+		Collections.sort(descriptions);
+		return descriptions;
+	}
+
+	@Test
+	public void testSameReportsAsAvlQueue() throws InterruptedException {
+		Random random = new Random(23);
+		long time = 1000000;
+		for (int round = 0; round < 50; ++round) {
+			// A backlog of reports, newer for each vehicle than the ones
+			// before
+			AvlQueue queue = new AvlQueue(1000);
+			AvlLane lane = new AvlLane(0, 1000);
+			Processed processed = new Processed();
+			Set<String> vehicleIds = new LinkedHashSet<String>();
+			int numReports = 1 + random.nextInt(100);
+			for (int i = 0; i < numReports; ++i) {
+				time += 1 + random.nextInt(1000);
+				AvlReport avlReport =
+						avlReport("vehicle" + random.nextInt(20), time);
+				vehicleIds.add(avlReport.getVehicleId());
+				assertTrue(queue.offer(new AvlClient(avlReport)));
+				assertTrue(lane.offer(processed.client(avlReport)));
+			}
+			assertEquals(vehicleIds.size(), lane.getQueueDepth());
+
+			// What the executor threads took from the queue
+			List<AvlReport> expected = new ArrayList<AvlReport>();
+			Runnable runnable;
+			while ((runnable = queue.poll(0, TimeUnit.MILLISECONDS)) != null)
+				expected.add(((AvlClient) runnable).getAvlReport());
+
+			Thread thread = start(lane);
+			waitForProcessed(processed, expected.size());
+			thread.interrupt();
+			thread.join();
+
+			List<AvlReport> actual = processed.get();
+			assertEquals(describe(expected), describe(actual));
+			// The vehicles are processed in the order they were first queued
+			List<String> actualVehicleIds = new ArrayList<String>();
+			for (AvlReport avlReport : actual)
+				actualVehicleIds.add(avlReport.getVehicleId());
+			assertEquals(new ArrayList<String>(vehicleIds), actualVehicleIds);
+			assertEquals(0, lane.getQueueDepth());
+		}
+	}
+
+	@Test
+	public void testVehicleReportsProcessedInOrder()
+			throws InterruptedException {
+		AvlLane lane = new AvlLane(0, 1000);
+		Processed processed = new Processed();
+		Thread thread = start(lane);
+
+		// Queue reports while the lane is processing them
+		Random random = new Random(24);
+		Map<String, Long> lastTimes = new HashMap<String, Long>();
+		long time = 1000000;
+		for (int i = 0; i < 20000; ++i) {
+			time += 1 + random.nextInt(1000);
+			String vehicleId = "vehicle" + random.nextInt(30);
+			assertTrue(lane.offer(processed.client(avlReport(vehicleId,
+					time))));
+			lastTimes.put(vehicleId, time);
+		}
+		// Until the latest report of every vehicle is processed
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!lastTimes.equals(getLastProcessedTimes(processed))
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		thread.interrupt();
+		thread.join();
+
+		assertFalse(processed.concurrent);
+		assertEquals(lastTimes, getLastProcessedTimes(processed));
+	}
+
+	/**
+	 * @return the time of the last report processed for each vehicle,
+	 *         checking that the times of each vehicle only increase
+	 */
+	private static Map<String, Long> getLastProcessedTimes(
+			Processed processed) {
+		Map<String, Long> processedTimes = new HashMap<String, Long>();
+		for (AvlReport avlReport : processed.get()) {
+			Long previousTime = processedTimes.get(avlReport.getVehicleId());
+			if (previousTime != null)
+				assertTrue(avlReport.toString(),
+						avlReport.getTime() > previousTime);
+			processedTimes.put(avlReport.getVehicleId(), avlReport.getTime());
+		}
+		return processedTimes;
+	}
+
+	@Test
+	public void testFullLaneOnlyRejectsNewVehicles()
+			throws InterruptedException {
+		AvlLane lane = new AvlLane(0, 3);
+		Processed processed = new Processed();
+		assertTrue(lane.offer(processed.client(avlReport("v1", 2000))));
+		assertTrue(lane.offer(processed.client(avlReport("v2", 2000))));
+		assertTrue(lane.offer(processed.client(avlReport("v3", 2000))));
+		assertFalse(lane.offer(processed.client(avlReport("v4", 2000))));
+		// Replacing the report of a queued vehicle doesn't need room
+		assertTrue(lane.offer(processed.client(avlReport("v1", 3000))));
+		// An older report doesn't replace a newer one. AvlQueue would have
+		// queued it but AvlClient would then have filtered it out.
+		assertTrue(lane.offer(processed.client(avlReport("v2", 1000))));
+		assertEquals(3, lane.getQueueDepth());
+
+		Thread thread = start(lane);
+		waitForProcessed(processed, 3);
+		thread.interrupt();
+		thread.join();
+		assertEquals(describe(Arrays.asList(avlReport("v1", 3000),
+				avlReport("v2", 2000), avlReport("v3", 2000))),
+				describe(processed.get()));
+	}
+}
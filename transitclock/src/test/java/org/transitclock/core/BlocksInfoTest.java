@@ -0,0 +1,139 @@
+package org.transitclock.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.utils.IntervalTree;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the blocks that BlocksInfo finds using the interval tree of the
+ * blocks of a service ID with calling Block.isActive() and
+ * Block.isBeforeStartTime() for every block, which is what it did before,
+ * for random block times including ones around midnight.
+ */
+public class BlocksInfoTest extends TestCase {
+
+	private static List<Block> createBlocks(Random random, int numBlocks) {
+		List<Block> blocks = new ArrayList<Block>();
+		for (int i = 0; i < numBlocks; ++i) {
+			int startTime = random.nextInt(28 * Time.SEC_PER_HOUR)
+					- Time.SEC_PER_HOUR;
+			int endTime = startTime + random.nextInt(20 * Time.SEC_PER_HOUR);
+			blocks.add(new Block(0, "block" + i, "service", startTime,
+					endTime, new ArrayList<Trip>()));
+		}
+		return blocks;
+	}
+
+	private static IntervalTree<Block> createIntervalTree(List<Block> blocks) {
+		int[] startTimes = new int[blocks.size()];
+		int[] endTimes = new int[blocks.size()];
+		for (int i = 0; i < blocks.size(); ++i) {
+			startTimes[i] = blocks.get(i).getStartTime();
+			endTimes[i] = blocks.get(i).getEndTime();
+		}
+		return new IntervalTree<Block>(blocks, startTimes, endTimes);
+	}
+
+	/**
+	 * What Block.isActive() does for a single day
+	 */
+	private static boolean isActive(Block block, int secsInDay,
+			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs) {
+		int allowableStartTime = block.getStartTime() - allowableBeforeTimeSecs;
+		int allowableEndTime = allowableAfterStartTimeSecs < 0 ?
+				block.getEndTime()
+				: block.getStartTime() + allowableAfterStartTimeSecs;
+		return secsInDay > allowableStartTime && secsInDay < allowableEndTime;
+	}
+
+	/**
+	 * The IDs sorted, since the blocks used to be in the order of the map of
+	 * the blocks of the service ID
+	 */
+	private static List<String> getIds(List<Block> blocks) {
+		List<String> ids = new ArrayList<String>();
+		for (Block block : blocks)
+			ids.add(block.getId());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	@Test
+	public void testActiveBlocksSameAsIsActive() {
+		Random random = new Random(23);
+		for (int n : new int[] {0, 1, 10, 300}) {
+			List<Block> blocks = createBlocks(random, n);
+			IntervalTree<Block> tree = createIntervalTree(blocks);
+			for (int q = 0; q < 2000; ++q) {
+				int secsInDay = random.nextInt(Time.SEC_PER_DAY);
+				boolean validToday = random.nextInt(4) != 0;
+				boolean validYesterday = random.nextBoolean();
+				boolean validTomorrow = random.nextBoolean();
+				int allowableBeforeTimeSecs = random.nextInt(3) == 0 ? 0
+						: random.nextInt(2 * Time.SEC_PER_HOUR);
+				int allowableAfterStartTimeSecs = random.nextBoolean() ? -1
+						: random.nextInt(2 * Time.SEC_PER_HOUR);
+
+				List<Block> expected = new ArrayList<Block>();
+				for (Block block : blocks) {
+					if ((validToday && isActive(block, secsInDay,
+							allowableBeforeTimeSecs,
+							allowableAfterStartTimeSecs))
+							|| (validYesterday && isActive(block,
+									secsInDay + Time.DAY_IN_SECS,
+									allowableBeforeTimeSecs,
+									allowableAfterStartTimeSecs))
+							|| (validTomorrow && isActive(block,
+									secsInDay - Time.SEC_PER_DAY,
+									allowableBeforeTimeSecs,
+									allowableAfterStartTimeSecs)))
+						expected.add(block);
+				}
+				List<Block> actual = BlocksInfo.findActiveBlocks(tree,
+						secsInDay, validToday, validYesterday, validTomorrow,
+						allowableBeforeTimeSecs, allowableAfterStartTimeSecs);
+				assertEquals("secsInDay=" + secsInDay, getIds(expected),
+						getIds(actual));
+			}
+		}
+	}
+
+	@Test
+	public void testBlocksAboutToStartSameAsIsBeforeStartTime() {
+		Random random = new Random(24);
+		for (int n : new int[] {0, 1, 10, 300}) {
+			List<Block> blocks = createBlocks(random, n);
+			IntervalTree<Block> tree = createIntervalTree(blocks);
+			for (int q = 0; q < 2000; ++q) {
+				int secsInDay = random.nextInt(Time.SEC_PER_DAY);
+				int beforeStartTimeSecs =
+						random.nextInt(3 * Time.SEC_PER_HOUR);
+
+				// What Block.isBeforeStartTime() does
+				List<Block> expected = new ArrayList<Block>();
+				for (Block block : blocks) {
+					int startTime = block.getStartTime();
+					if ((secsInDay > startTime - beforeStartTimeSecs
+							&& secsInDay < startTime)
+							|| (secsInDay > startTime + Time.SEC_PER_DAY
+									- beforeStartTimeSecs
+									&& secsInDay < startTime + Time.SEC_PER_DAY))
+						expected.add(block);
+				}
+				List<Block> actual = BlocksInfo.findBlocksAboutToStart(tree,
+						secsInDay, beforeStartTimeSecs);
+				assertEquals("secsInDay=" + secsInDay, getIds(expected),
+						getIds(actual));
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.transitclock.core.autoAssigner;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.db.structs.VectorWithHeading;
+import org.transitclock.utils.Geo;
+
+/**
+ * Compares the trip patterns that the AutoAssignCandidateIndex returns for
+ * a location with looking at every segment of the trip patterns of the
+ * active blocks, which is what the AutoBlockAssigner used to do by spatially
+ * matching every active block. Every trip pattern with a segment within the
+ * max distance must be a candidate.
+ */
+public class AutoAssignCandidateIndexTest extends TestCase {
+
+	private static <T> T create(Class<T> cls) throws Exception {
+		Constructor<T> constructor = cls.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		return constructor.newInstance();
+	}
+
+	private static void set(Object entity, Class<?> entityClass,
+			String fieldName, Object value) throws Exception {
+		Field field = entityClass.getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(entity, value);
+	}
+
+	/**
+	 * A trip pattern that wanders from the start location, with some of its
+	 * stop paths having their own max distance
+	 */
+	private static TripPattern createTripPattern(Random random, String id,
+			Location start) throws Exception {
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		Location loc = start;
+		double heading = random.nextDouble() * 2 * Math.PI;
+		for (int s = 0; s < 10; ++s) {
+			ArrayList<Location> locations = new ArrayList<Location>();
+			locations.add(loc);
+			for (int l = 0; l < 4; ++l) {
+				heading += random.nextGaussian() * 0.5;
+				double length = 20.0 + random.nextDouble() * 100.0;
+				loc = Geo.offset(loc, length * Math.cos(heading),
+						length * Math.sin(heading));
+				locations.add(loc);
+			}
+			StopPath stopPath = create(StopPath.class);
+			stopPath.setLocations(locations);
+			stopPath.onLoad(null, null);
+			if (random.nextInt(10) == 0)
+				stopPath.setMaxDistance(100.0 + random.nextDouble() * 300.0);
+			stopPaths.add(stopPath);
+		}
+		TripPattern tripPattern = create(TripPattern.class);
+		set(tripPattern, TripPattern.class, "id", id);
+		set(tripPattern, TripPattern.class, "stopPaths", stopPaths);
+		return tripPattern;
+	}
+
+	private static Trip createTrip(TripPattern tripPattern) throws Exception {
+		Trip trip = create(Trip.class);
+		set(trip, Trip.class, "tripPattern", tripPattern);
+		return trip;
+	}
+
+	/**
+	 * Whether the trip pattern has a segment close enough to the location
+	 * for SpatialMatcher to match it when auto assigning
+	 */
+	private static boolean canMatch(TripPattern tripPattern, Location loc) {
+		for (StopPath stopPath : tripPattern.getStopPaths()) {
+			double maxDistance = stopPath.getMaxDistance() != null ? stopPath
+					.getMaxDistance() : CoreConfig
+					.getMaxDistanceFromSegmentForAutoAssigning();
+			for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+				if (segment.distance(loc) < maxDistance)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private void checkSameAsEverySegment(Random random, double lat,
+			double lon) throws Exception {
+		// Trip patterns spread over a city sized area, each used by a few
+		// blocks
+		List<TripPattern> tripPatterns = new ArrayList<TripPattern>();
+		for (int i = 0; i < 40; ++i)
+			tripPatterns.add(createTripPattern(random, "tripPattern" + i,
+					new Location(lat + random.nextDouble() * 0.1,
+							lon + random.nextDouble() * 0.1)));
+		List<Block> blocks = new ArrayList<Block>();
+		for (int b = 0; b < 60; ++b) {
+			List<Trip> trips = new ArrayList<Trip>();
+			for (int t = 0; t < 3; ++t)
+				trips.add(createTrip(tripPatterns.get(random
+						.nextInt(tripPatterns.size()))));
+			blocks.add(new Block(0, "block" + b, "service", 0, 3600, trips));
+		}
+		// The trip patterns of the active blocks
+		Set<TripPattern> activeTripPatterns = new LinkedHashSet<TripPattern>();
+		for (Block block : blocks) {
+			for (Trip trip : block.getTrips())
+				activeTripPatterns.add(trip.getTripPattern());
+		}
+
+		AutoAssignCandidateIndex.Snapshot snapshot =
+				AutoAssignCandidateIndex.createSnapshot(0, blocks);
+
+		int numCandidates = 0;
+		int numCanMatch = 0;
+		for (int q = 0; q < 2000; ++q) {
+			// Locations near the segments as well as anywhere in the area
+			Location loc;
+			if (random.nextBoolean()) {
+				TripPattern tripPattern = tripPatterns.get(random
+						.nextInt(tripPatterns.size()));
+				StopPath stopPath = tripPattern.getStopPath(random
+						.nextInt(tripPattern.getStopPaths().size()));
+				List<Location> locations = stopPath.getLocations();
+				loc = Geo.offset(
+						locations.get(random.nextInt(locations.size())),
+						random.nextGaussian() * 200.0,
+						random.nextGaussian() * 200.0);
+			} else {
+				loc = new Location(lat + (random.nextDouble() * 1.2 - 0.1) * 0.1,
+						lon + (random.nextDouble() * 1.2 - 0.1) * 0.1);
+			}
+
+			Set<String> candidates = AutoAssignCandidateIndex
+					.getCandidateTripPatternIds(snapshot, loc);
+			numCandidates += candidates.size();
+			for (TripPattern tripPattern : activeTripPatterns) {
+				if (canMatch(tripPattern, loc)) {
+					++numCanMatch;
+					assertTrue(tripPattern.getId() + " " + loc,
+							candidates.contains(tripPattern.getId()));
+				}
+			}
+		}
+		// Locations near the segments do match and the index does narrow
+		// down the trip patterns
+		assertTrue(numCanMatch > 0);
+		assertTrue(numCandidates < 2000 * tripPatterns.size() / 4);
+	}
+
+	@Test
+	public void testSameAsLookingAtEverySegment() throws Exception {
+		Random random = new Random(23);
+		checkSameAsEverySegment(random, 37.3, -122.0);
+		// Far from the equator, where the longitude cells are narrower
+		checkSameAsEverySegment(random, 69.6, 18.9);
+	}
+
+	@Test
+	public void testNoBlocks() {
+		AutoAssignCandidateIndex.Snapshot snapshot = AutoAssignCandidateIndex
+				.createSnapshot(0, new ArrayList<Block>());
+		assertTrue(AutoAssignCandidateIndex.getCandidateTripPatternIds(
+				snapshot, new Location(37.3, -122.0)).isEmpty());
+	}
+}
@@ -0,0 +1,76 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * Measures the heap used to hold arrivals/departures in the
+ * ArrivalDepartureStore compared to holding the ArrivalDeparture objects
+ * themselves, as the caches did before the store. The ID strings come from
+ * small pools, as they do when they are interned, so that only the per
+ * event memory is measured.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.core.dataCache.ArrivalDepartureStoreMemory
+ * -Dexec.classpathScope=test
+ */
+public class ArrivalDepartureStoreMemory {
+
+	private static final int NUM_EVENTS = 1000000;
+
+	private static String[] pool(String prefix, int size) {
+		String[] pool = new String[size];
+		for (int i = 0; i < size; ++i)
+			pool[i] = (prefix + i).intern();
+		return pool;
+	}
+
+	private static final String[] vehicles = pool("vehicle", 300);
+	private static final String[] stops = pool("stop", 5000);
+	private static final String[] trips = pool("trip", 4000);
+
+	private static ArrivalDeparture createEvent(Random random, long startTime, int i) {
+		return TestArrivalDepartures.create(random.nextBoolean(),
+				vehicles[random.nextInt(vehicles.length)],
+				startTime + i * 80L, stops[random.nextInt(stops.length)],
+				trips[random.nextInt(trips.length)], random.nextInt(60),
+				random.nextBoolean() ? "0" : "1");
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; ++i) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long startTime = System.currentTimeMillis() - Time.MS_PER_DAY;
+
+		long before = usedMemory();
+		Random random = new Random(1);
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>(NUM_EVENTS);
+		for (int i = 0; i < NUM_EVENTS; ++i)
+			events.add(createEvent(random, startTime, i));
+		long objectBytes = usedMemory() - before;
+		System.out.println("ArrivalDeparture objects: " + objectBytes / NUM_EVENTS
+				+ " bytes per event, including the list, for " + events.size()
+				+ " events");
+		events = null;
+
+		before = usedMemory();
+		random = new Random(1);
+		ArrivalDepartureStore store = new ArrivalDepartureStore();
+		for (int i = 0; i < NUM_EVENTS; ++i)
+			store.add(createEvent(random, startTime, i));
+		long storeBytes = usedMemory() - before;
+		System.out.println("ArrivalDepartureStore: " + storeBytes / NUM_EVENTS
+				+ " bytes per event for " + store.getNumberAdded() + " events");
+	}
+}
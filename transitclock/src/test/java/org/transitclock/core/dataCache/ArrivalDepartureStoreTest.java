@@ -0,0 +1,199 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the ArrivalDepartureStore recreates the same events that were
+ * added, as the caches held them before the store, that releasing old
+ * chunks does not break the histories that refer to them, and that adding
+ * from several threads at once, which used to be serialized, stores the same
+ * events.
+ */
+public class ArrivalDepartureStoreTest extends TestCase {
+
+	private static final long TOO_OLD = 20 * Time.MS_PER_DAY;
+
+	private static List<ArrivalDeparture> createEvents(long startTime,
+			int numEvents, int seed) {
+		Random random = new Random(seed);
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>(numEvents);
+		long time = startTime;
+		for (int i = 0; i < numEvents; ++i) {
+			time += random.nextInt(1000);
+			events.add(TestArrivalDepartures.create(random.nextBoolean(),
+					"vehicle" + random.nextInt(100), time,
+					"stop" + random.nextInt(1000), "trip" + random.nextInt(500),
+					random.nextInt(40), random.nextBoolean() ? "0" : "1"));
+		}
+		return events;
+	}
+
+	@Test
+	public void testRecreatesSameEvents() {
+		long now = System.currentTimeMillis();
+		List<ArrivalDeparture> events = createEvents(now - Time.MS_PER_HOUR, 1000, 1);
+
+		// Also events with all of the optional values not set
+		events.add(ArrivalDeparture.create(-1, true, 3, "vehicle", new Date(now),
+				new Date(now), null, null, 0, null, null, null, null, null, null,
+				null, 0, null, 0, null, 0.0f));
+		events.add(ArrivalDeparture.create(-1, false, 3, "vehicle", new Date(now),
+				new Date(now - Time.MS_PER_DAY), new Date(now + Time.MS_PER_HOUR),
+				"", 7, "", "block", null, "", "", "", "", 2, new Date(now - 1),
+				5, Integer.valueOf(-1), 12.5f));
+
+		ArrivalDepartureStore store = new ArrivalDepartureStore();
+		List<Integer> ids = new ArrayList<Integer>();
+		for (ArrivalDeparture event : events)
+			ids.add(store.add(event));
+
+		for (int i = 0; i < events.size(); ++i) {
+			ArrivalDeparture expected = events.get(i);
+			ArrivalDeparture actual = store.get(ids.get(i));
+			assertEquals(expected, actual);
+			assertEquals(expected.toString(), actual.toString());
+			assertEquals(expected.getFreqStartTime(), actual.getFreqStartTime());
+			assertEquals(expected.getTime(), store.getTime(ids.get(i)));
+		}
+
+		// Adding the same event again doesn't store it twice
+		assertEquals(ids.get(0).intValue(), store.add(events.get(0)));
+		assertEquals(events.size(), store.getNumberAdded());
+	}
+
+	@Test
+	public void testRecreatedEventIsKept() {
+		List<ArrivalDeparture> events = createEvents(
+				System.currentTimeMillis() - Time.MS_PER_HOUR, 100, 6);
+		ArrivalDepartureStore store = new ArrivalDepartureStore();
+		for (ArrivalDeparture event : events)
+			store.add(event);
+
+		// Previously every read created a new object
+		for (ArrivalDeparture event : events) {
+			ArrivalDeparture first = store.get(event.getStoreId());
+			assertEquals(event, first);
+			assertSame(first, store.get(event.getStoreId()));
+			assertSame(first, store.get(store.getChunks(), event.getStoreId()));
+		}
+	}
+
+	@Test
+	public void testConcurrentAddsSameAsSerialized() throws Exception {
+		final int numThreads = 4;
+		final long now = System.currentTimeMillis();
+		final ArrivalDepartureStore store = new ArrivalDepartureStore();
+		final List<List<ArrivalDeparture>> eventsByThread =
+				new ArrayList<List<ArrivalDeparture>>();
+		// Enough events that new chunks are added while other threads add
+		for (int t = 0; t < numThreads; ++t)
+			eventsByThread.add(createEvents(now - Time.MS_PER_DAY,
+					ArrivalDepartureStore.CHUNK_SIZE, 10 + t));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final List<ArrivalDeparture> events : eventsByThread) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (ArrivalDeparture event : events)
+						store.add(event);
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (List<ArrivalDeparture> events : eventsByThread) {
+			for (ArrivalDeparture event : events) {
+				int id = event.getStoreId();
+				assertTrue(ids.add(id));
+				assertEquals(event, store.get(id));
+				assertEquals(event.toString(), store.get(id).toString());
+				assertEquals(event.getTime(), store.getTime(id));
+			}
+		}
+		assertEquals(numThreads * ArrivalDepartureStore.CHUNK_SIZE,
+				store.getNumberAdded());
+	}
+
+	@Test
+	public void testReleasesOldChunksBehindNewerOnes() {
+		long now = System.currentTimeMillis();
+		ArrivalDepartureStore store = new ArrivalDepartureStore();
+
+		// The most recent day is read in first at startup, then older days
+		List<ArrivalDeparture> recent = createEvents(
+				now - Time.MS_PER_DAY, ArrivalDepartureStore.CHUNK_SIZE, 2);
+		List<ArrivalDeparture> old = createEvents(
+				now - TOO_OLD, ArrivalDepartureStore.CHUNK_SIZE, 3);
+		for (ArrivalDeparture event : recent)
+			store.add(event);
+		for (ArrivalDeparture event : old)
+			store.add(event);
+		assertTrue(store.contains(old.get(0).getStoreId()));
+
+		// Starting a new chunk releases the old one but not the recent one
+		ArrivalDeparture next = TestArrivalDepartures.create(true, "vehicle",
+				now, "stop", "trip", 1);
+		store.add(next);
+		assertTrue(store.contains(recent.get(0).getStoreId()));
+		assertTrue(store.contains(next.getStoreId()));
+		assertFalse(store.contains(old.get(0).getStoreId()));
+		assertFalse(store.contains(old.get(old.size() - 1).getStoreId()));
+		assertNull(store.get(old.get(0).getStoreId()));
+		assertEquals(Long.MIN_VALUE, store.getTime(old.get(0).getStoreId()));
+	}
+
+	@Test
+	public void testHistoryReadableAfterRelease() {
+		long now = System.currentTimeMillis();
+		ArrivalDepartureStore store = new ArrivalDepartureStore();
+
+		List<ArrivalDeparture> old = createEvents(
+				now - TOO_OLD, ArrivalDepartureStore.CHUNK_SIZE, 4);
+		ArrivalDepartureHistory oldHistory = new ArrivalDepartureHistory(store);
+		oldHistory.addAll(old.subList(0, 100));
+		List<ArrivalDeparture> snapshot = oldHistory.snapshot();
+		for (ArrivalDeparture event : old.subList(100, old.size()))
+			store.add(event);
+
+		// Fills the next chunk so that the old one is released
+		ArrivalDepartureHistory recentHistory = new ArrivalDepartureHistory(store);
+		recentHistory.addAll(createEvents(now - Time.MS_PER_HOUR, 10, 5));
+		assertFalse(store.contains(old.get(0).getStoreId()));
+
+		// The snapshot still has the events from before the release
+		assertEquals(100, snapshot.size());
+		for (int i = 0; i < 100; ++i)
+			assertEquals(old.get(99 - i), snapshot.get(i));
+
+		// Adding to the history drops the events that were released
+		ArrivalDeparture next = TestArrivalDepartures.create(true, "vehicle",
+				now, "stop", "trip", 1);
+		oldHistory.add(next);
+		assertEquals(1, oldHistory.size());
+		assertEquals(next, oldHistory.snapshot().get(0));
+	}
+}
@@ -0,0 +1,110 @@
+package org.transitclock.core.dataCache;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+
+/**
+ * Checks that a restored checkpoint reports when it was written, so that
+ * only the later arrivals/departures are replayed into the historical
+ * averages, and that the averages are not copied while being updated.
+ */
+public class CacheCheckpointTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("checkpoint", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testRestoreReturnsWriteTime() {
+		// Not enabled or nothing written yet
+		assertEquals(0, new CacheCheckpoint("agency", null).restore());
+		CacheCheckpoint checkpoint =
+				new CacheCheckpoint("agency", directory.getPath());
+		assertEquals(0, checkpoint.restore());
+
+		StopPathCacheKey key = new StopPathCacheKey("checkpointTrip1", 3, true);
+		HistoricalAverage average = new HistoricalAverage();
+		average.update(100);
+		average.update(140);
+		ScheduleBasedHistoricalAverageCache.getInstance().putAverage(key,
+				average);
+		KalmanErrorCacheKey kalmanKey =
+				new KalmanErrorCacheKey("checkpointTrip1", 3);
+		KalmanErrorCache.getInstance().putErrorValue(kalmanKey, 12.5);
+
+		long before = System.currentTimeMillis();
+		checkpoint.write();
+		long after = System.currentTimeMillis();
+
+		// Changes after the checkpoint are undone by restoring it
+		ScheduleBasedHistoricalAverageCache.getInstance().putAverage(key,
+				new HistoricalAverage());
+		KalmanErrorCache.getInstance().putErrorValue(kalmanKey, 1.0);
+
+		long writeTime = new CacheCheckpoint("agency", directory.getPath())
+				.restore();
+		assertTrue(writeTime >= before && writeTime <= after);
+		HistoricalAverage restored =
+				ScheduleBasedHistoricalAverageCache.getInstance().getAverage(key);
+		assertEquals(2, restored.getCount());
+		assertEquals(120.0, restored.getAverage(), 1e-9);
+		assertEquals(800.0, restored.getVariance(), 1e-9);
+		assertEquals(12.5, KalmanErrorCache.getInstance()
+				.getErrorValue(kalmanKey), 0.0);
+
+		// Not for another agency
+		assertEquals(0, new CacheCheckpoint("otherAgency", directory.getPath())
+				.restore());
+	}
+
+	@Test
+	public void testWriteWaitsForAverageUpdate() throws Exception {
+		final CacheCheckpoint checkpoint =
+				new CacheCheckpoint("agency", directory.getPath());
+		StopPathCacheKey key = new StopPathCacheKey("checkpointTrip2", 5, false);
+		HistoricalAverage average = new HistoricalAverage();
+		average.update(10);
+		ScheduleBasedHistoricalAverageCache averageCache =
+				ScheduleBasedHistoricalAverageCache.getInstance();
+		averageCache.putAverage(key, average);
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				checkpoint.write();
+			}
+		};
+		// Update the average in place the way putArrivalDeparture() does,
+		// while the checkpoint is being written
+		synchronized (averageCache) {
+			writer.start();
+			writer.join(500);
+			assertTrue("write() didn't wait for the update", writer.isAlive());
+			average.update(20);
+		}
+		writer.join();
+
+		new CacheCheckpoint("agency", directory.getPath()).restore();
+		HistoricalAverage restored = averageCache.getAverage(key);
+		assertEquals(2, restored.getCount());
+		assertEquals(15.0, restored.getAverage(), 1e-9);
+	}
+}
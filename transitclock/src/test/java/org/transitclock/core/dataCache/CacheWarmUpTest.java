@@ -0,0 +1,295 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Test;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that streaming the days into the caches in small batches, in date
+ * order, gives the same stop histories and last traversals as the previous
+ * CacheWarmUp, which read each whole day into a list and added the list in
+ * one go. Also checks that reading the days with a pool of threads adds the
+ * batches to the caches in the same order as reading the days one at a time
+ * with a single thread did.
+ */
+public class CacheWarmUpTest extends TestCase {
+
+	private static final int NUM_VEHICLES = 4;
+	private static final int NUM_STOPS = 8;
+
+	// Own stop IDs since the CacheWarmUp populates the singleton caches
+	private static String stopId(int i) {
+		return "warmUpStop" + i;
+	}
+
+	/**
+	 * The arrivals/departures of a day for vehicles going back and forth
+	 * along the stops, oldest first as they are read from the database.
+	 */
+	private static List<ArrivalDeparture> createDay(long startOfDay,
+			Random random) {
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>();
+		for (int v = 0; v < NUM_VEHICLES; ++v) {
+			long time = startOfDay + 6 * Time.MS_PER_HOUR
+					+ random.nextInt(30 * Time.SEC_PER_MIN) * Time.MS_PER_SEC;
+			for (int t = 0; t < 6; ++t) {
+				String directionId = t % 2 == 0 ? "0" : "1";
+				String tripId = "warmUpTrip" + startOfDay + "_" + v + "_" + t;
+				for (int i = 0; i < NUM_STOPS; ++i) {
+					String stopId = stopId(directionId.equals("0") ?
+							i : NUM_STOPS - 1 - i);
+					if (i > 0) {
+						time += (30 + random.nextInt(200)) * Time.MS_PER_SEC;
+						events.add(TestArrivalDepartures.create(true,
+								"vehicle" + v, time, stopId, tripId, i,
+								directionId));
+					}
+					if (i < NUM_STOPS - 1) {
+						time += random.nextInt(60) * Time.MS_PER_SEC;
+						events.add(TestArrivalDepartures.create(false,
+								"vehicle" + v, time, stopId, tripId, i,
+								directionId));
+					}
+				}
+			}
+		}
+		Collections.sort(events, Collections.reverseOrder(
+				new ArrivalDepartureComparator()));
+		return events;
+	}
+
+	@Test
+	public void testBatchesSameAsWholeDays() {
+		long today = TestArrivalDepartures.startOfToday();
+		long[] days = new long[] {today - Time.MS_PER_DAY, today};
+
+		// What the previous CacheWarmUp did with each day. The events are
+		// created separately for each store since they remember their ID in
+		// the store.
+		StopArrivalDepartureCache expectedStopCache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		LastTraversalCache expectedTraversals = new LastTraversalCache();
+		for (int i = 0; i < days.length; ++i) {
+			List<ArrivalDeparture> events = createDay(days[i], new Random(i));
+			expectedStopCache.putArrivalDepartures(events);
+			expectedTraversals.putArrivalDepartures(events);
+		}
+		List<List<ArrivalDeparture>> eventsByDay =
+				new ArrayList<List<ArrivalDeparture>>();
+		for (int i = 0; i < days.length; ++i)
+			eventsByDay.add(createDay(days[i], new Random(i)));
+
+		// Streamed in batches that don't line up with the days
+		CacheWarmUp warmUp = new CacheWarmUp(false, Long.MAX_VALUE);
+		List<ArrivalDeparture> batch = new ArrayList<ArrivalDeparture>();
+		for (List<ArrivalDeparture> events : eventsByDay) {
+			for (ArrivalDeparture event : events) {
+				batch.add(event);
+				if (batch.size() == 7) {
+					warmUp.put(batch);
+					batch = new ArrayList<ArrivalDeparture>();
+				}
+			}
+		}
+		warmUp.put(batch);
+		assertEquals(eventsByDay.get(0).size() + eventsByDay.get(1).size(),
+				warmUp.getNumArrivalDepartures());
+
+		int numTraversals = 0;
+		for (long day : days) {
+			Date date = new Date(day + 12 * Time.MS_PER_HOUR);
+			for (int i = 0; i < NUM_STOPS; ++i) {
+				StopArrivalDepartureCacheKey key =
+						new StopArrivalDepartureCacheKey(stopId(i), date);
+				assertEquals(stopId(i) + " " + date,
+						expectedStopCache.getStopHistory(key),
+						StopArrivalDepartureCache.getInstance().getStopHistory(key));
+			}
+
+			for (int i = 1; i < NUM_STOPS; ++i) {
+				for (String directionId : new String[] {"0", "1", null}) {
+					for (int v = 0; v <= NUM_VEHICLES; ++v) {
+						String from = stopId(i - 1);
+						String to = stopId(i);
+						if ("1".equals(directionId)) {
+							from = stopId(i);
+							to = stopId(i - 1);
+						}
+						TravelTimeDetails expected = expectedTraversals
+								.getLastTraversal(from, to, directionId,
+										"vehicle" + v, date.getTime());
+						TravelTimeDetails actual = LastTraversalCache
+								.getInstance().getLastTraversal(from, to,
+										directionId, "vehicle" + v,
+										date.getTime());
+						String query = from + "->" + to + " " + directionId
+								+ " excluding vehicle" + v + " " + date;
+						if (expected == null) {
+							assertNull(query, actual);
+						} else {
+							assertNotNull(query, actual);
+							assertEquals(query, expected.getDeparture(),
+									actual.getDeparture());
+							assertEquals(query, expected.getArrival(),
+									actual.getArrival());
+							++numTraversals;
+						}
+					}
+				}
+			}
+		}
+		assertTrue(numTraversals > 0);
+	}
+
+	/**
+	 * Reads made up days instead of querying the database, taking a random
+	 * time for each batch so that the days finish reading out of order, and
+	 * records the batches added to the caches instead of adding them.
+	 */
+	private static class TestWarmUp extends CacheWarmUp {
+		private static final int BATCH_SIZE = 10;
+		private static final int NUM_BATCHES_BEFORE_FAILING = 6;
+
+		private final List<ArrivalDeparture> added =
+				new ArrayList<ArrivalDeparture>();
+		private final AtomicInteger numReading = new AtomicInteger();
+		private final AtomicInteger maxReading = new AtomicInteger();
+		private final int failingDaysAgo;
+
+		/**
+		 * @param failingDaysAgo
+		 *            the day, counting back from the most recent one which
+		 *            is 0, whose read fails part way through, or -1
+		 */
+		TestWarmUp(int numDays, int numThreads, int failingDaysAgo) {
+			super(false, 0, numDays, numThreads);
+			this.failingDaysAgo = failingDaysAgo;
+		}
+
+		/**
+		 * The events of the day, oldest first, the same for each warm up
+		 * since the day starts when the warm up was started
+		 */
+		static List<ArrivalDeparture> events(Day day) {
+			long startOfDay = DateUtils.truncate(day.startDate,
+					Calendar.DAY_OF_MONTH).getTime();
+			List<ArrivalDeparture> events =
+					createDay(startOfDay, new Random(startOfDay));
+			Collections.reverse(events);
+			return events;
+		}
+
+		boolean isFailing(Day day) {
+			return failingDaysAgo == Math.round((double) (System
+					.currentTimeMillis() - day.endDate.getTime())
+					/ Time.MS_PER_DAY);
+		}
+
+		@Override
+		void queryDay(Day day) throws InterruptedException {
+			int reading = numReading.incrementAndGet();
+			synchronized (maxReading) {
+				if (reading > maxReading.get())
+					maxReading.set(reading);
+			}
+			try {
+				Random random = new Random();
+				List<ArrivalDeparture> events = events(day);
+				for (int i = 0; i < events.size(); i += BATCH_SIZE) {
+					Thread.sleep(random.nextInt(3));
+					if (isFailing(day)
+							&& i == NUM_BATCHES_BEFORE_FAILING * BATCH_SIZE)
+						throw new RuntimeException("Lost connection");
+					queueBatch(day, new ArrayList<ArrivalDeparture>(
+							events.subList(i,
+									Math.min(i + BATCH_SIZE, events.size()))));
+				}
+			} finally {
+				numReading.decrementAndGet();
+			}
+		}
+
+		@Override
+		void put(List<ArrivalDeparture> arrivalDepartures) {
+			added.addAll(arrivalDepartures);
+		}
+	}
+
+	@Test
+	public void testPoolAddsDaysInDateOrder() throws Exception {
+		// What a single thread reading the days one at a time added
+		TestWarmUp sequential = new TestWarmUp(6, 1, -1);
+		sequential.start();
+		sequential.waitUntilDone();
+		assertEquals(1, sequential.maxReading.get());
+		assertEquals(6, sequential.getDaysCompleted());
+		assertFalse(sequential.added.isEmpty());
+
+		TestWarmUp pooled = new TestWarmUp(6, 4, -1);
+		pooled.start();
+		pooled.waitUntilDone();
+		assertTrue(pooled.isDone());
+		assertTrue(pooled.maxReading.get() > 1);
+		assertEquals(sequential.added, pooled.added);
+	}
+
+	@Test
+	public void testOtherDaysAddedAfterReadFails() throws Exception {
+		// Fails part way through reading the second of four days
+		TestWarmUp sequential = new TestWarmUp(4, 1, 2);
+		sequential.start();
+		sequential.waitUntilDone();
+		TestWarmUp pooled = new TestWarmUp(4, 3, 2);
+		pooled.start();
+		pooled.waitUntilDone();
+
+		assertEquals(4, pooled.getDaysCompleted());
+		assertEquals(sequential.added, pooled.added);
+
+		// Only the rest of the failing day is missing
+		TestWarmUp complete = new TestWarmUp(4, 1, -1);
+		complete.start();
+		complete.waitUntilDone();
+		assertTrue(pooled.added.size() < complete.added.size());
+		assertEquals(complete.added.get(complete.added.size() - 1),
+				pooled.added.get(pooled.added.size() - 1));
+	}
+
+	@Test
+	public void testOnlyEventsAfterCheckpointReplayed() {
+		long checkpointTime =
+				TestArrivalDepartures.startOfToday() + 8 * Time.MS_PER_HOUR;
+		CacheWarmUp warmUp = new CacheWarmUp(false, checkpointTime);
+
+		// Already in the checkpoint
+		assertFalse(warmUp.isAfterCheckpoint(TestArrivalDepartures.create(
+				false, "vehicle1", checkpointTime - 60000, "stop1", "trip1", 1)));
+		// An arrival with a time before the checkpoint but that was
+		// generated after it, by an AVL report after the checkpoint
+		assertTrue(warmUp.isAfterCheckpoint(ArrivalDeparture.create(-1, true,
+				0, "vehicle1", new Date(checkpointTime - 30000),
+				new Date(checkpointTime + 30000), null, "stop1", 2, "trip1",
+				"block1", null, "route1", "1", "service1", "0", 0, null, 1,
+				Integer.valueOf(1), 250.0f)));
+		assertTrue(warmUp.isAfterCheckpoint(TestArrivalDepartures.create(
+				true, "vehicle1", checkpointTime + 60000, "stop2", "trip1", 2)));
+
+		// Without a checkpoint everything is replayed, which is what
+		// happened before checkpoints
+		assertTrue(new CacheWarmUp(false, 0).isAfterCheckpoint(
+				TestArrivalDepartures.create(false, "vehicle1",
+						checkpointTime - Time.MS_PER_DAY, "stop1", "trip1", 1)));
+	}
+}
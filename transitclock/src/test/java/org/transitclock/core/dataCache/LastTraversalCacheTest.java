@@ -0,0 +1,215 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the LastTraversalCache returns the same last vehicle travel
+ * times as PredictionGenerator.getLastVehicleTravelTime() did when it
+ * searched the StopArrivalDepartureCache histories of the two stops. In
+ * particular that only the vehicle that most recently departed the stop is
+ * considered, so there is no last traversal while that vehicle has not yet
+ * arrived at the next stop.
+ */
+public class LastTraversalCacheTest extends TestCase {
+
+	private static final int NUM_VEHICLES = 6;
+	private static final int TRIPS_PER_VEHICLE = 8;
+
+	// Trips in direction 0 go along the main stops, or branch off after
+	// BRANCH_STOP, and trips in direction 1 come back along the main stops
+	private static final int NUM_STOPS = 10;
+	private static final int BRANCH_STOP = 4;
+
+	private static List<String> stopsForTrip(String directionId, boolean branch) {
+		List<String> stops = new ArrayList<String>();
+		for (int i = 0; i < NUM_STOPS; ++i) {
+			if (branch && i > BRANCH_STOP)
+				stops.add("branch" + i);
+			else
+				stops.add("stop" + i);
+		}
+		if (directionId.equals("1"))
+			Collections.reverse(stops);
+		return stops;
+	}
+
+	/**
+	 * Creates the arrivals and departures of all the vehicles, ordered by
+	 * time as they would be generated. Vehicles start a few minutes apart so
+	 * they often overtake each other.
+	 */
+	private static List<ArrivalDeparture> createEvents(long startOfDay, Random random) {
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>();
+		int tripNum = 0;
+		for (int v = 0; v < NUM_VEHICLES; ++v) {
+			String vehicleId = "vehicle" + v;
+			long time = startOfDay + 6 * Time.MS_PER_HOUR
+					+ random.nextInt(20 * Time.SEC_PER_MIN) * Time.MS_PER_SEC;
+			for (int t = 0; t < TRIPS_PER_VEHICLE; ++t) {
+				String directionId = t % 2 == 0 ? "0" : "1";
+				List<String> stops = stopsForTrip(directionId,
+						directionId.equals("0") && random.nextInt(3) == 0);
+				String tripId = "trip" + tripNum++;
+				for (int i = 0; i < stops.size(); ++i) {
+					if (i > 0) {
+						time += (30 + random.nextInt(270)) * Time.MS_PER_SEC;
+						events.add(TestArrivalDepartures.create(true, vehicleId,
+								time, stops.get(i), tripId, i, directionId));
+					}
+					if (i < stops.size() - 1) {
+						time += random.nextInt(60) * Time.MS_PER_SEC;
+						events.add(TestArrivalDepartures.create(false, vehicleId,
+								time, stops.get(i), tripId, i, directionId));
+					}
+				}
+				time += random.nextInt(10 * Time.SEC_PER_MIN) * Time.MS_PER_SEC;
+			}
+		}
+		Collections.sort(events, Collections.reverseOrder(new ArrivalDepartureComparator()));
+		return events;
+	}
+
+	/**
+	 * What PredictionGenerator.getLastVehicleTravelTime() used to do with
+	 * the stop histories, most recent first, for the day.
+	 */
+	private static TravelTimeDetails legacyLastVehicleTravelTime(
+			Map<String, List<ArrivalDeparture>> stopHistories, String fromStopId,
+			String toStopId, String directionId, String vehicleId) {
+		List<ArrivalDeparture> currentStopList = stopHistories.get(fromStopId);
+		List<ArrivalDeparture> nextStopList = stopHistories.get(toStopId);
+		if (currentStopList == null || nextStopList == null)
+			return null;
+
+		for (ArrivalDeparture current : currentStopList) {
+			if (current.isDeparture()
+					&& !current.getVehicleId().equals(vehicleId)
+					&& (directionId == null || directionId.equals(current.getDirectionId()))) {
+				for (ArrivalDeparture next : nextStopList) {
+					if (current.getVehicleId().equals(next.getVehicleId())
+							&& current.getTripId().equals(next.getTripId())
+							&& next.isArrival()) {
+						TravelTimeDetails travelTimeDetails =
+								new TravelTimeDetails(current, next);
+						return travelTimeDetails.getTravelTime() > 0 ? travelTimeDetails : null;
+					}
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static TravelTimeDetails lastVehicleTravelTime(LastTraversalCache cache,
+			String fromStopId, String toStopId, String directionId,
+			String vehicleId, long time) {
+		TravelTimeDetails travelTimeDetails = cache.getLastTraversal(fromStopId,
+				toStopId, directionId, vehicleId, time);
+		return travelTimeDetails != null && travelTimeDetails.getTravelTime() > 0 ?
+				travelTimeDetails : null;
+	}
+
+	@Test
+	public void testMatchesStopHistorySearch() {
+		Random random = new Random(7);
+		long startOfDay = TestArrivalDepartures.startOfToday();
+		List<ArrivalDeparture> events = createEvents(startOfDay, random);
+
+		// The segments to query
+		List<String[]> segments = new ArrayList<String[]>();
+		for (String directionId : new String[] {"0", "1"}) {
+			for (boolean branch : new boolean[] {false, true}) {
+				List<String> stops = stopsForTrip(directionId, branch);
+				for (int i = 1; i < stops.size(); ++i)
+					segments.add(new String[] {stops.get(i - 1), stops.get(i), directionId});
+			}
+		}
+
+		LastTraversalCache cache = new LastTraversalCache();
+		Map<String, List<ArrivalDeparture>> stopHistories =
+				new HashMap<String, List<ArrivalDeparture>>();
+		int numFound = 0;
+		int numNotFound = 0;
+		for (ArrivalDeparture event : events) {
+			cache.putArrivalDeparture(event);
+			List<ArrivalDeparture> history = stopHistories.get(event.getStopId());
+			if (history == null) {
+				history = new ArrayList<ArrivalDeparture>();
+				stopHistories.put(event.getStopId(), history);
+			}
+			history.add(0, event);
+
+			for (int q = 0; q < 5; ++q) {
+				String[] segment = segments.get(random.nextInt(segments.size()));
+				String directionId = random.nextInt(4) == 0 ? null : segment[2];
+				String vehicleId = "vehicle" + random.nextInt(NUM_VEHICLES + 1);
+
+				TravelTimeDetails expected = legacyLastVehicleTravelTime(stopHistories,
+						segment[0], segment[1], directionId, vehicleId);
+				TravelTimeDetails actual = lastVehicleTravelTime(cache, segment[0],
+						segment[1], directionId, vehicleId, event.getTime());
+				String query = segment[0] + "->" + segment[1] + " direction "
+						+ directionId + " excluding " + vehicleId + " at " + event;
+				if (expected == null) {
+					assertNull(query, actual);
+					++numNotFound;
+				} else {
+					assertNotNull(query, actual);
+					assertEquals(query, expected.getDeparture(), actual.getDeparture());
+					assertEquals(query, expected.getArrival(), actual.getArrival());
+					++numFound;
+				}
+			}
+		}
+
+		// Make sure that both cases were actually exercised
+		assertTrue(numFound > 1000);
+		assertTrue(numNotFound > 1000);
+	}
+
+	@Test
+	public void testNoTraversalWhileLastVehicleEnRoute() {
+		long time = TestArrivalDepartures.startOfToday() + 8 * Time.MS_PER_HOUR;
+		LastTraversalCache cache = new LastTraversalCache();
+
+		// vehicle1 completes the segment, then vehicle2 departs
+		cache.putArrivalDeparture(TestArrivalDepartures.create(false, "vehicle1",
+				time, "stop1", "trip1", 1));
+		cache.putArrivalDeparture(TestArrivalDepartures.create(true, "vehicle1",
+				time + 120000, "stop2", "trip1", 2));
+		assertNotNull(cache.getLastTraversal("stop1", "stop2", "0", "vehicle3",
+				time + 130000));
+
+		cache.putArrivalDeparture(TestArrivalDepartures.create(false, "vehicle2",
+				time + 180000, "stop1", "trip2", 1));
+		assertNull(cache.getLastTraversal("stop1", "stop2", "0", "vehicle3",
+				time + 190000));
+
+		// Excluding vehicle2 means vehicle1 is the last vehicle again
+		assertNotNull(cache.getLastTraversal("stop1", "stop2", "0", "vehicle2",
+				time + 190000));
+
+		cache.putArrivalDeparture(TestArrivalDepartures.create(true, "vehicle2",
+				time + 300000, "stop2", "trip2", 2));
+		TravelTimeDetails traversal = cache.getLastTraversal("stop1", "stop2",
+				"0", "vehicle3", time + 310000);
+		assertEquals("vehicle2", traversal.getDeparture().getVehicleId());
+		assertEquals(120000, traversal.getTravelTime());
+
+		// Not for a different day
+		assertNull(cache.getLastTraversal("stop1", "stop2", "0", "vehicle3",
+				time + Time.MS_PER_DAY));
+	}
+}
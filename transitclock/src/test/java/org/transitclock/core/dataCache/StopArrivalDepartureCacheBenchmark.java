@@ -0,0 +1,230 @@
+package org.transitclock.core.dataCache;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.db.structs.Arrival;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Departure;
+
+/**
+ * JMH benchmark comparing the day partitioned, per stop locked
+ * StopArrivalDepartureCache with the previous implementation, which held a
+ * global lock and re-sorted an Ehcache element on every put. Each operation
+ * is a batch of EVENTS_PER_THREAD puts per writer thread into a freshly
+ * created cache, measured at 1, 4 and 16 writer threads.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.core.dataCache.StopArrivalDepartureCacheBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(1)
+public class StopArrivalDepartureCacheBenchmark {
+
+	private static final int NUM_STOPS = 1000;
+
+	private static final int EVENTS_PER_THREAD = 20000;
+
+	@State(Scope.Benchmark)
+	public static class Caches {
+		StopArrivalDepartureCache current;
+		LegacyStopArrivalDepartureCache legacy;
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			current = new StopArrivalDepartureCache(new ArrivalDepartureStore());
+			legacy = new LegacyStopArrivalDepartureCache();
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			legacy.shutdown();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Events {
+		private static final AtomicInteger threadCounter = new AtomicInteger();
+
+		List<ArrivalDeparture> events;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			int threadNum = threadCounter.getAndIncrement();
+			events = createEvents("vehicle" + threadNum, threadNum);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void current1Writer(Caches caches, Events events) {
+		putAll(caches.current, events.events);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void current4Writers(Caches caches, Events events) {
+		putAll(caches.current, events.events);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void current16Writers(Caches caches, Events events) {
+		putAll(caches.current, events.events);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void legacy1Writer(Caches caches, Events events) {
+		putAll(caches.legacy, events.events);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void legacy4Writers(Caches caches, Events events) {
+		putAll(caches.legacy, events.events);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void legacy16Writers(Caches caches, Events events) {
+		putAll(caches.legacy, events.events);
+	}
+
+	private static void putAll(StopArrivalDepartureCache cache,
+			List<ArrivalDeparture> events) {
+		for (ArrivalDeparture event : events)
+			cache.putArrivalDeparture(event);
+	}
+
+	private static void putAll(LegacyStopArrivalDepartureCache cache,
+			List<ArrivalDeparture> events) {
+		for (ArrivalDeparture event : events)
+			cache.putArrivalDeparture(event);
+	}
+
+	/**
+	 * Creates events for a vehicle, mostly in time order as they would be
+	 * generated by the AVL processing, spread randomly over the stops.
+	 */
+	private static List<ArrivalDeparture> createEvents(String vehicleId,
+			int seed) throws Exception {
+		Field stopIdField = ArrivalDeparture.class.getDeclaredField("stopId");
+		stopIdField.setAccessible(true);
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, 6);
+		long time = calendar.getTimeInMillis();
+
+		Random random = new Random(seed);
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>(
+				EVENTS_PER_THREAD);
+		for (int i = 0; i < EVENTS_PER_THREAD; ++i) {
+			time += random.nextInt(2000);
+			Date date = new Date(time);
+			ArrivalDeparture event = i % 2 == 0 ?
+					new Arrival(0, vehicleId, date, date, null, 0, i, null)
+					: new Departure(0, vehicleId, date, date, null, 0, i, null);
+			stopIdField.set(event, "stop" + random.nextInt(NUM_STOPS));
+			events.add(event);
+		}
+		return events;
+	}
+
+	/**
+	 * The previous implementation of StopArrivalDepartureCache.put, kept here
+	 * so that the two can be compared.
+	 */
+	static class LegacyStopArrivalDepartureCache {
+		private final CacheManager cacheManager;
+		private final Cache cache;
+
+		LegacyStopArrivalDepartureCache() {
+			Configuration configuration = new Configuration();
+			configuration.setName("legacy" + System.nanoTime());
+			cacheManager = CacheManager.newInstance(configuration);
+			cacheManager.addCache(new Cache(new CacheConfiguration(
+					"arrivalDeparturesByStop", 200000).eternal(true)));
+			cache = cacheManager.getCache("arrivalDeparturesByStop");
+		}
+
+		void shutdown() {
+			cacheManager.shutdown();
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized StopArrivalDepartureCacheKey putArrivalDeparture(
+				ArrivalDeparture arrivalDeparture) {
+			Calendar date = Calendar.getInstance();
+			date.setTime(arrivalDeparture.getDate());
+
+			date.set(Calendar.HOUR_OF_DAY, 0);
+			date.set(Calendar.MINUTE, 0);
+			date.set(Calendar.SECOND, 0);
+			date.set(Calendar.MILLISECOND, 0);
+
+			StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(
+					arrivalDeparture.getStopId(), date.getTime());
+
+			List<ArrivalDeparture> list = null;
+
+			Element result = cache.get(key);
+
+			if (result != null && result.getObjectValue() != null) {
+				list = (List<ArrivalDeparture>) result.getObjectValue();
+				cache.remove(key);
+			} else {
+				list = new ArrayList<ArrivalDeparture>();
+			}
+
+			list.add(arrivalDeparture);
+
+			Collections.sort(list, new ArrivalDepartureComparator());
+
+			cache.put(new Element(key, Collections.synchronizedList(list)));
+
+			return key;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(StopArrivalDepartureCacheBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
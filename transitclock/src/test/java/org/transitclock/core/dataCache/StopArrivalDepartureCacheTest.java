@@ -0,0 +1,170 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the day partitioned StopArrivalDepartureCache returns the same
+ * histories as the previous implementation, which appended each event to a
+ * list for the stop and day and then stable sorted the list with the
+ * ArrivalDepartureComparator.
+ */
+public class StopArrivalDepartureCacheTest extends TestCase {
+
+	private static final int NUM_STOPS = 20;
+	private static final int NUM_EVENTS = 5000;
+
+	/**
+	 * Random events, mostly out of order and with many equal times, so that
+	 * both the binary search insert and the ordering of equal times are
+	 * exercised.
+	 */
+	private static List<ArrivalDeparture> createEvents(long startOfDay, int seed) {
+		Random random = new Random(seed);
+		List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>();
+		for (int i = 0; i < NUM_EVENTS; ++i) {
+			long time = startOfDay + 6 * Time.MS_PER_HOUR
+					+ random.nextInt(2 * Time.SEC_PER_HOUR) * Time.MS_PER_SEC;
+			events.add(TestArrivalDepartures.create(random.nextBoolean(),
+					"vehicle" + random.nextInt(10), time,
+					"stop" + random.nextInt(NUM_STOPS), "trip" + i, i % 30));
+		}
+		return events;
+	}
+
+	/**
+	 * What the previous implementation did for each put
+	 */
+	private static Map<String, List<ArrivalDeparture>> legacyHistories(
+			List<ArrivalDeparture> events) {
+		Map<String, List<ArrivalDeparture>> histories =
+				new HashMap<String, List<ArrivalDeparture>>();
+		for (ArrivalDeparture event : events) {
+			List<ArrivalDeparture> list = histories.get(event.getStopId());
+			if (list == null) {
+				list = new ArrayList<ArrivalDeparture>();
+				histories.put(event.getStopId(), list);
+			}
+			list.add(event);
+			Collections.sort(list, new ArrivalDepartureComparator());
+		}
+		return histories;
+	}
+
+	private static void assertSameHistories(
+			Map<String, List<ArrivalDeparture>> expected,
+			StopArrivalDepartureCache cache, long startOfDay) {
+		for (Map.Entry<String, List<ArrivalDeparture>> entry : expected.entrySet()) {
+			// Any time in the day should find the day
+			StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(
+					entry.getKey(), new Date(startOfDay + 12 * Time.MS_PER_HOUR));
+			assertEquals("History for " + entry.getKey(), entry.getValue(),
+					cache.getStopHistory(key));
+		}
+		assertEquals(expected.size(), cache.getSize());
+	}
+
+	@Test
+	public void testPutMatchesSortedList() {
+		long startOfDay = TestArrivalDepartures.startOfToday();
+		List<ArrivalDeparture> events = createEvents(startOfDay, 1);
+
+		StopArrivalDepartureCache cache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		for (ArrivalDeparture event : events)
+			cache.putArrivalDeparture(event);
+
+		assertSameHistories(legacyHistories(events), cache, startOfDay);
+	}
+
+	@Test
+	public void testBatchMatchesSortedList() {
+		long startOfDay = TestArrivalDepartures.startOfToday();
+		List<ArrivalDeparture> events = createEvents(startOfDay, 2);
+
+		// Batches are read from the database oldest first
+		List<ArrivalDeparture> sorted = new ArrayList<ArrivalDeparture>(events);
+		Collections.sort(sorted, Collections.reverseOrder(new ArrivalDepartureComparator()));
+
+		// Half as a batch and the rest one at a time afterwards
+		List<ArrivalDeparture> batch = sorted.subList(0, sorted.size() / 2);
+		List<ArrivalDeparture> rest = sorted.subList(sorted.size() / 2, sorted.size());
+
+		StopArrivalDepartureCache cache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		cache.putArrivalDepartures(batch);
+		for (ArrivalDeparture event : rest)
+			cache.putArrivalDeparture(event);
+
+		assertSameHistories(legacyHistories(sorted), cache, startOfDay);
+	}
+
+	@Test
+	public void testSnapshotNotChangedByLaterPuts() {
+		long startOfDay = TestArrivalDepartures.startOfToday();
+		List<ArrivalDeparture> events = createEvents(startOfDay, 3);
+
+		StopArrivalDepartureCache cache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		for (ArrivalDeparture event : events.subList(0, 100))
+			cache.putArrivalDeparture(event);
+
+		StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(
+				"stop0", new Date(startOfDay));
+		List<ArrivalDeparture> snapshot = cache.getStopHistory(key);
+		List<ArrivalDeparture> copy = new ArrayList<ArrivalDeparture>(snapshot);
+
+		for (ArrivalDeparture event : events.subList(100, events.size()))
+			cache.putArrivalDeparture(event);
+
+		assertEquals(copy, snapshot);
+		assertTrue(cache.getStopHistory(key).size() > snapshot.size());
+	}
+
+	/**
+	 * Playback and batch mode add days older than tripDataCacheMaxAgeSec.
+	 * Previously such a day was evicted as soon as it was created, so the
+	 * events were put into a partition that could no longer be read.
+	 */
+	@Test
+	public void testOldDayNotEvictedWhenAdded() {
+		long startOfDay = TestArrivalDepartures.startOfToday() - 30 * Time.MS_PER_DAY;
+		List<ArrivalDeparture> events = createEvents(startOfDay, 4);
+
+		StopArrivalDepartureCache cache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		for (ArrivalDeparture event : events)
+			cache.putArrivalDeparture(event);
+
+		assertSameHistories(legacyHistories(events), cache, startOfDay);
+	}
+
+	@Test
+	public void testOldDayEvictedWhenNewDayAdded() {
+		long oldDay = TestArrivalDepartures.startOfToday() - 30 * Time.MS_PER_DAY;
+		long today = TestArrivalDepartures.startOfToday();
+		List<ArrivalDeparture> oldEvents = createEvents(oldDay, 5);
+		List<ArrivalDeparture> newEvents = createEvents(today, 6);
+
+		StopArrivalDepartureCache cache =
+				new StopArrivalDepartureCache(new ArrivalDepartureStore());
+		cache.putArrivalDepartures(oldEvents);
+		cache.putArrivalDeparture(newEvents.get(0));
+
+		StopArrivalDepartureCacheKey oldKey = new StopArrivalDepartureCacheKey(
+				oldEvents.get(0).getStopId(), new Date(oldDay));
+		assertNull(cache.getStopHistory(oldKey));
+		assertEquals(1, cache.getSize());
+	}
+}
@@ -0,0 +1,44 @@
+package org.transitclock.core.dataCache;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import org.transitclock.db.structs.ArrivalDeparture;
+
+/**
+ * Creates arrivals/departures for the cache tests. The events are created
+ * the same way the ArrivalDepartureStore recreates them, so no Core, block
+ * or database is needed.
+ */
+class TestArrivalDepartures {
+
+	/**
+	 * @return start of the current day in the default time zone, which is
+	 *         what the caches partition on
+	 */
+	static long startOfToday() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	static ArrivalDeparture create(boolean isArrival, String vehicleId,
+			long time, String stopId, String tripId, int stopPathIndex) {
+		return create(isArrival, vehicleId, time, stopId, tripId,
+				stopPathIndex, "0");
+	}
+
+	static ArrivalDeparture create(boolean isArrival, String vehicleId,
+			long time, String stopId, String tripId, int stopPathIndex,
+			String directionId) {
+		return ArrivalDeparture.create(-1, isArrival, 0, vehicleId,
+				new Date(time), new Date(time - 5000),
+				stopPathIndex % 3 == 0 ? null : new Date(time + 60000),
+				stopId, stopPathIndex + 1, tripId, "block1", null, "route1", "1",
+				"service1", directionId, 0, null, stopPathIndex,
+				Integer.valueOf(stopPathIndex), 250.0f);
+	}
+}
@@ -0,0 +1,194 @@
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Test;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the travel times found using the travel time index of the
+ * TripDataHistoryCache with scanning the trip history of each day, which is
+ * what PredictionGenerator.lastDaysTimes() did, for trips with missing and
+ * repeated arrivals/departures.
+ */
+public class TripDataHistoryCacheTest extends TestCase {
+
+	private static final int NUM_TRIPS = 3;
+	private static final int NUM_STOPS = 6;
+	private static final int NUM_DAYS = 8;
+
+	// Own trip IDs since the cache is a singleton
+	private static String tripId(int t) {
+		return "historyTrip" + t;
+	}
+
+	private static int startTime(int t) {
+		return 6 * Time.SEC_PER_HOUR + t * Time.SEC_PER_HOUR;
+	}
+
+	/**
+	 * What PredictionGenerator.getArrival() did
+	 */
+	private static ArrivalDeparture getArrival(int stopPathIndex,
+			List<ArrivalDeparture> results) {
+		for (ArrivalDeparture result : results) {
+			if (result.isArrival() && result.getStopPathIndex() == stopPathIndex)
+				return result;
+		}
+		return null;
+	}
+
+	/**
+	 * What PredictionGenerator.lastDaysTimes() did
+	 */
+	private static List<TravelTimeDetails> lastDaysTimes(
+			TripDataHistoryCache cache, String tripId, int stopPathIndex,
+			Date startDate, Integer startTime, int numDaysLookBack,
+			int numDays) {
+		List<TravelTimeDetails> times = new ArrayList<TravelTimeDetails>();
+		for (int i = 0; i < numDaysLookBack && times.size() < numDays; i++) {
+			Date nearestDay = DateUtils.truncate(
+					DateUtils.addDays(startDate, (i + 1) * -1),
+					Calendar.DAY_OF_MONTH);
+			List<ArrivalDeparture> results = cache.getTripHistory(
+					new TripKey(tripId, nearestDay, startTime));
+			if (results != null) {
+				ArrivalDeparture arrival = getArrival(stopPathIndex, results);
+				if (arrival != null) {
+					ArrivalDeparture departure = TripDataHistoryCache
+							.findPreviousDepartureEvent(results, arrival);
+					if (departure != null)
+						times.add(new TravelTimeDetails(departure, arrival));
+				}
+			}
+		}
+		return times;
+	}
+
+	private static String describe(ArrivalDeparture event) {
+		if (event == null)
+			return null;
+		return (event.isArrival() ? "A " : "D ") + event.getVehicleId() + " "
+				+ event.getStopPathIndex() + " " + event.getTime();
+	}
+
+	private static List<String> describe(List<TravelTimeDetails> times) {
+		List<String> descriptions = new ArrayList<String>();
+		for (TravelTimeDetails travelTimeDetails : times)
+			descriptions.add(describe(travelTimeDetails.getDeparture()) + " -> "
+					+ describe(travelTimeDetails.getArrival()));
+		return descriptions;
+	}
+
+	/**
+	 * Puts the trips of the days into the cache, with some events missing and
+	 * some repeated by a second vehicle, in random order within a trip.
+	 */
+	private static void populate(TripDataHistoryCache cache, Random random) {
+		long startOfToday = TestArrivalDepartures.startOfToday();
+		int unique = 0;
+		for (int d = 1; d <= NUM_DAYS; ++d) {
+			long startOfDay = DateUtils.addDays(new Date(startOfToday), -d)
+					.getTime();
+			for (int t = 0; t < NUM_TRIPS; ++t) {
+				List<ArrivalDeparture> events = new ArrayList<ArrivalDeparture>();
+				int numVehicles = 1 + random.nextInt(2);
+				for (int v = 0; v < numVehicles; ++v) {
+					long time = startOfDay + startTime(t) * Time.MS_PER_SEC
+							+ random.nextInt(20 * Time.SEC_PER_MIN)
+							* Time.MS_PER_SEC;
+					for (int i = 0; i < NUM_STOPS; ++i) {
+						// Unique times so there are no ties for most recent
+						time += random.nextInt(300) * Time.MS_PER_SEC + ++unique;
+						if (i > 0 && random.nextInt(5) != 0)
+							events.add(TestArrivalDepartures.create(true,
+									"historyVehicle" + v, time, "stop" + i,
+									tripId(t), i));
+						time += random.nextInt(60) * Time.MS_PER_SEC + ++unique;
+						if (i < NUM_STOPS - 1 && random.nextInt(5) != 0)
+							events.add(TestArrivalDepartures.create(false,
+									"historyVehicle" + v, time, "stop" + i,
+									tripId(t), i));
+					}
+				}
+				Collections.shuffle(events, random);
+				for (ArrivalDeparture event : events)
+					cache.putArrivalDeparture(event, startTime(t));
+			}
+		}
+	}
+
+	@Test
+	public void testLastDaysTravelTimesSameAsScanningTripHistory() {
+		TripDataHistoryCache cache = TripDataHistoryCache.getInstance();
+		Random random = new Random(23);
+		populate(cache, random);
+
+		long startOfToday = TestArrivalDepartures.startOfToday();
+		int numFound = 0;
+		for (int q = 0; q < 2000; ++q) {
+			int t = random.nextInt(NUM_TRIPS + 1);
+			// Also a start time the trip doesn't have
+			int startTime = t < NUM_TRIPS ? startTime(t) : startTime(0) + 1;
+			String tripId = tripId(t % NUM_TRIPS);
+			int stopPathIndex = random.nextInt(NUM_STOPS + 1);
+			Date startDate = new Date(DateUtils.addDays(new Date(startOfToday),
+					-random.nextInt(4)).getTime()
+					+ random.nextInt(Time.SEC_PER_DAY) * Time.MS_PER_SEC);
+			int numDaysLookBack = 1 + random.nextInt(NUM_DAYS + 2);
+			int numDays = 1 + random.nextInt(5);
+
+			List<String> expected = describe(lastDaysTimes(cache, tripId,
+					stopPathIndex, startDate, startTime, numDaysLookBack,
+					numDays));
+			List<String> actual = describe(cache.getLastDaysTravelTimes(
+					tripId, startTime, stopPathIndex, startDate,
+					numDaysLookBack, numDays));
+			assertEquals(tripId + " " + startTime + " " + stopPathIndex + " "
+					+ startDate + " " + numDaysLookBack + " " + numDays,
+					expected, actual);
+			numFound += actual.size();
+		}
+		assertTrue(numFound > 1000);
+	}
+
+	@Test
+	public void testPreviousDepartureSameAsScanningTripHistory() {
+		TripDataHistoryCache cache = TripDataHistoryCache.getInstance();
+		populate(cache, new Random(24));
+
+		long startOfToday = TestArrivalDepartures.startOfToday();
+		int numFound = 0;
+		for (int d = 1; d <= NUM_DAYS; ++d) {
+			Date day = DateUtils.addDays(new Date(startOfToday), -d);
+			for (int t = 0; t < NUM_TRIPS; ++t) {
+				TripKey tripKey = new TripKey(tripId(t), day, startTime(t));
+				List<ArrivalDeparture> history = cache.getTripHistory(tripKey);
+				assertNotNull(history);
+				for (ArrivalDeparture event : history) {
+					if (!event.isArrival())
+						continue;
+					ArrivalDeparture expected = TripDataHistoryCache
+							.findPreviousDepartureEvent(history, event);
+					ArrivalDeparture actual =
+							cache.findPreviousDepartureEvent(tripKey, event);
+					assertEquals(tripKey + " " + describe(event),
+							describe(expected), describe(actual));
+					if (actual != null)
+						++numFound;
+				}
+			}
+		}
+		assertTrue(numFound > 0);
+	}
+}
@@ -0,0 +1,238 @@
+package org.transitclock.core.dataCache;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.holdingmethod.PredictionTimeComparator;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcPrediction;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+
+/**
+ * Compares the entities of the TripUpdatesFeedCache with the ones the API
+ * created when it built the whole feed from all of the predictions, and
+ * checks the versions and DIFFERENTIAL feeds.
+ */
+public class TripUpdatesFeedCacheTest extends TestCase {
+
+	/**
+	 * Creates a prediction with the constructor that is used when
+	 * deserializing, since the normal one needs a Core.
+	 */
+	private static IpcPrediction prediction(String vehicleId, String tripId,
+			int gtfsStopSeq, long predictionTime, long freqStartTime)
+					throws Exception {
+		Constructor<IpcPrediction> constructor =
+				IpcPrediction.class.getDeclaredConstructor(String.class,
+						String.class, String.class, int.class, String.class,
+						String.class, String.class, long.class, long.class,
+						boolean.class, boolean.class, long.class, long.class,
+						long.class, boolean.class, String.class, short.class,
+						float.class, boolean.class, boolean.class,
+						boolean.class, Integer.class, Long.class, int.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(vehicleId, "route1",
+				"stop" + gtfsStopSeq, gtfsStopSeq, tripId, "pattern1",
+				"block1", predictionTime, predictionTime, false, false, 0L, 0L,
+				0L, false, null, (short) 0, 0.0f, false, false,
+				gtfsStopSeq % 2 == 0, null, freqStartTime, 0);
+	}
+
+	/**
+	 * How the API grouped the predictions into entities before the feed was
+	 * maintained by the Core: by trip, then for frequency based trips by
+	 * start time with the predictions sorted by time and the vehicle ID as
+	 * the entity ID.
+	 */
+	private static List<String> legacyEntities(List<IpcPrediction> predictions) {
+		Map<String, List<IpcPrediction>> predsByTrip =
+				new HashMap<String, List<IpcPrediction>>();
+		for (IpcPrediction prediction : predictions) {
+			List<IpcPrediction> predsForTrip =
+					predsByTrip.get(prediction.getTripId());
+			if (predsForTrip == null) {
+				predsForTrip = new ArrayList<IpcPrediction>();
+				predsByTrip.put(prediction.getTripId(), predsForTrip);
+			}
+			predsForTrip.add(prediction);
+		}
+
+		List<String> entities = new ArrayList<String>();
+		for (List<IpcPrediction> predsForTrip : predsByTrip.values()) {
+			boolean frequencyBased = false;
+			for (IpcPrediction prediction : predsForTrip)
+				frequencyBased |= prediction.getFreqStartTime() > 0;
+			if (!frequencyBased) {
+				entities.add(entity(predsForTrip.get(0).getTripId(),
+						predsForTrip));
+				continue;
+			}
+
+			Map<Long, List<IpcPrediction>> map =
+					new HashMap<Long, List<IpcPrediction>>();
+			for (IpcPrediction prediction : predsForTrip) {
+				if (map.get(prediction.getFreqStartTime()) == null)
+					map.put(prediction.getFreqStartTime(),
+							new ArrayList<IpcPrediction>());
+				map.get(prediction.getFreqStartTime()).add(prediction);
+				Collections.sort(map.get(prediction.getFreqStartTime()),
+						new PredictionTimeComparator());
+			}
+			for (List<IpcPrediction> predsForStartTime : map.values())
+				entities.add(entity(predsForStartTime.get(0).getVehicleId(),
+						predsForStartTime));
+		}
+		Collections.sort(entities);
+		return entities;
+	}
+
+	private static String entity(String entityId,
+			List<IpcPrediction> predictions) {
+		StringBuilder entity = new StringBuilder(entityId).append(':');
+		for (IpcPrediction prediction : predictions)
+			entity.append(' ').append(prediction.getGtfsStopSeq()).append('@')
+					.append(prediction.getPredictionTime());
+		return entity.toString();
+	}
+
+	@Test
+	public void testEntitiesSameAsLegacyApiFeed() throws Exception {
+		Random random = new Random(42);
+		for (int run = 0; run < 200; ++run) {
+			// The predictions of a vehicle for its current and following
+			// trips, some of them frequency based with several start times
+			List<IpcPrediction> predictions = new ArrayList<IpcPrediction>();
+			long time = 1500000000000L;
+			int numTrips = 1 + random.nextInt(3);
+			for (int trip = 0; trip < numTrips; ++trip) {
+				boolean frequencyBased = random.nextBoolean();
+				int numStops = 1 + random.nextInt(8);
+				for (int stop = 0; stop < numStops; ++stop) {
+					long freqStartTime = frequencyBased ?
+							(1 + random.nextInt(2)) * 3600000L : 0;
+					time += random.nextInt(120000) - 20000;
+					predictions.add(prediction("vehicle1", "trip" + trip,
+							stop + 1, time, freqStartTime));
+				}
+			}
+
+			List<String> entities = new ArrayList<String>();
+			for (List<IpcPrediction> predsForEntity : TripUpdatesFeedCache
+					.groupByEntity(predictions, Long.MAX_VALUE).values()) {
+				entities.add(entity(TripUpdatesFeedCache.getEntityId(
+						predsForEntity.get(0)), predsForEntity));
+			}
+			Collections.sort(entities);
+
+			assertEquals(legacyEntities(predictions), entities);
+		}
+	}
+
+	private static TripUpdatesFeedCache.Field field(String entityId)
+			throws Exception {
+		FeedEntity entity = FeedEntity.newBuilder().setId(entityId)
+				.setTripUpdate(TripUpdate.newBuilder().setTrip(
+						TripDescriptor.newBuilder().setTripId(entityId)))
+				.build();
+		return new TripUpdatesFeedCache.Field(entityId, TripUpdatesFeedCache
+				.encodeField(FeedMessage.ENTITY_FIELD_NUMBER, entity));
+	}
+
+	private static Map<String, TripUpdatesFeedCache.Field> fields(
+			String... keysAndIds) throws Exception {
+		Map<String, TripUpdatesFeedCache.Field> fields =
+				new LinkedHashMap<String, TripUpdatesFeedCache.Field>();
+		for (int i = 0; i < keysAndIds.length; i += 2)
+			fields.put(keysAndIds[i], field(keysAndIds[i + 1]));
+		return fields;
+	}
+
+	/**
+	 * @return the entities as ID, or ID plus "deleted"
+	 */
+	private static List<String> entities(IpcGtfsRtFeed feed)
+			throws Exception {
+		List<String> entities = new ArrayList<String>();
+		for (FeedEntity entity :
+				FeedMessage.parseFrom(feed.getFeed()).getEntityList())
+			entities.add(entity.getId()
+					+ (entity.getIsDeleted() ? " deleted" : ""));
+		return entities;
+	}
+
+	@Test
+	public void testVersionsNotIssuedGetFullDataset() throws Exception {
+		TripUpdatesFeedCache cache = new TripUpdatesFeedCache();
+		cache.update("vehicle1", fields("trip1", "trip1"));
+		IpcGtfsRtFeed feed = cache.getFeed(0, true);
+		assertFalse(feed.isDifferential());
+		long version = feed.getVersion();
+
+		// Already has the current version
+		assertNull(cache.getFeed(version, true).getFeed());
+
+		// Versions from another instance, such as from before a restart,
+		// and versions that were never issued get the full dataset
+		TripUpdatesFeedCache otherCache = new TripUpdatesFeedCache();
+		otherCache.update("vehicle1", fields("trip1", "trip1"));
+		long otherVersion = otherCache.getFeed(0, false).getVersion();
+		for (long sinceVersion : new long[] {otherVersion, version + 1,
+				version - 100, Long.MAX_VALUE}) {
+			feed = cache.getFeed(sinceVersion, true);
+			assertFalse(feed.isDifferential());
+			assertEquals(version, feed.getVersion());
+			assertEquals(Incrementality.FULL_DATASET, FeedMessage.parseFrom(
+					feed.getFeed()).getHeader().getIncrementality());
+			assertEquals(Collections.singletonList("trip1"), entities(feed));
+		}
+	}
+
+	@Test
+	public void testDifferential() throws Exception {
+		TripUpdatesFeedCache cache = new TripUpdatesFeedCache();
+		cache.update("vehicle1", fields("trip1", "trip1"));
+		// Frequency based, two start times so two entities with the same ID
+		cache.update("vehicle2",
+				fields("vehicle2_1000", "vehicle2", "vehicle2_2000", "vehicle2"));
+		long version = cache.getFeed(0, false).getVersion();
+
+		cache.update("vehicle1", fields("trip2", "trip2"));
+		cache.update("vehicle2", fields("vehicle2_2000", "vehicle2"));
+
+		IpcGtfsRtFeed feed = cache.getFeed(version, true);
+		assertTrue(feed.isDifferential());
+		List<String> entities = entities(feed);
+		assertEquals(4, entities.size());
+		// The deletions come first so that the remaining entity of vehicle2
+		// is not deleted by a client that keys on the entity ID
+		assertEquals(new HashSet<String>(Arrays.asList("trip1 deleted",
+				"vehicle2 deleted")),
+				new HashSet<String>(entities.subList(0, 2)));
+		assertEquals(new HashSet<String>(Arrays.asList("trip2", "vehicle2")),
+				new HashSet<String>(entities.subList(2, 4)));
+
+		assertEquals(Arrays.asList("trip2", "vehicle2"),
+				sorted(entities(cache.getFeed(0, false))));
+	}
+
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+}
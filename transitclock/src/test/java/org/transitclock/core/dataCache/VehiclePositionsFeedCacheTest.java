@@ -0,0 +1,230 @@
+package org.transitclock.core.dataCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.BlockAssignmentMethod;
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.db.structs.AvlReport.AssignmentType;
+import org.transitclock.ipc.data.IpcAvl;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcHoldingTime;
+import org.transitclock.ipc.data.IpcVehicleComplete;
+import org.transitclock.ipc.data.IpcVehicleGtfsRealtime;
+import org.transitclock.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+/**
+ * Compares the VehiclePositions feed of the VehiclePositionsFeedCache with
+ * the one the API created by building the whole FeedMessage from all of the
+ * vehicles for every request, as vehicles change, and checks the versions
+ * and the gzip compressed copy.
+ */
+public class VehiclePositionsFeedCacheTest extends TestCase {
+
+	private static final TimeZone TIME_ZONE =
+			TimeZone.getTimeZone("America/Los_Angeles");
+
+	/**
+	 * Creates a vehicle with the constructor that is used when
+	 * deserializing, since the normal one needs a VehicleState.
+	 */
+	private static IpcVehicleComplete vehicle(Random random, String vehicleId)
+			throws Exception {
+		Constructor<?> constructor = null;
+		for (Constructor<?> c : IpcVehicleComplete.class
+				.getDeclaredConstructors()) {
+			if (c.getParameterTypes().length == 33)
+				constructor = c;
+		}
+		constructor.setAccessible(true);
+
+		long time = 1500000000000L + random.nextInt((int) Time.MS_PER_DAY);
+		boolean assigned = random.nextInt(4) != 0;
+		IpcAvl avl = new IpcAvl(vehicleId, time,
+				37.3f + random.nextFloat() * 0.1f,
+				-122.0f + random.nextFloat() * 0.1f,
+				random.nextBoolean() ? Float.NaN : random.nextFloat() * 20.0f,
+				random.nextBoolean() ? Float.NaN : random.nextFloat() * 360.0f,
+				"test", null, AssignmentType.UNSET, null,
+				random.nextBoolean() ? null : "plate" + vehicleId, 0);
+		return (IpcVehicleComplete) constructor.newInstance(
+				assigned ? "block1" : null,
+				BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT,
+				avl,
+				random.nextFloat() * 360.0f,
+				assigned ? "route" + random.nextInt(5) : null,
+				null, null,
+				assigned ? "trip" + random.nextInt(50) : null,
+				null, null, null,
+				assigned && random.nextBoolean(),
+				false,
+				(TemporalDifference) null,
+				false, false, 0L, null, null, null,
+				time - random.nextInt((int) Time.MS_PER_HOUR),
+				random.nextBoolean(),
+				assigned ? "stop" + random.nextInt(100) : null,
+				random.nextBoolean() ? null : random.nextInt(30),
+				null, null, 0.0, 0.0, 0.0,
+				random.nextInt(3) == 0
+						? time - random.nextInt((int) Time.MS_PER_HOUR) : 0L,
+				(IpcHoldingTime) null, 0.0, 0.0);
+	}
+
+	/**
+	 * How the API created the VehiclePosition for a vehicle before the feed
+	 * was maintained by the Core.
+	 */
+	private static VehiclePosition legacyVehiclePosition(
+			IpcVehicleGtfsRealtime vehicleData) {
+		SimpleDateFormat gtfsRealtimeDateFormatter =
+				new SimpleDateFormat("yyyyMMdd");
+		gtfsRealtimeDateFormatter.setTimeZone(TIME_ZONE);
+		SimpleDateFormat gtfsRealtimeTimeFormatter =
+				new SimpleDateFormat("HH:mm:ss");
+
+		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+		if (vehicleData.getRouteId() != null
+				&& vehicleData.getRouteId().length() > 0) {
+			String tripStartDateStr =
+					gtfsRealtimeDateFormatter.format(new Date(vehicleData
+							.getTripStartEpochTime()));
+			TripDescriptor.Builder tripDescriptor =
+					TripDescriptor.newBuilder()
+							.setRouteId(vehicleData.getRouteId())
+							.setTripId(vehicleData.getTripId())
+							.setStartDate(tripStartDateStr);
+			if (vehicleData.getFreqStartTime() > 0) {
+				String tripStartTimeStr = gtfsRealtimeTimeFormatter
+						.format(new Date(vehicleData.getFreqStartTime()));
+				tripDescriptor.setStartTime(tripStartTimeStr);
+			}
+			vehiclePosition.setTrip(tripDescriptor);
+		}
+
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
+		if (vehicleData.getLicensePlate() != null)
+			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
+		vehiclePosition.setVehicle(vehicleDescriptor);
+
+		Position.Builder position =
+				Position.newBuilder().setLatitude(vehicleData.getLatitude())
+						.setLongitude(vehicleData.getLongitude());
+		if (!Float.isNaN(vehicleData.getHeading()))
+			position.setBearing(vehicleData.getHeading());
+		if (!Float.isNaN(vehicleData.getSpeed()))
+			position.setSpeed(vehicleData.getSpeed());
+		vehiclePosition.setPosition(position);
+
+		vehiclePosition.setTimestamp(vehicleData.getGpsTime()
+				/ Time.MS_PER_SEC);
+
+		String stopId = vehicleData.getAtOrNextStopId();
+		if (stopId != null)
+			vehiclePosition.setStopId(stopId);
+
+		if (vehicleData.isPredictable()) {
+			vehiclePosition.setCurrentStatus(vehicleData.isAtStop()
+					? VehicleStopStatus.STOPPED_AT
+					: VehicleStopStatus.IN_TRANSIT_TO);
+			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
+				vehiclePosition.setCurrentStopSequence(
+						vehicleData.getAtOrNextGtfsStopSeq());
+		}
+		return vehiclePosition.build();
+	}
+
+	/**
+	 * The entities of the feed the API built from all of the vehicles
+	 */
+	private static List<FeedEntity> legacyEntities(
+			Collection<IpcVehicleComplete> vehicles) {
+		List<FeedEntity> entities = new ArrayList<FeedEntity>();
+		for (IpcVehicleGtfsRealtime vehicle : vehicles)
+			entities.add(FeedEntity.newBuilder().setId(vehicle.getId())
+					.setVehicle(legacyVehiclePosition(vehicle)).build());
+		return entities;
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		GZIPInputStream in =
+				new GZIPInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int length;
+		while ((length = in.read(buffer)) > 0)
+			out.write(buffer, 0, length);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testSameAsBuildingWholeFeed() throws Exception {
+		VehiclePositionsFeedCache cache = new VehiclePositionsFeedCache();
+		Random random = new Random(23);
+		Map<String, IpcVehicleComplete> vehicles =
+				new LinkedHashMap<String, IpcVehicleComplete>();
+		long previousVersion = 0;
+		for (int round = 0; round < 200; ++round) {
+			// Some vehicles change, appear or go away
+			int numChanges = random.nextInt(10);
+			for (int i = 0; i < numChanges; ++i) {
+				String vehicleId = "vehicle" + random.nextInt(40);
+				if (random.nextInt(5) == 0)
+					vehicles.remove(vehicleId);
+				else
+					vehicles.put(vehicleId, vehicle(random, vehicleId));
+			}
+
+			cache.createSnapshot(new ArrayList<IpcVehicleComplete>(
+					vehicles.values()), TIME_ZONE);
+
+			IpcGtfsRtFeed feed = cache.getFeed(0, false);
+			assertTrue(feed.getVersion() > previousVersion);
+			assertFalse(feed.isGzipped());
+			FeedMessage message = FeedMessage.parseFrom(feed.getFeed());
+			assertEquals("1.0", message.getHeader().getGtfsRealtimeVersion());
+			assertEquals(Incrementality.FULL_DATASET,
+					message.getHeader().getIncrementality());
+			assertEquals(legacyEntities(vehicles.values()),
+					message.getEntityList());
+
+			IpcGtfsRtFeed gzipped = cache.getFeed(previousVersion, true);
+			assertEquals(feed.getVersion(), gzipped.getVersion());
+			assertTrue(gzipped.isGzipped());
+			assertTrue(Arrays.equals(feed.getFeed(),
+					gunzip(gzipped.getFeed())));
+
+			// Nothing new for a client that already has the version
+			IpcGtfsRtFeed notModified = cache.getFeed(feed.getVersion(), true);
+			assertTrue(notModified.isNotModified());
+			assertNull(notModified.getFeed());
+
+			previousVersion = feed.getVersion();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.transitclock.core.dataCache.frequency;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.dataCache.HistoricalAverage;
+import org.transitclock.core.dataCache.StopPathCacheKey;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the averages of the FrequencyBasedHistoricalAverageCache time
+ * buckets with the previous TreeMap of averages per stop path, which was
+ * updated with the previous HistoricalAverage.update() and looked up with a
+ * subMap() of the increment starting at the start time.
+ */
+public class FrequencyBasedHistoricalAverageCacheTest extends TestCase {
+
+	private static final int NUM_TRIPS = 3;
+	private static final int NUM_STOP_PATHS = 4;
+
+	/**
+	 * An average as the previous HistoricalAverage kept it, along with the
+	 * values so the variance can be checked
+	 */
+	private static class OldAverage {
+		private int count;
+		private double average;
+		private final List<Double> values = new ArrayList<Double>();
+
+		private void update(double element) {
+			average = ((count * average) + element) / (count + 1);
+			count = count + 1;
+			values.add(element);
+		}
+
+		private double getVariance() {
+			if (count < 2)
+				return 0;
+			double sum = 0;
+			for (double value : values)
+				sum += (value - average) * (value - average);
+			return sum / (count - 1);
+		}
+	}
+
+	// Own trip IDs since the cache is a singleton
+	private static String tripId(int t) {
+		return "frequencyTrip" + t;
+	}
+
+	private static String stopPathKey(StopPathCacheKey key) {
+		return key.getTripId() + "," + key.getStopPathIndex() + ","
+				+ key.isTravelTime();
+	}
+
+	/**
+	 * What getAverage() did with the TreeMap of averages of the stop path
+	 */
+	private static OldAverage getAverage(
+			Map<String, TreeMap<Long, OldAverage>> m, StopPathCacheKey key,
+			int increment) {
+		TreeMap<Long, OldAverage> result = m.get(stopPathKey(key));
+		if (result == null)
+			return null;
+		SortedMap<Long, OldAverage> subresult = result.subMap(
+				key.getStartTime(), key.getStartTime() + increment);
+		if (subresult.size() == 1)
+			return subresult.get(subresult.lastKey());
+		return null;
+	}
+
+	private static StopPathCacheKey randomKey(Random random, long startTime) {
+		return new StopPathCacheKey(tripId(random.nextInt(NUM_TRIPS + 1)),
+				random.nextInt(NUM_STOP_PATHS), random.nextBoolean(), startTime);
+	}
+
+	@Test
+	public void testBucketsSameAsTreeMapOfAverages() {
+		FrequencyBasedHistoricalAverageCache cache =
+				FrequencyBasedHistoricalAverageCache.getInstance();
+		int increment = FrequencyBasedHistoricalAverageCache
+				.getCacheIncrementsForFrequencyService();
+		Random random = new Random(23);
+
+		// Times of day are relative to the start hour so can be negative
+		Map<String, TreeMap<Long, OldAverage>> m =
+				new HashMap<String, TreeMap<Long, OldAverage>>();
+		for (int i = 0; i < 20000; ++i) {
+			int time = FrequencyBasedHistoricalAverageCache.round(
+					random.nextInt(3 * Time.SEC_PER_DAY) - Time.SEC_PER_DAY,
+					increment);
+			StopPathCacheKey key = randomKey(random, (long) time);
+			// Not for the last trip so that it has no data
+			if (key.getTripId().equals(tripId(NUM_TRIPS)))
+				continue;
+			double value = 30000 + random.nextGaussian() * 5000;
+
+			TreeMap<Long, OldAverage> averages = m.get(stopPathKey(key));
+			if (averages == null) {
+				averages = new TreeMap<Long, OldAverage>();
+				m.put(stopPathKey(key), averages);
+			}
+			OldAverage oldAverage = averages.get(key.getStartTime());
+			if (oldAverage == null) {
+				oldAverage = new OldAverage();
+				averages.put(key.getStartTime(), oldAverage);
+			}
+			oldAverage.update(value);
+
+			HistoricalAverage average = cache.updateAverage(key, value);
+			assertEquals(oldAverage.count, average.getCount());
+			assertEquals(oldAverage.average, average.getAverage(), 1e-6);
+		}
+
+		int numFound = 0;
+		for (int q = 0; q < 20000; ++q) {
+			// Bucket start times, times within a bucket and times out of the
+			// range of the buckets
+			long startTime = random.nextInt(5 * Time.SEC_PER_DAY)
+					- 2 * Time.SEC_PER_DAY;
+			if (random.nextBoolean())
+				startTime = FrequencyBasedHistoricalAverageCache.round(
+						startTime, increment);
+			StopPathCacheKey key = randomKey(random, startTime);
+
+			OldAverage expected = getAverage(m, key, increment);
+			HistoricalAverage actual = cache.getAverage(key);
+			if (expected == null) {
+				assertNull(key.toString(), actual);
+			} else {
+				assertNotNull(key.toString(), actual);
+				assertEquals(key.toString(), expected.count, actual.getCount());
+				assertEquals(key.toString(), expected.average,
+						actual.getAverage(), 1e-6);
+				assertEquals(key.toString(), expected.getVariance(),
+						actual.getVariance(), 1e-3);
+				++numFound;
+			}
+		}
+		assertTrue(numFound > 1000);
+
+		// A key for each bucket of the stop paths that has an average
+		int numAverages = 0;
+		for (TreeMap<Long, OldAverage> averages : m.values())
+			numAverages += averages.size();
+		int numKeys = 0;
+		for (StopPathCacheKey key : cache.getKeys()) {
+			if (key.getTripId().startsWith("frequencyTrip")) {
+				assertNotNull(getAverage(m, key, increment));
+				++numKeys;
+			}
+		}
+		assertEquals(numAverages, numKeys);
+	}
+}
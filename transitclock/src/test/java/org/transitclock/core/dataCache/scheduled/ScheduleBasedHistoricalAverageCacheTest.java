@@ -0,0 +1,57 @@
+package org.transitclock.core.dataCache.scheduled;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.dataCache.HistoricalAverage;
+import org.transitclock.core.dataCache.StopPathCacheKey;
+
+/**
+ * Checks that the averages the ScheduleBasedHistoricalAverageCache puts are
+ * the same as when the cached average was updated in place, as was done
+ * before, and that an average a reader already has is no longer changed by
+ * later updates.
+ */
+public class ScheduleBasedHistoricalAverageCacheTest extends TestCase {
+
+	@Test
+	public void testSameAsUpdatingInPlace() {
+		ScheduleBasedHistoricalAverageCache cache =
+				ScheduleBasedHistoricalAverageCache.getInstance();
+		StopPathCacheKey key = new StopPathCacheKey(
+				"scheduleBasedHistoricalAverageCacheTest", 3, true);
+		HistoricalAverage inPlace = new HistoricalAverage();
+		Random random = new Random(23);
+
+		HistoricalAverage read = null;
+		int readCount = 0;
+		double readAverage = 0;
+		double readVariance = 0;
+		for (int i = 0; i < 1000; ++i) {
+			double value = 60000 + random.nextInt(120000);
+			inPlace.update(value);
+			cache.updateAverage(key, value);
+
+			HistoricalAverage average = cache.getAverage(key);
+			assertEquals(inPlace.getCount(), average.getCount());
+			assertEquals(inPlace.getAverage(), average.getAverage());
+			assertEquals(inPlace.getVariance(), average.getVariance());
+
+			// What a reader had is not changed by the updates since
+			if (read != null) {
+				assertNotSame(read, average);
+				assertEquals(readCount, read.getCount());
+				assertEquals(readAverage, read.getAverage());
+				assertEquals(readVariance, read.getVariance());
+			}
+			if (i % 100 == 0) {
+				read = average;
+				readCount = average.getCount();
+				readAverage = average.getAverage();
+				readVariance = average.getVariance();
+			}
+		}
+	}
+}
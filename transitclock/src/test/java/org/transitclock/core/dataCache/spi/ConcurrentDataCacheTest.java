@@ -0,0 +1,133 @@
+package org.transitclock.core.dataCache.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Compares the ConcurrentDataCache with the Ehcache storage the data caches
+ * used before, for random gets, puts and removes, and checks that when it is
+ * full the entries put longest ago are the ones evicted and that entries
+ * expire.
+ */
+public class ConcurrentDataCacheTest extends TestCase {
+
+	private static List<Integer> sorted(List<Integer> keys) {
+		List<Integer> sortedKeys = new ArrayList<Integer>(keys);
+		Collections.sort(sortedKeys);
+		return sortedKeys;
+	}
+
+	@Test
+	public void testSameAsEhcache() {
+		// Large enough that neither evicts. Uses a cache from ehcache.xml
+		// since only those can be created. The data caches default to
+		// ConcurrentDataCache so it is not otherwise used.
+		DataCache<Integer, String> ehcache = new EhcacheDataCache<Integer, String>(
+				"HoldingTimeCache", 100000, 0);
+		DataCache<Integer, String> cache =
+				new ConcurrentDataCache<Integer, String>(
+						"concurrentDataCacheTest", 100000, 0);
+		Random random = new Random(23);
+		for (int i = 0; i < 20000; ++i) {
+			Integer key = random.nextInt(500);
+			String value = "value" + i;
+			switch (random.nextInt(4)) {
+			case 0:
+				ehcache.put(key, value);
+				cache.put(key, value);
+				break;
+			case 1:
+				assertEquals(ehcache.putIfAbsent(key, value),
+						cache.putIfAbsent(key, value));
+				break;
+			case 2:
+				if (random.nextInt(4) == 0) {
+					ehcache.remove(key);
+					cache.remove(key);
+				}
+				break;
+			default:
+				assertEquals(ehcache.get(key), cache.get(key));
+			}
+			assertEquals(ehcache.size(), cache.size());
+		}
+		assertEquals(sorted(ehcache.getKeys()), sorted(cache.getKeys()));
+		for (Integer key : ehcache.getKeys())
+			assertEquals(ehcache.get(key), cache.get(key));
+		assertEquals(0, cache.getStats().getEvictions());
+
+		for (Integer key : ehcache.getKeys())
+			ehcache.remove(key);
+	}
+
+	@Test
+	public void testEvictsOldestPut() {
+		int maxEntries = 100;
+		DataCache<Integer, String> cache =
+				new ConcurrentDataCache<Integer, String>(
+						"concurrentDataCacheTest", maxEntries, 0);
+		// Keys in the order they were put, replacing a value counting as a
+		// put. Only ever holds maxEntries.
+		Map<Integer, String> expected = new LinkedHashMap<Integer, String>();
+		Random random = new Random(24);
+		int numEvicted = 0;
+		for (int i = 0; i < 20000; ++i) {
+			Integer key = random.nextInt(300);
+			String value = "value" + i;
+			switch (random.nextInt(4)) {
+			case 0:
+				cache.put(key, value);
+				expected.remove(key);
+				expected.put(key, value);
+				break;
+			case 1:
+				String existing = expected.get(key);
+				assertEquals(existing, cache.putIfAbsent(key, value));
+				if (existing == null)
+					expected.put(key, value);
+				break;
+			case 2:
+				cache.remove(key);
+				expected.remove(key);
+				break;
+			default:
+				assertEquals(expected.get(key), cache.get(key));
+			}
+			if (expected.size() > maxEntries) {
+				expected.remove(expected.keySet().iterator().next());
+				++numEvicted;
+			}
+			assertEquals(expected.size(), cache.size());
+		}
+		assertEquals(sorted(new ArrayList<Integer>(expected.keySet())),
+				sorted(cache.getKeys()));
+		assertEquals(numEvicted, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void testEntriesExpire() throws InterruptedException {
+		DataCache<Integer, String> cache =
+				new ConcurrentDataCache<Integer, String>(
+						"concurrentDataCacheTest", 100, 1);
+		cache.put(1, "first");
+		assertNull(cache.putIfAbsent(2, "second"));
+		assertEquals("first", cache.get(1));
+		assertEquals("second", cache.putIfAbsent(2, "other"));
+
+		Thread.sleep(1100);
+		assertNull(cache.get(1));
+		// Replaces the expired entry
+		assertNull(cache.putIfAbsent(2, "third"));
+		assertEquals("third", cache.get(2));
+		assertEquals(1, cache.size());
+		assertEquals(2, cache.getStats().getEvictions());
+	}
+}
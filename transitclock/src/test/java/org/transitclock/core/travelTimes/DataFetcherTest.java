@@ -0,0 +1,242 @@
+package org.transitclock.core.travelTimes;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.core.travelTimes.DataFetcher.DbDataMapKey;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Match;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the trip days that DataFetcher.streamData() merges from
+ * arrivals/departures and matches ordered by trip, vehicle, and time with the
+ * maps that readData() used to read all of the data into, including for trips
+ * that span midnight and matches for trip days without any
+ * arrivals/departures.
+ */
+public class DataFetcherTest extends TestCase {
+
+	private static final TimeZone TIME_ZONE =
+			TimeZone.getTimeZone("America/Los_Angeles");
+
+	private static ArrivalDeparture arrDep(boolean isArrival,
+			String vehicleId, long time, String tripId, int stopPathIndex) {
+		return ArrivalDeparture.create(-1, isArrival, 0, vehicleId,
+				new Date(time), new Date(time), new Date(time), "stop"
+						+ stopPathIndex, stopPathIndex + 1, tripId, "block1",
+				null, "route1", "1", serviceId(tripId), "0", 0, null,
+				stopPathIndex, Integer.valueOf(stopPathIndex), 250.0f);
+	}
+
+	private static void set(Object o, String fieldName, Object value)
+			throws Exception {
+		Field field = Match.class.getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(o, value);
+	}
+
+	/**
+	 * Creates a match with the constructor used when reading from the
+	 * database, since the normal one needs a Core
+	 */
+	private static Match match(String vehicleId, long time, String tripId)
+			throws Exception {
+		Constructor<Match> constructor = Match.class.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		Match match = constructor.newInstance();
+		set(match, "vehicleId", vehicleId);
+		set(match, "avlTime", new Date(time));
+		set(match, "tripId", tripId);
+		set(match, "serviceId", serviceId(tripId));
+		return match;
+	}
+
+	private static String serviceId(String tripId) {
+		return "service" + (tripId.hashCode() & 1);
+	}
+
+	/**
+	 * Orders by tripId, vehicleId, and time, as the queries do
+	 */
+	private static <T> void sortByTrip(List<T> list,
+			final Comparator<T> byTime) {
+		Collections.sort(list, new Comparator<T>() {
+			@Override
+			public int compare(T o1, T o2) {
+				String[] ids1 = ids(o1);
+				String[] ids2 = ids(o2);
+				int result = ids1[0].compareTo(ids2[0]);
+				if (result == 0)
+					result = ids1[1].compareTo(ids2[1]);
+				return result != 0 ? result : byTime.compare(o1, o2);
+			}
+		});
+	}
+
+	private static String[] ids(Object o) {
+		if (o instanceof ArrivalDeparture)
+			return new String[] { ((ArrivalDeparture) o).getTripId(),
+					((ArrivalDeparture) o).getVehicleId() };
+		return new String[] { ((Match) o).getTripId(),
+				((Match) o).getVehicleId() };
+	}
+
+	private static final Comparator<ArrivalDeparture> ARR_DEP_BY_TIME =
+			new Comparator<ArrivalDeparture>() {
+				@Override
+				public int compare(ArrivalDeparture a1, ArrivalDeparture a2) {
+					return Long.compare(a1.getTime(), a2.getTime());
+				}
+			};
+
+	private static final Comparator<Match> MATCH_BY_TIME =
+			new Comparator<Match>() {
+				@Override
+				public int compare(Match m1, Match m2) {
+					return Long.compare(m1.getTime(), m2.getTime());
+				}
+			};
+
+	/**
+	 * Records the trip days passed to the handler
+	 */
+	private static class Recorder implements DataFetcher.TripDataHandler {
+		private final Map<DbDataMapKey, List<ArrivalDeparture>> arrDeps =
+				new LinkedHashMap<DbDataMapKey, List<ArrivalDeparture>>();
+		private final Map<DbDataMapKey, List<Match>> matches =
+				new HashMap<DbDataMapKey, List<Match>>();
+		private int numDone = 0;
+
+		@Override
+		public void handleTripData(DbDataMapKey key,
+				List<ArrivalDeparture> arrDepList, List<Match> matchesForTrip) {
+			assertEquals(0, numDone);
+			assertNull("trip day handled twice " + key,
+					arrDeps.put(key, arrDepList));
+			matches.put(key, matchesForTrip);
+		}
+
+		@Override
+		public void done() {
+			++numDone;
+		}
+	}
+
+	@Test
+	public void testSameTripDaysAsReadingIntoMaps() throws Exception {
+		DataFetcher dataFetcher = new DataFetcher(TIME_ZONE);
+		Random random = new Random(23);
+		Calendar calendar = new GregorianCalendar(TIME_ZONE);
+		calendar.set(2018, Calendar.DECEMBER, 28, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long firstDay = calendar.getTimeInMillis();
+
+		for (int round = 0; round < 20; ++round) {
+			List<ArrivalDeparture> arrDeps = new ArrayList<ArrivalDeparture>();
+			List<Match> matches = new ArrayList<Match>();
+			// Trips at various times of day, including ones that span
+			// midnight and the 3am change of day, over the end of the year
+			for (int t = 0; t < 15; ++t) {
+				String tripId = "trip" + t;
+				long startOfTrip = random.nextInt(24 * 60) * Time.MS_PER_MIN;
+				for (int day = 0; day < 6; ++day) {
+					if (random.nextInt(3) == 0)
+						continue;
+					String vehicleId = "vehicle" + random.nextInt(4);
+					long time = firstDay + day * Time.MS_PER_DAY + startOfTrip;
+					// Sometimes only matches, without any arrivals/departures
+					boolean onlyMatches = random.nextInt(8) == 0;
+					if (random.nextBoolean())
+						matches.add(match(vehicleId, time - 60000, tripId));
+					int numStops = 2 + random.nextInt(20);
+					for (int s = 0; s < numStops; ++s) {
+						if (!onlyMatches && s > 0)
+							arrDeps.add(arrDep(true, vehicleId, time, tripId,
+									s));
+						time += random.nextInt(60000);
+						if (!onlyMatches && s < numStops - 1)
+							arrDeps.add(arrDep(false, vehicleId, time, tripId,
+									s));
+						int numMatches = random.nextInt(4);
+						for (int m = 0; m < numMatches; ++m) {
+							time += 1 + random.nextInt(120000);
+							matches.add(match(vehicleId, time, tripId));
+						}
+					}
+				}
+			}
+
+			// What readData() put into the maps. Data read ordered by time.
+			Collections.sort(arrDeps, ARR_DEP_BY_TIME);
+			Collections.sort(matches, MATCH_BY_TIME);
+			Map<DbDataMapKey, List<ArrivalDeparture>> arrivalDepartureMap =
+					new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
+			for (ArrivalDeparture arrDep : arrDeps)
+				dataFetcher.addArrivalDepartureToMap(arrivalDepartureMap,
+						arrDep);
+			Map<DbDataMapKey, List<Match>> matchesMap =
+					new HashMap<DbDataMapKey, List<Match>>();
+			for (Match match : matches)
+				dataFetcher.addMatchToMap(matchesMap, match);
+
+			// Streamed ordered by trip, vehicle, and time
+			sortByTrip(arrDeps, ARR_DEP_BY_TIME);
+			sortByTrip(matches, MATCH_BY_TIME);
+			Recorder recorder = new Recorder();
+			assertEquals(!matches.isEmpty(), dataFetcher.streamData(
+					arrDeps.iterator(), matches.iterator(), recorder));
+			assertEquals(1, recorder.numDone);
+
+			assertEquals(arrivalDepartureMap, recorder.arrDeps);
+			for (DbDataMapKey key : arrivalDepartureMap.keySet()) {
+				List<Match> expected = matchesMap.get(key);
+				if (expected == null)
+					expected = new ArrayList<Match>();
+				assertEquals(key.toString(), expected,
+						recorder.matches.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void testNoData() {
+		DataFetcher dataFetcher = new DataFetcher(TIME_ZONE);
+		Recorder recorder = new Recorder();
+		assertFalse(dataFetcher.streamData(
+				new ArrayList<ArrivalDeparture>().iterator(),
+				new ArrayList<Match>().iterator(), recorder));
+		assertTrue(recorder.arrDeps.isEmpty());
+		assertEquals(1, recorder.numDone);
+	}
+
+	@Test
+	public void testNotOrderedByTrip() throws Exception {
+		DataFetcher dataFetcher = new DataFetcher(TIME_ZONE);
+		long time = System.currentTimeMillis();
+		List<ArrivalDeparture> arrDeps = new ArrayList<ArrivalDeparture>();
+		arrDeps.add(arrDep(false, "vehicle1", time, "tripB", 0));
+		arrDeps.add(arrDep(true, "vehicle1", time + 1000, "tripA", 1));
+		try {
+			dataFetcher.streamData(arrDeps.iterator(),
+					new ArrayList<Match>().iterator(), new Recorder());
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.transitclock.db.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.AvlReport;
+import org.transitclock.db.structs.VehicleConfig;
+
+/**
+ * Checks that the objects DataDbLogger queues can be spilled to disk and
+ * are replayed in order, including after the spill file is reopened as
+ * happens when the Core is restarted.
+ */
+public class DbQueueSpillFileTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("spill", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	private static ArrivalDeparture arrivalDeparture(int i) {
+		long time = 1500000000000L + i * 1000L;
+		return ArrivalDeparture.create(-1, i % 2 == 0, 0, "vehicle" + i,
+				new Date(time), new Date(time - 5000), null, "stop" + i, i + 1,
+				"trip" + i, "block" + i, null, "route", "1", "service", "0", 0,
+				null, i, Integer.valueOf(i), 250.0f);
+	}
+
+	@Test
+	public void testDataDbLoggerTypesCanBeSpilled() throws IOException {
+		DbQueueSpillFile<Object> spillFile =
+				new DbQueueSpillFile<Object>(directory, 4096);
+
+		ArrivalDeparture arrivalDeparture = arrivalDeparture(1);
+		// Stored in the ArrivalDepartureStore of this process
+		arrivalDeparture.setStoreId(0);
+		spillFile.append(arrivalDeparture);
+		spillFile.append(new AvlReport("vehicle1", 1500000000000L, 37.8, -122.3,
+				"test"));
+		spillFile.append(new VehicleConfig("vehicle1"));
+
+		List<Object> objects = spillFile.read(10);
+		assertEquals(3, objects.size());
+
+		ArrivalDeparture replayed = (ArrivalDeparture) objects.get(0);
+		assertEquals(arrivalDeparture.getDate(), replayed.getDate());
+		assertEquals(arrivalDeparture.getStopId(), replayed.getStopId());
+		// A replayed event has not been stored in the ArrivalDepartureStore
+		assertEquals(-1, replayed.getStoreId());
+
+		assertEquals("vehicle1", ((AvlReport) objects.get(1)).getVehicleId());
+		assertEquals("vehicle1", ((VehicleConfig) objects.get(2)).getId());
+
+		assertEquals(3, spillFile.commit());
+		assertTrue(spillFile.isEmpty());
+	}
+
+	@Test
+	public void testReplayedInOrderAfterReopening() throws IOException {
+		// Small segments so that the objects span several segment files
+		DbQueueSpillFile<ArrivalDeparture> spillFile =
+				new DbQueueSpillFile<ArrivalDeparture>(directory, 2048);
+		for (int i = 0; i < 100; ++i)
+			spillFile.append(arrivalDeparture(i));
+
+		// Write some of them, then read more without committing, which is
+		// what happens if the process is killed while writing a batch
+		List<ArrivalDeparture> read = new ArrayList<ArrivalDeparture>();
+		while (read.size() < 30) {
+			List<ArrivalDeparture> batch = spillFile.read(10);
+			read.addAll(batch);
+			spillFile.commit();
+		}
+		assertFalse(spillFile.read(10).isEmpty());
+		spillFile.force();
+
+		// The uncommitted batch is replayed after reopening
+		spillFile = new DbQueueSpillFile<ArrivalDeparture>(directory, 2048);
+		assertEquals(100 - read.size(), spillFile.size());
+		while (!spillFile.isEmpty()) {
+			List<ArrivalDeparture> batch = spillFile.read(10);
+			read.addAll(batch);
+			spillFile.commit();
+		}
+
+		assertEquals(100, read.size());
+		for (int i = 0; i < read.size(); ++i)
+			assertEquals("stop" + i, read.get(i).getStopId());
+	}
+}
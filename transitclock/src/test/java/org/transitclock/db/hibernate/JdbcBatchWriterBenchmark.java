@@ -0,0 +1,139 @@
+package org.transitclock.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.db.structs.Arrival;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Departure;
+
+/**
+ * JMH benchmark of the throughput, in rows per second, of writing batches of
+ * ArrivalDepartures to an in memory HSQLDB database. Compares saving each
+ * object via a Hibernate session, as DbQueue.processBatchOfData() does, with
+ * the multi-row inserts of the JdbcBatchWriter. The PostgreSQL COPY path
+ * needs a real PostgreSQL server so is not covered here.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.db.hibernate.JdbcBatchWriterBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JdbcBatchWriterBenchmark {
+
+	// Same as the default transitclock.db.batchSize
+	private static final int BATCH_SIZE = 100;
+
+	private SessionFactory sessionFactory;
+
+	private JdbcBatchWriter batchWriter;
+
+	// So that every row has a unique primary key
+	private long time = System.currentTimeMillis();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Configuration config = new Configuration();
+		config.setProperty("hibernate.dialect",
+				"org.hibernate.dialect.HSQLDialect");
+		config.setProperty("hibernate.connection.driver_class",
+				"org.hsqldb.jdbc.JDBCDriver");
+		config.setProperty("hibernate.connection.url",
+				"jdbc:hsqldb:mem:batchWriter" + System.nanoTime());
+		config.setProperty("hibernate.connection.username", "SA");
+		config.setProperty("hibernate.connection.password", "");
+		config.setProperty("hibernate.hbm2ddl.auto", "create");
+		config.setProperty("hibernate.jdbc.batch_size",
+				Integer.toString(BATCH_SIZE));
+		config.addAnnotatedClass(ArrivalDeparture.class);
+		config.addAnnotatedClass(Arrival.class);
+		config.addAnnotatedClass(Departure.class);
+		sessionFactory = config.buildSessionFactory(
+				new StandardServiceRegistryBuilder()
+						.applySettings(config.getProperties()).build());
+
+		batchWriter = new JdbcBatchWriter(false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sessionFactory.close();
+	}
+
+	private List<ArrivalDeparture> createBatch() {
+		List<ArrivalDeparture> batch =
+				new ArrayList<ArrivalDeparture>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			Date date = new Date(++time);
+			batch.add(i % 2 == 0 ?
+					new Arrival(0, "vehicle", date, date, null, 0, i, null)
+					: new Departure(0, "vehicle", date, date, null, 0, i, null));
+		}
+		return batch;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void hibernateSave() {
+		List<ArrivalDeparture> batch = createBatch();
+		Session session = sessionFactory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			for (ArrivalDeparture arrivalDeparture : batch)
+				session.save(arrivalDeparture);
+			tx.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void jdbcBatchWriter() {
+		List<ArrivalDeparture> batch = createBatch();
+		Session session = sessionFactory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			batchWriter.write(session, batch);
+			tx.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(JdbcBatchWriterBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
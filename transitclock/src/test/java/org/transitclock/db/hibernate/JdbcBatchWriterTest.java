@@ -0,0 +1,248 @@
+package org.transitclock.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.ReturningWork;
+import org.junit.Test;
+import org.transitclock.db.structs.Arrival;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Departure;
+
+/**
+ * Compares the rows written by the JdbcBatchWriter with the rows written by
+ * saving each object via a Hibernate session, which is what DbQueue did
+ * before. Uses an in memory HSQLDB database so the COPY data is compared
+ * with the saved rows instead of being copied.
+ */
+public class JdbcBatchWriterTest extends TestCase {
+
+	private static SessionFactory createSessionFactory() {
+		Configuration config = new Configuration();
+		config.setProperty("hibernate.dialect",
+				"org.hibernate.dialect.HSQLDialect");
+		config.setProperty("hibernate.connection.driver_class",
+				"org.hsqldb.jdbc.JDBCDriver");
+		config.setProperty("hibernate.connection.url",
+				"jdbc:hsqldb:mem:batchWriterTest" + System.nanoTime());
+		config.setProperty("hibernate.connection.username", "SA");
+		config.setProperty("hibernate.connection.password", "");
+		config.setProperty("hibernate.hbm2ddl.auto", "create");
+		config.addAnnotatedClass(ArrivalDeparture.class);
+		config.addAnnotatedClass(Arrival.class);
+		config.addAnnotatedClass(Departure.class);
+		return config.buildSessionFactory(new StandardServiceRegistryBuilder()
+				.applySettings(config.getProperties()).build());
+	}
+
+	/**
+	 * Arrivals and departures with null and non-null optional values and
+	 * stop IDs that need escaping for COPY.
+	 */
+	private static List<ArrivalDeparture> createArrivalDepartures() {
+		List<ArrivalDeparture> arrivalDepartures =
+				new ArrayList<ArrivalDeparture>();
+		long time = 1500000000000L;
+		for (int i = 0; i < 50; ++i) {
+			time += 1000;
+			arrivalDepartures.add(ArrivalDeparture.create(-1, i % 2 == 0,
+					i % 4, "vehicle" + i, new Date(time), new Date(time - 5000),
+					i % 3 == 0 ? null : new Date(time + 60000),
+					i % 5 == 0 ? "stop\t" + i : "stop\\" + i, i + 1,
+					"trip" + i, "block" + i, null, "route" + i,
+					i % 7 == 0 ? null : "route short " + i, "service" + i,
+					i % 2 == 0 ? "0" : "1", i % 3,
+					i % 4 == 0 ? null : new Date(time - 3600000), i,
+					Integer.valueOf(i), 250.5f + i));
+		}
+		return arrivalDepartures;
+	}
+
+	/**
+	 * Returns the rows of the table, each as the values of the columns in
+	 * the COPY text format, sorted so they can be compared.
+	 */
+	private static List<String> readRows(SessionFactory sessionFactory,
+			final List<String> columns) {
+		Session session = sessionFactory.openSession();
+		try {
+			return session.doReturningWork(new ReturningWork<List<String>>() {
+				@Override
+				public List<String> execute(Connection connection)
+						throws SQLException {
+					StringBuilder sql = new StringBuilder("select ");
+					for (int i = 0; i < columns.size(); ++i)
+						sql.append(i > 0 ? "," : "").append(columns.get(i));
+					sql.append(" from ArrivalsDepartures");
+
+					List<String> rows = new ArrayList<String>();
+					Statement statement = connection.createStatement();
+					try {
+						ResultSet resultSet =
+								statement.executeQuery(sql.toString());
+						while (resultSet.next()) {
+							StringBuilder row = new StringBuilder();
+							for (int i = 1; i <= columns.size(); ++i) {
+								if (i > 1)
+									row.append('\t');
+								Object value = resultSet.getObject(i);
+								// Hibernate maps float to a double column
+								if (value instanceof Double)
+									value = ((Double) value).floatValue();
+								JdbcBatchWriter.appendCopyValue(row, value);
+							}
+							rows.add(row.toString());
+						}
+					} finally {
+						statement.close();
+					}
+					Collections.sort(rows);
+					return rows;
+				}
+			});
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void save(SessionFactory sessionFactory,
+			List<ArrivalDeparture> arrivalDepartures) {
+		Session session = sessionFactory.openSession();
+		try {
+			Transaction tx = session.beginTransaction();
+			for (ArrivalDeparture arrivalDeparture : arrivalDepartures)
+				session.save(arrivalDeparture);
+			tx.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void testInsertWritesSameRowsAsSave() {
+		SessionFactory savedFactory = createSessionFactory();
+		SessionFactory writtenFactory = createSessionFactory();
+		try {
+			save(savedFactory, createArrivalDepartures());
+
+			JdbcBatchWriter batchWriter = new JdbcBatchWriter(false);
+			Session session = writtenFactory.openSession();
+			List<String> columns;
+			try {
+				Transaction tx = session.beginTransaction();
+				batchWriter.write(session, createArrivalDepartures());
+				tx.commit();
+				columns = batchWriter.getColumns(session, Arrival.class);
+			} finally {
+				session.close();
+			}
+
+			List<String> savedRows = readRows(savedFactory, columns);
+			assertEquals(50, savedRows.size());
+			assertEquals(savedRows, readRows(writtenFactory, columns));
+		} finally {
+			savedFactory.close();
+			writtenFactory.close();
+		}
+	}
+
+	@Test
+	public void testCopyDataMatchesSavedRows() throws SQLException {
+		SessionFactory sessionFactory = createSessionFactory();
+		try {
+			List<ArrivalDeparture> arrivalDepartures = createArrivalDepartures();
+			save(sessionFactory, arrivalDepartures);
+
+			// COPY is per class, Arrival and Departure are separate tables
+			// as far as the writer is concerned
+			List<Object> arrivals = new ArrayList<Object>();
+			List<Object> departures = new ArrayList<Object>();
+			for (ArrivalDeparture arrivalDeparture : arrivalDepartures)
+				(arrivalDeparture.isArrival() ? arrivals : departures)
+						.add(arrivalDeparture);
+
+			JdbcBatchWriter batchWriter = new JdbcBatchWriter(true);
+			Session session = sessionFactory.openSession();
+			List<String> copyRows = new ArrayList<String>();
+			List<String> columns;
+			try {
+				Collections.addAll(copyRows,
+						batchWriter.getCopyData(session, arrivals).split("\n"));
+				Collections.addAll(copyRows,
+						batchWriter.getCopyData(session, departures).split("\n"));
+				columns = batchWriter.getColumns(session, Arrival.class);
+				assertEquals(columns,
+						batchWriter.getColumns(session, Departure.class));
+			} finally {
+				session.close();
+			}
+			Collections.sort(copyRows);
+
+			assertEquals(readRows(sessionFactory, columns), copyRows);
+		} finally {
+			sessionFactory.close();
+		}
+	}
+
+	@Test
+	public void testValueRecorder() throws Exception {
+		JdbcBatchWriter.ValueRecorder recorder =
+				new JdbcBatchWriter.ValueRecorder(5);
+		PreparedStatement statement = recorder.getStatement();
+		statement.setBinaryStream(1,
+				new ByteArrayInputStream(new byte[] {1, 2, (byte) 0xAB, 4}), 3);
+		statement.setCharacterStream(2, new StringReader("a\tb"));
+		statement.setObject(3, "value", java.sql.Types.VARCHAR);
+		statement.setNull(4, java.sql.Types.INTEGER);
+		statement.setTimestamp(5, new java.sql.Timestamp(0),
+				java.util.Calendar.getInstance());
+
+		Object[] values = recorder.getValues();
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < values.length; ++i) {
+			if (i > 0)
+				data.append('\t');
+			JdbcBatchWriter.appendCopyValue(data, values[i]);
+		}
+		assertEquals("\\\\x0102ab\ta\\tb\tvalue\t\\N\t"
+				+ new java.sql.Timestamp(0), data.toString());
+
+		// Anything that isn't recording a value must be a SQLException so
+		// that the entity is written with INSERT statements instead, and
+		// never a RuntimeException that DbQueue doesn't handle
+		try {
+			statement.getConnection();
+			fail("Expected SQLFeatureNotSupportedException");
+		} catch (SQLFeatureNotSupportedException e) {
+		}
+		try {
+			statement.setURL(1, new java.net.URL("http://localhost/"));
+			JdbcBatchWriter.appendCopyValue(new StringBuilder(),
+					recorder.getValues()[0]);
+			fail("Expected SQLFeatureNotSupportedException");
+		} catch (SQLFeatureNotSupportedException e) {
+		}
+		try {
+			statement.setString(6, "out of range");
+			fail("Expected SQLException");
+		} catch (SQLException e) {
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.transitclock.db.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the trips found using the TripTimesIndex of a Block with the loops
+ * over every trip that getTripsCurrentlyActive() and activeTripIndex() used
+ * before, for random trip times including ones around midnight.
+ */
+public class BlockTest extends TestCase {
+
+	/**
+	 * What addTripIfActive() did
+	 */
+	private static boolean isActive(int secsInDay, int startTime,
+			int endTime, int allowableEarlyTimeSecs) {
+		return secsInDay > startTime - allowableEarlyTimeSecs
+				&& secsInDay < endTime;
+	}
+
+	/**
+	 * What getTripsCurrentlyActive() did, trying the next and the previous
+	 * day for trips that weren't active
+	 */
+	private static List<Integer> getActiveTripIndices(int[] startTimes,
+			int[] endTimes, int allowableEarlyTimeSecs, int secsInDay) {
+		List<Integer> tripIndices = new ArrayList<Integer>();
+		for (int i = 0; i < startTimes.length; ++i) {
+			if (isActive(secsInDay, startTimes[i], endTimes[i],
+					allowableEarlyTimeSecs)
+					|| isActive(secsInDay - Time.SEC_PER_DAY, startTimes[i],
+							endTimes[i], allowableEarlyTimeSecs)
+					|| isActive(secsInDay + Time.SEC_PER_DAY, startTimes[i],
+							endTimes[i], allowableEarlyTimeSecs))
+				tripIndices.add(i);
+		}
+		return tripIndices;
+	}
+
+	/**
+	 * What activeTripIndex() did
+	 */
+	private static int activeTripIndex(int[] startTimes, int[] endTimes,
+			int secondsIntoDay) {
+		int previousTripEndTimeSecs = startTimes[0];
+		for (int i = 0; i < startTimes.length; ++i) {
+			if (secondsIntoDay > previousTripEndTimeSecs
+					&& secondsIntoDay < endTimes[i])
+				return i;
+		}
+		return -1;
+	}
+
+	@Test
+	public void testTripTimesIndexSameAsLoops() {
+		Random random = new Random(23);
+		for (int b = 0; b < 300; ++b) {
+			// Trips one after the other, sometimes overlapping, starting
+			// anywhere from before midnight to the next morning
+			int numTrips = 1 + random.nextInt(20);
+			int[] startTimes = new int[numTrips];
+			int[] endTimes = new int[numTrips];
+			int time = random.nextInt(30 * Time.SEC_PER_HOUR)
+					- 2 * Time.SEC_PER_HOUR;
+			for (int i = 0; i < numTrips; ++i) {
+				startTimes[i] = time;
+				endTimes[i] = time + random.nextInt(2 * Time.SEC_PER_HOUR);
+				time = endTimes[i] + random.nextInt(30 * Time.SEC_PER_MIN)
+						- 10 * Time.SEC_PER_MIN;
+			}
+			int allowableEarlyTimeSecs = random.nextInt(3) == 0 ? 0
+					: random.nextInt(30 * Time.SEC_PER_MIN);
+			Block.TripTimesIndex index = new Block.TripTimesIndex(startTimes,
+					endTimes, allowableEarlyTimeSecs);
+
+			for (int q = 0; q < 500; ++q) {
+				int secsInDay = random.nextInt(Time.SEC_PER_DAY);
+				if (q % 2 == 0) {
+					// Right at or around the start or end of a trip
+					int i = random.nextInt(numTrips);
+					int t = random.nextBoolean() ? startTimes[i]
+							- allowableEarlyTimeSecs : endTimes[i];
+					secsInDay = t + random.nextInt(3) - 1;
+					if (secsInDay >= Time.SEC_PER_DAY)
+						secsInDay -= Time.SEC_PER_DAY;
+					else if (secsInDay < 0)
+						secsInDay += Time.SEC_PER_DAY;
+				}
+				assertEquals("secsInDay=" + secsInDay,
+						getActiveTripIndices(startTimes, endTimes,
+								allowableEarlyTimeSecs, secsInDay),
+						index.getActiveTripIndices(secsInDay));
+
+				// Also for times of the next day since not adjusted
+				int secondsIntoDay = q % 4 == 1 ? secsInDay + Time.SEC_PER_DAY
+						: secsInDay;
+				assertEquals("secondsIntoDay=" + secondsIntoDay,
+						activeTripIndex(startTimes, endTimes, secondsIntoDay),
+						index.activeTripIndex(secondsIntoDay));
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.transitclock.db.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of spatial matches per second against a single long trip
+ * pattern, comparing looking at every segment, which is what the
+ * SpatialMatcher used to do, with only looking at the candidate segments
+ * from the TripPatternSegmentIndex. For each segment looked at the distance
+ * to the segment and the distance along it are determined, as the
+ * SpatialMatcher does. The AVL locations are random points within 100m of
+ * the path so there usually are nearby segments.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.db.structs.TripPatternSegmentIndexBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TripPatternSegmentIndexBenchmark {
+
+	private static final int SEGMENTS_PER_STOP_PATH = 10;
+
+	private static final double MAX_DISTANCE = 60.0;
+
+	@State(Scope.Benchmark)
+	public static class TripPatternState {
+		@Param({"40", "150", "400"})
+		int numStopPaths;
+
+		List<VectorWithHeading> allSegments;
+		TripPatternSegmentIndex index;
+		List<Location> avlLocations;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			// A wandering path with segments about 40m long
+			Random random = new Random(42);
+			double lat = 37.7;
+			double lon = -122.4;
+			double heading = 0.0;
+			allSegments = new ArrayList<VectorWithHeading>();
+			List<List<VectorWithHeading>> segmentsByStopPath =
+					new ArrayList<List<VectorWithHeading>>();
+			for (int sp = 0; sp < numStopPaths; ++sp) {
+				List<VectorWithHeading> segments =
+						new ArrayList<VectorWithHeading>();
+				for (int s = 0; s < SEGMENTS_PER_STOP_PATH; ++s) {
+					heading += (random.nextDouble() - 0.5) * 0.6;
+					Location l1 = new Location(lat, lon);
+					lat += Math.sin(heading) * 0.00036;
+					lon += Math.cos(heading) * 0.00045;
+					VectorWithHeading segment =
+							new VectorWithHeading(l1, new Location(lat, lon));
+					segments.add(segment);
+					allSegments.add(segment);
+				}
+				segmentsByStopPath.add(segments);
+			}
+			boolean[] layovers = new boolean[numStopPaths];
+			layovers[0] = true;
+			index = new TripPatternSegmentIndex(segmentsByStopPath, layovers,
+					Double.NaN);
+
+			avlLocations = new ArrayList<Location>();
+			for (int i = 0; i < 1000; ++i) {
+				VectorWithHeading segment =
+						allSegments.get(random.nextInt(allSegments.size()));
+				avlLocations.add(new Location(
+						segment.getL1().getLat()
+								+ (random.nextDouble() - 0.5) * 0.0018,
+						segment.getL1().getLon()
+								+ (random.nextDouble() - 0.5) * 0.0022));
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AvlState {
+		private int next = 0;
+
+		Location next(TripPatternState state) {
+			next = (next + 1) % state.avlLocations.size();
+			return state.avlLocations.get(next);
+		}
+	}
+
+	@Benchmark
+	public double allSegments(TripPatternState state, AvlState avl) {
+		Location loc = avl.next(state);
+		double sum = 0.0;
+		for (VectorWithHeading segment : state.allSegments) {
+			double distance = segment.distance(loc);
+			if (distance < MAX_DISTANCE)
+				sum += segment.matchDistanceAlongVector(loc);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double indexedSegments(TripPatternState state, AvlState avl) {
+		Location loc = avl.next(state);
+		double sum = 0.0;
+		for (int segment : state.index.getCandidateSegments(loc, MAX_DISTANCE)) {
+			VectorWithHeading vector = state.allSegments.get(segment);
+			double distance = vector.distance(loc);
+			if (distance < MAX_DISTANCE)
+				sum += vector.matchDistanceAlongVector(loc);
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(TripPatternSegmentIndexBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
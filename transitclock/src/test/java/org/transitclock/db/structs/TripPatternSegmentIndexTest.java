@@ -0,0 +1,140 @@
+package org.transitclock.db.structs;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.utils.Geo;
+
+/**
+ * Compares the candidate segments of the TripPatternSegmentIndex with looking
+ * at every segment of the trip pattern, which is what the SpatialMatcher used
+ * to do. Every segment within the max distance, and the last segment of every
+ * layover stop path, must be a candidate, and the candidates must be in trip
+ * order so that the SpatialMatcher finds the same local minimums.
+ */
+public class TripPatternSegmentIndexTest extends TestCase {
+
+	/**
+	 * The segment vectors of each stop path of a wandering trip pattern that
+	 * sometimes doubles back on itself
+	 */
+	private static List<List<VectorWithHeading>> createSegmentVectors(
+			Random random, int numStopPaths, Location start) {
+		List<List<VectorWithHeading>> segmentVectorsByStopPath =
+				new ArrayList<List<VectorWithHeading>>();
+		Location loc = start;
+		double heading = random.nextDouble() * 2 * Math.PI;
+		for (int s = 0; s < numStopPaths; ++s) {
+			List<VectorWithHeading> vectors =
+					new ArrayList<VectorWithHeading>();
+			int numSegments = 1 + random.nextInt(10);
+			for (int i = 0; i < numSegments; ++i) {
+				heading += random.nextInt(20) == 0 ? Math.PI
+						: random.nextGaussian() * 0.3;
+				double length = 5.0 + random.nextDouble() * 80.0;
+				Location next = Geo.offset(loc, length * Math.cos(heading),
+						length * Math.sin(heading));
+				vectors.add(new VectorWithHeading(loc, next));
+				loc = next;
+			}
+			segmentVectorsByStopPath.add(vectors);
+		}
+		return segmentVectorsByStopPath;
+	}
+
+	private void checkSameAsEverySegment(Random random, int numStopPaths,
+			Location start) {
+		List<List<VectorWithHeading>> segmentVectorsByStopPath =
+				createSegmentVectors(random, numStopPaths, start);
+		boolean[] layoverStopPaths = new boolean[numStopPaths];
+		for (int i = 0; i < numStopPaths; ++i)
+			layoverStopPaths[i] = random.nextInt(8) == 0;
+		TripPatternSegmentIndex index = new TripPatternSegmentIndex(
+				segmentVectorsByStopPath, layoverStopPaths, Double.NaN);
+
+		// Every segment in trip order, as the SpatialMatcher went through
+		// them
+		List<VectorWithHeading> allSegments =
+				new ArrayList<VectorWithHeading>();
+		for (List<VectorWithHeading> vectors : segmentVectorsByStopPath)
+			allSegments.addAll(vectors);
+		assertEquals(allSegments.size(), index.getNumSegments());
+		int segment = 0;
+		for (int s = 0; s < numStopPaths; ++s) {
+			for (int i = 0; i < segmentVectorsByStopPath.get(s).size(); ++i) {
+				assertEquals(s, index.getStopPathIndex(segment));
+				assertEquals(i, index.getSegmentIndex(segment));
+				++segment;
+			}
+		}
+
+		for (int q = 0; q < 500; ++q) {
+			// Locations near the path as well as far away
+			VectorWithHeading near =
+					allSegments.get(random.nextInt(allSegments.size()));
+			Location loc = Geo.offset(near.getL1(),
+					random.nextGaussian() * 150.0,
+					random.nextGaussian() * 150.0);
+			if (random.nextInt(10) == 0)
+				loc = Geo.offset(loc, 5000.0, 5000.0);
+			double maxDistance = random.nextInt(5) == 0 ? 0.0
+					: random.nextDouble() * 300.0;
+
+			int[] candidates = index.getCandidateSegments(loc, maxDistance);
+			boolean[] isCandidate = new boolean[allSegments.size()];
+			for (int i = 0; i < candidates.length; ++i) {
+				if (i > 0)
+					assertTrue(candidates[i] > candidates[i - 1]);
+				isCandidate[candidates[i]] = true;
+			}
+			for (int i = 0; i < allSegments.size(); ++i) {
+				int stopPathIndex = index.getStopPathIndex(i);
+				boolean layover = layoverStopPaths[stopPathIndex]
+						&& index.getSegmentIndex(i) == segmentVectorsByStopPath
+								.get(stopPathIndex).size() - 1;
+				if (layover || allSegments.get(i).distance(loc) <= maxDistance)
+					assertTrue("segment " + i + " " + loc + " " + maxDistance,
+							isCandidate[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testSameAsLookingAtEverySegment() {
+		Random random = new Random(23);
+		for (int numStopPaths : new int[] {1, 2, 5, 40, 400}) {
+			checkSameAsEverySegment(random, numStopPaths,
+					new Location(37.3, -122.0));
+			// Far from the equator
+			checkSameAsEverySegment(random, numStopPaths,
+					new Location(69.6, 18.9));
+		}
+	}
+
+	@Test
+	public void testMaxStopPathMaxDistance() throws Exception {
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		for (Double maxDistance : new Double[] {null, 120.0, null, 80.0}) {
+			ArrayList<Location> locations = new ArrayList<Location>();
+			locations.add(new Location(37.3, -122.0));
+			locations.add(new Location(37.301, -122.0));
+			Constructor<StopPath> constructor =
+					StopPath.class.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			StopPath stopPath = constructor.newInstance();
+			stopPath.setLocations(locations);
+			stopPath.onLoad(null, null);
+			stopPath.setMaxDistance(maxDistance);
+			stopPaths.add(stopPath);
+		}
+		assertEquals(120.0, new TripPatternSegmentIndex(stopPaths)
+				.getMaxStopPathMaxDistance());
+		assertTrue(Double.isNaN(new TripPatternSegmentIndex(stopPaths.subList(
+				2, 3)).getMaxStopPathMaxDistance()));
+	}
+}
@@ -0,0 +1,129 @@
+package org.transitclock.gtfs;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hibernate.HibernateException;
+import org.hibernate.collection.internal.PersistentList;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.junit.Test;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.ScheduleTime;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.TravelTimesForTrip;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+
+/**
+ * Checks that BulkConfigLoader.detach() replaces the Hibernate collections
+ * of the config with plain lists of the same elements in the same order, so
+ * that the blocks and trips return what they did when their collections were
+ * read through the global session, but without needing a session.
+ * <p>
+ * Comparing the bulk loaded config with the lazy loaded one needs a
+ * database, see ConfigLoadingBenchmark.
+ */
+public class BulkConfigLoaderTest extends TestCase {
+
+	private static <T> T create(Class<T> cls) throws Exception {
+		Constructor<T> constructor = cls.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		return constructor.newInstance();
+	}
+
+	private static Object get(Object entity, Class<?> entityClass,
+			String fieldName) throws Exception {
+		Field field = entityClass.getDeclaredField(fieldName);
+		field.setAccessible(true);
+		return field.get(entity);
+	}
+
+	private static void set(Object entity, Class<?> entityClass,
+			String fieldName, Object value) throws Exception {
+		Field field = entityClass.getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(entity, value);
+	}
+
+	/**
+	 * Sets the member to a Hibernate list of the elements, as read in by a
+	 * session that is now closed, then detaches it and checks that it is a
+	 * plain list of the same elements.
+	 */
+	private static <T> void checkDetached(Object entity, Class<?> entityClass,
+			String fieldName, List<T> elements) throws Exception {
+		set(entity, entityClass, fieldName, new PersistentList(null,
+				new ArrayList<T>(elements)));
+
+		BulkConfigLoader.detach(entity, entityClass, fieldName);
+
+		Object detached = get(entity, entityClass, fieldName);
+		assertFalse(fieldName, detached instanceof PersistentCollection);
+		assertEquals(fieldName, ArrayList.class, detached.getClass());
+		List<?> list = (List<?>) detached;
+		assertEquals(fieldName, elements.size(), list.size());
+		for (int i = 0; i < elements.size(); ++i)
+			assertSame(fieldName, elements.get(i), list.get(i));
+	}
+
+	@Test
+	public void testDetachedSameAsReadThroughSession() throws Exception {
+		// The members that are detached after the bulk read
+		List<Location> locations = new ArrayList<Location>();
+		for (int i = 0; i < 5; ++i)
+			locations.add(new Location(37.0 + i * 0.001, -122.0));
+		StopPath stopPath = create(StopPath.class);
+		checkDetached(stopPath, StopPath.class, "locations", locations);
+
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		stopPaths.add(stopPath);
+		stopPaths.add(create(StopPath.class));
+		checkDetached(create(TripPattern.class), TripPattern.class,
+				"stopPaths", stopPaths);
+
+		checkDetached(create(TravelTimesForTrip.class),
+				TravelTimesForTrip.class, "travelTimesForStopPaths",
+				new ArrayList<Object>());
+
+		List<ScheduleTime> scheduleTimes = new ArrayList<ScheduleTime>();
+		for (int i = 0; i < 4; ++i)
+			scheduleTimes.add(new ScheduleTime(i * 60, i * 60 + 10));
+		Trip trip = create(Trip.class);
+		checkDetached(trip, Trip.class, "scheduledTimesList", scheduleTimes);
+		// No longer needs the global session of the Core to get the
+		// schedule times
+		for (int i = 0; i < scheduleTimes.size(); ++i)
+			assertSame(scheduleTimes.get(i), trip.getScheduleTime(i));
+
+		List<Trip> trips = new ArrayList<Trip>();
+		trips.add(trip);
+		trips.add(create(Trip.class));
+		Block block = new Block(0, "block", "service", 0, 3600,
+				new ArrayList<Trip>());
+		checkDetached(block, Block.class, "trips", trips);
+		assertEquals(trips, block.getTrips());
+	}
+
+	@Test
+	public void testNullCollectionLeftAsNull() throws Exception {
+		Trip trip = create(Trip.class);
+		set(trip, Trip.class, "scheduledTimesList", null);
+		BulkConfigLoader.detach(trip, Trip.class, "scheduledTimesList");
+		assertNull(get(trip, Trip.class, "scheduledTimesList"));
+	}
+
+	@Test
+	public void testUnknownMemberNotDetached() throws Exception {
+		try {
+			BulkConfigLoader.detach(create(Trip.class), Trip.class,
+					"noSuchMember");
+			fail("Expected HibernateException");
+		} catch (HibernateException e) {
+		}
+	}
+}
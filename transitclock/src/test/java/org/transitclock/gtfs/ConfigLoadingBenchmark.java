@@ -0,0 +1,90 @@
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.applications.Core;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Trip;
+
+/**
+ * JMH benchmark of the startup time of the core, comparing the default lazy
+ * loading of the trips of each block via the global session with the bulk
+ * loading of transitclock.blockLoading.bulk. Each measurement is done in a
+ * new JVM since the Core is a singleton and since the point is to measure a
+ * cold start. After the Core is created the trips and schedule times of
+ * every block are accessed, since with lazy loading that is the cost that is
+ * otherwise paid when the first AVL reports are processed.
+ * <p>
+ * Needs a database containing a large GTFS configuration. The
+ * transitclock.* and hibernate.* system properties, such as
+ * transitclock.configFiles, are passed on to the forked JVMs.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.gtfs.ConfigLoadingBenchmark
+ * -Dexec.classpathScope=test -Dtransitclock.configFiles=...
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class ConfigLoadingBenchmark {
+
+	/**
+	 * Creates the Core, which reads in the configuration, and then accesses
+	 * all of the trips of all of the blocks.
+	 *
+	 * @return number of schedule times, so that nothing is optimized away
+	 */
+	private static int startCore() {
+		Core core = Core.createCore();
+		int numScheduleTimes = 0;
+		for (Block block : core.getDbConfig().getBlocks()) {
+			for (Trip trip : block.getTrips())
+				numScheduleTimes += trip.getScheduleTimes().size();
+		}
+		return numScheduleTimes;
+	}
+
+	@Benchmark
+	@Fork(value = 5,
+			jvmArgsAppend = "-Dtransitclock.blockLoading.bulk=false")
+	public int lazyLoading() {
+		return startCore();
+	}
+
+	@Benchmark
+	@Fork(value = 5,
+			jvmArgsAppend = "-Dtransitclock.blockLoading.bulk=true")
+	public int bulkLoading() {
+		return startCore();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		// Pass the config on to the forked JVMs
+		List<String> jvmArgs = new ArrayList<String>();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("transitclock.")
+					|| name.startsWith("hibernate."))
+				jvmArgs.add("-D" + name + "=" + System.getProperty(name));
+		}
+
+		Options options = new OptionsBuilder()
+				.include(ConfigLoadingBenchmark.class.getSimpleName())
+				.jvmArgsPrepend(jvmArgs.toArray(new String[jvmArgs.size()]))
+				.build();
+		new Runner(options).run();
+	}
+}
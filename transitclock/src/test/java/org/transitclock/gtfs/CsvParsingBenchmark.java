@@ -0,0 +1,169 @@
+package org.transitclock.gtfs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.gtfs.gtfsStructs.GtfsStopTime;
+import org.transitclock.gtfs.readers.GtfsStopTimesReader;
+import org.transitclock.utils.csv.CsvBaseReader;
+
+/**
+ * JMH benchmark of reading in a large stop_times.txt file with
+ * GtfsStopTimesReader, comparing commons-csv with FastCsvParser, both with
+ * a single thread and with the file parsed in parallel chunks. Each
+ * benchmark runs in its own JVM since the parser is selected via the
+ * transitclock.csv.fastParsing and transitclock.csv.fastParsingThreads
+ * config values.
+ * <p>
+ * A synthetic stop_times.txt file is created during setup. Trips are 40
+ * stops long and some of them go past midnight so that there are times
+ * such as 25:13:00.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.gtfs.CsvParsingBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class CsvParsingBenchmark {
+
+	@Param({ "5000000" })
+	private int numStopTimes;
+
+	private static final int STOPS_PER_TRIP = 40;
+
+	private File dir;
+
+	/**
+	 * Writes the stop_times.txt file into a new temporary directory
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = File.createTempFile("csvParsingBenchmark", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "stop_times.txt");
+
+		Random random = new Random(42);
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			out.write("trip_id,arrival_time,departure_time,stop_id,"
+					+ "stop_sequence,stop_headsign,pickup_type,"
+					+ "drop_off_type,shape_dist_traveled,timepoint\n");
+			int numTrips = numStopTimes / STOPS_PER_TRIP;
+			for (int trip = 0; trip < numTrips; ++trip) {
+				String tripId = "trip_" + trip;
+				int route = random.nextInt(200);
+				int timeSecs = 4 * 3600 + random.nextInt(22 * 3600);
+				double distance = 0.0;
+				for (int stop = 0; stop < STOPS_PER_TRIP; ++stop) {
+					String time = timeOfDay(timeSecs);
+					out.write(tripId);
+					out.write(',');
+					out.write(time);
+					out.write(',');
+					out.write(time);
+					out.write(",stop_");
+					out.write(Integer.toString(route * 50 + stop));
+					out.write(',');
+					out.write(Integer.toString(stop + 1));
+					out.write(",,0,0,");
+					out.write(Double.toString(Math.round(distance * 100.0) / 100.0));
+					out.write(stop % 5 == 0 ? ",1\n" : ",0\n");
+					timeSecs += 30 + random.nextInt(150);
+					distance += 100.0 + random.nextDouble() * 500.0;
+				}
+			}
+		} finally {
+			out.close();
+		}
+		System.out.println("Created " + file + " with " + file.length()
+				+ " bytes");
+	}
+
+	private static String timeOfDay(int secs) {
+		return String.format("%d:%02d:%02d", secs / 3600, secs / 60 % 60,
+				secs % 60);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(dir, "stop_times.txt").delete();
+		dir.delete();
+	}
+
+	/**
+	 * Reads the file, using the parser selected by the config of the JVM.
+	 * The stop times are handed over one by one instead of being collected
+	 * into a list so that just the parsing is measured.
+	 * 
+	 * @return sum of the departure times, so that nothing is optimized away
+	 */
+	private long readStopTimes() {
+		final long[] sum = new long[1];
+		new GtfsStopTimesReader(dir.getPath()).read(
+				new CsvBaseReader.Handler<GtfsStopTime>() {
+					@Override
+					public void handle(GtfsStopTime stopTime) {
+						sum[0] += stopTime.getDepartureTimeSecs();
+					}
+				});
+		return sum[0];
+	}
+
+	@Benchmark
+	@Fork(value = 1,
+			jvmArgsAppend = "-Dtransitclock.csv.fastParsing=false")
+	public long commonsCsv() {
+		return readStopTimes();
+	}
+
+	@Benchmark
+	@Fork(value = 1,
+			jvmArgsAppend = { "-Dtransitclock.csv.fastParsing=true",
+					"-Dtransitclock.csv.fastParsingThreads=1" })
+	public long fastParsing() {
+		return readStopTimes();
+	}
+
+	@Benchmark
+	@Fork(value = 1,
+			jvmArgsAppend = "-Dtransitclock.csv.fastParsing=true")
+	public long fastParsingParallel() {
+		return readStopTimes();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(CsvParsingBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
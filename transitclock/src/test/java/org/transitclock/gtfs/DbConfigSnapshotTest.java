@@ -0,0 +1,361 @@
+package org.transitclock.gtfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Agency;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Calendar;
+import org.transitclock.db.structs.CalendarDate;
+import org.transitclock.db.structs.FareAttribute;
+import org.transitclock.db.structs.FareRule;
+import org.transitclock.db.structs.Frequency;
+import org.transitclock.db.structs.Route;
+import org.transitclock.db.structs.Stop;
+import org.transitclock.db.structs.Transfer;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+
+/**
+ * Checks that the configuration read back from a DbConfigSnapshot is the
+ * same as the configuration it was written from, which is what DbConfig read
+ * from the database before, including the objects that are shared such as
+ * the trips of a block and their trip patterns. Also checks that a snapshot
+ * that doesn't match, including one for an older travel times rev of the
+ * config rev, is not used.
+ */
+public class DbConfigSnapshotTest extends TestCase {
+
+	private static final String AGENCY_ID = "snapshot agency";
+
+	// Tag of an object encoded field by field, see BinaryCodec
+	private static final byte OBJECT = 20;
+
+	private final Random random = new Random(23);
+
+	private int counter = 0;
+
+	// The objects created for each class, so that they can be referred to
+	// by other objects like the db structs of a config rev are
+	private final Map<Class<?>, List<Object>> created =
+			new HashMap<Class<?>, List<Object>>();
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("snapshot", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Creates an object of the class with every serializable field set,
+	 * sometimes to an object that was already created.
+	 *
+	 * @return the object, or null if the class cannot be created
+	 */
+	private Object sample(Class<?> cls, Type type, int depth)
+			throws Exception {
+		++counter;
+		if (cls == String.class)
+			return "value" + counter;
+		if (cls == int.class || cls == Integer.class)
+			return counter;
+		if (cls == long.class || cls == Long.class)
+			return 1500000000000L + counter;
+		if (cls == short.class || cls == Short.class)
+			return (short) counter;
+		if (cls == float.class || cls == Float.class)
+			return counter + 0.5f;
+		if (cls == double.class || cls == Double.class)
+			return counter + 0.25;
+		if (cls == boolean.class || cls == Boolean.class)
+			return counter % 2 == 0;
+		if (cls == Date.class)
+			return new Date(1500000000000L + counter * 1000L);
+		if (cls.isEnum()) {
+			Object[] constants = cls.getEnumConstants();
+			return constants[counter % constants.length];
+		}
+
+		List<Object> objects = created.get(cls);
+		if (objects != null && !objects.isEmpty()
+				&& (depth > 3 || random.nextBoolean()))
+			return objects.get(random.nextInt(objects.size()));
+		if (depth > 3)
+			return null;
+
+		if (Collection.class.isAssignableFrom(cls)
+				|| Map.class.isAssignableFrom(cls)) {
+			if (!(type instanceof ParameterizedType))
+				return null;
+			Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+			if (Collection.class.isAssignableFrom(cls)) {
+				Collection<Object> collection = Set.class.isAssignableFrom(cls) ?
+						new HashSet<Object>() : new ArrayList<Object>();
+				if (args[0] instanceof Class)
+					for (int i = 0; i < 3; ++i) {
+						Object element =
+								sample((Class<?>) args[0], args[0], depth + 1);
+						if (element != null)
+							collection.add(element);
+					}
+				return cls.isInstance(collection) ? collection : null;
+			}
+			Map<Object, Object> map = new HashMap<Object, Object>();
+			if (args[0] instanceof Class && args[1] instanceof Class) {
+				for (int i = 0; i < 2; ++i)
+					map.put(sample((Class<?>) args[0], args[0], depth + 1),
+							sample((Class<?>) args[1], args[1], depth + 1));
+			}
+			return cls.isInstance(map) ? map : null;
+		}
+
+		if (!cls.getName().startsWith("org.transitclock.")
+				|| Modifier.isAbstract(cls.getModifiers()))
+			return null;
+		Constructor<?> constructor;
+		try {
+			constructor = cls.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		constructor.setAccessible(true);
+		Object obj = constructor.newInstance();
+		if (objects == null) {
+			objects = new ArrayList<Object>();
+			created.put(cls, objects);
+		}
+		// Before setting the fields so that it can be referred to by them
+		objects.add(obj);
+		for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers))
+					continue;
+				field.setAccessible(true);
+				Object value = sample(field.getType(), field.getGenericType(),
+						depth + 1);
+				if (value != null || !field.getType().isPrimitive())
+					field.set(obj, value);
+			}
+		}
+		return obj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> List<T> sampleList(Class<T> cls) throws Exception {
+		for (int i = 0; i < 3; ++i)
+			sample(cls, cls, 0);
+		return (List<T>) new ArrayList<Object>(created.get(cls));
+	}
+
+	/**
+	 * Compares the serializable state of the objects. An object that was
+	 * already compared must have been decoded as the same object as before.
+	 */
+	private static void assertSameState(String path, Object expected,
+			Object actual, Map<Object, Object> compared) throws Exception {
+		if (expected == null || actual == null) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		if (expected instanceof Collection) {
+			assertTrue(path, actual instanceof Collection);
+			assertEquals(path, ((Collection<?>) expected).size(),
+					((Collection<?>) actual).size());
+			if (expected instanceof Set) {
+				// Only sets of values so can compare them directly
+				assertEquals(path, expected, actual);
+				return;
+			}
+			Iterator<?> it = ((Collection<?>) actual).iterator();
+			int i = 0;
+			for (Object element : (Collection<?>) expected)
+				assertSameState(path + "[" + i++ + "]", element, it.next(),
+						compared);
+			return;
+		}
+		if (expected instanceof Map) {
+			assertTrue(path, actual instanceof Map);
+			assertEquals(path, ((Map<?, ?>) expected).keySet(),
+					((Map<?, ?>) actual).keySet());
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) expected).entrySet())
+				assertSameState(path + "[" + entry.getKey() + "]",
+						entry.getValue(),
+						((Map<?, ?>) actual).get(entry.getKey()), compared);
+			return;
+		}
+		assertEquals(path, expected.getClass(), actual.getClass());
+		if (expected.getClass().isArray()) {
+			assertEquals(path, Array.getLength(expected),
+					Array.getLength(actual));
+			for (int i = 0; i < Array.getLength(expected); ++i)
+				assertSameState(path + "[" + i + "]", Array.get(expected, i),
+						Array.get(actual, i), compared);
+			return;
+		}
+		if (!expected.getClass().getName().startsWith("org.transitclock.")
+				|| expected.getClass().isEnum()) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		if (compared.containsKey(expected)) {
+			assertSame(path, compared.get(expected), actual);
+			return;
+		}
+		compared.put(expected, actual);
+		for (Class<?> c = expected.getClass(); c != null;
+				c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers))
+					continue;
+				field.setAccessible(true);
+				assertSameState(path + "." + field.getName(),
+						field.get(expected), field.get(actual), compared);
+			}
+		}
+	}
+
+	private DbConfigSnapshot createSnapshot() throws Exception {
+		List<Block> blocks = sampleList(Block.class);
+		List<Trip> trips = sampleList(Trip.class);
+		Map<String, Trip> tripsMap = new LinkedHashMap<String, Trip>();
+		for (Trip trip : trips)
+			tripsMap.put(trip.getId(), trip);
+		return new DbConfigSnapshot(blocks, sampleList(Route.class),
+				sampleList(TripPattern.class), tripsMap,
+				sampleList(Stop.class), sampleList(Agency.class),
+				sampleList(Calendar.class), sampleList(CalendarDate.class),
+				sampleList(FareAttribute.class), sampleList(FareRule.class),
+				sampleList(Frequency.class), sampleList(Transfer.class));
+	}
+
+	private File getFile(int configRev) {
+		return new File(directory, "snapshot_agency_configRev" + configRev
+				+ "_travelTimesRev2.snapshot");
+	}
+
+	@Test
+	public void testSameAsConfigWritten() throws Exception {
+		DbConfigSnapshot snapshot = createSnapshot();
+		assertFalse(snapshot.getBlocks().isEmpty());
+		assertFalse(snapshot.getTripsMap().isEmpty());
+		snapshot.write(getFile(5), AGENCY_ID, 5, 2);
+
+		// Encoded field by field, not with Java serialization, after the
+		// header
+		RandomAccessFile raf = new RandomAccessFile(getFile(5), "r");
+		raf.seek(4 + 4 + 8 + 2 + AGENCY_ID.length() + 4 + 4);
+		assertEquals(OBJECT, raf.readByte());
+		raf.close();
+
+		DbConfigSnapshot read = DbConfigSnapshot.read(getFile(5), AGENCY_ID, 5, 2);
+		assertNotNull(read);
+		assertSameState("snapshot", snapshot, read,
+				new IdentityHashMap<Object, Object>());
+
+		// Trips of the blocks that are also in the trips map are still the
+		// same objects
+		int numShared = 0;
+		for (int b = 0; b < snapshot.getBlocks().size(); ++b) {
+			List<Trip> trips = snapshot.getBlocks().get(b).getTrips();
+			for (int t = 0; t < trips.size(); ++t) {
+				Trip trip = trips.get(t);
+				if (trip != null
+						&& snapshot.getTripsMap().get(trip.getId()) == trip) {
+					assertSame(read.getTripsMap().get(trip.getId()),
+							read.getBlocks().get(b).getTrips().get(t));
+					++numShared;
+				}
+			}
+		}
+		assertTrue(numShared > 0);
+	}
+
+	@Test
+	public void testSnapshotThatDoesNotMatchNotUsed() throws Exception {
+		DbConfigSnapshot snapshot = createSnapshot();
+		snapshot.write(getFile(5), AGENCY_ID, 5, 2);
+
+		// Not for the agency or config rev
+		assertNull(DbConfigSnapshot.read(getFile(5), "other agency", 5, 2));
+		assertNull(DbConfigSnapshot.read(getFile(5), AGENCY_ID, 6, 2));
+		assertNull(DbConfigSnapshot.read(getFile(6), AGENCY_ID, 6, 2));
+
+		// Travel times were updated by UpdateTravelTimes for the same
+		// config rev. Previously the snapshot would still have been used.
+		assertNull(DbConfigSnapshot.read(getFile(5), AGENCY_ID, 5, 3));
+
+		// Written by a different version of the classes
+		RandomAccessFile raf = new RandomAccessFile(getFile(5), "rw");
+		raf.seek(8);
+		long fingerprint = raf.readLong();
+		raf.seek(8);
+		raf.writeLong(fingerprint + 1);
+		raf.close();
+		assertNull(DbConfigSnapshot.read(getFile(5), AGENCY_ID, 5, 2));
+
+		// Not a snapshot
+		FileOutputStream out = new FileOutputStream(getFile(5));
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		assertNull(DbConfigSnapshot.read(getFile(5), AGENCY_ID, 5, 2));
+	}
+
+	@Test
+	public void testOtherConfigRevsDeleted() throws Exception {
+		DbConfigSnapshot snapshot = createSnapshot();
+		snapshot.write(getFile(5), AGENCY_ID, 5, 2);
+		File otherAgency = new File(directory,
+				"other_agency_configRev5_travelTimesRev2.snapshot");
+		snapshot.write(otherAgency, "other agency", 5, 2);
+		snapshot.write(getFile(6), AGENCY_ID, 6, 2);
+
+		assertFalse(getFile(5).exists());
+		assertTrue(getFile(6).exists());
+		assertTrue(otherAgency.exists());
+		assertNotNull(DbConfigSnapshot.read(getFile(6), AGENCY_ID, 6, 2));
+
+		// As is the snapshot for an older travel times rev
+		File newTravelTimes = new File(directory,
+				"snapshot_agency_configRev6_travelTimesRev3.snapshot");
+		snapshot.write(newTravelTimes, AGENCY_ID, 6, 3);
+		assertFalse(getFile(6).exists());
+		assertNotNull(DbConfigSnapshot.read(newTravelTimes, AGENCY_ID, 6, 3));
+	}
+}
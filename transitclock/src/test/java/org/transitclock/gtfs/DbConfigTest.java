@@ -0,0 +1,69 @@
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.utils.IntervalTree;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the blocks found using the interval trees that DbConfig creates
+ * for getBlocksIntervalTree() with looking at every block of the service ID,
+ * as getBlocks(serviceId) was used for.
+ */
+public class DbConfigTest extends TestCase {
+
+	private static List<String> getIds(List<Block> blocks) {
+		List<String> ids = new ArrayList<String>();
+		for (Block block : blocks)
+			ids.add(block.getId());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	@Test
+	public void testBlocksIntervalTreesSameAsBlocksOfService() {
+		Random random = new Random(23);
+		List<Block> blocks = new ArrayList<Block>();
+		for (int i = 0; i < 500; ++i) {
+			int startTime = random.nextInt(28 * Time.SEC_PER_HOUR)
+					- Time.SEC_PER_HOUR;
+			blocks.add(new Block(0, "block" + i, "service" + random.nextInt(4),
+					startTime, startTime + random.nextInt(20 * Time.SEC_PER_HOUR),
+					new ArrayList<Trip>()));
+		}
+
+		Map<String, Map<String, Block>> blocksByServiceMap =
+				DbConfig.putBlocksIntoMap(blocks);
+		Map<String, IntervalTree<Block>> trees =
+				DbConfig.putBlocksIntoIntervalTrees(blocksByServiceMap);
+		assertEquals(blocksByServiceMap.keySet(), trees.keySet());
+		assertNull(trees.get("otherService"));
+
+		for (Map.Entry<String, Map<String, Block>> entry
+				: blocksByServiceMap.entrySet()) {
+			IntervalTree<Block> tree = trees.get(entry.getKey());
+			assertEquals(entry.getValue().size(), tree.size());
+			for (int q = 0; q < 1000; ++q) {
+				int time = random.nextInt(30 * Time.SEC_PER_HOUR)
+						- Time.SEC_PER_HOUR;
+				List<Block> expected = new ArrayList<Block>();
+				for (Block block : entry.getValue().values())
+					if (block.getStartTime() < time && time < block.getEndTime())
+						expected.add(block);
+				List<Block> actual = new ArrayList<Block>();
+				tree.find(Integer.MIN_VALUE, time, time, actual);
+				assertEquals(entry.getKey() + " time=" + time,
+						getIds(expected), getIds(actual));
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package org.transitclock.gtfs;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Calendar;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.Route;
+import org.transitclock.db.structs.Stop;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.Geo;
+import org.transitclock.utils.Time;
+
+/**
+ * Compares the configuration that GtfsData creates when the import is
+ * pipelined, where stop_times.txt is streamed and the routes are processed
+ * in parallel, with the one it creates when all of the stop times are read
+ * in and processed one trip at a time. The stop times are in no particular
+ * order in the file and there is a supplemental stop_times.txt file that
+ * modifies and deletes stop times.
+ */
+public class GtfsDataTest extends TestCase {
+
+	private static final int NUM_ROUTES = 12;
+
+	private File gtfsDirectory;
+	private File supplementDirectory;
+
+	@Override
+	protected void setUp() throws IOException {
+		gtfsDirectory = File.createTempFile("gtfs", "");
+		gtfsDirectory.delete();
+		gtfsDirectory.mkdir();
+		supplementDirectory = new File(gtfsDirectory, "supplement");
+		supplementDirectory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File directory : new File[] {supplementDirectory, gtfsDirectory}) {
+			File[] files = directory.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			directory.delete();
+		}
+	}
+
+	private static void write(File directory, String fileName,
+			List<String> lines) throws IOException {
+		Writer writer = new FileWriter(new File(directory, fileName));
+		try {
+			for (String line : lines)
+				writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String time(int secsInDay) {
+		return String.format("%02d:%02d:%02d", secsInDay / Time.SEC_PER_HOUR,
+				(secsInDay % Time.SEC_PER_HOUR) / Time.SEC_PER_MIN,
+				secsInDay % Time.SEC_PER_MIN);
+	}
+
+	/**
+	 * Writes the GTFS files for routes that all start at a hub stop. Each
+	 * route has express trips that skip a stop but use the same shape, and
+	 * some trips continue past midnight.
+	 */
+	private void writeGtfs(Random random) throws IOException {
+		List<String> routes = new ArrayList<String>();
+		routes.add("route_id,agency_id,route_short_name,route_long_name,"
+				+ "route_type");
+		List<String> stops = new ArrayList<String>();
+		stops.add("stop_id,stop_name,stop_lat,stop_lon");
+		Location hub = new Location(37.3, -122.0);
+		stops.add("hub,Hub," + hub.getLat() + "," + hub.getLon());
+		List<String> shapes = new ArrayList<String>();
+		shapes.add("shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence");
+		List<String> trips = new ArrayList<String>();
+		trips.add("route_id,service_id,trip_id,trip_headsign,direction_id,"
+				+ "block_id,shape_id");
+		List<String> frequencies = new ArrayList<String>();
+		frequencies.add("trip_id,start_time,end_time,headway_secs,exact_times");
+		List<List<String>> stopTimesByTrip = new ArrayList<List<String>>();
+		List<String> supplementStopTimes = new ArrayList<String>();
+		supplementStopTimes.add("trip_id,stop_id,departure_time,delete");
+
+		for (int r = 0; r < NUM_ROUTES; ++r) {
+			String routeId = "r" + r;
+			routes.add(routeId + ",1," + r + ",Route " + r + ",3");
+
+			// The stops of the route, heading away from the hub
+			List<String> stopIds = new ArrayList<String>();
+			List<Location> locations = new ArrayList<Location>();
+			stopIds.add("hub");
+			locations.add(hub);
+			double heading = 2 * Math.PI * r / NUM_ROUTES;
+			int numStops = 5 + random.nextInt(8);
+			for (int s = 1; s < numStops; ++s) {
+				heading += random.nextGaussian() * 0.2;
+				Location previous = locations.get(s - 1);
+				double length = 200.0 + random.nextDouble() * 300.0;
+				Location loc = Geo.offset(previous, length * Math.cos(heading),
+						length * Math.sin(heading));
+				String stopId = routeId + "_s" + s;
+				stopIds.add(stopId);
+				locations.add(loc);
+				stops.add(stopId + ",Stop " + s + " of " + routeId + ","
+						+ loc.getLat() + "," + loc.getLon());
+			}
+
+			// A shape for each direction, slightly off of the stops
+			for (int direction = 0; direction < 2; ++direction) {
+				String shapeId = routeId + "_shape" + direction;
+				int sequence = 0;
+				for (int s = 0; s < numStops - 1; ++s) {
+					int from = direction == 0 ? s : numStops - 1 - s;
+					int to = direction == 0 ? from + 1 : from - 1;
+					for (int p = 0; p < 3; ++p) {
+						Location from1 = locations.get(from);
+						Location to1 = locations.get(to);
+						double f = p / 3.0;
+						Location loc = Geo.offset(new Location(
+								from1.getLat() + f
+										* (to1.getLat() - from1.getLat()),
+								from1.getLon() + f
+										* (to1.getLon() - from1.getLon())),
+								random.nextGaussian() * 5.0,
+								random.nextGaussian() * 5.0);
+						shapes.add(shapeId + "," + loc.getLat() + ","
+								+ loc.getLon() + "," + ++sequence);
+					}
+				}
+				Location last = locations.get(direction == 0 ? numStops - 1
+						: 0);
+				shapes.add(shapeId + "," + last.getLat() + "," + last.getLon()
+						+ "," + ++sequence);
+			}
+			// The stop paths of a frequency based trip without exact times
+			// are not schedule adherence stops and the trip pattern gets the
+			// stop paths of whichever of its trips is processed first, so
+			// the frequency based trip gets its own copy of the shape
+			if (r == 1) {
+				for (String line : new ArrayList<String>(shapes)) {
+					if (line.startsWith(routeId + "_shape0,"))
+						shapes.add(line.replace("_shape0,", "_shape0f,"));
+				}
+			}
+
+			// The trips of the route, going back and forth
+			int numTrips = 4 + random.nextInt(12);
+			int startTime = 5 * Time.SEC_PER_HOUR
+					+ random.nextInt(60) * Time.SEC_PER_MIN;
+			for (int t = 0; t < numTrips; ++t) {
+				String tripId = routeId + "_t" + t;
+				int direction = t % 2;
+				boolean express = random.nextInt(4) == 0;
+				String serviceId = r % 3 == 0 ? "weekend" : "weekday";
+				trips.add(routeId + "," + serviceId + "," + tripId + ","
+						+ (direction == 0 ? "Outbound " : "Inbound ") + r + ","
+						+ direction + "," + routeId + "_b" + t / 4 + ","
+						+ routeId + "_shape" + direction
+						+ (r == 1 && t == 0 ? "f" : ""));
+				List<String> stopTimes = new ArrayList<String>();
+				int time = startTime;
+				for (int s = 0; s < numStops; ++s) {
+					int stopIndex = direction == 0 ? s : numStops - 1 - s;
+					if (express && stopIndex == 2)
+						continue;
+					int dwell = random.nextInt(3) == 0 ? 30 : 0;
+					stopTimes.add(tripId + "," + time(time) + ","
+							+ time(time + dwell) + "," + stopIds.get(stopIndex)
+							+ "," + (s + 1));
+					time += dwell + 60 + random.nextInt(120);
+				}
+				stopTimesByTrip.add(stopTimes);
+				// Late trips continue past midnight
+				startTime = time + random.nextInt(20) * Time.SEC_PER_MIN;
+				if (t == numTrips / 2 && random.nextBoolean())
+					startTime += 18 * Time.SEC_PER_HOUR - startTime % 3600;
+
+				// Supplemental data that changes a departure time, deletes a
+				// stop, or deletes the whole trip
+				int change = random.nextInt(10);
+				if (change == 0) {
+					supplementStopTimes.add(tripId + ","
+							+ stopIds.get(numStops / 2 + 1) + ","
+							+ time(startTime - 10) + ",");
+				} else if (change == 1 && !express) {
+					supplementStopTimes.add(tripId + "," + stopIds.get(3)
+							+ ",,true");
+				} else if (change == 2 && r == 4) {
+					for (String stopId : stopIds)
+						if (!express || !stopId.equals(stopIds.get(2)))
+							supplementStopTimes.add(tripId + "," + stopId
+									+ ",,true");
+				}
+			}
+
+			// A frequency based trip without exact times
+			if (r == 1) {
+				frequencies.add("r1_t0,06:00:00,09:00:00,600,0");
+				frequencies.add("r1_t1,07:00:00,08:00:00,900,1");
+			}
+		}
+
+		// The stop times in no particular order. Usually grouped by trip,
+		// but some trips interleaved and some in reverse order.
+		Collections.shuffle(stopTimesByTrip, random);
+		List<String> stopTimes = new ArrayList<String>();
+		stopTimes.add("trip_id,arrival_time,departure_time,stop_id,"
+				+ "stop_sequence");
+		for (int i = 0; i < stopTimesByTrip.size(); ++i) {
+			List<String> stopTimesForTrip = stopTimesByTrip.get(i);
+			int mode = random.nextInt(4);
+			if (mode == 0 && i + 1 < stopTimesByTrip.size()) {
+				List<String> next = stopTimesByTrip.get(++i);
+				for (int j = 0; j < Math.max(stopTimesForTrip.size(),
+						next.size()); ++j) {
+					if (j < stopTimesForTrip.size())
+						stopTimes.add(stopTimesForTrip.get(j));
+					if (j < next.size())
+						stopTimes.add(next.get(j));
+				}
+			} else {
+				if (mode == 1)
+					Collections.reverse(stopTimesForTrip);
+				stopTimes.addAll(stopTimesForTrip);
+			}
+		}
+
+		write(gtfsDirectory, "agency.txt", Arrays.asList(
+				"agency_id,agency_name,agency_url,agency_timezone",
+				"1,Test Agency,http://example.com,America/Los_Angeles"));
+		write(gtfsDirectory, "calendar.txt", Arrays.asList(
+				"service_id,monday,tuesday,wednesday,thursday,friday,"
+						+ "saturday,sunday,start_date,end_date",
+				"weekday,1,1,1,1,1,0,0,20200101,20991231",
+				"weekend,0,0,0,0,0,1,1,20200101,20991231",
+				"unused,1,1,1,1,1,1,1,20200101,20991231"));
+		write(gtfsDirectory, "routes.txt", routes);
+		write(gtfsDirectory, "stops.txt", stops);
+		write(gtfsDirectory, "shapes.txt", shapes);
+		write(gtfsDirectory, "trips.txt", trips);
+		write(gtfsDirectory, "frequencies.txt", frequencies);
+		write(gtfsDirectory, "stop_times.txt", stopTimes);
+		write(supplementDirectory, "stop_times.txt", supplementStopTimes);
+	}
+
+	private GtfsData process(boolean pipelined) {
+		GtfsData gtfsData = new GtfsData(1, "test",
+				gtfsDirectory.getPath(), supplementDirectory.getPath(), 0.0,
+				60.0, 3.0, 10 * Time.MS_PER_SEC, 97.0, 250.0, false,
+				new TitleFormatter(null, true));
+		gtfsData.processConfigData(pipelined);
+		return gtfsData;
+	}
+
+	private static List<String> sorted(List<String> strings) {
+		Collections.sort(strings);
+		return strings;
+	}
+
+	/**
+	 * Describes the configuration in a way that doesn't depend on the order
+	 * that the trips were processed in
+	 */
+	private static List<String> describe(GtfsData gtfsData) {
+		List<String> descriptions = new ArrayList<String>();
+		for (Trip trip : gtfsData.getTrips())
+			descriptions.add(trip + " " + trip.getScheduleTimes());
+		for (TripPattern tripPattern : gtfsData.getTripPatterns()) {
+			List<String> tripIds = new ArrayList<String>();
+			for (Trip trip : tripPattern.getTrips())
+				tripIds.add(trip.getId());
+			descriptions.add("TripPattern " + tripPattern.getId() + " "
+					+ tripPattern.getHeadsign() + " "
+					+ tripPattern.getRouteId() + " "
+					+ tripPattern.getDirectionId() + " " + sorted(tripIds));
+			for (StopPath stopPath : tripPattern.getStopPaths())
+				descriptions.add(stopPath.toString());
+		}
+		for (Block block : gtfsData.getBlocks()) {
+			List<String> tripIds = new ArrayList<String>();
+			for (Trip trip : block.getTrips())
+				tripIds.add(trip.getId());
+			descriptions.add("Block " + block.getId() + " "
+					+ block.getServiceId() + " " + block.getStartTime() + " "
+					+ block.getEndTime() + " " + tripIds);
+		}
+		for (Route route : gtfsData.getRoutes()) {
+			List<String> tripPatternIds = new ArrayList<String>();
+			for (TripPattern tripPattern
+					: gtfsData.getTripPatterns(route.getId()))
+				tripPatternIds.add(tripPattern.getId());
+			descriptions.add("Route " + route.getId() + " " + route.getName()
+					+ " " + route.getExtent() + " " + sorted(tripPatternIds));
+		}
+		for (Stop stop : gtfsData.getStops())
+			descriptions.add(stop.toString());
+		for (Calendar calendar : gtfsData.getCalendars())
+			descriptions.add(calendar.toString());
+		return sorted(descriptions);
+	}
+
+	@Test
+	public void testSameConfigurationAsNotPipelined() throws IOException {
+		Random random = new Random(23);
+		for (int round = 0; round < 3; ++round) {
+			writeGtfs(random);
+
+			GtfsData expected = process(false);
+			GtfsData actual = process(true);
+
+			// The data is what was intended to be tested
+			assertTrue(expected.getTripPatterns().size() > 2 * NUM_ROUTES);
+			assertEquals(NUM_ROUTES, expected.getRoutes().size());
+			assertTrue(expected.getTrips().size() > 4 * NUM_ROUTES);
+
+			List<String> expectedDescriptions = describe(expected);
+			List<String> actualDescriptions = describe(actual);
+			assertEquals(expectedDescriptions.size(),
+					actualDescriptions.size());
+			for (int i = 0; i < expectedDescriptions.size(); ++i)
+				assertEquals(expectedDescriptions.get(i),
+						actualDescriptions.get(i));
+		}
+	}
+}
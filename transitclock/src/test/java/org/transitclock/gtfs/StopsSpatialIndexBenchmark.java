@@ -0,0 +1,118 @@
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.db.structs.Location;
+
+/**
+ * JMH benchmark of queries per second for finding the stops near a
+ * location, comparing the StopsSpatialIndex with looking at the stop of
+ * every stop path, which is what StopsByLoc used to do. The stops are
+ * synthetic, for a large agency: NUM_TRIP_PATTERNS trip patterns of
+ * STOPS_PER_TRIP_PATTERN stops each, laid out as random walks over an area
+ * of about 60km by 60km.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.gtfs.StopsSpatialIndexBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StopsSpatialIndexBenchmark {
+
+	private static final int NUM_TRIP_PATTERNS = 2000;
+
+	private static final int STOPS_PER_TRIP_PATTERN = 50;
+
+	private static final double MAX_DISTANCE = 500.0;
+
+	private static final double MIN_LAT = 37.2;
+	private static final double MIN_LON = -122.5;
+	private static final double SIZE_DEGREES = 0.55;
+
+	@State(Scope.Benchmark)
+	public static class Stops {
+		List<StopsSpatialIndex.Entry> entries;
+		StopsSpatialIndex index;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random random = new Random(42);
+			entries = new ArrayList<StopsSpatialIndex.Entry>();
+			for (int tp = 0; tp < NUM_TRIP_PATTERNS; ++tp) {
+				double lat = MIN_LAT + random.nextDouble() * SIZE_DEGREES;
+				double lon = MIN_LON + random.nextDouble() * SIZE_DEGREES;
+				double heading = random.nextDouble() * 2 * Math.PI;
+				for (int i = 0; i < STOPS_PER_TRIP_PATTERN; ++i) {
+					// Stops about 300m apart along a wandering path
+					heading += (random.nextDouble() - 0.5) * 0.5;
+					lat += Math.sin(heading) * 0.0027;
+					lon += Math.cos(heading) * 0.0034;
+					entries.add(new StopsSpatialIndex.Entry(null, null, i,
+							"stop" + tp + "_" + i, new Location(lat, lon)));
+				}
+			}
+			index = new StopsSpatialIndex(entries, 250.0);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Query {
+		private final Random random = new Random();
+		Location loc;
+
+		@Setup(Level.Invocation)
+		public void setUp() {
+			loc = new Location(MIN_LAT + random.nextDouble() * SIZE_DEGREES,
+					MIN_LON + random.nextDouble() * SIZE_DEGREES);
+		}
+	}
+
+	@Benchmark
+	public int indexWithinDistance(Stops stops, Query query) {
+		return stops.index.getWithinDistance(query.loc, MAX_DISTANCE).size();
+	}
+
+	@Benchmark
+	public int indexNearest10(Stops stops, Query query) {
+		return stops.index.getNearest(query.loc, 10, MAX_DISTANCE).size();
+	}
+
+	@Benchmark
+	public int linearScan(Stops stops, Query query) {
+		int count = 0;
+		for (StopsSpatialIndex.Entry entry : stops.entries) {
+			if (entry.getLocation().distance(query.loc) <= MAX_DISTANCE)
+				++count;
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(StopsSpatialIndexBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
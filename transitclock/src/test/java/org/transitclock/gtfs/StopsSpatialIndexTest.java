@@ -0,0 +1,134 @@
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Location;
+import org.transitclock.utils.Geo;
+
+/**
+ * Compares the stops found using the StopsSpatialIndex with looking at the
+ * stop of every stop path, which is what StopsByLoc used to do, including
+ * for locations outside the extent of the stops and for grids whose cells
+ * had to be made larger.
+ */
+public class StopsSpatialIndexTest extends TestCase {
+
+	private static List<StopsSpatialIndex.Entry> createEntries(Random random,
+			int numEntries, double lat, double lon, double sizeDegrees) {
+		List<StopsSpatialIndex.Entry> entries =
+				new ArrayList<StopsSpatialIndex.Entry>();
+		for (int i = 0; i < numEntries; ++i) {
+			Location location = new Location(
+					lat + random.nextDouble() * sizeDegrees,
+					lon + random.nextDouble() * sizeDegrees);
+			entries.add(new StopsSpatialIndex.Entry(null, null, i, "stop" + i,
+					location));
+		}
+		return entries;
+	}
+
+	/**
+	 * The stop IDs within maxDistance, found by looking at every entry
+	 */
+	private static List<String> getWithinDistance(
+			List<StopsSpatialIndex.Entry> entries, Location loc,
+			double maxDistance) {
+		List<String> stopIds = new ArrayList<String>();
+		for (StopsSpatialIndex.Entry entry : entries) {
+			if (Geo.distance(loc, entry.getLocation()) <= maxDistance)
+				stopIds.add(entry.getStopId());
+		}
+		return stopIds;
+	}
+
+	private static List<String> getStopIds(
+			List<StopsSpatialIndex.Match> matches) {
+		List<String> stopIds = new ArrayList<String>();
+		for (StopsSpatialIndex.Match match : matches)
+			stopIds.add(match.getEntry().getStopId());
+		return stopIds;
+	}
+
+	private static List<String> sorted(List<String> stopIds) {
+		Collections.sort(stopIds);
+		return stopIds;
+	}
+
+	private void checkSameAsEveryStop(Random random,
+			List<StopsSpatialIndex.Entry> entries, double cellSize,
+			double lat, double lon, double sizeDegrees) {
+		StopsSpatialIndex index = new StopsSpatialIndex(entries, cellSize);
+		assertEquals(entries.size(), index.size());
+		for (int q = 0; q < 500; ++q) {
+			// Also locations somewhat outside of the extent
+			Location loc = new Location(
+					lat + (random.nextDouble() * 1.4 - 0.2) * sizeDegrees,
+					lon + (random.nextDouble() * 1.4 - 0.2) * sizeDegrees);
+			double maxDistance = random.nextInt(3) == 0 ? 0.0
+					: random.nextDouble() * 2000.0;
+
+			List<StopsSpatialIndex.Match> matches =
+					index.getWithinDistance(loc, maxDistance);
+			for (StopsSpatialIndex.Match match : matches)
+				assertEquals(Geo.distance(loc, match.getEntry().getLocation()),
+						match.getDistance());
+			assertEquals(loc + " " + maxDistance,
+					sorted(getWithinDistance(entries, loc, maxDistance)),
+					sorted(getStopIds(matches)));
+
+			// The nearest k by distance, of the ones within maxDistance
+			int k = 1 + random.nextInt(10);
+			List<StopsSpatialIndex.Entry> byDistance =
+					new ArrayList<StopsSpatialIndex.Entry>();
+			for (StopsSpatialIndex.Entry entry : entries) {
+				if (Geo.distance(loc, entry.getLocation()) <= maxDistance)
+					byDistance.add(entry);
+			}
+			final Location queryLoc = loc;
+			Collections.sort(byDistance,
+					new Comparator<StopsSpatialIndex.Entry>() {
+						@Override
+						public int compare(StopsSpatialIndex.Entry e1,
+								StopsSpatialIndex.Entry e2) {
+							return Double.compare(
+									Geo.distance(queryLoc, e1.getLocation()),
+									Geo.distance(queryLoc, e2.getLocation()));
+						}
+					});
+			List<String> expected = new ArrayList<String>();
+			for (StopsSpatialIndex.Entry entry
+					: byDistance.subList(0, Math.min(k, byDistance.size())))
+				expected.add(entry.getStopId());
+			assertEquals(loc + " k=" + k + " " + maxDistance, expected,
+					getStopIds(index.getNearest(loc, k, maxDistance)));
+		}
+	}
+
+	@Test
+	public void testSameAsLookingAtEveryStop() {
+		Random random = new Random(23);
+		for (int n : new int[] {0, 1, 10, 5000}) {
+			// A city sized area with the default cell size
+			checkSameAsEveryStop(random, createEntries(random, n, 37.2,
+					-122.5, 0.1), 250.0, 37.2, -122.5, 0.1);
+			// Far from the equator
+			checkSameAsEveryStop(random, createEntries(random, n, 69.5,
+					18.8, 0.1), 250.0, 69.5, 18.8, 0.1);
+		}
+	}
+
+	@Test
+	public void testCellsMadeLargerSameAsLookingAtEveryStop() {
+		// So small a cell size that the cells have to be made larger
+		Random random = new Random(24);
+		checkSameAsEveryStop(random, createEntries(random, 2000, 37.2, -122.5,
+				0.1), 1.0, 37.2, -122.5, 0.1);
+	}
+}
@@ -0,0 +1,251 @@
+package org.transitclock.ipc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.transitclock.db.structs.Location;
+import org.transitclock.ipc.binary.BinaryCodec;
+import org.transitclock.ipc.binary.BinaryIpcClient;
+import org.transitclock.ipc.binary.BinaryIpcInvocationHandler;
+import org.transitclock.ipc.binary.BinaryIpcServer;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcPrediction;
+import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitclock.ipc.interfaces.PredictionsInterface;
+import org.transitclock.ipc.rmi.AbstractServer;
+
+/**
+ * JMH benchmark of the latency of PredictionsInterface.getAllPredictions()
+ * via RMI compared to via the binary IPC transport. Both servers run in the
+ * benchmark process and are called over the loopback interface, with the
+ * same synthetic predictions. The multi threaded benchmarks show the effect
+ * of pipelining the binary requests over a single connection.
+ * <p>
+ * The bytes on the wire for a response are printed during setup: the Java
+ * serialization size of the result, which is what RMI sends, and the size of
+ * the binary response frame.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.ipc.IpcTransportBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IpcTransportBenchmark {
+
+	// Number of route/stop/destinations with predictions
+	@Param({ "500", "5000" })
+	private int numStops;
+
+	private static final int PREDICTIONS_PER_STOP = 3;
+
+	private static final String AGENCY_ID = "benchmark";
+
+	private FakePredictionsServer server;
+
+	private PredictionsInterface rmiStub;
+
+	private BinaryIpcServer binaryServer;
+
+	private BinaryIpcClient binaryClient;
+
+	private PredictionsInterface binaryProxy;
+
+	/**
+	 * Returns the same predictions for every call
+	 */
+	private static class FakePredictionsServer implements PredictionsInterface {
+		private final List<IpcPredictionsForRouteStopDest> predictions;
+
+		private FakePredictionsServer(
+				List<IpcPredictionsForRouteStopDest> predictions) {
+			this.predictions = predictions;
+		}
+
+		@Override
+		public List<IpcPredictionsForRouteStopDest> get(String routeShortName,
+				String stopId, int predictionsPerStop) throws RemoteException {
+			return predictions;
+		}
+
+		@Override
+		public List<IpcPredictionsForRouteStopDest> get(
+				List<RouteStop> routeStops, int predictionsPerStop)
+				throws RemoteException {
+			return predictions;
+		}
+
+		@Override
+		public List<IpcPredictionsForRouteStopDest> get(Location loc,
+				double maxDistance, int predictionsPerStop)
+				throws RemoteException {
+			return predictions;
+		}
+
+		@Override
+		public List<IpcPredictionsForRouteStopDest> getAllPredictions(
+				int predictionMaxFutureSecs) throws RemoteException {
+			return predictions;
+		}
+
+		@Override
+		public IpcGtfsRtFeed getTripUpdatesFeed(long sinceVersion,
+				boolean differential) throws RemoteException {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates predictions similar to those of a real agency. The constructors
+	 * used when deserializing are used since the public ones need the
+	 * configuration from the database.
+	 */
+	private static List<IpcPredictionsForRouteStopDest> createPredictions(
+			int numStops) throws Exception {
+		Constructor<IpcPrediction> predictionConstructor =
+				IpcPrediction.class.getDeclaredConstructor(String.class,
+						String.class, String.class, int.class, String.class,
+						String.class, String.class, long.class, long.class,
+						boolean.class, boolean.class, long.class, long.class,
+						long.class, boolean.class, String.class, short.class,
+						float.class, boolean.class, boolean.class,
+						boolean.class, Integer.class, Long.class, int.class);
+		predictionConstructor.setAccessible(true);
+		Constructor<IpcPredictionsForRouteStopDest> predsConstructor =
+				IpcPredictionsForRouteStopDest.class.getDeclaredConstructor(
+						String.class, String.class, String.class, int.class,
+						String.class, String.class, Integer.class, String.class,
+						String.class, double.class, List.class);
+		predsConstructor.setAccessible(true);
+
+		long now = System.currentTimeMillis();
+		List<IpcPredictionsForRouteStopDest> result =
+				new ArrayList<IpcPredictionsForRouteStopDest>(numStops);
+		for (int i = 0; i < numStops; ++i) {
+			int route = i % 50;
+			String routeId = "route" + route;
+			String stopId = "stop" + (i / 2);
+			List<IpcPrediction> predictions =
+					new ArrayList<IpcPrediction>(PREDICTIONS_PER_STOP);
+			for (int j = 0; j < PREDICTIONS_PER_STOP; ++j) {
+				long predictionTime = now + (i % 40 + 1) * 60000L + j * 600000L;
+				predictions.add(predictionConstructor.newInstance("vehicle"
+						+ (route * 10 + j), routeId, stopId, i % 60,
+						"trip" + (route * 100 + j), "pattern" + route,
+						"block" + (route * 10 + j), predictionTime,
+						predictionTime + 12345L, false, false, now - 15000L,
+						now - 1000L, now - 1800000L, false, null, (short) -1,
+						-1.0f, false, false, j % 2 == 0, null, null, 0));
+			}
+			result.add(predsConstructor.newInstance(routeId, "R" + route,
+					"Route " + route + " Downtown", route, stopId,
+					"Main St & " + (i / 2) + "th Ave", 10000 + i / 2,
+					"Downtown", String.valueOf(i % 2), Double.NaN,
+					predictions));
+		}
+		return result;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new FakePredictionsServer(createPredictions(numStops));
+
+		rmiStub = (PredictionsInterface) UnicastRemoteObject.exportObject(
+				server, 0);
+
+		binaryServer = new BinaryIpcServer(0, 8);
+		binaryServer.register(AbstractServer.getBindName(AGENCY_ID,
+				PredictionsInterface.class.getSimpleName()), server);
+		binaryClient = BinaryIpcClient.connect("localhost",
+				binaryServer.getPort(), 5000);
+		binaryProxy = BinaryIpcInvocationHandler.getInstance(binaryClient,
+				AGENCY_ID, PredictionsInterface.class, "localhost");
+
+		// Report the bytes on the wire for a response
+		List<IpcPredictionsForRouteStopDest> predictions =
+				server.getAllPredictions(0);
+		long received = binaryClient.getBytesReceived();
+		binaryProxy.getAllPredictions(0);
+		System.out.println("numStops=" + numStops
+				+ " Java serialization bytes=" + javaSerializedSize(predictions)
+				+ " binary codec bytes=" + BinaryCodec.encode(predictions).length
+				+ " binary response frame bytes="
+				+ (binaryClient.getBytesReceived() - received));
+	}
+
+	private static int javaSerializedSize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.size();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		binaryClient.close();
+		binaryServer.close();
+		UnicastRemoteObject.unexportObject(server, true);
+	}
+
+	@Benchmark
+	public List<IpcPredictionsForRouteStopDest> rmi() throws RemoteException {
+		return rmiStub.getAllPredictions(0);
+	}
+
+	@Benchmark
+	public List<IpcPredictionsForRouteStopDest> binary()
+			throws RemoteException {
+		return binaryProxy.getAllPredictions(0);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public List<IpcPredictionsForRouteStopDest> rmiConcurrent()
+			throws RemoteException {
+		return rmiStub.getAllPredictions(0);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public List<IpcPredictionsForRouteStopDest> binaryConcurrent()
+			throws RemoteException {
+		return binaryProxy.getAllPredictions(0);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(IpcTransportBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
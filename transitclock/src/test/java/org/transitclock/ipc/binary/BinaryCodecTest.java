@@ -0,0 +1,346 @@
+package org.transitclock.ipc.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.transitclock.ipc.data.IpcPrediction;
+
+/**
+ * Round trips every Ipc data class through the BinaryCodec and through Java
+ * serialization, which is what RMI uses, and checks that both give the same
+ * objects. Also checks that Java serialized values are only decoded for the
+ * allowed classes.
+ */
+public class BinaryCodecTest extends TestCase {
+
+	// Tags of the encoding, see BinaryCodec
+	private static final byte OBJECT = 20;
+	private static final byte SERIALIZED = 22;
+
+	private int counter = 0;
+
+	/**
+	 * @return the Ipc classes of the org.transitclock.ipc.data package
+	 */
+	private static List<Class<?>> getIpcClasses() throws Exception {
+		String packageName = IpcPrediction.class.getPackage().getName();
+		URL url = IpcPrediction.class.getClassLoader().getResource(
+				packageName.replace('.', '/'));
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (String fileName : new File(url.toURI()).list()) {
+			if (!fileName.startsWith("Ipc") || !fileName.endsWith(".class")
+					|| fileName.contains("$"))
+				continue;
+			classes.add(Class.forName(packageName + "."
+					+ fileName.substring(0, fileName.length() - 6)));
+		}
+		return classes;
+	}
+
+	/**
+	 * Creates an object of the class with every serializable field set to a
+	 * value, including the objects and collections that it refers to.
+	 *
+	 * @return the object, or null if the class cannot be created
+	 */
+	private Object sample(Class<?> cls, Type type, int depth)
+			throws Exception {
+		++counter;
+		if (cls == String.class)
+			return "value" + counter;
+		if (cls == int.class || cls == Integer.class)
+			return counter;
+		if (cls == long.class || cls == Long.class)
+			return 1500000000000L + counter;
+		if (cls == short.class || cls == Short.class)
+			return (short) counter;
+		if (cls == byte.class || cls == Byte.class)
+			return (byte) counter;
+		if (cls == float.class || cls == Float.class)
+			return counter + 0.5f;
+		if (cls == double.class || cls == Double.class)
+			return counter + 0.25;
+		if (cls == boolean.class || cls == Boolean.class)
+			return counter % 2 == 0;
+		if (cls == char.class || cls == Character.class)
+			return (char) ('a' + counter % 26);
+		if (cls == Date.class)
+			return new Date(1500000000000L + counter * 1000L);
+		if (cls == byte[].class)
+			return new byte[] { 1, 2, (byte) counter };
+		if (cls.isEnum()) {
+			Object[] constants = cls.getEnumConstants();
+			return constants[counter % constants.length];
+		}
+		if (depth > 3)
+			return null;
+
+		if (Collection.class.isAssignableFrom(cls)
+				|| Map.class.isAssignableFrom(cls)) {
+			if (!(type instanceof ParameterizedType))
+				return null;
+			Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+			Collection<Object> collection = null;
+			if (Set.class.isAssignableFrom(cls))
+				collection = new LinkedHashSet<Object>();
+			else if (Collection.class.isAssignableFrom(cls))
+				collection = new ArrayList<Object>();
+			if (collection != null) {
+				if (args[0] instanceof Class)
+					for (int i = 0; i < 2; ++i) {
+						Object element =
+								sample((Class<?>) args[0], args[0], depth + 1);
+						if (element != null)
+							collection.add(element);
+					}
+				return cls.isInstance(collection) ? collection : null;
+			}
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+			if (args[0] instanceof Class && args[1] instanceof Class) {
+				Object key = sample((Class<?>) args[0], args[0], depth + 1);
+				if (key != null)
+					map.put(key, sample((Class<?>) args[1], args[1],
+							depth + 1));
+			}
+			return cls.isInstance(map) ? map : null;
+		}
+
+		if (!cls.getName().startsWith("org.transitclock.")
+				|| !Serializable.class.isAssignableFrom(cls)
+				|| Modifier.isAbstract(cls.getModifiers()))
+			return null;
+		Constructor<?> constructor;
+		try {
+			constructor = cls.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			// The classes with a serialization proxy are created from one
+			for (Class<?> proxyClass : cls.getDeclaredClasses()) {
+				Method readResolve;
+				try {
+					readResolve = proxyClass.getDeclaredMethod("readResolve");
+				} catch (NoSuchMethodException e2) {
+					continue;
+				}
+				readResolve.setAccessible(true);
+				return readResolve.invoke(sample(proxyClass, proxyClass, depth));
+			}
+			return null;
+		}
+		constructor.setAccessible(true);
+		Object obj = constructor.newInstance();
+		for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers))
+					continue;
+				field.setAccessible(true);
+				Object value = sample(field.getType(), field.getGenericType(),
+						depth + 1);
+				if (value != null || !field.getType().isPrimitive())
+					field.set(obj, value);
+			}
+		}
+		return obj;
+	}
+
+	private static Object javaRoundTrip(Object value) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+	}
+
+	/**
+	 * Compares the serializable state of the objects. Collections are
+	 * compared element by element since the BinaryCodec decodes them as
+	 * standard collections.
+	 */
+	private static void assertSameState(String path, Object expected,
+			Object actual) throws Exception {
+		if (expected == null || actual == null) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		if (expected instanceof Collection) {
+			assertTrue(path, actual instanceof Collection);
+			assertEquals(path, ((Collection<?>) expected).size(),
+					((Collection<?>) actual).size());
+			Iterator<?> it = ((Collection<?>) actual).iterator();
+			int i = 0;
+			for (Object element : (Collection<?>) expected)
+				assertSameState(path + "[" + i++ + "]", element, it.next());
+			return;
+		}
+		if (expected instanceof Map) {
+			assertTrue(path, actual instanceof Map);
+			assertSameState(path + ".keys",
+					new ArrayList<Object>(((Map<?, ?>) expected).keySet()),
+					new ArrayList<Object>(((Map<?, ?>) actual).keySet()));
+			assertSameState(path + ".values",
+					new ArrayList<Object>(((Map<?, ?>) expected).values()),
+					new ArrayList<Object>(((Map<?, ?>) actual).values()));
+			return;
+		}
+		assertEquals(path, expected.getClass(), actual.getClass());
+		if (expected.getClass().isArray()) {
+			assertEquals(path, Array.getLength(expected),
+					Array.getLength(actual));
+			for (int i = 0; i < Array.getLength(expected); ++i)
+				assertSameState(path + "[" + i + "]", Array.get(expected, i),
+						Array.get(actual, i));
+			return;
+		}
+		if (!expected.getClass().getName().startsWith("org.transitclock.")
+				|| expected.getClass().isEnum()) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+		for (Class<?> c = expected.getClass(); c != null;
+				c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers))
+					continue;
+				field.setAccessible(true);
+				assertSameState(path + "." + field.getName(), field.get(expected),
+						field.get(actual));
+			}
+		}
+	}
+
+	private static boolean hasWriteObject(Class<?> cls) {
+		try {
+			cls.getDeclaredMethod("writeObject", ObjectOutputStream.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testIpcClassesSameAsJavaSerialization() throws Exception {
+		List<Class<?>> classes = getIpcClasses();
+		assertTrue(classes.size() > 30);
+		for (Class<?> cls : classes) {
+			if (!Serializable.class.isAssignableFrom(cls))
+				continue;
+			Object value = sample(cls, cls, 0);
+			assertNotNull(cls.getName() + " could not be created", value);
+
+			byte[] encoded = BinaryCodec.encode(value);
+			// Only classes with custom serialization are Java serialized
+			assertEquals(cls.getName(),
+					hasWriteObject(cls) ? SERIALIZED : OBJECT, encoded[0]);
+
+			assertSameState(cls.getSimpleName(), javaRoundTrip(value),
+					BinaryCodec.decode(encoded));
+
+			// Also as part of a list, such as for a list of predictions
+			List<Object> list = new ArrayList<Object>();
+			list.add(value);
+			list.add(sample(cls, cls, 0));
+			list.add(value);
+			List<?> decoded = (List<?>) BinaryCodec.decode(
+					BinaryCodec.encode(list));
+			assertSameState(cls.getSimpleName() + " list", javaRoundTrip(list),
+					decoded);
+			// Shared references are kept, like with Java serialization
+			assertTrue(cls.getName(), decoded.get(0) == decoded.get(2));
+		}
+	}
+
+	@Test
+	public void testOnlyAllowedClassesAreSerialized() throws Exception {
+		// JDK exceptions, such as one thrown by a remote method
+		Object exception = BinaryCodec.decode(BinaryCodec.encode(
+				new IllegalStateException("message")));
+		assertEquals("message",
+				((IllegalStateException) exception).getMessage());
+
+		// Other classes are not encoded
+		try {
+			BinaryCodec.encode(new AtomicInteger(1));
+			fail("Expected InvalidClassException");
+		} catch (InvalidClassException e) {
+		}
+
+		// And are not created when Java serialized by the other side
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(serialized);
+		out.writeObject(new AtomicInteger(1));
+		out.close();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(SERIALIZED);
+		int length = serialized.size();
+		while ((length & ~0x7F) != 0) {
+			bytes.write((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		bytes.write(length);
+		serialized.writeTo(bytes);
+		try {
+			BinaryCodec.decode(bytes.toByteArray());
+			fail("Expected InvalidClassException");
+		} catch (InvalidClassException e) {
+		}
+
+		// Nor field by field
+		byte[] className = AtomicInteger.class.getName().getBytes("UTF-8");
+		bytes = new ByteArrayOutputStream();
+		bytes.write(OBJECT);
+		bytes.write(0);
+		bytes.write(0);
+		bytes.write(className.length);
+		bytes.write(className);
+		bytes.write(0);
+		try {
+			BinaryCodec.decode(bytes.toByteArray());
+			fail("Expected InvalidClassException");
+		} catch (InvalidClassException e) {
+		}
+
+		assertFalse(BinaryCodec.isSerializedClassAllowed(
+				AtomicInteger[].class));
+		assertTrue(BinaryCodec.isSerializedClassAllowed(
+				java.sql.Timestamp.class));
+	}
+
+	@Test
+	public void testTimestampDecodedAsTimestamp() throws IOException {
+		// Hibernate returns Timestamps for Date members
+		java.sql.Timestamp timestamp = new java.sql.Timestamp(1500000000123L);
+		assertEquals(timestamp,
+				BinaryCodec.decode(BinaryCodec.encode(timestamp)));
+	}
+}
@@ -0,0 +1,71 @@
+package org.transitclock.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Compares the intervals found by the IntervalTree with looking at every
+ * interval, for random intervals and queries.
+ */
+public class IntervalTreeTest extends TestCase {
+
+	@Test
+	public void testSameAsLinearSearch() {
+		Random random = new Random(23);
+		for (int n : new int[] {0, 1, 2, 3, 7, 100, 1000}) {
+			final int[] lows = new int[n];
+			int[] highs = new int[n];
+			List<Integer> values = new ArrayList<Integer>();
+			for (int i = 0; i < n; ++i) {
+				// Small range so that there are equal bounds
+				lows[i] = random.nextInt(200) - 50;
+				highs[i] = lows[i] + random.nextInt(60) - 5;
+				values.add(i);
+			}
+			IntervalTree<Integer> tree =
+					new IntervalTree<Integer>(values, lows, highs);
+			assertEquals(n, tree.size());
+
+			// In order of low bound, keeping the order for equal ones
+			List<Integer> sorted = new ArrayList<Integer>(values);
+			Collections.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Integer.compare(lows[i1], lows[i2]);
+				}
+			});
+
+			for (int q = 0; q < 2000; ++q) {
+				int lowAbove = random.nextInt(10) == 0 ? Integer.MIN_VALUE
+						: random.nextInt(260) - 80;
+				int lowBelow = random.nextInt(10) == 0 ? Integer.MAX_VALUE
+						: random.nextInt(260) - 80;
+				int highAbove = random.nextInt(10) == 0 ? Integer.MIN_VALUE
+						: random.nextInt(260) - 80;
+				if (random.nextInt(4) == 0) {
+					// Intervals that contain a time
+					lowAbove = Integer.MIN_VALUE;
+					lowBelow = highAbove;
+				}
+
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int i : sorted)
+					if (lows[i] > lowAbove && lows[i] < lowBelow
+							&& highs[i] > highAbove)
+						expected.add(i);
+				List<Integer> actual = new ArrayList<Integer>();
+				tree.find(lowAbove, lowBelow, highAbove, actual);
+				assertEquals("n=" + n + " lowAbove=" + lowAbove + " lowBelow="
+						+ lowBelow + " highAbove=" + highAbove, expected,
+						actual);
+			}
+		}
+	}
+}
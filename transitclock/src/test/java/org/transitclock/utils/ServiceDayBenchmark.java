@@ -0,0 +1,167 @@
+package org.transitclock.utils;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of converting epoch times to seconds into the day, and
+ * seconds into the day back to epoch times, using the ServiceDayCalculator
+ * compared to the shared synchronized Calendar that Time used to use. The
+ * multi threaded benchmarks show the contention on the Calendar when all of
+ * the AVL processing threads do the conversions at the same time.
+ * <p>
+ * Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=org.transitclock.utils.ServiceDayBenchmark
+ * -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceDayBenchmark {
+
+	private static final String TIME_ZONE = "America/Los_Angeles";
+
+	private final Calendar calendar =
+			new GregorianCalendar(TimeZone.getTimeZone(TIME_ZONE));
+
+	private final ServiceDayCalculator calculator =
+			new ServiceDayCalculator(TimeZone.getTimeZone(TIME_ZONE));
+
+	/**
+	 * Epoch times within a day of now, like the AVL times being processed.
+	 * Separate for each thread so that only the conversions are shared.
+	 */
+	@State(Scope.Thread)
+	public static class Times {
+		private final long[] times = new long[1024];
+		private int index;
+
+		@Setup
+		public void setUp() {
+			Random random = new Random();
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < times.length; ++i)
+				times[i] = now - (long) (random.nextDouble() * Time.MS_PER_DAY);
+		}
+
+		private long next() {
+			index = (index + 1) & (times.length - 1);
+			return times[index];
+		}
+	}
+
+	/**
+	 * How Time.getSecondsIntoDay() used to do the conversion
+	 */
+	private int calendarSecondsIntoDay(long epochTime) {
+		synchronized (calendar) {
+			calendar.setTimeInMillis(epochTime);
+			return calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
+					calendar.get(Calendar.MINUTE) * 60          +
+					calendar.get(Calendar.SECOND);
+		}
+	}
+
+	/**
+	 * How Time.getEpochTime() used to do the conversion
+	 */
+	private long calendarEpochTime(int secondsIntoDay, long referenceTime) {
+		synchronized (calendar) {
+			int seconds = secondsIntoDay % 60;
+			int minutesIntoDay = secondsIntoDay / 60;
+			int minutes = minutesIntoDay % 60;
+			int hoursIntoDay = minutesIntoDay / 60;
+			int hours = hoursIntoDay % 24;
+
+			calendar.setTimeInMillis(referenceTime);
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.set(Calendar.SECOND, seconds);
+			calendar.set(Calendar.MINUTE, minutes);
+			calendar.set(Calendar.HOUR_OF_DAY, hours);
+			long epochTime = calendar.getTimeInMillis();
+
+			if (epochTime > referenceTime + 20 * Time.MS_PER_HOUR)
+				epochTime -= Time.MS_PER_DAY;
+			else if (epochTime < referenceTime - 20 * Time.MS_PER_HOUR)
+				epochTime += Time.MS_PER_DAY;
+			return epochTime;
+		}
+	}
+
+	@Benchmark
+	public int calendarSecondsIntoDay(Times times) {
+		return calendarSecondsIntoDay(times.next());
+	}
+
+	@Benchmark
+	public int calculatorSecondsIntoDay(Times times) {
+		return calculator.getSecondsIntoDay(times.next());
+	}
+
+	@Benchmark
+	public long calendarEpochTime(Times times) {
+		long time = times.next();
+		return calendarEpochTime((int) (time % Time.SEC_PER_DAY), time);
+	}
+
+	@Benchmark
+	public long calculatorEpochTime(Times times) {
+		long time = times.next();
+		return calculator.getEpochTime((int) (time % Time.SEC_PER_DAY), time);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int calendarSecondsIntoDayConcurrent(Times times) {
+		return calendarSecondsIntoDay(times.next());
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int calculatorSecondsIntoDayConcurrent(Times times) {
+		return calculator.getSecondsIntoDay(times.next());
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long calendarEpochTimeConcurrent(Times times) {
+		long time = times.next();
+		return calendarEpochTime((int) (time % Time.SEC_PER_DAY), time);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long calculatorEpochTimeConcurrent(Times times) {
+		long time = times.next();
+		return calculator.getEpochTime((int) (time % Time.SEC_PER_DAY), time);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(ServiceDayBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
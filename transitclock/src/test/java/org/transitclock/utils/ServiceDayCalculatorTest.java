@@ -0,0 +1,194 @@
+package org.transitclock.utils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Compares the ServiceDayCalculator with the GregorianCalendar code that
+ * Time and ServiceUtils used before, around DST transitions, including ones
+ * at midnight, around midnight, and for times outside of the window of days
+ * that are converted using a Calendar.
+ */
+public class ServiceDayCalculatorTest extends TestCase {
+
+	/**
+	 * A time zone and a time that the window of days is centered on that has
+	 * DST transitions around it
+	 */
+	private static final Object[][] ZONES = {
+		{"America/Los_Angeles", "2026-03-08"},
+		{"America/Los_Angeles", "2026-11-01"},
+		{"Europe/London", "2026-03-29"},
+		// DST started and ended at midnight
+		{"America/Sao_Paulo", "2018-02-17"},
+		{"America/Sao_Paulo", "2018-11-04"},
+		{"America/Havana", "2019-03-10"},
+		{"Asia/Tehran", "2019-03-22"},
+		// Half hour of DST
+		{"Australia/Lord_Howe", "2026-04-05"},
+		// 12/30/2011 was skipped
+		{"Pacific/Apia", "2011-12-30"},
+	};
+
+	private static long parseDate(String date, TimeZone timeZone) {
+		String[] fields = date.split("-");
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.clear();
+		calendar.set(Integer.parseInt(fields[0]),
+				Integer.parseInt(fields[1]) - 1, Integer.parseInt(fields[2]),
+				12, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Compares all the conversions for the epoch time, including converting
+	 * seconds into the day back with the time as the reference time.
+	 */
+	private static void assertSameAsCalendar(ServiceDayCalculator calculator,
+			long epochTime, Random random) {
+		String message = calculator.getTimeZone().getID() + " " + epochTime;
+		Calendar calendar = new GregorianCalendar(calculator.getTimeZone());
+
+		calendar.setTimeInMillis(epochTime);
+		int msecsIntoDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 * 60 * 1000
+				+ calendar.get(Calendar.MINUTE) * 60 * 1000
+				+ calendar.get(Calendar.SECOND) * 1000
+				+ calendar.get(Calendar.MILLISECOND);
+		assertEquals(message, msecsIntoDay,
+				calculator.getMsecsIntoDay(epochTime));
+		assertEquals(message, msecsIntoDay / 1000,
+				calculator.getSecondsIntoDay(epochTime));
+		assertEquals(message, calendar.get(Calendar.DAY_OF_WEEK),
+				calculator.getDayOfWeek(epochTime));
+
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		assertEquals(message, calendar.getTimeInMillis(),
+				calculator.getStartOfDay(epochTime));
+
+		// Times of day from the same day, including the non-existent and
+		// ambiguous ones around a transition, just before and after midnight,
+		// and after midnight as in GTFS
+		int[] secondsIntoDays = {
+			msecsIntoDay / 1000,
+			(msecsIntoDay / 1000 + 30 * 60) % Time.SEC_PER_DAY,
+			(msecsIntoDay / 1000 + Time.SEC_PER_DAY - 30 * 60)
+					% Time.SEC_PER_DAY,
+			0,
+			Time.SEC_PER_DAY - 1,
+			random.nextInt(Time.SEC_PER_DAY),
+			Time.SEC_PER_DAY + random.nextInt(6 * Time.SEC_PER_HOUR),
+		};
+		for (int secondsIntoDay : secondsIntoDays)
+			assertEquals(message + " " + secondsIntoDay,
+					getEpochTime(calculator.getTimeZone(), secondsIntoDay,
+							epochTime),
+					calculator.getEpochTime(secondsIntoDay, epochTime));
+	}
+
+	/**
+	 * What Time.getEpochTime() did with a Calendar
+	 */
+	private static long getEpochTime(TimeZone timeZone, int secondsIntoDay,
+			long referenceTime) {
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.setTimeInMillis(referenceTime);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, secondsIntoDay % 60);
+		calendar.set(Calendar.MINUTE, secondsIntoDay / 60 % 60);
+		calendar.set(Calendar.HOUR_OF_DAY, secondsIntoDay / 60 / 60 % 24);
+		long epochTime = calendar.getTimeInMillis();
+		if (epochTime > referenceTime + 20 * Time.MS_PER_HOUR)
+			epochTime -= Time.MS_PER_DAY;
+		else if (epochTime < referenceTime - 20 * Time.MS_PER_HOUR)
+			epochTime += Time.MS_PER_DAY;
+		return epochTime;
+	}
+
+	/**
+	 * Returns the epoch times around the DST transitions and the local
+	 * midnights within the days of the center time
+	 */
+	private static List<Long> getTimesToCheck(TimeZone timeZone,
+			long centerTime, int days, Random random) {
+		List<Long> times = new ArrayList<Long>();
+		long start = centerTime - days * Time.MS_PER_DAY;
+		long end = centerTime + days * Time.MS_PER_DAY;
+		for (long time = start; time < end; time += Time.MS_PER_HOUR) {
+			if (timeZone.getOffset(time) != timeZone.getOffset(time
+					+ Time.MS_PER_HOUR)) {
+				for (long t = time - 6 * Time.MS_PER_HOUR;
+						t < time + 7 * Time.MS_PER_HOUR; t += 7 * Time.MS_PER_MIN)
+					times.add(t + random.nextInt(Time.MS_PER_MIN));
+			}
+		}
+
+		Calendar calendar = new GregorianCalendar(timeZone);
+		calendar.setTimeInMillis(start);
+		while (calendar.getTimeInMillis() < end) {
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			long midnight = calendar.getTimeInMillis();
+			for (long t = midnight - 2 * Time.MS_PER_MIN;
+					t <= midnight + 2 * Time.MS_PER_MIN; t += 30 * Time.MS_PER_SEC)
+				times.add(t);
+			times.add(midnight - 1);
+			times.add(start + (long) (random.nextDouble() * (end - start)));
+			calendar.setTimeInMillis(midnight + 26 * Time.MS_PER_HOUR);
+		}
+		return times;
+	}
+
+	@Test
+	public void testSameAsCalendarWithinWindow() {
+		Random random = new Random(22);
+		for (Object[] zone : ZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone((String) zone[0]);
+			long centerTime = parseDate((String) zone[1], timeZone);
+			ServiceDayCalculator calculator =
+					new ServiceDayCalculator(timeZone, centerTime);
+			// There is a transition to check
+			assertTrue(timeZone.getOffset(centerTime - 50 * Time.MS_PER_DAY)
+					!= timeZone.getOffset(centerTime + 50 * Time.MS_PER_DAY));
+			for (long time : getTimesToCheck(timeZone, centerTime, 50, random)) {
+				assertTrue(zone[0] + " " + time, calculator.isInWindow(time));
+				assertSameAsCalendar(calculator, time, random);
+			}
+		}
+	}
+
+	@Test
+	public void testSameAsCalendarOutsideWindow() {
+		Random random = new Random(23);
+		for (Object[] zone : ZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone((String) zone[0]);
+			ServiceDayCalculator calculator = new ServiceDayCalculator(timeZone);
+			for (int year = 1975; year < 2016; year += 8) {
+				long centerTime = parseDate(year + "-06-01", timeZone);
+				for (long time :
+						getTimesToCheck(timeZone, centerTime, 180, random)) {
+					assertFalse(zone[0] + " " + time,
+							calculator.isInWindow(time));
+					assertSameAsCalendar(calculator, time, random);
+				}
+			}
+
+			// Still converts the current times using the window
+			long now = System.currentTimeMillis();
+			assertTrue(calculator.isInWindow(now));
+			assertSameAsCalendar(calculator, now, random);
+		}
+	}
+}
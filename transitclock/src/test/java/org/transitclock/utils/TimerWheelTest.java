@@ -0,0 +1,139 @@
+package org.transitclock.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Compares the timers that the TimerWheel expires with what the
+ * TimeoutHandlerModule found before it used the wheel, when it looked at the
+ * deadline of every vehicle each polling cycle. A timer must never expire
+ * before its deadline and at most a tick after it. Also checks that timers that
+ * are scheduled while advance() is running are not delayed by a revolution
+ * and that the keys of finished timers are removed.
+ */
+public class TimerWheelTest extends TestCase {
+
+	private static final long TICK_MSEC = 1000;
+
+	@Test
+	public void testSameAsCheckingEveryDeadline() {
+		Random random = new Random(3);
+		TimerWheel<String> wheel = new TimerWheel<String>(TICK_MSEC, 64);
+		// The deadlines the linear scan looks at
+		final Map<String, Long> deadlines = new HashMap<String, Long>();
+		final Set<String> expired = new HashSet<String>();
+		final Map<String, Long> rescheduled = new HashMap<String, Long>();
+
+		long now = 100 * TICK_MSEC;
+		for (int cycle = 0; cycle < 500; ++cycle) {
+			// Set deadlines for some keys, pushing them back or forward and
+			// some more than a revolution away
+			for (int i = 0; i < 20; ++i) {
+				String key = "vehicle" + random.nextInt(100);
+				long deadline = now + random.nextInt(random.nextInt(10) == 0 ?
+						200 * (int) TICK_MSEC : 20 * (int) TICK_MSEC);
+				wheel.schedule(key, deadline);
+				deadlines.put(key, deadline);
+			}
+			now += random.nextInt(3 * (int) TICK_MSEC);
+
+			// What the scan would find, and the ones the wheel must find.
+			// It only has to handle the ticks that have completely passed.
+			long passed = now / TICK_MSEC * TICK_MSEC;
+			Set<String> scanned = new HashSet<String>();
+			Set<String> required = new HashSet<String>();
+			for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+				if (entry.getValue() < now)
+					scanned.add(entry.getKey());
+				if (entry.getValue() < passed)
+					required.add(entry.getKey());
+			}
+
+			expired.clear();
+			rescheduled.clear();
+			final long cycleNow = now;
+			final Random handlerRandom = new Random(cycle);
+			int numExpired = wheel.advance(now,
+					new TimerWheel.Handler<String>() {
+						@Override
+						public long expired(String key, long deadline,
+								long now) {
+							assertEquals(cycleNow, now);
+							expired.add(key);
+							// Like the handler for schedule based vehicles
+							if (handlerRandom.nextInt(4) == 0) {
+								long newDeadline = now + 5 * TICK_MSEC;
+								rescheduled.put(key, newDeadline);
+								return newDeadline;
+							}
+							return TimerWheel.NO_DEADLINE;
+						}
+					});
+			assertTrue("cycle " + cycle, scanned.containsAll(expired));
+			assertTrue("cycle " + cycle, expired.containsAll(required));
+			assertEquals(expired.size(), numExpired);
+
+			for (String key : expired)
+				deadlines.remove(key);
+			deadlines.putAll(rescheduled);
+			assertEquals(deadlines.size(), wheel.getNumArmed());
+			// Keys of timers that are done don't stay around
+			assertEquals(deadlines.size(), wheel.size());
+		}
+	}
+
+	@Test
+	public void testScheduleDuringAdvanceNotDelayed() throws Exception {
+		final int numSlots = 1024;
+		final TimerWheel<Integer> wheel =
+				new TimerWheel<Integer>(1, numSlots);
+		final AtomicLong now = new AtomicLong(10);
+		final AtomicBoolean done = new AtomicBoolean();
+
+		// Keeps setting deadlines just after the current time, so they are
+		// often in the slots advance() is about to process
+		Thread[] schedulers = new Thread[3];
+		for (int t = 0; t < schedulers.length; ++t) {
+			final int offset = t * 1000;
+			schedulers[t] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(offset);
+					while (!done.get())
+						wheel.schedule(offset + random.nextInt(1000),
+								now.get() + random.nextInt(3));
+				}
+			};
+			schedulers[t].start();
+		}
+
+		TimerWheel.Handler<Integer> handler = new TimerWheel.Handler<Integer>() {
+			@Override
+			public long expired(Integer key, long deadline, long now) {
+				return TimerWheel.NO_DEADLINE;
+			}
+		};
+		for (int i = 0; i < 20000; ++i)
+			wheel.advance(now.incrementAndGet(), handler);
+		done.set(true);
+		for (Thread scheduler : schedulers)
+			scheduler.join();
+
+		// Whatever is left expires shortly after its deadline. A timer that
+		// was added to a slot that had already been processed would only be
+		// found a revolution later, and pushing its deadline back doesn't
+		// move it.
+		wheel.advance(now.addAndGet(5), handler);
+		assertEquals(0, wheel.getNumArmed());
+		assertEquals(0, wheel.size());
+	}
+}
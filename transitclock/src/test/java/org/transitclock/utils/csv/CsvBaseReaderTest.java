@@ -0,0 +1,150 @@
+package org.transitclock.utils.csv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Test;
+
+/**
+ * Checks that only readers that implement CsvBaseReader.FastRecordHandler are
+ * parsed using FastCsvParser, and that they then read in the same objects as
+ * when parsed using commons-csv, including when a large file is parsed in
+ * chunks.
+ */
+public class CsvBaseReaderTest extends TestCase {
+
+	private File directory;
+
+	/**
+	 * Reader that can only be parsed using commons-csv
+	 */
+	private static class RowReader extends CsvBaseReader<String> {
+		private RowReader(String dirName, String fileName) {
+			super(dirName, fileName, true, false);
+		}
+
+		@Override
+		protected String handleRecord(CSVRecord record, boolean supplemental)
+				throws ParseException, NumberFormatException {
+			if (record.get("id").equals("filtered"))
+				return null;
+			return record.get("id") + "|" + record.get("name") + "|"
+					+ Integer.parseInt(record.get("value"));
+		}
+	}
+
+	/**
+	 * Reader that can also be parsed using FastCsvParser
+	 */
+	private static class FastRowReader extends RowReader
+			implements CsvBaseReader.FastRecordHandler<String> {
+		private final AtomicInteger numFastRecords = new AtomicInteger();
+
+		private FastRowReader(String dirName, String fileName) {
+			super(dirName, fileName);
+		}
+
+		@Override
+		public String handleRecord(FastCsvRecord record, boolean supplemental)
+				throws NumberFormatException {
+			numFastRecords.incrementAndGet();
+			String id = record.get(record.getColumn("id"));
+			if (id.equals("filtered"))
+				return null;
+			return id + "|" + record.get(record.getColumn("name")) + "|"
+					+ record.getInt(record.getColumn("value"));
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("csv", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	private void writeFile(String fileName, String contents)
+			throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(
+				directory, fileName)), "UTF-8");
+		out.write(contents);
+		out.close();
+	}
+
+	private static List<String> parse(CsvBaseReader<String> reader,
+			boolean useFastParsing, int numThreads) {
+		final List<String> rows = new ArrayList<String>();
+		reader.parse(new CsvBaseReader.Handler<String>() {
+			@Override
+			public void handle(String row) {
+				rows.add(row);
+			}
+		}, useFastParsing, numThreads);
+		return rows;
+	}
+
+	@Test
+	public void testOnlyFastRecordHandlersParsedUsingFastParser()
+			throws IOException {
+		// BOM, quoting, comments, blank lines, a record that is filtered out
+		// and one with a bad number that is logged and skipped
+		writeFile("rows.txt", "\uFEFFid,name,value\r\n"
+				+ "1,plain,10\r\n"
+				+ "-- commented out,x,1\r\n"
+				+ "\r\n"
+				+ "2,\"with, comma\",20\r\n"
+				+ "filtered,x,30\r\n"
+				+ "3,\"with \"\"quotes\"\"\",abc\r\n"
+				+ "4,last,-40\r\n");
+		List<String> expected = new ArrayList<String>();
+		expected.add("1|plain|10");
+		expected.add("2|with, comma|20");
+		expected.add("4|last|-40");
+
+		// A reader that doesn't implement FastRecordHandler is parsed using
+		// commons-csv even when fast parsing is enabled
+		String dirName = directory.getPath();
+		assertEquals(expected, parse(new RowReader(dirName, "rows.txt"), true, 1));
+
+		FastRowReader reader = new FastRowReader(dirName, "rows.txt");
+		assertEquals(expected, parse(reader, false, 1));
+		assertEquals(0, reader.numFastRecords.get());
+		assertEquals(expected, parse(reader, true, 1));
+		assertEquals(5, reader.numFastRecords.get());
+	}
+
+	@Test
+	public void testLargeFileSameAsCommonsCsv() throws IOException {
+		// Large enough to be parsed in chunks by multiple threads
+		StringBuilder contents = new StringBuilder("id,name,value\n");
+		for (int i = 0; contents.length() < 10 * 1024 * 1024; ++i)
+			contents.append(i).append(",\"name ").append(i % 97)
+					.append(", quoted\",").append(i % 1000).append('\n');
+		writeFile("large.txt", contents.toString());
+
+		FastRowReader reader =
+				new FastRowReader(directory.getPath(), "large.txt");
+		List<String> expected = parse(reader, false, 1);
+		assertTrue(expected.size() > 100000);
+		assertEquals(expected, parse(reader, true, 1));
+		assertEquals(expected, parse(reader, true, 3));
+		assertEquals(2 * expected.size(), reader.numFastRecords.get());
+	}
+}
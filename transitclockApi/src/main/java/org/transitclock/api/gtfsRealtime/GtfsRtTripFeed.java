@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -18,360 +18,187 @@
 package org.transitclock.api.gtfsRealtime;
 
 import java.rmi.RemoteException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitclock.api.utils.AgencyTimezoneCache;
-import org.transitclock.config.IntegerConfigValue;
-import org.transitclock.core.holdingmethod.PredictionTimeComparator;
 import org.transitclock.ipc.clients.PredictionsInterfaceFactory;
-import org.transitclock.ipc.data.IpcPrediction;
-import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
-import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader;
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
-import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
- 
 /**
- * For creating GTFS-realtime trip feed. The data is obtained from the server
- * via RMI.
+ * For providing the GTFS-realtime trip feed. The feed is maintained
+ * incrementally by the server, as predictions are generated, and is obtained
+ * already serialized via RMI. See
+ * org.transitclock.core.dataCache.TripUpdatesFeedCache for how the trip
+ * updates are created.
  * <p>
- * Note: for the trip feed predictions that are schedule based instead of GPS
- * based the StopTimeEvent uncertainty is set to
- * SCHED_BASED_PRED_UNCERTAINTY_VALUE so that the client can treat the
- * prediction differently. If a vehicle is delayed and not moving then
- * uncertainty is set to DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and
- * the prediction is for a subsequent trip then uncertainty is set to
- * LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
- * 
+ * The latest full feed for each agency is cached. When the cache time has
+ * passed the server is asked for the feed with the version that is already
+ * cached so that the feed is only sent again if it has actually changed.
+ * DIFFERENTIAL feeds are cached for each version that clients have asked
+ * for changes since, so that clients polling with the same version only
+ * cause one request to the server per cache time.
+ *
  * @author SkiBu Smith
  *
  */
 public class GtfsRtTripFeed {
 
-	private final String agencyId;
-	
-	// For outputting date in GTFS-realtime format
-	private SimpleDateFormat gtfsRealtimeDateFormatter = 
-			new SimpleDateFormat("yyyyMMdd");
-	
-	private SimpleDateFormat gtfsRealtimeTimeFormatter = 
-			new SimpleDateFormat("HH:mm:ss");
-	
-	
-	private static IntegerConfigValue predictionMaxFutureSecs = new IntegerConfigValue(
-			"transitclock.api.predictionMaxFutureSecs", 60 * 60,
-			"Number of seconds in the future to accept predictions before");
-	private static final int PREDICTION_MAX_FUTURE_SECS = predictionMaxFutureSecs.getValue();
+	// The latest full feed for each agency
+	private static final ConcurrentMap<String, CachedFeed> cachedFeeds =
+			new ConcurrentHashMap<String, CachedFeed>();
 
-	
-	// For when creating StopTimeEvent for schedule based prediction  
-	// 5 minutes (300 seconds)
-	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60; 
-	
-	// For when creating StopTimeEvent and the vehicle is delayed
-	private static final int DELAYED_UNCERTAINTY_VALUE = 
-			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
-	
-	// If vehicle is late and prediction is for a subsequent trip then
-	// the predictions are not as certain because it is reasonably likely
-	// that another vehicle will take over the subsequent trip. Takes
-	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
-	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE = 
-			DELAYED_UNCERTAINTY_VALUE + 1;
-	
-	private static final Logger logger = 
+	private static final Logger logger =
 			LoggerFactory.getLogger(GtfsRtTripFeed.class);
 
 	/********************** Member Functions **************************/
 
-	public GtfsRtTripFeed(String agencyId) {
-		this.agencyId = agencyId;	
-		
-		this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache
-				.get(agencyId));
-	}
-
 	/**
-	 * Create TripUpdate for the trip.
-	 * 
-	 * @param predsForTrip
-	 * @return
+	 * The latest full feed for an agency, or a DIFFERENTIAL feed since a
+	 * version. Synchronized on when it needs to be updated so that only one
+	 * request for it goes to the server.
 	 */
-	private TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
-		// Create the parent TripUpdate object that is returned.
-		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
-
-		// Add the trip descriptor information
-		IpcPrediction firstPred = predsForTrip.get(0);
-		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
-		if (firstPred.getRouteId() != null)
-			tripDescriptor.setRouteId(firstPred.getRouteId());
-		if (firstPred.getTripId() != null) {
-			tripDescriptor.setTripId(firstPred.getTripId());
-			 			
-			try {
-				if(firstPred.getFreqStartTime()>0)
-				{
-					String tripStartTimeStr=gtfsRealtimeTimeFormatter.format(new Date(firstPred.getFreqStartTime()));
-					tripDescriptor.setStartTime(tripStartTimeStr);
-				}
-			} catch (Exception e) {
-				
-			}
-			
-			long tripStartEpochTime = firstPred.getTripStartEpochTime();
-			String tripStartDateStr =
-					gtfsRealtimeDateFormatter.format(new Date(
-							tripStartEpochTime));
-			tripDescriptor.setStartDate(tripStartDateStr);
+	private static class CachedFeed {
+		private volatile IpcGtfsRtFeed feed;
+		private volatile long timeFetched;
+
+		// The DIFFERENTIAL feeds of the agency, keyed on the version they
+		// contain the changes since. Only used for the full feed.
+		private final ConcurrentMap<Long, CachedFeed> differentialFeeds =
+				new ConcurrentHashMap<Long, CachedFeed>();
+
+		private boolean isFresh(int cacheTime) {
+			return feed != null && timeFetched
+					>= System.currentTimeMillis() - cacheTime * Time.MS_PER_SEC;
 		}
-		tripUpdate.setTrip(tripDescriptor);
-		if (firstPred.getDelay() != null)
-		  tripUpdate.setDelay(firstPred.getDelay()); // set schedule deviation
 
-		// Add the VehicleDescriptor information
-		VehicleDescriptor.Builder vehicleDescriptor =
-				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
-		tripUpdate.setVehicle(vehicleDescriptor);
-
-		// Add the StopTimeUpdate information for each prediction
-		for (IpcPrediction pred : predsForTrip) {
-			StopTimeUpdate.Builder stopTimeUpdate =	StopTimeUpdate.newBuilder()
-					.setStopSequence(pred.getGtfsStopSeq())
-					.setStopId(pred.getStopId());
-			
-			StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
-			stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
-			
-			// If schedule based prediction then set the uncertainty to special
-			// value so that client can tell
-			if (pred.isSchedBasedPred())
-				stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
-			
-			// If vehicle is late and prediction is for a subsequent trip then
-			// the predictions are not as certain because it is reasonably likely
-			// that another vehicle will take over the subsequent trip. Takes
-			// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
-			if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
-				stopTimeEvent.setUncertainty(LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
-			
-			// If vehicle not making forward progress then set uncertainty to
-			// special value so that client can tell. Takes precedence over 
-			// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
-			if (pred.isDelayed())
-				stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
-			
-			if (pred.isArrival())
-				stopTimeUpdate.setArrival(stopTimeEvent);
-			else
-				stopTimeUpdate.setDeparture(stopTimeEvent);
-			
-
-			if(pred.isSchedBasedPred())
-				stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
-			else
-				stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.NO_DATA);
-			
-
-			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
-		}
-		
-		// Add timestamp
-		tripUpdate.setTimestamp(firstPred.getAvlTime() / Time.MS_PER_SEC);
-		
-		// Return the results
-		return tripUpdate.build();
-	}
-	
-	/**
-	 * Creates a GTFS-realtime message for the predictions by trip passed in.
-	 * 
-	 * @param predsByTripMap
-	 *            the data to be put into the GTFS-realtime message
-	 * @return the GTFS-realtime FeedMessage
-	 */
-	private FeedMessage createMessage(Map<String, List<IpcPrediction>> predsByTripMap) {
-		FeedMessage.Builder message = FeedMessage.newBuilder();
-		
-		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
-				.setGtfsRealtimeVersion("1.0")
-				.setIncrementality(Incrementality.FULL_DATASET)
-				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
-		message.setHeader(feedheader);
-		  
-		// For each trip...
-		for (List<IpcPrediction> predsForTrip : predsByTripMap.values()) {
-			
-			//  Need to check if predictions for frequency based trip and group by start time if they are. 
-			if(isFrequencyBasedTrip(predsForTrip))
-			{
-				try {
-					Map<Long, List<IpcPrediction>> map = createFreqStartTimePredictionMap(predsForTrip);
-					
-					for(Long key:map.keySet())
-					{
-						if(!map.get(key).isEmpty())
-						{
-							FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
-									.setId(map.get(key).get(0).getVehicleId());						
-							TripUpdate tripUpdate = createTripUpdate(map.get(key));
-							feedEntity.setTripUpdate(tripUpdate);		
-							message.addEntity(feedEntity);
-						}
-					}
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}							
-			}else
-			{			
-				// Create feed entity for each schedule trip
-				FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
-						.setId(predsForTrip.get(0).getTripId());
-				try {				
-					TripUpdate tripUpdate = createTripUpdate(predsForTrip);
-					feedEntity.setTripUpdate(tripUpdate);		
-		    		message.addEntity(feedEntity);
-				} catch (Exception e) {
-					logger.error("Error parsing trip update data. {}",
-							predsForTrip, e);
+		/**
+		 * Returns the cached DIFFERENTIAL feed since the version, creating
+		 * an empty one if there is none. Feeds that are no longer fresh are
+		 * removed first since clients move on to newer versions, so only
+		 * the versions asked for within the cache time are kept.
+		 */
+		private CachedFeed getDifferentialFeed(long sinceVersion,
+				int cacheTime) {
+			CachedFeed cachedFeed = differentialFeeds.get(sinceVersion);
+			if (cachedFeed == null) {
+				for (Map.Entry<Long, CachedFeed> entry
+						: differentialFeeds.entrySet()) {
+					if (entry.getValue().feed != null
+							&& !entry.getValue().isFresh(cacheTime))
+						differentialFeeds.remove(entry.getKey(),
+								entry.getValue());
 				}
+				CachedFeed newCachedFeed = new CachedFeed();
+				cachedFeed = differentialFeeds.putIfAbsent(sinceVersion,
+						newCachedFeed);
+				if (cachedFeed == null)
+					cachedFeed = newCachedFeed;
 			}
-		}		
-		
-		return message.build();
-	}
-	private boolean isFrequencyBasedTrip(List<IpcPrediction> predsForTrip)		
-	{
-		for(IpcPrediction prediction:predsForTrip) 
-		{		
-				if(prediction.getFreqStartTime() > 0)
-					return true;		
-		}
-		return false;		
-	}
-	private Map<Long, List<IpcPrediction>> createFreqStartTimePredictionMap(List<IpcPrediction> predsForTrip)
-	{
-		Map<Long, List<IpcPrediction>> map=new HashMap<>();
-		for(IpcPrediction prediction:predsForTrip)
-		{
-			if(map.get(prediction.getFreqStartTime())==null)
-			{
-				List<IpcPrediction> list=new ArrayList<IpcPrediction>(); 
-				map.put(prediction.getFreqStartTime(), list);
-								
-			}			
-			map.get(prediction.getFreqStartTime()).add(prediction);	
-			
-			Collections.sort(map.get(prediction.getFreqStartTime()), new PredictionTimeComparator());
+			return cachedFeed;
 		}
-		return map;		
 	}
-	/**
-	 * Returns map of all predictions for the project. Returns null if there was
-	 * a problem getting the data via RMI. There is a separate list of
-	 * predictions for each trip. The map is keyed by tripId.
-	 * 
-	 * @return Map keyed on tripId of List of Predictions for the trip, or null
-	 *         if could not get data from server.
-	 */
-	private Map<String, List<IpcPrediction>> getPredictionsPerTrip() {
-		// Get all the predictions, grouped by vehicle, from the server
-		List<IpcPredictionsForRouteStopDest> allPredictionsByStop;
-		try {
-			allPredictionsByStop = PredictionsInterfaceFactory.get(agencyId)
-					.getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
-		} catch (RemoteException e) {
-			logger.error("Exception when getting vehicles from RMI", e);
-			return null;
-		}
-		
-		// Group the predictions by trip instead of by vehicle
-		Map<String, List<IpcPrediction>> predictionsByTrip = 
-				new HashMap<String, List<IpcPrediction>>();
-		for (IpcPredictionsForRouteStopDest predictionsForStop : 
-				allPredictionsByStop) {
-			for (IpcPrediction prediction : 
-					predictionsForStop.getPredictionsForRouteStop()) {
-				String tripId = prediction.getTripId();
-				List<IpcPrediction> predsForTrip = predictionsByTrip.get(tripId);
-				if (predsForTrip == null) {
-					// A new trip so need to use a new trip list
-					predsForTrip = new ArrayList<IpcPrediction>();
-					predictionsByTrip.put(tripId, predsForTrip);					
-				}
-				
-				predsForTrip.add(prediction);
-			}
+
+	private static CachedFeed getCachedFeed(String agencyId) {
+		CachedFeed cachedFeed = cachedFeeds.get(agencyId);
+		if (cachedFeed == null) {
+			CachedFeed newCachedFeed = new CachedFeed();
+			cachedFeed = cachedFeeds.putIfAbsent(agencyId, newCachedFeed);
+			if (cachedFeed == null)
+				cachedFeed = newCachedFeed;
 		}
-		
-		// Return results
-		return predictionsByTrip;
+		return cachedFeed;
 	}
 
 	/**
-	 * Gets the Vehicle data from RMI and creates corresponding
-	 * GTFS-RT vehicle feed.
-	 * 
-	 * @return GTFS-RT FeedMessage for vehicle positions
+	 * Returns the full dataset TripUpdates feed, using the cached one if it
+	 * is not older than cacheTime.
+	 *
+	 * @param agencyId
+	 * @param cacheTime
+	 *            seconds
+	 * @return the serialized feed along with its version
+	 * @throws RemoteException
 	 */
-	public FeedMessage createMessage() {
-		// Get prediction data from server
-		IntervalTimer timer = new IntervalTimer();
-		Map<String, List<IpcPrediction>> predsByTrip = getPredictionsPerTrip();
-		logger.debug("Getting predictions via RMI for " +
-				"GtfsRtTripFeed.createMessage() took {} msec", 
-				timer.elapsedMsec());
-		
-		// Use prediction data to create GTFS-RT message and return it.
-		return createMessage(predsByTrip);
+	public static IpcGtfsRtFeed getPossiblyCachedFeed(String agencyId,
+			int cacheTime) throws RemoteException {
+		CachedFeed cachedFeed = getCachedFeed(agencyId);
+		if (cachedFeed.isFresh(cacheTime))
+			return cachedFeed.feed;
+
+		synchronized (cachedFeed) {
+			// Cache may have been filled while waiting.
+			if (cachedFeed.isFresh(cacheTime))
+				return cachedFeed.feed;
+
+			IntervalTimer timer = new IntervalTimer();
+			long cachedVersion =
+					cachedFeed.feed == null ? 0 : cachedFeed.feed.getVersion();
+			IpcGtfsRtFeed feed = PredictionsInterfaceFactory.get(agencyId)
+					.getTripUpdatesFeed(cachedVersion, false);
+			logger.debug("Getting {} via RMI for agencyId={} took {} msec",
+					feed, agencyId, timer.elapsedMsec());
+
+			// If not modified then the cached feed is still current
+			if (!feed.isNotModified())
+				cachedFeed.feed = feed;
+			cachedFeed.timeFetched = System.currentTimeMillis();
+			return cachedFeed.feed;
+		}
 	}
 
-	// For getPossiblyCachedMessage()
-	private static final DataCache tripFeedDataCache = new DataCache();
-	
 	/**
-	 * For caching Vehicle Positions feed messages.
-	 * 
+	 * Returns a DIFFERENTIAL TripUpdates feed containing only the trips that
+	 * have changed since the version that the client already has. If the
+	 * client doesn't have a version, or it is too old, then the full dataset
+	 * is returned instead. The feed since each version is cached for
+	 * cacheTime.
+	 *
 	 * @param agencyId
+	 * @param sinceVersion
+	 *            the version the client already has, or 0 if none
 	 * @param cacheTime
-	 * @return
+	 *            seconds
+	 * @return the serialized feed along with its version
+	 * @throws RemoteException
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId, int cacheTime) {
-	    FeedMessage feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    if (feedMessage != null)
-	    	return feedMessage;
-	    
-	    synchronized(tripFeedDataCache) {
-	    	
-	    	// Cache may have been filled while waiting.
-	    	feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    	if (feedMessage != null)
-	    		return feedMessage;
-	    	
-	    	GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-		    feedMessage = feed.createMessage();
-		    tripFeedDataCache.put(agencyId, feedMessage);
-	    }
-	    
-	    return feedMessage;
+	public static IpcGtfsRtFeed getDifferentialFeed(String agencyId,
+			long sinceVersion, int cacheTime) throws RemoteException {
+		if (sinceVersion <= 0)
+			return getPossiblyCachedFeed(agencyId, cacheTime);
+
+		// If the client already has the version that was just cached then
+		// there is no need to ask the server
+		CachedFeed cachedFeed = getCachedFeed(agencyId);
+		IpcGtfsRtFeed feed = cachedFeed.feed;
+		if (cachedFeed.isFresh(cacheTime) && feed.getVersion() == sinceVersion)
+			return new IpcGtfsRtFeed(sinceVersion, null, true);
+
+		CachedFeed differentialFeed =
+				cachedFeed.getDifferentialFeed(sinceVersion, cacheTime);
+		if (differentialFeed.isFresh(cacheTime))
+			return differentialFeed.feed;
+
+		synchronized (differentialFeed) {
+			// Cache may have been filled while waiting.
+			if (differentialFeed.isFresh(cacheTime))
+				return differentialFeed.feed;
+
+			IntervalTimer timer = new IntervalTimer();
+			feed = PredictionsInterfaceFactory.get(agencyId)
+					.getTripUpdatesFeed(sinceVersion, true);
+			logger.debug("Getting {} since version {} via RMI for "
+					+ "agencyId={} took {} msec", feed, sinceVersion, agencyId,
+					timer.elapsedMsec());
+
+			differentialFeed.feed = feed;
+			differentialFeed.timeFetched = System.currentTimeMillis();
+			return feed;
+		}
 	}
 
 }
@@ -18,235 +18,110 @@
 package org.transitclock.api.gtfsRealtime;
 
 import java.rmi.RemoteException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Collection;
-import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitclock.api.utils.AgencyTimezoneCache;
 import org.transitclock.ipc.clients.VehiclesInterfaceFactory;
-import org.transitclock.ipc.data.IpcVehicleGtfsRealtime;
-import org.transitclock.ipc.interfaces.VehiclesInterface;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
-import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader;
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-import com.google.transit.realtime.GtfsRealtime.Position;
-import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
-import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
-import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
-import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
-
 /**
- * For creating GTFS-realtime Vehicle feed. The data is obtained via RMI.
+ * For providing the GTFS-realtime Vehicle Positions feed. The server keeps an
+ * already serialized snapshot of the feed, updated as vehicles change, and it
+ * is obtained via RMI. See
+ * org.transitclock.core.dataCache.VehiclePositionsFeedCache for how the
+ * vehicle positions are created.
+ * <p>
+ * The latest feed for each agency is cached, both uncompressed and gzip
+ * compressed, so that the bytes can be written out as is. When the cache time
+ * has passed the server is asked for the feed with the version that is
+ * already cached so that the feed is only sent again if it has changed.
  *
  * @author SkiBu Smith
  *
  */
 public class GtfsRtVehicleFeed {
 
-	private final String agencyId;
+	// The latest feed for each agency
+	private static final ConcurrentMap<String, CachedFeed> cachedFeeds =
+			new ConcurrentHashMap<String, CachedFeed>();
+
+	// The latest gzip compressed feed for each agency
+	private static final ConcurrentMap<String, CachedFeed> cachedGzippedFeeds =
+			new ConcurrentHashMap<String, CachedFeed>();
 
-	// For outputting date in GTFS-realtime format
-	private SimpleDateFormat gtfsRealtimeDateFormatter = 
-			new SimpleDateFormat("yyyyMMdd");
-	
-	private SimpleDateFormat gtfsRealtimeTimeFormatter = 
-			new SimpleDateFormat("HH:mm:ss");
-	
 	private static final Logger logger = LoggerFactory
 			.getLogger(GtfsRtVehicleFeed.class);
 
 	/********************** Member Functions **************************/
 
-	public GtfsRtVehicleFeed(String agencyId) {
-		this.agencyId = agencyId;
-		
-		this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache
-				.get(agencyId));
-	}
-
 	/**
-	 * Takes in IpcGtfsRealtimeVehicle and puts it into a GTFS-realtime
-	 * VehiclePosition object.
-	 * 
-	 * @param vehicleData
-	 * @return the resulting VehiclePosition
-	 * @throws ParseException
+	 * The latest feed for an agency. Synchronized on when it needs to be
+	 * updated so that only one request per agency goes to the server.
 	 */
-	private VehiclePosition createVehiclePosition(
-			IpcVehicleGtfsRealtime vehicleData) throws ParseException {
-		// Create the parent VehiclePosition object that is returned.
-		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+	private static class CachedFeed {
+		private volatile IpcGtfsRtFeed feed;
+		private volatile long timeFetched;
 
-		// If there is route information then add it via the TripDescriptor
-		if (vehicleData.getRouteId() != null
-				&& vehicleData.getRouteId().length() > 0) {
-			String tripStartDateStr =
-					gtfsRealtimeDateFormatter.format(new Date(vehicleData
-							.getTripStartEpochTime()));
-			TripDescriptor.Builder tripDescriptor =					
-					TripDescriptor.newBuilder()
-							.setRouteId(vehicleData.getRouteId())
-							.setTripId(vehicleData.getTripId())
-							.setStartDate(tripStartDateStr);
-			if(vehicleData.getFreqStartTime()>0)
-			{
-				String tripStartTimeStr=gtfsRealtimeTimeFormatter.format(new Date(vehicleData.getFreqStartTime()));
-				tripDescriptor.setStartTime(tripStartTimeStr);
-			}
-			vehiclePosition.setTrip(tripDescriptor);
-			
-		}
-
-		// Add the VehicleDescriptor information
-		VehicleDescriptor.Builder vehicleDescriptor =
-				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
-		// License plate information is optional so only add it if not null
-		if (vehicleData.getLicensePlate() != null)
-			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
-		vehiclePosition.setVehicle(vehicleDescriptor);
-
-		// Add the Position information
-		Position.Builder position =
-				Position.newBuilder().setLatitude(vehicleData.getLatitude())
-						.setLongitude(vehicleData.getLongitude());
-		// Heading and speed are optional so only add them if actually a
-		// valid number.
-		if (!Float.isNaN(vehicleData.getHeading())) {
-			position.setBearing(vehicleData.getHeading());
-		}
-		if (!Float.isNaN(vehicleData.getSpeed())) {
-			position.setSpeed(vehicleData.getSpeed());
+		private boolean isFresh(int cacheTime) {
+			return feed != null && timeFetched
+					>= System.currentTimeMillis() - cacheTime * Time.MS_PER_SEC;
 		}
-		vehiclePosition.setPosition(position);
-
-		// Convert the GPS timestamp information to an epoch time as
-		// number of milliseconds since 1970.
-		long gpsTime = vehicleData.getGpsTime();
-		vehiclePosition.setTimestamp(gpsTime / Time.MS_PER_SEC);
-
-		// Set the stop_id if at a stop or going to a stop
-		String stopId = vehicleData.getAtOrNextStopId();
-		if (stopId != null)
-			vehiclePosition.setStopId(stopId);
-
-		// Set current_status part of vehiclePosition if vehicle is actually
-		// predictable. If not predictable then the vehicle stop status will
-		// not be included in feed since it is not stopped nor in transit to.
-		if (vehicleData.isPredictable()) {
-			VehicleStopStatus currentStatus =
-					vehicleData.isAtStop() ? VehicleStopStatus.STOPPED_AT
-							: VehicleStopStatus.IN_TRANSIT_TO;
-			vehiclePosition.setCurrentStatus(currentStatus);
-			
-			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
-				vehiclePosition.setCurrentStopSequence(vehicleData.getAtOrNextGtfsStopSeq());
-		}
-
-		// Return the results
-		return vehiclePosition.build();
 	}
 
-	/**
-	 * Creates a GTFS-realtime message for the list of ApiVehicle passed in.
-	 * 
-	 * @param vehicles
-	 *            the data to be put into the GTFS-realtime message
-	 * @return the GTFS-realtime FeedMessage
-	 */
-	private FeedMessage createMessage(
-			Collection<IpcVehicleGtfsRealtime> vehicles) {
-		FeedMessage.Builder message = FeedMessage.newBuilder();
-
-		FeedHeader.Builder feedheader =
-				FeedHeader
-						.newBuilder()
-						.setGtfsRealtimeVersion("1.0")
-						.setIncrementality(Incrementality.FULL_DATASET)
-						.setTimestamp(
-								System.currentTimeMillis() / Time.MS_PER_SEC);
-		message.setHeader(feedheader);
-
-		for (IpcVehicleGtfsRealtime vehicle : vehicles) {
-			FeedEntity.Builder vehiclePositionEntity =
-					FeedEntity.newBuilder().setId(vehicle.getId());
-
-			try {
-				VehiclePosition vehiclePosition =
-						createVehiclePosition(vehicle);
-				vehiclePositionEntity.setVehicle(vehiclePosition);
-				message.addEntity(vehiclePositionEntity);
-			} catch (Exception e) {
-				logger.error("Error parsing vehicle data for vehicle={}",
-						vehicle, e);
-			}
-		}
-
-		return message.build();
-	}
-
-	/**
-	 * Returns collection of all vehicles for the project obtained via RMI.
-	 * Returns null if there was a problem getting the data via RMI
-	 * 
-	 * @return Collection of Vehicle objects, or null if not available.
-	 */
-	private Collection<IpcVehicleGtfsRealtime> getVehicles() {
-		VehiclesInterface vehiclesInterface =
-				VehiclesInterfaceFactory.get(agencyId);
-		Collection<IpcVehicleGtfsRealtime> vehicles = null;
-		try {
-			vehicles = vehiclesInterface.getGtfsRealtime();
-		} catch (RemoteException e) {
-			logger.error("Exception when getting vehicles from RMI", e);
+	private static CachedFeed getCachedFeed(
+			ConcurrentMap<String, CachedFeed> feeds, String agencyId) {
+		CachedFeed cachedFeed = feeds.get(agencyId);
+		if (cachedFeed == null) {
+			CachedFeed newCachedFeed = new CachedFeed();
+			cachedFeed = feeds.putIfAbsent(agencyId, newCachedFeed);
+			if (cachedFeed == null)
+				cachedFeed = newCachedFeed;
 		}
-		return vehicles;
-	}
-
-	/**
-	 * Gets the Vehicle data from RMI and creates corresponding GTFS-RT vehicle
-	 * feed.
-	 * 
-	 * @return GTFS-RT FeedMessage for vehicle positions
-	 */
-	public FeedMessage createMessage() {
-		Collection<IpcVehicleGtfsRealtime> vehicles = getVehicles();
-		return createMessage(vehicles);
+		return cachedFeed;
 	}
 
-	// For getPossiblyCachedMessage()
-	private static final DataCache vehicleFeedDataCache = new DataCache();
-
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * Returns the Vehicle Positions feed, using the cached one if it is not
+	 * older than cacheTime.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
-	 * @return
+	 *            seconds
+	 * @param gzip
+	 *            if true then the gzip compressed feed is returned if the
+	 *            server provides one. Check IpcGtfsRtFeed.isGzipped().
+	 * @return the serialized feed along with its version
+	 * @throws RemoteException
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId,
-			int cacheTime) {
-		FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-		if (feedMessage != null)
-			return feedMessage;
-		
-		synchronized(vehicleFeedDataCache) {
-		
+	public static IpcGtfsRtFeed getPossiblyCachedFeed(String agencyId,
+			int cacheTime, boolean gzip) throws RemoteException {
+		CachedFeed cachedFeed = getCachedFeed(
+				gzip ? cachedGzippedFeeds : cachedFeeds, agencyId);
+		if (cachedFeed.isFresh(cacheTime))
+			return cachedFeed.feed;
+
+		synchronized (cachedFeed) {
 			// Cache may have been filled while waiting.
-			feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-			if (feedMessage != null)
-				return feedMessage;
-		
-			GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-			feedMessage = feed.createMessage();
-			vehicleFeedDataCache.put(agencyId, feedMessage);
+			if (cachedFeed.isFresh(cacheTime))
+				return cachedFeed.feed;
+
+			IntervalTimer timer = new IntervalTimer();
+			long cachedVersion =
+					cachedFeed.feed == null ? 0 : cachedFeed.feed.getVersion();
+			IpcGtfsRtFeed feed = VehiclesInterfaceFactory.get(agencyId)
+					.getVehiclePositionsFeed(cachedVersion, gzip);
+			logger.debug("Getting {} via RMI for agencyId={} took {} msec",
+					feed, agencyId, timer.elapsedMsec());
+
+			// If not modified then the cached feed is still current
+			if (!feed.isNotModified())
+				cachedFeed.feed = feed;
+			cachedFeed.timeFetched = System.currentTimeMillis();
+			return cachedFeed.feed;
 		}
-		
-		return feedMessage;
 	}
 }
@@ -38,10 +38,11 @@ import org.transitclock.utils.Time;
 public class PredsByLoc {
 	
 	// The cache of extents. Keyed on agencyId. Should not be accessed directly.
-	// Should instead use getAgencyExtents().
-	private static Map<String, Extent> agencyExtentsCache =
+	// Should instead use getAgencyExtents(). Replaced as a whole when updated
+	// so that it can be read by multiple request threads without locking.
+	private static volatile Map<String, Extent> agencyExtentsCache =
 			new HashMap<String, Extent>();
-	private static long cacheUpdatedTime = 0;
+	private static volatile long cacheUpdatedTime = 0;
 	
 	// The maximum allowable maxDistance for getting predictions by location
 	public final static double MAX_MAX_DISTANCE = 2000.0;
@@ -67,16 +68,23 @@ public class PredsByLoc {
 				WebAgency.getCachedOrderedListOfWebAgencies();
 		
 		// For each agency get the extent
+		Map<String, Extent> agencyExtents = new HashMap<String, Extent>();
 		for (WebAgency webAgency : webAgencies) {
 			Agency agency = webAgency.getAgency();
 			if (agency != null) {
-				agencyExtentsCache.put(webAgency.getAgencyId(),
+				agencyExtents.put(webAgency.getAgencyId(),
 						agency.getExtent());
 			}
 		}
 		
+		// Only consider the cache updated if got extents for all agencies so
+		// that will try again for agencies whose servers were not available
+		agencyExtentsCache = agencyExtents;
+		if (agencyExtents.size() == webAgencies.size())
+			cacheUpdatedTime = System.currentTimeMillis();
+		
 		// Return the update cache
-		return agencyExtentsCache;
+		return agencyExtents;
 	}
 	
 	/**
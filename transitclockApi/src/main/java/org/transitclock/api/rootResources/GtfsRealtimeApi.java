@@ -17,24 +17,24 @@
 
 package org.transitclock.api.rootResources;
 
-import java.io.IOException;
-import java.io.OutputStream;
-
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.StreamingOutput;
 
 import org.transitclock.api.gtfsRealtime.GtfsRtTripFeed;
 import org.transitclock.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitclock.api.utils.StandardParameters;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.feed.gtfsRt.OctalDecoder;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -59,12 +59,21 @@ public class GtfsRealtimeApi {
 	/********************** Member Functions **************************/
 
 	/**
-	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
+	 * For getting GTFS-realtime Vehicle Positions data for all vehicles. The
+	 * feed is kept by the server already serialized, and also gzip
+	 * compressed, so the bytes are written out as is. Its version is returned
+	 * as the ETag so that if the client sends it back in If-None-Match and
+	 * the feed hasn't changed then 304 Not Modified is returned.
 	 * 
 	 * @param stdParameters
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param ifNoneMatch
+	 *            the ETag of the feed that the client already has
+	 * @param acceptEncoding
+	 *            if it includes gzip then the already compressed feed is
+	 *            output
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -73,64 +82,50 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeVehiclePositionsFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding)
 			throws WebApplicationException {
 
 		// Make sure request is valid
 		stdParameters.validate();
 
-		// Determine if output should be in human readable format or in
-		// standard binary GTFS-realtime format.
-		final boolean humanFormatOutput = "human".equals(format);
-
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtVehicleFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									gtfsRtCacheSeconds.getValue());
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
-			}
-		};
-
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+		// Human readable output needs to parse the feed so use the
+		// uncompressed one for that
+		boolean humanFormatOutput = "human".equals(format);
+		boolean gzip = !humanFormatOutput && acceptEncoding != null
+				&& acceptEncoding.toLowerCase().contains("gzip");
+
+		IpcGtfsRtFeed feed;
+		try {
+			feed = GtfsRtVehicleFeed.getPossiblyCachedFeed(
+					stdParameters.getAgencyId(),
+					gtfsRtCacheSeconds.getValue(), gzip);
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+
+		return createFeedResponse(feed, parseETagVersion(ifNoneMatch),
+				humanFormatOutput);
 	}
 
 	/**
-	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
+	 * For getting GTFS-realtime Trip Updates data for all trips. The feed is
+	 * maintained by the server already serialized. Its version is returned
+	 * as the ETag so that if the client sends it back in If-None-Match and
+	 * the feed hasn't changed then 304 Not Modified is returned.
 	 * 
 	 * @param stdParameters
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param incrementality
+	 *            if set to "differential" then only the trips that changed
+	 *            since the version in If-None-Match are output, with removed
+	 *            trips marked as deleted. If there is no If-None-Match, or it
+	 *            is too old, then the full dataset is output.
+	 * @param ifNoneMatch
+	 *            the ETag of the feed that the client already has
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -139,55 +134,95 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@QueryParam(value = "incrementality") String incrementality,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch)
 			throws WebApplicationException {
 
 		// Make sure request is valid
 		stdParameters.validate();
 
-		// Determine if output should be in human readable format or in
-		// standard binary GTFS-realtime format.
-		final boolean humanFormatOutput = "human".equals(format);
-
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtTripFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									gtfsRtCacheSeconds.getValue());
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
+		long clientVersion = parseETagVersion(ifNoneMatch);
+		IpcGtfsRtFeed feed;
+		try {
+			if ("differential".equalsIgnoreCase(incrementality)) {
+				feed = GtfsRtTripFeed.getDifferentialFeed(
+						stdParameters.getAgencyId(), clientVersion,
+						gtfsRtCacheSeconds.getValue());
+			} else {
+				feed = GtfsRtTripFeed.getPossiblyCachedFeed(
+						stdParameters.getAgencyId(),
+						gtfsRtCacheSeconds.getValue());
 			}
-		};
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+
+		return createFeedResponse(feed, clientVersion, "human".equals(format));
+	}
+
+	/**
+	 * Creates the response for an already serialized feed. Returns 304 Not
+	 * Modified if the client already has the version of the feed.
+	 * 
+	 * @param feed
+	 * @param clientVersion
+	 *            the version from the If-None-Match header, or 0
+	 * @param humanFormatOutput
+	 *            if true then output as human readable text instead of binary
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	private static Response createFeedResponse(IpcGtfsRtFeed feed,
+			long clientVersion, boolean humanFormatOutput)
+			throws WebApplicationException {
+		EntityTag etag = new EntityTag(Long.toString(feed.getVersion()));
+		if (feed.isNotModified() || feed.getVersion() == clientVersion)
+			return Response.notModified(etag).build();
+
+		if (!humanFormatOutput) {
+			// Standard binary output. The bytes are written out as is.
+			Response.ResponseBuilder response = Response.ok(feed.getFeed(),
+					MediaType.APPLICATION_OCTET_STREAM).tag(etag);
+			if (feed.isGzipped())
+				response.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+						.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			return response.build();
+		}
+
+		// Output data in human readable format. First, convert the octal
+		// escaped message to regular UTF encoding.
+		try {
+			FeedMessage message = FeedMessage.parseFrom(feed.getFeed());
+			String decodedMessage =
+					OctalDecoder.convertOctalEscapedString(message.toString());
+			return Response.ok(decodedMessage, MediaType.TEXT_PLAIN)
+					.tag(etag).build();
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+	}
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+	/**
+	 * Gets the feed version from an If-None-Match header.
+	 * 
+	 * @param ifNoneMatch
+	 *            such as "1234" or W/"1234". Can be null.
+	 * @return the version, or 0 if there was none or it was not valid
+	 */
+	private static long parseETagVersion(String ifNoneMatch) {
+		if (ifNoneMatch == null)
+			return 0;
+
+		String tag = ifNoneMatch.trim();
+		if (tag.startsWith("W/"))
+			tag = tag.substring(2);
+		tag = tag.replace("\"", "");
+		try {
+			return Long.parseLong(tag);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 
 }
@@ -0,0 +1,94 @@
+package org.transitclock.integration_tests;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.transitclock.applications.Core;
+import org.transitclock.avl.BatchCsvAvlFeedModule.AvlPostProcessor;
+import org.transitclock.core.SpatialMatch;
+import org.transitclock.core.SpatialMatcher;
+import org.transitclock.core.SpatialMatcher.MatchingType;
+import org.transitclock.db.structs.AvlReport;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.playback.PlaybackModule;
+
+import junit.framework.TestCase;
+
+// The spatial matches found using the segment index of a trip pattern should
+// be exactly the same as the ones found by looking at every segment.
+public class SpatialMatcherSegmentIndexTest extends TestCase {
+
+	private static final String GTFS = "src/test/resources/gtfs/S2";
+	private static final String AVL = "src/test/resources/avl/S2_2113.csv";
+
+	/*
+	 * Replays the AVL data and for every AVL report compares the spatial
+	 * matches for a trip of every trip pattern of the agency, not just the
+	 * ones the vehicle is assigned to, for both kinds of matching.
+	 */
+	@Test
+	public void test() {
+
+		final int[] numMatches = new int[1];
+		final int[] numReports = new int[1];
+
+		AvlPostProcessor processor = new AvlPostProcessor() {
+
+			Map<String, Trip> tripsByTripPatternId = null;
+
+			public void postProcess(AvlReport avlReport) {
+				if (tripsByTripPatternId == null) {
+					tripsByTripPatternId = new HashMap<String, Trip>();
+					for (Block block : Core.getInstance().getDbConfig()
+							.getBlocks()) {
+						for (Trip trip : block.getTrips()) {
+							if (!tripsByTripPatternId.containsKey(
+									trip.getTripPattern().getId()))
+								tripsByTripPatternId.put(
+										trip.getTripPattern().getId(), trip);
+						}
+					}
+				}
+
+				for (Trip trip : tripsByTripPatternId.values()) {
+					for (MatchingType matchingType : MatchingType.values()) {
+						List<SpatialMatch> expected = SpatialMatcher
+								.getSpatialMatchesForTrip(avlReport, trip,
+										matchingType, false);
+						List<SpatialMatch> actual = SpatialMatcher
+								.getSpatialMatchesForTrip(avlReport, trip,
+										matchingType, true);
+
+						String message = "vehicleId=" + avlReport.getVehicleId()
+								+ " time=" + avlReport.getTime() + " tripId="
+								+ trip.getId() + " " + matchingType;
+						assertEquals(message, expected.size(), actual.size());
+						for (int i = 0; i < expected.size(); ++i) {
+							assertEquals(message,
+									expected.get(i).getIndices(),
+									actual.get(i).getIndices());
+							assertEquals(message,
+									expected.get(i).getDistanceToSegment(),
+									actual.get(i).getDistanceToSegment(), 0.0);
+							assertEquals(message,
+									expected.get(i).getDistanceAlongSegment(),
+									actual.get(i).getDistanceAlongSegment(), 0.0);
+						}
+						numMatches[0] += expected.size();
+					}
+				}
+				++numReports[0];
+			}
+
+		};
+
+		PlaybackModule.runTrace(GTFS, AVL, processor);
+
+		// Make sure something was actually compared
+		assertTrue(numReports[0] > 0);
+		assertTrue(numMatches[0] > 0);
+	}
+}